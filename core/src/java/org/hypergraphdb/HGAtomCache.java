@@ -73,6 +73,22 @@ public interface HGAtomCache
      */	
 	HGLiveHandle atomAdded(final HGPersistentHandle pHandle, final Object atom, final HGAtomAttrib attrib);
 	
+	/**
+	 * <p>
+	 * Same as {@link #atomAdded(HGPersistentHandle, Object, HGAtomAttrib)}, but also 
+	 * provides an estimate of the atom's size, for caches that are bounded by memory 
+	 * footprint rather than number of atoms. The default implementation ignores the
+	 * weight.
+	 * </p>
+	 * 
+	 * @param weight The number of bytes written to the store for the atom or a negative
+	 * number if unknown.
+	 */
+	default HGLiveHandle atomAdded(final HGPersistentHandle pHandle, final Object atom, final HGAtomAttrib attrib, long weight)
+	{
+		return atomAdded(pHandle, atom, attrib);
+	}
+	
 	/**
 	 * <p>
 	 * Inform the cache that an atom has just been read from persistent storage.
@@ -93,6 +109,21 @@ public interface HGAtomCache
 	 */
 	HGLiveHandle atomRead(final HGPersistentHandle pHandle, final Object atom, final HGAtomAttrib attrib);
 
+	/**
+	 * <p>
+	 * Same as {@link #atomRead(HGPersistentHandle, Object, HGAtomAttrib)}, but also 
+	 * provides an estimate of the atom's size. The default implementation ignores the
+	 * weight.
+	 * </p>
+	 * 
+	 * @param weight The number of bytes read from the store to construct the atom or a 
+	 * negative number if unknown.
+	 */
+	default HGLiveHandle atomRead(final HGPersistentHandle pHandle, final Object atom, final HGAtomAttrib attrib, long weight)
+	{
+		return atomRead(pHandle, atom, attrib);
+	}
+
 	/**
 	 * <p>
 	 * Inform the cache that an atom with system-level attributes has been loaded.
@@ -147,6 +178,20 @@ public interface HGAtomCache
 	 */
 	HGLiveHandle atomRefresh(HGLiveHandle handle, Object atom, boolean replace);
 	
+	/**
+	 * <p>
+	 * Same as {@link #atomRefresh(HGLiveHandle, Object, boolean)}, but also provides an
+	 * estimate of the atom's size. The default implementation ignores the weight.
+	 * </p>
+	 * 
+	 * @param weight The number of bytes read from the store to construct the atom or a 
+	 * negative number if unknown.
+	 */
+	default HGLiveHandle atomRefresh(HGLiveHandle handle, Object atom, boolean replace, long weight)
+	{
+		return atomRefresh(handle, atom, replace);
+	}
+	
 	/**
 	 * <p>
 	 * Retrieve an atom from the cache by its persistent handle. 
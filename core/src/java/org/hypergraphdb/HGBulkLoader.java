@@ -0,0 +1,344 @@
+/*
+ * This file is part of the HyperGraphDB source distribution. This is copyrighted
+ * software. For permitted uses, licensing options and redistribution, please see
+ * the LicensingInformation file at the root level of the distribution.
+ *
+ * Copyright (c) 2005-2010 Kobrix Software, Inc.  All rights reserved.
+ */
+package org.hypergraphdb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+
+import org.hypergraphdb.storage.BAUtils;
+import org.hypergraphdb.storage.BAtoBA;
+import org.hypergraphdb.storage.BAtoString;
+import org.hypergraphdb.type.HGAtomType;
+import org.hypergraphdb.type.TypeUtils;
+
+/**
+ * <p>
+ * A loader for importing large numbers of atoms into a {@link HyperGraph}. Atoms
+ * given to the loader are buffered and written in batches: a single transaction per batch,
+ * the atom records written in key order through the batch storage API, the type and
+ * value index entries and the incidence sets of the link targets sorted and written in
+ * a final pass over the batch. This avoids the per-atom transaction and the random
+ * writes all over the storage B-trees of {@link HyperGraph#add(Object)}.
+ * </p>
+ *
+ * <p>
+ * The handles of the atoms are known before they are written - either generated by the
+ * loader or supplied by the caller - so links can refer to atoms of the same batch and
+ * nothing is ever read back. Note that atoms written by the loader are not put in the atom
+ * cache and that no {@link org.hypergraphdb.event.HGAtomProposeEvent}s or
+ * {@link org.hypergraphdb.event.HGAtomAddedEvent}s are dispatched. Types are still
+ * inferred and created the usual way when an atom is submitted to the loader. For the
+ * fastest possible import, open the graph with {@link HGConfiguration#setTransactional(boolean)}
+ * set to <code>false</code> - the batches are then written without any transactional
+ * overhead at the storage level.
+ * </p>
+ *
+ * <p>
+ * A loader is identified by a name. Together with every batch, the number of atoms
+ * loaded so far is recorded in the database under that name. When a load is interrupted,
+ * for instance by a crash, a new loader with the same name resumes it: the atoms that were
+ * already written are skipped when they are submitted again, so the same input can simply
+ * be fed into the loader from the beginning. For this to work, the input must be submitted
+ * in the same order and the atoms must have the same handles as in the interrupted run which
+ * means that the handles should be supplied by the caller (e.g. derived from the identifiers
+ * of the input records) rather than generated by the loader. The progress record is removed
+ * once the loader is closed.
+ * </p>
+ *
+ * <p>
+ * A loader is not thread-safe. Don't call it from within a transaction, each batch
+ * is committed in a transaction of its own.
+ * </p>
+ *
+ * @author Borislav Iordanov
+ */
+public class HGBulkLoader
+{
+	/**
+	 * The name of the index holding the progress of all bulk loads in a graph.
+	 */
+	public static final String PROGRESS_INDEX_NAME = "hg_bulk_load_progress";
+
+	/**
+	 * The default number of atoms written in a single batch.
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 10000;
+
+	private static class Pending
+	{
+		HGPersistentHandle handle;
+		HGPersistentHandle type;
+		Object payload;
+		HGPersistentHandle [] targets; // null for nodes
+	}
+
+	private static final Comparator<HGPersistentHandle []> pairComparator =
+		new Comparator<HGPersistentHandle []>()
+	{
+		public int compare(HGPersistentHandle [] left, HGPersistentHandle [] right)
+		{
+			int c = left[0].compareTo(right[0]);
+			return c != 0 ? c : left[1].compareTo(right[1]);
+		}
+	};
+
+	private final HyperGraph graph;
+	private final String name;
+	private final int batchSize;
+	private final HGIndex<String, byte[]> progressIndex;
+	private final ArrayList<Pending> pending;
+	private final long resumePosition;
+	private long position = 0;
+	private long loaded = 0;
+	private boolean closed = false;
+
+	/**
+	 * <p>Equivalent to <code>HGBulkLoader(graph, name, DEFAULT_BATCH_SIZE)</code>.</p>
+	 */
+	public HGBulkLoader(HyperGraph graph, String name)
+	{
+		this(graph, name, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * @param graph The graph to load atoms into.
+	 * @param name The name of the bulk load - a load interrupted before the loader was
+	 * closed is resumed by a loader with the same name.
+	 * @param batchSize The number of atoms to buffer before writing them.
+	 */
+	public HGBulkLoader(HyperGraph graph, String name, int batchSize)
+	{
+		if (batchSize < 1)
+			throw new IllegalArgumentException("The batch size must be positive.");
+		this.graph = graph;
+		this.name = name;
+		this.batchSize = batchSize;
+		this.pending = new ArrayList<Pending>(batchSize);
+		this.progressIndex = graph.getStore().getIndex(PROGRESS_INDEX_NAME,
+													   BAtoString.getInstance(),
+													   BAtoBA.getInstance(),
+													   null,
+													   null,
+													   true);
+		byte [] progress = progressIndex.findFirst(name);
+		resumePosition = progress == null ? 0 : BAUtils.readLong(progress, 0);
+	}
+
+	/**
+	 * <p>Add an atom with a newly generated handle and an inferred type.</p>
+	 *
+	 * @return The handle of the atom. The atom is not stored before the batch
+	 * it belongs to is written.
+	 */
+	public HGPersistentHandle add(Object atom)
+	{
+		return add(atom, graph.getHandleFactory().makeHandle());
+	}
+
+	/**
+	 * <p>Add an atom with the given handle and an inferred type.</p>
+	 *
+	 * @return The <code>handle</code> parameter.
+	 */
+	public HGPersistentHandle add(Object atom, HGPersistentHandle handle)
+	{
+		Object value = atom;
+		if (atom instanceof HGValueLink)
+			value = ((HGValueLink)atom).getValue();
+		HGHandle type = graph.getTypeSystem().getTypeHandle(value);
+		if (type == null)
+			throw new HGException("Unable to create HyperGraph type for class " + value.getClass().getName());
+		return add(atom, type, handle);
+	}
+
+	/**
+	 * <p>Add an atom with the given handle and type.</p>
+	 *
+	 * @return The <code>handle</code> parameter.
+	 */
+	public HGPersistentHandle add(Object atom, HGHandle type, HGPersistentHandle handle)
+	{
+		if (closed)
+			throw new HGException("Bulk loader " + name + " is closed.");
+		if (position++ < resumePosition)
+			return handle;
+		Pending p = new Pending();
+		p.handle = handle;
+		p.type = graph.getPersistentHandle(type);
+		p.payload = atom;
+		if (atom instanceof HGLink)
+		{
+			HGLink link = (HGLink)atom;
+			if (link instanceof HGValueLink)
+				p.payload = ((HGValueLink)link).getValue();
+			p.targets = new HGPersistentHandle[link.getArity()];
+			for (int i = 0; i < p.targets.length; i++)
+				p.targets[i] = graph.getPersistentHandle(link.getTargetAt(i));
+		}
+		pending.add(p);
+		if (pending.size() >= batchSize)
+			flush();
+		return handle;
+	}
+
+	/**
+	 * <p>Write all buffered atoms.</p>
+	 */
+	public void flush()
+	{
+		if (pending.isEmpty())
+			return;
+		final Pending [] batch = pending.toArray(new Pending[pending.size()]);
+		graph.getTransactionManager().ensureTransaction(new Callable<Object>() {
+			public Object call()
+			{
+				writeBatch(batch);
+				return null;
+			}
+		});
+		loaded += batch.length;
+		pending.clear();
+	}
+
+	private void writeBatch(Pending [] batch)
+	{
+		HGStore store = graph.getStore();
+		HGPersistentHandle [] handles = new HGPersistentHandle[batch.length];
+		HGPersistentHandle [][] layouts = new HGPersistentHandle[batch.length][];
+		HGPersistentHandle [][] byType = new HGPersistentHandle[batch.length][];
+		HGPersistentHandle [][] byValue = new HGPersistentHandle[batch.length][];
+		ArrayList<HGPersistentHandle []> incidence = new ArrayList<HGPersistentHandle []>();
+		for (int i = 0; i < batch.length; i++)
+		{
+			Pending p = batch[i];
+			HGAtomType type = graph.getTypeSystem().getType(p.type);
+			HGPersistentHandle valueHandle = TypeUtils.storeValue(graph, p.payload, type);
+			int arity = p.targets == null ? 0 : p.targets.length;
+			HGPersistentHandle [] layout = new HGPersistentHandle[2 + arity];
+			layout[0] = p.type;
+			layout[1] = valueHandle;
+			for (int j = 0; j < arity; j++)
+			{
+				layout[j + 2] = p.targets[j];
+				incidence.add(new HGPersistentHandle[] { p.targets[j], p.handle });
+			}
+			handles[i] = p.handle;
+			layouts[i] = layout;
+			byType[i] = new HGPersistentHandle[] { p.type, p.handle };
+			byValue[i] = new HGPersistentHandle[] { valueHandle, p.handle };
+		}
+		store.storeAll(handles, layouts);
+
+		Arrays.sort(byType, pairComparator);
+		for (int start = 0; start < byType.length; )
+		{
+			ArrayList<HGPersistentHandle> instances = new ArrayList<HGPersistentHandle>();
+			int end = start;
+			while (end < byType.length && byType[end][0].equals(byType[start][0]))
+				instances.add(byType[end++][1]);
+			graph.indexByType.addEntries(byType[start][0], instances);
+			start = end;
+		}
+		Arrays.sort(byValue, pairComparator);
+		for (HGPersistentHandle [] entry : byValue)
+			graph.indexByValue.addEntry(entry[0], entry[1]);
+		for (Pending p : batch)
+			graph.getIndexManager().maybeIndex(p.type,
+											   graph.getTypeSystem().getType(p.type),
+											   p.handle,
+											   p.payload);
+		if (graph.getConfig().isUseSystemAtomAttributes())
+			for (Pending p : batch)
+			{
+				HGAtomAttrib attribs = new HGAtomAttrib();
+				attribs.lastAccessTime = System.currentTimeMillis();
+				graph.setAtomAttributes(p.handle, attribs);
+			}
+
+		HGPersistentHandle [][] pairs = incidence.toArray(new HGPersistentHandle[incidence.size()][]);
+		Arrays.sort(pairs, pairComparator);
+		for (int start = 0; start < pairs.length; )
+		{
+			int end = start + 1;
+			while (end < pairs.length && pairs[end][0].equals(pairs[start][0]))
+				end++;
+			HGPersistentHandle target = pairs[start][0];
+			HGPersistentHandle [] links = new HGPersistentHandle[end - start];
+			for (int i = start; i < end; i++)
+				links[i - start] = pairs[i][1];
+			store.addIncidenceLinks(target, links);
+			IncidenceSet loadedSet = graph.cache.getIncidenceCache().getIfLoaded(target);
+			if (loadedSet != null)
+				for (HGPersistentHandle link : links)
+					loadedSet.add(link);
+			start = end;
+		}
+
+		byte [] progress = new byte[8];
+		BAUtils.writeLong(position, progress, 0);
+		progressIndex.removeAllEntries(name);
+		progressIndex.addEntry(name, progress);
+	}
+
+	/**
+	 * <p>Write all buffered atoms and remove the progress record of this load. The
+	 * loader can't be used after it's been closed.</p>
+	 */
+	public void close()
+	{
+		if (closed)
+			return;
+		flush();
+		graph.getTransactionManager().ensureTransaction(new Callable<Object>() {
+			public Object call()
+			{
+				progressIndex.removeAllEntries(name);
+				return null;
+			}
+		});
+		closed = true;
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public int getBatchSize()
+	{
+		return batchSize;
+	}
+
+	/**
+	 * <p>Return the number of atoms skipped at the beginning of the input because they
+	 * had been written before the load was interrupted.</p>
+	 */
+	public long getResumePosition()
+	{
+		return resumePosition;
+	}
+
+	/**
+	 * <p>Return the number of atoms submitted to this loader so far, including
+	 * skipped ones.</p>
+	 */
+	public long getPosition()
+	{
+		return position;
+	}
+
+	/**
+	 * <p>Return the number of atoms written by this loader.</p>
+	 */
+	public long getLoadedCount()
+	{
+		return loaded;
+	}
+}
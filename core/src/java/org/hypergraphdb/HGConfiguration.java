@@ -7,6 +7,7 @@
  */
 package org.hypergraphdb;
 
+import org.hypergraphdb.cache.CacheMaintenanceExecutor;
 import org.hypergraphdb.cache.WeakRefAtomCache;
 import org.hypergraphdb.event.HGDefaultEventManager;
 
@@ -32,11 +33,20 @@ public class HGConfiguration
 	private HGHandleFactory handleFactory;
 	private HGStoreImplementation storeImplementation;
 	private boolean transactional;
+	private boolean groupCommit;
 	private boolean skipMaintenance;
 	private boolean cancelMaintenance;
 	private boolean skipOpenedEvent;
 	private boolean preventDanglingAtomReferences = true; 
 	private int maxCachedIncidenceSetSize; 
+	private int incidenceCacheSize;
+	private int queryPlanCacheSize;
+	private int pipeBatchSize;
+	private long atomCacheBudget;
+	private long storeCacheSize;
+	private int cacheMaintenanceThreads;
+	private int cacheMaintenanceQueueSize;
+	private int cacheMaintenanceBatchSize;
 	private boolean useSystemAtomAttributes;
 	private boolean keepIncidentLinksOnRemoval = false;
 	private HGTypeConfiguration typeConfiguration = new HGTypeConfiguration();
@@ -108,10 +118,19 @@ public class HGConfiguration
 	public void resetDefaults()
 	{
 		this.transactional = true;
+		this.groupCommit = false;
 		this.skipMaintenance = false;
 		this.cancelMaintenance = false;
 		this.skipOpenedEvent = false;
 		this.maxCachedIncidenceSetSize = 10000;
+		this.incidenceCacheSize = 0;
+		this.queryPlanCacheSize = 1000;
+		this.pipeBatchSize = 256;
+		this.atomCacheBudget = 0;
+		this.storeCacheSize = 0;
+		this.cacheMaintenanceThreads = 1;
+		this.cacheMaintenanceQueueSize = CacheMaintenanceExecutor.DEFAULT_QUEUE_CAPACITY;
+		this.cacheMaintenanceBatchSize = CacheMaintenanceExecutor.DEFAULT_BATCH_SIZE;
 		this.useSystemAtomAttributes = true;
 	}
 	
@@ -148,6 +167,33 @@ public class HGConfiguration
 	{
 		this.transactional = transactional;
 	}
+	
+	/**
+	 * <p>
+	 * Return <code>true</code> if top-level write transactions are committed in 
+	 * groups and <code>false</code> (the default) otherwise. 
+	 * </p>
+	 */
+	public boolean isGroupCommit()
+	{
+		return groupCommit;
+	}
+
+	/**
+	 * <p>
+	 * Specify whether top-level write transactions should be committed in groups. Group
+	 * commit increases write throughput when many threads are committing small transactions
+	 * concurrently, at the price of a slightly higher latency for an individual commit. See
+	 * {@link org.hypergraphdb.transaction.HGTransactionManager#setGroupCommit(boolean)} for
+	 * details.
+	 * </p>
+	 * 
+	 * @param groupCommit
+	 */
+	public void setGroupCommit(boolean groupCommit)
+	{
+		this.groupCommit = groupCommit;
+	}
 	
     /** 
 	 * <p>Return true if HyperGraph should skip scheduled maintenance operations when
@@ -241,6 +287,175 @@ public class HGConfiguration
         this.maxCachedIncidenceSetSize = maxCachedIncidenceSetSize;
     }
 
+    /**
+     * <p>Return the maximum number of incidence sets kept in the incidence set cache. The 
+     * default is 0 which means the cache is only bounded by available memory and gets 
+     * partially evicted whenever memory runs low.</p>
+     */
+    public int getIncidenceCacheSize()
+    {
+        return incidenceCacheSize;
+    }
+
+    /**
+     * <p>Set the maximum number of incidence sets kept in the incidence set cache. A value 
+     * of 0 or less means the cache is only bounded by available memory. With a bounded 
+     * cache, incidence sets are evicted based on their frequency of use (see 
+     * {@link org.hypergraphdb.cache.TinyLFUCache}).</p>
+     */
+    public void setIncidenceCacheSize(int incidenceCacheSize)
+    {
+        this.incidenceCacheSize = incidenceCacheSize;
+    }
+
+    /**
+     * <p>Return the maximum number of compiled query plans kept by 
+     * {@link HyperGraph#find(org.hypergraphdb.query.HGQueryCondition)} for reuse by
+     * conditions of the same shape. The default is 1000.</p>
+     */
+    public int getQueryPlanCacheSize()
+    {
+        return queryPlanCacheSize;
+    }
+
+    /**
+     * <p>Set the maximum number of compiled query plans kept for reuse by 
+     * {@link HyperGraph#find(org.hypergraphdb.query.HGQueryCondition)}. A value of 0 
+     * or less disables the cache and every condition is compiled anew (see 
+     * {@link org.hypergraphdb.query.cond2qry.QueryPlanCache}).</p>
+     */
+    public void setQueryPlanCacheSize(int queryPlanCacheSize)
+    {
+        this.queryPlanCacheSize = queryPlanCacheSize;
+    }
+
+    /**
+     * <p>Return the number of keys that a {@link org.hypergraphdb.query.impl.PipeQuery} 
+     * looking up an index reads from its input before probing the index with all of them 
+     * at once. The default is 256.</p>
+     */
+    public int getPipeBatchSize()
+    {
+        return pipeBatchSize;
+    }
+
+    /**
+     * <p>Set the number of keys that a {@link org.hypergraphdb.query.impl.PipeQuery} 
+     * looking up an index reads from its input before probing the index with all of them 
+     * at once (see {@link HGIndex#findBatch(java.util.List)}). A value of 1 or less 
+     * makes the index be looked up separately for each key.</p>
+     */
+    public void setPipeBatchSize(int pipeBatchSize)
+    {
+        this.pipeBatchSize = pipeBatchSize;
+    }
+
+    /**
+     * <p>Return the approximate number of bytes of recently used atoms that the atom cache
+     * holds on to even when they are no longer referenced by the application. The default
+     * is 0 which means that a fixed number of recently used atoms is retained instead, 
+     * regardless of their size.</p>
+     */
+    public long getAtomCacheBudget()
+    {
+        return atomCacheBudget;
+    }
+
+    /**
+     * <p>Set the approximate number of bytes of recently used atoms that the atom cache
+     * holds on to. The size of an atom is estimated from the size of its serialized form
+     * in the {@link HGStore} and the oldest atoms are released as soon as the total exceeds
+     * the budget (see {@link org.hypergraphdb.cache.WeightedColdAtoms}). A value of 0 or 
+     * less means that a fixed number of atoms is retained regardless of their size. Only 
+     * supported by the default {@link WeakRefAtomCache}.</p>
+     */
+    public void setAtomCacheBudget(long atomCacheBudget)
+    {
+        this.atomCacheBudget = atomCacheBudget;
+    }
+
+    /**
+     * <p>Return the number of bytes of off-heap memory used to cache raw storage records
+     * in the {@link HGStore}. The default is 0 which means that no such cache is used.</p>
+     */
+    public long getStoreCacheSize()
+    {
+        return storeCacheSize;
+    }
+
+    /**
+     * <p>Set the number of bytes of off-heap memory used to cache raw storage records 
+     * (links and data) in the {@link HGStore} - see 
+     * {@link org.hypergraphdb.storage.OffHeapRecordCache}. A value of 0 or less disables the
+     * cache. The memory is allocated with direct buffers when the database is opened, so the 
+     * JVM's <code>-XX:MaxDirectMemorySize</code> must allow for it.</p>
+     * 
+     * <p>Records are removed from the cache when they are written or removed. This relies
+     * on the storage implementation making readers wait for the commit or abort of a
+     * concurrent writer, as is the case with the default BerkeleyDB JE storage. It is not
+     * safe with storage implementations serving read-only transactions from older 
+     * snapshots, such as the native BerkeleyDB storage with multiversion concurrency 
+     * control enabled.</p> 
+     */
+    public void setStoreCacheSize(long storeCacheSize)
+    {
+        this.storeCacheSize = storeCacheSize;
+    }
+
+    /**
+     * <p>Return the number of threads performing asynchronous cache maintenance for 
+     * the database - see {@link CacheMaintenanceExecutor}. The default is 1.</p>
+     */
+    public int getCacheMaintenanceThreads()
+    {
+        return cacheMaintenanceThreads;
+    }
+
+    /**
+     * <p>Set the number of threads performing asynchronous cache maintenance for 
+     * the database - see {@link CacheMaintenanceExecutor}.</p>
+     */
+    public void setCacheMaintenanceThreads(int cacheMaintenanceThreads)
+    {
+        this.cacheMaintenanceThreads = cacheMaintenanceThreads;
+    }
+
+    /**
+     * <p>Return the maximum number of pending cache maintenance actions. Threads 
+     * submitting actions block when that number is reached. The default is 100000.</p>
+     */
+    public int getCacheMaintenanceQueueSize()
+    {
+        return cacheMaintenanceQueueSize;
+    }
+
+    /**
+     * <p>Set the maximum number of pending cache maintenance actions. Threads 
+     * submitting actions block when that number is reached.</p>
+     */
+    public void setCacheMaintenanceQueueSize(int cacheMaintenanceQueueSize)
+    {
+        this.cacheMaintenanceQueueSize = cacheMaintenanceQueueSize;
+    }
+
+    /**
+     * <p>Return the maximum number of cache maintenance actions a maintenance thread 
+     * takes from its queue at once. The default is 256.</p>
+     */
+    public int getCacheMaintenanceBatchSize()
+    {
+        return cacheMaintenanceBatchSize;
+    }
+
+    /**
+     * <p>Set the maximum number of cache maintenance actions a maintenance thread 
+     * takes from its queue at once.</p>
+     */
+    public void setCacheMaintenanceBatchSize(int cacheMaintenanceBatchSize)
+    {
+        this.cacheMaintenanceBatchSize = cacheMaintenanceBatchSize;
+    }
+
 //    /**
 //     * <p>Return <code>true</code> if full (catastrophic) recovery will be run on the storage
 //     * layer upon opening the database, and <code>false</code> otherwise.</p>
@@ -7,6 +7,10 @@
  */
 package org.hypergraphdb;
 
+import java.util.Collection;
+import java.util.List;
+
+import org.hypergraphdb.query.impl.BatchedIndexQuery;
 import org.hypergraphdb.storage.HGIndexStats;
 
 
@@ -41,6 +45,22 @@ public interface HGIndex<KeyType, ValueType> extends HGSearchable<KeyType, Value
      */
     void addEntry(KeyType key, ValueType value);
 
+    /**
+     * <p>
+     * Add several entries with the same key to the index. Implementations that store
+     * the values of a key together may do this more efficiently than adding the entries
+     * one by one.
+     * </p>
+     * 
+     * @param key The key of all entries.
+     * @param values The value parts of the entries.
+     */
+    default void addEntries(KeyType key, Collection<ValueType> values)
+    {
+        for (ValueType value : values)
+            addEntry(key, value);
+    }
+
     /**
      * <p>Remove a specific entry in the index. If an entry
      * with this key and value does not exist, the method does not nothing.
@@ -85,7 +105,30 @@ public interface HGIndex<KeyType, ValueType> extends HGSearchable<KeyType, Value
      * @return A <code>HGRandomAccessResult</code> over all <code>HGPersistentHandle</code>s under that key.
      */
     HGRandomAccessResult<ValueType> find(KeyType key);
-    
+
+    /**
+     * <p>
+     * Retrieve all entries corresponding to any of the given keys. The result contains
+     * the values of each key in turn, as returned by {@link #find(Object)}, and keys
+     * not in the index are skipped. A key appearing several times in the list has its
+     * values returned as many times.
+     * </p>
+     *
+     * <p>
+     * Implementations may visit the keys in the order of the index rather than in the
+     * order given, so as to look them all up in a single pass over the index instead of
+     * a separate lookup per key. The default implementation looks up each key in the
+     * order given.
+     * </p>
+     *
+     * @param keys The keys whose values are sought.
+     * @return A <code>HGSearchResult</code> over the values of all keys, grouped by key.
+     */
+    default HGSearchResult<ValueType> findBatch(List<KeyType> keys)
+    {
+        return BatchedIndexQuery.findEach(this, keys);
+    }
+
     /**
      * <p>
      * Open the index for use. Entries may be added to the index only when it
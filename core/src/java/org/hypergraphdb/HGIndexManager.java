@@ -8,8 +8,10 @@ package org.hypergraphdb;
 
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 import java.util.HashMap;
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
 import org.hypergraphdb.type.HGAtomType;
 import org.hypergraphdb.HGQuery.hg;
 import org.hypergraphdb.indexing.*;
@@ -44,7 +46,8 @@ import org.hypergraphdb.storage.ByteArrayConverter;
  * is being registered will be automatically indexed henceforth. If there are already atoms of that
  * type in the database, they be indexed the next time the database is opened. You can force this
  * indexing of existing data to happen right away by calling the <code>runMaintenance</code> of 
- * the {@link HyperGraph} instance.
+ * the {@link HyperGraph} instance. Until existing data has been indexed, the index is not
+ * <em>complete</em> and queries don't use it, see {@link #isComplete(HGIndexer)}.
  * </p>
  * <p>
  * <strong>NOTE</strong>: this class is not thread safe and its methods do not participate in database
@@ -60,6 +63,9 @@ public class HGIndexManager
 	private HashMap<HGIndexer, HGIndex<? extends Object, ? extends Object>> indices = 
 			new HashMap<HGIndexer, HGIndex<? extends Object, ? extends Object>>();	
 	private HashMap<HGHandle, List<HGIndexer<?,?>>> indexers = new HashMap<HGHandle, List<HGIndexer<?,?>>>();
+	// Indexers whose index is still being populated with pre-existing atoms by an ApplyNewIndexer.
+	// Modified by the maintenance thread while queries are being compiled, hence concurrent.
+	private Set<HGIndexer<?,?>> incomplete = ConcurrentHashMap.newKeySet();
 	
 	private String getIndexName(HGIndexer indexer)
 	{
@@ -124,6 +130,7 @@ public class HGIndexManager
 		if (indexer == null)
 			return;
 		indices.remove(indexer);
+		incomplete.remove(indexer);
 		String name = getIndexName(indexer);
 		graph.getStore().removeIndex(name);
 	}
@@ -162,6 +169,15 @@ public class HGIndexManager
 			    }
 			}
 		}
+		// Indexers still waiting for existing data to be indexed
+		HGHandle opType = graph.getTypeSystem().getTypeHandleIfDefined(ApplyNewIndexer.class);
+		if (opType != null)
+			for (Object op : hg.getAll(graph, hg.type(opType)))
+			{
+				HGIndexer<?,?> indexer = graph.get(((ApplyNewIndexer)op).getHindexer());
+				if (indexer != null)
+					incomplete.add(indexer);
+			}
 	}
 	
 	/**
@@ -187,6 +203,7 @@ public class HGIndexManager
 	public boolean unregister(HGIndexer indexer)
 	{
 	    removeFromSubtypes(indexer);
+	    graph.getQueryPlanCache().invalidate();
 		List<HGIndexer<?,?>> forType = indexers.get(indexer.getType());
 		if (forType == null)
 			return false;
@@ -234,6 +251,7 @@ public class HGIndexManager
 			}
 			if (forType.isEmpty())
 			    indexers.remove(typeHandle);
+			graph.getQueryPlanCache().invalidate();
 		}
 	}
 	
@@ -256,7 +274,8 @@ public class HGIndexManager
 	 * will become active right away if there's no data with the specified <code>HGIndexer</code>'s
 	 * type. If there is already some data with the type (or sub-types) being indexed, the index
 	 * will become active the next time the database is opened when a potentially long indexing
-	 * operation will be triggered. If you want to do the indexing right after creating an index
+	 * operation will be triggered. Queries will use the index only once that operation has
+	 * completed. If you want to do the indexing right after creating an index
 	 * on existing data, call the <code>HyperGraph.runMaintenance</code> method.
 	 * </p>
 	 * 
@@ -291,7 +310,11 @@ public class HGIndexManager
 			HGHandle hIndexer = graph.add(indexer);			
 			HGIndex<KeyType, ValueType> idx = getOrCreateIndex(indexer);
 			if (!activate)
+			{
+				incomplete.add(indexer);
 				graph.add(new ApplyNewIndexer(hIndexer));
+			}
+			graph.getQueryPlanCache().invalidate();
 			return idx;
 		}
 		else
@@ -328,6 +351,7 @@ public class HGIndexManager
 	    for (HGIndexer<?,?> idx : forSuperType)
 	        if (!forSubType.contains(idx))
 	            forSubType.add(idx);
+	    graph.getQueryPlanCache().invalidate();
 	}
 	
 	/**
@@ -356,6 +380,55 @@ public class HGIndexManager
 		return result;
 	}
 
+	/**
+	 * <p>
+	 * Return <code>true</code> unless the index of the given <code>HGIndexer</code> is
+	 * registered, but hasn't been populated yet with the atoms that existed at the time
+	 * of registration. The query compiler ignores an incomplete index and falls back to
+	 * scanning the atoms of its type.
+	 * </p>
+	 */
+	public boolean isComplete(HGIndexer<?,?> indexer)
+	{
+		return !incomplete.contains(indexer);
+	}
+
+	/**
+	 * <p>
+	 * Start maintaining the index of an indexer that was registered while atoms of its
+	 * type already existed. This is called by the {@link ApplyNewIndexer} maintenance
+	 * operation before it indexes the existing atoms so that atoms added or removed while
+	 * it runs are accounted for. The index remains incomplete until {@link #markComplete(HGIndexer)}.
+	 * </p>
+	 */
+	public void activate(HGIndexer<?,?> indexer)
+	{
+        for (HGHandle currentType : hg.typePlus(indexer.getType()).getSubTypes(graph))
+        {
+            List<HGIndexer<?,?>> forType = indexers.get(currentType);
+            if (forType == null)
+            {
+                forType = new ArrayList<HGIndexer<?,?>>();
+                indexers.put(currentType, forType);
+            }
+            if (!forType.contains(indexer))
+            	forType.add(indexer);
+        }
+        graph.getQueryPlanCache().invalidate();
+	}
+
+	/**
+	 * <p>
+	 * Mark the index of the given <code>HGIndexer</code> as complete. This is called by
+	 * the {@link ApplyNewIndexer} maintenance operation once it has indexed all existing atoms.
+	 * </p>
+	 */
+	public void markComplete(HGIndexer<?,?> indexer)
+	{
+		incomplete.remove(indexer);
+		graph.getQueryPlanCache().invalidate();
+	}
+
 	/**
 	 * <p>
 	 * Return all registered <code>HGIndexer</code>s for a given HyperGraph type.
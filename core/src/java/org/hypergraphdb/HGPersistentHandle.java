@@ -39,4 +39,19 @@ public interface HGPersistentHandle extends HGHandle, Serializable, Comparable<H
      * or 16 for UUID based handles.
      */
     byte [] toByteArray();
+
+    /**
+     * <p>Write the <code>byte[]</code> representation of the handle into <code>buffer</code>,
+     * starting at <code>offset</code>. Storage implementations use this to assemble keys and
+     * link layouts in reusable buffers.</p>
+     *
+     * @param buffer The destination buffer - it must have room for <code>toByteArray().length</code>
+     * bytes after <code>offset</code>.
+     * @param offset The position of the first byte of the handle in <code>buffer</code>.
+     */
+    default void writeTo(byte [] buffer, int offset)
+    {
+        byte [] B = toByteArray();
+        System.arraycopy(B, 0, buffer, offset, B.length);
+    }
 }
\ No newline at end of file
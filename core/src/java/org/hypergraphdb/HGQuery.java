@@ -14,7 +14,9 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.function.Function;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 import org.hypergraphdb.atom.HGSubgraph;
 import org.hypergraphdb.atom.HGSubsumes;
@@ -52,6 +54,8 @@ import org.hypergraphdb.query.TypePlusCondition;
 import org.hypergraphdb.query.cond2qry.ExpressionBasedQuery;
 import org.hypergraphdb.query.impl.DerefMapping;
 import org.hypergraphdb.query.impl.LinkProjectionMapping;
+import org.hypergraphdb.query.impl.SearchResultPublisher;
+import org.hypergraphdb.query.impl.SearchResultSpliterator;
 import org.hypergraphdb.transaction.HGTransactionConfig;
 import org.hypergraphdb.type.HGAtomType;
 import org.hypergraphdb.type.HGCompositeType;
@@ -59,6 +63,7 @@ import org.hypergraphdb.type.HGTypedValue;
 import org.hypergraphdb.type.TypeUtils;
 import org.hypergraphdb.util.CompositeMapping;
 import org.hypergraphdb.util.Constant;
+import org.hypergraphdb.util.Flow;
 import org.hypergraphdb.util.HGUtils;
 import org.hypergraphdb.util.Mapping;
 import org.hypergraphdb.util.Ref;
@@ -281,6 +286,29 @@ public abstract class HGQuery<SearchResult> implements HGGraphHolder
         	HGTransactionConfig.READONLY);				
 	}
 	
+	/**
+	 * <p>
+	 * Execute the query and return a <code>Stream</code> over its results. The results are
+	 * read lazily, as the stream is consumed, so it should be consumed within the transaction
+	 * in which it was created, if any. See {@link SearchResultSpliterator}.
+	 * </p>
+	 */
+	public Stream<SearchResult> stream()
+	{
+		return SearchResultSpliterator.stream(execute(), graph.getTransactionManager());
+	}
+	
+	/**
+	 * <p>
+	 * Return a {@link Flow.Publisher} of the results of this query, which is executed
+	 * for each of its subscribers. See {@link SearchResultPublisher}.
+	 * </p>
+	 */
+	public Flow.Publisher<SearchResult> publisher()
+	{
+		return new SearchResultPublisher<SearchResult>(this);
+	}
+	
 	/**
 	 * <p>
 	 * Execute the query and accumulate the results in a <code>Set</code>.
@@ -1746,14 +1774,14 @@ public abstract class HGQuery<SearchResult> implements HGGraphHolder
         	return graph.getTransactionManager().ensureTransaction(new Callable<List<T>>() {
             	public List<T> call()
             	{
-            		ArrayList<Object> result = new ArrayList<Object>();
+            		ArrayList<HGHandle> handles = new ArrayList<HGHandle>();
             		HGSearchResult<HGHandle> rs = null;
             		try
             		{
             			rs = graph.find(condition);
             			while (rs.hasNext())
-            				result.add(graph.get(rs.next()));
-            			return (List<T>)result;
+            				handles.add(rs.next());
+            			return graph.getAll(handles);
             		}
             		finally
             		{
@@ -1763,6 +1791,59 @@ public abstract class HGQuery<SearchResult> implements HGGraphHolder
             	}, HGTransactionConfig.READONLY);    		     		
     	}
     	
+    	/**
+    	 * <p>
+    	 * Run a query based on the specified condition and return a <code>Stream</code> over
+    	 * the result set. Unlike {@link #findAll(HyperGraph, HGQueryCondition)}, results are
+    	 * read lazily as the stream is consumed: the stream should be closed if it's not
+    	 * consumed to the end, and it should be consumed within the current transaction, if any.
+    	 * </p>
+    	 *  
+    	 * @param graph The {@link HyperGraph} to run the query against.
+    	 * @param condition The query condition constraining the result set.
+    	 * @return A stream of all results from the result set.
+    	 */
+    	public static <T> Stream<T> stream(final HyperGraph graph, final HGQueryCondition condition)
+    	{
+    		return SearchResultSpliterator.stream(graph.<T>find(condition), graph.getTransactionManager());
+    	}
+    	
+    	/**
+    	 * <p>
+    	 * Return a <code>Stream</code> over the remaining elements of a result set, which is
+    	 * closed when the stream has consumed all of them or when the stream is closed. Since the
+    	 * graph of the result set is not known, the stream is processed sequentially even when it
+    	 * is made parallel.
+    	 * </p>
+    	 *  
+    	 * @param rs The result set.
+    	 * @return A stream of the remaining elements of the result set.
+    	 */
+    	public static <T> Stream<T> stream(final HGSearchResult<T> rs)
+    	{
+    		return SearchResultSpliterator.stream(rs, null);
+    	}
+    	
+    	/**
+    	 * <p>
+    	 * Like {@link #stream(HyperGraph, HGQueryCondition)}, but each <code>HGHandle</code>
+    	 * of the result set is dereferenced to its atom as the stream consumes it. When the stream
+    	 * is made parallel within a read-only transaction, atoms are dereferenced by the threads of
+    	 * the common fork/join pool within that transaction. Within a write transaction, the
+    	 * stream is processed sequentially.
+    	 * </p>
+    	 *  
+         * @param graph The {@link HyperGraph} to run the query against.
+         * @param condition The query condition constraining the result set.
+         * @return A stream of all atoms from the result set.
+    	 */
+    	public static <T> Stream<T> streamAtoms(final HyperGraph graph, final HGQueryCondition condition)
+    	{
+    		return hg.<HGHandle>stream(graph, condition).map(new Function<HGHandle, T>() {
+    			public T apply(HGHandle h) { return graph.get(h); }
+    		});
+    	}
+    	
     	/**
     	 * <p>
     	 * Execute the given query, put all the elements from the result set in a <code>List</code>
@@ -1803,14 +1884,14 @@ public abstract class HGQuery<SearchResult> implements HGGraphHolder
         	return query.getHyperGraph().getTransactionManager().ensureTransaction(new Callable<List<T>>() {
             	public List<T> call()
             	{
-            		ArrayList<Object> result = new ArrayList<Object>();
+            		ArrayList<HGHandle> handles = new ArrayList<HGHandle>();
             		HGSearchResult<HGHandle> rs = null;
             		try
             		{
             			rs = query.execute();
             			while (rs.hasNext())
-            				result.add(query.getHyperGraph().get(rs.next()));
-            			return (List<T>)result;
+            				handles.add(rs.next());
+            			return query.getHyperGraph().getAll(handles);
             		}
             		finally
             		{
@@ -0,0 +1,625 @@
+/*
+ * This file is part of the HyperGraphDB source distribution. This is copyrighted
+ * software. For permitted uses, licensing options and redistribution, please see
+ * the LicensingInformation file at the root level of the distribution.
+ *
+ * Copyright (c) 2005-2010 Kobrix Software, Inc.  All rights reserved.
+ */
+package org.hypergraphdb;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.hypergraphdb.query.ComparisonOperator;
+import org.hypergraphdb.storage.BAUtils;
+import org.hypergraphdb.storage.BAtoBA;
+import org.hypergraphdb.storage.BAtoString;
+import org.hypergraphdb.storage.HGIndexStats;
+import org.hypergraphdb.storage.PostingBlock;
+import org.hypergraphdb.type.HGAtomType;
+import org.hypergraphdb.type.HGPrimitiveType;
+import org.hypergraphdb.type.javaprimitive.PrimitiveTypeBase;
+
+/**
+ * <p>
+ * A catalog of statistics about the data in a {@link HyperGraph}, used by the query
+ * compiler to estimate the size of result sets without evaluating them. The catalog
+ * holds:
+ * </p>
+ *
+ * <ul>
+ * <li>An equi-depth histogram over the value index of each primitive type that has instances.
+ * Every bucket holds about the same number of values and records the average number of
+ * references to a value, sampled from the value records. The estimated number of atoms
+ * whose value is in a range is therefore the sum over the buckets covering the range.</li>
+ * <li>The average size of the incidence sets of the targets of the links of each link type,
+ * sampled from the first instances of the type, and the same average over all links.</li>
+ * </ul>
+ *
+ * <p>
+ * The number of instances of a type is not part of the catalog - it's read from the type
+ * index whenever it's needed. The catalog is built by the {@link #analyze()} maintenance
+ * operation and saved in the database. Between two analyses, histogram estimates are scaled
+ * by the ratio between the current size of the value index and its size at the time of the
+ * analysis when the index can provide its size at no cost, so estimates remain reasonable as
+ * the graph grows. Conditions for which nothing is known are estimated at <code>-1</code>.
+ * </p>
+ *
+ * @author Borislav Iordanov
+ */
+public class HGStatistics
+{
+	/**
+	 * The name of the index where the catalog is saved.
+	 */
+	public static final String STATISTICS_INDEX_NAME = "hg_statistics";
+
+	/**
+	 * The default number of buckets of a value histogram.
+	 */
+	public static final int DEFAULT_BUCKETS = 64;
+
+	/**
+	 * The default number of instances sampled per link type.
+	 */
+	public static final int DEFAULT_SAMPLE_SIZE = 100;
+
+	private static final String HISTOGRAM_PREFIX = "histogram:";
+	private static final String INCIDENCE_PREFIX = "incidence:";
+	private static final String INCIDENCE_ALL = "incidence";
+
+	/**
+	 * <p>
+	 * An equi-depth histogram over a value index. Buckets are delimited by their inclusive
+	 * upper bound, in the order of the index keys.
+	 * </p>
+	 */
+	public static final class Histogram
+	{
+		private final long entries;
+		private final byte [][] bounds;
+		private final long [] counts;
+		private final double [] references;
+
+		/**
+		 * @param entries The number of values in the index at the time the histogram is built.
+		 * @param bounds The upper bound of each bucket.
+		 * @param counts The number of values in each bucket.
+		 * @param references The average number of references to a value of each bucket.
+		 */
+		public Histogram(long entries, byte [][] bounds, long [] counts, double [] references)
+		{
+			this.entries = entries;
+			this.bounds = bounds;
+			this.counts = counts;
+			this.references = references;
+		}
+
+		public long getEntries()
+		{
+			return entries;
+		}
+
+		public int getBucketCount()
+		{
+			return bounds.length;
+		}
+
+		/**
+		 * <p>Return the total number of references to the values of the index.</p>
+		 */
+		public double getTotal()
+		{
+			double total = 0;
+			for (int i = 0; i < counts.length; i++)
+				total += counts[i] * references[i];
+			return total;
+		}
+
+		/**
+		 * <p>
+		 * Estimate the number of references to values that compare to <code>key</code> as
+		 * specified by the operator, assuming values are spread evenly within a bucket.
+		 * </p>
+		 */
+		public double estimate(Comparator<byte[]> comparator, byte [] key, ComparisonOperator op)
+		{
+			int i = 0;
+			double below = 0;
+			while (i < bounds.length && comparator.compare(bounds[i], key) < 0)
+				below += counts[i] * references[i++];
+			double total = getTotal();
+			double lt, lte, eq;
+			if (i == bounds.length)
+				lt = lte = total;
+			else if (comparator.compare(bounds[i], key) == 0)
+			{
+				lte = below + counts[i] * references[i];
+				lt = lte - references[i];
+			}
+			else
+				lt = lte = below + counts[i] * references[i] / 2;
+			eq = i == bounds.length ? 0 : references[i];
+			switch (op)
+			{
+				case EQ: return eq;
+				case LT: return lt;
+				case LTE: return lte;
+				case GT: return total - lte;
+				case GTE: return total - lt;
+				default: return total;
+			}
+		}
+
+		public byte [] toByteArray()
+		{
+			int size = 12;
+			for (byte [] b : bounds)
+				size += 20 + b.length;
+			byte [] result = new byte[size];
+			BAUtils.writeLong(entries, result, 0);
+			BAUtils.writeInt(bounds.length, result, 8);
+			int pos = 12;
+			for (int i = 0; i < bounds.length; i++)
+			{
+				BAUtils.writeLong(counts[i], result, pos);
+				BAUtils.writeLong(Double.doubleToLongBits(references[i]), result, pos + 8);
+				BAUtils.writeInt(bounds[i].length, result, pos + 16);
+				System.arraycopy(bounds[i], 0, result, pos + 20, bounds[i].length);
+				pos += 20 + bounds[i].length;
+			}
+			return result;
+		}
+
+		public static Histogram fromByteArray(byte [] data)
+		{
+			int n = BAUtils.readInt(data, 8);
+			byte [][] bounds = new byte[n][];
+			long [] counts = new long[n];
+			double [] references = new double[n];
+			int pos = 12;
+			for (int i = 0; i < n; i++)
+			{
+				counts[i] = BAUtils.readLong(data, pos);
+				references[i] = Double.longBitsToDouble(BAUtils.readLong(data, pos + 8));
+				bounds[i] = new byte[BAUtils.readInt(data, pos + 16)];
+				System.arraycopy(data, pos + 20, bounds[i], 0, bounds[i].length);
+				pos += 20 + bounds[i].length;
+			}
+			return new Histogram(BAUtils.readLong(data, 0), bounds, counts, references);
+		}
+	}
+
+	private static final Comparator<byte[]> unsignedOrder = new Comparator<byte[]>()
+	{
+		public int compare(byte [] left, byte [] right)
+		{
+			return PostingBlock.compare(left, right);
+		}
+	};
+
+	private final HyperGraph graph;
+	private int buckets = DEFAULT_BUCKETS;
+	private int sampleSize = DEFAULT_SAMPLE_SIZE;
+	private HGIndex<String, byte[]> index = null;
+	private volatile boolean loaded = false;
+	private Map<HGPersistentHandle, Histogram> histograms = new HashMap<HGPersistentHandle, Histogram>();
+	private Map<HGPersistentHandle, Double> incidence = new HashMap<HGPersistentHandle, Double>();
+	private double averageIncidence = -1;
+
+	HGStatistics(HyperGraph graph)
+	{
+		this.graph = graph;
+	}
+
+	private HGIndex<String, byte[]> getIndex(boolean create)
+	{
+		if (index == null)
+			index = graph.getStore().getIndex(STATISTICS_INDEX_NAME,
+											  BAtoString.getInstance(),
+											  BAtoBA.getInstance(),
+											  null,
+											  null,
+											  create);
+		return index;
+	}
+
+	private synchronized void load()
+	{
+		if (loaded)
+			return;
+		HGIndex<String, byte[]> idx = getIndex(false);
+		if (idx == null)
+		{
+			loaded = true; // nothing was ever analyzed
+			return;
+		}
+		HGRandomAccessResult<String> keys = idx.scanKeys();
+		try
+		{
+			while (keys.hasNext())
+			{
+				String key = keys.next();
+				byte [] data = idx.findFirst(key);
+				if (data == null)
+					continue;
+				if (key.startsWith(HISTOGRAM_PREFIX))
+					histograms.put(handleOf(key, HISTOGRAM_PREFIX), Histogram.fromByteArray(data));
+				else if (key.startsWith(INCIDENCE_PREFIX))
+					incidence.put(handleOf(key, INCIDENCE_PREFIX), Double.longBitsToDouble(BAUtils.readLong(data, 0)));
+				else if (key.equals(INCIDENCE_ALL))
+					averageIncidence = Double.longBitsToDouble(BAUtils.readLong(data, 0));
+			}
+		}
+		finally
+		{
+			keys.close();
+		}
+		loaded = true;
+	}
+
+	private HGPersistentHandle handleOf(String key, String prefix)
+	{
+		return graph.getHandleFactory().makeHandle(key.substring(prefix.length()));
+	}
+
+	/**
+	 * <p>
+	 * Rebuild the whole catalog: a histogram for every primitive type with instances and the
+	 * average incidence set sizes of every link type. This scans the value indices of the
+	 * primitive types and reads a sample of the instances of each type, so it's meant
+	 * to be run as a maintenance operation, outside of a transaction.
+	 * </p>
+	 */
+	public void analyze()
+	{
+		load();
+		ArrayList<HGPersistentHandle> types = new ArrayList<HGPersistentHandle>();
+		HGRandomAccessResult<HGPersistentHandle> rs = graph.indexByType.scanKeys();
+		try
+		{
+			while (rs.hasNext())
+				types.add(rs.next());
+		}
+		finally
+		{
+			rs.close();
+		}
+		double incidenceSum = 0, linkCount = 0;
+		for (HGPersistentHandle type : types)
+		{
+			analyzeType(type);
+			Double avg;
+			synchronized (this)
+			{
+				avg = incidence.get(type);
+			}
+			if (avg != null)
+			{
+				long instances = graph.indexByType.stats().valuesOfKey(type, Long.MAX_VALUE, false).value();
+				incidenceSum += avg * instances;
+				linkCount += instances;
+			}
+		}
+		final double all = linkCount == 0 ? -1 : incidenceSum / linkCount;
+		synchronized (this)
+		{
+			averageIncidence = all;
+		}
+		save(INCIDENCE_ALL, all < 0 ? null : doubleAsBytes(all));
+	}
+
+	/**
+	 * <p>
+	 * Rebuild the statistics of a single type: its value histogram if it's a primitive type
+	 * and the average incidence set size of the targets of its instances if they are links.
+	 * </p>
+	 */
+	public void analyzeType(HGHandle typeHandle)
+	{
+		load();
+		HGPersistentHandle type = graph.getPersistentHandle(typeHandle);
+		HGAtomType atomType = graph.getTypeSystem().getType(type);
+		if (atomType instanceof PrimitiveTypeBase)
+		{
+			Histogram h = buildHistogram((PrimitiveTypeBase<?>)atomType);
+			synchronized (this)
+			{
+				if (h == null)
+					histograms.remove(type);
+				else
+					histograms.put(type, h);
+			}
+			save(HISTOGRAM_PREFIX + type, h == null ? null : h.toByteArray());
+		}
+		double avg = sampleIncidence(type);
+		synchronized (this)
+		{
+			if (avg < 0)
+				incidence.remove(type);
+			else
+				incidence.put(type, avg);
+		}
+		save(INCIDENCE_PREFIX + type, avg < 0 ? null : doubleAsBytes(avg));
+	}
+
+	private Histogram buildHistogram(PrimitiveTypeBase<?> type)
+	{
+		HGSortIndex<byte[], HGPersistentHandle> values = type.getIndex();
+		HGIndexStats<byte[], HGPersistentHandle> stats = values.stats();
+		HGIndexStats.Count count = stats.entries(0, false);
+		if (count == null)
+			count = stats.keys(Long.MAX_VALUE, false); // a single entry per key
+		long total = count == null ? 0 : count.value();
+		if (total == 0)
+			return null;
+		int n = (int)Math.min(buckets, total);
+		long depth = (total + n - 1) / n;
+		// sample about 16 values per bucket for their reference count
+		long step = Math.max(1, depth / 16);
+		ArrayList<byte[]> bounds = new ArrayList<byte[]>();
+		ArrayList<Long> counts = new ArrayList<Long>();
+		ArrayList<Double> references = new ArrayList<Double>();
+		long inBucket = 0, position = 0, sampled = 0;
+		double refSum = 0;
+		byte [] last = null;
+		HGRandomAccessResult<byte[]> keys = values.scanKeys();
+		try
+		{
+			// A primitive value is stored once, so there's a single entry per key.
+			while (keys.hasNext())
+			{
+				last = keys.next();
+				inBucket++;
+				if (position++ % step == 0)
+				{
+					HGPersistentHandle valueHandle = values.findFirst(last);
+					byte [] data = valueHandle == null ? null : graph.getStore().getData(valueHandle);
+					if (data != null)
+					{
+						refSum += BAUtils.readInt(data, 0);
+						sampled++;
+					}
+				}
+				if (inBucket >= depth)
+				{
+					bounds.add(last);
+					counts.add(inBucket);
+					references.add(sampled == 0 ? 1.0 : refSum / sampled);
+					inBucket = sampled = 0;
+					refSum = 0;
+				}
+			}
+		}
+		finally
+		{
+			keys.close();
+		}
+		if (inBucket > 0)
+		{
+			bounds.add(last);
+			counts.add(inBucket);
+			references.add(sampled == 0 ? 1.0 : refSum / sampled);
+		}
+		if (bounds.isEmpty())
+			return null;
+		long [] C = new long[counts.size()];
+		double [] R = new double[references.size()];
+		for (int i = 0; i < C.length; i++)
+		{
+			C[i] = counts.get(i);
+			R[i] = references.get(i);
+		}
+		return new Histogram(position, bounds.toArray(new byte[bounds.size()][]), C, R);
+	}
+
+	// The average incidence set size of the targets of the first instances of a type, or -1
+	// if they are not links.
+	private double sampleIncidence(HGPersistentHandle type)
+	{
+		HGStore store = graph.getStore();
+		long targets = 0, incident = 0;
+		int sampled = 0;
+		HGRandomAccessResult<HGPersistentHandle> rs = graph.indexByType.find(type);
+		try
+		{
+			while (rs.hasNext() && sampled++ < sampleSize)
+			{
+				HGPersistentHandle [] layout = store.getLink(rs.next());
+				if (layout == null)
+					continue;
+				for (int i = 2; i < layout.length; i++)
+				{
+					incident += store.getIncidenceSetCardinality(layout[i]);
+					targets++;
+				}
+			}
+		}
+		finally
+		{
+			rs.close();
+		}
+		return targets == 0 ? -1 : (double)incident / targets;
+	}
+
+	private static byte [] doubleAsBytes(double x)
+	{
+		byte [] B = new byte[8];
+		BAUtils.writeLong(Double.doubleToLongBits(x), B, 0);
+		return B;
+	}
+
+	private void save(final String key, final byte [] data)
+	{
+		final HGIndex<String, byte[]> idx = getIndex(true);
+		graph.getTransactionManager().ensureTransaction(new Callable<Object>() {
+			public Object call()
+			{
+				idx.removeAllEntries(key);
+				if (data != null)
+					idx.addEntry(key, data);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * <p>Remove all statistics from the catalog.</p>
+	 */
+	public void clear()
+	{
+		load();
+		final HGIndex<String, byte[]> idx = getIndex(true);
+		graph.getTransactionManager().ensureTransaction(new Callable<Object>() {
+			public Object call()
+			{
+				ArrayList<String> keys = new ArrayList<String>();
+				HGRandomAccessResult<String> rs = idx.scanKeys();
+				try
+				{
+					while (rs.hasNext())
+						keys.add(rs.next());
+				}
+				finally
+				{
+					rs.close();
+				}
+				for (String key : keys)
+					idx.removeAllEntries(key);
+				return null;
+			}
+		});
+		synchronized (this)
+		{
+			histograms.clear();
+			incidence.clear();
+			averageIncidence = -1;
+		}
+	}
+
+	/**
+	 * <p>Return the value histogram of a primitive type or <code>null</code> if there's none.</p>
+	 */
+	public synchronized Histogram getHistogram(HGHandle type)
+	{
+		load();
+		return histograms.get(graph.getPersistentHandle(type));
+	}
+
+	/**
+	 * <p>Return the number of instances of a type.</p>
+	 */
+	public long getInstanceCount(HGHandle type)
+	{
+		return graph.indexByType.stats().valuesOfKey(graph.getPersistentHandle(type), Long.MAX_VALUE, false).value();
+	}
+
+	/**
+	 * <p>
+	 * Return the average number of instances per type or <code>-1</code> if it can't be
+	 * obtained at no cost from the type index.
+	 * </p>
+	 */
+	public double getAverageInstanceCount()
+	{
+		HGIndexStats<HGPersistentHandle, HGPersistentHandle> stats = graph.indexByType.stats();
+		HGIndexStats.Count atoms = stats.entries(0, false), types = stats.keys(0, false);
+		if (atoms == null || types == null)
+			return -1;
+		long n = types.value();
+		return n == 0 ? 0 : (double)atoms.value() / n;
+	}
+
+	/**
+	 * <p>
+	 * Return the average size of the incidence sets of the targets of links of the given
+	 * type or <code>-1</code> if it's not known.
+	 * </p>
+	 */
+	public synchronized double getAverageIncidence(HGHandle linkType)
+	{
+		load();
+		Double avg = incidence.get(graph.getPersistentHandle(linkType));
+		return avg == null ? -1 : avg;
+	}
+
+	/**
+	 * <p>
+	 * Return the average size of the incidence sets of link targets or <code>-1</code> if
+	 * it's not known.
+	 * </p>
+	 */
+	public synchronized double getAverageIncidence()
+	{
+		load();
+		return averageIncidence;
+	}
+
+	/**
+	 * <p>
+	 * Estimate the number of atoms of a primitive type whose value compares to
+	 * <code>value</code> as specified by the operator.
+	 * </p>
+	 *
+	 * @return The estimate or <code>-1</code> if there's no histogram for the type.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public long estimateValueCount(HGHandle typeHandle, ComparisonOperator op, Object value)
+	{
+		Histogram h = getHistogram(typeHandle);
+		if (h == null)
+			return -1;
+		HGAtomType type = graph.getTypeSystem().getType(typeHandle);
+		if (!(type instanceof PrimitiveTypeBase))
+			return -1;
+		PrimitiveTypeBase primitive = (PrimitiveTypeBase)type;
+		Comparator<byte[]> comparator = ((HGPrimitiveType<?>)primitive).getComparator();
+		byte [] key;
+		try
+		{
+			key = primitive.toByteArray(value);
+		}
+		catch (ClassCastException ex)
+		{
+			return -1; // a value of another Java type, the query will filter it out anyway
+		}
+		double estimate = h.estimate(comparator == null ? unsignedOrder : comparator, key, op);
+		HGIndexStats.Count current = primitive.getIndex().stats().entries(0, false);
+		if (current != null && h.getEntries() > 0)
+			estimate *= (double)current.value() / h.getEntries();
+		return Math.round(estimate);
+	}
+
+	public int getBuckets()
+	{
+		return buckets;
+	}
+
+	/**
+	 * <p>Set the number of buckets of the histograms built by subsequent analyses.</p>
+	 */
+	public void setBuckets(int buckets)
+	{
+		if (buckets < 1)
+			throw new IllegalArgumentException("The number of buckets must be positive.");
+		this.buckets = buckets;
+	}
+
+	public int getSampleSize()
+	{
+		return sampleSize;
+	}
+
+	/**
+	 * <p>Set the number of instances sampled per link type by subsequent analyses.</p>
+	 */
+	public void setSampleSize(int sampleSize)
+	{
+		if (sampleSize < 1)
+			throw new IllegalArgumentException("The sample size must be positive.");
+		this.sampleSize = sampleSize;
+	}
+}
@@ -8,10 +8,15 @@
 package org.hypergraphdb;
 
 import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
 
 import org.hypergraphdb.storage.ByteArrayConverter;
 import org.hypergraphdb.storage.HGStoreImplementation;
+import org.hypergraphdb.storage.OffHeapRecordCache;
 import org.hypergraphdb.storage.StorageGraph;
+import org.hypergraphdb.transaction.HGTransaction;
 import org.hypergraphdb.transaction.HGTransactionFactory;
 import org.hypergraphdb.transaction.HGTransactionManager;
 
@@ -47,6 +52,16 @@ public class HGStore
     private HGStoreImplementation impl = null;    
     
     private ThreadLocal<StorageGraph> overlayGraph = new ThreadLocal<StorageGraph>();
+    
+    // Per thread count of bytes read and written, maintained only when the atom cache
+    // needs to estimate the size of atoms.
+    private ThreadLocal<long[]> bytesAccessed = null;
+    private int handleSize;
+    
+    // Optional second-level cache of raw records and the transaction attribute holding the
+    // set of handles written by the transaction, which it must not cache.
+    private OffHeapRecordCache recordCache = null;
+    private static final String WRITTEN_RECORDS = "HGStore.writtenRecords";
       
     /**
      * <p>Construct a <code>HGStore</code> bound to a specific database 
@@ -59,12 +74,126 @@ public class HGStore
         databaseLocation = database;
         this.config = config;
         this.impl = config.getStoreImplementation();
+        if (config.getAtomCacheBudget() > 0)
+        {
+            bytesAccessed = new ThreadLocal<long[]>() {
+                protected long[] initialValue() { return new long[1]; }
+            };
+            handleSize = config.getHandleFactory().nullHandle().toByteArray().length;
+        }
+        if (config.getStoreCacheSize() > 0)
+            recordCache = new OffHeapRecordCache(config.getHandleFactory(), config.getStoreCacheSize());
         impl.startup(this, config);
         transactionManager = new HGTransactionManager(impl.getTransactionFactory());
         if (!config.isTransactional())
-            transactionManager.disable();        
+            transactionManager.disable();
+        transactionManager.setGroupCommit(config.isGroupCommit());
+    }
+    
+    private void accessed(long bytes)
+    {
+        if (bytesAccessed != null)
+            bytesAccessed.get()[0] += bytes;
+    }
+    
+    // A record is about to be written or removed: remove it from the record cache and make 
+    // sure the current transaction neither caches its uncommitted value nor reads the committed
+    // one from the cache. Other transactions may cache the committed value until this one ends,
+    // so the record is removed again when it aborts, and it is kept out of the cache while its
+    // commit makes the new value visible.
+    private void written(final HGPersistentHandle handle)
+    {
+        if (recordCache == null)
+            return;
+        recordCache.invalidate(handle);
+        HGTransaction tx = transactionManager.getContext().getCurrent();
+        if (tx == null)
+            return;
+        tx = tx.getTopLevel();
+        Set<HGPersistentHandle> written = tx.getAttribute(WRITTEN_RECORDS);
+        if (written == null)
+        {
+            final Set<HGPersistentHandle> S = written = new HashSet<HGPersistentHandle>();
+            tx.setAttribute(WRITTEN_RECORDS, written);
+            Runnable invalidateAll = new Runnable() {
+                public void run()
+                {
+                    for (HGPersistentHandle h : S)
+                        recordCache.invalidate(h);
+                }
+            };
+            tx.addAbortAction(invalidateAll);
+            tx.addPublishActions(new Runnable() {
+                public void run()
+                {
+                    for (HGPersistentHandle h : S)
+                        recordCache.beginWrite(h);
+                }
+            }, new Runnable() {
+                public void run()
+                {
+                    for (HGPersistentHandle h : S)
+                        recordCache.endWrite(h);
+                }
+            });
+        }
+        written.add(handle);
+    }
+    
+    private boolean isCacheable(HGPersistentHandle handle)
+    {
+        HGTransaction tx = transactionManager.getContext().getCurrent();
+        if (tx == null)
+            return true;
+        Set<HGPersistentHandle> written = tx.getTopLevel().getAttribute(WRITTEN_RECORDS);
+        return written == null || !written.contains(handle);
+    }
+    
+    /**
+     * <p>Return the off-heap cache of raw records or <code>null</code> if it is not enabled 
+     * (see {@link HGConfiguration#setStoreCacheSize(long)}).</p>
+     */
+    public OffHeapRecordCache getRecordCache()
+    {
+        return recordCache;
+    }
+    
+    /**
+     * <p>
+     * Return the total number of bytes of raw data and links read or written so far by the 
+     * current thread through this store. This is maintained only when an atom cache budget
+     * is configured (see {@link HGConfiguration#setAtomCacheBudget(long)}) in order to 
+     * estimate the size of atoms, otherwise 0 is always returned. Only the difference 
+     * between two successive calls is meaningful.
+     * </p>
+     */
+    public long getBytesAccessed()
+    {
+        return bytesAccessed == null ? 0 : bytesAccessed.get()[0];
     }
     
+    /**
+     * <p>
+     * Return the number of bytes read or written by the current thread since the given
+     * count, as returned by {@link #getBytesAccessed()}, and take them out of the count.
+     * Thus bytes are charged to a single atom: when loading an atom requires loading 
+     * other atoms first, the bytes of those nested loads are not charged again to the 
+     * enclosing one.
+     * </p>
+     * 
+     * @param since A count previously returned by <code>getBytesAccessed</code> in the
+     * current thread.
+     */
+    public long chargeBytesAccessed(long since)
+    {
+        if (bytesAccessed == null)
+            return 0;
+        long [] count = bytesAccessed.get();
+        long bytes = count[0] - since;
+        count[0] = since;
+        return bytes;
+    }
+    
     /**
      * <p>Create and return a transaction factory for this <code>HGStore</code>.</p>
      */
@@ -114,10 +243,11 @@ public class HGStore
      */
     public HGPersistentHandle store(HGPersistentHandle handle, HGPersistentHandle [] link)
     {
+        accessed(link.length*handleSize);
         if (overlayGraph.get() != null)
             return overlayGraph.get().store(handle, link);
-        else
-            return impl.store(handle, link);      
+        written(handle);
+        return impl.store(handle, link);      
     }
     
     /**
@@ -144,10 +274,11 @@ public class HGStore
      */    
     public HGPersistentHandle store(HGPersistentHandle handle, byte [] data)
     {
+        accessed(data.length);
         if (overlayGraph.get() != null)
             return overlayGraph.get().store(handle, data);
-        else       
-            return impl.store(handle, data);
+        written(handle);
+        return impl.store(handle, data);
     }
     
     /**
@@ -155,6 +286,7 @@ public class HGStore
      */    
     public void removeLink(HGPersistentHandle handle)
     {
+        written(handle);
         impl.removeLink(handle);
     }
 
@@ -163,6 +295,7 @@ public class HGStore
      */
     public void removeData(HGPersistentHandle handle)
     {
+        written(handle);
         impl.removeData(handle);
     }
     
@@ -186,7 +319,19 @@ public class HGStore
             if ( (result = overlayGraph.get().getLink(handle)) != null)
                 return result;
         }         
-        return impl.getLink(handle);
+        HGPersistentHandle [] result;
+        if (recordCache == null || !isCacheable(handle))
+            result = impl.getLink(handle);
+        else if ( (result = recordCache.getLink(handle)) == null)
+        {
+            long version = recordCache.version(handle);
+            result = impl.getLink(handle);
+            if (result != null)
+                recordCache.putLink(handle, result, version);
+        }
+        if (result != null)
+            accessed(result.length*handleSize);
+        return result;
     }
   
     /**
@@ -239,7 +384,19 @@ public class HGStore
             if ( (result = overlayGraph.get().getData(handle)) != null)
                 return result;
         }
-        return impl.getData(handle);
+        byte [] result;
+        if (recordCache == null || !isCacheable(handle))
+            result = impl.getData(handle);
+        else if ( (result = recordCache.getData(handle)) == null)
+        {
+            long version = recordCache.version(handle);
+            result = impl.getData(handle);
+            if (result != null)
+                recordCache.putData(handle, result, version);
+        }
+        if (result != null)
+            accessed(result.length);
+        return result;
     }
     
     /**
@@ -284,6 +441,187 @@ public class HGStore
         impl.addIncidenceLink(targetHandle, linkHandle);
     }
 
+    /**
+     * <p>Add several links to the incidence set of an atom at once. This method is only to be 
+     * used internally by hypergraph.</p>
+     * 
+     * @param targetHandle The <code>HGPersistentHandle</code> of the atom whose incidence set
+     * is to be updated.
+     * @param linkHandles The <code>HGPersistentHandle</code>s of the new links pointing to that 
+     * atom.
+     */
+    public void addIncidenceLinks(final HGPersistentHandle targetHandle, final HGPersistentHandle [] linkHandles)
+    {
+        // batch writes go through a cursor which requires a transaction
+        transactionManager.ensureTransaction(new Callable<Object>() {
+            public Object call()
+            {
+                impl.addIncidenceLinks(targetHandle, linkHandles);
+                return null;
+            }
+        });
+    }
+    
+    /**
+     * <p>Retrieve several links at once. This is more efficient than calling 
+     * {@link #getLink(HGPersistentHandle)} for each handle because the storage implementation
+     * can read the links in key order in a single pass.</p>
+     * 
+     * @param handles The handles of the links. None of them may be <code>null</code>.
+     * @return An array of the same length as <code>handles</code> holding the link for 
+     * each handle or <code>null</code> if there is no link with that handle.
+     */
+    public HGPersistentHandle [][] getLinks(HGPersistentHandle [] handles)
+    {
+        if (overlayGraph.get() != null)
+        {
+            HGPersistentHandle [][] result = new HGPersistentHandle[handles.length][];
+            for (int i = 0; i < handles.length; i++)
+                result[i] = getLink(handles[i]);
+            return result;
+        }
+        HGPersistentHandle [][] result;
+        if (recordCache == null)
+            result = impl.getLinks(handles);
+        else
+        {
+            result = new HGPersistentHandle[handles.length][];
+            int [] missing = new int[handles.length];
+            int missingCount = 0;
+            for (int i = 0; i < handles.length; i++)
+                if (!isCacheable(handles[i]) || (result[i] = recordCache.getLink(handles[i])) == null)
+                    missing[missingCount++] = i;
+            if (missingCount > 0)
+            {
+                HGPersistentHandle [] keys = new HGPersistentHandle[missingCount];
+                long [] versions = new long[missingCount];
+                for (int i = 0; i < missingCount; i++)
+                {
+                    keys[i] = handles[missing[i]];
+                    versions[i] = recordCache.version(keys[i]);
+                }
+                HGPersistentHandle [][] fetched = impl.getLinks(keys);
+                for (int i = 0; i < missingCount; i++)
+                {
+                    result[missing[i]] = fetched[i];
+                    if (fetched[i] != null && isCacheable(keys[i]))
+                        recordCache.putLink(keys[i], fetched[i], versions[i]);
+                }
+            }
+        }
+        if (bytesAccessed != null)
+            for (HGPersistentHandle [] link : result)
+                if (link != null)
+                    accessed(link.length*handleSize);
+        return result;
+    }
+    
+    /**
+     * <p>Retrieve several raw data buffers at once. This is more efficient than calling 
+     * {@link #getData(HGPersistentHandle)} for each handle because the storage implementation
+     * can read the data in key order in a single pass.</p>
+     * 
+     * @param handles The handles of the data. None of them may be <code>null</code>.
+     * @return An array of the same length as <code>handles</code> holding the data for 
+     * each handle or <code>null</code> if there is no data with that handle.
+     */
+    public byte [][] getDataBatch(HGPersistentHandle [] handles)
+    {
+        if (overlayGraph.get() != null)
+        {
+            byte [][] result = new byte[handles.length][];
+            for (int i = 0; i < handles.length; i++)
+                result[i] = getData(handles[i]);
+            return result;
+        }
+        byte [][] result;
+        if (recordCache == null)
+            result = impl.getDataBatch(handles);
+        else
+        {
+            result = new byte[handles.length][];
+            int [] missing = new int[handles.length];
+            int missingCount = 0;
+            for (int i = 0; i < handles.length; i++)
+                if (!isCacheable(handles[i]) || (result[i] = recordCache.getData(handles[i])) == null)
+                    missing[missingCount++] = i;
+            if (missingCount > 0)
+            {
+                HGPersistentHandle [] keys = new HGPersistentHandle[missingCount];
+                long [] versions = new long[missingCount];
+                for (int i = 0; i < missingCount; i++)
+                {
+                    keys[i] = handles[missing[i]];
+                    versions[i] = recordCache.version(keys[i]);
+                }
+                byte [][] fetched = impl.getDataBatch(keys);
+                for (int i = 0; i < missingCount; i++)
+                {
+                    result[missing[i]] = fetched[i];
+                    if (fetched[i] != null && isCacheable(keys[i]))
+                        recordCache.putData(keys[i], fetched[i], versions[i]);
+                }
+            }
+        }
+        if (bytesAccessed != null)
+            for (byte [] data : result)
+                if (data != null)
+                    accessed(data.length);
+        return result;
+    }
+    
+    /**
+     * <p>Create several links at once, <code>links[i]</code> with handle 
+     * <code>handles[i]</code>.</p> 
+     */
+    public void storeAll(final HGPersistentHandle [] handles, final HGPersistentHandle [][] links)
+    {
+        if (overlayGraph.get() != null)
+        {
+            for (int i = 0; i < handles.length; i++)
+                store(handles[i], links[i]);
+            return;
+        }
+        transactionManager.ensureTransaction(new Callable<Object>() {
+            public Object call()
+            {
+                for (int i = 0; i < handles.length; i++)
+                {
+                    accessed(links[i].length*handleSize);
+                    written(handles[i]);
+                }
+                impl.storeAll(handles, links);
+                return null;
+            }
+        });
+    }
+    
+    /**
+     * <p>Write several raw data buffers at once, <code>data[i]</code> with handle 
+     * <code>handles[i]</code>.</p> 
+     */
+    public void storeAll(final HGPersistentHandle [] handles, final byte [][] data)
+    {
+        if (overlayGraph.get() != null)
+        {
+            for (int i = 0; i < handles.length; i++)
+                store(handles[i], data[i]);
+            return;
+        }
+        transactionManager.ensureTransaction(new Callable<Object>() {
+            public Object call()
+            {
+                for (int i = 0; i < handles.length; i++)
+                {
+                    accessed(data[i].length);
+                    written(handles[i]);
+                }
+                impl.storeAll(handles, data);
+                return null;
+            }
+        });
+    }
+
     /**
      * <p>Update the incidence set of an atom by removing a link that no longer points
      * to it. This method is only to be used internally by hypergraph.
@@ -381,6 +719,8 @@ public class HGStore
      */    
     public void close()
     {
+        if (transactionManager.getTxMonitor() != null)
+            transactionManager.getTxMonitor().unregisterMBean();
         impl.shutdown();
    	}
     
@@ -419,6 +419,7 @@ public class HGTypeSystem
 //                else
 //                    return h;
             } });	    
+        graph.getQueryPlanCache().invalidate();
 	}
 	
 	/**
@@ -458,6 +459,7 @@ public class HGTypeSystem
 	{
         graph.add(new HGSubsumes(superType, subType));
         graph.getIndexManager().registerSubtype(superType, subType);                	    
+        graph.getQueryPlanCache().invalidate();
 	}
 	
 	/**
@@ -800,6 +802,7 @@ public class HGTypeSystem
 				return null;
             }
         });		
+        graph.getQueryPlanCache().invalidate();
 	}
 	
     /**
@@ -1220,6 +1223,7 @@ public class HGTypeSystem
 		finally
 		{
 			if (rs != null) try { rs.close(); } catch (Throwable _) { }
+			graph.getQueryPlanCache().invalidate();
 		}
 	}
 }
\ No newline at end of file
@@ -9,14 +9,15 @@ package org.hypergraphdb;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Callable;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import org.hypergraphdb.cache.CacheMaintenanceExecutor;
 import org.hypergraphdb.cache.HGCache;
-import org.hypergraphdb.cache.LRUCache;
+import org.hypergraphdb.cache.TinyLFUCache;
 import org.hypergraphdb.handle.HGLiveHandle;
 import org.hypergraphdb.handle.HGManagedLiveHandle;
 import org.hypergraphdb.storage.BAtoHandle;
@@ -28,6 +29,7 @@ import org.hypergraphdb.maintenance.MaintenanceException;
 import org.hypergraphdb.maintenance.MaintenanceOperation;
 import org.hypergraphdb.query.HGQueryCondition;
 import org.hypergraphdb.query.AtomTypeCondition;
+import org.hypergraphdb.query.cond2qry.QueryPlanCache;
 import org.hypergraphdb.event.*;
 import org.hypergraphdb.transaction.*;
 import org.hypergraphdb.util.HGDatabaseVersionFile;
@@ -138,16 +140,31 @@ public /*final*/ class HyperGraph implements HyperNode
      */
     private HGIndexManager idx_manager = null;
     
+    /**
+     * Statistics about the data for the query compiler.
+     */
+    private HGStatistics statistics = null;
+    
     /**
      * The hypergraph typing manager. Integrates tightly with a HyperGraph
      * instance.
      */
     private HGTypeSystem typeSystem = null;
    
+    /**
+     * Compiled query plans reused by the <code>find</code> method. 
+     */
+    private QueryPlanCache queryPlanCache = null;
+    
     /**
      * The HyperGraph atom cache. 
      */
     HGAtomCache cache = null;
+    
+    /**
+     * Performs asynchronous maintenance work on behalf of the caches of this instance.
+     */
+    CacheMaintenanceExecutor cacheMaintenance = null;
 
     /**
      * The event manager handles event listener registration and even dispatching.
@@ -311,17 +328,19 @@ public /*final*/ class HyperGraph implements HyperNode
 	        store.getTransactionManager().setHyperGraph(this);
 	        eventManager = config.getEventManager();	 
 	        eventManager.setHyperGraph(this);
+	        cacheMaintenance = new CacheMaintenanceExecutor("HyperGraph Cache Maintenance " + location,
+	                                                        config.getCacheMaintenanceThreads(),
+	                                                        config.getCacheMaintenanceQueueSize(),
+	                                                        config.getCacheMaintenanceBatchSize());
 	        cache = config.getCacheImplementation();
 	        cache.setHyperGraph(this);
 	        HGCache<HGPersistentHandle, IncidenceSet> incidenceCache = 
-	        	new LRUCache<HGPersistentHandle, IncidenceSet>(0.9f, 0.3f);
-	        ((LRUCache<HGPersistentHandle, IncidenceSet>)incidenceCache).setLockImplementation(
-                    new ReentrantReadWriteLock()	                                                                                           
-	        		/* new HGLock(this, INCIDENCE_CACHE_ID) */);
+	        	new TinyLFUCache<HGPersistentHandle, IncidenceSet>(config.getIncidenceCacheSize(), 0.3f);
 	        	// new SimpleCache<HGPersistentHandle, IncidenceSet>();
 	        incidenceCache.setResolver(new ISRefResolver(this));
 	        cache.setIncidenceCache(incidenceCache);
 	        
+	        queryPlanCache = new QueryPlanCache(this, config.getQueryPlanCacheSize());
 	        typeSystem = new HGTypeSystem(this);    
 	        
 	        //
@@ -348,6 +367,7 @@ public /*final*/ class HyperGraph implements HyperNode
     	                                            true);
 	        
 	        idx_manager = new HGIndexManager(this);
+	        statistics = new HGStatistics(this);
 	        
 	        //
 	        // Now, bootstrap the type system.
@@ -395,6 +415,7 @@ public /*final*/ class HyperGraph implements HyperNode
     	{
     		if (store != null) try { store.close(); } catch (Throwable t1) { }
     		try { cache.close(); } catch (Throwable t1) { }
+    		if (cacheMaintenance != null) try { cacheMaintenance.shutdown(); } catch (Throwable t1) { }
     		is_open = false;
     		throw new HGException(t);
     	}    	
@@ -417,6 +438,7 @@ public /*final*/ class HyperGraph implements HyperNode
         try { eventManager.dispatch(this, new HGClosingEvent()); } catch (Throwable t) { problems.add(t); }
     	try { replace(statsHandle, stats);  					 } catch (Throwable t) { problems.add(t); }     
         try { cache.close(); 									 } catch (Throwable t) { problems.add(t); }        
+    	try { cacheMaintenance.shutdown();						 } catch (Throwable t) { problems.add(t); }
     	try { idx_manager.close();								 } catch (Throwable t) { problems.add(t); }
     	try { eventManager.clear();								 } catch (Throwable t) { problems.add(t); }
         try { store.close();                                     } catch (Throwable t) { problems.add(t); }
@@ -470,6 +492,15 @@ public /*final*/ class HyperGraph implements HyperNode
         return typeSystem;
     }
     
+    /**
+     * <p>Return the cache of compiled query plans used by {@link #find(HGQueryCondition)} or
+     * <code>null</code> if the database was never opened.</p>
+     */
+    public QueryPlanCache getQueryPlanCache()
+    {
+        return queryPlanCache;
+    }
+    
     /**
      * <p>Return the atom cache associated with this HyperGraph instance.</p>
      */
@@ -478,6 +509,15 @@ public /*final*/ class HyperGraph implements HyperNode
         return cache;
     }
     
+    /**
+     * <p>Return the executor performing asynchronous maintenance work for the caches 
+     * of this HyperGraph instance or <code>null</code> if the database was never opened.</p>
+     */
+    public CacheMaintenanceExecutor getCacheMaintenanceExecutor()
+    {
+        return cacheMaintenance;
+    }
+    
     /**
      * <p>Return this <code>HyperGraph</code>'s event manager instance.</p>
      */
@@ -782,6 +822,60 @@ public /*final*/ class HyperGraph implements HyperNode
      * to <code>HyperGraph.getTypeSystem().getAtomType(Object)</code>.
      */
     public <T> T get(final HGHandle handle)
+    {
+    	return get(handle, null);
+    }
+    
+    /**
+     * <p>Retrieve several atoms at once. This is equivalent to calling {@link #get(HGHandle)}
+     * for each handle, except that the storage records of the atoms that are not in the cache 
+     * are read in a single batch, in storage order (see {@link HGStore#getLinks}), which is
+     * much faster for large numbers of atoms.</p>
+     * 
+     * @param handles The handles of the atoms.
+     * @return The list of atoms, in the same order as the handles. An element is 
+     * <code>null</code> if the corresponding atom doesn't exist.
+     */
+    public <T> List<T> getAll(final List<? extends HGHandle> handles)
+    {
+    	return getTransactionManager().ensureTransaction(new Callable<List<T>>() 
+    	{ public List<T> call() {
+	    	ArrayList<HGPersistentHandle> missing = new ArrayList<HGPersistentHandle>();
+	    	for (HGHandle h : handles)
+	    	{
+	    		HGLiveHandle live = h instanceof HGLiveHandle ? (HGLiveHandle)h : cache.get(h.getPersistent());
+	    		if (live == null || live.getRef() == null)
+	    			missing.add(h.getPersistent());
+	    	}
+	    	HashMap<HGPersistentHandle, HGPersistentHandle[]> links = null;
+	    	if (missing.size() > 1)
+	    	{
+	    		HGPersistentHandle [] keys = missing.toArray(new HGPersistentHandle[missing.size()]);
+	    		HGPersistentHandle [][] fetched = store.getLinks(keys);
+	    		links = new HashMap<HGPersistentHandle, HGPersistentHandle[]>();
+	    		ArrayList<HGPersistentHandle> values = new ArrayList<HGPersistentHandle>();
+	    		for (int i = 0; i < keys.length; i++)
+	    			if (fetched[i] != null)
+	    			{
+	    				links.put(keys[i], fetched[i]);
+	    				if (fetched[i].length > 1 && !fetched[i][1].equals(getHandleFactory().nullHandle()))
+	    					values.add(fetched[i][1]);
+	    			}
+	    		// With a record cache, a batch read of the values will make sure the types 
+	    		// find them in the cache when constructing the atoms.
+	    		if (store.getRecordCache() != null && !values.isEmpty())
+	    			store.getDataBatch(values.toArray(new HGPersistentHandle[values.size()]));
+	    	}
+	    	ArrayList<T> result = new ArrayList<T>(handles.size());
+	    	for (HGHandle h : handles)
+	    		result.add((T)get(h, links == null ? null : links.get(h.getPersistent())));
+	    	return result;
+    	}}, HGTransactionConfig.READONLY);
+    }
+    
+    // Get an atom, using the given storage link if it needs to be loaded and the link 
+    // is not null.
+    private <T> T get(final HGHandle handle, HGPersistentHandle [] link)
     {
 //return getTransactionManager().ensureTransaction(new Callable<T>() 
 //    	 	    { public T call() {
@@ -824,7 +918,7 @@ public /*final*/ class HyperGraph implements HyperNode
         else
             persistentHandle = (HGPersistentHandle)handle;
         
-        Pair<HGLiveHandle, Object> loaded = loadAtom(persistentHandle, liveHandle);                
+        Pair<HGLiveHandle, Object> loaded = loadAtom(persistentHandle, liveHandle, link);                
 
         if (loaded == null)
         	return null; // TODO: perhaps we should throw an exception here, but a new type, e.g. HGInvalidHandleException?
@@ -1308,7 +1402,7 @@ public /*final*/ class HyperGraph implements HyperNode
 	    	store.store(atomHandle.getPersistent(), layout);
 	    	indexByType.addEntry(layout[0], atomHandle.getPersistent());
 	    	indexByValue.addEntry(layout[1], atomHandle.getPersistent());
-            HyperGraph.this.atomAdded(atomHandle.getPersistent(), instance, flags);	    		    	
+            HyperGraph.this.atomAdded(atomHandle.getPersistent(), instance, flags, -1);	    		    	
 	    	ReadyRef<HGHandle[]> linkRef = null;
 	    	if (outgoingSet != null)
 	    	{
@@ -1517,15 +1611,16 @@ public /*final*/ class HyperGraph implements HyperNode
     }
     
     /**
-     * <p>Run a HyperGraphDB lookup query based on the specified condition.</p>
+     * <p>Run a HyperGraphDB lookup query based on the specified condition. The
+     * query plan is taken from the {@link QueryPlanCache} when a condition of the same
+     * shape was executed before.</p>
      * 
      * @param condition The <code>HGQueryCondition</code> constraining the returned
      * result set. It cannot be <code>null</code>.
      */
     public <T> HGSearchResult<T> find(HGQueryCondition condition)
     {
-    	HGQuery<T> query = HGQuery.make(this, condition);
-        return query.execute();
+        return queryPlanCache.find(condition);
     }
     
     public <T> List<T> getAll(HGQueryCondition condition)
@@ -1556,6 +1651,17 @@ public /*final*/ class HyperGraph implements HyperNode
     	return idx_manager;
     }
     
+    /**
+     * <p>
+     * Return the catalog of statistics used by the query compiler to estimate
+     * the size of query results. Call {@link HGStatistics#analyze()} to (re)build it.
+     * </p>
+     */
+    public HGStatistics getStatistics()
+    {
+    	return statistics;
+    }
+    
     // ------------------------------------------------------------------------
     // PRIVATE METHOD SECTION
     // ------------------------------------------------------------------------
@@ -1566,12 +1672,14 @@ public /*final*/ class HyperGraph implements HyperNode
     	{ public HGLiveHandle call() {
 	    	HGAtomType type = typeSystem.getType(typeHandle);
 	    	HGPersistentHandle pTypeHandle = getPersistentHandle(typeHandle);    	
+	    	long bytes = store.getBytesAccessed();
 	        HGPersistentHandle valueHandle = TypeUtils.storeValue(HyperGraph.this, payload, type);  
 	
 	        HGPersistentHandle [] layout = new HGPersistentHandle[2];            
 	        layout[0] = pTypeHandle;
 	        layout[1] = valueHandle;
-	        final HGLiveHandle lHandle = atomAdded(store.store(layout), payload, flags);
+	        HGPersistentHandle pHandle = store.store(layout);
+	        final HGLiveHandle lHandle = atomAdded(pHandle, payload, flags, store.chargeBytesAccessed(bytes));
 	        if (payload instanceof HGTypeHolder)
 	        	((HGTypeHolder<HGAtomType>)payload).setAtomType(type);    	        	        	        
 	        indexByType.addEntry(pTypeHandle, lHandle.getPersistent());
@@ -1595,6 +1703,7 @@ public /*final*/ class HyperGraph implements HyperNode
         { public HGLiveHandle call() {
 	    	HGAtomType type = typeSystem.getType(typeHandle);
 	    	HGPersistentHandle pTypeHandle = getPersistentHandle(typeHandle);
+	    	long bytes = store.getBytesAccessed();
 	        HGPersistentHandle valueHandle = TypeUtils.storeValue(HyperGraph.this, payload, type);            
 	        
 	        //
@@ -1610,7 +1719,7 @@ public /*final*/ class HyperGraph implements HyperNode
 	        // Store in database.
 	        //	        
 	        HGPersistentHandle pHandle = store.store(layout);	        
-	        HGLiveHandle lHandle = atomAdded(pHandle, outgoingSet, flags);
+	        HGLiveHandle lHandle = atomAdded(pHandle, outgoingSet, flags, store.chargeBytesAccessed(bytes));
 	        if (payload instanceof HGTypeHolder)
 	        	((HGTypeHolder<HGAtomType>)payload).setAtomType(type);    	        	        	        
 	        indexByType.addEntry(pTypeHandle, pHandle);
@@ -1624,7 +1733,7 @@ public /*final*/ class HyperGraph implements HyperNode
     	}});
     }
     
-    private HGLiveHandle atomAdded(HGPersistentHandle pHandle, Object instance, int flags)
+    private HGLiveHandle atomAdded(HGPersistentHandle pHandle, Object instance, int flags, long weight)
     {
     	if (instance instanceof HGGraphHolder)
     		((HGGraphHolder)instance).setHyperGraph(HyperGraph.this);
@@ -1637,7 +1746,7 @@ public /*final*/ class HyperGraph implements HyperNode
        	attribs.retrievalCount = 1;
        	attribs.lastAccessTime = System.currentTimeMillis();
        	setAtomAttributes(pHandle, attribs);        	
-       	lHandle = cache.atomAdded(pHandle, instance, attribs);
+       	lHandle = cache.atomAdded(pHandle, instance, attribs, weight);
       }        
 			else
 			{
@@ -1647,7 +1756,7 @@ public /*final*/ class HyperGraph implements HyperNode
 					attribs.flags = (byte)flags;
 					setAtomAttributes(pHandle, attribs);
 				}
-				lHandle = cache.atomAdded(pHandle, instance, attribs);
+				lHandle = cache.atomAdded(pHandle, instance, attribs, weight);
 			}
 			if (instance instanceof HGHandleHolder)
 				((HGHandleHolder)instance).setAtomHandle(lHandle);
@@ -1662,12 +1771,15 @@ public /*final*/ class HyperGraph implements HyperNode
      * @param liveHandle
      * @return
      */
-    private Pair<HGLiveHandle, Object> loadAtom(final HGPersistentHandle persistentHandle,  final HGLiveHandle liveHandle)    
+    private Pair<HGLiveHandle, Object> loadAtom(final HGPersistentHandle persistentHandle,  
+    											final HGLiveHandle liveHandle,
+    											final HGPersistentHandle [] prefetchedLink)    
     {
     	return getTransactionManager().ensureTransaction(new Callable<Pair<HGLiveHandle, Object>>() 
  	    { public Pair<HGLiveHandle, Object> call() {
 	        Object instance;        
-	        HGPersistentHandle [] link = store.getLink(persistentHandle);
+	        long bytes = store.getBytesAccessed();
+	        HGPersistentHandle [] link = prefetchedLink != null ? prefetchedLink : store.getLink(persistentHandle);
 	        
 	        if (link == null)
 	        {
@@ -1733,10 +1845,11 @@ public /*final*/ class HyperGraph implements HyperNode
                 instance = typeSystem.toRuntimeInstance(persistentHandle, (HGAtomType)instance);
 	        
 	        HGLiveHandle result = null;
+	        long weight = store.chargeBytesAccessed(bytes);
 	        if (liveHandle == null)
 	        {
 	        	HGAtomAttrib attribs = config.isUseSystemAtomAttributes() ? getAtomAttributes(persistentHandle) : new HGAtomAttrib();
-       			result = cache.atomRead(persistentHandle, instance, attribs);
+       			result = cache.atomRead(persistentHandle, instance, attribs, weight);
        			// The method could return an existing live handle, already in the cache
        			// we detect this by finding that the reference that handle holds is != from 
        			// the instance we just loaded from disk
@@ -1749,13 +1862,13 @@ public /*final*/ class HyperGraph implements HyperNode
        				}
        				else
        				{
-       					result = cache.atomRefresh(result, instance, false);
+       					result = cache.atomRefresh(result, instance, false, weight);
        				}
        			}
 	        }
 	        else
 	        {
-	        	result = cache.atomRefresh(liveHandle, instance, false);
+	        	result = cache.atomRefresh(liveHandle, instance, false, weight);
 	        }
 	        
 	        if (instance instanceof HGGraphHolder)
@@ -2305,7 +2418,7 @@ public /*final*/ class HyperGraph implements HyperNode
     	return systemAttributesDB.findFirst(handle);    	
     }
     
-    private void setAtomAttributes(HGPersistentHandle handle, HGAtomAttrib attribs)
+    void setAtomAttributes(HGPersistentHandle handle, HGAtomAttrib attribs)
     {
     	systemAttributesDB.removeAllEntries(handle);
     	systemAttributesDB.addEntry(handle, attribs);
@@ -32,6 +32,7 @@ import org.hypergraphdb.query.TargetCondition;
 import org.hypergraphdb.query.TypePlusCondition;
 import org.hypergraphdb.query.TypedValueCondition;
 import org.hypergraphdb.query.cond2qry.ExpressionBasedQuery;
+import org.hypergraphdb.storage.HGIndexStats;
 import org.hypergraphdb.type.HGAtomType;
 
 // This is a temporary implementation, to research a bit what's involved in
@@ -96,6 +97,10 @@ class ResultSizeEstimation
 	{ 
 		public long count(HyperGraph graph, HGQueryCondition cond)
 		{
+			// every atom has exactly one entry in the type index
+			HGIndexStats.Count total = graph.indexByType.stats().entries(0, false);
+			if (total != null)
+				return total.value();
 			HGSearchResult<HGPersistentHandle> rs = graph.indexByType.scanKeys();
 			try
 			{
@@ -115,6 +120,8 @@ class ResultSizeEstimation
 		
 		public long cost(HyperGraph graph, HGQueryCondition cond)
 		{
+			if (graph.indexByType.stats().entries(0, false) != null)
+				return 0;
 			return Long.MAX_VALUE / 2; // an undeterminate amount less than a full scan
 		}			
 	});
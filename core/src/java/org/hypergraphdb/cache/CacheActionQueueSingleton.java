@@ -15,20 +15,38 @@ import org.hypergraphdb.util.ActionQueueThread;
  * Wrap a single instance of {@link ActionQueueThread} for use by all caches in a 
  * JVM instance. 
  * </p>
+ * 
+ * <p>
+ * Caches belonging to a {@link org.hypergraphdb.HyperGraph} instance now use that instance's 
+ * {@link CacheMaintenanceExecutor}. The JVM-wide {@link CacheMaintenanceExecutor} 
+ * returned by {@link #getExecutor()} is only used by caches that are not associated with a
+ * graph. Both instances are created the first time they are requested.
+ * </p>
  *
  * @author Borislav Iordanov
  *
  */
 public class CacheActionQueueSingleton
 {
-	private static ActionQueueThread queue = new ActionQueueThread("HyperGraph Cache Maintenance");
+	private static ActionQueueThread queue = null;
+	private static CacheMaintenanceExecutor executor = null;
 	
-	static
+	public static synchronized ActionQueueThread get() 
 	{
-		queue.setPriority(Thread.NORM_PRIORITY + 3);
-		queue.setDaemon(true);
-		queue.start();
+		if (queue == null)
+		{
+			queue = new ActionQueueThread("HyperGraph Cache Maintenance");
+			queue.setPriority(Thread.NORM_PRIORITY + 3);
+			queue.setDaemon(true);
+			queue.start();
+		}
+		return queue; 
 	}
 	
-	public static ActionQueueThread get() { return queue; } 
+	public static synchronized CacheMaintenanceExecutor getExecutor()
+	{
+		if (executor == null)
+			executor = new CacheMaintenanceExecutor("HyperGraph Cache Maintenance");
+		return executor;
+	}
 }
@@ -0,0 +1,537 @@
+/*
+ * This file is part of the HyperGraphDB source distribution. This is copyrighted
+ * software. For permitted uses, licensing options and redistribution, please see
+ * the LicensingInformation file at the root level of the distribution.
+ *
+ * Copyright (c) 2005-2010 Kobrix Software, Inc.  All rights reserved.
+ */
+package org.hypergraphdb.cache;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.hypergraphdb.util.HGLogger;
+import org.hypergraphdb.util.LogHistogram;
+
+/**
+ *
+ * <p>
+ * Executes cache maintenance actions (e.g. updating the order of elements in an LRU list)
+ * asynchronously, on behalf of the caches of a single {@link org.hypergraphdb.HyperGraph}
+ * instance. This replaces the JVM-wide {@link CacheActionQueueSingleton} so that the caches of
+ * one database don't delay maintenance of the caches of another.
+ * </p>
+ *
+ * <p>
+ * The executor has a configurable number of worker threads, each with its own bounded
+ * queue. Actions are submitted on behalf of an owner (normally the cache itself) and all
+ * actions of the same owner go to the same queue, so they are executed in order and never
+ * concurrently with each other, which is what cache implementations relying on a
+ * single maintenance thread expect. Worker threads are started when they get their first
+ * action. When a queue is full, the submitting thread blocks until there is room. Workers
+ * drain their queue in batches to reduce synchronization overhead.
+ * </p>
+ *
+ * <p>
+ * The executor keeps track of the current queue depth, the time actions take between being
+ * submitted and completing (i.e. waiting in the queue plus execution), and how many times
+ * producers had to block on a full queue. A growing latency or a non-zero number of
+ * blocked submissions means maintenance is falling behind the workload.
+ * </p>
+ *
+ * @author Borislav Iordanov
+ *
+ */
+public class CacheMaintenanceExecutor
+{
+	public static final int DEFAULT_QUEUE_CAPACITY = 100000;
+	public static final int DEFAULT_BATCH_SIZE = 256;
+	static final int INITIAL_QUEUE_CAPACITY = 64;
+
+	private final HGLogger logger = new HGLogger();
+	private final Lane [] lanes;
+	private final int batchSize;
+	private final LogHistogram actionLatency = new LogHistogram();
+	private final LogHistogram batchSizes = new LogHistogram();
+	private final AtomicLong blockedSubmissions = new AtomicLong(0);
+	private volatile boolean running = true;
+
+	final class Lane implements Runnable
+	{
+		final ReentrantLock lock = new ReentrantLock();
+		final Condition notEmpty = lock.newCondition();
+		final Condition notFull = lock.newCondition();
+		final Condition progress = lock.newCondition();
+		// Held while executing a batch, so acquiring it pauses the lane.
+		final ReentrantLock runLock = new ReentrantLock();
+		final int capacity;
+		// The queue is a ring buffer that starts small and grows up to capacity.
+		Runnable [] actions;
+		long [] submitted;
+		int head = 0, count = 0;
+		long enqueued = 0, completed = 0;
+		int maxDepth = 0;
+		// The worker thread is started with the first submitted action.
+		final Thread thread;
+		boolean started = false;
+		// The batch being executed by the worker thread and the position of its next action,
+		// only accessed by the worker thread.
+		Runnable [] batch;
+		long [] times;
+		int batchCount = 0, batchNext = 0;
+
+		Lane(String name, int capacity)
+		{
+			this.capacity = capacity;
+			actions = new Runnable[Math.min(capacity, INITIAL_QUEUE_CAPACITY)];
+			submitted = new long[actions.length];
+			thread = new Thread(this, name);
+			thread.setDaemon(true);
+			thread.setPriority(Thread.NORM_PRIORITY + 3);
+		}
+
+		private void grow()
+		{
+			int size = (int)Math.min(capacity, 2L * actions.length);
+			Runnable [] newActions = new Runnable[size];
+			long [] newSubmitted = new long[size];
+			for (int i = 0; i < count; i++)
+			{
+				newActions[i] = actions[(head + i) % actions.length];
+				newSubmitted[i] = submitted[(head + i) % actions.length];
+			}
+			actions = newActions;
+			submitted = newSubmitted;
+			head = 0;
+		}
+
+		void add(Runnable action, boolean first)
+		{
+			lock.lock();
+			try
+			{
+				if (count == actions.length && actions.length < capacity)
+					grow();
+				if (count == actions.length)
+				{
+					blockedSubmissions.incrementAndGet();
+					while (count == actions.length && running)
+						notFull.awaitUninterruptibly();
+				}
+				if (!running)
+					return;
+				if (!started)
+				{
+					thread.start();
+					started = true;
+				}
+				int slot;
+				if (first && count > 0)
+					slot = head = (head - 1 + actions.length) % actions.length;
+				else
+					slot = (head + count) % actions.length;
+				actions[slot] = action;
+				submitted[slot] = System.nanoTime();
+				count++;
+				enqueued++;
+				if (count > maxDepth)
+					maxDepth = count;
+				notEmpty.signal();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		// Move up to batchSize waiting actions to the batch and return their number, first
+		// waiting for some to arrive if requested. Must be called with the lock held.
+		private int take(boolean wait)
+		{
+			while (wait && count == 0 && running)
+				notEmpty.awaitUninterruptibly();
+			int n = 0;
+			for (; n < batchSize && count > 0; n++)
+			{
+				batch[n] = actions[head];
+				times[n] = submitted[head];
+				actions[head] = null;
+				head = (head + 1) % actions.length;
+				count--;
+			}
+			notFull.signalAll();
+			return n;
+		}
+
+		// Execute the rest of the current batch.
+		private void runBatch()
+		{
+			while (batchNext < batchCount)
+			{
+				int i = batchNext++;
+				Runnable action = batch[i];
+				batch[i] = null;
+				try
+				{
+					action.run();
+				}
+				catch (Throwable t)
+				{
+					logger.exception(t);
+				}
+				actionLatency.record(System.nanoTime() - times[i]);
+			}
+		}
+
+		private void batchCompleted(int n)
+		{
+			batchSizes.record(n);
+			lock.lock();
+			try
+			{
+				completed += n;
+				progress.signalAll();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		public void run()
+		{
+			batch = new Runnable[batchSize];
+			times = new long[batchSize];
+			while (true)
+			{
+				int n;
+				lock.lock();
+				try
+				{
+					n = take(true);
+				}
+				finally
+				{
+					lock.unlock();
+				}
+				if (n == 0)
+					return;
+				runLock.lock();
+				try
+				{
+					batchCount = n;
+					batchNext = 0;
+					runBatch();
+				}
+				finally
+				{
+					runLock.unlock();
+				}
+				batchCompleted(n);
+			}
+		}
+
+		// Called from an action executing on the worker thread, which would wait for itself
+		// forever, so the remaining actions are executed right away, in order.
+		void completeInline()
+		{
+			runBatch();
+			while (true)
+			{
+				int n;
+				lock.lock();
+				try
+				{
+					n = take(false);
+				}
+				finally
+				{
+					lock.unlock();
+				}
+				if (n == 0)
+					return;
+				// The enclosing batch is counted as completed when the worker returns to it.
+				batchCount = n;
+				batchNext = 0;
+				runBatch();
+				batchCompleted(n);
+			}
+		}
+
+		void completeAll()
+		{
+			if (Thread.currentThread() == thread)
+			{
+				completeInline();
+				return;
+			}
+			lock.lock();
+			try
+			{
+				long target = enqueued;
+				while (completed < target && thread.isAlive())
+					progress.awaitNanos(TimeUnit.MILLISECONDS.toNanos(50));
+			}
+			catch (InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		void clear()
+		{
+			lock.lock();
+			try
+			{
+				for (; count > 0; count--)
+				{
+					actions[head] = null;
+					head = (head + 1) % actions.length;
+					completed++;
+				}
+				notFull.signalAll();
+				progress.signalAll();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		void shutdown()
+		{
+			lock.lock();
+			try
+			{
+				notEmpty.signalAll();
+				notFull.signalAll();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * <p>Construct an executor with a single thread and default queue capacity and
+	 * batch size.</p>
+	 *
+	 * @param name The base name of the worker threads.
+	 */
+	public CacheMaintenanceExecutor(String name)
+	{
+		this(name, 1, DEFAULT_QUEUE_CAPACITY, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * @param name The base name of the worker threads.
+	 * @param threads The number of worker threads.
+	 * @param queueCapacity The total maximum number of pending actions, split evenly
+	 * among the worker threads. Queues start small and grow up to that size as needed.
+	 * @param batchSize The maximum number of actions a worker takes out of its queue
+	 * at once.
+	 */
+	public CacheMaintenanceExecutor(String name, int threads, int queueCapacity, int batchSize)
+	{
+		if (threads <= 0)
+			throw new IllegalArgumentException("threads <= 0");
+		if (queueCapacity < threads)
+			throw new IllegalArgumentException("queueCapacity < threads");
+		if (batchSize <= 0)
+			throw new IllegalArgumentException("batchSize <= 0");
+		this.batchSize = batchSize;
+		lanes = new Lane[threads];
+		for (int i = 0; i < threads; i++)
+			lanes[i] = new Lane(threads == 1 ? name : name + "-" + i, queueCapacity / threads);
+	}
+
+	private Lane lane(Object owner)
+	{
+		return lanes[(System.identityHashCode(owner) & 0x7fffffff) % lanes.length];
+	}
+
+	/**
+	 * <p>Schedule an action for execution. Actions of the same owner are executed
+	 * sequentially, in the order in which they were submitted. If the owner's queue is full,
+	 * this method blocks until there's room in it. When called from the worker thread
+	 * itself, the action is executed immediately to avoid a deadlock.</p>
+	 *
+	 * @param owner The cache on whose behalf the action is performed.
+	 * @param action The action.
+	 */
+	public void addAction(Object owner, Runnable action)
+	{
+		Lane lane = lane(owner);
+		if (Thread.currentThread() == lane.thread)
+			action.run();
+		else
+			lane.add(action, false);
+	}
+
+	/**
+	 * <p>Schedule an action to be executed ahead of all actions of the same owner currently
+	 * waiting.</p>
+	 */
+	public void prependAction(Object owner, Runnable action)
+	{
+		Lane lane = lane(owner);
+		if (Thread.currentThread() == lane.thread)
+			action.run();
+		else
+			lane.add(action, true);
+	}
+
+	/**
+	 * <p>Suspend the execution of the owner's actions until <code>resumeActions</code>
+	 * is called. Blocks until the batch currently executing completes. Actions of other
+	 * owners assigned to the same worker thread are suspended as well.</p>
+	 */
+	public void pauseActions(Object owner)
+	{
+		lane(owner).runLock.lock();
+	}
+
+	/**
+	 * <p>Resume action execution previously paused by <code>pauseActions</code>.</p>
+	 */
+	public void resumeActions(Object owner)
+	{
+		lane(owner).runLock.unlock();
+	}
+
+	/**
+	 * <p>Wait until all actions of the owner scheduled at the time of this call
+	 * complete. When called from the worker thread itself, the actions are executed
+	 * immediately instead.</p>
+	 */
+	public void completeAll(Object owner)
+	{
+		lane(owner).completeAll();
+	}
+
+	/**
+	 * <p>Wait until all actions scheduled at the time of this call complete.</p>
+	 */
+	public void completeAll()
+	{
+		for (Lane lane : lanes)
+			lane.completeAll();
+	}
+
+	/**
+	 * <p>Remove all pending actions. Actions currently executing still complete.</p>
+	 */
+	public void clearAll()
+	{
+		for (Lane lane : lanes)
+			lane.clear();
+	}
+
+	/**
+	 * <p>Execute all pending actions and stop the worker threads. Actions submitted
+	 * afterwards are ignored.</p>
+	 */
+	public void shutdown()
+	{
+		running = false;
+		for (Lane lane : lanes)
+			lane.shutdown();
+		for (Lane lane : lanes)
+		{
+			try { lane.thread.join(10000); }
+			catch (InterruptedException ex) { Thread.currentThread().interrupt(); break; }
+		}
+	}
+
+	public boolean isRunning()
+	{
+		return running;
+	}
+
+	/**
+	 * <p>Return the number of worker threads.</p>
+	 */
+	public int getThreadCount()
+	{
+		return lanes.length;
+	}
+
+	/**
+	 * <p>Return the number of actions currently waiting to be executed.</p>
+	 */
+	public int getQueueDepth()
+	{
+		int depth = 0;
+		for (Lane lane : lanes)
+		{
+			lane.lock.lock();
+			depth += lane.count;
+			lane.lock.unlock();
+		}
+		return depth;
+	}
+
+	/**
+	 * <p>Return the largest number of actions that were waiting in a single worker's queue
+	 * at the same time.</p>
+	 */
+	public int getMaxQueueDepth()
+	{
+		int max = 0;
+		for (Lane lane : lanes)
+		{
+			lane.lock.lock();
+			max = Math.max(max, lane.maxDepth);
+			lane.lock.unlock();
+		}
+		return max;
+	}
+
+	/**
+	 * <p>Return the total number of actions executed or cleared so far.</p>
+	 */
+	public long getCompletedCount()
+	{
+		long completed = 0;
+		for (Lane lane : lanes)
+		{
+			lane.lock.lock();
+			completed += lane.completed;
+			lane.lock.unlock();
+		}
+		return completed;
+	}
+
+	/**
+	 * <p>Return the number of times a thread submitting an action had to wait because
+	 * the queue was full.</p>
+	 */
+	public long getBlockedSubmissions()
+	{
+		return blockedSubmissions.get();
+	}
+
+	/**
+	 * <p>Return the histogram of the time, in nanoseconds, between the submission of an
+	 * action and the end of its execution.</p>
+	 */
+	public LogHistogram getActionLatency()
+	{
+		return actionLatency;
+	}
+
+	/**
+	 * <p>Return the histogram of the number of actions executed per batch.</p>
+	 */
+	public LogHistogram getBatchSizes()
+	{
+		return batchSizes;
+	}
+}
@@ -25,13 +25,19 @@ public class ColdAtoms
 {
 	public static int DEFAULT_BUCKET_SIZE = 2000;
 	int bucket_size;
-	int evictFactor = 3; // evict 1/3 of elements when memory is about to fill up
+	int evictFactor = 10; // evict 1/10 of elements per cleanup round when memory is about to fill up
 	private SimplyLinkedQueue<Object []> buckets = new SimplyLinkedQueue<Object[]>();
 	int pos = 0;
 	
-	private MemoryWarningSystem.Listener memListener = new MemoryWarningSystem.Listener()
+	private MemoryWarningSystem.Listener memListener = new MemoryWarningSystem.IncrementalListener()
 	{
-		public void memoryUsageLow(long usedMemory, long maxMemory)
+		public int getPriority()
+		{
+			// atoms are merely retained here, dropping them is cheap
+			return MemoryWarningSystem.PRIORITY_FIRST;
+		}
+		
+		public boolean releaseMemory(long usedMemory, long maxMemory)
 		{
 //			System.out.println("FREE COLD ATOMS START " + Runtime.getRuntime().freeMemory() + " - " + buckets.size());
 			synchronized (buckets)
@@ -39,8 +45,11 @@ public class ColdAtoms
 				int cnt = buckets.size() / evictFactor;
 				if (cnt == 0)
 				    cnt = buckets.size() > 0 ? 1 : 0;
+				if (cnt == 0)
+					return false;
 				while (cnt-- > 0)
 					buckets.fetch();
+				return true;
 			}				
 			//2012.02.02 System.gc();
 //			System.out.println("FREE COLD ATOMS END " + Runtime.getRuntime().freeMemory() + " - " + buckets.size());
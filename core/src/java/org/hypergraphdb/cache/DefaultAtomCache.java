@@ -20,7 +20,6 @@ import org.hypergraphdb.HyperGraph;
 import org.hypergraphdb.IncidenceSet;
 import org.hypergraphdb.handle.DefaultManagedLiveHandle;
 import org.hypergraphdb.handle.HGLiveHandle;
-import org.hypergraphdb.util.ActionQueueThread;
 import org.hypergraphdb.event.HGAtomEvictEvent;
 
 /**
@@ -93,7 +92,7 @@ public final class DefaultAtomCache implements HGAtomCache
     private double retrievalFrequencyWeight = 10.0;
     private double lastAccessTimeWeight = 1.0;
     private LiveHandle atomQueueTail = null;
-    private ActionQueueThread queueThread = null;
+    private CacheMaintenanceExecutor queueThread = null;
     
     //
     // Configuration parameters.
@@ -152,23 +151,23 @@ public final class DefaultAtomCache implements HGAtomCache
         	// give the chance to eviction to actually occur. So we block until all scheduled
         	// queue maintanance actions have been completed.
     		//
-    		queueThread.addAction(new AtomsEvictAction(liveHandles.size() / 10));
-    		queueThread.setPriority(Thread.NORM_PRIORITY + 2);
+    		queueThread.addAction(this, new AtomsEvictAction(liveHandles.size() / 10));
 //    		queueThread.completeAll();
     	}
         liveHandles.put(handle.getPersistent(), handle);
         atoms.put(handle.getRef(), handle);
-        queueThread.addAction(new AddAtomAction(handle));		
+        queueThread.addAction(this, new AddAtomAction(handle));		
 	}
 	
 	public DefaultAtomCache()
 	{
-		queueThread = CacheActionQueueSingleton.get();
 	}
 	
 	public void setIncidenceCache(HGCache<HGPersistentHandle, IncidenceSet> cache)
 	{
 		this.incidenceSets = cache;
+		if (cache instanceof LRUCache && queueThread != null)
+			((LRUCache<?, ?>)cache).setMaintenanceExecutor(queueThread);
 	}
 	
 	public HGCache<HGPersistentHandle, IncidenceSet> getIncidenceCache()
@@ -199,6 +198,8 @@ public final class DefaultAtomCache implements HGAtomCache
     public void setHyperGraph(HyperGraph hg)
     {
     	this.hg = hg;
+    	queueThread = hg.getCacheMaintenanceExecutor() != null ? hg.getCacheMaintenanceExecutor()
+    				  : CacheActionQueueSingleton.getExecutor();
     }
 	        
 	public void close()
@@ -212,7 +213,6 @@ public final class DefaultAtomCache implements HGAtomCache
     	atoms.clear();
     	incidenceSets.clear();
     	atomQueueTail = null;		
-    	queueThread.stopRunning();
 	}
 	
     /**
@@ -227,7 +227,7 @@ public final class DefaultAtomCache implements HGAtomCache
     	result.accessed();
     	retrievalCount++;
     	lastAccessTime = System.currentTimeMillis();
-    	queueThread.addAction(new AtomAccessedAction(result));
+    	queueThread.addAction(this, new AtomAccessedAction(result));
     	return result;
     }
     
@@ -242,7 +242,7 @@ public final class DefaultAtomCache implements HGAtomCache
     	result.accessed();
     	retrievalCount++;
     	lastAccessTime = System.currentTimeMillis();
-    	queueThread.addAction(new AtomAccessedAction(result));
+    	queueThread.addAction(this, new AtomAccessedAction(result));
     	return result;
     }
     
@@ -285,12 +285,12 @@ public final class DefaultAtomCache implements HGAtomCache
     
     public void freeze(HGLiveHandle handle)
     {
-    	queueThread.addAction(new AtomDetachAction((LiveHandle)handle));
+    	queueThread.addAction(this, new AtomDetachAction((LiveHandle)handle));
     }
     
     public void unfreeze(HGLiveHandle handle)
     {
-    	queueThread.addAction(new AddAtomAction((LiveHandle)handle));    	
+    	queueThread.addAction(this, new AddAtomAction((LiveHandle)handle));    	
     }
     
     public boolean isFrozen(HGLiveHandle handle)
@@ -317,7 +317,7 @@ public final class DefaultAtomCache implements HGAtomCache
 	    	incidenceSets.remove(lhdl.getPersistent());
 	    	atoms.remove(lhdl.getRef());
 	    	liveHandles.remove(lhdl.getPersistent());
-	    	queueThread.addAction(new AtomDetachAction((LiveHandle)lhdl));        
+	    	queueThread.addAction(this, new AtomDetachAction((LiveHandle)lhdl));        
 	    	((LiveHandle)lhdl).setRef(null);
   		}
     }
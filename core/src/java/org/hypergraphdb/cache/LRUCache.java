@@ -12,7 +12,6 @@ import java.util.Map;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import org.hypergraphdb.HGEnvironment;
-import org.hypergraphdb.util.ActionQueueThread;
 import org.hypergraphdb.util.CloseMe;
 import org.hypergraphdb.util.MemoryWarningSystem;
 import org.hypergraphdb.util.RefResolver;
@@ -65,6 +64,7 @@ public class LRUCache<Key, Value> implements HGCache<Key, Value>, CloseMe
 	private Entry<Key, Value> cutoffTail = null;
 	private int cutoffSize = 0;
 	private Map<Key, Entry<Key, Value>> map = new HashMap<Key, Entry<Key, Value>>();
+	private CacheMaintenanceExecutor executor = null;
 	
 	class ClearAction implements Runnable
 	{
@@ -224,13 +224,18 @@ public class LRUCache<Key, Value> implements HGCache<Key, Value>, CloseMe
 		}
 	}
 	
-	private MemoryWarningSystem.Listener memListener = new MemoryWarningSystem.Listener()
+	private MemoryWarningSystem.Listener memListener = new MemoryWarningSystem.IncrementalListener()
 	{
-		public void memoryUsageLow(long usedMemory, long maxMemory)
+		public int getPriority()
 		{
-			System.out.println("FREE INCIDENCE CACHE START " + Runtime.getRuntime().freeMemory() + " - " + map.size());
-			System.out.println("MEMUSAGE:" + Thread.currentThread().getName() + " id: " + Thread.currentThread().getId());			
-			CacheActionQueueSingleton.get().pauseActions();
+			return MemoryWarningSystem.PRIORITY_DEFAULT;
+		}
+		
+		public boolean releaseMemory(long usedMemory, long maxMemory)
+		{
+			if (map.isEmpty())
+				return false;
+			getMaintenanceExecutor().pauseActions(LRUCache.this);
 			try
 			{			    
 				new EvictAction().run();
@@ -242,10 +247,9 @@ public class LRUCache<Key, Value> implements HGCache<Key, Value>, CloseMe
 			}
 			finally
 			{
-				CacheActionQueueSingleton.get().resumeActions();
+				getMaintenanceExecutor().resumeActions(LRUCache.this);
 			}
-			//System.gc();
-			System.out.println("FREE INCIDENCE END " + Runtime.getRuntime().freeMemory() + " - " + map.size());			
+			return true;
 		}
 	};
 	
@@ -332,7 +336,7 @@ public class LRUCache<Key, Value> implements HGCache<Key, Value>, CloseMe
 		{
 			lock.readLock().unlock();			
 			if (action != null)
-				CacheActionQueueSingleton.get().addAction(action);
+				getMaintenanceExecutor().addAction(this, action);
 		}
 
 		// We need to make the resolution outside the write lock because,
@@ -360,7 +364,7 @@ public class LRUCache<Key, Value> implements HGCache<Key, Value>, CloseMe
 		{
 			lock.writeLock().unlock();		
 			if (action != null)
-				CacheActionQueueSingleton.get().addAction(action);
+				getMaintenanceExecutor().addAction(this, action);
 		}
 	}
 
@@ -374,7 +378,7 @@ public class LRUCache<Key, Value> implements HGCache<Key, Value>, CloseMe
     			return null;
     		else
     		{
-    			CacheActionQueueSingleton.get().addAction(new PutOnTop(e));
+    			getMaintenanceExecutor().addAction(this, new PutOnTop(e));
     			return e.value;
     		}
 		}
@@ -398,7 +402,7 @@ public class LRUCache<Key, Value> implements HGCache<Key, Value>, CloseMe
 		Entry<Key, Value> e = map.remove(key);
 		lock.writeLock().unlock();
 		if (e != null)
-			CacheActionQueueSingleton.get().addAction(new UnlinkEntry(e));
+			getMaintenanceExecutor().addAction(this, new UnlinkEntry(e));
 	}
 	
 	public RefResolver<Key, Value> getResolver()
@@ -413,15 +417,36 @@ public class LRUCache<Key, Value> implements HGCache<Key, Value>, CloseMe
 	
 	public void clear()
 	{
-		ActionQueueThread aq = CacheActionQueueSingleton.get();
-		aq.addAction(new ClearAction());
-		aq.completeAll();
-		
+		CacheMaintenanceExecutor executor = getMaintenanceExecutor();
+		executor.addAction(this, new ClearAction());
+		executor.completeAll(this);
 	}
 	
 	public void clearNonBlocking()
 	{
-		CacheActionQueueSingleton.get().addAction(new ClearAction());
+		getMaintenanceExecutor().addAction(this, new ClearAction());
+	}
+	
+	/**
+	 * <p>Return the executor that maintains the LRU list of this cache. Unless one was
+	 * explicitly set, a JVM-wide executor shared by all such caches is used.</p>
+	 */
+	public CacheMaintenanceExecutor getMaintenanceExecutor()
+	{
+		if (executor == null)
+			executor = CacheActionQueueSingleton.getExecutor();
+		return executor;
+	}
+	
+	/**
+	 * <p>Set the executor that maintains the LRU list of this cache, normally the one of the
+	 * {@link org.hypergraphdb.HyperGraph} instance the cache belongs to. This should be done
+	 * before the cache is used. The atom caches do it when given an <code>LRUCache</code>
+	 * as their incidence cache.</p> 
+	 */
+	public void setMaintenanceExecutor(CacheMaintenanceExecutor executor)
+	{
+		this.executor = executor;
 	}
 	
 	/**
@@ -138,6 +138,8 @@ public class PhantomRefAtomCache implements HGAtomCache
     public void setIncidenceCache(HGCache<HGPersistentHandle, IncidenceSet> cache)
     {
         this.incidenceCache= cache;
+        if (cache instanceof LRUCache && graph != null && graph.getCacheMaintenanceExecutor() != null)
+            ((LRUCache<?, ?>)cache).setMaintenanceExecutor(graph.getCacheMaintenanceExecutor());
     }
     
     public HGCache<HGPersistentHandle, IncidenceSet> getIncidenceCache()
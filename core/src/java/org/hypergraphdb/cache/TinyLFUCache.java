@@ -0,0 +1,641 @@
+/*
+ * This file is part of the HyperGraphDB source distribution. This is copyrighted
+ * software. For permitted uses, licensing options and redistribution, please see
+ * the LicensingInformation file at the root level of the distribution.
+ *
+ * Copyright (c) 2005-2010 Kobrix Software, Inc.  All rights reserved.
+ */
+package org.hypergraphdb.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.hypergraphdb.HGEnvironment;
+import org.hypergraphdb.util.CloseMe;
+import org.hypergraphdb.util.MemoryWarningSystem;
+import org.hypergraphdb.util.RefResolver;
+
+/**
+ *
+ * <p>
+ * A concurrent cache with a W-TinyLFU eviction policy, meant for read-heavy workloads
+ * such as the incidence set cache. Elements are kept in a <code>ConcurrentHashMap</code>,
+ * so that a cache hit doesn't take any lock and doesn't allocate memory. The eviction
+ * policy is maintained separately, under a single lock that is never waited upon by readers:
+ * hits are recorded in a set of striped, fixed size ring buffers that are drained in batches
+ * by whichever thread manages to acquire the lock. When a buffer is full, hits are simply
+ * dropped from the policy's point of view, which is harmless.
+ * </p>
+ *
+ * <p>
+ * The policy itself follows the W-TinyLFU design: new elements enter a small LRU
+ * "window" (1% of the maximum size); elements leaving the window compete for a place in
+ * the main, segmented LRU area with the main area's least recently used element, based
+ * on their estimated access frequency. Frequencies are estimated with a compact
+ * count-min sketch of 4-bit counters that are periodically halved so that old popularity
+ * fades away.
+ * </p>
+ *
+ * <p>
+ * The maximum size is in number of elements. A maximum size of 0 or less means that the cache
+ * is bounded by available memory only, like the {@link LRUCache}: elements are evicted when
+ * the {@link MemoryWarningSystem} reports low memory, in which case a portion of the
+ * cache (see the <code>evictPercent</code> constructor parameter) is evicted in each cleanup
+ * round, choosing the
+ * least frequently used out of a small sample of the least recently used elements. The same
+ * happens with a bounded cache when memory gets low.
+ * </p>
+ *
+ * @author Borislav Iordanov
+ *
+ * @param <Key>
+ * @param <Value>
+ */
+public class TinyLFUCache<Key, Value> implements HGCache<Key, Value>, CloseMe
+{
+	static final int WINDOW = 1, PROBATION = 2, PROTECTED = 3;
+
+	static final class Node<Key, Value>
+	{
+		final Key key;
+		final Value value;
+		// Policy state, guarded by the evictionLock.
+		int queue = 0;
+		boolean retired = false;
+		Node<Key, Value> prev, next;
+		Node(Key key, Value value)
+		{
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * A doubly linked list of nodes in access order - least recently used at the head.
+	 */
+	static final class AccessQueue<Key, Value>
+	{
+		Node<Key, Value> head, tail;
+		int size = 0;
+
+		void add(Node<Key, Value> n)
+		{
+			n.prev = tail;
+			n.next = null;
+			if (tail == null)
+				head = n;
+			else
+				tail.next = n;
+			tail = n;
+			size++;
+		}
+
+		void remove(Node<Key, Value> n)
+		{
+			if (n.prev == null)
+				head = n.next;
+			else
+				n.prev.next = n.next;
+			if (n.next == null)
+				tail = n.prev;
+			else
+				n.next.prev = n.prev;
+			n.prev = n.next = null;
+			size--;
+		}
+
+		void moveToTail(Node<Key, Value> n)
+		{
+			if (n != tail)
+			{
+				remove(n);
+				add(n);
+			}
+		}
+
+		void clear()
+		{
+			head = tail = null;
+			size = 0;
+		}
+	}
+
+	/**
+	 * A lossy, bounded buffer of recently read nodes. Many threads may write, but only
+	 * the holder of the evictionLock reads.
+	 */
+	static final class ReadBuffer<Key, Value>
+	{
+		static final int SIZE = 32, MASK = SIZE - 1;
+		final AtomicReferenceArray<Node<Key, Value>> nodes = new AtomicReferenceArray<Node<Key, Value>>(SIZE);
+		final AtomicLong writeCount = new AtomicLong(0);
+		volatile long readCount = 0;
+
+		/**
+		 * Return <code>true</code> if the buffer is full enough to be drained.
+		 */
+		boolean offer(Node<Key, Value> n)
+		{
+			long w = writeCount.get();
+			long pending = w - readCount;
+			if (pending >= SIZE)
+				return true;
+			if (writeCount.compareAndSet(w, w + 1))
+				nodes.lazySet((int)(w & MASK), n);
+			return pending >= SIZE/2;
+		}
+	}
+
+	/**
+	 * A count-min sketch with 4 4-bit counters per element, packed in longs,
+	 * approximating access frequencies.
+	 */
+	static final class FrequencySketch
+	{
+		static final long [] SEED = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+									  0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+		static final long RESET_MASK = 0x7777777777777777L;
+		static final long ONE_MASK = 0x1111111111111111L;
+		static final int MAX_TABLE = 1 << 24;
+
+		long [] table;
+		int tableMask;
+		int sampleSize;
+		int additions;
+
+		void ensureCapacity(long capacity)
+		{
+			int n = (int)Math.min(Math.max(capacity, 16), MAX_TABLE);
+			n = Integer.highestOneBit(n - 1) << 1;
+			if (table != null && table.length >= n)
+				return;
+			table = new long[n];
+			tableMask = n - 1;
+			sampleSize = 10*n;
+			additions = 0;
+		}
+
+		static int spread(int x)
+		{
+			x = ((x >>> 16) ^ x) * 0x45d9f3b;
+			x = ((x >>> 16) ^ x) * 0x45d9f3b;
+			return (x >>> 16) ^ x;
+		}
+
+		int indexOf(int hash, int i)
+		{
+			long h = (hash + SEED[i]) * SEED[i];
+			h += h >>> 32;
+			return ((int)h) & tableMask;
+		}
+
+		int frequency(Object key)
+		{
+			int hash = spread(key.hashCode());
+			int start = (hash & 3) << 2;
+			int frequency = 15;
+			for (int i = 0; i < 4; i++)
+			{
+				int offset = (start + i) << 2;
+				int count = (int)((table[indexOf(hash, i)] >>> offset) & 0xfL);
+				frequency = Math.min(frequency, count);
+			}
+			return frequency;
+		}
+
+		void increment(Object key)
+		{
+			int hash = spread(key.hashCode());
+			int start = (hash & 3) << 2;
+			boolean added = false;
+			for (int i = 0; i < 4; i++)
+			{
+				int index = indexOf(hash, i);
+				long mask = 0xfL << ((start + i) << 2);
+				if ((table[index] & mask) != mask)
+				{
+					table[index] += 1L << ((start + i) << 2);
+					added = true;
+				}
+			}
+			if (added && ++additions == sampleSize)
+				reset();
+		}
+
+		void reset()
+		{
+			int odd = 0;
+			for (int i = 0; i < table.length; i++)
+			{
+				odd += Long.bitCount(table[i] & ONE_MASK);
+				table[i] = (table[i] >>> 1) & RESET_MASK;
+			}
+			additions = (additions >>> 1) - (odd >>> 2);
+		}
+
+		void clear()
+		{
+			java.util.Arrays.fill(table, 0);
+			additions = 0;
+		}
+	}
+
+	private static final int EVICTION_SAMPLE = 8;
+
+	private RefResolver<Key, Value> resolver;
+	private final ConcurrentHashMap<Key, Node<Key, Value>> map = new ConcurrentHashMap<Key, Node<Key, Value>>();
+	private final ReentrantLock evictionLock = new ReentrantLock();
+	private final ReadBuffer<Key, Value> [] readBuffers;
+	private final int maxSize;
+	private final float evictPercent;
+	private long maximum, windowMaximum, protectedMaximum;
+	private final AccessQueue<Key, Value> window = new AccessQueue<Key, Value>();
+	private final AccessQueue<Key, Value> probation = new AccessQueue<Key, Value>();
+	private final AccessQueue<Key, Value> protectedQueue = new AccessQueue<Key, Value>();
+	private final FrequencySketch sketch = new FrequencySketch();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	private MemoryWarningSystem.Listener memListener = new MemoryWarningSystem.IncrementalListener()
+	{
+		public int getPriority()
+		{
+			return MemoryWarningSystem.PRIORITY_DEFAULT;
+		}
+
+		public boolean releaseMemory(long usedMemory, long maxMemory)
+		{
+			evictionLock.lock();
+			try
+			{
+				drainReadBuffers();
+				if (map.isEmpty())
+					return false;
+				evictSampled((int)Math.ceil(map.size() * evictPercent));
+				return true;
+			}
+			finally
+			{
+				evictionLock.unlock();
+			}
+		}
+	};
+
+	/**
+	 * <p>Construct a cache bounded by available memory only, evicting 30% of
+	 * its elements per cleanup round when memory gets low.</p>
+	 */
+	public TinyLFUCache()
+	{
+		this(0, 0.3f);
+	}
+
+	/**
+	 * @param maxSize The maximum number of elements in the cache or 0 for a cache that
+	 * is bounded only by available memory.
+	 * @param evictPercent The percentage of elements to evict in each cleanup round
+	 * of the {@link MemoryWarningSystem} when memory is low.
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public TinyLFUCache(int maxSize, float evictPercent)
+	{
+		if (evictPercent <= 0 || evictPercent > 1)
+			throw new IllegalArgumentException("evictPercent not in (0, 1]");
+		this.maxSize = maxSize;
+		this.evictPercent = evictPercent;
+		maximum = maxSize > 0 ? maxSize : Long.MAX_VALUE;
+		windowMaximum = Math.max(1, maximum / 100);
+		protectedMaximum = (long)((maximum - windowMaximum) * 0.8);
+		sketch.ensureCapacity(maxSize > 0 ? maxSize : 1024);
+		int stripes = Integer.highestOneBit(Math.min(Runtime.getRuntime().availableProcessors(), 32) * 2);
+		readBuffers = new ReadBuffer[stripes];
+		for (int i = 0; i < stripes; i++)
+			readBuffers[i] = new ReadBuffer<Key, Value>();
+		HGEnvironment.getMemoryWarningSystem().addListener(memListener);
+	}
+
+	private void recordRead(Node<Key, Value> n)
+	{
+		ReadBuffer<Key, Value> buffer = readBuffers[(int)Thread.currentThread().getId() & (readBuffers.length - 1)];
+		if (buffer.offer(n) && evictionLock.tryLock())
+		{
+			try { drainReadBuffers(); }
+			finally { evictionLock.unlock(); }
+		}
+	}
+
+	// All methods below are called while holding the evictionLock.
+
+	private void drainReadBuffers()
+	{
+		for (ReadBuffer<Key, Value> buffer : readBuffers)
+		{
+			long r = buffer.readCount, w = buffer.writeCount.get();
+			for (; r < w; r++)
+			{
+				int slot = (int)(r & ReadBuffer.MASK);
+				Node<Key, Value> n = buffer.nodes.get(slot);
+				if (n == null) // writer hasn't published yet
+					break;
+				buffer.nodes.lazySet(slot, null);
+				onAccess(n);
+			}
+			buffer.readCount = r;
+		}
+	}
+
+	private void onAccess(Node<Key, Value> n)
+	{
+		sketch.increment(n.key);
+		if (n.retired)
+			return;
+		switch (n.queue)
+		{
+			case WINDOW:
+				window.moveToTail(n);
+				break;
+			case PROBATION:
+				probation.remove(n);
+				n.queue = PROTECTED;
+				protectedQueue.add(n);
+				while (protectedQueue.size > protectedMaximum)
+				{
+					Node<Key, Value> demoted = protectedQueue.head;
+					protectedQueue.remove(demoted);
+					demoted.queue = PROBATION;
+					probation.add(demoted);
+				}
+				break;
+			case PROTECTED:
+				protectedQueue.moveToTail(n);
+				break;
+		}
+	}
+
+	private void onAdd(Node<Key, Value> n)
+	{
+		sketch.increment(n.key);
+		if (n.retired)
+			return;
+		n.queue = WINDOW;
+		window.add(n);
+		if (maxSize <= 0)
+			sketch.ensureCapacity(map.size());
+		evict();
+	}
+
+	private void unlink(Node<Key, Value> n)
+	{
+		switch (n.queue)
+		{
+			case WINDOW: window.remove(n); break;
+			case PROBATION: probation.remove(n); break;
+			case PROTECTED: protectedQueue.remove(n); break;
+		}
+		n.queue = 0;
+	}
+
+	private void evictNode(Node<Key, Value> n)
+	{
+		unlink(n);
+		n.retired = true;
+		map.remove(n.key, n);
+		evictions.increment();
+	}
+
+	/**
+	 * Move elements that overflow the window to the main area and evict while the cache
+	 * is over its maximum size, admitting candidates from the window only if they are
+	 * accessed more frequently than the main area's victim.
+	 */
+	private void evict()
+	{
+		Node<Key, Value> candidate = null;
+		while (window.size > windowMaximum)
+		{
+			Node<Key, Value> n = window.head;
+			window.remove(n);
+			n.queue = PROBATION;
+			probation.add(n);
+			if (candidate == null)
+				candidate = n;
+		}
+		while (window.size + probation.size + protectedQueue.size > maximum)
+		{
+			Node<Key, Value> victim = probation.head;
+			if (victim == null)
+			{
+				evictNode(protectedQueue.head != null ? protectedQueue.head : window.head);
+				continue;
+			}
+			if (candidate == null || candidate == victim || candidate.queue != PROBATION)
+			{
+				if (candidate == victim)
+					candidate = null;
+				evictNode(victim);
+				continue;
+			}
+			Node<Key, Value> next = candidate.next;
+			if (sketch.frequency(candidate.key) > sketch.frequency(victim.key))
+				evictNode(victim);
+			else
+			{
+				evictNode(candidate);
+				candidate = next;
+			}
+		}
+	}
+
+	/**
+	 * Evict <code>count</code> elements, each time choosing the least frequently
+	 * used one out of a small sample of the least recently used elements of
+	 * the probation and window areas.
+	 */
+	private void evictSampled(int count)
+	{
+		for (int i = 0; i < count && !map.isEmpty(); i++)
+		{
+			Node<Key, Value> victim = null;
+			int victimFrequency = Integer.MAX_VALUE;
+			int sampled = 0;
+			for (AccessQueue<Key, Value> q : queues(probation, window, protectedQueue))
+			{
+				for (Node<Key, Value> n = q.head; n != null && sampled < EVICTION_SAMPLE; n = n.next, sampled++)
+				{
+					int f = sketch.frequency(n.key);
+					if (f < victimFrequency)
+					{
+						victim = n;
+						victimFrequency = f;
+					}
+				}
+				if (sampled >= EVICTION_SAMPLE)
+					break;
+			}
+			if (victim == null)
+				break;
+			evictNode(victim);
+		}
+	}
+
+	public Value get(Key key)
+	{
+		Node<Key, Value> n = map.get(key);
+		if (n != null)
+		{
+			hits.increment();
+			recordRead(n);
+			return n.value;
+		}
+		misses.increment();
+
+		// As with the LRUCache, resolution is made outside of any lock because it may
+		// block on storage.
+		Value v = resolver.resolve(key);
+
+		n = new Node<Key, Value>(key, v);
+		Node<Key, Value> existing = map.putIfAbsent(key, n);
+		if (existing != null)
+		{
+			recordRead(existing);
+			return existing.value;
+		}
+		evictionLock.lock();
+		try
+		{
+			drainReadBuffers();
+			onAdd(n);
+		}
+		finally
+		{
+			evictionLock.unlock();
+		}
+		return v;
+	}
+
+	public Value getIfLoaded(Key key)
+	{
+		Node<Key, Value> n = map.get(key);
+		if (n == null)
+			return null;
+		recordRead(n);
+		return n.value;
+	}
+
+	public boolean isLoaded(Key key)
+	{
+		return map.containsKey(key);
+	}
+
+	public void remove(Key key)
+	{
+		Node<Key, Value> n = map.remove(key);
+		if (n == null)
+			return;
+		evictionLock.lock();
+		try
+		{
+			n.retired = true;
+			unlink(n);
+		}
+		finally
+		{
+			evictionLock.unlock();
+		}
+	}
+
+	public void clear()
+	{
+		evictionLock.lock();
+		try
+		{
+			drainReadBuffers();
+			map.clear();
+			for (AccessQueue<Key, Value> q : queues(window, probation, protectedQueue))
+			{
+				for (Node<Key, Value> n = q.head; n != null; n = n.next)
+				{
+					n.retired = true;
+					n.queue = 0;
+				}
+				q.clear();
+			}
+			sketch.clear();
+		}
+		finally
+		{
+			evictionLock.unlock();
+		}
+	}
+
+	public RefResolver<Key, Value> getResolver()
+	{
+		return resolver;
+	}
+
+	public void setResolver(RefResolver<Key, Value> resolver)
+	{
+		this.resolver = resolver;
+	}
+
+	public int size()
+	{
+		return map.size();
+	}
+
+	/**
+	 * <p>Return the maximum number of elements in the cache or 0 if it's bounded by
+	 * available memory only.</p>
+	 */
+	public int getMaxSize()
+	{
+		return maxSize;
+	}
+
+	/**
+	 * <p>Return the number of cache hits since the cache was created.</p>
+	 */
+	public long getHits()
+	{
+		return hits.sum();
+	}
+
+	/**
+	 * <p>Return the number of cache misses (i.e. elements loaded through the
+	 * <code>RefResolver</code>) since the cache was created.</p>
+	 */
+	public long getMisses()
+	{
+		return misses.sum();
+	}
+
+	/**
+	 * <p>Return the number of elements evicted by the cache since it was created, not
+	 * counting explicit removals.</p>
+	 */
+	public long getEvictions()
+	{
+		return evictions.sum();
+	}
+
+	public void close()
+	{
+		HGEnvironment.getMemoryWarningSystem().removeListener(memListener);
+	}
+
+	@SuppressWarnings("unchecked")
+	private AccessQueue<Key, Value> [] queues(AccessQueue<Key, Value> first,
+											 AccessQueue<Key, Value> second,
+											 AccessQueue<Key, Value> third)
+	{
+		AccessQueue<Key, Value> [] result = (AccessQueue<Key, Value> [])new AccessQueue<?, ?>[3];
+		result[0] = first;
+		result[1] = second;
+		result[2] = third;
+		return result;
+	}
+}
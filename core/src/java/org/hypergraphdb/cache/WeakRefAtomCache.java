@@ -52,6 +52,14 @@ import org.hypergraphdb.util.WeakIdentityHashMap;
  * highly inefficient.   
  * </p>
  * 
+ * <p>
+ * To prevent atoms from being evicted as soon as the application stops referring to them,
+ * recently used atoms are strongly referenced for a while. By default, a fixed number of 
+ * them is retained (see {@link ColdAtoms}). When an atom cache budget is configured
+ * with {@link org.hypergraphdb.HGConfiguration#setAtomCacheBudget(long)}, atoms are 
+ * retained up to an estimated total size instead (see {@link WeightedColdAtoms}).
+ * </p>
+ * 
  * @author Borislav Iordanov
  *
  */
@@ -69,7 +77,8 @@ public class WeakRefAtomCache implements HGAtomCache
 	
 	private CacheMap<HGLiveHandle, Object> frozenAtoms =	null;
 	
-	private ColdAtoms coldAtoms = new ColdAtoms();
+	private ColdAtoms coldAtoms = null;
+	private WeightedColdAtoms weightedAtoms = null;
 	
 	public static final long DEFAULT_PHANTOM_QUEUE_POLL_INTERVAL = 500;
 	
@@ -89,7 +98,8 @@ public class WeakRefAtomCache implements HGAtomCache
 	    atoms = null;
 	    atomsTx = null;
 	    frozenAtoms = null;
-	    coldAtoms = new ColdAtoms();
+	    coldAtoms = null;
+	    weightedAtoms = null;
 	    gcLock = new ReentrantReadWriteLock();
 	    refQueue = new ReferenceQueue<Object>();
 	    cleanupThread = null;
@@ -217,6 +227,8 @@ public class WeakRefAtomCache implements HGAtomCache
 	public void setIncidenceCache(HGCache<HGPersistentHandle, IncidenceSet> cache)
 	{
 		this.incidenceCache= cache;
+		if (cache instanceof LRUCache && graph != null && graph.getCacheMaintenanceExecutor() != null)
+			((LRUCache<?, ?>)cache).setMaintenanceExecutor(graph.getCacheMaintenanceExecutor());
 	}
 	
 	public HGCache<HGPersistentHandle, IncidenceSet> getIncidenceCache()
@@ -253,9 +265,38 @@ public class WeakRefAtomCache implements HGAtomCache
         cleanupThread.start();
 
 		cleanupThread.setName("HGCACHE Cleanup - " + graph.getLocation());
+		// Only one of the two is created, so that atoms are retained by a single policy and
+		// only its memory listener is registered.
+		if (graph.getConfig().getAtomCacheBudget() > 0)
+			weightedAtoms = new WeightedColdAtoms(graph.getConfig().getAtomCacheBudget());
+		else
+			coldAtoms = new ColdAtoms();
+	}
+	
+	// Keep a strong reference to a recently used atom for a while.
+	private void retain(Object atom, long weight)
+	{
+		if (weightedAtoms != null)
+			weightedAtoms.add(atom, weight);
+		else
+			coldAtoms.add(atom);
+	}
+	
+	/**
+	 * <p>Return the structure retaining recently used atoms within the configured atom 
+	 * cache budget or <code>null</code> if no budget is configured.</p>
+	 */
+	public WeightedColdAtoms getWeightedColdAtoms()
+	{
+		return weightedAtoms;
 	}
 	
     public HGLiveHandle atomAdded(HGPersistentHandle pHandle, Object atom, final HGAtomAttrib attrib) 
+    {
+    	return atomAdded(pHandle, atom, attrib, -1);
+    }
+	
+    public HGLiveHandle atomAdded(HGPersistentHandle pHandle, Object atom, final HGAtomAttrib attrib, long weight) 
     {
         if (closing)
         {
@@ -284,7 +325,7 @@ public class WeakRefAtomCache implements HGAtomCache
         {
             atoms.put(atom, h);
             liveHandles.put(pHandle, h);
-            coldAtoms.add(atom);            
+            retain(atom, weight);            
             return h;
         }
         finally
@@ -296,6 +337,14 @@ public class WeakRefAtomCache implements HGAtomCache
 	public HGLiveHandle atomRead(HGPersistentHandle pHandle, 
 								 Object atom,
 								 final HGAtomAttrib attrib) 
+	{
+		return atomRead(pHandle, atom, attrib, -1);
+	}
+	
+	public HGLiveHandle atomRead(HGPersistentHandle pHandle, 
+								 Object atom,
+								 final HGAtomAttrib attrib,
+								 long weight) 
 	{
 		if (closing)
 		{
@@ -327,7 +376,7 @@ public class WeakRefAtomCache implements HGAtomCache
         {                 
             atoms.load(atom, h);
             liveHandles.load(pHandle, h);
-            coldAtoms.add(atom);
+            retain(atom, weight);
             return h;            
         }
         finally
@@ -337,6 +386,11 @@ public class WeakRefAtomCache implements HGAtomCache
 	}
 
 	public HGLiveHandle atomRefresh(HGLiveHandle handle, Object atom, boolean replace) 
+	{
+		return atomRefresh(handle, atom, replace, -1);
+	}
+	
+	public HGLiveHandle atomRefresh(HGLiveHandle handle, Object atom, boolean replace, long weight) 
 	{
 	    if (handle.getRef() == atom)
 	        return handle; // same atom, nothing to do
@@ -390,7 +444,7 @@ public class WeakRefAtomCache implements HGAtomCache
                 atoms.load(atom, newLive);		        
     	        liveHandles.load(handle.getPersistent(), newLive);
     	    }
-            coldAtoms.add(atom);
+            retain(atom, weight);
             return newLive;    	    
 	    }
 	    finally
@@ -411,6 +465,8 @@ public class WeakRefAtomCache implements HGAtomCache
 			((CloseMe)incidenceCache).close();
 		atoms.clear();
 		liveHandles.clear();
+		if (weightedAtoms != null)
+			weightedAtoms.close();
 	}
 
 	public HGLiveHandle get(HGPersistentHandle pHandle) 
@@ -469,7 +525,7 @@ public class WeakRefAtomCache implements HGAtomCache
 	{
 	    System.out.println("atoms map: " + atomsTx.mapSize());
 	    System.out.println("liveHandles map: " + liveHandlesTx.mapSize());
-	    System.out.println("cold atoms: " + coldAtoms.size());
+	    System.out.println("cold atoms: " + (weightedAtoms != null ? weightedAtoms.size() : coldAtoms.size()));
 	    System.out.println("frozen atoms: " + frozenAtoms.size());
 	}
 }
\ No newline at end of file
@@ -0,0 +1,175 @@
+/*
+ * This file is part of the HyperGraphDB source distribution. This is copyrighted
+ * software. For permitted uses, licensing options and redistribution, please see
+ * the LicensingInformation file at the root level of the distribution.
+ *
+ * Copyright (c) 2005-2010 Kobrix Software, Inc.  All rights reserved.
+ */
+package org.hypergraphdb.cache;
+
+import org.hypergraphdb.HGEnvironment;
+import org.hypergraphdb.util.CloseMe;
+import org.hypergraphdb.util.MemoryWarningSystem;
+
+/**
+ * <p>
+ * A variant of {@link ColdAtoms} bounded by an estimated memory footprint rather than
+ * by a number of atoms. Each atom is added together with its weight, an estimate of the
+ * number of bytes it occupies, normally the size of its serialized form as read from or
+ * written to the {@link org.hypergraphdb.HGStore}. Atoms are kept in insertion order and
+ * whenever the total weight exceeds the configured budget, the oldest atoms are released
+ * one by one until the total is back within the budget. Thus eviction is incremental and
+ * its cost is spread over the additions instead of happening all at once when the JVM is
+ * about to run out of memory.
+ * </p>
+ *
+ * <p>
+ * Weights are estimates: the in-memory representation of an atom is usually larger than
+ * its serialized form, so a fixed per-atom overhead is added to every weight. When
+ * memory does run low in spite of the budget, a tenth of the retained atoms are released
+ * in each cleanup round of the {@link MemoryWarningSystem}, as with <code>ColdAtoms</code>.
+ * </p>
+ *
+ * @author Borislav Iordanov
+ *
+ */
+public class WeightedColdAtoms implements CloseMe
+{
+	/**
+	 * The weight assumed for atoms whose serialized size is not known.
+	 */
+	public static final int DEFAULT_WEIGHT = 128;
+
+	/**
+	 * The estimated number of bytes of an atom's in-memory representation that is not
+	 * accounted for by its serialized size (object headers, the cache entry etc.).
+	 */
+	public static final int ENTRY_OVERHEAD = 64;
+
+	private final long budget;
+	private Object [] atoms = new Object[1024];
+	private int [] weights = new int[1024];
+	private int head = 0, count = 0;
+	private long totalWeight = 0;
+	private long evictions = 0;
+
+	private MemoryWarningSystem.Listener memListener = new MemoryWarningSystem.IncrementalListener()
+	{
+		public int getPriority()
+		{
+			return MemoryWarningSystem.PRIORITY_FIRST;
+		}
+
+		public boolean releaseMemory(long usedMemory, long maxMemory)
+		{
+			synchronized (WeightedColdAtoms.this)
+			{
+				if (count == 0)
+					return false;
+				int cnt = Math.max(1, count / 10);
+				while (cnt-- > 0)
+					evictOne();
+				return true;
+			}
+		}
+	};
+
+	/**
+	 * @param budget The maximum total weight, in bytes, of the retained atoms.
+	 */
+	public WeightedColdAtoms(long budget)
+	{
+		if (budget <= 0)
+			throw new IllegalArgumentException("budget <= 0");
+		this.budget = budget;
+		HGEnvironment.getMemoryWarningSystem().addListener(memListener);
+	}
+
+	private void evictOne()
+	{
+		totalWeight -= weights[head];
+		atoms[head] = null;
+		head = (head + 1) % atoms.length;
+		count--;
+		evictions++;
+	}
+
+	private void grow()
+	{
+		Object [] newAtoms = new Object[atoms.length*2];
+		int [] newWeights = new int[atoms.length*2];
+		for (int i = 0; i < count; i++)
+		{
+			newAtoms[i] = atoms[(head + i) % atoms.length];
+			newWeights[i] = weights[(head + i) % atoms.length];
+		}
+		atoms = newAtoms;
+		weights = newWeights;
+		head = 0;
+	}
+
+	/**
+	 * <p>Retain an atom with the given estimated weight, releasing the oldest atoms as
+	 * necessary to remain within the budget. An atom heavier than the whole budget is
+	 * not retained and leaves the other atoms in place.</p>
+	 *
+	 * @param atom The atom runtime instance.
+	 * @param weight The size in bytes of the atom's serialized form or a negative
+	 * number if unknown.
+	 */
+	public synchronized void add(Object atom, long weight)
+	{
+		int w = (int)Math.min(Integer.MAX_VALUE - ENTRY_OVERHEAD,
+							  weight < 0 ? DEFAULT_WEIGHT : weight) + ENTRY_OVERHEAD;
+		if (w > budget)
+			return; // too big to be retained at all, so don't release anything for it
+		while (count > 0 && totalWeight + w > budget)
+			evictOne();
+		if (count == atoms.length)
+			grow();
+		int slot = (head + count) % atoms.length;
+		atoms[slot] = atom;
+		weights[slot] = w;
+		count++;
+		totalWeight += w;
+	}
+
+	public synchronized int size()
+	{
+		return count;
+	}
+
+	/**
+	 * <p>Return the total estimated weight of the retained atoms.</p>
+	 */
+	public synchronized long getWeight()
+	{
+		return totalWeight;
+	}
+
+	public long getBudget()
+	{
+		return budget;
+	}
+
+	/**
+	 * <p>Return the number of atoms released so far in order to remain within the budget
+	 * or because memory was low.</p>
+	 */
+	public synchronized long getEvictions()
+	{
+		return evictions;
+	}
+
+	public synchronized void clear()
+	{
+		while (count > 0)
+			evictOne();
+	}
+
+	public void close()
+	{
+		HGEnvironment.getMemoryWarningSystem().removeListener(memListener);
+		clear();
+	}
+}
@@ -0,0 +1,60 @@
+package org.hypergraphdb.event;
+
+import org.hypergraphdb.HGHandle;
+
+/**
+ * <p>
+ * Dispatched by the {@link org.hypergraphdb.maintenance.ApplyNewIndexer} maintenance
+ * operation every time a batch of existing atoms has been added to a newly registered
+ * index. The total is the number of atoms of the type being processed, as reported by the
+ * by-type index when the type was partitioned. Listen to this event to monitor a long
+ * running index creation.
+ * </p>
+ */
+public class HGIndexingProgressEvent extends HGEventBase
+{
+    private HGHandle indexer;
+    private HGHandle type;
+    private long processed;
+    private long total;
+
+    public HGIndexingProgressEvent(HGHandle indexer, HGHandle type, long processed, long total)
+    {
+        this.indexer = indexer;
+        this.type = type;
+        this.processed = processed;
+        this.total = total;
+    }
+
+    /**
+     * Return the handle of the <code>HGIndexer</code> atom whose index is being populated.
+     */
+    public HGHandle getIndexer()
+    {
+        return indexer;
+    }
+
+    /**
+     * Return the type (possibly a sub-type of the indexer's type) whose atoms are being indexed.
+     */
+    public HGHandle getType()
+    {
+        return type;
+    }
+
+    /**
+     * Return the number of atoms of the current type indexed so far by this run of the operation.
+     */
+    public long getProcessed()
+    {
+        return processed;
+    }
+
+    /**
+     * Return the number of atoms of the current type.
+     */
+    public long getTotal()
+    {
+        return total;
+    }
+}
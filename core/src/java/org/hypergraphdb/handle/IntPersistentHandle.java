@@ -21,6 +21,11 @@ public class IntPersistentHandle implements HGPersistentHandle
       return buffer;
   }
 
+  public void writeTo(byte [] dest, int offset)
+  {
+      System.arraycopy(buffer, 0, dest, offset, buffer.length);
+  }
+
   public int compareTo(HGPersistentHandle o)
   {
       return x - ((IntPersistentHandle)o).x; 
@@ -24,6 +24,11 @@ public class LongPersistentHandle implements HGPersistentHandle
         return data;
     }
 
+    public void writeTo(byte [] buffer, int offset)
+    {
+        System.arraycopy(data, 0, buffer, offset, data.length);
+    }
+
     public int compareTo(HGPersistentHandle other)
     {
         long c = value() - ((LongPersistentHandle)other).value();
@@ -128,6 +128,11 @@ public final class UUIDPersistentHandle implements HGPersistentHandle
 		return uuid.mId;
 	}
 
+	public void writeTo(byte [] buffer, int offset)
+	{
+		System.arraycopy(uuid.mId, 0, buffer, offset, SIZE);
+	}
+
 	public UUID getUuid()
 	{
 		return uuid;
@@ -1,17 +1,24 @@
-/* 
- * This file is part of the HyperGraphDB source distribution. This is copyrighted 
- * software. For permitted uses, licensing options and redistribution, please see  
- * the LicensingInformation file at the root level of the distribution.  
- * 
- * Copyright (c) 2005-2010 Kobrix Software, Inc.  All rights reserved. 
- */
+/* 
+ * This file is part of the HyperGraphDB source distribution. This is copyrighted 
+ * software. For permitted uses, licensing options and redistribution, please see  
+ * the LicensingInformation file at the root level of the distribution.  
+ * 
+ * Copyright (c) 2005-2010 Kobrix Software, Inc.  All rights reserved. 
+ */
 package org.hypergraphdb.maintenance;
 
-import java.util.ArrayList;
-
+import java.util.ArrayList;
+
 
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
+import org.hypergraphdb.HGEnvironment;
 import org.hypergraphdb.HGHandle;
 import org.hypergraphdb.HGIndex;
 import org.hypergraphdb.HGPersistentHandle;
@@ -19,27 +26,48 @@ import org.hypergraphdb.HGRandomAccessResult;
 import org.hypergraphdb.HGRandomAccessResult.GotoResult;
 import org.hypergraphdb.HyperGraph;
 import org.hypergraphdb.HGQuery.hg;
+import org.hypergraphdb.event.HGIndexingProgressEvent;
 import org.hypergraphdb.indexing.HGIndexer;
+import org.hypergraphdb.storage.PostingBlock;
 import org.hypergraphdb.util.HGUtils;
+import org.hypergraphdb.util.Pair;
 
 /**
- * 
+ *
  * <p>
  * The <code>MaintenanceOperation</code> will create index entries for a newly
  * added <code>HGIndexer</code>.
  * </p>
  *
+ * <p>
+ * The atoms of each indexed type are split into <code>partitions</code> ranges of
+ * handles, following the order of the by-type index, and the ranges are indexed in
+ * parallel on the {@link HGEnvironment#executor()}. Each range is processed in
+ * transactions of <code>batchSize</code> atoms and the position reached in every range
+ * is saved with the operation after each batch, so an interrupted operation resumes
+ * where it left off the next time maintenance is run. A {@link HGIndexingProgressEvent}
+ * is dispatched after each batch. While the operation runs, the index is maintained for
+ * new atoms, but it is not used to answer queries until it completes, see
+ * {@link org.hypergraphdb.HGIndexManager#isComplete(HGIndexer)}.
+ * </p>
+ *
  * @author Borislav Iordanov
  *
  */
 @SuppressWarnings("unchecked")
 public class ApplyNewIndexer implements MaintenanceOperation
 {
+	// How many handles to read per transaction when splitting a type into partitions.
+	private static final int SCAN_BATCH_SIZE = 10000;
+
 	private HGHandle hindexer;
 	private List<HGHandle> typesAdded = new ArrayList<HGHandle>();
 	private HGPersistentHandle lastProcessed = null;
 	private int batchSize = 100;
-	
+	private int partitions = 0;
+	private HGPersistentHandle [] partitionStarts = null;
+	private HGPersistentHandle [] partitionProgress = null;
+
 	private void cleanupAfterFailure(HyperGraph graph, HGIndexer indexer, MaintenanceException ex)
 	{
 		try
@@ -52,125 +80,224 @@ public class ApplyNewIndexer implements MaintenanceOperation
 			ex.setFatal(true);
 		}
 	}
-	
-	private void indexAtomsTypedWith(HyperGraph graph,
-	                                 HGIndex<?,?> idx,
-	                                 HGIndexer indexer, 
-	                                 HGHandle typeHandle) throws MaintenanceException
-	{
-        HGRandomAccessResult<HGPersistentHandle> rs = null;
-        while (true)
-        {
-            HGPersistentHandle txLastProcessed = lastProcessed;
-            graph.getTransactionManager().beginTransaction();           
-            try
-            {
-                rs = (HGRandomAccessResult<HGPersistentHandle>)(HGRandomAccessResult<?>)
-                        graph.find(hg.type(typeHandle));
-                if (txLastProcessed == null)
-                {
-                    if (!rs.hasNext()) 
-                    {
-                        rs.close();
-                        graph.getTransactionManager().endTransaction(false);
-                        return; 
-                    }
-                    else rs.next();
-                }
-                else
-                {
-                    GotoResult gt = rs.goTo(txLastProcessed, false);
-                    if (gt == GotoResult.nothing) // last processed was actually last element in result set
-                    {
-                        rs.close();
-                        graph.getTransactionManager().endTransaction(false);                        
-                        return;
-                    }
-                    else if (gt == GotoResult.found)
-                    {
-                        if (!rs.hasNext())
-                        {
-                            rs.close();
-                            graph.getTransactionManager().endTransaction(false);                            
-                            return;
-                        }
-                        else
-                            rs.next();
-                    } // else we are already positioned after the last processed, which is not present for god know why?
-                }               
-                for (int i = 0; i < batchSize; i++)
-                {
-                    Object atom = graph.get(rs.current());
-                    indexer.index(graph, rs.current(), atom, idx);
-                    txLastProcessed = rs.current();                   
-                    if (!rs.hasNext())
-                        break;
-                    else
-                        rs.next();
-                }
-                rs.close();
-                rs = null;
-                graph.update(this);
-                graph.getTransactionManager().endTransaction(true);
-                lastProcessed = txLastProcessed;
-            }
-            catch (Throwable t)
-            {
-                Throwable cause = HGUtils.getRootCause(t);
-                if (graph.getStore().getTransactionFactory().canRetryAfter(cause))
-                    continue;                
-                try { graph.getTransactionManager().endTransaction(false); }
-                catch (Throwable tt) { tt.printStackTrace(System.err); }
-                MaintenanceException mex = new MaintenanceException(
-                    false, 
-                    "While creating populating index for indexer : " + indexer,
-                    t);
-                cleanupAfterFailure(graph, indexer, mex);
-                throw mex;
-            }
-            finally
-            {
-                HGUtils.closeNoException(rs);                
-            }                   
-        }	    
-	}
-	
+
+	private void checkpoint(final HyperGraph graph)
+	{
+		graph.getTransactionManager().ensureTransaction(new Callable<Object>() {
+			public Object call()
+			{
+				graph.update(ApplyNewIndexer.this);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Visit, in a single transaction, at most <code>max</code> atoms of the given type
+	 * starting at <code>from</code> (or at the first one if <code>from</code> is null)
+	 * and stopping before <code>to</code> (or at the end if <code>to</code> is null).
+	 * The visited handles are collected in <code>visited</code>. Return the handle
+	 * where to continue or <code>null</code> if the range is exhausted.
+	 */
+	private HGPersistentHandle scan(final HyperGraph graph,
+	                                final HGPersistentHandle typeHandle,
+	                                final HGPersistentHandle from,
+	                                final HGPersistentHandle to,
+	                                final int max,
+	                                final List<HGPersistentHandle> visited,
+	                                final Consumer<HGPersistentHandle> action)
+	{
+		final byte [] toBytes = to == null ? null : to.toByteArray();
+		return graph.getTransactionManager().transact(new Callable<HGPersistentHandle>() {
+			public HGPersistentHandle call()
+			{
+				visited.clear();
+				HGRandomAccessResult<HGPersistentHandle> rs = graph.getIndexManager().getIndexByType().find(typeHandle);
+				try
+				{
+					if (from == null)
+					{
+						if (!rs.hasNext())
+							return null;
+						rs.next();
+					}
+					else if (rs.goTo(from, false) == GotoResult.nothing)
+						return null;
+					// else we are positioned on 'from' or, if it was removed meanwhile, right after it
+					for (HGPersistentHandle current = rs.current(); ; current = rs.next())
+					{
+						// handles are ordered as unsigned byte strings in the by-type index
+						if (toBytes != null && PostingBlock.compare(current.toByteArray(), toBytes) >= 0)
+							return null;
+						if (visited.size() == max)
+							return current;
+						if (action != null)
+							action.accept(current);
+						visited.add(current);
+						if (!rs.hasNext())
+							return null;
+					}
+				}
+				finally
+				{
+					HGUtils.closeNoException(rs);
+				}
+			}
+		});
+	}
+
+	private void partition(HyperGraph graph, HGPersistentHandle typeHandle)
+	{
+		long total = graph.getIndexManager().getIndexByType().stats().valuesOfKey(typeHandle, Long.MAX_VALUE, false).value();
+		int n = partitions > 0 ? partitions : Runtime.getRuntime().availableProcessors();
+		long step = Math.max(batchSize, (total + n - 1) / n);
+		List<HGPersistentHandle> starts = new ArrayList<HGPersistentHandle>();
+		List<HGPersistentHandle> visited = new ArrayList<HGPersistentHandle>();
+		// An operation saved by an earlier version only knows the last atom indexed.
+		HGPersistentHandle next = lastProcessed;
+		long position = 0;
+		do
+		{
+			next = scan(graph, typeHandle, next, null, SCAN_BATCH_SIZE, visited, null);
+			for (HGPersistentHandle h : visited)
+				if (position++ % step == 0)
+					starts.add(h);
+		} while (next != null);
+		partitionStarts = starts.toArray(new HGPersistentHandle[starts.size()]);
+		partitionProgress = partitionStarts.clone();
+		checkpoint(graph);
+	}
+
+	private void indexAtomsTypedWith(final HyperGraph graph,
+	                                 final HGIndex<?,?> idx,
+	                                 final HGIndexer indexer,
+	                                 final HGHandle typeHandle) throws MaintenanceException
+	{
+		final HGPersistentHandle pType = graph.getPersistentHandle(typeHandle);
+		if (partitionProgress == null)
+			partition(graph, pType);
+		final HGPersistentHandle done = graph.getHandleFactory().nullHandle();
+		final long total = graph.getIndexManager().getIndexByType().stats().valuesOfKey(pType, Long.MAX_VALUE, false).value();
+		final AtomicLong processed = new AtomicLong(0);
+		final Consumer<HGPersistentHandle> index = new Consumer<HGPersistentHandle>() {
+			public void accept(HGPersistentHandle atomHandle)
+			{
+				indexer.index(graph, atomHandle, graph.get(atomHandle), idx);
+			}
+		};
+		CompletionService<Pair<Integer, HGPersistentHandle>> batches =
+			new ExecutorCompletionService<Pair<Integer, HGPersistentHandle>>(HGEnvironment.executor());
+		int running = 0;
+		Throwable failure = null;
+		for (int i = 0; i < partitionProgress.length; i++)
+			if (!partitionProgress[i].equals(done))
+			{
+				batches.submit(batchTask(graph, pType, i, index, processed));
+				running++;
+			}
+		// Progress is saved and reported from this thread only, the workers just index.
+		// A batch that has committed, but whose progress wasn't saved, will be indexed
+		// again on resume which is harmless.
+		while (running > 0)
+		{
+			try
+			{
+				Pair<Integer, HGPersistentHandle> result = batches.take().get();
+				running--;
+				if (failure != null)
+					continue;
+				int i = result.getFirst();
+				partitionProgress[i] = result.getSecond() == null ? done : result.getSecond();
+				checkpoint(graph);
+				graph.getEventManager().dispatch(graph,
+					new HGIndexingProgressEvent(hindexer, typeHandle, processed.get(), total));
+				if (result.getSecond() != null)
+				{
+					batches.submit(batchTask(graph, pType, i, index, processed));
+					running++;
+				}
+			}
+			catch (ExecutionException ex)
+			{
+				running--;
+				if (failure == null)
+					failure = ex.getCause();
+			}
+			catch (Throwable t)
+			{
+				// Interrupted or failed to save progress: let running batches finish before cleaning up.
+				if (failure == null)
+					failure = t;
+			}
+		}
+		if (failure != null)
+		{
+			MaintenanceException mex = new MaintenanceException(
+				false,
+				"While creating populating index for indexer : " + indexer,
+				failure);
+			cleanupAfterFailure(graph, indexer, mex);
+			throw mex;
+		}
+	}
+
+	private Callable<Pair<Integer, HGPersistentHandle>> batchTask(final HyperGraph graph,
+	                                                              final HGPersistentHandle typeHandle,
+	                                                              final int partition,
+	                                                              final Consumer<HGPersistentHandle> index,
+	                                                              final AtomicLong processed)
+	{
+		final HGPersistentHandle from = partitionProgress[partition];
+		final HGPersistentHandle to = partition + 1 < partitionStarts.length ? partitionStarts[partition + 1] : null;
+		return new Callable<Pair<Integer, HGPersistentHandle>>() {
+			public Pair<Integer, HGPersistentHandle> call()
+			{
+				List<HGPersistentHandle> visited = new ArrayList<HGPersistentHandle>(batchSize);
+				HGPersistentHandle next = scan(graph, typeHandle, from, to, batchSize, visited, index);
+				processed.addAndGet(visited.size());
+				return new Pair<Integer, HGPersistentHandle>(partition, next);
+			}
+		};
+	}
+
 	public ApplyNewIndexer()
-	{		
+	{
 	}
-	
+
 	public ApplyNewIndexer(HGHandle hIndexer)
 	{
 		this.hindexer = hIndexer;
 	}
-	
+
 	public void execute(HyperGraph graph) throws MaintenanceException
-	{		
+	{
 		HGIndexer indexer = graph.get(hindexer);
 		if (indexer == null)
 			return;
 		HGIndex<?,?> idx = graph.getIndexManager().getIndex(indexer);
 		if (idx == null)
-			throw new MaintenanceException(false,"Indexer " + indexer + " with handle " + hindexer + 
+			throw new MaintenanceException(false,"Indexer " + indexer + " with handle " + hindexer +
 												 " present in graph, but no actual index has been created.");
+		graph.getIndexManager().activate(indexer);
 		for (HGHandle currentType : hg.typePlus(indexer.getType()).getSubTypes(graph))
-		{		    
+		{
 		    if (typesAdded.contains(currentType)) // are we resuming from a previous interruption?
 		    {
 		        // if the type has been completed processed, skip it
 		        if (!typesAdded.get(typesAdded.size()-1).equals(currentType))
 		            continue;
 		        // otherwise, we are resuming the processing of 'currentType' and
-		        // the lastProcessed variable should contain the handle of the last
-		        // atom of that type that was added to the index
+		        // the partition variables contain the positions reached within it
 		    }
 		    else
 		    {
 		        typesAdded.add(currentType);
 		        lastProcessed = null;
+		        partitionStarts = partitionProgress = null;
 		    }
-		    indexAtomsTypedWith(graph, idx, indexer, currentType);		    
+		    indexAtomsTypedWith(graph, idx, indexer, currentType);
 		}
+		graph.getIndexManager().markComplete(indexer);
 	}
 
 	public HGHandle getHindexer()
@@ -183,6 +310,16 @@ public class ApplyNewIndexer implements MaintenanceOperation
 		hindexer = indexer;
 	}
 
+	public List<HGHandle> getTypesAdded()
+	{
+		return typesAdded;
+	}
+
+	public void setTypesAdded(List<HGHandle> typesAdded)
+	{
+		this.typesAdded = typesAdded;
+	}
+
 	public HGPersistentHandle getLastProcessed()
 	{
 		return lastProcessed;
@@ -201,5 +338,41 @@ public class ApplyNewIndexer implements MaintenanceOperation
 	public void setBatchSize(int batchSize)
 	{
 		this.batchSize = batchSize;
-	}		
-}
\ No newline at end of file
+	}
+
+	/**
+	 * <p>
+	 * Return the number of ranges the atoms of a type are split into for parallel
+	 * indexing. The default of <code>0</code> means one range per available processor.
+	 * </p>
+	 */
+	public int getPartitions()
+	{
+		return partitions;
+	}
+
+	public void setPartitions(int partitions)
+	{
+		this.partitions = partitions;
+	}
+
+	public HGPersistentHandle[] getPartitionStarts()
+	{
+		return partitionStarts;
+	}
+
+	public void setPartitionStarts(HGPersistentHandle[] partitionStarts)
+	{
+		this.partitionStarts = partitionStarts;
+	}
+
+	public HGPersistentHandle[] getPartitionProgress()
+	{
+		return partitionProgress;
+	}
+
+	public void setPartitionProgress(HGPersistentHandle[] partitionProgress)
+	{
+		this.partitionProgress = partitionProgress;
+	}
+}
@@ -10,6 +10,7 @@ import org.hypergraphdb.HGQuery;
 import org.hypergraphdb.HGSearchResult;
 import org.hypergraphdb.query.cond2qry.QueryMetaData;
 import org.hypergraphdb.query.impl.IntersectionQuery;
+import org.hypergraphdb.query.impl.LeapfrogIntersectionQuery;
 import org.hypergraphdb.query.impl.PredicateBasedFilter;
 import org.hypergraphdb.util.HGUtils;
 import org.hypergraphdb.util.Mapping;
@@ -141,7 +142,10 @@ public class AnalyzedQuery<SearchResult> extends HGQuery<SearchResult>
         final Map<Class<?>, Mapping<Object, Boolean>> dispatch = 
                 new HashMap<Class<?>, Mapping<Object, Boolean>>();
         if (options.containsKey(INTERSECTION_THRESHOLD))
+        {
             dispatch.put(IntersectionQuery.class, analyzeJoin);
+            dispatch.put(LeapfrogIntersectionQuery.class, analyzeMultiJoin);
+        }
         if (options.containsKey(SCAN_THRESHOLD))
             dispatch.put(PredicateBasedFilter.class, analyzePredicateFilter);
         HGUtils.visit(query, new Mapping<Object, Boolean>() {
@@ -187,6 +191,27 @@ public class AnalyzedQuery<SearchResult> extends HGQuery<SearchResult>
         }
     };    
     
+    private Mapping<Object, Boolean> analyzeMultiJoin = new Mapping<Object, Boolean>() {
+        public Boolean eval(Object x)
+        {
+            LeapfrogIntersectionQuery<?> join = (LeapfrogIntersectionQuery<?>)x;
+            long minSize = -1;
+            for (HGQuery<?> q : join)
+            {
+                long size = estimateSize(q);
+                if (size > -1 && (minSize == -1 || size < minSize))
+                    minSize = size;
+            }
+            if (minSize > (Integer)options.get(INTERSECTION_THRESHOLD))
+            {
+                And and = new And();
+                and.addAll(findOrigin(join));
+                redflags.put(INTERSECTION_THRESHOLD, add(redflags.get(INTERSECTION_THRESHOLD), and));
+            }
+            return Boolean.TRUE;
+        }
+    };    
+    
     private Mapping<Object, Boolean> analyzePredicateFilter = new Mapping<Object, Boolean>() {
         public Boolean eval(Object x)
         {
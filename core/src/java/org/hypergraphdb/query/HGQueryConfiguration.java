@@ -25,6 +25,8 @@ import org.hypergraphdb.query.cond2qry.ContractConjunction;
 public class HGQueryConfiguration
 {
     private boolean parallelExecution = false;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private int parallelChunkSize = 1024;
     private HashMap<Class<? extends HGQueryCondition>, List<QueryCompile.Expand>> expandTransforms = 
             new HashMap<Class<? extends HGQueryCondition>, List<QueryCompile.Expand>>();
     private HashMap<Class<? extends HGQueryCondition>, List<QueryCompile.Contract>> contractTransforms = 
@@ -94,8 +96,51 @@ public class HGQueryConfiguration
         return parallelExecution;
     }
 
+    /**
+     * <p>
+     * Specify whether parts of a query may be executed concurrently on the 
+     * {@link org.hypergraphdb.HGEnvironment#executor()}. When enabled, the operands of an 
+     * intersection are evaluated concurrently, predicates filtering a scan of an index key 
+     * (such as all atoms of a type) are evaluated over partitions of the scan, and other 
+     * predicate filters are evaluated over chunks of their input split between threads. 
+     * See {@link org.hypergraphdb.query.impl.ParallelExecution}. 
+     * </p>
+     * 
+     * <p>
+     * Queries are only executed concurrently within read-only transactions, such as the
+     * ones started by <code>hg.findAll</code>, <code>hg.getAll</code> and the like.
+     * </p>
+     */
     public void setParallelExecution(boolean parallelExecution)
     {
         this.parallelExecution = parallelExecution;
     }    
+
+    /**
+     * <p>Return the maximum number of tasks a part of a query is split into when executed 
+     * concurrently. The default is the number of available processors.</p>
+     */
+    public int getParallelism()
+    {
+        return parallelism;
+    }
+
+    public void setParallelism(int parallelism)
+    {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * <p>Return the number of elements whose filtering predicate is evaluated concurrently 
+     * as a whole. Scans smaller than that are not partitioned. The default is 1024.</p>
+     */
+    public int getParallelChunkSize()
+    {
+        return parallelChunkSize;
+    }
+
+    public void setParallelChunkSize(int parallelChunkSize)
+    {
+        this.parallelChunkSize = parallelChunkSize;
+    }
 }
\ No newline at end of file
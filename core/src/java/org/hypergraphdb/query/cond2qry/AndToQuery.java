@@ -14,14 +14,19 @@ import java.util.Iterator;
 import java.util.List;
 
 import org.hypergraphdb.HGException;
+import org.hypergraphdb.HGHandle;
 import org.hypergraphdb.HGQuery;
 import org.hypergraphdb.HyperGraph;
+import org.hypergraphdb.HGQuery.hg;
 import org.hypergraphdb.query.And;
+import org.hypergraphdb.query.AtomTypeCondition;
 import org.hypergraphdb.query.HGAtomPredicate;
 import org.hypergraphdb.query.HGQueryCondition;
+import org.hypergraphdb.query.IncidentCondition;
 import org.hypergraphdb.query.QueryCompile;
 import org.hypergraphdb.query.impl.DelayedSetLoadPredicate;
 import org.hypergraphdb.query.impl.IntersectionQuery;
+import org.hypergraphdb.query.impl.LeapfrogIntersectionQuery;
 import org.hypergraphdb.query.impl.PredicateBasedFilter;
 import org.hypergraphdb.query.impl.RABasedPredicate;
 import org.hypergraphdb.query.impl.SortedIntersectionResult;
@@ -38,12 +43,11 @@ public class AndToQuery<ResultType> implements ConditionToQuery<ResultType>
 	 * is a bit convoluted because there are 3 numbers in play: lower bound (LB) of
 	 * the result, upper bound (UB) and expected size (E). We use the expected size
 	 * if available, otherwise we use the upper bound if available or the lower bound
-	 * with a "lowest priority". The assumption here is the E when provided should be 
-	 * fairly accurate so there's no need to be overly conservative. In most cases, 
-	 * the size is actually either known completely (e.g. in an index) or nothing
-	 * is know about it. If no size (LB, UB or E) is known for at least one of the 
-	 * parameters of the compare method, then the two are deemed equal (i.e. 0 is
-	 * returned).
+	 * with a "lowest priority" (see {@link QueryMetaData#getSizeEstimate()}). The 
+	 * assumption here is the E when provided should be fairly accurate so there's no 
+	 * need to be overly conservative. The expected size is either known completely 
+	 * (e.g. in an index) or estimated from the graph statistics catalog. Conditions 
+	 * about whose size nothing is known come last.
 	 * </p>
 	 *
 	 * @author Borislav Iordanov
@@ -53,21 +57,30 @@ public class AndToQuery<ResultType> implements ConditionToQuery<ResultType>
 	{
 		public int compare(QueryMetaData o1, QueryMetaData o2)
 		{
-			long left = o1.sizeExpected > -1 ? o1.sizeExpected : 
-						o1.sizeUB > -1 ? o1.sizeUB : o1.sizeLB;
-			if (left == -1)
-				return 0;
-			long right = o2.sizeExpected > -1 ? o2.sizeExpected : 
-						 o2.sizeUB > -1 ? o2.sizeUB : o2.sizeLB;
-			if (right == -1 || left == right)
-				return 0;
-			else if (left > right)
-				return 1;
-			else
-				return -1;				
+			return Long.compare(o1.getSizeEstimate(), o2.getSizeEstimate());
 		}		
 	}
 	
+	/**
+	 * The size of the incidence set of a variable target is best estimated from the 
+	 * type of the links sought, when the conjunction has a type condition.
+	 */
+	private static void estimateIncidenceByLinkType(HyperGraph graph, And and, List<QueryMetaData> L)
+	{
+		HGHandle linkType = null;
+		for (HGQueryCondition sub : and)
+			if (sub instanceof AtomTypeCondition && !hg.isVar(((AtomTypeCondition)sub).getTypeReference()))
+				linkType = ((AtomTypeCondition)sub).typeHandleIfAvailable(graph);
+		if (linkType == null)
+			return;
+		double avg = graph.getStatistics().getAverageIncidence(linkType);
+		if (avg < 0)
+			return;
+		for (QueryMetaData qmd : L)
+			if (qmd.cond instanceof IncidentCondition && hg.isVar(((IncidentCondition)qmd.cond).getTargetRef()))
+				qmd.sizeExpected = Math.round(avg);
+	}
+	
 	private static BySizeComparator bySizeComparator = new BySizeComparator();
 	
 	public QueryMetaData getMetaData(HyperGraph graph, HGQueryCondition condition)
@@ -160,8 +173,20 @@ public class AndToQuery<ResultType> implements ConditionToQuery<ResultType>
 		HGQuery result = null;
 		HGQueryCondition c1 = null, c2 = null;
 		
-		// First ORA sets - we just build up nested zig-zag intersections
-		if (ORA.size() > 1)
+		estimateIncidenceByLinkType(graph, and, ORA);
+		
+		// First ORA sets - three or more are intersected all at once with a leapfrog
+		// intersection, otherwise we just build up nested zig-zag intersections
+		if (ORA.size() > 2)
+		{
+			Collections.sort(ORA, bySizeComparator);
+			List<HGQuery> queries = new ArrayList<HGQuery>();
+			for (QueryMetaData qmd : ORA)
+				queries.add(QueryCompile.translate(graph, qmd.cond));
+			result = new LeapfrogIntersectionQuery(queries);
+			result.setHyperGraph(graph);
+		}
+		else if (ORA.size() > 1)
 		{
 			Collections.sort(ORA, bySizeComparator);
 			Iterator<QueryMetaData> i = ORA.iterator();
@@ -170,12 +195,14 @@ public class AndToQuery<ResultType> implements ConditionToQuery<ResultType>
 			result = new IntersectionQuery(QueryCompile.translate(graph, c1),// toQueryMap.get(c1.getClass()).getQuery(graph, c1), 
 			        QueryCompile.translate(graph, c2), //toQueryMap.get(c2.getClass()).getQuery(graph, c2),
 										   new ZigZagIntersectionResult.Combiner());
+			result.setHyperGraph(graph);
 			while (i.hasNext())
 			{
 				c1 = i.next().cond;
 				result = new IntersectionQuery(result, 
 				                               QueryCompile.translate(graph, c1), //toQueryMap.get(c1.getClass()).getQuery(graph, c1),
 											   new ZigZagIntersectionResult.Combiner());
+				result.setHyperGraph(graph);
 			}
 		}
 		else if (ORA.size() == 1)
@@ -196,6 +223,7 @@ public class AndToQuery<ResultType> implements ConditionToQuery<ResultType>
 				result = new IntersectionQuery(QueryCompile.translate(graph, c1), //toQueryMap.get(c1.getClass()).getQuery(graph, c1), 
 				                               QueryCompile.translate(graph, c2), //toQueryMap.get(c2.getClass()).getQuery(graph, c2), 
 											   new SortedIntersectionResult.Combiner()); 
+				result.setHyperGraph(graph);
 			}
 			while (i.hasNext())
 			{
@@ -203,6 +231,7 @@ public class AndToQuery<ResultType> implements ConditionToQuery<ResultType>
 				result = new IntersectionQuery(result, 
 				                               QueryCompile.translate(graph, c1), // toQueryMap.get(c1.getClass()).getQuery(graph, c1), 
 											   new SortedIntersectionResult.Combiner());					
+				result.setHyperGraph(graph);
 			}						
 		}
 		else if (O.size() == 1)
@@ -211,9 +240,12 @@ public class AndToQuery<ResultType> implements ConditionToQuery<ResultType>
 			if (result == null)
 				result = QueryCompile.translate(graph, c1); // toQueryMap.get(c1.getClass()).getQuery(graph, c1);
 			else
+			{
 				result = new IntersectionQuery(result, 
 				                               QueryCompile.translate(graph, c1), //toQueryMap.get(c1.getClass()).getQuery(graph, c1),
 											   new SortedIntersectionResult.Combiner());
+				result.setHyperGraph(graph);
+			}
 		}
 		
 		if (result == null)
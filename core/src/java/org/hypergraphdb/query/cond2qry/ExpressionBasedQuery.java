@@ -69,7 +69,7 @@ public class ExpressionBasedQuery<ResultType> extends HGQuery<ResultType>
 	    {
 	        indexer.setType(type);
 	        HGIndex<Key, HGPersistentHandle> idx = graph.getIndexManager().getIndex(indexer);
-	        if (idx != null)
+	        if (idx != null && graph.getIndexManager().isComplete(indexer))
 	            return new Pair<HGHandle, HGIndex<Key, HGPersistentHandle>>(type, idx);
 	        else
 	            type = typeWalk.hasNext() ? typeWalk.next().getSecond() : null;
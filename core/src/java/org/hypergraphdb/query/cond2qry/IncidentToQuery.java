@@ -25,7 +25,8 @@ public class IncidentToQuery implements ConditionToQuery<HGHandle>
 		IncidentCondition ic = (IncidentCondition)c;
 		if (hg.isVar(ic.getTargetRef()))
 		{
-			x.sizeExpected = 1000; // incidence sets are usually small...
+			double avg = graph.getStatistics().getAverageIncidence();
+			x.sizeExpected = avg < 0 ? 1000 : Math.round(avg); // incidence sets are usually small...
 		}
 		else
 		{
@@ -18,6 +18,7 @@ import org.hypergraphdb.query.IncidentCondition;
 import org.hypergraphdb.query.LinkCondition;
 import org.hypergraphdb.query.QueryCompile;
 import org.hypergraphdb.query.impl.IntersectionQuery;
+import org.hypergraphdb.query.impl.LeapfrogIntersectionQuery;
 //import org.hypergraphdb.query.impl.SortedIntersectionResult;
 import org.hypergraphdb.query.impl.ZigZagIntersectionResult;
 import org.hypergraphdb.util.Ref;
@@ -51,6 +52,8 @@ public class LinkToQuery implements ConditionToQuery
 			return HGQuery.NOP();
 		else if (L.size() == 1)
 			return L.get(0);
+		else if (L.size() > 2)
+			return new LeapfrogIntersectionQuery<HGHandle>(L);
 		else
 		{
 			Iterator<HGQuery<HGHandle>> i = L.iterator();
@@ -96,6 +96,27 @@ public class QueryMetaData implements Cloneable
 		return sizeExpected < 0 ? (sizeUB - sizeLB)/2 : sizeExpected;
 	}
 	
+	/**
+	 * <p>
+	 * Return the best available estimate of the result size for ordering conditions
+	 * by selectivity: the expected size, filled from the statistics catalog 
+	 * ({@link org.hypergraphdb.HGStatistics}) by most translators, otherwise the upper bound 
+	 * and otherwise the lower bound. <code>Long.MAX_VALUE</code> is returned when nothing
+	 * is known.
+	 * </p>
+	 */
+	public long getSizeEstimate()
+	{
+		if (sizeExpected > -1)
+			return sizeExpected;
+		else if (sizeUB > -1)
+			return sizeUB;
+		else if (sizeLB > -1)
+			return sizeLB;
+		else
+			return Long.MAX_VALUE;
+	}
+	
 	public QueryMetaData clone()
 	{
 		return new QueryMetaData(ordered, randomAccess, sizeLB, sizeUB, sizeExpected, predicateCost); 
@@ -0,0 +1,466 @@
+/*
+ * This file is part of the HyperGraphDB source distribution. This is copyrighted
+ * software. For permitted uses, licensing options and redistribution, please see
+ * the LicensingInformation file at the root level of the distribution.
+ *
+ * Copyright (c) 2005-2010 Kobrix Software, Inc.  All rights reserved.
+ */
+package org.hypergraphdb.query.cond2qry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.HGQuery;
+import org.hypergraphdb.HGQuery.hg;
+import org.hypergraphdb.HGRandomAccessResult;
+import org.hypergraphdb.HGSearchResult;
+import org.hypergraphdb.HyperGraph;
+import org.hypergraphdb.query.*;
+import org.hypergraphdb.transaction.HGTransaction;
+import org.hypergraphdb.util.Ref;
+import org.hypergraphdb.util.Var;
+
+/**
+ * <p>
+ * A cache of compiled query plans used by {@link HyperGraph#find(HGQueryCondition)}. A
+ * condition is reduced to its <em>shape</em>: the structure of the expression, the types,
+ * dimensions, operators and link targets it refers to, with the following constants
+ * lifted out as parameters:
+ * </p>
+ * <ul>
+ * <li>the value of an {@link AtomPartCondition} (e.g. <code>hg.eq("name", x)</code>),</li>
+ * <li>the target of an {@link IncidentCondition},</li>
+ * <li>the value of an {@link AtomValueCondition} or a {@link TypedValueCondition} when
+ * it is a string, a number, a boolean or a character, since primitive values have no
+ * indexed parts that the compiler could take into account.</li>
+ * </ul>
+ * <p>
+ * The first condition of a given shape is compiled with the parameters replaced by query
+ * variables (see {@link HGQuery#var(String)}) and later conditions of the same shape reuse
+ * the compiled query by binding the variables to their own values. Plans compiled that
+ * way are valid for any value of the parameters, but they don't benefit from value
+ * specific statistics. Conditions with other kinds of sub-conditions, or with variables
+ * of their own, are compiled every time as before.
+ * </p>
+ * <p>
+ * Cached plans depend on the types and indices defined in the graph. The cache is
+ * invalidated by the {@link org.hypergraphdb.HGIndexManager} and the
+ * {@link org.hypergraphdb.HGTypeSystem} whenever they change. Applications that modify
+ * the type hierarchy by other means, such as adding <code>HGSubsumes</code> links
+ * directly, should call {@link #invalidate()}. When the cache is invalidated within a
+ * transaction, it is invalidated again when the transaction ends and no plans are
+ * cached while such transactions are pending, since concurrent transactions may still
+ * see the state before the change.
+ * </p>
+ *
+ * @author Borislav Iordanov
+ */
+@SuppressWarnings({"unchecked", "rawtypes"})
+public class QueryPlanCache
+{
+	private static final Object PARAM = new Object() { public String toString() { return "?"; } };
+
+	private static final class Plan
+	{
+		HGQuery<Object> query;
+		Var<Object> [] params;
+		// The parameter values last bound on each thread, to avoid rebinding on every call.
+		ThreadLocal<Object[]> bound = new ThreadLocal<Object[]>();
+
+		void bind(Object [] values)
+		{
+			if (bound.get() == values)
+				return;
+			for (int i = 0; i < params.length; i++)
+				params[i].set(values[i]);
+			bound.set(values);
+		}
+	}
+
+	private HyperGraph graph;
+	private int maxSize;
+	private ConcurrentHashMap<List<Object>, Plan> plans = new ConcurrentHashMap<List<Object>, Plan>();
+	private AtomicLong version = new AtomicLong(0);
+	// The number of transactions that have invalidated the cache and are not finished yet.
+	private AtomicInteger pending = new AtomicInteger(0);
+
+	private void transactionEnded(HGTransaction tx, boolean committed)
+	{
+		if (tx.getAttribute(this) == null)
+			return;
+		tx.removeAttribute(this);
+		pending.decrementAndGet();
+		// A nested transaction passes the change on to its parent, if it commits.
+		if (committed && tx.getParent() != null)
+			invalidate(tx.getParent());
+		else
+			invalidate(null);
+	}
+
+	private static boolean isPrimitiveValue(Object x)
+	{
+		return x instanceof String || x instanceof Number ||
+			   x instanceof Boolean || x instanceof Character;
+	}
+
+	private static Object typeKey(Ref<?> typeRef)
+	{
+		Object t = typeRef.get();
+		return t instanceof HGHandle ? ((HGHandle)t).getPersistent() : t;
+	}
+
+	private static Object handleKey(Ref<HGHandle> ref)
+	{
+		HGHandle h = ref.get();
+		return h == null ? null : h.getPersistent();
+	}
+
+	/**
+	 * Append the shape of <code>c</code> to <code>key</code> and its parameter values
+	 * to <code>params</code>. Return <code>false</code> if the condition can't be cached.
+	 */
+	private static boolean shape(HGQueryCondition c, List<Object> key, List<Object> params)
+	{
+		key.add(c.getClass());
+		if (c instanceof And || c instanceof Or)
+		{
+			List<HGQueryCondition> L = (List<HGQueryCondition>)c;
+			key.add(L.size());
+			for (HGQueryCondition sub : L)
+				if (!shape(sub, key, params))
+					return false;
+		}
+		else if (c instanceof AtomTypeCondition)
+		{
+			Ref<?> type = ((AtomTypeCondition)c).getTypeReference();
+			if (hg.isVar(type))
+				return false;
+			key.add(typeKey(type));
+		}
+		else if (c instanceof TypePlusCondition)
+		{
+			TypePlusCondition tc = (TypePlusCondition)c;
+			key.add(tc.getJavaClass());
+			key.add(tc.getBaseType() == null ? null : tc.getBaseType().getPersistent());
+		}
+		else if (c instanceof AtomPartCondition)
+		{
+			AtomPartCondition pc = (AtomPartCondition)c;
+			if (hg.isVar(pc.getValueReference()))
+				return false;
+			key.add(Arrays.asList(pc.getDimensionPath()));
+			key.add(pc.getOperator());
+			key.add(PARAM);
+			params.add(pc.getValue());
+		}
+		else if (c instanceof IncidentCondition)
+		{
+			Ref<HGHandle> target = ((IncidentCondition)c).getTargetRef();
+			if (hg.isVar(target))
+				return false;
+			key.add(PARAM);
+			params.add(target.get());
+		}
+		else if (c instanceof TypedValueCondition)
+		{
+			TypedValueCondition vc = (TypedValueCondition)c;
+			if (hg.isVar(vc.getTypeReference()) || hg.isVar(vc.getValueReference()) ||
+				!isPrimitiveValue(vc.getValue()))
+				return false;
+			key.add(typeKey(vc.getTypeReference()));
+			key.add(vc.getOperator());
+			key.add(vc.getValue().getClass());
+			params.add(vc.getValue());
+		}
+		else if (c.getClass() == AtomValueCondition.class)
+		{
+			AtomValueCondition vc = (AtomValueCondition)c;
+			if (hg.isVar(vc.getValueReference()) || !isPrimitiveValue(vc.getValue()))
+				return false;
+			key.add(vc.getOperator());
+			key.add(vc.getValue().getClass());
+			params.add(vc.getValue());
+		}
+		else if (c instanceof LinkCondition)
+		{
+			Set<Object> targets = new HashSet<Object>();
+			for (Ref<HGHandle> t : ((LinkCondition)c).targets())
+				if (hg.isVar(t))
+					return false;
+				else
+					targets.add(handleKey(t));
+			key.add(targets);
+		}
+		else if (c instanceof OrderedLinkCondition)
+		{
+			List<Object> targets = new ArrayList<Object>();
+			for (Ref<HGHandle> t : ((OrderedLinkCondition)c).targets())
+				if (hg.isVar(t))
+					return false;
+				else
+					targets.add(handleKey(t));
+			key.add(targets);
+		}
+		else if (c instanceof ArityCondition)
+		{
+			Ref<Integer> arity = ((ArityCondition)c).getArityReference();
+			if (hg.isVar(arity))
+				return false;
+			key.add(arity.get());
+		}
+		else
+			return false;
+		return true;
+	}
+
+	/**
+	 * Make a copy of <code>c</code> with its parameters replaced by the given variables,
+	 * in the order in which {@link #shape(HGQueryCondition, List, List)} collects them.
+	 */
+	private static HGQueryCondition instantiate(HGQueryCondition c, Var<Object> [] params, int [] next)
+	{
+		if (c instanceof And || c instanceof Or)
+		{
+			List<HGQueryCondition> result = c instanceof And ? new And() : new Or();
+			for (HGQueryCondition sub : (List<HGQueryCondition>)c)
+				result.add(instantiate(sub, params, next));
+			return (HGQueryCondition)result;
+		}
+		else if (c instanceof AtomTypeCondition)
+			return new AtomTypeCondition(((AtomTypeCondition)c).getTypeReference());
+		else if (c instanceof TypePlusCondition)
+		{
+			TypePlusCondition tc = (TypePlusCondition)c;
+			return tc.getBaseType() != null ? new TypePlusCondition(tc.getBaseType())
+											: new TypePlusCondition(tc.getJavaClass());
+		}
+		else if (c instanceof AtomPartCondition)
+		{
+			AtomPartCondition pc = (AtomPartCondition)c;
+			return new AtomPartCondition(pc.getDimensionPath().clone(), params[next[0]++], pc.getOperator());
+		}
+		else if (c instanceof IncidentCondition)
+			return new IncidentCondition((Ref)params[next[0]++]);
+		else if (c instanceof TypedValueCondition)
+		{
+			TypedValueCondition vc = (TypedValueCondition)c;
+			return new TypedValueCondition(vc.getTypeReference(), params[next[0]++], vc.getOperator());
+		}
+		else if (c instanceof AtomValueCondition)
+			return new AtomValueCondition(params[next[0]++], ((AtomValueCondition)c).getOperator());
+		else if (c instanceof LinkCondition)
+		{
+			Set<Ref<HGHandle>> targets = ((LinkCondition)c).targets();
+			return new LinkCondition(targets.toArray(new Ref[targets.size()]));
+		}
+		else if (c instanceof OrderedLinkCondition)
+			return new OrderedLinkCondition(((OrderedLinkCondition)c).targets().clone());
+		else if (c instanceof ArityCondition)
+			return new ArityCondition(((ArityCondition)c).getArity());
+		else
+			throw new IllegalArgumentException("Unexpected condition in query plan: " + c);
+	}
+
+	private Plan compile(HGQueryCondition condition, Object [] values)
+	{
+		Plan plan = new Plan();
+		plan.query = HGQuery.make(Object.class, graph);
+		plan.params = new Var[values.length];
+		for (int i = 0; i < values.length; i++)
+			plan.params[i] = plan.query.var("$p" + i);
+		plan.bind(values);
+		plan.query.compile(instantiate(condition, plan.params, new int[1]));
+		return plan;
+	}
+
+	/**
+	 * @param graph The graph whose queries are cached.
+	 * @param maxSize The maximum number of plans kept. When it is reached, the cache
+	 * is emptied. A value of 0 or less disables caching.
+	 */
+	public QueryPlanCache(HyperGraph graph, int maxSize)
+	{
+		this.graph = graph;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * <p>
+	 * Execute a query for the given condition, reusing a previously compiled plan for
+	 * conditions of the same shape when possible.
+	 * </p>
+	 */
+	public <T> HGSearchResult<T> find(HGQueryCondition condition)
+	{
+		List<Object> key = new ArrayList<Object>();
+		List<Object> paramList = new ArrayList<Object>();
+		if (maxSize <= 0 || !shape(condition, key, paramList))
+			return HGQuery.<T>make(graph, condition).execute();
+		Object [] values = paramList.toArray();
+		Plan plan = plans.get(key);
+		if (plan == null)
+		{
+			long compiledAt = version.get();
+			plan = compile(condition, values);
+			if (plans.size() >= maxSize)
+				plans.clear();
+			// Don't keep a plan compiled while the types or indices were being modified.
+			if (version.get() == compiledAt && pending.get() == 0)
+				plans.putIfAbsent(key, plan);
+		}
+		plan.bind(values);
+		HGSearchResult<Object> rs = plan.query.execute();
+		if (values.length == 0)
+			return (HGSearchResult<T>)rs;
+		else if (rs instanceof HGRandomAccessResult)
+			return (HGSearchResult<T>)new BoundRandomAccessResult<Object>((HGRandomAccessResult<Object>)rs, plan, values);
+		else
+			return (HGSearchResult<T>)new BoundResult<Object>(rs, plan, values);
+	}
+
+	/**
+	 * <p>
+	 * Return the compiled query cached for conditions of the same shape as the given one
+	 * or <code>null</code> if there's none. The parameters of the returned query are
+	 * variables named <code>$p0</code>, <code>$p1</code> etc.
+	 * </p>
+	 */
+	public HGQuery<?> getPlan(HGQueryCondition condition)
+	{
+		List<Object> key = new ArrayList<Object>();
+		if (!shape(condition, key, new ArrayList<Object>()))
+			return null;
+		Plan plan = plans.get(key);
+		return plan == null ? null : plan.query;
+	}
+
+	/**
+	 * <p>Discard all cached plans.</p>
+	 */
+	public void invalidate()
+	{
+		invalidate(graph.getTransactionManager().getContext().getCurrent());
+	}
+
+	private void invalidate(HGTransaction tx)
+	{
+		if (tx != null && tx.getAttribute(this) == null)
+		{
+			final HGTransaction changed = tx;
+			tx.setAttribute(this, Boolean.TRUE);
+			pending.incrementAndGet();
+			tx.addCommitAction(new Runnable() {
+				public void run() { transactionEnded(changed, true); }
+			});
+			tx.addAbortAction(new Runnable() {
+				public void run() { transactionEnded(changed, false); }
+			});
+		}
+		version.incrementAndGet();
+		plans.clear();
+	}
+
+	/**
+	 * <p>Return the number of plans currently cached.</p>
+	 */
+	public int size()
+	{
+		return plans.size();
+	}
+
+	/**
+	 * Predicates of a plan may read its parameters at any time while the results are
+	 * iterated, so the parameters are bound again before each call in case the same
+	 * thread has executed the plan with other values in the meantime.
+	 */
+	private static class BoundResult<T> implements HGSearchResult<T>
+	{
+		HGSearchResult<T> rs;
+		Plan plan;
+		Object [] values;
+
+		BoundResult(HGSearchResult<T> rs, Plan plan, Object [] values)
+		{
+			this.rs = rs;
+			this.plan = plan;
+			this.values = values;
+		}
+
+		public boolean hasNext()
+		{
+			plan.bind(values);
+			return rs.hasNext();
+		}
+
+		public T next()
+		{
+			plan.bind(values);
+			return rs.next();
+		}
+
+		public boolean hasPrev()
+		{
+			plan.bind(values);
+			return rs.hasPrev();
+		}
+
+		public T prev()
+		{
+			plan.bind(values);
+			return rs.prev();
+		}
+
+		public void remove()
+		{
+			rs.remove();
+		}
+
+		public T current()
+		{
+			return rs.current();
+		}
+
+		public void close()
+		{
+			rs.close();
+		}
+
+		public boolean isOrdered()
+		{
+			return rs.isOrdered();
+		}
+	}
+
+	private static class BoundRandomAccessResult<T> extends BoundResult<T> implements HGRandomAccessResult<T>
+	{
+		BoundRandomAccessResult(HGRandomAccessResult<T> rs, Plan plan, Object [] values)
+		{
+			super(rs, plan, values);
+		}
+
+		public GotoResult goTo(T value, boolean exactMatch)
+		{
+			plan.bind(values);
+			return ((HGRandomAccessResult<T>)rs).goTo(value, exactMatch);
+		}
+
+		public void goAfterLast()
+		{
+			plan.bind(values);
+			((HGRandomAccessResult<T>)rs).goAfterLast();
+		}
+
+		public void goBeforeFirst()
+		{
+			plan.bind(values);
+			((HGRandomAccessResult<T>)rs).goBeforeFirst();
+		}
+	}
+}
@@ -70,6 +70,7 @@ import org.hypergraphdb.query.impl.SortedIntersectionResult;
 import org.hypergraphdb.query.impl.TraversalBasedQuery;
 import org.hypergraphdb.query.impl.UnionQuery;
 //import org.hypergraphdb.query.impl.ZigZagIntersectionResult;
+import org.hypergraphdb.storage.HGIndexStats;
 import org.hypergraphdb.type.HGAtomType;
 import org.hypergraphdb.util.ArrayBasedSet;
 import org.hypergraphdb.util.Pair;
@@ -144,11 +145,9 @@ public class ToQueryMap extends HashMap<Class<?>, ConditionToQuery<?>> implement
 				x.predicateCost = 1;
 				if (hg.isVar(ac.getTypeReference()))
 				{
-					// TODO: maybe we can get better estimates here if we collect some global
-					// database statistics, e.g. in the HGStats bean
-//					x.sizeExpected = ...
-//					x.sizeLB = ...
-//					x.sizeUB = ..
+					double avg = graph.getStatistics().getAverageInstanceCount();
+					if (avg > -1)
+						x.sizeExpected = Math.round(avg);
 				}
 				else
 				{
@@ -445,7 +444,16 @@ public class ToQueryMap extends HashMap<Class<?>, ConditionToQuery<?>> implement
 			{
 			    IndexCondition ic = (IndexCondition)c;
 			    if (ic.getOperator() == ComparisonOperator.EQ)
-			        return QueryMetaData.ORACCESS.clone(c);
+			    {
+			        QueryMetaData qmd = QueryMetaData.ORACCESS.clone(c);
+			        if (!HGQuery.hg.isVar(ic.getKeyReference()))
+			        {
+			            HGIndexStats.Count n = ic.getIndex().stats().valuesOfKey(ic.getKey(), 1, true);
+			            if (n != null)
+			                qmd.sizeExpected = n.value();
+			        }
+			        return qmd;
+			    }
 			    else
 			    {
 			        QueryMetaData qmd = QueryMetaData.MISTERY.clone(c);
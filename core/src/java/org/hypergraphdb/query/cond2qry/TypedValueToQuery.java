@@ -55,7 +55,7 @@ public class TypedValueToQuery implements ConditionToQuery
 						new SearchableBasedQuery((HGSearchable<?, ?>) type, value,
 								vc.getOperator()), new SearchableBasedQuery(graph
 								.getIndexManager().getIndexByValue(), null,
-								ComparisonOperator.EQ)), new AtomTypeCondition(
+								ComparisonOperator.EQ), graph.getConfig().getPipeBatchSize()), new AtomTypeCondition(
 						typeHandle)).execute();
 			else
 				// else, we need to scan all atoms of the given type
@@ -88,6 +88,12 @@ public class TypedValueToQuery implements ConditionToQuery
 			  || type instanceof HGOrderedSearchable))
 		{
 			qmd = QueryMetaData.ORDERED.clone(c);
+			if (!hg.isVar(vc.getValueReference()))
+			{
+				long n = graph.getStatistics().estimateValueCount(typeHandle, vc.getOperator(), vc.getValue());
+				if (n > -1)
+					qmd.sizeExpected = n;
+			}
 		}
 		else
 		{
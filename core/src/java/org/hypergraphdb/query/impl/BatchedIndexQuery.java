@@ -0,0 +1,77 @@
+/*
+ * This file is part of the HyperGraphDB source distribution. This is copyrighted
+ * software. For permitted uses, licensing options and redistribution, please see
+ * the LicensingInformation file at the root level of the distribution.
+ *
+ * Copyright (c) 2005-2010 Kobrix Software, Inc.  All rights reserved.
+ */
+package org.hypergraphdb.query.impl;
+
+import java.util.List;
+
+import org.hypergraphdb.HGIndex;
+import org.hypergraphdb.HGSearchResult;
+import org.hypergraphdb.query.ComparisonOperator;
+import org.hypergraphdb.util.ArrayBasedSet;
+
+/**
+ * <p>
+ * A <code>KeyBasedQuery</code> looking up several keys of an index at once, with
+ * {@link HGIndex#findBatch(List)}. The key of this query is the list of index keys
+ * whose values are sought.
+ * </p>
+ *
+ * @author Borislav Iordanov
+ */
+public class BatchedIndexQuery<Key, Value> extends KeyBasedQuery<List<Key>, Value>
+{
+	private HGIndex<Key, Value> index;
+	private List<Key> keys;
+
+	/**
+	 * <p>
+	 * Look up each of the given keys of an index in turn, in the order given, with
+	 * {@link HGIndex#find(Object)}. This is the default implementation of
+	 * {@link HGIndex#findBatch(List)}.
+	 * </p>
+	 *
+	 * @param index The index.
+	 * @param keys The keys whose values are sought.
+	 * @return A <code>HGSearchResult</code> over the values of all keys, grouped by key.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <Key, Value> HGSearchResult<Value> findEach(HGIndex<Key, Value> index, List<Key> keys)
+	{
+		return new PipedResult<Key, Value>(
+				new ArrayBasedSet<Key>((Key[])keys.toArray()).getSearchResult(),
+				new SearchableBasedQuery<Key, Value>(index, (Key)null, ComparisonOperator.EQ),
+				true);
+	}
+
+	public BatchedIndexQuery(HGIndex<Key, Value> index)
+	{
+		this.index = index;
+	}
+
+	public HGSearchResult<Value> execute()
+	{
+		if (keys == null)
+			throw new NullPointerException("Keys not set.");
+		return index.findBatch(keys);
+	}
+
+	public void setKey(List<Key> keys)
+	{
+		this.keys = keys;
+	}
+
+	public List<Key> getKey()
+	{
+		return keys;
+	}
+
+	public HGIndex<Key, Value> getIndex()
+	{
+		return index;
+	}
+}
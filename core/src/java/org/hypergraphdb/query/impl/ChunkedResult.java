@@ -0,0 +1,110 @@
+/*
+ * This file is part of the HyperGraphDB source distribution. This is copyrighted
+ * software. For permitted uses, licensing options and redistribution, please see
+ * the LicensingInformation file at the root level of the distribution.
+ *
+ * Copyright (c) 2005-2010 Kobrix Software, Inc.  All rights reserved.
+ */
+package org.hypergraphdb.query.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.hypergraphdb.HGSearchResult;
+
+/**
+ * <p>
+ * A <code>ChunkedResult</code> groups the elements of another result set into
+ * consecutive lists of a fixed size. All chunks are full, except possibly the last one.
+ * The underlying result set is always positioned on the last element of the current
+ * chunk, so moving back to the previous chunk walks back over the current one.
+ * </p>
+ *
+ * @author Borislav Iordanov
+ */
+public class ChunkedResult<T> implements HGSearchResult<List<T>>
+{
+	private HGSearchResult<T> in;
+	private int chunkSize;
+	private List<T> current = null;
+	private int position = -1;
+
+	/**
+	 * @param in The result set whose elements are grouped, it is closed when
+	 * this object is closed.
+	 * @param chunkSize The number of elements in each chunk, must be positive.
+	 */
+	public ChunkedResult(HGSearchResult<T> in, int chunkSize)
+	{
+		if (chunkSize < 1)
+			throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+		this.in = in;
+		this.chunkSize = chunkSize;
+	}
+
+	public List<T> current()
+	{
+		if (current == null)
+			throw new NoSuchElementException();
+		return current;
+	}
+
+	public void close()
+	{
+		in.close();
+	}
+
+	public boolean isOrdered()
+	{
+		return false;
+	}
+
+	public boolean hasPrev()
+	{
+		return position > 0;
+	}
+
+	public List<T> prev()
+	{
+		if (!hasPrev())
+			throw new NoSuchElementException();
+		T last = null;
+		for (int i = current.size(); i > 0; i--)
+			last = in.prev();
+		// The previous chunk is not the last one, so it is full.
+		List<T> chunk = new ArrayList<T>(chunkSize);
+		chunk.add(last);
+		for (int i = 1; i < chunkSize; i++)
+			chunk.add(in.prev());
+		for (int i = 1; i < chunkSize; i++)
+			in.next();
+		Collections.reverse(chunk);
+		position--;
+		return current = chunk;
+	}
+
+	public boolean hasNext()
+	{
+		return in.hasNext();
+	}
+
+	public List<T> next()
+	{
+		if (!hasNext())
+			throw new NoSuchElementException();
+		List<T> chunk = new ArrayList<T>(chunkSize);
+		do
+		{
+			chunk.add(in.next());
+		} while (chunk.size() < chunkSize && in.hasNext());
+		position++;
+		return current = chunk;
+	}
+
+	public void remove()
+	{
+		throw new UnsupportedOperationException();
+	}
+}
@@ -10,6 +10,7 @@ package org.hypergraphdb.query.impl;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 
 import org.hypergraphdb.HGQuery;
 import org.hypergraphdb.HGSearchResult;
@@ -45,8 +46,18 @@ public class IntersectionQuery<T> extends HGQuery<T> implements Iterable<HGQuery
 	public HGSearchResult<T> execute()
 	{
 		//combiner.reset();
-		HGSearchResult<T> leftResult = left.execute();
-		HGSearchResult<T> rightResult = right.execute();
+		HGSearchResult<T> leftResult, rightResult;
+		if (ParallelExecution.isEnabled(graph))
+		{
+			List<HGSearchResult<T>> results = ParallelExecution.executeAll(graph, Arrays.asList(left, right));
+			leftResult = results.get(0);
+			rightResult = results.get(1);
+		}
+		else
+		{
+			leftResult = left.execute();
+			rightResult = right.execute();
+		}
 		if (!leftResult.hasNext() || !rightResult.hasNext())
 		{
 			leftResult.close();
@@ -0,0 +1,133 @@
+/*
+ * This file is part of the HyperGraphDB source distribution. This is copyrighted
+ * software. For permitted uses, licensing options and redistribution, please see
+ * the LicensingInformation file at the root level of the distribution.
+ *
+ * Copyright (c) 2005-2010 Kobrix Software, Inc.  All rights reserved.
+ */
+package org.hypergraphdb.query.impl;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.hypergraphdb.HGQuery;
+import org.hypergraphdb.HGRandomAccessResult;
+import org.hypergraphdb.HGSearchResult;
+
+/**
+ * <p>
+ * A <code>LeapfrogIntersectionQuery</code> intersects the results of several queries
+ * with a single {@link LeapfrogIntersectionResult}. All queries must produce sorted
+ * result sets, which should be random access. The results of any queries that are not
+ * random access are intersected with the leapfrog intersection of the others through
+ * {@link SortedIntersectionResult}s.
+ * </p>
+ *
+ * @author Borislav Iordanov
+ */
+@SuppressWarnings("unchecked")
+public class LeapfrogIntersectionQuery<T> extends HGQuery<T> implements Iterable<HGQuery<T>>
+{
+	private List<HGQuery<T>> queries;
+
+	/**
+	 * <p>Construct an intersection of the given queries.</p>
+	 *
+	 * @param queries The queries to intersect, preferably in increasing order of the
+	 * expected size of their results. May not be empty.
+	 */
+	public LeapfrogIntersectionQuery(List<HGQuery<T>> queries)
+	{
+		this.queries = queries;
+	}
+
+	public HGSearchResult<T> execute()
+	{
+		if (ParallelExecution.isEnabled(graph))
+			return executeParallel();
+		List<HGSearchResult<T>> results = new ArrayList<HGSearchResult<T>>(queries.size());
+		try
+		{
+			for (HGQuery<T> q : queries)
+			{
+				HGSearchResult<T> rs = q.execute();
+				results.add(rs);
+				if (!rs.hasNext())
+				{
+					for (HGSearchResult<T> x : results)
+						x.close();
+					return (HGSearchResult<T>)HGSearchResult.EMPTY;
+				}
+			}
+			return intersect(results);
+		}
+		catch (RuntimeException ex)
+		{
+			for (HGSearchResult<T> x : results)
+				try { x.close(); } catch (Throwable t) { }
+			throw ex;
+		}
+	}
+
+	private HGSearchResult<T> executeParallel()
+	{
+		List<HGSearchResult<T>> results = ParallelExecution.executeAll(graph, queries);
+		try
+		{
+			boolean empty = false;
+			for (HGSearchResult<T> rs : results)
+				empty = empty || !rs.hasNext();
+			if (!empty)
+				return intersect(results);
+		}
+		catch (RuntimeException ex)
+		{
+			for (HGSearchResult<T> x : results)
+				try { x.close(); } catch (Throwable t) { }
+			throw ex;
+		}
+		for (HGSearchResult<T> x : results)
+			x.close();
+		return (HGSearchResult<T>)HGSearchResult.EMPTY;
+	}
+
+	// Intersect the random access results with a leapfrog intersection and the others, if
+	// a query didn't produce a random access result after all, with sorted intersections
+	// over it.
+	private HGSearchResult<T> intersect(List<HGSearchResult<T>> results)
+	{
+		List<HGRandomAccessResult<T>> randomAccess = new ArrayList<HGRandomAccessResult<T>>(results.size());
+		List<HGSearchResult<T>> others = new ArrayList<HGSearchResult<T>>();
+		for (HGSearchResult<T> rs : results)
+			if (rs instanceof HGRandomAccessResult)
+				randomAccess.add((HGRandomAccessResult<T>)rs);
+			else
+				others.add(rs);
+		HGSearchResult<T> result;
+		if (randomAccess.size() > 1)
+			result = new LeapfrogIntersectionResult<T>(randomAccess);
+		else if (randomAccess.size() == 1)
+			result = randomAccess.get(0);
+		else
+			result = others.remove(0);
+		for (HGSearchResult<T> rs : others)
+			result = new SortedIntersectionResult<T>(result, rs);
+		return result;
+	}
+
+	public List<HGQuery<T>> getQueries()
+	{
+		return queries;
+	}
+
+	public void setQueries(List<HGQuery<T>> queries)
+	{
+		this.queries = queries;
+	}
+
+	public Iterator<HGQuery<T>> iterator()
+	{
+		return queries.iterator();
+	}
+}
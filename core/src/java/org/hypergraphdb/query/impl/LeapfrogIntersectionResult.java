@@ -0,0 +1,279 @@
+/*
+ * This file is part of the HyperGraphDB source distribution. This is copyrighted
+ * software. For permitted uses, licensing options and redistribution, please see
+ * the LicensingInformation file at the root level of the distribution.
+ *
+ * Copyright (c) 2005-2010 Kobrix Software, Inc.  All rights reserved.
+ */
+package org.hypergraphdb.query.impl;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.hypergraphdb.HGRandomAccessResult;
+import org.hypergraphdb.HGSearchResult;
+import org.hypergraphdb.util.HGUtils;
+
+/**
+ * <p>
+ * The <code>LeapfrogIntersectionResult</code> intersects any number of sorted, random
+ * access result sets at once. The first input, the <em>leader</em>, proposes a candidate
+ * and every other input is positioned on it with <code>goTo</code>. When an input
+ * doesn't contain the candidate, the element it lands on becomes the new candidate and
+ * that input becomes the leader. Moving the input that rejected the last candidate in
+ * front keeps the inputs ordered by how selective they have recently been, so that
+ * candidates are first checked against the inputs most likely to reject them.
+ * </p>
+ *
+ * <p>
+ * Compared to a tree of {@link ZigZagIntersectionResult}s, there are no intermediate
+ * result sets: a candidate is sought directly in each input rather than through
+ * nested intersections, each of which repositions its own inputs.
+ * </p>
+ *
+ * @author Borislav Iordanov
+ */
+@SuppressWarnings("unchecked")
+public class LeapfrogIntersectionResult<T> implements HGRandomAccessResult<T>
+{
+	private static final Object UNKNOWN = new Object();
+
+	private HGRandomAccessResult<T> [] inputs;
+	private Object current = UNKNOWN, next = UNKNOWN, prev = UNKNOWN;
+	// The element all inputs are positioned on, if any.
+	private Object positionedAt = UNKNOWN;
+
+	private void promote(int i)
+	{
+		if (i == 0)
+			return;
+		HGRandomAccessResult<T> rs = inputs[i];
+		System.arraycopy(inputs, 0, inputs, 1, i);
+		inputs[0] = rs;
+	}
+
+	/**
+	 * Move all inputs forward to the first element greater or equal to
+	 * <code>candidate</code> common to all of them. The first <code>agreed</code>
+	 * inputs are known to be positioned on the candidate.
+	 */
+	private T leapForward(T candidate, int agreed)
+	{
+		while (agreed < inputs.length)
+		{
+			switch (inputs[agreed].goTo(candidate, false))
+			{
+				case found:
+				{
+					agreed++;
+					break;
+				}
+				case close:
+				{
+					candidate = inputs[agreed].current();
+					promote(agreed);
+					agreed = 1;
+					break;
+				}
+				default:
+					return null;
+			}
+		}
+		return candidate;
+	}
+
+	/**
+	 * Move all inputs backward to the first element smaller or equal to
+	 * <code>candidate</code> common to all of them.
+	 */
+	private T leapBackward(T candidate)
+	{
+		int agreed = 1;
+		while (agreed < inputs.length)
+		{
+			HGRandomAccessResult<T> rs = inputs[agreed];
+			switch (rs.goTo(candidate, false))
+			{
+				case found:
+				{
+					agreed++;
+					continue;
+				}
+				case close:
+					break;
+				default:
+					rs.goAfterLast();
+			}
+			if (!rs.hasPrev())
+				return null;
+			candidate = rs.prev();
+			promote(agreed);
+			agreed = 1;
+		}
+		return candidate;
+	}
+
+	// The leader is the only input whose position matters when moving from the current element.
+	private void reposition()
+	{
+		if (current != UNKNOWN && positionedAt != current)
+			inputs[0].goTo((T)current, true);
+	}
+
+	private T advance()
+	{
+		reposition();
+		if (!inputs[0].hasNext())
+			return null;
+		return leapForward(inputs[0].next(), 1);
+	}
+
+	private T back()
+	{
+		reposition();
+		if (!inputs[0].hasPrev())
+			return null;
+		return leapBackward(inputs[0].prev());
+	}
+
+	public final static class Combiner<T> implements RSCombiner<T>
+	{
+		public HGSearchResult<T> combine(HGSearchResult<T> left, HGSearchResult<T> right)
+		{
+			return new LeapfrogIntersectionResult<T>((HGRandomAccessResult<T>)left, (HGRandomAccessResult<T>)right);
+		}
+	}
+
+	/**
+	 * <p>Construct an intersection of the given result sets. Intersection is fastest when
+	 * they are passed in increasing order of their size.</p>
+	 */
+	public LeapfrogIntersectionResult(HGRandomAccessResult<T>...inputs)
+	{
+		if (inputs.length == 0)
+			throw new IllegalArgumentException("No result sets to intersect.");
+		this.inputs = inputs.clone();
+	}
+
+	public LeapfrogIntersectionResult(List<HGRandomAccessResult<T>> inputs)
+	{
+		this((HGRandomAccessResult<T>[])inputs.toArray(new HGRandomAccessResult<?>[inputs.size()]));
+	}
+
+	public void goBeforeFirst()
+	{
+		for (HGRandomAccessResult<T> rs : inputs)
+			rs.goBeforeFirst();
+		current = next = prev = positionedAt = UNKNOWN;
+	}
+
+	public void goAfterLast()
+	{
+		for (HGRandomAccessResult<T> rs : inputs)
+			rs.goAfterLast();
+		current = prev = positionedAt = UNKNOWN;
+		next = null;
+	}
+
+	public GotoResult goTo(T value, boolean exactMatch)
+	{
+		T found = null;
+		if (exactMatch)
+		{
+			found = value;
+			for (HGRandomAccessResult<T> rs : inputs)
+				if (rs.goTo(value, true) != GotoResult.found)
+				{
+					found = null;
+					break;
+				}
+		}
+		else
+			found = leapForward(value, 0);
+		if (found == null)
+		{
+			// Our own position doesn't change, the leader will be moved back to it if needed.
+			positionedAt = UNKNOWN;
+			if (current == UNKNOWN)
+			{
+				for (HGRandomAccessResult<T> rs : inputs)
+					rs.goBeforeFirst();
+				next = prev = UNKNOWN;
+			}
+			return GotoResult.nothing;
+		}
+		current = positionedAt = found;
+		next = prev = UNKNOWN;
+		return HGUtils.eq(found, value) ? GotoResult.found : GotoResult.close;
+	}
+
+	public void close()
+	{
+		for (HGRandomAccessResult<T> rs : inputs)
+			rs.close();
+	}
+
+	public T current()
+	{
+		if (current == UNKNOWN)
+			throw new NoSuchElementException();
+		else
+			return (T)current;
+	}
+
+	public boolean isOrdered()
+	{
+		return true;
+	}
+
+	public boolean hasPrev()
+	{
+		if (prev == UNKNOWN)
+		{
+			prev = back();
+			positionedAt = prev == null ? UNKNOWN : prev;
+		}
+		return prev != null;
+	}
+
+	public T prev()
+	{
+		if (!hasPrev())
+			throw new NoSuchElementException();
+		else
+		{
+			next = current;
+			current = prev;
+			prev = UNKNOWN;
+			return (T)current;
+		}
+	}
+
+	public boolean hasNext()
+	{
+		if (next == UNKNOWN)
+		{
+			next = advance();
+			positionedAt = next == null ? UNKNOWN : next;
+		}
+		return next != null;
+	}
+
+	public T next()
+	{
+		if (!hasNext())
+			throw new NoSuchElementException();
+		else
+		{
+			prev = current;
+			current = next;
+			next = UNKNOWN;
+			return (T)current;
+		}
+	}
+
+	public void remove()
+	{
+		throw new UnsupportedOperationException();
+	}
+}
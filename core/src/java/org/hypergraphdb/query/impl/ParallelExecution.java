@@ -0,0 +1,387 @@
+/*
+ * This file is part of the HyperGraphDB source distribution. This is copyrighted
+ * software. For permitted uses, licensing options and redistribution, please see
+ * the LicensingInformation file at the root level of the distribution.
+ *
+ * Copyright (c) 2005-2010 Kobrix Software, Inc.  All rights reserved.
+ */
+package org.hypergraphdb.query.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import org.hypergraphdb.HGEnvironment;
+import org.hypergraphdb.HGPersistentHandle;
+import org.hypergraphdb.HGQuery;
+import org.hypergraphdb.HGRandomAccessResult;
+import org.hypergraphdb.HGRandomAccessResult.GotoResult;
+import org.hypergraphdb.HGSearchResult;
+import org.hypergraphdb.HyperGraph;
+import org.hypergraphdb.query.HGQueryConfiguration;
+import org.hypergraphdb.transaction.DefaultTransactionContext;
+import org.hypergraphdb.transaction.HGTransaction;
+import org.hypergraphdb.transaction.HGTransactionContext;
+import org.hypergraphdb.transaction.HGTransactionManager;
+import org.hypergraphdb.util.CountMe;
+import org.hypergraphdb.util.HGUtils;
+import org.hypergraphdb.util.Mapping;
+import org.hypergraphdb.util.VarContext;
+
+/**
+ * <p>
+ * Runs parts of a query concurrently on the {@link HGEnvironment#executor()} when parallel
+ * execution is enabled in the {@link HGQueryConfiguration} of a graph. Each task runs with
+ * a transaction context of its own whose current transaction is that of the calling thread (see
+ * {@link DefaultTransactionContext#DefaultTransactionContext(HGTransactionManager, HGTransaction)}),
+ * and with the query variable values of the calling thread (see {@link VarContext}), so it reads
+ * the same data as the calling thread. Because a transaction records what it reads in a way that
+ * is not safe for concurrent use, queries are executed concurrently only within a read-only
+ * transaction. A transaction begun by a task is a top-level one, it is not nested in the
+ * transaction of the calling thread, and it is aborted if the task leaves it open.
+ * </p>
+ *
+ * <p>
+ * A filtered scan of all values of an index key, such as all atoms of a given type, is split
+ * into partitions of the handle space which are scanned and filtered concurrently, each with its
+ * own cursor. Other filtered results are read in chunks on the calling thread and the predicate
+ * is evaluated concurrently over slices of each chunk.
+ * </p>
+ *
+ * @author Borislav Iordanov
+ */
+public final class ParallelExecution
+{
+	// Slices smaller than that are not worth a task.
+	private static final int MIN_SLICE = 32;
+
+	private ParallelExecution() { }
+
+	/**
+	 * <p>Return <code>true</code> if queries against the given graph may currently be
+	 * executed concurrently.</p>
+	 */
+	public static boolean isEnabled(HyperGraph graph)
+	{
+		if (graph == null || !graph.getConfig().getQueryConfiguration().isParallelExecution())
+			return false;
+		HGTransaction tx = graph.getTransactionManager().getContext().getCurrent();
+		return tx != null && tx.isReadOnly();
+	}
+
+	/**
+	 * <p>
+	 * Run all tasks concurrently and return their results in the order of the tasks. The
+	 * last task runs in the calling thread. All tasks have completed when this method
+	 * returns, even when some of them fail. In that case, the results of the successful
+	 * ones are passed to <code>cleanup</code>, if not <code>null</code>, and the first
+	 * failure is rethrown.
+	 * </p>
+	 */
+	public static <T> List<T> invokeAll(final HyperGraph graph, List<Callable<T>> tasks, Consumer<T> cleanup)
+	{
+		final HGTransactionManager manager = graph.getTransactionManager();
+		final HGTransaction tx = manager.getContext().getCurrent();
+		final Map<VarContext, HashMap<String, Object>> vars = VarContext.getThreadValues();
+		List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+		for (int i = 0; i < tasks.size() - 1; i++)
+		{
+			final Callable<T> task = tasks.get(i);
+			futures.add(HGEnvironment.executor().submit(new Callable<T>() {
+				public T call() throws Exception
+				{
+					return callAttached(manager, tx, vars, task, null);
+				}
+			}));
+		}
+		List<T> results = new ArrayList<T>(tasks.size());
+		Throwable failure = null;
+		T last = null;
+		try
+		{
+			last = callAttached(manager, tx, vars, tasks.get(tasks.size() - 1), manager.getContext());
+		}
+		catch (Throwable t)
+		{
+			failure = t;
+		}
+		// The tasks use our transaction, so we wait for all of them no matter what.
+		boolean interrupted = false;
+		for (Future<T> f : futures)
+		{
+			while (true)
+			{
+				try
+				{
+					results.add(f.get());
+					break;
+				}
+				catch (InterruptedException ex)
+				{
+					interrupted = true;
+				}
+				catch (ExecutionException ex)
+				{
+					if (failure == null)
+						failure = ex.getCause();
+					results.add(null);
+					break;
+				}
+			}
+		}
+		results.add(last);
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		if (failure != null)
+		{
+			if (cleanup != null)
+				for (T x : results)
+					if (x != null)
+						try { cleanup.accept(x); } catch (Throwable t) { }
+			HGUtils.wrapAndRethrow(failure);
+		}
+		return results;
+	}
+
+	/**
+	 * Run a task with a transaction context of its own whose current transaction is <code>tx</code>
+	 * and with the given query variable values. Then attach <code>restore</code> back to the thread,
+	 * or no context if it is <code>null</code>.
+	 */
+	private static <T> T callAttached(HGTransactionManager manager,
+									  HGTransaction tx,
+									  Map<VarContext, HashMap<String, Object>> vars,
+									  Callable<T> task,
+									  HGTransactionContext restore) throws Exception
+	{
+		DefaultTransactionContext tcontext = new DefaultTransactionContext(manager, tx);
+		manager.threadAttach(tcontext);
+		Map<VarContext, HashMap<String, Object>> previous = VarContext.attachThreadValues(vars);
+		try
+		{
+			return task.call();
+		}
+		finally
+		{
+			VarContext.attachThreadValues(previous);
+			try
+			{
+				tcontext.endAll(false);
+			}
+			finally
+			{
+				if (restore == null)
+					manager.threadDetach();
+				else
+					manager.threadAttach(restore);
+			}
+		}
+	}
+
+	/**
+	 * <p>
+	 * Execute all queries concurrently. Each result is positioned before its first element,
+	 * but has already been asked whether it has one.
+	 * </p>
+	 */
+	public static <T> List<HGSearchResult<T>> executeAll(HyperGraph graph, List<HGQuery<T>> queries)
+	{
+		List<Callable<HGSearchResult<T>>> tasks = new ArrayList<Callable<HGSearchResult<T>>>(queries.size());
+		for (final HGQuery<T> q : queries)
+			tasks.add(new Callable<HGSearchResult<T>>() {
+				public HGSearchResult<T> call()
+				{
+					HGSearchResult<T> rs = q.execute();
+					try
+					{
+						rs.hasNext();
+					}
+					catch (RuntimeException ex)
+					{
+						HGUtils.closeNoException(rs);
+						throw ex;
+					}
+					return rs;
+				}
+			});
+		return invokeAll(graph, tasks, new Consumer<HGSearchResult<T>>() {
+			public void accept(HGSearchResult<T> rs) { rs.close(); }
+		});
+	}
+
+	/**
+	 * <p>
+	 * Return the elements of <code>query</code>'s result that satisfy <code>predicate</code>,
+	 * evaluating the predicate concurrently.
+	 * </p>
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> HGSearchResult<T> filter(HyperGraph graph, HGQuery<T> query, Mapping<T, Boolean> predicate)
+	{
+		HGQueryConfiguration config = graph.getConfig().getQueryConfiguration();
+		HGSearchResult<T> input = query.execute();
+		HGSearchResult<T> result = null;
+		try
+		{
+			if (input instanceof HGRandomAccessResult &&
+				input instanceof CountMe &&
+				input.isOrdered() &&
+				config.getParallelism() > 1 &&
+				((CountMe)input).count() >= config.getParallelChunkSize())
+			{
+				List<T> starts = partition(graph, (HGRandomAccessResult<T>)input, config.getParallelism());
+				if (starts.size() > 1)
+				{
+					input.close();
+					input = null;
+					List<T> matches = scanPartitions(graph, query, predicate, starts);
+					if (matches == null)
+						input = query.execute();
+					else
+						result = new ParallelFilteredResult<T>(matches, true);
+				}
+				else
+					((HGRandomAccessResult<T>)input).goBeforeFirst();
+			}
+			if (result == null)
+				result = new ParallelFilteredResult<T>(graph, input, predicate, config.getParallelChunkSize(), config.getParallelism());
+		}
+		catch (Throwable t)
+		{
+			if (input != null)
+				HGUtils.closeNoException(input);
+			HGUtils.wrapAndRethrow(t);
+		}
+		if (result.hasNext())
+			return result;
+		result.close();
+		return (HGSearchResult<T>)HGSearchResult.EMPTY;
+	}
+
+	/**
+	 * Find the first element of each partition of an ordered result set of handles. The
+	 * handle space is split in equal ranges, which yields partitions of similar size
+	 * when handles are random, as UUIDs are.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> List<T> partition(HyperGraph graph, HGRandomAccessResult<T> input, int count)
+	{
+		List<T> starts = new ArrayList<T>(count);
+		if (!input.hasNext())
+			return starts;
+		T first = input.next();
+		starts.add(first);
+		if (!(first instanceof HGPersistentHandle))
+			return starts;
+		int size = graph.getHandleFactory().nullHandle().toByteArray().length;
+		if (size < 2)
+			return starts;
+		for (int i = 1; i < count; i++)
+		{
+			byte [] B = new byte[size];
+			int prefix = (int)(i * 65536L / count);
+			B[0] = (byte)(prefix >> 8);
+			B[1] = (byte)prefix;
+			if (input.goTo((T)graph.getHandleFactory().makeHandle(B), false) == GotoResult.nothing)
+				break;
+			T start = input.current();
+			if (!start.equals(starts.get(starts.size() - 1)))
+				starts.add(start);
+		}
+		return starts;
+	}
+
+	/**
+	 * Filter each partition with its own result set, in parallel. Return <code>null</code>
+	 * if a partition didn't end with the first element of the next one, which means that the
+	 * result set is not ordered like the handle bytes and that partitions overlap.
+	 */
+	private static <T> List<T> scanPartitions(HyperGraph graph,
+											  final HGQuery<T> query,
+											  final Mapping<T, Boolean> predicate,
+											  final List<T> starts)
+	{
+		List<Callable<List<T>>> tasks = new ArrayList<Callable<List<T>>>(starts.size());
+		for (int i = 0; i < starts.size(); i++)
+		{
+			final T start = starts.get(i);
+			final T stop = i + 1 < starts.size() ? starts.get(i + 1) : null;
+			tasks.add(new Callable<List<T>>() {
+				@SuppressWarnings("unchecked")
+				public List<T> call()
+				{
+					HGRandomAccessResult<T> rs = (HGRandomAccessResult<T>)query.execute();
+					try
+					{
+						List<T> matches = new ArrayList<T>();
+						if (rs.goTo(start, true) != GotoResult.found)
+							return null;
+						for (T x = start; ; )
+						{
+							if (predicate.eval(x))
+								matches.add(x);
+							if (!rs.hasNext())
+								return stop == null ? matches : null;
+							x = rs.next();
+							if (x.equals(stop))
+								return matches;
+						}
+					}
+					finally
+					{
+						rs.close();
+					}
+				}
+			});
+		}
+		List<T> matches = new ArrayList<T>();
+		for (List<T> L : invokeAll(graph, tasks, null))
+		{
+			if (L == null)
+				return null;
+			matches.addAll(L);
+		}
+		return matches;
+	}
+
+	/**
+	 * Evaluate the predicate over a chunk of elements, concurrently if it is big enough.
+	 */
+	static <T> void filterChunk(HyperGraph graph,
+								List<T> chunk,
+								final Mapping<T, Boolean> predicate,
+								int parallelism,
+								List<T> matches)
+	{
+		int slices = Math.min(parallelism, chunk.size() / MIN_SLICE);
+		if (slices <= 1)
+		{
+			for (T x : chunk)
+				if (predicate.eval(x))
+					matches.add(x);
+			return;
+		}
+		List<Callable<List<T>>> tasks = new ArrayList<Callable<List<T>>>(slices);
+		for (int i = 0; i < slices; i++)
+		{
+			final List<T> slice = chunk.subList(i * chunk.size() / slices, (i + 1) * chunk.size() / slices);
+			tasks.add(new Callable<List<T>>() {
+				public List<T> call()
+				{
+					List<T> L = new ArrayList<T>();
+					for (T x : slice)
+						if (predicate.eval(x))
+							L.add(x);
+					return L;
+				}
+			});
+		}
+		for (List<T> L : invokeAll(graph, tasks, null))
+			matches.addAll(L);
+	}
+}
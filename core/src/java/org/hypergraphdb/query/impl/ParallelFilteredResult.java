@@ -0,0 +1,136 @@
+/*
+ * This file is part of the HyperGraphDB source distribution. This is copyrighted
+ * software. For permitted uses, licensing options and redistribution, please see
+ * the LicensingInformation file at the root level of the distribution.
+ *
+ * Copyright (c) 2005-2010 Kobrix Software, Inc.  All rights reserved.
+ */
+package org.hypergraphdb.query.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.hypergraphdb.HGSearchResult;
+import org.hypergraphdb.HyperGraph;
+import org.hypergraphdb.util.Mapping;
+
+/**
+ * <p>
+ * A filtered result set that evaluates its predicate concurrently. Elements of the
+ * underlying result set are read in chunks and each chunk is filtered with
+ * {@link ParallelExecution}, in slices. The matches are kept so that the result set
+ * can be traversed backward. A <code>ParallelFilteredResult</code> may also be
+ * constructed from matches that are already known.
+ * </p>
+ *
+ * @author Borislav Iordanov
+ */
+public class ParallelFilteredResult<T> implements HGSearchResult<T>
+{
+	private HyperGraph graph;
+	private HGSearchResult<T> input;
+	private Mapping<T, Boolean> predicate;
+	private int chunkSize;
+	private int parallelism;
+	private boolean ordered;
+	private List<T> matches;
+	private int position = -1;
+
+	/**
+	 * @param graph The graph whose transaction context is used by the tasks.
+	 * @param input The result set to filter, it is closed when this object is closed.
+	 * @param predicate The filtering predicate, it must be safe to use from several threads.
+	 * @param chunkSize The number of elements read from <code>input</code> at a time.
+	 * @param parallelism The maximum number of slices a chunk is split into.
+	 */
+	public ParallelFilteredResult(HyperGraph graph,
+								  HGSearchResult<T> input,
+								  Mapping<T, Boolean> predicate,
+								  int chunkSize,
+								  int parallelism)
+	{
+		this.graph = graph;
+		this.input = input;
+		this.predicate = predicate;
+		this.chunkSize = Math.max(1, chunkSize);
+		this.parallelism = parallelism;
+		this.ordered = input.isOrdered();
+		this.matches = new ArrayList<T>();
+	}
+
+	/**
+	 * @param matches The elements of the result set.
+	 * @param ordered Whether the elements are in their natural order.
+	 */
+	public ParallelFilteredResult(List<T> matches, boolean ordered)
+	{
+		this.matches = matches;
+		this.ordered = ordered;
+	}
+
+	// Filter chunks of the input until there's a new match or the input is exhausted.
+	private boolean fetch()
+	{
+		while (input != null && input.hasNext())
+		{
+			List<T> chunk = new ArrayList<T>(chunkSize);
+			do
+			{
+				chunk.add(input.next());
+			} while (chunk.size() < chunkSize && input.hasNext());
+			int before = matches.size();
+			ParallelExecution.filterChunk(graph, chunk, predicate, parallelism, matches);
+			if (matches.size() > before)
+				return true;
+		}
+		return false;
+	}
+
+	public T current()
+	{
+		if (position < 0)
+			throw new NoSuchElementException();
+		return matches.get(position);
+	}
+
+	public void close()
+	{
+		if (input != null)
+			input.close();
+	}
+
+	public boolean isOrdered()
+	{
+		return ordered;
+	}
+
+	public boolean hasPrev()
+	{
+		return position > 0;
+	}
+
+	public T prev()
+	{
+		if (!hasPrev())
+			throw new NoSuchElementException();
+		return matches.get(--position);
+	}
+
+	public boolean hasNext()
+	{
+		return position + 1 < matches.size() || fetch();
+	}
+
+	public T next()
+	{
+		if (!hasNext())
+			throw new NoSuchElementException();
+		return matches.get(++position);
+	}
+
+	public void remove()
+	{
+		throw new UnsupportedOperationException();
+	}
+}
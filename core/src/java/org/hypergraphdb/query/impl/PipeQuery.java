@@ -9,9 +9,12 @@ package org.hypergraphdb.query.impl;
 
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 
+import org.hypergraphdb.HGIndex;
 import org.hypergraphdb.HGQuery;
 import org.hypergraphdb.HGSearchResult;
+import org.hypergraphdb.query.ComparisonOperator;
 
 
 /**
@@ -20,12 +23,22 @@ import org.hypergraphdb.HGSearchResult;
  * input of another. The piped into query must be a <code>KeyBasedQuery</code>.
  * 
  * </p>
+ * 
+ * <p>
+ * When the piped into query is an equality lookup of a <code>HGIndex</code> (a 
+ * <code>SearchableBasedQuery</code> with the <code>EQ</code> operator) and a batch
+ * size greater than 1 is specified, the input is read in chunks of that many keys and each
+ * chunk is looked up at once with {@link HGIndex#findBatch(List)}. The result contains 
+ * the same values, but within a chunk they may come in the order of the index keys 
+ * rather than in the order of the input.
+ * </p>
  * @author Borislav Iordanov
  */
 public class PipeQuery<Key, Value> extends HGQuery<Value> implements Iterable<HGQuery<Key>>
 {
 	private KeyBasedQuery<Key, Value> out;
 	private HGQuery<Key> in;
+	private int batchSize = 0;
 	
 	public PipeQuery(HGQuery<Key> in, KeyBasedQuery<Key, Value> out)
 	{
@@ -33,10 +46,42 @@ public class PipeQuery<Key, Value> extends HGQuery<Value> implements Iterable<HG
 		this.out = out;
 	}
 	
+	/**
+	 * @param in The input query.
+	 * @param out The piped into query.
+	 * @param batchSize The number of input keys looked up at once when <code>out</code>
+	 * is an index lookup. A value of 1 or less means one key at a time.
+	 */
+	public PipeQuery(HGQuery<Key> in, KeyBasedQuery<Key, Value> out, int batchSize)
+	{
+		this(in, out);
+		this.batchSize = batchSize;
+	}
+	
+	@SuppressWarnings("unchecked")
     public HGSearchResult<Value> execute() 
 	{
+		if (batchSize > 1 && out instanceof SearchableBasedQuery)
+		{
+			SearchableBasedQuery<Key, Value> lookup = (SearchableBasedQuery<Key, Value>)out;
+			if (lookup.getOperator() == ComparisonOperator.EQ && lookup.getSearchable() instanceof HGIndex)
+				return new PipedResult<List<Key>, Value>(
+						new ChunkedResult<Key>(in.execute(), batchSize),
+						new BatchedIndexQuery<Key, Value>((HGIndex<Key, Value>)lookup.getSearchable()),
+						true);
+		}
 		return new PipedResult<Key, Value>(in.execute(), out, true);
-	}
+	}
+	
+	public int getBatchSize()
+	{
+		return batchSize;
+	}
+	
+	public void setBatchSize(int batchSize)
+	{
+		this.batchSize = batchSize;
+	}
 	
     public Iterator<HGQuery<Key>> iterator()
     {
@@ -24,6 +24,14 @@ import org.hypergraphdb.HGSearchResult;
  * intersection) when one of the operands is an indexed set and can be queried
  * directly by a key.
  * </p>
+ * 
+ * <p>
+ * Besides the pipe result of the current input key, the results for the neighbouring keys
+ * may be held on to. Those are positioned on their element closest to the current one, i.e. 
+ * the first element for the next key and the last element for the previous key. The position
+ * of the input is tracked, so that the input can be moved back to the current key when the 
+ * direction of the iteration changes.
+ * </p>
  * @author Borislav Iordanov
  */
 public class PipedResult<Key, Value> implements HGSearchResult<Value> 
@@ -33,8 +41,18 @@ public class PipedResult<Key, Value> implements HGSearchResult<Value>
 	private HGSearchResult<Value> currentPiped = null, 
 						          nextPiped = null, 
 						          previousPiped = null;	
+	// Positions in the input of the keys of the piped results and of the input itself.
+	private int currentPos = -1, nextPos = -1, previousPos = -1, inPos = -1;
 	private boolean own_in;
 	
+	private void moveInputTo(int pos)
+	{
+		for (; inPos < pos; inPos++)
+			in.next();
+		for (; inPos > pos; inPos--)
+			in.prev();
+	}
+	
 	/**
 	 * 
 	 * @param in The input query result, can't be <code>null</code>.
@@ -47,10 +65,15 @@ public class PipedResult<Key, Value> implements HGSearchResult<Value>
 		this.pipe = pipe;
 		this.own_in = own_in;
 		
-		if (in.hasNext())
+		while (in.hasNext())
 		{
 			pipe.setKey(in.next());
 			currentPiped = pipe.execute();
+			currentPos = ++inPos;
+			if (currentPiped.hasNext())
+				break;
+			currentPiped.close();
+			currentPiped = null;
 		}
 	}
 	
@@ -88,13 +111,10 @@ public class PipedResult<Key, Value> implements HGSearchResult<Value>
 	{
 		if (currentPiped == null)
 			return false;
-		else if (currentPiped.hasPrev())
+		else if (currentPiped.hasPrev() || previousPiped != null)
 			return true;
-		else if (previousPiped != null)
-			return previousPiped.hasPrev();
-		else if (!in.hasPrev())
-			return false;
-		else while (true)
+		moveInputTo(currentPos);
+		while (in.hasPrev())
 		{
 			// TODO - This is not the optimal way to do things,
 			// we're relying on the fact that an application will
@@ -110,20 +130,19 @@ public class PipedResult<Key, Value> implements HGSearchResult<Value>
 			// results simply because it cannot be implemented efficiently....
 
 			pipe.setKey(in.prev());
-			previousPiped = pipe.execute();
-			if (previousPiped.hasNext())
+			inPos--;
+			HGSearchResult<Value> rs = pipe.execute();
+			if (rs.hasNext())
 			{
-				do { previousPiped.next(); } while (previousPiped.hasNext());
+				do { rs.next(); } while (rs.hasNext());
+				previousPiped = rs;
+				previousPos = inPos;
 				return true;
 			}
 			else
-			{
-				previousPiped.close();
-				previousPiped = null;
-				if (!in.hasPrev())
-					return false;
-			}
+				rs.close();
 		}
+		return false;
 	}
 
 	public Value prev() 
@@ -137,9 +156,11 @@ public class PipedResult<Key, Value> implements HGSearchResult<Value>
 			if (nextPiped != null)
 				nextPiped.close();
 			nextPiped = currentPiped;
+			nextPos = currentPos;
 			currentPiped = previousPiped;
+			currentPos = previousPos;
 			previousPiped = null;
-			return currentPiped.prev();
+			return currentPiped.current();
 		}
 	}
 
@@ -152,26 +173,25 @@ public class PipedResult<Key, Value> implements HGSearchResult<Value>
 	{
 		if (currentPiped == null)
 			return false;
-		else if (currentPiped.hasNext())
+		else if (currentPiped.hasNext() || nextPiped != null)
 			return true;
-		else if (nextPiped != null)
-			return nextPiped.hasNext();
-		else if (!in.hasNext())
-			return false;
-		else while (true)
+		moveInputTo(currentPos);
+		while (in.hasNext())
 		{
 			pipe.setKey(in.next());
-			nextPiped = pipe.execute();
-			if (nextPiped.hasNext())
-				return true;
-			else
+			inPos++;
+			HGSearchResult<Value> rs = pipe.execute();
+			if (rs.hasNext())
 			{
-				nextPiped.close();
-				nextPiped = null;
-				if (!in.hasNext())
-					return false;
+				rs.next();
+				nextPiped = rs;
+				nextPos = inPos;
+				return true;
 			}
+			else
+				rs.close();
 		}
+		return false;
 	}
 
 	public Value next() 
@@ -185,9 +205,11 @@ public class PipedResult<Key, Value> implements HGSearchResult<Value>
 			if (previousPiped != null)
 				previousPiped.close();
 			previousPiped = currentPiped;
+			previousPos = currentPos;
 			currentPiped = nextPiped;
+			currentPos = nextPos;
 			nextPiped = null;
-			return currentPiped.next();
+			return currentPiped.current();
 		}
 	}
 	
@@ -195,4 +217,4 @@ public class PipedResult<Key, Value> implements HGSearchResult<Value>
 	{
 		return false;
 	}
-}
+}
\ No newline at end of file
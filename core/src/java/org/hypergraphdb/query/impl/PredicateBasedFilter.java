@@ -66,6 +66,8 @@ public final class PredicateBasedFilter<T> extends HGQuery<T> implements Iterabl
 	@SuppressWarnings("unchecked")
     public HGSearchResult<T> execute() 
 	{
+		if (ParallelExecution.isEnabled(graph))
+			return ParallelExecution.filter(graph, query, predicate);
 		HGSearchResult<T> baseResult = query.execute();
 		try
 		{
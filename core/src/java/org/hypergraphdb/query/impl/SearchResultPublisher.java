@@ -0,0 +1,155 @@
+/*
+ * This file is part of the HyperGraphDB source distribution. This is copyrighted
+ * software. For permitted uses, licensing options and redistribution, please see
+ * the LicensingInformation file at the root level of the distribution.
+ *
+ * Copyright (c) 2005-2010 Kobrix Software, Inc.  All rights reserved.
+ */
+package org.hypergraphdb.query.impl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hypergraphdb.HGQuery;
+import org.hypergraphdb.HGSearchResult;
+import org.hypergraphdb.util.Flow;
+
+/**
+ * <p>
+ * A {@link Flow.Publisher} of the results of a query. The query is executed anew for each
+ * subscriber, when it subscribes. Results are read from the result set only as they are
+ * requested, on the thread calling {@link Flow.Subscription#request(long)}, so they are read
+ * within the transaction of that thread, if any. The result set is closed when all of it
+ * has been delivered, when the subscription is cancelled or when reading it fails.
+ * </p>
+ *
+ * @author Borislav Iordanov
+ */
+public class SearchResultPublisher<T> implements Flow.Publisher<T>
+{
+	private HGQuery<T> query;
+
+	public SearchResultPublisher(HGQuery<T> query)
+	{
+		this.query = query;
+	}
+
+	public void subscribe(Flow.Subscriber<? super T> subscriber)
+	{
+		if (subscriber == null)
+			throw new NullPointerException("Null subscriber.");
+		HGSearchResult<T> rs;
+		try
+		{
+			rs = query.execute();
+		}
+		catch (Throwable t)
+		{
+			subscriber.onSubscribe(new Flow.Subscription() {
+				public void request(long n) { }
+				public void cancel() { }
+			});
+			subscriber.onError(t);
+			return;
+		}
+		subscriber.onSubscribe(new ResultSubscription<T>(rs, subscriber));
+	}
+
+	private static class ResultSubscription<T> implements Flow.Subscription
+	{
+		private HGSearchResult<T> rs;
+		private Flow.Subscriber<? super T> subscriber;
+		private AtomicLong demand = new AtomicLong();
+		// The number of requests not yet seen by the thread delivering elements. Only
+		// the thread that makes it non-zero delivers elements, the others just leave their
+		// requests to it, which also keeps onNext from recursing into request.
+		private AtomicInteger pending = new AtomicInteger();
+		private volatile boolean cancelled = false;
+		private volatile IllegalArgumentException invalidRequest = null;
+		private boolean done = false;
+
+		ResultSubscription(HGSearchResult<T> rs, Flow.Subscriber<? super T> subscriber)
+		{
+			this.rs = rs;
+			this.subscriber = subscriber;
+		}
+
+		public void request(long n)
+		{
+			if (n <= 0)
+				invalidRequest = new IllegalArgumentException("Non-positive request: " + n);
+			else
+			{
+				long current, next;
+				do
+				{
+					current = demand.get();
+					next = current + n < 0 ? Long.MAX_VALUE : current + n;
+				} while (!demand.compareAndSet(current, next));
+			}
+			deliver();
+		}
+
+		public void cancel()
+		{
+			cancelled = true;
+			deliver();
+		}
+
+		private void finish(Throwable error)
+		{
+			done = true;
+			try
+			{
+				rs.close();
+			}
+			catch (Throwable t)
+			{
+				if (error == null)
+					error = t;
+			}
+			if (cancelled)
+				return;
+			if (error == null)
+				subscriber.onComplete();
+			else
+				subscriber.onError(error);
+		}
+
+		private void deliver()
+		{
+			if (pending.getAndIncrement() != 0)
+				return;
+			int missed = 1;
+			do
+			{
+				try
+				{
+					while (!done)
+					{
+						if (cancelled)
+							finish(null);
+						else if (invalidRequest != null)
+							finish(invalidRequest);
+						else if (!rs.hasNext())
+							finish(null);
+						else if (demand.get() == 0)
+							break;
+						else
+						{
+							T x = rs.next();
+							demand.decrementAndGet();
+							subscriber.onNext(x);
+						}
+					}
+				}
+				catch (Throwable t)
+				{
+					if (!done)
+						finish(t);
+				}
+				missed = pending.addAndGet(-missed);
+			} while (missed != 0);
+		}
+	}
+}
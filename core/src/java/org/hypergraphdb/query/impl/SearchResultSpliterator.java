@@ -0,0 +1,242 @@
+/*
+ * This file is part of the HyperGraphDB source distribution. This is copyrighted
+ * software. For permitted uses, licensing options and redistribution, please see
+ * the LicensingInformation file at the root level of the distribution.
+ *
+ * Copyright (c) 2005-2010 Kobrix Software, Inc.  All rights reserved.
+ */
+package org.hypergraphdb.query.impl;
+
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.hypergraphdb.HGSearchResult;
+import org.hypergraphdb.transaction.DefaultTransactionContext;
+import org.hypergraphdb.transaction.HGTransaction;
+import org.hypergraphdb.transaction.HGTransactionContext;
+import org.hypergraphdb.transaction.HGTransactionManager;
+import org.hypergraphdb.util.CloseMe;
+import org.hypergraphdb.util.CountMe;
+
+/**
+ * <p>
+ * A <code>Spliterator</code> over the remaining elements of a <code>HGSearchResult</code>.
+ * The result set is closed as soon as its last element has been consumed, or when this
+ * spliterator is closed, whichever comes first.
+ * </p>
+ *
+ * <p>
+ * For parallel streams, the result set is split by reading batches of elements into arrays
+ * that are processed concurrently, while the result set itself is only read by one thread at
+ * a time. The size of the result set is known when it can be counted (see {@link CountMe}), which
+ * is the case of a scan of all values of one index key, such as all atoms of a type, so that
+ * batches are sized in proportion. Other result sets, such as index range scans, are of unknown
+ * size and are split into batches of increasing size.
+ * </p>
+ *
+ * <p>
+ * A result set is split only when the transaction manager of its graph is known and the
+ * stream is created outside of any transaction or within a read-only transaction. The threads
+ * of the common fork/join pool then read the result set and run the stream operations with a
+ * transaction context of their own whose current transaction is the one in which the stream was
+ * created, as for {@link ParallelExecution}. Otherwise, a parallel stream is processed sequentially.
+ * </p>
+ *
+ * @author Borislav Iordanov
+ */
+public class SearchResultSpliterator<T> extends Spliterators.AbstractSpliterator<T> implements CloseMe
+{
+	private HGSearchResult<T> rs;
+	private boolean closed = false;
+	private HGTransactionManager manager;
+	private HGTransaction tx;
+
+	private static long estimateSize(HGSearchResult<?> rs)
+	{
+		return rs instanceof CountMe ? ((CountMe)rs).count() : Long.MAX_VALUE;
+	}
+
+	/**
+	 * <p>
+	 * Return a sequential <code>Stream</code> over the remaining elements of a result set.
+	 * Elements are read as the stream consumes them, so operations such as <code>filter</code>,
+	 * <code>map</code> or <code>limit</code> don't accumulate intermediate results. The result
+	 * set is closed when the stream has consumed all of its elements or when the stream is
+	 * closed, which should be done when the stream may be abandoned before the end, for example
+	 * with a try-with-resources statement.
+	 * </p>
+	 *
+	 * @param rs The result set.
+	 * @param manager The transaction manager of the graph the result set comes from or
+	 * <code>null</code> if unknown, in which case the stream is never split.
+	 */
+	public static <T> Stream<T> stream(HGSearchResult<T> rs, HGTransactionManager manager)
+	{
+		final SearchResultSpliterator<T> spliterator = new SearchResultSpliterator<T>(rs, manager);
+		return StreamSupport.stream(spliterator, false).onClose(new Runnable() {
+			public void run() { spliterator.close(); }
+		});
+	}
+
+	/**
+	 * @param rs The result set.
+	 * @param manager The transaction manager of the graph the result set comes from or
+	 * <code>null</code> if unknown, in which case the spliterator is never split.
+	 */
+	public SearchResultSpliterator(HGSearchResult<T> rs, HGTransactionManager manager)
+	{
+		super(estimateSize(rs), Spliterator.ORDERED);
+		this.rs = rs;
+		if (manager != null)
+		{
+			HGTransaction current = manager.getContext().getCurrent();
+			if (current == null || current.isReadOnly())
+			{
+				this.manager = manager;
+				this.tx = current;
+			}
+		}
+	}
+
+	// Attach a transaction context whose current transaction is the one of the stream to
+	// the current thread, unless it's already in that transaction. Return the context to
+	// be restored or null if there's none.
+	private HGTransactionContext attach()
+	{
+		HGTransactionContext previous = manager.getContext();
+		if (previous.getCurrent() == tx)
+			return null;
+		manager.threadAttach(new DefaultTransactionContext(manager, tx));
+		return previous;
+	}
+
+	private void detach(HGTransactionContext previous)
+	{
+		if (previous != null)
+			manager.threadAttach(previous);
+	}
+
+	private boolean advance(Consumer<? super T> action)
+	{
+		if (closed)
+			return false;
+		if (!rs.hasNext())
+		{
+			close();
+			return false;
+		}
+		action.accept(rs.next());
+		return true;
+	}
+
+	public boolean tryAdvance(Consumer<? super T> action)
+	{
+		if (manager == null)
+			return advance(action);
+		HGTransactionContext previous = attach();
+		try
+		{
+			return advance(action);
+		}
+		finally
+		{
+			detach(previous);
+		}
+	}
+
+	public void forEachRemaining(Consumer<? super T> action)
+	{
+		HGTransactionContext previous = manager == null ? null : attach();
+		try
+		{
+			while (!closed && rs.hasNext())
+				action.accept(rs.next());
+			close();
+		}
+		finally
+		{
+			detach(previous);
+		}
+	}
+
+	public Spliterator<T> trySplit()
+	{
+		if (manager == null)
+			return null;
+		HGTransactionContext previous = attach();
+		try
+		{
+			Spliterator<T> batch = super.trySplit();
+			return batch == null ? null : new Batch(batch);
+		}
+		finally
+		{
+			detach(previous);
+		}
+	}
+
+	public void close()
+	{
+		if (!closed)
+		{
+			closed = true;
+			rs.close();
+		}
+	}
+
+	// A batch split from the result set, processed in the transaction of the stream.
+	private class Batch implements Spliterator<T>
+	{
+		private Spliterator<T> elements;
+
+		Batch(Spliterator<T> elements)
+		{
+			this.elements = elements;
+		}
+
+		public boolean tryAdvance(Consumer<? super T> action)
+		{
+			HGTransactionContext previous = attach();
+			try
+			{
+				return elements.tryAdvance(action);
+			}
+			finally
+			{
+				detach(previous);
+			}
+		}
+
+		public void forEachRemaining(Consumer<? super T> action)
+		{
+			HGTransactionContext previous = attach();
+			try
+			{
+				elements.forEachRemaining(action);
+			}
+			finally
+			{
+				detach(previous);
+			}
+		}
+
+		public Spliterator<T> trySplit()
+		{
+			Spliterator<T> half = elements.trySplit();
+			return half == null ? null : new Batch(half);
+		}
+
+		public long estimateSize()
+		{
+			return elements.estimateSize();
+		}
+
+		public int characteristics()
+		{
+			return elements.characteristics();
+		}
+	}
+}
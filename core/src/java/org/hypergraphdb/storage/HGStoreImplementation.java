@@ -148,6 +148,63 @@ public interface HGStoreImplementation
      */
     void removeIncidenceLink(HGPersistentHandle handle, HGPersistentHandle oldLink);
     
+    /**
+     * Return the links corresponding to the given handles, in the same order. An element of 
+     * the result is <code>null</code> if the corresponding link is not found. Implementations
+     * should retrieve the links in key order with a single cursor rather than with separate 
+     * lookups. The default implementation calls <code>getLink</code> for each handle.
+     */
+    default HGPersistentHandle [][] getLinks(HGPersistentHandle [] handles)
+    {
+        HGPersistentHandle [][] result = new HGPersistentHandle[handles.length][];
+        for (int i = 0; i < handles.length; i++)
+            result[i] = getLink(handles[i]);
+        return result;
+    }
+    
+    /**
+     * Return the data buffers corresponding to the given handles, in the same order. An element 
+     * of the result is <code>null</code> if the corresponding data is not found. The default 
+     * implementation calls <code>getData</code> for each handle.
+     */
+    default byte [][] getDataBatch(HGPersistentHandle [] handles)
+    {
+        byte [][] result = new byte[handles.length][];
+        for (int i = 0; i < handles.length; i++)
+            result[i] = getData(handles[i]);
+        return result;
+    }
+    
+    /**
+     * Store several links at once - <code>links[i]</code> is stored with <code>handles[i]</code>.
+     * The default implementation calls <code>store</code> for each link.
+     */
+    default void storeAll(HGPersistentHandle [] handles, HGPersistentHandle [][] links)
+    {
+        for (int i = 0; i < handles.length; i++)
+            store(handles[i], links[i]);
+    }
+    
+    /**
+     * Store several data buffers at once - <code>data[i]</code> is stored with <code>handles[i]</code>.
+     * The default implementation calls <code>store</code> for each buffer.
+     */
+    default void storeAll(HGPersistentHandle [] handles, byte [][] data)
+    {
+        for (int i = 0; i < handles.length; i++)
+            store(handles[i], data[i]);
+    }
+    
+    /**
+     * Add several elements to the incidence set of a given atom. The default implementation
+     * calls <code>addIncidenceLink</code> for each element.
+     */
+    default void addIncidenceLinks(HGPersistentHandle handle, HGPersistentHandle [] newLinks)
+    {
+        for (HGPersistentHandle link : newLinks)
+            addIncidenceLink(handle, link);
+    }
+    
 
     /**
      * Get the HyperGraphDB index with the given name. Return <code>null</code> if no
@@ -0,0 +1,342 @@
+/*
+ * This file is part of the HyperGraphDB source distribution. This is copyrighted
+ * software. For permitted uses, licensing options and redistribution, please see
+ * the LicensingInformation file at the root level of the distribution.
+ *
+ * Copyright (c) 2005-2010 Kobrix Software, Inc.  All rights reserved.
+ */
+package org.hypergraphdb.storage;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+import org.hypergraphdb.HGHandleFactory;
+import org.hypergraphdb.HGPersistentHandle;
+
+/**
+ * <p>
+ * A cache of raw storage records - links and data buffers - kept outside of the Java
+ * heap, in direct <code>ByteBuffer</code>s. It is used by the {@link org.hypergraphdb.HGStore}
+ * between the atom cache and the storage implementation, so that a working set larger than
+ * the heap can be served without going to the storage B-tree and without creating
+ * long-lived garbage.
+ * </p>
+ *
+ * <p>
+ * The memory is organized as a ring of equally sized segments and records are appended
+ * to the current segment. When the current segment is full, writing continues at the beginning
+ * of the oldest segment whose records are evicted all at once. So eviction is FIFO, which
+ * is adequate for a second-level cache where the frequently used atoms are already kept
+ * by the atom cache. Only the index from persistent handle to record location lives on the
+ * heap.
+ * </p>
+ *
+ * <p>
+ * Records are invalidated through the <code>invalidate</code> method whenever they are
+ * written or removed. In order not to cache a value read before a concurrent modification,
+ * callers obtain a version with <code>version</code> before reading from storage and pass
+ * it when caching the value read - the value is only cached if the record hasn't been
+ * invalidated in the meantime. While a new value of a record is being made visible in storage,
+ * between <code>beginWrite</code> and <code>endWrite</code>, the record is neither read from
+ * nor written to the cache, because storage may return either value.
+ * </p>
+ *
+ * @author Borislav Iordanov
+ */
+public class OffHeapRecordCache
+{
+	private static final byte LINK = 1, DATA = 2;
+	private static final int HEADER_SIZE = 5; // kind + value length
+	private static final int STRIPES = 1024;
+	private static final int MIN_SEGMENT_SIZE = 64*1024;
+
+	private final HGHandleFactory handleFactory;
+	private final int handleSize;
+	private final int segmentSize;
+	private final ByteBuffer [] segments;
+	// Used only by the writer, under the monitor of this object.
+	private final ByteBuffer [] writeViews;
+	// The absolute address of the first record in each segment and the number of bytes used
+	// in it. The base is modified only while holding the segment's write lock.
+	private final long [] segmentBase;
+	private final int [] segmentFill;
+	private final StampedLock [] segmentLocks;
+	private long head = 0;
+	private final ConcurrentHashMap<HGPersistentHandle, Long> links = new ConcurrentHashMap<HGPersistentHandle, Long>();
+	private final ConcurrentHashMap<HGPersistentHandle, Long> data = new ConcurrentHashMap<HGPersistentHandle, Long>();
+	private final AtomicLongArray versions = new AtomicLongArray(STRIPES);
+	// The number of records being written in each stripe, see beginWrite.
+	private final AtomicIntegerArray writers = new AtomicIntegerArray(STRIPES);
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private long evictions = 0;
+
+	/**
+	 * @param handleFactory The factory used to reconstruct persistent handles.
+	 * @param capacity The total number of bytes to allocate off-heap.
+	 */
+	public OffHeapRecordCache(HGHandleFactory handleFactory, long capacity)
+	{
+		this.handleFactory = handleFactory;
+		this.handleSize = handleFactory.nullHandle().toByteArray().length;
+		int count = 16;
+		long size = Math.max(MIN_SEGMENT_SIZE, capacity / count);
+		if (size > Integer.MAX_VALUE)
+		{
+			size = Integer.MAX_VALUE;
+			count = (int)(capacity / size);
+		}
+		count = (int)Math.max(2, Math.min(count, capacity / size));
+		segmentSize = (int)size;
+		segments = new ByteBuffer[count];
+		writeViews = new ByteBuffer[count];
+		segmentBase = new long[count];
+		segmentFill = new int[count];
+		segmentLocks = new StampedLock[count];
+		for (int i = 0; i < count; i++)
+		{
+			segments[i] = ByteBuffer.allocateDirect(segmentSize);
+			writeViews[i] = segments[i].duplicate();
+			segmentLocks[i] = new StampedLock();
+		}
+	}
+
+	private int stripe(HGPersistentHandle handle)
+	{
+		int h = handle.hashCode();
+		return (h ^ (h >>> 16)) & (STRIPES - 1);
+	}
+
+	private int segmentOf(long address)
+	{
+		return (int)((address / segmentSize) % segments.length);
+	}
+
+	/**
+	 * <p>Return the current version of a record, to be passed to <code>putLink</code> or
+	 * <code>putData</code> after the record has been read from storage.</p>
+	 */
+	public long version(HGPersistentHandle handle)
+	{
+		return versions.get(stripe(handle));
+	}
+
+	/**
+	 * <p>Remove the link and data records of the given handle from the cache and
+	 * prevent values read before this call from being cached.</p>
+	 */
+	public void invalidate(HGPersistentHandle handle)
+	{
+		versions.incrementAndGet(stripe(handle));
+		links.remove(handle);
+		data.remove(handle);
+	}
+
+	/**
+	 * <p>
+	 * Remove the records of the given handle from the cache and stop caching them, or any
+	 * other record of the same stripe, until <code>endWrite</code> is called. This must be
+	 * called before a new value of the record becomes visible in storage, typically right before
+	 * a transaction commits, and <code>endWrite</code> right after, whether the commit succeeded
+	 * or not.
+	 * </p>
+	 */
+	public void beginWrite(HGPersistentHandle handle)
+	{
+		writers.incrementAndGet(stripe(handle));
+		invalidate(handle);
+	}
+
+	/**
+	 * <p>End a write started with <code>beginWrite</code>, values read before this call are
+	 * not cached.</p>
+	 */
+	public void endWrite(HGPersistentHandle handle)
+	{
+		int stripe = stripe(handle);
+		versions.incrementAndGet(stripe);
+		writers.decrementAndGet(stripe);
+	}
+
+	public HGPersistentHandle [] getLink(HGPersistentHandle handle)
+	{
+		byte [] buffer = read(links, handle);
+		if (buffer == null)
+			return null;
+		HGPersistentHandle [] result = new HGPersistentHandle[buffer.length / handleSize];
+		for (int i = 0; i < result.length; i++)
+			result[i] = handleFactory.makeHandle(buffer, i*handleSize);
+		return result;
+	}
+
+	public byte [] getData(HGPersistentHandle handle)
+	{
+		return read(data, handle);
+	}
+
+	public void putLink(HGPersistentHandle handle, HGPersistentHandle [] link, long version)
+	{
+		byte [] buffer = new byte[link.length*handleSize];
+		for (int i = 0; i < link.length; i++)
+			System.arraycopy(link[i].toByteArray(), 0, buffer, i*handleSize, handleSize);
+		write(links, LINK, handle, buffer, version);
+	}
+
+	public void putData(HGPersistentHandle handle, byte [] value, long version)
+	{
+		write(data, DATA, handle, value, version);
+	}
+
+	private byte [] read(ConcurrentHashMap<HGPersistentHandle, Long> index, HGPersistentHandle handle)
+	{
+		Long address = writers.get(stripe(handle)) > 0 ? null : index.get(handle);
+		if (address == null)
+		{
+			misses.increment();
+			return null;
+		}
+		int segment = segmentOf(address);
+		int offset = (int)(address % segmentSize);
+		StampedLock lock = segmentLocks[segment];
+		long stamp = lock.tryOptimisticRead();
+		byte [] result = null;
+		if (stamp != 0 && segmentBase[segment] <= address)
+		{
+			int length = segments[segment].getInt(offset + 1);
+			if (length >= 0 && offset + HEADER_SIZE + handleSize + length <= segmentSize)
+			{
+				result = new byte[length];
+				ByteBuffer view = segments[segment].duplicate();
+				view.position(offset + HEADER_SIZE + handleSize);
+				view.get(result);
+			}
+		}
+		if (result == null || !lock.validate(stamp))
+		{
+			// the segment was recycled while we were reading it
+			index.remove(handle, address);
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		return result;
+	}
+
+	private void write(ConcurrentHashMap<HGPersistentHandle, Long> index,
+					   byte kind,
+					   HGPersistentHandle handle,
+					   byte [] value,
+					   long version)
+	{
+		int stripe = stripe(handle);
+		int length = HEADER_SIZE + handleSize + value.length;
+		if (length > segmentSize / 4 || versions.get(stripe) != version || writers.get(stripe) > 0)
+			return;
+		long address;
+		synchronized (this)
+		{
+			int offset = (int)(head % segmentSize);
+			if (offset + length > segmentSize)
+			{
+				head += segmentSize - offset;
+				offset = 0;
+			}
+			int segment = segmentOf(head);
+			if (offset == 0)
+				recycle(segment);
+			address = head;
+			ByteBuffer view = writeViews[segment];
+			view.position(offset);
+			view.put(kind);
+			view.putInt(value.length);
+			view.put(handle.toByteArray());
+			view.put(value);
+			head += length;
+			segmentFill[segment] = offset + length;
+		}
+		index.put(handle, address);
+		// An invalidation may have happened after the version check, but before the index
+		// was updated in which case it wouldn't have seen the new entry.
+		if (versions.get(stripe) != version)
+			index.remove(handle, address);
+	}
+
+	// Called with the monitor held, when the writer enters a segment.
+	private void recycle(int segment)
+	{
+		StampedLock lock = segmentLocks[segment];
+		long stamp = lock.writeLock();
+		try
+		{
+			ByteBuffer view = writeViews[segment];
+			byte [] key = new byte[handleSize];
+			int offset = 0;
+			while (offset < segmentFill[segment])
+			{
+				view.position(offset);
+				byte kind = view.get();
+				int length = view.getInt();
+				view.get(key);
+				Long address = segmentBase[segment] + offset;
+				(kind == LINK ? links : data).remove(handleFactory.makeHandle(key), address);
+				offset += HEADER_SIZE + handleSize + length;
+				evictions++;
+			}
+			segmentBase[segment] = head;
+			segmentFill[segment] = 0;
+		}
+		finally
+		{
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * <p>Remove all records from the cache.</p>
+	 */
+	public void clear()
+	{
+		for (int i = 0; i < STRIPES; i++)
+			versions.incrementAndGet(i);
+		links.clear();
+		data.clear();
+	}
+
+	/**
+	 * <p>Return the number of bytes allocated off-heap.</p>
+	 */
+	public long getCapacity()
+	{
+		return (long)segmentSize * segments.length;
+	}
+
+	/**
+	 * <p>Return the number of records currently in the cache.</p>
+	 */
+	public int size()
+	{
+		return links.size() + data.size();
+	}
+
+	public long getHits()
+	{
+		return hits.sum();
+	}
+
+	public long getMisses()
+	{
+		return misses.sum();
+	}
+
+	/**
+	 * <p>Return the number of records evicted to make room for new ones.</p>
+	 */
+	public synchronized long getEvictions()
+	{
+		return evictions;
+	}
+}
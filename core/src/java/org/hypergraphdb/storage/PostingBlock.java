@@ -0,0 +1,223 @@
+/*
+ * This file is part of the HyperGraphDB source distribution. This is copyrighted
+ * software. For permitted uses, licensing options and redistribution, please see
+ * the LicensingInformation file at the root level of the distribution.
+ *
+ * Copyright (c) 2005-2010 Kobrix Software, Inc.  All rights reserved.
+ */
+package org.hypergraphdb.storage;
+
+/**
+ * <p>
+ * Encoding of a sorted run of fixed width values, typically persistent handles, into a
+ * single compressed block. Storage implementations use it to keep large sets of values
+ * under the same key, such as incidence sets or the instances of a type, as a small
+ * number of blocks instead of one record per value.
+ * </p>
+ *
+ * <p>
+ * A block starts with its first value, verbatim, so that blocks compare in the unsigned
+ * lexicographic order of their first values - a storage that orders the blocks of a key
+ * by their bytes therefore keeps them in value order and a block can be located by searching
+ * for the value itself. The first value is followed by the number of values in the block as
+ * a varint and by the differences between consecutive values, each one written as its number
+ * of significant bytes followed by those bytes. The last byte of the block is the width of
+ * the values. Sequential values, such as the ones produced by a sequential handle factory, are
+ * reduced to two bytes per value. The deltas of <code>n</code> random values are only about
+ * <code>log256(n)</code> bytes shorter than the values themselves, so for random handles
+ * most of the saving comes from storing a single record per block.
+ * </p>
+ *
+ * <p>
+ * Values are compared as unsigned byte strings. Within a block they must be strictly
+ * increasing and of the same width.
+ * </p>
+ *
+ * @author Borislav Iordanov
+ */
+public final class PostingBlock
+{
+	/**
+	 * The maximum number of values in a block. Bigger blocks are split in two.
+	 */
+	public static final int MAX_VALUES = 128;
+
+	private PostingBlock() { }
+
+	/**
+	 * <p>Compare two byte arrays as unsigned byte strings.</p>
+	 */
+	public static int compare(byte [] left, int leftOffset, int leftLength,
+							  byte [] right, int rightOffset, int rightLength)
+	{
+		int n = Math.min(leftLength, rightLength);
+		for (int i = 0; i < n; i++)
+		{
+			int c = (left[leftOffset + i] & 0xff) - (right[rightOffset + i] & 0xff);
+			if (c != 0)
+				return c;
+		}
+		return leftLength - rightLength;
+	}
+
+	public static int compare(byte [] left, byte [] right)
+	{
+		return compare(left, 0, left.length, right, 0, right.length);
+	}
+
+	/**
+	 * <p>Find a value in a sorted array of values.</p>
+	 *
+	 * @return The position of the value or <code>-(insertion point) - 1</code> if it's
+	 * not in the array, as with <code>java.util.Arrays.binarySearch</code>.
+	 */
+	public static int search(byte [][] values, int size, byte [] value)
+	{
+		int low = 0, high = size - 1;
+		while (low <= high)
+		{
+			int mid = (low + high) >>> 1;
+			int c = compare(values[mid], value);
+			if (c < 0)
+				low = mid + 1;
+			else if (c > 0)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -(low + 1);
+	}
+
+	/**
+	 * <p>Encode <code>values[from]</code> to <code>values[to - 1]</code> into a block.</p>
+	 */
+	public static byte [] encode(byte [][] values, int from, int to)
+	{
+		if (to <= from)
+			throw new IllegalArgumentException("Empty posting block.");
+		int width = values[from].length;
+		if (width == 0 || width > 255)
+			throw new IllegalArgumentException("Unsupported value width " + width + " in posting block.");
+		byte [] buffer = new byte[width + 5 + (to - from - 1)*(width + 1) + 1];
+		System.arraycopy(values[from], 0, buffer, 0, width);
+		int pos = writeVarint(to - from, buffer, width);
+		byte [] delta = new byte[width];
+		for (int i = from + 1; i < to; i++)
+		{
+			byte [] prev = values[i - 1], curr = values[i];
+			if (curr.length != width)
+				throw new IllegalArgumentException("Values of different width in posting block.");
+			int borrow = 0;
+			for (int j = width - 1; j >= 0; j--)
+			{
+				int d = (curr[j] & 0xff) - (prev[j] & 0xff) - borrow;
+				borrow = d < 0 ? 1 : 0;
+				delta[j] = (byte)d;
+			}
+			int skip = 0;
+			while (skip < width && delta[skip] == 0)
+				skip++;
+			if (borrow != 0 || skip == width)
+				throw new IllegalArgumentException("Values in posting block not strictly increasing.");
+			buffer[pos++] = (byte)(width - skip);
+			System.arraycopy(delta, skip, buffer, pos, width - skip);
+			pos += width - skip;
+		}
+		buffer[pos++] = (byte)width;
+		if (pos == buffer.length)
+			return buffer;
+		byte [] result = new byte[pos];
+		System.arraycopy(buffer, 0, result, 0, pos);
+		return result;
+	}
+
+	public static byte [] encode(byte [][] values)
+	{
+		return encode(values, 0, values.length);
+	}
+
+	/**
+	 * <p>Return the width of the values in a block.</p>
+	 */
+	public static int width(byte [] block, int offset, int length)
+	{
+		return block[offset + length - 1] & 0xff;
+	}
+
+	/**
+	 * <p>Return the number of values in a block without decoding it.</p>
+	 */
+	public static int count(byte [] block, int offset, int length)
+	{
+		return readVarint(block, offset + width(block, offset, length))[0];
+	}
+
+	/**
+	 * <p>Return the first value of a block without decoding it.</p>
+	 */
+	public static byte [] first(byte [] block, int offset, int length)
+	{
+		byte [] result = new byte[width(block, offset, length)];
+		System.arraycopy(block, offset, result, 0, result.length);
+		return result;
+	}
+
+	/**
+	 * <p>Decode all values in a block.</p>
+	 */
+	public static byte [][] decode(byte [] block, int offset, int length)
+	{
+		int width = width(block, offset, length);
+		int [] header = readVarint(block, offset + width);
+		byte [][] result = new byte[header[0]][];
+		result[0] = new byte[width];
+		System.arraycopy(block, offset, result[0], 0, width);
+		int pos = header[1];
+		for (int i = 1; i < result.length; i++)
+		{
+			int size = block[pos++] & 0xff;
+			byte [] prev = result[i - 1], curr = new byte[width];
+			int carry = 0;
+			for (int j = width - 1; j >= 0; j--)
+			{
+				int d = j >= width - size ? block[pos + j - (width - size)] & 0xff : 0;
+				int s = (prev[j] & 0xff) + d + carry;
+				carry = s >> 8;
+				curr[j] = (byte)s;
+			}
+			pos += size;
+			result[i] = curr;
+		}
+		return result;
+	}
+
+	public static byte [][] decode(byte [] block)
+	{
+		return decode(block, 0, block.length);
+	}
+
+	private static int writeVarint(int value, byte [] buffer, int pos)
+	{
+		while ((value & ~0x7f) != 0)
+		{
+			buffer[pos++] = (byte)((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		buffer[pos++] = (byte)value;
+		return pos;
+	}
+
+	// returns the value and the position after it
+	private static int [] readVarint(byte [] buffer, int pos)
+	{
+		int value = 0, shift = 0;
+		byte b;
+		do
+		{
+			b = buffer[pos++];
+			value |= (b & 0x7f) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return new int[] { value, pos };
+	}
+}
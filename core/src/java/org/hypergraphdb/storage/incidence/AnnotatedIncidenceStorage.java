@@ -0,0 +1,28 @@
+package org.hypergraphdb.storage.incidence;
+
+import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.HGPersistentHandle;
+import org.hypergraphdb.HGRandomAccessResult;
+
+/**
+ * <p>
+ * Implemented by storage implementations that can keep incidence sets annotated by an
+ * {@link HGIncidentAnnotator}. The query compiler uses it to answer a
+ * {@link TypedIncidentCondition} from the incidence set alone, see {@link TypedIncidentToQuery}.
+ * </p>
+ */
+public interface AnnotatedIncidenceStorage
+{
+    /**
+     * <p>Return the configured annotator or <code>null</code> if incidence sets are not annotated.</p>
+     */
+    HGIncidentAnnotator getIncidentAnnotator();
+
+    /**
+     * <p>
+     * Return the links in the incidence set of <code>target</code> whose annotation
+     * matches the given arguments, ordered like the full incidence set.
+     * </p>
+     */
+    HGRandomAccessResult<HGPersistentHandle> getAnnotatedIncidenceResultSet(HGHandle target, Object...annotations);
+}
@@ -0,0 +1,54 @@
+package org.hypergraphdb.storage.incidence;
+
+import org.hypergraphdb.HGHandleFactory;
+import org.hypergraphdb.HGPersistentHandle;
+
+/**
+ * <p>
+ * Computes the extra bytes a storage implementation keeps next to every link in an
+ * incidence set, so that incidence sets can be filtered by properties of their links
+ * (their type, the position of the target etc.) without loading the links themselves.
+ * An annotated incidence set entry is the link handle followed by
+ * {@link #spaceNeeded(HGHandleFactory)} bytes of annotation.
+ * </p>
+ *
+ * <p>
+ * Annotations are computed from the storage layout of a link alone - its type handle, its
+ * value handle and its targets - which lets the storage maintain them on its own, also
+ * when the layout of a link is changed or when an existing incidence database is migrated.
+ * </p>
+ */
+public interface HGIncidentAnnotator
+{
+    /**
+     * <p>Return the number of annotation bytes stored with every incidence set entry.</p>
+     */
+    int spaceNeeded(HGHandleFactory handleFactory);
+
+    /**
+     * <p>
+     * Write the annotation of <code>link</code> in the incidence set of <code>target</code>.
+     * </p>
+     *
+     * @param link The handle of the incident link.
+     * @param layout The storage layout of the link: type handle, value handle and target
+     * handles. It is <code>null</code> if the link hasn't been stored yet, in which case the
+     * storage will annotate the entry again once it is.
+     * @param target The atom whose incidence set is being updated.
+     * @param data The buffer where the annotation is written.
+     * @param offset The position of the annotation in <code>data</code>.
+     */
+    void annotate(HGPersistentHandle link,
+                  HGPersistentHandle [] layout,
+                  HGPersistentHandle target,
+                  byte [] data,
+                  int offset);
+
+    /**
+     * <p>
+     * Return <code>true</code> if the annotation at <code>offset</code> in <code>data</code>
+     * satisfies the given lookup arguments, whose meaning is defined by the annotator.
+     * </p>
+     */
+    boolean matches(byte [] data, int offset, Object...annotations);
+}
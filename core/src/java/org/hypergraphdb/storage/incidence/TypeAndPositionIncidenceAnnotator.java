@@ -0,0 +1,101 @@
+package org.hypergraphdb.storage.incidence;
+
+import java.util.Arrays;
+
+import org.hypergraphdb.HGException;
+
+import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.HGHandleFactory;
+import org.hypergraphdb.HGPersistentHandle;
+import org.hypergraphdb.HyperGraph;
+import org.hypergraphdb.storage.BAUtils;
+
+/**
+ * <p>
+ * Annotates incidence set entries with the type of the link and the position of the
+ * target within the link. Lookups take the type handle of the links as first argument
+ * and, optionally, the target position as second.
+ * </p>
+ */
+public class TypeAndPositionIncidenceAnnotator implements HGIncidentAnnotator
+{
+
+    public int spaceNeeded(HGHandleFactory handleFactory)
+    {
+        return 4 + handleFactory.anyHandle().toByteArray().length;
+    }
+
+    public void annotate(HGPersistentHandle link,
+                         HGPersistentHandle [] layout,
+                         HGPersistentHandle target,
+                         byte[] data,
+                         int offset)
+    {
+        int typeLength = data.length - offset - 4;
+        int targetPosition = -1;
+        if (layout == null)
+            Arrays.fill(data, offset, offset + typeLength, (byte)0);
+        else
+        {
+            for (int i = 2; i < layout.length && targetPosition < 0; i++)
+                if (target.equals(layout[i]))
+                    targetPosition = i - 2;
+            byte [] type = layout[0].toByteArray();
+            System.arraycopy(type, 0, data, offset, type.length);
+        }
+        BAUtils.writeInt(targetPosition, data, offset + typeLength);
+    }
+
+    public boolean matches(byte[] data, int offset, Object... annotations)
+    {
+        if (annotations.length > 0 && annotations[0] != null)
+        {
+            byte [] type = ((HGHandle)annotations[0]).getPersistent().toByteArray();
+            for (int i = 0; i < type.length; i++)
+                if (data[offset + i] != type[i])
+                    return false;
+            offset += type.length;
+        }
+        else
+            offset = data.length - 4;
+        if (annotations.length > 1 && annotations[1] != null)
+            return BAUtils.readInt(data, offset) == (Integer)annotations[1];
+        return true;
+    }
+
+    /**
+     * <p>
+     * Expected annotation arguments: 1st is the type of the link and 2nd the
+     * position of the target within the link. If the type is null
+     * </p>
+     */
+    public byte [] annotateLookup(HyperGraph graph, HGHandle target, Object...annotations)
+    {
+        HGHandle type = null;
+        Integer position = null;
+        if (annotations.length > 0)
+            type = (HGHandle)annotations[0];
+        byte [] targetKey = target.getPersistent().toByteArray();
+        if (annotations.length > 1)
+            position = (Integer)annotations[1];
+        if (type == null && position != null)
+            throw new HGException("Type of link must be specified alongside target position for a typed incident lookup.");
+        else if (type != null && position != null)
+        {
+            byte [] key = new byte[2*targetKey.length + 4];
+            System.arraycopy(targetKey, 0, key, 0, targetKey.length);
+            System.arraycopy(type.getPersistent().toByteArray(), 0, key, targetKey.length, targetKey.length);
+            BAUtils.writeInt(position, key, 2*targetKey.length);
+            return key;
+        }
+        else if (type != null)
+        {
+            byte [] key = new byte[2*targetKey.length];
+            System.arraycopy(targetKey, 0, key, 0, targetKey.length);
+            System.arraycopy(type.getPersistent().toByteArray(), 0, key, targetKey.length, targetKey.length);
+            return key;
+        }
+        else
+            return targetKey;
+    }
+}
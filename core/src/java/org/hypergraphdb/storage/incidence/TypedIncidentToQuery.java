@@ -10,7 +10,6 @@ import org.hypergraphdb.HGQuery.hg;
 import org.hypergraphdb.query.HGQueryCondition;
 import org.hypergraphdb.query.cond2qry.ConditionToQuery;
 import org.hypergraphdb.query.cond2qry.QueryMetaData;
-import org.hypergraphdb.storage.bdb.BDBStorageImplementation;
 
 public class TypedIncidentToQuery implements ConditionToQuery<HGHandle>
 {
@@ -22,7 +21,7 @@ public class TypedIncidentToQuery implements ConditionToQuery<HGHandle>
             @SuppressWarnings({ "rawtypes", "unchecked" })
             public HGSearchResult<HGHandle> execute()
             {
-                return (HGSearchResult)((BDBStorageImplementation)graph.getConfig().getStoreImplementation()).getAnnotatedIncidenceResultSet(             
+                return (HGSearchResult)((AnnotatedIncidenceStorage)graph.getConfig().getStoreImplementation()).getAnnotatedIncidenceResultSet(             
                         ti.getTargetRef().get(), 
                         ti.getTypeRef().get());
             }
@@ -0,0 +1,159 @@
+package org.hypergraphdb.storage.ram;
+
+import java.util.Comparator;
+import java.util.NoSuchElementException;
+
+import org.hypergraphdb.HGRandomAccessResult;
+import org.hypergraphdb.storage.ByteArrayConverter;
+import org.hypergraphdb.util.CountMe;
+
+/**
+ * <p>
+ * A result set over the first <code>size</code> elements of an array that doesn't change
+ * anymore. Elements are either returned as they are, or they are serialized values turned
+ * into objects by a {@link ByteArrayConverter} as the cursor reaches them. When the array is
+ * sorted, <code>goTo</code> is a binary search, otherwise it's a scan for an equal element.
+ * </p>
+ */
+final class ArrayResultSet<T> implements HGRandomAccessResult<T>, CountMe
+{
+    private final Object[] items;
+    private final int size;
+    private final ByteArrayConverter<T> converter;
+    private final Comparator<Object> comparator;
+    private final boolean ordered;
+    private int pos = -1;
+    private T current = null;
+
+    /**
+     * @param converter Converts the elements, which are <code>byte[]</code>, or
+     * <code>null</code> if the elements are returned as they are.
+     * @param comparator The order of the elements or <code>null</code> for their natural order.
+     * @param ordered Whether the elements are sorted.
+     */
+    @SuppressWarnings("unchecked")
+    ArrayResultSet(Object[] items,
+                   int size,
+                   ByteArrayConverter<T> converter,
+                   Comparator<?> comparator,
+                   boolean ordered)
+    {
+        this.items = items;
+        this.size = size;
+        this.converter = converter;
+        this.comparator = (Comparator<Object>)comparator;
+        this.ordered = ordered;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T moveTo(int pos)
+    {
+        this.pos = pos;
+        if (converter == null)
+            return current = (T)items[pos];
+        byte[] data = (byte[])items[pos];
+        return current = converter.fromByteArray(data, 0, data.length);
+    }
+
+    @SuppressWarnings("unchecked")
+    private int compare(Object x, Object y)
+    {
+        return comparator == null ? ((Comparable<Object>)x).compareTo(y) : comparator.compare(x, y);
+    }
+
+    public GotoResult goTo(T value, boolean exactMatch)
+    {
+        Object item = converter == null ? value : converter.toByteArray(value);
+        if (!ordered)
+        {
+            for (int i = 0; i < size; i++)
+                if (compare(items[i], item) == 0)
+                {
+                    moveTo(i);
+                    return GotoResult.found;
+                }
+            return GotoResult.nothing;
+        }
+        int low = 0, high = size - 1;
+        while (low <= high)
+        {
+            int mid = (low + high) >>> 1;
+            int cmp = compare(items[mid], item);
+            if (cmp < 0)
+                low = mid + 1;
+            else if (cmp > 0)
+                high = mid - 1;
+            else
+            {
+                moveTo(mid);
+                return GotoResult.found;
+            }
+        }
+        if (exactMatch || low == size)
+            return GotoResult.nothing;
+        moveTo(low);
+        return GotoResult.close;
+    }
+
+    public void goAfterLast()
+    {
+        pos = size;
+        current = null;
+    }
+
+    public void goBeforeFirst()
+    {
+        pos = -1;
+        current = null;
+    }
+
+    public T current()
+    {
+        if (pos < 0 || pos >= size)
+            throw new NoSuchElementException();
+        return current;
+    }
+
+    public void close()
+    {
+    }
+
+    public boolean isOrdered()
+    {
+        return ordered;
+    }
+
+    public boolean hasPrev()
+    {
+        return pos > 0;
+    }
+
+    public T prev()
+    {
+        if (!hasPrev())
+            throw new NoSuchElementException();
+        return moveTo(pos - 1);
+    }
+
+    public boolean hasNext()
+    {
+        return pos + 1 < size;
+    }
+
+    public T next()
+    {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return moveTo(pos + 1);
+    }
+
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    public int count()
+    {
+        return size;
+    }
+}
@@ -0,0 +1,159 @@
+package org.hypergraphdb.storage.ram;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.hypergraphdb.transaction.HGTransaction;
+import org.hypergraphdb.transaction.HGTransactionManager;
+import org.hypergraphdb.util.Ref;
+
+/**
+ * <p>
+ * The entries of an index of a {@link RAMStorageImplementation}: each key maps to the set of
+ * its values, and when the index is bidirectional each value also maps to the set of its keys.
+ * Keys and values are kept serialized and sorted with the comparators the index was opened
+ * with, or in unsigned byte order.
+ * </p>
+ */
+final class IndexData
+{
+    static final Comparator<byte[]> BYTES = new Comparator<byte[]>()
+    {
+        public int compare(byte[] left, byte[] right)
+        {
+            int n = Math.min(left.length, right.length);
+            for (int i = 0; i < n; i++)
+                if (left[i] != right[i])
+                    return (left[i] & 0xff) - (right[i] & 0xff);
+            return left.length - right.length;
+        }
+    };
+
+    final String name;
+    private final Ref<HGTransactionManager> manager;
+    Comparator<byte[]> keyComparator = BYTES;
+    Comparator<byte[]> valueComparator = BYTES;
+    volatile RecordMap<byte[], SortedValues<byte[]>> entries;
+    volatile RecordMap<byte[], SortedValues<byte[]>> byValue = null;
+
+    IndexData(String name, Ref<HGTransactionManager> manager)
+    {
+        this.name = name;
+        this.manager = manager;
+        this.entries = new RecordMap<byte[], SortedValues<byte[]>>(keyComparator, manager);
+    }
+
+    private HGTransaction current()
+    {
+        return manager.get().getContext().getCurrent();
+    }
+
+    private static RecordMap<byte[], SortedValues<byte[]>> invert(RecordMap<byte[], SortedValues<byte[]>> map,
+                                                                  Comparator<byte[]> keyComparator,
+                                                                  Comparator<byte[]> valueComparator,
+                                                                  Ref<HGTransactionManager> manager)
+    {
+        Map<byte[], List<Object>> inverse = new TreeMap<byte[], List<Object>>(valueComparator);
+        for (RecordMap<byte[], SortedValues<byte[]>>.Entry e : map.entries().values())
+        {
+            SortedValues<byte[]> values = e.committed();
+            if (values == null)
+                continue;
+            Object[] items = values.items();
+            for (int i = 0; i < values.size(); i++)
+            {
+                List<Object> keys = inverse.get((byte[])items[i]);
+                if (keys == null)
+                    inverse.put((byte[])items[i], keys = new ArrayList<Object>());
+                keys.add(e.key);
+            }
+        }
+        RecordMap<byte[], SortedValues<byte[]>> result = new RecordMap<byte[], SortedValues<byte[]>>(valueComparator, manager);
+        for (Map.Entry<byte[], List<Object>> e : inverse.entrySet())
+            result.load(e.getKey(), SortedValues.sort(e.getValue().toArray(), keyComparator));
+        return result;
+    }
+
+    /**
+     * <p>
+     * Re-sort the entries if the index is opened with other comparators than the ones they
+     * are sorted with, and create or drop the map from values to keys. This happens when an
+     * index is opened, before it is used.
+     * </p>
+     */
+    synchronized void configure(Comparator<byte[]> keyComparator, Comparator<byte[]> valueComparator, boolean bidirectional)
+    {
+        if (keyComparator == null)
+            keyComparator = BYTES;
+        if (valueComparator == null)
+            valueComparator = BYTES;
+        if (keyComparator != this.keyComparator || valueComparator != this.valueComparator)
+        {
+            RecordMap<byte[], SortedValues<byte[]>> sorted = new RecordMap<byte[], SortedValues<byte[]>>(keyComparator, manager);
+            for (RecordMap<byte[], SortedValues<byte[]>>.Entry e : entries.entries().values())
+            {
+                SortedValues<byte[]> values = e.committed();
+                if (values != null)
+                    sorted.load(e.key, SortedValues.sort(Arrays.copyOf(values.items(), values.size()), valueComparator));
+            }
+            this.keyComparator = keyComparator;
+            this.valueComparator = valueComparator;
+            entries = sorted;
+            byValue = null;
+        }
+        if (bidirectional && byValue == null)
+            byValue = invert(entries, keyComparator, valueComparator, manager);
+        else if (!bidirectional)
+            byValue = null;
+    }
+
+    boolean isBidirectional()
+    {
+        return byValue != null;
+    }
+
+    void add(byte[] key, byte[] value)
+    {
+        HGTransaction tx = current();
+        entries.update(key, values -> (values == null ? SortedValues.<byte[]>empty(valueComparator) : values).with(value, tx));
+        if (byValue != null)
+            byValue.update(value, keys -> (keys == null ? SortedValues.<byte[]>empty(keyComparator) : keys).with(key, tx));
+    }
+
+    void remove(byte[] key, byte[] value)
+    {
+        HGTransaction tx = current();
+        entries.update(key, values -> values == null ? null : values.without(value, tx));
+        if (byValue != null)
+            byValue.update(value, keys -> keys == null ? null : keys.without(key, tx));
+    }
+
+    void removeAll(byte[] key)
+    {
+        SortedValues<byte[]> values = entries.get(key);
+        if (values == null)
+            return;
+        if (byValue != null)
+        {
+            HGTransaction tx = current();
+            Object[] items = values.items();
+            for (int i = 0; i < values.size(); i++)
+                byValue.update((byte[])items[i], keys -> keys == null ? null : keys.without(key, tx));
+        }
+        entries.put(key, null);
+    }
+
+    SortedValues<byte[]> values(byte[] key)
+    {
+        return entries.get(key);
+    }
+
+    SortedValues<byte[]> keys(byte[] value)
+    {
+        return byValue.get(value);
+    }
+}
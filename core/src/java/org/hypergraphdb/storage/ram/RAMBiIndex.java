@@ -0,0 +1,45 @@
+package org.hypergraphdb.storage.ram;
+
+import org.hypergraphdb.HGBidirectionalIndex;
+import org.hypergraphdb.HGRandomAccessResult;
+import org.hypergraphdb.storage.ByteArrayConverter;
+
+/**
+ * <p>
+ * A {@link RAMIndex} that can also be searched by value.
+ * </p>
+ */
+public class RAMBiIndex<KeyType, ValueType> extends RAMIndex<KeyType, ValueType>
+                                            implements HGBidirectionalIndex<KeyType, ValueType>
+{
+    RAMBiIndex(String name,
+               IndexData data,
+               ByteArrayConverter<KeyType> keyConverter,
+               ByteArrayConverter<ValueType> valueConverter)
+    {
+        super(name, data, keyConverter, valueConverter);
+    }
+
+    public HGRandomAccessResult<KeyType> findByValue(ValueType value)
+    {
+        checkOpen();
+        return result(data.keys(valueConverter.toByteArray(value)), keyConverter);
+    }
+
+    public KeyType findFirstByValue(ValueType value)
+    {
+        checkOpen();
+        SortedValues<byte[]> keys = data.keys(valueConverter.toByteArray(value));
+        if (keys == null)
+            return null;
+        byte[] key = keys.first();
+        return keyConverter.fromByteArray(key, 0, key.length);
+    }
+
+    public long countKeys(ValueType value)
+    {
+        checkOpen();
+        SortedValues<byte[]> keys = data.keys(valueConverter.toByteArray(value));
+        return keys == null ? 0 : keys.size();
+    }
+}
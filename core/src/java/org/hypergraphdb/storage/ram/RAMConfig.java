@@ -0,0 +1,50 @@
+package org.hypergraphdb.storage.ram;
+
+import java.io.File;
+
+/**
+ * <p>
+ * The configuration of a {@link RAMStorageImplementation}. By default nothing is ever
+ * written to disk and the data is gone once the database is closed.
+ * </p>
+ */
+public class RAMConfig
+{
+    public static final String DEFAULT_SNAPSHOT_NAME = "ram.snapshot";
+
+    private boolean persistent = false;
+    private File snapshotFile = null;
+
+    /**
+     * <p>
+     * Whether the storage is restored from its snapshot file, if there is one, when the
+     * database is opened and saved to it when the database is closed. The default is
+     * <code>false</code>.
+     * </p>
+     */
+    public boolean isPersistent()
+    {
+        return persistent;
+    }
+
+    public void setPersistent(boolean persistent)
+    {
+        this.persistent = persistent;
+    }
+
+    /**
+     * <p>
+     * The snapshot file of a persistent storage. When not set, it is the
+     * {@link #DEFAULT_SNAPSHOT_NAME} file in the database location.
+     * </p>
+     */
+    public File getSnapshotFile()
+    {
+        return snapshotFile;
+    }
+
+    public void setSnapshotFile(File snapshotFile)
+    {
+        this.snapshotFile = snapshotFile;
+    }
+}
@@ -0,0 +1,203 @@
+package org.hypergraphdb.storage.ram;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+import org.hypergraphdb.HGException;
+import org.hypergraphdb.HGRandomAccessResult;
+import org.hypergraphdb.HGSearchResult;
+import org.hypergraphdb.HGSortIndex;
+import org.hypergraphdb.storage.ByteArrayConverter;
+import org.hypergraphdb.storage.HGIndexStats;
+
+/**
+ * <p>
+ * An index of a {@link RAMStorageImplementation}. Every lookup sees the entries as of the
+ * snapshot of the current transaction, including its own changes. Range lookups return
+ * the values of all keys in the range, key after key, and are not ordered by value.
+ * Ranges below a key are returned from the greatest key down.
+ * </p>
+ */
+public class RAMIndex<KeyType, ValueType> implements HGSortIndex<KeyType, ValueType>
+{
+    protected final String name;
+    protected final IndexData data;
+    protected final ByteArrayConverter<KeyType> keyConverter;
+    protected final ByteArrayConverter<ValueType> valueConverter;
+    private volatile boolean open = false;
+
+    RAMIndex(String name,
+             IndexData data,
+             ByteArrayConverter<KeyType> keyConverter,
+             ByteArrayConverter<ValueType> valueConverter)
+    {
+        this.name = name;
+        this.data = data;
+        this.keyConverter = keyConverter;
+        this.valueConverter = valueConverter;
+    }
+
+    protected void checkOpen()
+    {
+        if (!open)
+            throw new HGException("Attempting to operate on index '" + name + "' while the index is being closed.");
+    }
+
+    @SuppressWarnings("unchecked")
+    protected <T> HGRandomAccessResult<T> result(SortedValues<byte[]> set, ByteArrayConverter<T> converter)
+    {
+        if (set == null)
+            return (HGRandomAccessResult<T>)HGSearchResult.EMPTY;
+        return new ArrayResultSet<T>(set.items(), set.size(), converter, set.comparator(), true);
+    }
+
+    // The values of a range of keys, in the order of the keys and backwards for a range
+    // below a key, like the key range result sets of the BerkeleyDB storage.
+    @SuppressWarnings("unchecked")
+    private HGRandomAccessResult<ValueType> values(Map<byte[], RecordMap<byte[], SortedValues<byte[]>>.Entry> range,
+                                                   boolean backward)
+    {
+        ArrayList<Object> values = new ArrayList<Object>();
+        for (RecordMap<byte[], SortedValues<byte[]>>.Entry e : range.values())
+        {
+            SortedValues<byte[]> set = e.get();
+            if (set == null)
+                continue;
+            Object[] items = set.items();
+            for (int i = 0; i < set.size(); i++)
+                values.add(items[backward ? set.size() - 1 - i : i]);
+        }
+        if (values.isEmpty())
+            return (HGRandomAccessResult<ValueType>)HGSearchResult.EMPTY;
+        return new ArrayResultSet<ValueType>(values.toArray(), values.size(), valueConverter, data.valueComparator, false);
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public void open()
+    {
+        open = true;
+    }
+
+    public void close()
+    {
+        open = false;
+    }
+
+    public boolean isOpen()
+    {
+        return open;
+    }
+
+    public void addEntry(KeyType key, ValueType value)
+    {
+        checkOpen();
+        data.add(keyConverter.toByteArray(key), valueConverter.toByteArray(value));
+    }
+
+    public void removeEntry(KeyType key, ValueType value)
+    {
+        checkOpen();
+        data.remove(keyConverter.toByteArray(key), valueConverter.toByteArray(value));
+    }
+
+    public void removeAllEntries(KeyType key)
+    {
+        checkOpen();
+        data.removeAll(keyConverter.toByteArray(key));
+    }
+
+    public ValueType findFirst(KeyType key)
+    {
+        checkOpen();
+        SortedValues<byte[]> values = data.values(keyConverter.toByteArray(key));
+        if (values == null)
+            return null;
+        byte[] value = values.first();
+        return valueConverter.fromByteArray(value, 0, value.length);
+    }
+
+    public HGRandomAccessResult<ValueType> find(KeyType key)
+    {
+        checkOpen();
+        return result(data.values(keyConverter.toByteArray(key)), valueConverter);
+    }
+
+    @SuppressWarnings("unchecked")
+    public HGRandomAccessResult<KeyType> scanKeys()
+    {
+        checkOpen();
+        ArrayList<Object> keys = new ArrayList<Object>();
+        for (RecordMap<byte[], SortedValues<byte[]>>.Entry e : data.entries.entries().values())
+            if (e.get() != null)
+                keys.add(e.key);
+        if (keys.isEmpty())
+            return (HGRandomAccessResult<KeyType>)HGSearchResult.EMPTY;
+        return new ArrayResultSet<KeyType>(keys.toArray(), keys.size(), keyConverter, data.keyComparator, true);
+    }
+
+    public HGRandomAccessResult<ValueType> scanValues()
+    {
+        checkOpen();
+        return values(data.entries.entries(), false);
+    }
+
+    public HGSearchResult<ValueType> findLT(KeyType key)
+    {
+        checkOpen();
+        return values(data.entries.entries().headMap(keyConverter.toByteArray(key), false).descendingMap(), true);
+    }
+
+    public HGSearchResult<ValueType> findGT(KeyType key)
+    {
+        checkOpen();
+        return values(data.entries.entries().tailMap(keyConverter.toByteArray(key), false), false);
+    }
+
+    public HGSearchResult<ValueType> findLTE(KeyType key)
+    {
+        checkOpen();
+        return values(data.entries.entries().headMap(keyConverter.toByteArray(key), true).descendingMap(), true);
+    }
+
+    public HGSearchResult<ValueType> findGTE(KeyType key)
+    {
+        checkOpen();
+        return values(data.entries.entries().tailMap(keyConverter.toByteArray(key), true), false);
+    }
+
+    long countKeys()
+    {
+        long count = 0;
+        for (RecordMap<byte[], SortedValues<byte[]>>.Entry e : data.entries.entries().values())
+            if (e.get() != null)
+                count++;
+        return count;
+    }
+
+    long countEntries()
+    {
+        long count = 0;
+        for (RecordMap<byte[], SortedValues<byte[]>>.Entry e : data.entries.entries().values())
+        {
+            SortedValues<byte[]> values = e.get();
+            if (values != null)
+                count += values.size();
+        }
+        return count;
+    }
+
+    long countValues(KeyType key)
+    {
+        SortedValues<byte[]> values = data.values(keyConverter.toByteArray(key));
+        return values == null ? 0 : values.size();
+    }
+
+    public HGIndexStats<KeyType, ValueType> stats()
+    {
+        return new RAMIndexStats<KeyType, ValueType>(this);
+    }
+}
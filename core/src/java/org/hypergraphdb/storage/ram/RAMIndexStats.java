@@ -0,0 +1,52 @@
+package org.hypergraphdb.storage.ram;
+
+import org.hypergraphdb.storage.HGIndexStats;
+
+/**
+ * <p>
+ * The statistics of a {@link RAMIndex}. All counts are exact and as of the snapshot of the
+ * current transaction - the number of keys and entries takes a scan of the index.
+ * </p>
+ */
+public class RAMIndexStats<Key, Value> implements HGIndexStats<Key, Value>
+{
+    RAMIndex<Key, Value> index;
+
+    public RAMIndexStats(RAMIndex<Key, Value> index)
+    {
+        this.index = index;
+    }
+
+    public Count entries(long cost, boolean isEstimateOk)
+    {
+        index.checkOpen();
+        return new Count(() -> index.countEntries(), false);
+    }
+
+    public Count keys(long cost, boolean isEstimateOk)
+    {
+        index.checkOpen();
+        return new Count(() -> index.countKeys(), false);
+    }
+
+    public Count values(long cost, boolean isEstimateOk)
+    {
+        index.checkOpen();
+        return new Count(() -> index.countEntries(), false);
+    }
+
+    public Count valuesOfKey(Key key, long cost, boolean isEstimateOk)
+    {
+        index.checkOpen();
+        return new Count(() -> index.countValues(key), false);
+    }
+
+    public Count keysWithValue(Value value, long cost, boolean isEstimateOk)
+    {
+        index.checkOpen();
+        if (!(index instanceof RAMBiIndex))
+            return null;
+        RAMBiIndex<Key, Value> bindex = (RAMBiIndex<Key, Value>)index;
+        return new Count(() -> bindex.countKeys(value), false);
+    }
+}
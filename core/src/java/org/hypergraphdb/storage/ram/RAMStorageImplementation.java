@@ -0,0 +1,436 @@
+package org.hypergraphdb.storage.ram;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hypergraphdb.HGConfiguration;
+import org.hypergraphdb.HGException;
+import org.hypergraphdb.HGHandleFactory;
+import org.hypergraphdb.HGIndex;
+import org.hypergraphdb.HGPersistentHandle;
+import org.hypergraphdb.HGRandomAccessResult;
+import org.hypergraphdb.HGSearchResult;
+import org.hypergraphdb.HGStore;
+import org.hypergraphdb.storage.ByteArrayConverter;
+import org.hypergraphdb.storage.HGStoreImplementation;
+import org.hypergraphdb.transaction.HGStorageTransaction;
+import org.hypergraphdb.transaction.HGTransaction;
+import org.hypergraphdb.transaction.HGTransactionConfig;
+import org.hypergraphdb.transaction.HGTransactionContext;
+import org.hypergraphdb.transaction.HGTransactionFactory;
+import org.hypergraphdb.transaction.HGTransactionManager;
+import org.hypergraphdb.transaction.TransactionConflictException;
+import org.hypergraphdb.transaction.VanillaTransaction;
+import org.hypergraphdb.util.Ref;
+
+/**
+ * <p>
+ * A storage implementation that keeps everything in memory, for scratch databases and
+ * tests. Links, data, incidence sets and the entries of each index are held in concurrent
+ * skip lists whose values are transactional boxes of the {@link HGTransactionManager}, so
+ * storage takes part in the same multi-version concurrency control as the rest of
+ * HyperGraphDB's transactional state: a transaction reads the snapshot it started with,
+ * nested transactions are supported and a transaction that read something changed by a
+ * concurrent one fails to commit with a {@link TransactionConflictException} and is retried.
+ * </p>
+ *
+ * <p>
+ * The whole storage can be saved to a file with {@link #snapshot(File)}, which is
+ * consistent even while other transactions are running. A storage configured as
+ * persistent (see {@link RAMConfig}) restores its snapshot when opened and saves it when
+ * closed.
+ * </p>
+ */
+public class RAMStorageImplementation implements HGStoreImplementation
+{
+    private static final int SNAPSHOT_MAGIC = 0x48475253;
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private RAMConfig configuration = new RAMConfig();
+    private HGStore store = null;
+    private HGHandleFactory handleFactory = null;
+    private final Ref<HGTransactionManager> txManager = () -> store.getTransactionManager();
+    private RecordMap<HGPersistentHandle, HGPersistentHandle[]> links;
+    private RecordMap<HGPersistentHandle, byte[]> data;
+    private RecordMap<HGPersistentHandle, SortedValues<HGPersistentHandle>> incidence;
+    private final Map<String, IndexData> indices = new ConcurrentHashMap<String, IndexData>();
+    private final Map<String, RAMIndex<?, ?>> openIndices = new ConcurrentHashMap<String, RAMIndex<?, ?>>();
+
+    private HGTransaction current()
+    {
+        return store.getTransactionManager().getContext().getCurrent();
+    }
+
+    private File snapshotFile()
+    {
+        File file = configuration.getSnapshotFile();
+        return file != null ? file : new File(store.getDatabaseLocation(), RAMConfig.DEFAULT_SNAPSHOT_NAME);
+    }
+
+    public RAMConfig getConfiguration()
+    {
+        return configuration;
+    }
+
+    public void startup(HGStore store, HGConfiguration configuration)
+    {
+        this.store = store;
+        this.handleFactory = configuration.getHandleFactory();
+        // HyperGraph keeps its version file in the database location.
+        new File(store.getDatabaseLocation()).mkdirs();
+        links = new RecordMap<HGPersistentHandle, HGPersistentHandle[]>(null, txManager);
+        data = new RecordMap<HGPersistentHandle, byte[]>(null, txManager);
+        incidence = new RecordMap<HGPersistentHandle, SortedValues<HGPersistentHandle>>(null, txManager);
+        if (this.configuration.isPersistent() && snapshotFile().exists())
+            restore(snapshotFile());
+    }
+
+    public void shutdown()
+    {
+        for (RAMIndex<?, ?> index : openIndices.values())
+            index.close();
+        openIndices.clear();
+        if (configuration.isPersistent())
+            snapshot(snapshotFile());
+        indices.clear();
+        links.clear();
+        data.clear();
+        incidence.clear();
+    }
+
+    public HGTransactionFactory getTransactionFactory()
+    {
+        return new HGTransactionFactory()
+        {
+            public HGStorageTransaction createTransaction(HGTransactionContext context,
+                                                          HGTransactionConfig config,
+                                                          HGTransaction parent)
+            {
+                return new VanillaTransaction();
+            }
+
+            public boolean canRetryAfter(Throwable t)
+            {
+                return t instanceof TransactionConflictException;
+            }
+        };
+    }
+
+    public HGPersistentHandle store(HGPersistentHandle handle, HGPersistentHandle[] link)
+    {
+        if (handle == null || link == null)
+            throw new NullPointerException("Attempt to store a null handle or link.");
+        links.put(handle, link.clone());
+        return handle;
+    }
+
+    public HGPersistentHandle[] getLink(HGPersistentHandle handle)
+    {
+        HGPersistentHandle[] link = links.get(handle);
+        return link == null ? null : link.clone();
+    }
+
+    public void removeLink(HGPersistentHandle handle)
+    {
+        links.put(handle, null);
+    }
+
+    public boolean containsLink(HGPersistentHandle handle)
+    {
+        return links.get(handle) != null;
+    }
+
+    public HGPersistentHandle store(HGPersistentHandle handle, byte[] data)
+    {
+        if (handle == null || data == null)
+            throw new NullPointerException("Attempt to store a null handle or data.");
+        this.data.put(handle, data.clone());
+        return handle;
+    }
+
+    public byte[] getData(HGPersistentHandle handle)
+    {
+        byte[] result = data.get(handle);
+        return result == null ? null : result.clone();
+    }
+
+    public void removeData(HGPersistentHandle handle)
+    {
+        data.put(handle, null);
+    }
+
+    public boolean containsData(HGPersistentHandle handle)
+    {
+        return data.get(handle) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public HGRandomAccessResult<HGPersistentHandle> getIncidenceResultSet(HGPersistentHandle handle)
+    {
+        SortedValues<HGPersistentHandle> set = incidence.get(handle);
+        if (set == null)
+            return (HGRandomAccessResult<HGPersistentHandle>)HGSearchResult.EMPTY;
+        return new ArrayResultSet<HGPersistentHandle>(set.items(), set.size(), null, null, true);
+    }
+
+    public void removeIncidenceSet(HGPersistentHandle handle)
+    {
+        incidence.put(handle, null);
+    }
+
+    public long getIncidenceSetCardinality(HGPersistentHandle handle)
+    {
+        SortedValues<HGPersistentHandle> set = incidence.get(handle);
+        return set == null ? 0 : set.size();
+    }
+
+    public void addIncidenceLink(HGPersistentHandle handle, HGPersistentHandle newLink)
+    {
+        if (handle == null || newLink == null)
+            throw new NullPointerException("Attempt to add a null handle to an incidence set.");
+        HGTransaction tx = current();
+        incidence.update(handle, set ->
+            (set == null ? SortedValues.<HGPersistentHandle>empty(null) : set).with(newLink, tx));
+    }
+
+    public void addIncidenceLinks(HGPersistentHandle handle, HGPersistentHandle[] newLinks)
+    {
+        HGTransaction tx = current();
+        incidence.update(handle, set -> {
+            if (set == null)
+                set = SortedValues.<HGPersistentHandle>empty(null);
+            for (HGPersistentHandle link : newLinks)
+                set = set.with(link, tx);
+            return set;
+        });
+    }
+
+    public void removeIncidenceLink(HGPersistentHandle handle, HGPersistentHandle oldLink)
+    {
+        HGTransaction tx = current();
+        incidence.update(handle, set -> set == null ? null : set.without(oldLink, tx));
+    }
+
+    @SuppressWarnings("unchecked")
+    public <KeyType, ValueType> HGIndex<KeyType, ValueType> getIndex(String name)
+    {
+        return (HGIndex<KeyType, ValueType>)openIndices.get(name);
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized <KeyType, ValueType> HGIndex<KeyType, ValueType> getIndex(String name,
+                                                                               ByteArrayConverter<KeyType> keyConverter,
+                                                                               ByteArrayConverter<ValueType> valueConverter,
+                                                                               Comparator<byte[]> keyComparator,
+                                                                               Comparator<byte[]> valueComparator,
+                                                                               boolean isBidirectional,
+                                                                               boolean createIfNecessary)
+    {
+        RAMIndex<KeyType, ValueType> result = (RAMIndex<KeyType, ValueType>)openIndices.get(name);
+        if (result != null)
+            return result;
+        IndexData index = indices.get(name);
+        if (index == null)
+        {
+            if (!createIfNecessary)
+                return null;
+            indices.put(name, index = new IndexData(name, txManager));
+        }
+        index.configure(keyComparator, valueComparator, isBidirectional);
+        if (isBidirectional)
+            result = new RAMBiIndex<KeyType, ValueType>(name, index, keyConverter, valueConverter);
+        else
+            result = new RAMIndex<KeyType, ValueType>(name, index, keyConverter, valueConverter);
+        result.open();
+        openIndices.put(name, result);
+        return result;
+    }
+
+    public synchronized void removeIndex(String name)
+    {
+        RAMIndex<?, ?> index = openIndices.remove(name);
+        if (index != null)
+            index.close();
+        indices.remove(name);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException
+    {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException
+    {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeHandles(DataOutputStream out, Object[] handles, int size) throws IOException
+    {
+        out.writeInt(size);
+        for (int i = 0; i < size; i++)
+            writeBytes(out, ((HGPersistentHandle)handles[i]).toByteArray());
+    }
+
+    private HGPersistentHandle[] readHandles(DataInputStream in) throws IOException
+    {
+        HGPersistentHandle[] handles = new HGPersistentHandle[in.readInt()];
+        for (int i = 0; i < handles.length; i++)
+            handles[i] = handleFactory.makeHandle(readBytes(in));
+        return handles;
+    }
+
+    private void writeSnapshot(DataOutputStream out) throws IOException
+    {
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeInt(SNAPSHOT_VERSION);
+        for (RecordMap<HGPersistentHandle, HGPersistentHandle[]>.Entry e : links.entries().values())
+        {
+            HGPersistentHandle[] link = e.get();
+            if (link == null)
+                continue;
+            out.writeBoolean(true);
+            writeBytes(out, e.key.toByteArray());
+            writeHandles(out, link, link.length);
+        }
+        out.writeBoolean(false);
+        for (RecordMap<HGPersistentHandle, byte[]>.Entry e : data.entries().values())
+        {
+            byte[] bytes = e.get();
+            if (bytes == null)
+                continue;
+            out.writeBoolean(true);
+            writeBytes(out, e.key.toByteArray());
+            writeBytes(out, bytes);
+        }
+        out.writeBoolean(false);
+        for (RecordMap<HGPersistentHandle, SortedValues<HGPersistentHandle>>.Entry e : incidence.entries().values())
+        {
+            SortedValues<HGPersistentHandle> set = e.get();
+            if (set == null)
+                continue;
+            out.writeBoolean(true);
+            writeBytes(out, e.key.toByteArray());
+            writeHandles(out, set.items(), set.size());
+        }
+        out.writeBoolean(false);
+        for (IndexData index : indices.values())
+        {
+            out.writeBoolean(true);
+            out.writeUTF(index.name);
+            out.writeBoolean(index.isBidirectional());
+            for (RecordMap<byte[], SortedValues<byte[]>>.Entry e : index.entries.entries().values())
+            {
+                SortedValues<byte[]> values = e.get();
+                if (values == null)
+                    continue;
+                out.writeBoolean(true);
+                writeBytes(out, e.key);
+                out.writeInt(values.size());
+                Object[] items = values.items();
+                for (int i = 0; i < values.size(); i++)
+                    writeBytes(out, (byte[])items[i]);
+            }
+            out.writeBoolean(false);
+        }
+        out.writeBoolean(false);
+    }
+
+    /**
+     * <p>
+     * Save the whole storage to a file, as of the snapshot of a new read-only transaction.
+     * The file is replaced only once it is completely written.
+     * </p>
+     */
+    public void snapshot(File file)
+    {
+        File tmp = new File(file.getPath() + ".tmp");
+        if (file.getAbsoluteFile().getParentFile() != null)
+            file.getAbsoluteFile().getParentFile().mkdirs();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16)))
+        {
+            store.getTransactionManager().ensureTransaction(() -> {
+                writeSnapshot(out);
+                return null;
+            }, HGTransactionConfig.READONLY);
+        }
+        catch (IOException ex)
+        {
+            throw new HGException("Failed to write storage snapshot " + file, ex);
+        }
+        try
+        {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException ex)
+        {
+            throw new HGException("Failed to replace storage snapshot " + file, ex);
+        }
+    }
+
+    /**
+     * <p>
+     * Replace the contents of the storage by those of a snapshot file. This is done when
+     * the storage is opened - the storage must not be in use.
+     * </p>
+     */
+    private void restore(File file)
+    {
+        links.clear();
+        data.clear();
+        incidence.clear();
+        indices.clear();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16)))
+        {
+            if (in.readInt() != SNAPSHOT_MAGIC)
+                throw new HGException("Not a storage snapshot: " + file);
+            int version = in.readInt();
+            if (version != SNAPSHOT_VERSION)
+                throw new HGException("Unsupported storage snapshot version " + version + " of " + file);
+            while (in.readBoolean())
+                links.load(handleFactory.makeHandle(readBytes(in)), readHandles(in));
+            while (in.readBoolean())
+                data.load(handleFactory.makeHandle(readBytes(in)), readBytes(in));
+            while (in.readBoolean())
+            {
+                HGPersistentHandle handle = handleFactory.makeHandle(readBytes(in));
+                HGPersistentHandle[] set = readHandles(in);
+                Arrays.sort(set);
+                incidence.load(handle, SortedValues.<HGPersistentHandle>of(set, null));
+            }
+            while (in.readBoolean())
+            {
+                IndexData index = new IndexData(in.readUTF(), txManager);
+                boolean bidirectional = in.readBoolean();
+                while (in.readBoolean())
+                {
+                    byte[] key = readBytes(in);
+                    Object[] values = new Object[in.readInt()];
+                    for (int i = 0; i < values.length; i++)
+                        values[i] = readBytes(in);
+                    index.entries.load(key, SortedValues.sort(values, index.valueComparator));
+                }
+                index.configure(null, null, bidirectional);
+                indices.put(index.name, index);
+            }
+        }
+        catch (IOException ex)
+        {
+            throw new HGException("Failed to read storage snapshot " + file, ex);
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package org.hypergraphdb.storage.ram;
+
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.UnaryOperator;
+
+import org.hypergraphdb.transaction.HGTransaction;
+import org.hypergraphdb.transaction.HGTransactionManager;
+import org.hypergraphdb.transaction.VBox;
+import org.hypergraphdb.transaction.VBoxBody;
+import org.hypergraphdb.util.Ref;
+
+/**
+ * <p>
+ * A concurrent sorted map whose entries are transactional boxes: reads see the snapshot of
+ * the current {@link HGTransaction}, writes become visible when it commits and a transaction
+ * that read an entry changed by another one in the meantime fails to commit.
+ * </p>
+ *
+ * <p>
+ * Entries are created by writers and removed again once their value is <code>null</code>,
+ * no running transaction could see an older value and none is about to write to them. Such
+ * an entry is "dead": a transaction still holding on to it reads <code>null</code> and
+ * won't be able to commit if it did so, and a late write to it is redirected to the live
+ * entry of the same key.
+ * </p>
+ *
+ * @param <K> The type of the keys.
+ * @param <V> The type of the values, which must be immutable once committed.
+ */
+class RecordMap<K, V>
+{
+    private final ConcurrentSkipListMap<K, Entry> map;
+    private final Ref<HGTransactionManager> manager;
+
+    final class Entry extends VBox<V>
+    {
+        final K key;
+        // The most recently committed body, null until the first commit - guarded by this.
+        private VBoxBody<V> latest = null;
+        // The latest body once no transaction can see anything older.
+        private VBoxBody<V> cleared = null;
+        private Set<HGTransaction> writers = null;
+        private boolean dead = false;
+
+        private class Body extends VBoxBody<V>
+        {
+            Body(V value, long version, VBoxBody<V> next)
+            {
+                super(value, version, next);
+            }
+
+            public void clearPrevious()
+            {
+                super.clearPrevious();
+                Entry.this.cleared(this);
+            }
+        }
+
+        Entry(K key)
+        {
+            this.key = key;
+        }
+
+        private void bind()
+        {
+            if (txManager == null)
+                txManager = manager.get();
+        }
+
+        public VBoxBody<V> makeNewBody(V value, long version, VBoxBody<V> next)
+        {
+            return new Body(value, version, next);
+        }
+
+        public V get()
+        {
+            bind();
+            return super.get();
+        }
+
+        public void put(V value)
+        {
+            bind();
+            super.put(value);
+            // Outside of a transaction the value is simply overwritten, so there's no older
+            // one to keep around.
+            if (txManager.getContext().getCurrent() == null)
+                synchronized (this)
+                {
+                    if (latest != null)
+                        latest.clearPrevious();
+                }
+        }
+
+        public VBoxBody<V> commit(HGTransaction tx, V newValue, long txNumber)
+        {
+            synchronized (this)
+            {
+                if (!dead)
+                    return latest = super.commit(tx, newValue, txNumber);
+            }
+            return entry(key).commit(tx, newValue, txNumber);
+        }
+
+        public void finish(HGTransaction tx)
+        {
+            if (tx.getParent() != null)
+                return;
+            synchronized (this)
+            {
+                if (writers != null && writers.remove(tx) && writers.isEmpty())
+                    writers = null;
+                if (latest == null || latest == cleared)
+                    die();
+            }
+        }
+
+        /**
+         * <p>
+         * Record that the current transaction is going to write this entry, so it won't be
+         * removed until the transaction ends. Return <code>false</code> if the entry is
+         * already dead.
+         * </p>
+         */
+        synchronized boolean beginWrite(HGTransaction tx)
+        {
+            if (dead)
+                return false;
+            if (tx != null)
+            {
+                if (writers == null)
+                    writers = new HashSet<HGTransaction>();
+                writers.add(tx.getTopLevel());
+            }
+            return true;
+        }
+
+        /**
+         * <p>Return the most recently committed value, regardless of the current transaction.</p>
+         */
+        synchronized V committed()
+        {
+            return latest == null ? null : latest.value;
+        }
+
+        private synchronized void cleared(VBoxBody<V> body)
+        {
+            if (body == latest)
+            {
+                cleared = body;
+                die();
+            }
+        }
+
+        private void die()
+        {
+            if (dead || writers != null || latest != null && latest.value != null)
+                return;
+            dead = true;
+            // A body that no snapshot reaches, so whoever read this entry has a stale version.
+            super.commit(null, null, Long.MAX_VALUE);
+            map.remove(key, this);
+        }
+    }
+
+    /**
+     * @param comparator The key order or <code>null</code> for the natural order.
+     * @param manager Gives the transaction manager, which doesn't exist yet while the
+     * storage is starting up.
+     */
+    RecordMap(Comparator<? super K> comparator, Ref<HGTransactionManager> manager)
+    {
+        this.map = new ConcurrentSkipListMap<K, Entry>(comparator);
+        this.manager = manager;
+    }
+
+    Entry entry(K key)
+    {
+        Entry e = map.get(key);
+        if (e == null)
+        {
+            Entry created = new Entry(key);
+            e = map.putIfAbsent(key, created);
+            if (e == null)
+                e = created;
+        }
+        return e;
+    }
+
+    private Entry writable(K key)
+    {
+        HGTransaction tx = manager.get().getContext().getCurrent();
+        while (true)
+        {
+            Entry e = entry(key);
+            if (e.beginWrite(tx))
+                return e;
+            map.remove(key, e);
+        }
+    }
+
+    /**
+     * <p>Return the value of a key in the current transaction or <code>null</code>.</p>
+     */
+    V get(K key)
+    {
+        Entry e = map.get(key);
+        return e == null ? null : e.get();
+    }
+
+    void put(K key, V value)
+    {
+        writable(key).put(value);
+    }
+
+    /**
+     * <p>
+     * Replace the value of a key by a function of its current value. The function may
+     * return <code>null</code> to remove the key or the very same value if it was changed
+     * in place - only values not yet visible outside the current transaction may be, or
+     * outside of a transaction values that are not being read.
+     * </p>
+     */
+    void update(K key, UnaryOperator<V> f)
+    {
+        Entry e = writable(key);
+        V value = e.get();
+        V updated = f.apply(value);
+        if (updated != value)
+            e.put(updated);
+    }
+
+    /**
+     * <p>
+     * Set the committed value of a key directly, bypassing transactions. This is only used
+     * while nothing else accesses the map, when it is being loaded.
+     * </p>
+     */
+    void load(K key, V value)
+    {
+        entry(key).commit(null, value, 0);
+    }
+
+    ConcurrentNavigableMap<K, Entry> entries()
+    {
+        return map;
+    }
+
+    void clear()
+    {
+        map.clear();
+    }
+}
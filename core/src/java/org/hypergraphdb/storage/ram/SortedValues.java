@@ -0,0 +1,159 @@
+package org.hypergraphdb.storage.ram;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.hypergraphdb.transaction.HGTransaction;
+
+/**
+ * <p>
+ * A sorted set of values held in an array - an incidence set or the values of an index
+ * key. Sets are immutable once committed: a change is made to a copy that belongs to the
+ * current transaction, and that copy is changed in place by later changes of the same
+ * transaction, until it is read through a result set. Outside of a transaction, there's
+ * no isolation to preserve and a set is changed in place as long as it's not being read.
+ * </p>
+ */
+final class SortedValues<T>
+{
+    private Object[] items;
+    private int size;
+    private final Comparator<? super T> comparator;
+    // Changes made outside of a transaction are made in place too.
+    private static final Object NO_TRANSACTION = new Object();
+
+    // The transaction which may still change this set in place or null.
+    private Object owner;
+
+    SortedValues(Object[] items, int size, Comparator<? super T> comparator)
+    {
+        this.items = items;
+        this.size = size;
+        this.comparator = comparator;
+    }
+
+    static <T> SortedValues<T> empty(Comparator<? super T> comparator)
+    {
+        return new SortedValues<T>(new Object[0], 0, comparator);
+    }
+
+    /**
+     * <p>Create a set from values that are already sorted and distinct.</p>
+     */
+    static <T> SortedValues<T> of(Object[] items, Comparator<? super T> comparator)
+    {
+        return new SortedValues<T>(items, items.length, comparator);
+    }
+
+    static <T> SortedValues<T> sort(Object[] items, Comparator<? super T> comparator)
+    {
+        @SuppressWarnings("unchecked")
+        Comparator<Object> c = (Comparator<Object>)comparator;
+        Arrays.sort(items, c);
+        return of(items, comparator);
+    }
+
+    @SuppressWarnings("unchecked")
+    private int indexOf(T value)
+    {
+        int low = 0, high = size - 1;
+        while (low <= high)
+        {
+            int mid = (low + high) >>> 1;
+            T x = (T)items[mid];
+            int cmp = comparator == null ? ((Comparable<T>)x).compareTo(value) : comparator.compare(x, value);
+            if (cmp < 0)
+                low = mid + 1;
+            else if (cmp > 0)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -(low + 1);
+    }
+
+    private SortedValues<T> writable(HGTransaction tx, int capacity)
+    {
+        Object writer = tx == null ? NO_TRANSACTION : tx;
+        if (owner == writer)
+        {
+            if (items.length < capacity)
+                items = Arrays.copyOf(items, Math.max(capacity, items.length * 2));
+            return this;
+        }
+        SortedValues<T> copy = new SortedValues<T>(Arrays.copyOf(items, Math.max(capacity, size)), size, comparator);
+        copy.owner = writer;
+        return copy;
+    }
+
+    /**
+     * <p>
+     * Return a set with <code>value</code> added, which may be this very set if it
+     * already contains <code>value</code> or if it belongs to <code>tx</code>.
+     * </p>
+     */
+    SortedValues<T> with(T value, HGTransaction tx)
+    {
+        int i = indexOf(value);
+        if (i >= 0)
+            return this;
+        i = -i - 1;
+        SortedValues<T> result = writable(tx, size + 1);
+        System.arraycopy(result.items, i, result.items, i + 1, size - i);
+        result.items[i] = value;
+        result.size = size + 1;
+        return result;
+    }
+
+    /**
+     * <p>
+     * Return a set without <code>value</code>, or <code>null</code> if it would be empty.
+     * </p>
+     */
+    SortedValues<T> without(T value, HGTransaction tx)
+    {
+        int i = indexOf(value);
+        if (i < 0)
+            return this;
+        if (size == 1)
+            return null;
+        SortedValues<T> result = writable(tx, size);
+        System.arraycopy(result.items, i + 1, result.items, i, size - i - 1);
+        result.size = size - 1;
+        result.items[result.size] = null;
+        return result;
+    }
+
+    boolean contains(T value)
+    {
+        return indexOf(value) >= 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    T first()
+    {
+        return (T)items[0];
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    Comparator<? super T> comparator()
+    {
+        return comparator;
+    }
+
+    /**
+     * <p>
+     * Return the array holding the elements, which won't change anymore - the first
+     * {@link #size()} of them are the elements of the set.
+     * </p>
+     */
+    Object[] items()
+    {
+        owner = null;
+        return items;
+    }
+}
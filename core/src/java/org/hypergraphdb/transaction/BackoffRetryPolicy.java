@@ -0,0 +1,199 @@
+/* 
+ * This file is part of the HyperGraphDB source distribution. This is copyrighted 
+ * software. For permitted uses, licensing options and redistribution, please see  
+ * the LicensingInformation file at the root level of the distribution.  
+ * 
+ * Copyright (c) 2005-2010 Kobrix Software, Inc.  All rights reserved. 
+ */
+package org.hypergraphdb.transaction;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 
+ * <p>
+ * A {@link HGTransactionRetryPolicy} that backs off exponentially, with random jitter,
+ * between successive attempts of a conflicting transaction. The number of attempts 
+ * and the total time spent on a transaction may be bounded. Optionally, instead of
+ * (or before) sleeping, a failed transaction may wait until some other transaction
+ * commits, since a retry cannot succeed before the conflicting writer has published 
+ * its changes.
+ * </p>
+ * 
+ * <p>
+ * The same instance may be shared by many threads and it keeps counters of its activity 
+ * that can be used to tune the parameters to a given workload.
+ * </p>
+ * 
+ * @author Borislav Iordanov
+ *
+ */
+public class BackoffRetryPolicy implements HGTransactionRetryPolicy
+{
+    private long baseDelay = 1;
+    private long maxDelay = 100;
+    private int maxAttempts = 0;
+    private long deadline = 0;
+    private boolean waitForCommitter = false;
+    
+    private AtomicLong retries = new AtomicLong(0);
+    private AtomicLong givenUp = new AtomicLong(0);
+    private AtomicLong backoffTime = new AtomicLong(0);
+    private AtomicLong committerWaits = new AtomicLong(0);
+    
+    public BackoffRetryPolicy()
+    {        
+    }
+    
+    /**
+     * @param baseDelay The delay in milliseconds before the first retry.
+     * @param maxDelay The maximum delay in milliseconds between two attempts.
+     */
+    public BackoffRetryPolicy(long baseDelay, long maxDelay)
+    {
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+    }
+    
+    public boolean retry(HGTransactionManager manager, int attempt, long startTime, long conflictAfter)
+    {
+        long elapsed = System.currentTimeMillis() - startTime;
+        if (maxAttempts > 0 && attempt >= maxAttempts || deadline > 0 && elapsed >= deadline)
+        {
+            givenUp.incrementAndGet();
+            return false;
+        }
+        long delay = baseDelay << Math.min(attempt - 1, 30);
+        if (delay <= 0 || delay > maxDelay)
+            delay = maxDelay;
+        // "Equal jitter": keep half of the delay and randomize the other half
+        delay = delay/2 + ThreadLocalRandom.current().nextLong(delay/2 + 1);
+        if (deadline > 0)
+            delay = Math.min(delay, deadline - elapsed);
+        long waitStart = System.currentTimeMillis();
+        try
+        {
+            if (waitForCommitter)
+            {
+                committerWaits.incrementAndGet();
+                manager.awaitCommitAfter(conflictAfter, delay);
+            }
+            else if (delay > 0)
+                Thread.sleep(delay);
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            givenUp.incrementAndGet();
+            return false;
+        }
+        backoffTime.addAndGet(System.currentTimeMillis() - waitStart);
+        retries.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * <p>Return the delay in milliseconds before the first retry. Each subsequent retry
+     * doubles the delay, up to <code>maxDelay</code>.</p>
+     */
+    public long getBaseDelay()
+    {
+        return baseDelay;
+    }
+
+    public void setBaseDelay(long baseDelay)
+    {
+        this.baseDelay = baseDelay;
+    }
+
+    /**
+     * <p>Return the maximum delay in milliseconds between two attempts.</p>
+     */
+    public long getMaxDelay()
+    {
+        return maxDelay;
+    }
+
+    public void setMaxDelay(long maxDelay)
+    {
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * <p>Return the maximum number of attempts before giving up, 0 (the default) meaning 
+     * no limit.</p>
+     */
+    public int getMaxAttempts()
+    {
+        return maxAttempts;
+    }
+
+    public void setMaxAttempts(int maxAttempts)
+    {
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * <p>Return the maximum time in milliseconds, counted from the start of the first attempt,
+     * after which a conflicting transaction is no longer retried, 0 (the default) meaning no
+     * limit.</p>
+     */
+    public long getDeadline()
+    {
+        return deadline;
+    }
+
+    public void setDeadline(long deadline)
+    {
+        this.deadline = deadline;
+    }
+
+    /**
+     * <p>Return <code>true</code> if a conflicting transaction waits, for at most the current
+     * backoff delay, until another transaction commits instead of sleeping for the full 
+     * delay.</p>
+     */
+    public boolean isWaitForCommitter()
+    {
+        return waitForCommitter;
+    }
+
+    public void setWaitForCommitter(boolean waitForCommitter)
+    {
+        this.waitForCommitter = waitForCommitter;
+    }
+
+    /**
+     * <p>Return the number of retries granted by this policy.</p>
+     */
+    public long getRetries()
+    {
+        return retries.get();
+    }
+
+    /**
+     * <p>Return the number of transactions for which this policy refused a retry, 
+     * because of the attempts limit or the deadline.</p> 
+     */
+    public long getGivenUp()
+    {
+        return givenUp.get();
+    }
+
+    /**
+     * <p>Return the total time in milliseconds threads have spent backing off.</p>
+     */
+    public long getBackoffTime()
+    {
+        return backoffTime.get();
+    }
+    
+    /**
+     * <p>Return the number of times a thread waited for another transaction to commit.</p>
+     */
+    public long getCommitterWaits()
+    {
+        return committerWaits.get();
+    }
+}
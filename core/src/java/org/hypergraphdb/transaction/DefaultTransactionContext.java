@@ -23,12 +23,27 @@ public class DefaultTransactionContext implements HGTransactionContext
 {
 	private SimpleStack<HGTransaction> tstack = new SimpleStack<HGTransaction>();
 	private HGTransactionManager manager = null;
+	private HGTransaction base = null;
 	
 	public DefaultTransactionContext(HGTransactionManager manager)
 	{
 		this.manager = manager;
 	}
 	
+	/**
+	 * <p>
+	 * Construct a context whose current transaction is <code>base</code> as long as no
+	 * transaction has been begun in it. This lets a worker thread read within the transaction
+	 * of another thread while keeping a stack of its own. Transactions begun in this context 
+	 * are not nested in <code>base</code>, the bottom one is a top-level transaction.
+	 * </p>
+	 */
+	public DefaultTransactionContext(HGTransactionManager manager, HGTransaction base)
+	{
+		this.manager = manager;
+		this.base = base;
+	}
+	
 	public HGTransactionManager getManager()
 	{
 	    return manager;
@@ -40,7 +55,7 @@ public class DefaultTransactionContext implements HGTransactionContext
 	 */
 	public HGTransaction getCurrent()
 	{
-		return tstack.isEmpty() ? null : tstack.peek();
+		return tstack.isEmpty() ? base : tstack.peek();
 	}
 	
     public void beginTransaction(HGTransactionConfig config)
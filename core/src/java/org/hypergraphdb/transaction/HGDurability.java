@@ -0,0 +1,41 @@
+/*
+ * This file is part of the HyperGraphDB source distribution. This is copyrighted
+ * software. For permitted uses, licensing options and redistribution, please see
+ * the LicensingInformation file at the root level of the distribution.
+ *
+ * Copyright (c) 2005-2010 Kobrix Software, Inc.  All rights reserved.
+ */
+package org.hypergraphdb.transaction;
+
+/**
+ *
+ * <p>
+ * How much effort the storage layer makes to persist a committed transaction before the
+ * commit returns. Configured per transaction with
+ * {@link HGTransactionConfig#setDurability(HGDurability)} - when it's not specified, the
+ * default of the storage implementation applies. Storage implementations that don't
+ * distinguish between the levels treat them all the same.
+ * </p>
+ *
+ * @author Borislav Iordanov
+ *
+ */
+public enum HGDurability
+{
+    /**
+     * The log is written and flushed to disk on commit - a committed transaction survives
+     * an operating system crash or a power failure.
+     */
+    SYNC,
+    /**
+     * The log is written to the file system on commit, but not flushed to disk - a committed
+     * transaction survives an application crash, but not an operating system crash.
+     */
+    WRITE_NO_SYNC,
+    /**
+     * The log is neither written nor flushed on commit, it stays in memory until it's written
+     * out by a later commit, a checkpoint or when the buffer fills up. This is the fastest
+     * option, but recently committed transactions are lost if the application crashes.
+     */
+    NO_SYNC
+}
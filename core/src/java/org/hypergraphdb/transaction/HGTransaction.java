@@ -7,10 +7,13 @@
  */
 package org.hypergraphdb.transaction;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -44,12 +47,20 @@ public final class HGTransaction implements HGStorageTransaction
     private HGTransactionContext context;
     private HGStorageTransaction stran = null;
     private Map<Object, Object> attributes = new HashMap<Object, Object>();
-    Map<VBox<?>, VBoxBody<?>> bodiesRead = new HashMap<VBox<?>, VBoxBody<?>>();
-    private Map<VBox<?>, Object> boxesWritten = new HashMap<VBox<?>, Object>();
+    Map<VBox<?>, VBoxBody<?>> bodiesRead;
+    private Map<VBox<?>, Object> boxesWritten;
     private long number;
     private boolean readonly = false;
+    private boolean snapshot = false;
     private ActiveTransactionsRecord activeTxRecord;
     private Set<Runnable> abortActions = new HashSet<Runnable>();
+    private Set<Runnable> commitActions = null;
+    private List<Runnable> beforePublish = null, afterPublish = null;
+    
+    // Group commit state, read and written only while holding the manager's COMMIT_LOCK. 
+    static final int GROUP_PENDING = 0, GROUP_COMMITTED = 1, GROUP_CONFLICT = 2, GROUP_FAILED = 3; 
+    int groupCommitStatus = GROUP_PENDING;
+    Throwable groupCommitFailure = null;
     
     long getNumber()
     {
@@ -92,6 +103,35 @@ public final class HGTransaction implements HGStorageTransaction
         return !boxesWritten.isEmpty();
     }
 
+    /**
+     * Return one of the given boxes that this transaction has read or <code>null</code> if 
+     * there's none. Used during group commit to detect conflicts with transactions ahead 
+     * in the same batch.
+     */
+    VBox<?> findRead(Set<VBox<?>> boxes)
+    {
+        if (!readonly && !boxes.isEmpty()) for (VBox<?> box : bodiesRead.keySet())
+            if (boxes.contains(box))
+                return box;
+        return null;
+    }
+
+    /**
+     * Return <code>true</code> if this transaction has written to any of the given boxes.
+     */
+    boolean hasWritten(Set<VBox<?>> boxes)
+    {
+        if (!boxes.isEmpty()) for (VBox<?> box : boxesWritten.keySet())
+            if (boxes.contains(box))
+                return true;
+        return false;
+    }
+    
+    Set<VBox<?>> getBoxesWritten()
+    {
+        return boxesWritten.keySet();
+    }
+
     /**
      * A commit can proceed only if none of the values we've read during
      * the transaction has changed (i.e. has been committed) since we read
@@ -99,6 +139,15 @@ public final class HGTransaction implements HGStorageTransaction
      * as the one tagged with this transaction's number.
      */
     protected boolean validateCommit()
+    {
+        return findConflict() == null;
+    }
+
+    /**
+     * Return a box read by this transaction that has been modified since it was read
+     * or <code>null</code> if there's no such box and the transaction can commit.
+     */
+    VBox<?> findConflict()
     {
         if (!readonly) for (Map.Entry<VBox<?>, VBoxBody<?>> entry : bodiesRead.entrySet())
         {
@@ -107,10 +156,10 @@ public final class HGTransaction implements HGStorageTransaction
             // transactional caches
             if (entry.getKey().body.version != entry.getValue().version)
             {
-                return false;
+                return entry.getKey();
             }
         }
-        return true;
+        return null;
     }
 
     protected Cons<VBoxBody<?>> performValidCommit()
@@ -126,8 +175,15 @@ public final class HGTransaction implements HGStorageTransaction
      */
     protected Cons<VBoxBody<?>> doCommit()
     {
-        Cons<VBoxBody<?>> newBodies = Cons.EMPTY;
+        return doCommit(Cons.EMPTY);
+    }
 
+    /**
+     * Same as {@link #doCommit()}, but prepend the new bodies to an existing list - this 
+     * is used when a group of transactions is committed under the same number.
+     */
+    Cons<VBoxBody<?>> doCommit(Cons<VBoxBody<?>> newBodies)
+    {
         for (Map.Entry<VBox<?>, Object> entry : boxesWritten.entrySet())
         {
             VBox<Object> vbox = (VBox<Object>)entry.getKey();
@@ -141,6 +197,24 @@ public final class HGTransaction implements HGStorageTransaction
         return newBodies;
     }
 
+    /**
+     * Commit this (validated) transaction as part of a group under the given transaction
+     * number and move it to the new <code>ActiveTransactionsRecord</code> published by the 
+     * group.
+     */
+    Cons<VBoxBody<?>> groupCommit(long groupNumber, Cons<VBoxBody<?>> newBodies)
+    {
+        number = groupNumber;
+        return doCommit(newBodies);
+    }
+    
+    void moveToRecord(ActiveTransactionsRecord newRecord)
+    {
+        newRecord.incrementRunning();
+        this.activeTxRecord.decrementRunning();
+        this.activeTxRecord = newRecord;
+    }
+    
     void finish() 
     {
         if (!readonly) for (Map.Entry<VBox<?>, VBoxBody<?>> entry : bodiesRead.entrySet())
@@ -184,14 +258,27 @@ public final class HGTransaction implements HGStorageTransaction
                   HGTransaction parent,
                   ActiveTransactionsRecord activeTxRecord, 
                   HGStorageTransaction impl,
-                  boolean readonly)
+                  boolean readonly,
+                  boolean snapshot)
     {
         this.stran = impl;
         this.context = context;
         this.parent = parent;
         this.activeTxRecord = activeTxRecord;
         this.number = activeTxRecord.transactionNumber;
-        this.readonly = readonly;
+        this.readonly = readonly || snapshot;
+        this.snapshot = snapshot;
+        // A snapshot never records reads and can't write, so don't pay for the bookkeeping. 
+        if (snapshot)
+        {
+            bodiesRead = Collections.emptyMap();
+            boxesWritten = Collections.emptyMap();
+        }
+        else
+        {
+            bodiesRead = new HashMap<VBox<?>, VBoxBody<?>>();
+            boxesWritten = new HashMap<VBox<?>, Object>();
+        }
     }
 
     public HGStorageTransaction getStorageTransaction()
@@ -216,6 +303,7 @@ public final class HGTransaction implements HGStorageTransaction
                 parent.bodiesRead.putAll(bodiesRead);
             parent.boxesWritten.putAll(boxesWritten);
             finish();
+            runCommitActions();
             HyperGraph graph = context.getManager().getHyperGraph();
             graph.getEventManager().dispatch(graph,
                                              new HGTransactionEndEvent(this, true));            
@@ -224,38 +312,81 @@ public final class HGTransaction implements HGStorageTransaction
         
         // Otherwise this is a top-level transaction, we need to do more serious work.
         
-        if (isWriteTransaction())
+        TxMonitor monitor = context.getManager().activeMonitor();
+        long commitStart = monitor == null ? 0 : System.nanoTime();
+        boolean write = isWriteTransaction();
+        if (write && context.getManager().isGroupCommit())
+        {
+            if (!context.getManager().groupCommit(this))
+            {
+                if (groupCommitStatus == GROUP_FAILED)
+                    fatalFailure(groupCommitFailure);
+                try
+                {
+                    privateAbort();
+                }
+                catch (Throwable t)
+                {
+                    fatalFailure(t);
+                }
+                throw new TransactionConflictException();
+            }
+        }
+        else if (write)
         {
             context.getManager().COMMIT_LOCK.lock();
+            if (monitor != null)
+                monitor.commitLockWait.record(System.nanoTime() - commitStart);
             try
             {
-                if (validateCommit())
+                long t0 = monitor == null ? 0 : System.nanoTime();
+                VBox<?> conflict = findConflict();
+                if (monitor != null)
+                    monitor.validationTime.record(System.nanoTime() - t0);
+                if (conflict == null)
                 {
-                    if (stran != null)
-                        stran.commit();                    
+                    runBeforePublish();
+                    try
+                    {
+                        if (stran != null)
+                        {
+                            if (monitor != null)
+                                t0 = System.nanoTime();
+                            stran.commit();
+                            if (monitor != null)
+                                monitor.storageCommitTime.record(System.nanoTime() - t0);
+                        }
                     
-                    Cons<VBoxBody<?>> bodiesCommitted = performValidCommit();
+                        Cons<VBoxBody<?>> bodiesCommitted = performValidCommit();
                     
-                    // The commit is already done, so create a new ActiveTransactionsRecord
-                    ActiveTransactionsRecord newRecord = new ActiveTransactionsRecord(number,
-                                                                                      bodiesCommitted);
-                    context.getManager().mostRecentRecord.setNext(newRecord);
-                    //newRecord.setPrev(context.getManager().mostRecentRecord);
-                    context.getManager().mostRecentRecord = newRecord;
+                        // The commit is already done, so create a new ActiveTransactionsRecord
+                        ActiveTransactionsRecord newRecord = new ActiveTransactionsRecord(number,
+                                                                                          bodiesCommitted);
+                        context.getManager().mostRecentRecord.setNext(newRecord);
+                        //newRecord.setPrev(context.getManager().mostRecentRecord);
+                        context.getManager().mostRecentRecord = newRecord;
 
-                    // as this transaction changed number, we must
-                    // update the activeRecords accordingly
+                        // as this transaction changed number, we must
+                        // update the activeRecords accordingly
 
-                    // the correct order is to increment first the
-                    // new, and only then decrement the old
-                    newRecord.incrementRunning();
-                    this.activeTxRecord.decrementRunning();
+                        // the correct order is to increment first the
+                        // new, and only then decrement the old
+                        newRecord.incrementRunning();
+                        this.activeTxRecord.decrementRunning();
                     
-                    // This assignment is need to decrementRunning in the finish method below.                    
-                    this.activeTxRecord = newRecord;
+                        // This assignment is need to decrementRunning in the finish method below.                    
+                        this.activeTxRecord = newRecord;
+                        context.getManager().COMMITTED.signalAll();
+                    }
+                    finally
+                    {
+                        runAfterPublish();
+                    }
                 }
                 else
                 {
+                    if (monitor != null)
+                        monitor.conflict(conflict);
                     try
                     {
                         privateAbort();
@@ -279,15 +410,52 @@ public final class HGTransaction implements HGStorageTransaction
         }                
         else
         {
-            if (stran != null)
-                stran.commit();
+            runBeforePublish();
+            try
+            {
+                if (stran != null)
+                {
+                    long t0 = monitor == null ? 0 : System.nanoTime();
+                    stran.commit();
+                    if (monitor != null)
+                        monitor.storageCommitTime.record(System.nanoTime() - t0);
+                }
+            }
+            finally
+            {
+                runAfterPublish();
+            }
         }
+        if (monitor != null)
+            monitor.committed(write, System.nanoTime() - commitStart, bodiesRead.size(), boxesWritten.size());
+        runCommitActions();
         HyperGraph graph = context.getManager().getHyperGraph();
         graph.getEventManager().dispatch(graph,
                                          new HGTransactionEndEvent(this, true));
         finish();        
     }
 
+    private void runCommitActions()
+    {
+        if (commitActions != null)
+            for (Runnable r : commitActions)
+                r.run();
+    }
+
+    void runBeforePublish()
+    {
+        if (beforePublish != null)
+            for (Runnable r : beforePublish)
+                r.run();
+    }
+
+    void runAfterPublish()
+    {
+        if (afterPublish != null)
+            for (Runnable r : afterPublish)
+                r.run();
+    }
+    
     private void privateAbort() throws HGTransactionException
     {
         for (Runnable r : abortActions)
@@ -299,6 +467,9 @@ public final class HGTransaction implements HGStorageTransaction
     
     public void abort() throws HGTransactionException
     {
+        TxMonitor monitor = context.getManager().activeMonitor();
+        if (monitor != null && parent == null)
+            monitor.aborted();
         privateAbort();
         HyperGraph graph = context.getManager().getHyperGraph();
         graph.getEventManager().dispatch(graph, 
@@ -325,6 +496,15 @@ public final class HGTransaction implements HGStorageTransaction
         attributes.put(key, value);
     }
     
+    /**
+     * Return <code>true</code> if this is a snapshot read transaction - see 
+     * {@link HGTransactionConfig#setSnapshot(boolean)}.
+     */
+    public boolean isSnapshot()
+    {
+        return snapshot;
+    }
+    
     public boolean isReadOnly()
     {
         return this.readonly;
@@ -335,6 +515,34 @@ public final class HGTransaction implements HGStorageTransaction
         this.abortActions.add(r);
     }
     
+    /**
+     * <p>Add an action to be executed once this transaction has successfully committed. 
+     * Actions of a nested transaction are executed when it commits into its parent.</p>
+     */
+    public void addCommitAction(Runnable r)
+    {
+        if (this.commitActions == null)
+            this.commitActions = new HashSet<Runnable>();
+        this.commitActions.add(r);
+    }
+    
+    /**
+     * <p>Add actions to be executed when this transaction commits as a top-level transaction:
+     * <code>before</code> right before its changes become visible to other transactions, in
+     * storage and in memory, and <code>after</code> right after, whether the commit succeeded or
+     * not. Nested transactions never execute them.</p>
+     */
+    public void addPublishActions(Runnable before, Runnable after)
+    {
+        if (this.beforePublish == null)
+        {
+            this.beforePublish = new ArrayList<Runnable>();
+            this.afterPublish = new ArrayList<Runnable>();
+        }
+        this.beforePublish.add(before);
+        this.afterPublish.add(after);
+    }
+    
     /**
      * <p>Return the parent transaction of this transaction or <code>null</code> is this is not a nested
      * transaction.</p>
@@ -15,17 +15,22 @@ public class HGTransactionConfig
     public static final HGTransactionConfig NO_STORAGE = new HGTransactionConfig();
     public static final HGTransactionConfig READONLY = new HGTransactionConfig();
     public static final HGTransactionConfig WRITE_UPGRADABLE = new HGTransactionConfig();
+    public static final HGTransactionConfig SNAPSHOT = new HGTransactionConfig();
     
     static
     {
         NO_STORAGE.setNoStorage(true);
         READONLY.setReadonly(true);
         WRITE_UPGRADABLE.setWriteUpgradable(true);
+        SNAPSHOT.setSnapshot(true);
     }
     
     private boolean noStorage = false;
     private boolean readonly = false;
     private boolean writeUpgradable = false;
+    private boolean snapshot = false;
+    private HGTransactionRetryPolicy retryPolicy = null;
+    private HGDurability durability = null;
     
     public boolean isNoStorage()
     {
@@ -46,6 +51,8 @@ public class HGTransactionConfig
     {
         this.readonly = readonly;
         writeUpgradable = false;
+        if (!readonly)
+            snapshot = false;
     }
 
 	public boolean isWriteUpgradable() 
@@ -57,6 +64,97 @@ public class HGTransactionConfig
 	{
 		this.writeUpgradable = writeUpgradable;
 		if (writeUpgradable)
+		{
 		    readonly = true;
+		    snapshot = false;
+		}
 	}      
+
+	/**
+	 * <p>
+	 * Return <code>true</code> if this is a snapshot read transaction - see 
+	 * {@link #setSnapshot(boolean)}.
+	 * </p>
+	 */
+	public boolean isSnapshot()
+	{
+		return snapshot;
+	}
+
+	/**
+	 * <p>
+	 * Specify whether the transaction should be a snapshot read. A snapshot transaction is 
+	 * read-only and doesn't keep track of what it reads since there is nothing to validate 
+	 * at commit time. Transactions nested within a snapshot transaction are snapshots as well. 
+	 * Setting this flag to <code>true</code> also makes the transaction read-only.  
+	 * </p>
+	 * 
+	 * <p>
+	 * The transactional in-memory state (the atom cache and other versioned boxes) is read 
+	 * as of the moment the transaction started. The storage layer is asked to read without 
+	 * holding locks so that long running analytical reads don't block writers, and how 
+	 * consistent those reads are depends on the storage implementation: the native BerkeleyDB 
+	 * storage reads from an MVCC snapshot as of the start of the transaction when its 
+	 * environment is multiversion, but BerkeleyDB JE, which has no snapshot isolation, and 
+	 * native BerkeleyDB otherwise read with read-committed isolation. With read-committed 
+	 * isolation, a record read from storage may reflect commits made after the transaction 
+	 * started, and reading the same record twice may return different values.
+	 * </p>
+	 */
+	public void setSnapshot(boolean snapshot)
+	{
+		this.snapshot = snapshot;
+		if (snapshot)
+		{
+			readonly = true;
+			writeUpgradable = false;
+		}
+	}
+
+	/**
+	 * <p>
+	 * Return the policy deciding whether the transaction is re-attempted after a conflict or 
+	 * <code>null</code> if none was configured, in which case the transaction is retried 
+	 * immediately and indefinitely.
+	 * </p>
+	 */
+	public HGTransactionRetryPolicy getRetryPolicy()
+	{
+		return retryPolicy;
+	}
+
+	/**
+	 * <p>
+	 * Specify the policy deciding whether the transaction is re-attempted after a conflict. 
+	 * The policy is only used when the transaction is executed through 
+	 * {@link HGTransactionManager#transact(java.util.concurrent.Callable, HGTransactionConfig)}.
+	 * </p>
+	 */
+	public void setRetryPolicy(HGTransactionRetryPolicy retryPolicy)
+	{
+		this.retryPolicy = retryPolicy;
+	}
+
+	/**
+	 * <p>
+	 * Return the durability of the transaction's commit or <code>null</code> if none was 
+	 * configured, in which case the default of the storage implementation applies.
+	 * </p>
+	 */
+	public HGDurability getDurability()
+	{
+		return durability;
+	}
+
+	/**
+	 * <p>
+	 * Specify the durability of the transaction's commit - see {@link HGDurability}. Only 
+	 * top-level transactions are committed to storage, so the setting is ignored for 
+	 * nested transactions.
+	 * </p>
+	 */
+	public void setDurability(HGDurability durability)
+	{
+		this.durability = durability;
+	}
 }
\ No newline at end of file
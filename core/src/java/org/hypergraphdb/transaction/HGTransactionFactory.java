@@ -7,8 +7,27 @@
  */
 package org.hypergraphdb.transaction;
 
+import java.util.List;
+
 public interface HGTransactionFactory
 {
 	HGStorageTransaction createTransaction(HGTransactionContext context, HGTransactionConfig config, HGTransaction parent);
 	boolean canRetryAfter(Throwable t);
+	
+	/**
+	 * <p>
+	 * Commit a batch of already validated, top-level storage transactions as a single
+	 * group. This is called by the {@link HGTransactionManager} when group commit is 
+	 * enabled. Implementations are free to amortize the cost of making the whole batch 
+	 * durable (e.g. a single log flush). The default implementation simply commits 
+	 * each transaction in order.
+	 * </p>
+	 * 
+	 * @param batch The storage transactions to commit, in serialization order.
+	 */
+	default void commitBatch(List<HGStorageTransaction> batch) throws HGTransactionException
+	{
+		for (HGStorageTransaction tx : batch)
+			tx.commit();
+	}
 }
\ No newline at end of file
@@ -7,11 +7,19 @@
  */
 package org.hypergraphdb.transaction;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 import org.hypergraphdb.HGException;
 import org.hypergraphdb.HyperGraph;
+import org.hypergraphdb.util.Cons;
 import org.hypergraphdb.util.HGUtils;
 
 /**
@@ -31,14 +39,20 @@ public class HGTransactionManager
 	private HGTransactionFactory factory;	
 	private ThreadLocal<HGTransactionContext> tcontext =  new ThreadLocal<HGTransactionContext>();
 	private boolean enabled = true;
+	private volatile boolean groupCommit = false;
+	private final ConcurrentLinkedQueue<HGTransaction> commitQueue = new ConcurrentLinkedQueue<HGTransaction>();
 	
 	volatile ActiveTransactionsRecord mostRecentRecord = new ActiveTransactionsRecord(0, null);
     
 	final ReentrantLock COMMIT_LOCK = new ReentrantLock(true);
+	// Signaled, while holding the COMMIT_LOCK, every time a new ActiveTransactionsRecord is published  
+	final Condition COMMITTED = COMMIT_LOCK.newCondition();
         
-	TxMonitor txMonitor = null;
+	TxMonitor txMonitor = new TxMonitor();
 	AtomicInteger conflicted = new AtomicInteger(0);
 	AtomicInteger successful = new AtomicInteger(0);
+	AtomicInteger groupsCommitted = new AtomicInteger(0);
+	AtomicInteger groupedTransactions = new AtomicInteger(0);
 	
 	/** 
 	 * <p>Return <code>true</code> if the transaction are enabled and <code>false</code>
@@ -62,6 +76,145 @@ public class HGTransactionManager
 		this.enabled = enabled;
 	}
 	
+	/**
+	 * <p>Return <code>true</code> if top-level write transactions are committed in groups
+	 * and <code>false</code> (the default) if each one is committed individually.</p>
+	 */
+	public boolean isGroupCommit()
+	{
+		return groupCommit;
+	}
+	
+	/**
+	 * <p>
+	 * Enable or disable group commit. When enabled, validated write transactions
+	 * that arrive at commit time while another commit is in progress are queued up. 
+	 * The first thread to obtain the commit lock then becomes the "leader" and commits the
+	 * whole queue: each transaction is validated in order, the storage transactions
+	 * of the valid ones are committed as a single batch through 
+	 * {@link HGTransactionFactory#commitBatch(List)} and a single new 
+	 * {@link ActiveTransactionsRecord} is published for the batch. Under a high rate of 
+	 * small write transactions, this amortizes the cost of the commit critical section.
+	 * </p>
+	 * 
+	 * <p>
+	 * Transactions in a batch are serialized in arrival order - a transaction that has read
+	 * a value written by a transaction ahead of it in the same batch is failed with a
+	 * {@link TransactionConflictException} just as it would be if the two had been committed
+	 * separately.
+	 * </p>
+	 *  
+	 * @param groupCommit <code>true</code> to enable group commit and <code>false</code> to
+	 * commit each transaction individually.
+	 */
+	public void setGroupCommit(boolean groupCommit)
+	{
+		this.groupCommit = groupCommit;
+	}
+	
+	/**
+	 * <p>Return the {@link TxMonitor} collecting metrics about the transactions managed
+	 * by this manager or <code>null</code> if monitoring was turned off.</p>
+	 */
+	public TxMonitor getTxMonitor()
+	{
+		return txMonitor;
+	}
+	
+	/**
+	 * <p>Replace the {@link TxMonitor} collecting metrics about the transactions managed
+	 * by this manager. Pass <code>null</code> to turn off all monitoring.</p>
+	 */
+	public void setTxMonitor(TxMonitor txMonitor)
+	{
+		this.txMonitor = txMonitor;
+	}
+	
+	TxMonitor activeMonitor()
+	{
+		TxMonitor m = txMonitor;
+		return m != null && m.isEnabled() ? m : null;
+	}
+	
+	/**
+	 * <p>Return the number of transactions executed through one of the <code>transact</code>
+	 * methods that committed successfully.</p>
+	 */
+	public int getSuccessful()
+	{
+		return successful.get();
+	}
+
+	/**
+	 * <p>Return the number of failed attempts, because of a conflict with another transaction,
+	 * of transactions executed through one of the <code>transact</code> methods.</p> 
+	 */
+	public int getConflicted()
+	{
+		return conflicted.get();
+	}
+	
+	/**
+	 * <p>
+	 * Wait until a transaction with a number greater than <code>txNumber</code> has been 
+	 * committed or until the timeout expires. This is used by retry policies to park a 
+	 * transaction that failed because of a conflict until the conflicting transaction
+	 * has published its changes.
+	 * </p>
+	 * 
+	 * @param txNumber A transaction number, for example the one returned by
+	 * {@link #getLastCommittedNumber()}.
+	 * @param timeout The maximum time to wait, in milliseconds.
+	 * @return <code>true</code> if a later transaction has committed and <code>false</code> if 
+	 * the timeout expired.
+	 */
+	public boolean awaitCommitAfter(long txNumber, long timeout) throws InterruptedException
+	{
+		long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+		COMMIT_LOCK.lock();
+		try
+		{
+			while (mostRecentRecord.transactionNumber <= txNumber)
+			{
+				if (nanos <= 0)
+					return false;
+				nanos = COMMITTED.awaitNanos(nanos);
+			}
+			return true;
+		}
+		finally
+		{
+			COMMIT_LOCK.unlock();
+		}
+	}
+	
+	/**
+	 * <p>Return the number of the most recently committed write transaction.</p>
+	 */
+	public long getLastCommittedNumber()
+	{
+		return mostRecentRecord.transactionNumber;
+	}
+	
+	/**
+	 * <p>Return the number of commit groups (batches) published since this transaction manager
+	 * was created.</p>
+	 */
+	public int getGroupsCommitted()
+	{
+		return groupsCommitted.get();
+	}
+	
+	/**
+	 * <p>Return the number of transactions committed as part of a group since this transaction 
+	 * manager was created. Divided by {@link #getGroupsCommitted()}, this gives the average 
+	 * group size.</p>
+	 */
+	public int getGroupedTransactions()
+	{
+		return groupedTransactions.get();
+	}
+	
 	/**
 	 * <p>Enable transactions - equivalent to <code>setEnabled(true)</code>.</p>  
 	 */
@@ -185,13 +338,15 @@ public class HGTransactionManager
 	    HGStorageTransaction storageTx = config.isNoStorage() || !enabled ? null
                                         : factory.createTransaction(getContext(), config, parent);
 	    ActiveTransactionsRecord activeRecord = mostRecentRecord.getRecordForNewTransaction();
+	    boolean snapshot = config.isSnapshot() || parent != null && parent.isSnapshot();
 		if (enabled)
 		{		    
 			HGTransaction result = new HGTransaction(getContext(),
 			                                         parent,
 			                                         activeRecord,
 			                                         storageTx,
-			                                         config.isReadonly());
+			                                         config.isReadonly(),
+			                                         snapshot);
 			if (txMonitor != null)
 				txMonitor.transactionCreated(result);
 			return result;
@@ -201,7 +356,137 @@ public class HGTransactionManager
 									 parent, 
 									 activeRecord, 
 									 new VanillaTransaction(), 
-									 config.isReadonly());
+									 config.isReadonly(),
+									 snapshot);
+	}
+	
+	/**
+	 * Enqueue a top-level write transaction for group commit and wait until it has been
+	 * processed, either by this thread or by whichever thread is currently leading the
+	 * commit. Return <code>true</code> if the transaction was committed and 
+	 * <code>false</code> otherwise, in which case its <code>groupCommitStatus</code> says why.
+	 */
+	boolean groupCommit(HGTransaction tx)
+	{
+		TxMonitor monitor = activeMonitor();
+		long t0 = monitor == null ? 0 : System.nanoTime();
+		commitQueue.add(tx);
+		COMMIT_LOCK.lock();
+		if (monitor != null)
+			monitor.commitLockWait.record(System.nanoTime() - t0);
+		try
+		{
+			if (tx.groupCommitStatus == HGTransaction.GROUP_PENDING)
+				commitQueued();
+			return tx.groupCommitStatus == HGTransaction.GROUP_COMMITTED;
+		}
+		finally
+		{
+			COMMIT_LOCK.unlock();
+		}
+	}
+	
+	// Must be called while holding the COMMIT_LOCK
+	private void commitQueued()
+	{
+		TxMonitor monitor = activeMonitor();
+		List<HGTransaction> pending = new ArrayList<HGTransaction>();
+		for (HGTransaction tx = commitQueue.poll(); tx != null; tx = commitQueue.poll())
+			pending.add(tx);
+		List<HGTransaction> batch = new ArrayList<HGTransaction>(pending.size());
+		Set<VBox<?>> written = new HashSet<VBox<?>>();
+		while (!pending.isEmpty())
+		{
+			// Blind writes to a box already written in this batch would end up with two 
+			// bodies of the same version, so such transactions are deferred to the next batch.
+			List<HGTransaction> deferred = new ArrayList<HGTransaction>();
+			for (HGTransaction tx : pending)
+			{
+				long t0 = monitor == null ? 0 : System.nanoTime();
+				VBox<?> conflict = tx.findConflict();
+				if (conflict == null)
+					conflict = tx.findRead(written);
+				if (monitor != null)
+					monitor.validationTime.record(System.nanoTime() - t0);
+				if (conflict != null)
+				{
+					tx.groupCommitStatus = HGTransaction.GROUP_CONFLICT;
+					if (monitor != null)
+						monitor.conflict(conflict);
+				}
+				else if (tx.hasWritten(written))
+					deferred.add(tx);
+				else
+				{
+					written.addAll(tx.getBoxesWritten());
+					batch.add(tx);
+				}
+			}
+			try
+			{
+				publishBatch(batch, monitor);
+			}
+			catch (Throwable t)
+			{
+				for (HGTransaction tx : batch)
+				{
+					tx.groupCommitStatus = HGTransaction.GROUP_FAILED;
+					tx.groupCommitFailure = t;
+				}
+				for (HGTransaction tx : deferred)
+				{
+					tx.groupCommitStatus = HGTransaction.GROUP_FAILED;
+					tx.groupCommitFailure = t;
+				}
+				return;
+			}
+			batch.clear();
+			written.clear();
+			pending = deferred;
+		}
+	}
+	
+	private void publishBatch(List<HGTransaction> batch, TxMonitor monitor) throws HGTransactionException
+	{
+		if (batch.isEmpty())
+			return;
+		List<HGStorageTransaction> storageBatch = new ArrayList<HGStorageTransaction>(batch.size());
+		for (HGTransaction tx : batch)
+			if (tx.getStorageTransaction() != null)
+				storageBatch.add(tx.getStorageTransaction());
+		for (HGTransaction tx : batch)
+			tx.runBeforePublish();
+		try
+		{
+			if (!storageBatch.isEmpty())
+			{
+				long t0 = monitor == null ? 0 : System.nanoTime();
+				factory.commitBatch(storageBatch);
+				if (monitor != null)
+					monitor.storageCommitTime.record(System.nanoTime() - t0);
+			}
+			long number = mostRecentRecord.transactionNumber + 1;
+			@SuppressWarnings("unchecked")
+			Cons<VBoxBody<?>> bodiesCommitted = Cons.EMPTY;
+			for (HGTransaction tx : batch)
+				bodiesCommitted = tx.groupCommit(number, bodiesCommitted);
+			ActiveTransactionsRecord newRecord = new ActiveTransactionsRecord(number, bodiesCommitted);
+			mostRecentRecord.setNext(newRecord);
+			mostRecentRecord = newRecord;
+			for (HGTransaction tx : batch)
+			{
+				tx.moveToRecord(newRecord);
+				tx.groupCommitStatus = HGTransaction.GROUP_COMMITTED;
+			}
+		}
+		finally
+		{
+			for (HGTransaction tx : batch)
+				tx.runAfterPublish();
+		}
+		groupsCommitted.incrementAndGet();
+		groupedTransactions.addAndGet(batch.size());
+		COMMITTED.signalAll();
 	}
 	
 	/**
@@ -327,25 +612,45 @@ public class HGTransactionManager
 			return transact(transaction, config);
 	}
 	
-	private void handleTxException(Throwable t)
+	private boolean canRetryAfter(Throwable t)
 	{
         // If there is a DeadlockException at the root of this, we have to simply abort
         // the transaction and try again.               
-        boolean retry = false;
         for (Throwable cause = t; cause != null; cause = cause.getCause())                   
             if (factory.canRetryAfter(cause))
-            {
-                retry = true;
-                break;
-            }
-        
-        if (!retry)
-        {
-            if (t instanceof RuntimeException)
-                throw (RuntimeException)t;
-            else
-                throw new HGException(t);
-        }       	    
+            	return true;
+        return false;
+	}
+	
+	private void rethrow(Throwable t)
+	{
+        if (t instanceof RuntimeException)
+            throw (RuntimeException)t;
+        else if (t instanceof Error)
+        	throw (Error)t;
+        else
+            throw new HGException(t);
+	}
+	
+	/**
+	 * Handle a failed attempt of a transaction: re-throw if the failure is not a conflict 
+	 * or if the retry policy gives up, otherwise return normally so the transaction is retried.
+	 */
+	private void handleTxException(Throwable t, 
+								   HGTransactionRetryPolicy policy, 
+								   int attempt, 
+								   long startTime, 
+								   long startNumber)
+	{
+		if (!canRetryAfter(t))
+			rethrow(t);
+        conflicted.incrementAndGet();
+        // A failed MVCC validation means the conflicting transaction has already committed
+        // after we started, while with a storage level conflict it is most likely still running.
+        long conflictAfter = HGUtils.getRootCause(t) instanceof TransactionConflictException ? 
+        					 startNumber : mostRecentRecord.transactionNumber;
+        if (!policy.retry(this, attempt, startTime, conflictAfter))
+        	rethrow(t);
 	}
 	
 	/**
@@ -358,6 +663,16 @@ public class HGTransactionManager
 	    return transact(transaction, HGTransactionConfig.DEFAULT);
 	}
 	
+	// The configuration under which a write-upgradable transaction is retried once it turns
+	// out to write: a default one, except for the retry policy and durability of the original.
+	private static HGTransactionConfig writeUpgrade(HGTransactionConfig config)
+	{
+		HGTransactionConfig upgraded = new HGTransactionConfig();
+		upgraded.setRetryPolicy(config.getRetryPolicy());
+		upgraded.setDurability(config.getDurability());
+		return upgraded;
+	}
+	
 	/**
 	 * <p>
 	 * Perform a unit of work encapsulated as a transaction and return the result. This method
@@ -366,6 +681,12 @@ public class HGTransactionManager
 	 * transactional system must be configured to be fair or to prioritize transaction randomly
 	 * (which is the default behavior).
 	 * </p>
+	 * 
+	 * <p>
+	 * Whether and when a conflicting transaction is re-attempted can be controlled by 
+	 * configuring a {@link HGTransactionRetryPolicy} with {@link HGTransactionConfig#setRetryPolicy}. 
+	 * When the policy gives up, the exception that caused the last attempt to fail is re-thrown.
+	 * </p>
 	 * 
 	 * <p>
 	 * If the <code>transaction.call()</code> returns without an exception, but the underlying
@@ -388,11 +709,17 @@ public class HGTransactionManager
 	 */
 	public <V> V transact(Callable<V> transaction, HGTransactionConfig config)
 	{
-		// We retry for as long as it takes. There's no reason
+		// By default, we retry for as long as it takes. There's no reason
 		// why a transaction shouldn't eventually be able to acquire
 		// the locks it needs.
+		HGTransactionRetryPolicy policy = config.getRetryPolicy() == null ? 
+				HGTransactionRetryPolicy.IMMEDIATE : config.getRetryPolicy();
+		long startTime = System.currentTimeMillis();
+		int attempt = 0;
 		while (true)
-		{		    
+		{
+			long startNumber = mostRecentRecord.transactionNumber;
+			attempt++;
 			beginTransaction(config);
 			V result = null;
 			try
@@ -412,12 +739,12 @@ public class HGTransactionManager
 				if (HGUtils.getRootCause(t) instanceof TransactionIsReadonlyException && 
 				    config.isWriteUpgradable())
 				{
-				    config = HGTransactionConfig.DEFAULT;
+				    config = writeUpgrade(config);
 				}
 				else
 				{
-    				handleTxException(t); // will re-throw if we can't retry the transaction
-    				conflicted.incrementAndGet();
+					// will re-throw if we can't retry the transaction
+    				handleTxException(t, policy, attempt, startTime, startNumber); 
 				}
 //				    System.out.println("Retrying transaction");
 				continue;
@@ -433,12 +760,12 @@ public class HGTransactionManager
                 if (HGUtils.getRootCause(t) instanceof TransactionIsReadonlyException && 
                         config.isWriteUpgradable())
                     {
-                        config = HGTransactionConfig.DEFAULT;
+                        config = writeUpgrade(config);
                     }
                     else
                     {
-                        handleTxException(t); // will re-throw if we can't retry the transaction
-                        conflicted.incrementAndGet();
+                    	// will re-throw if we can't retry the transaction
+                        handleTxException(t, policy, attempt, startTime, startNumber); 
                     }
 //      	          System.out.println("Retrying transaction");
 			}
@@ -0,0 +1,60 @@
+/* 
+ * This file is part of the HyperGraphDB source distribution. This is copyrighted 
+ * software. For permitted uses, licensing options and redistribution, please see  
+ * the LicensingInformation file at the root level of the distribution.  
+ * 
+ * Copyright (c) 2005-2010 Kobrix Software, Inc.  All rights reserved. 
+ */
+package org.hypergraphdb.transaction;
+
+/**
+ * 
+ * <p>
+ * Decides whether and when a transaction executed through 
+ * {@link HGTransactionManager#transact(java.util.concurrent.Callable, HGTransactionConfig)}
+ * is re-attempted after it failed because of a conflict with another transaction (an 
+ * MVCC validation failure or a storage level deadlock/lock conflict). A policy is 
+ * configured per transaction with {@link HGTransactionConfig#setRetryPolicy(HGTransactionRetryPolicy)}.
+ * </p>
+ * 
+ * <p>
+ * A policy may block the calling thread before returning, in order to back off and 
+ * give the conflicting transaction a chance to complete. 
+ * </p>
+ * 
+ * @author Borislav Iordanov
+ *
+ */
+public interface HGTransactionRetryPolicy
+{
+    /**
+     * <p>
+     * The policy that was always used before retry policies were introduced: retry 
+     * immediately and indefinitely. This is the default when no policy is configured.
+     * </p>
+     */
+    public static final HGTransactionRetryPolicy IMMEDIATE = new HGTransactionRetryPolicy()
+    {
+        public boolean retry(HGTransactionManager manager, int attempt, long startTime, long conflictAfter)
+        {
+            return true;
+        }
+    };
+    
+    /**
+     * <p>
+     * Called after a failed attempt to decide whether the transaction should be tried again. 
+     * </p>
+     * 
+     * @param manager The transaction manager executing the transaction.
+     * @param attempt The number of attempts made so far (1 after the first failure). 
+     * @param startTime The time, as given by <code>System.currentTimeMillis</code>, when the
+     * first attempt was started.
+     * @param conflictAfter The number of the last committed transaction that is known not to 
+     * have caused the conflict - a commit with a greater number is needed before the failed
+     * transaction has a better chance to succeed. See {@link HGTransactionManager#awaitCommitAfter(long, long)}.
+     * @return <code>true</code> if the transaction should be re-attempted and <code>false</code>
+     * if the conflict should be reported to the caller instead.
+     */
+    boolean retry(HGTransactionManager manager, int attempt, long startTime, long conflictAfter);
+}
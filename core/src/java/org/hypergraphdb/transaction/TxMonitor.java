@@ -7,11 +7,41 @@
  */
 package org.hypergraphdb.transaction;
 
+import java.lang.management.ManagementFactory;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
-public class TxMonitor
+import javax.management.ObjectName;
+
+import org.hypergraphdb.HGException;
+import org.hypergraphdb.util.LogHistogram;
+
+/**
+ *
+ * <p>
+ * Collects transaction metrics for a {@link HGTransactionManager}: commit latencies,
+ * time spent waiting for the commit lock, validation and storage commit times, the size
+ * of transaction read and write sets, and conflicts broken down by the type of the
+ * {@link VBox} (or rather of the transactional structure owning it) on which they occurred.
+ * The collection path doesn't allocate memory so the monitor can remain enabled in
+ * production. Metrics can be pulled through the getters of this class or through JMX
+ * after calling {@link #registerMBean(String)}.
+ * </p>
+ *
+ * <p>
+ * Optionally, the monitor can also keep track of all live transactions together with
+ * the stack trace where they were started, which is helpful to find transactions that are
+ * never closed. This is expensive and disabled by default.
+ * </p>
+ *
+ * @author Borislav Iordanov
+ *
+ */
+public class TxMonitor implements TxMonitorMBean
 {
 	public static class Info
 	{
@@ -20,11 +50,33 @@ public class TxMonitor
 		String beginTrace = null;
 		String endTrace = null;
 	}
-	
+
 	public Map<Long, Info> txMap = Collections.synchronizedMap(new HashMap<Long, Info>());
-	
+
+	private volatile boolean enabled = true;
+	private volatile boolean traceTransactions = false;
+	private ObjectName mbeanName = null;
+
+	final LogHistogram commitLatency = new LogHistogram();
+	final LogHistogram readonlyCommitLatency = new LogHistogram();
+	final LogHistogram commitLockWait = new LogHistogram();
+	final LogHistogram validationTime = new LogHistogram();
+	final LogHistogram storageCommitTime = new LogHistogram();
+	final LogHistogram readSetSize = new LogHistogram();
+	final LogHistogram writeSetSize = new LogHistogram();
+	private final LongAdder conflicts = new LongAdder();
+	private final LongAdder aborts = new LongAdder();
+	private final ConcurrentHashMap<Class<?>, AtomicLong> conflictsByType = new ConcurrentHashMap<Class<?>, AtomicLong>();
+
+	private static long micros(double nanos)
+	{
+		return (long)(nanos / 1000);
+	}
+
 	public void transactionCreated(HGTransaction tx)
 	{
+		if (!traceTransactions)
+			return;
 		try
 		{
 			Info txInfo = new Info();
@@ -38,14 +90,15 @@ public class TxMonitor
 		}
 		catch (Throwable t) { t.printStackTrace(); }
 	}
-	
+
 	public void transactionFinished(HGTransaction tx)
 	{
+		if (!traceTransactions)
+			return;
 		try
 		{
 			long id = tx.getNumber();
-			txMap.remove(id);
-			Info txInfo = txMap.get(id);
+			Info txInfo = txMap.remove(id);
 			if (txInfo == null)
 				throw new NullPointerException("No transaction with ID " + id + " was recorded to start.");
 			StringBuffer b = new StringBuffer();
@@ -57,5 +110,239 @@ public class TxMonitor
 		{
 			t.printStackTrace();
 		}
-	}	
+	}
+
+	/**
+	 * Record the successful commit of a top-level transaction.
+	 */
+	void committed(boolean write, long latency, int readSet, int writeSet)
+	{
+		if (write)
+		{
+			commitLatency.record(latency);
+			writeSetSize.record(writeSet);
+		}
+		else
+			readonlyCommitLatency.record(latency);
+		readSetSize.record(readSet);
+	}
+
+	/**
+	 * Record a failed validation because of a concurrent modification of <code>box</code>.
+	 */
+	void conflict(VBox<?> box)
+	{
+		conflicts.increment();
+		if (box == null)
+			return;
+		AtomicLong counter = conflictsByType.get(box.getClass());
+		if (counter == null)
+		{
+			counter = new AtomicLong(0);
+			AtomicLong existing = conflictsByType.putIfAbsent(box.getClass(), counter);
+			if (existing != null)
+				counter = existing;
+		}
+		counter.incrementAndGet();
+	}
+
+	void aborted()
+	{
+		aborts.increment();
+	}
+
+	/**
+	 * <p>Return the histogram of top-level write transaction commit latencies in nanoseconds,
+	 * including waiting for the commit lock, validation and committing to storage.</p>
+	 */
+	public LogHistogram getCommitLatency() { return commitLatency; }
+
+	/**
+	 * <p>Return the histogram of commit latencies, in nanoseconds, of top-level transactions that
+	 * didn't write anything.</p>
+	 */
+	public LogHistogram getReadonlyCommitLatency() { return readonlyCommitLatency; }
+
+	/**
+	 * <p>Return the histogram of the time, in nanoseconds, spent waiting to acquire the commit lock.</p>
+	 */
+	public LogHistogram getCommitLockWait() { return commitLockWait; }
+
+	/**
+	 * <p>Return the histogram of the time, in nanoseconds, spent validating the read set of write
+	 * transactions.</p>
+	 */
+	public LogHistogram getValidationTime() { return validationTime; }
+
+	/**
+	 * <p>Return the histogram of the time, in nanoseconds, spent committing storage transactions.
+	 * Under group commit, one value is recorded per group.</p>
+	 */
+	public LogHistogram getStorageCommitTime() { return storageCommitTime; }
+
+	/**
+	 * <p>Return the histogram of the number of {@link VBox}es read by top-level transactions.</p>
+	 */
+	public LogHistogram getReadSetSize() { return readSetSize; }
+
+	/**
+	 * <p>Return the histogram of the number of {@link VBox}es written by top-level transactions.</p>
+	 */
+	public LogHistogram getWriteSetSize() { return writeSetSize; }
+
+	/**
+	 * <p>
+	 * Return the number of validation conflicts per type of transactional structure. For
+	 * boxes that belong to a transactional collection (e.g. {@link TxMap}), the collection's
+	 * class is reported.
+	 * </p>
+	 */
+	public Map<String, Long> getConflictsByTypeMap()
+	{
+		Map<String, Long> result = new HashMap<String, Long>();
+		for (Map.Entry<Class<?>, AtomicLong> e : conflictsByType.entrySet())
+		{
+			Class<?> owner = e.getKey();
+			while (owner.getEnclosingClass() != null)
+				owner = owner.getEnclosingClass();
+			String name = owner.getName();
+			Long current = result.get(name);
+			result.put(name, e.getValue().get() + (current == null ? 0 : current));
+		}
+		return result;
+	}
+
+	public String[] getConflictsByType()
+	{
+		Map<String, Long> m = getConflictsByTypeMap();
+		String [] result = new String[m.size()];
+		int i = 0;
+		for (Map.Entry<String, Long> e : m.entrySet())
+			result[i++] = e.getKey() + "=" + e.getValue();
+		return result;
+	}
+
+	public long getCommits() { return commitLatency.getCount(); }
+	public long getReadonlyCommits() { return readonlyCommitLatency.getCount(); }
+	public long getConflicts() { return conflicts.sum(); }
+	public long getAborts() { return aborts.sum(); }
+
+	public double getConflictRate()
+	{
+		long c = conflicts.sum();
+		long total = c + commitLatency.getCount();
+		return total == 0 ? 0 : (double)c / total;
+	}
+
+	public double getCommitLatencyMean() { return micros(commitLatency.getMean()); }
+	public long getCommitLatencyP50() { return micros(commitLatency.getPercentile(0.5)); }
+	public long getCommitLatencyP99() { return micros(commitLatency.getPercentile(0.99)); }
+	public long getCommitLatencyMax() { return micros(commitLatency.getMax()); }
+	public double getCommitLockWaitMean() { return micros(commitLockWait.getMean()); }
+	public long getCommitLockWaitP99() { return micros(commitLockWait.getPercentile(0.99)); }
+	public long getCommitLockWaitMax() { return micros(commitLockWait.getMax()); }
+	public double getValidationTimeMean() { return micros(validationTime.getMean()); }
+	public long getValidationTimeP99() { return micros(validationTime.getPercentile(0.99)); }
+	public double getStorageCommitTimeMean() { return micros(storageCommitTime.getMean()); }
+	public long getStorageCommitTimeP99() { return micros(storageCommitTime.getPercentile(0.99)); }
+	public long getStorageCommitTimeMax() { return micros(storageCommitTime.getMax()); }
+	public double getReadSetSizeMean() { return readSetSize.getMean(); }
+	public long getReadSetSizeMax() { return readSetSize.getMax(); }
+	public double getWriteSetSizeMean() { return writeSetSize.getMean(); }
+	public long getWriteSetSizeMax() { return writeSetSize.getMax(); }
+
+	/**
+	 * <p>Return <code>true</code> if metrics are being collected (the default).</p>
+	 */
+	public boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	/**
+	 * <p>Enable or disable metrics collection.</p>
+	 */
+	public void setEnabled(boolean enabled)
+	{
+		this.enabled = enabled;
+	}
+
+	/**
+	 * <p>Return <code>true</code> if live transactions are tracked in the <code>txMap</code>.</p>
+	 */
+	public boolean isTraceTransactions()
+	{
+		return traceTransactions;
+	}
+
+	/**
+	 * <p>Specify whether live transactions should be tracked, together with the stack traces
+	 * where they began and ended, in the <code>txMap</code>. This is meant for debugging only.</p>
+	 */
+	public void setTraceTransactions(boolean traceTransactions)
+	{
+		this.traceTransactions = traceTransactions;
+	}
+
+	/**
+	 * <p>Clear all metrics collected so far.</p>
+	 */
+	public void reset()
+	{
+		commitLatency.reset();
+		readonlyCommitLatency.reset();
+		commitLockWait.reset();
+		validationTime.reset();
+		storageCommitTime.reset();
+		readSetSize.reset();
+		writeSetSize.reset();
+		conflicts.reset();
+		aborts.reset();
+		conflictsByType.clear();
+	}
+
+	/**
+	 * <p>
+	 * Register this monitor with the platform MBean server under the name
+	 * <code>org.hypergraphdb:type=TxMonitor,name=<em>name</em></code>.
+	 * </p>
+	 *
+	 * @param name A name identifying the database, normally its location.
+	 */
+	public synchronized void registerMBean(String name)
+	{
+		if (mbeanName != null)
+			return;
+		try
+		{
+			ObjectName oname = new ObjectName("org.hypergraphdb:type=TxMonitor,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, oname);
+			mbeanName = oname;
+		}
+		catch (Exception ex)
+		{
+			throw new HGException(ex);
+		}
+	}
+
+	/**
+	 * <p>Unregister this monitor from the platform MBean server if it was registered.</p>
+	 */
+	public synchronized void unregisterMBean()
+	{
+		if (mbeanName == null)
+			return;
+		try
+		{
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+		}
+		catch (Exception ex)
+		{
+			throw new HGException(ex);
+		}
+		finally
+		{
+			mbeanName = null;
+		}
+	}
 }
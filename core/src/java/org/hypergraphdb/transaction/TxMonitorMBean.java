@@ -0,0 +1,56 @@
+/* 
+ * This file is part of the HyperGraphDB source distribution. This is copyrighted 
+ * software. For permitted uses, licensing options and redistribution, please see  
+ * the LicensingInformation file at the root level of the distribution.  
+ * 
+ * Copyright (c) 2005-2010 Kobrix Software, Inc.  All rights reserved. 
+ */
+package org.hypergraphdb.transaction;
+
+/**
+ * 
+ * <p>
+ * JMX management interface of {@link TxMonitor}. All durations are reported in 
+ * microseconds.
+ * </p>
+ * 
+ * @author Borislav Iordanov
+ *
+ */
+public interface TxMonitorMBean
+{
+    long getCommits();
+    long getReadonlyCommits();
+    long getConflicts();
+    long getAborts();
+    double getConflictRate();
+    
+    double getCommitLatencyMean();
+    long getCommitLatencyP50();
+    long getCommitLatencyP99();
+    long getCommitLatencyMax();
+    
+    double getCommitLockWaitMean();
+    long getCommitLockWaitP99();
+    long getCommitLockWaitMax();
+    
+    double getValidationTimeMean();
+    long getValidationTimeP99();
+    
+    double getStorageCommitTimeMean();
+    long getStorageCommitTimeP99();
+    long getStorageCommitTimeMax();
+    
+    double getReadSetSizeMean();
+    long getReadSetSizeMax();
+    double getWriteSetSizeMean();
+    long getWriteSetSizeMax();
+    
+    String [] getConflictsByType();
+    
+    boolean isEnabled();
+    void setEnabled(boolean enabled);
+    boolean isTraceTransactions();
+    void setTraceTransactions(boolean traceTransactions);
+    void reset();
+}
@@ -78,7 +78,10 @@ public abstract class PrimitiveTypeBase<JavaType> implements HGPrimitiveType<Jav
      */
     protected final static int dataOffset = 4;
     
-    protected final HGSortIndex<byte[], HGPersistentHandle> getIndex()
+    /**
+     * <p>Return the index of the values of this type, ordered by its comparator.</p>
+     */
+    public final HGSortIndex<byte[], HGPersistentHandle> getIndex()
     {
         if (valueIndex == null)
         {
@@ -0,0 +1,70 @@
+/*
+ * This file is part of the HyperGraphDB source distribution. This is copyrighted
+ * software. For permitted uses, licensing options and redistribution, please see
+ * the LicensingInformation file at the root level of the distribution.
+ *
+ * Copyright (c) 2005-2010 Kobrix Software, Inc.  All rights reserved.
+ */
+package org.hypergraphdb.util;
+
+/**
+ * <p>
+ * The interfaces of a push-based stream with backpressure: a <code>Subscriber</code>
+ * receives elements from a <code>Publisher</code> only as fast as it requests them through
+ * its <code>Subscription</code>. They have the same methods and contracts as the interfaces
+ * of <code>java.util.concurrent.Flow</code> and the Reactive Streams specification, so they
+ * are trivially adapted to either.
+ * </p>
+ *
+ * @author Borislav Iordanov
+ */
+public final class Flow
+{
+	private Flow() { }
+
+	/**
+	 * <p>A producer of elements, delivered to each of its subscribers on demand.</p>
+	 */
+	public static interface Publisher<T>
+	{
+		/**
+		 * <p>
+		 * Add a subscriber. Its <code>onSubscribe</code> method is called first, then
+		 * elements are delivered to <code>onNext</code> as they are requested, until
+		 * <code>onComplete</code> or <code>onError</code> is called or the subscription
+		 * is cancelled.
+		 * </p>
+		 */
+		void subscribe(Subscriber<? super T> subscriber);
+	}
+
+	/**
+	 * <p>A receiver of elements.</p>
+	 */
+	public static interface Subscriber<T>
+	{
+		void onSubscribe(Subscription subscription);
+		void onNext(T item);
+		void onError(Throwable throwable);
+		void onComplete();
+	}
+
+	/**
+	 * <p>The link between a publisher and one of its subscribers.</p>
+	 */
+	public static interface Subscription
+	{
+		/**
+		 * <p>
+		 * Request that up to <code>n</code> more elements be delivered. A non-positive
+		 * <code>n</code> is reported to the subscriber as an <code>IllegalArgumentException</code>.
+		 * </p>
+		 */
+		void request(long n);
+
+		/**
+		 * <p>Stop the delivery of elements and release the resources of the subscription.</p>
+		 */
+		void cancel();
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * This file is part of the HyperGraphDB source distribution. This is copyrighted
+ * software. For permitted uses, licensing options and redistribution, please see
+ * the LicensingInformation file at the root level of the distribution.
+ *
+ * Copyright (c) 2005-2010 Kobrix Software, Inc.  All rights reserved.
+ */
+package org.hypergraphdb.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ * A concurrent histogram of non-negative <code>long</code> values (typically durations
+ * in nanoseconds or sizes) with power of two buckets: bucket 0 holds the value 0 and
+ * bucket <code>i > 0</code> holds the values in <code>[2^(i-1), 2^i)</code>. Recording a
+ * value does not allocate any memory, so a histogram can be left enabled in
+ * production code paths. Percentiles are approximated by the upper bound of the
+ * bucket where they fall.
+ * </p>
+ *
+ * @author Borislav Iordanov
+ *
+ */
+public class LogHistogram
+{
+    private static final int BUCKETS = 65;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong(0);
+
+    /**
+     * <p>Record a value. Negative values are recorded as 0.</p>
+     */
+    public void record(long value)
+    {
+        if (value < 0)
+            value = 0;
+        buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+        count.increment();
+        sum.add(value);
+        for (long m = max.get(); value > m && !max.compareAndSet(m, value); m = max.get());
+    }
+
+    /**
+     * <p>Return the number of recorded values.</p>
+     */
+    public long getCount()
+    {
+        return count.sum();
+    }
+
+    /**
+     * <p>Return the sum of all recorded values.</p>
+     */
+    public long getSum()
+    {
+        return sum.sum();
+    }
+
+    /**
+     * <p>Return the largest recorded value.</p>
+     */
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    /**
+     * <p>Return the average of all recorded values or 0 if nothing was recorded.</p>
+     */
+    public double getMean()
+    {
+        long n = count.sum();
+        return n == 0 ? 0 : (double)sum.sum() / n;
+    }
+
+    /**
+     * <p>
+     * Return an upper bound of the value below which the given fraction of
+     * the recorded values fall.
+     * </p>
+     *
+     * @param fraction A number between 0 and 1, e.g. 0.99 for the 99th percentile.
+     */
+    public long getPercentile(double fraction)
+    {
+        long [] counts = getBuckets();
+        long total = 0;
+        for (long c : counts)
+            total += c;
+        if (total == 0)
+            return 0;
+        long rank = (long)Math.ceil(fraction * total);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++)
+        {
+            seen += counts[i];
+            if (seen >= rank)
+                return i == 0 ? 0 : Math.min(max.get(), i == 64 ? Long.MAX_VALUE : (1l << i) - 1);
+        }
+        return max.get();
+    }
+
+    /**
+     * <p>Return a snapshot of the bucket counts - see the class description for the
+     * bucket boundaries.</p>
+     */
+    public long [] getBuckets()
+    {
+        long [] result = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+            result[i] = buckets.get(i);
+        return result;
+    }
+
+    /**
+     * <p>Clear all recorded values.</p>
+     */
+    public void reset()
+    {
+        for (int i = 0; i < BUCKETS; i++)
+            buckets.set(i, 0);
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    public String toString()
+    {
+        return "count=" + getCount() + ", mean=" + (long)getMean() + ", p50=" + getPercentile(0.5) +
+               ", p99=" + getPercentile(0.99) + ", max=" + getMax();
+    }
+}
@@ -6,129 +6,431 @@
  * Copyright (c) 2005-2010 Kobrix Software, Inc.  All rights reserved. 
  */
 package org.hypergraphdb.util;
-
+
 import javax.management.*;
-
+
 import org.hypergraphdb.HGEnvironment;
-
+
 import java.lang.management.*;
 import java.util.*;
-
+import java.util.concurrent.CopyOnWriteArrayList;
+
 /**
  * <p>
  * This memory warning system will call all registered listeners when we
  * exceed the percentage of available heap memory specified.  
  * </p>
- * 
+ * 
  * <p>
  * There should only be one instance of this object created, since the
  * usage threshold can only be set to one number. A HyperGraphDB JVM-wide
  * singleton is available statically from {@link HGEnvironment} class. 
  * </p>
- * 
+ * 
  * <p>HyperGraph will configure a default usage threshold percentage for
- * the HEAP (i.e. "tenure generation") JVM memory pool to 0.9. This means that
- * listeners will be invoked when used memory reaches about 90% of the maximum
+ * the HEAP (i.e. "tenure generation") JVM memory pool to 0.7. This means that
+ * listeners will be invoked when used memory reaches about 70% of the maximum
  * available memory. You can change that percentage by calling the
  * <code>setPercentageUsage</code> method and that will globally affect the behavior
  * of all running code. This is an unfortunate design of the JVM - it doesn't
- * allow more than threshold to be configured. It's possible for one to write
- * one's own thread that monitor heap usage, but this begs the question whether
- * the overhead is worth it.
+ * allow more than threshold to be configured.
+ * </p>
+ * 
+ * <p>
+ * Some garbage collectors (e.g. ZGC or Shenandoah) don't support usage thresholds
+ * on their heap pool. In that case, a background thread samples heap usage after
+ * each garbage collection, at most once every <code>samplingInterval</code> milliseconds,
+ * and triggers the listeners when the threshold is exceeded.
  * </p>
- * 
+ * 
  * <p>
- * <b>NOTE:</b> The goal of this is clearly to reduce memory consumption in caches and the like.
- * Because each listener will shrink memory in an independent way, the result of
- * invoking all of them will perhaps lead to an overzealous cleanup of useful
- * cached information. In the future, it would be a good idea to architect some 
- * sort of cooperation of such cleanup code. Perhaps a desired threshold could be set
- * and each listener invoked iteratively to perform "a little bit of cleanup" as many
- * times as needed to reach that threshold.  
+ * Cleanup is cooperative and incremental. Listeners implementing {@link IncrementalListener}
+ * are asked in rounds to release "a little bit" of memory, in the order of their priority:
+ * listeners with a lower priority value (e.g. holding data that is cheap to recreate) are asked
+ * first and listeners with a higher priority value are only asked once all lower priority
+ * listeners have nothing left to release. After each round, the system waits for the next
+ * garbage collection to observe its effect and stops as soon as the used memory falls
+ * below the target level - <code>1 - targetFreePercentage</code> of the maximum. Thus only
+ * as much cached information is discarded as needed. Plain {@link Listener}s are invoked
+ * once at the start of each such cleanup episode.
  * </p>
- * 
+ * 
  * <p>
  * <em>Code taken from http://www.roseindia.net/javatutorials/OutOfMemoryError_Warning_System.shtml
  * </em></p>
- */
+ */
 public class MemoryWarningSystem 
 {
-	private final Collection<Listener> listeners = new ArrayList<Listener>();
+	/**
+	 * Priority of listeners holding data that is cheap to recreate.
+	 */
+	public static final int PRIORITY_FIRST = 0;
+	public static final int PRIORITY_DEFAULT = 50;
+	/**
+	 * Priority of listeners holding data that is expensive to recreate.
+	 */
+	public static final int PRIORITY_LAST = 100;
+
+	public static final long DEFAULT_SAMPLING_INTERVAL = 1000;
+	public static final int DEFAULT_MAX_ROUNDS = 20;
+
+	// How often to check for a garbage collection while a cleanup is in progress.
+	private static final long ROUND_POLL_INTERVAL = 50;
+
+	private final HGLogger logger = new HGLogger();
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
 	private MemoryPoolMXBean tenuredGenPool = null;
-	
+	private boolean thresholdSupported;
+	private final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+	private double usageThreshold = 0.9;
+	private double targetFreePercentage = 0.4;
+	private long samplingInterval = DEFAULT_SAMPLING_INTERVAL;
+	private int maxRounds = DEFAULT_MAX_ROUNDS;
+
+	// Cleanup episode state, guarded by reclaimLock
+	private final Object reclaimLock = new Object();
+	private volatile boolean reclaiming = false;
+	private int rounds = 0;
+	private long gcCountAtLastRound = 0;
+	private long gcCountAtLastSample = 0;
+	private final Set<Listener> exhausted = Collections.newSetFromMap(new IdentityHashMap<Listener, Boolean>());
+	private long episodeCount = 0;
+	private long roundCount = 0;
+
+	private final Thread sampler;
+
 	public static interface Listener 
 	{
 		void memoryUsageLow(long usedMemory, long maxMemory);
 	}
-
+
+	/**
+	 * <p>
+	 * A listener that releases memory a little bit at a time. During a cleanup episode,
+	 * <code>releaseMemory</code> is called repeatedly, until enough memory has been freed
+	 * or until it returns <code>false</code>.
+	 * </p>
+	 */
+	public static interface IncrementalListener extends Listener
+	{
+		/**
+		 * <p>Return the priority of this listener - listeners with lower priority values
+		 * are asked to release memory first. See the <code>PRIORITY_*</code> constants.</p>
+		 */
+		int getPriority();
+
+		/**
+		 * <p>Release a small portion (e.g. 10%) of the memory held by this listener.</p>
+		 *
+		 * @return <code>false</code> if there was nothing left to release and <code>true</code>
+		 * otherwise.
+		 */
+		boolean releaseMemory(long usedMemory, long maxMemory);
+
+		default void memoryUsageLow(long usedMemory, long maxMemory)
+		{
+			releaseMemory(usedMemory, maxMemory);
+		}
+	}
+
 	public MemoryWarningSystem() 
 	{
 	    MemoryMXBean mbean = ManagementFactory.getMemoryMXBean();
 	    tenuredGenPool = this.findTenuredGenPool();
-	    NotificationEmitter emitter = (NotificationEmitter) mbean;
-	    emitter.addNotificationListener(new NotificationListener() 
+	    thresholdSupported = tenuredGenPool.isUsageThresholdSupported();
+	    if (thresholdSupported)
 	    {
-	    	public void handleNotification(Notification n, Object hb) 
+		    NotificationEmitter emitter = (NotificationEmitter) mbean;
+		    emitter.addNotificationListener(new NotificationListener()
+		    {
+		    	public void handleNotification(Notification n, Object hb)
+		    	{
+		    		if (n.getType().equals(MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED))
+		    			startReclaim(tenuredGenPool.getUsage().getUsed(), getMaxMemory());
+		    	}
+		    }, null, null);
+	    }
+	    sampler = new Thread(new Runnable() {
+	    	public void run()
 	    	{
-	    		if (n.getType().equals(MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED)) 
+	    		while (true)
 	    		{	    			
-		            long maxMemory = tenuredGenPool.getUsage().getMax();
-		            long usedMemory = tenuredGenPool.getUsage().getUsed();
-		            for (Listener listener : listeners) 
-		            {
-		              listener.memoryUsageLow(usedMemory, maxMemory);
-		            }
+	    			try
+	    			{
+	    				Thread.sleep(reclaiming ? ROUND_POLL_INTERVAL : samplingInterval);
+	    				sample();
+	    			}
+	    			catch (InterruptedException ex)
+	    			{
+	    				return;
+	    			}
+	    			catch (Throwable t)
+	    			{
+	    				logger.exception(t);
+	    			}
 	    		}
 	    	}
-	    }, null, null);
+	    }, "HyperGraph Memory Warning System");
+	    sampler.setDaemon(true);
+	    sampler.start();
 	}
-
+
 	public boolean addListener(Listener listener) 
 	{
 		return listeners.add(listener);
 	}
-
+
 	public boolean removeListener(Listener listener) 
 	{
 		return listeners.remove(listener);
 	}
-
+
 	public void setPercentageUsageThreshold(double percentage) 
 	{
 		if (percentage <= 0.0 || percentage > 1.0) 
 			throw new IllegalArgumentException("Percentage not in range");
-
-	    long maxMemory = tenuredGenPool.getUsage().getMax();
-	    long warningThreshold = (long) (maxMemory * percentage);
-	    tenuredGenPool.setUsageThreshold(warningThreshold);	    
+		usageThreshold = percentage;
+		if (thresholdSupported)
+		{
+		    long maxMemory = getMaxMemory();
+		    long warningThreshold = (long) (maxMemory * percentage);
+		    tenuredGenPool.setUsageThreshold(warningThreshold);
+		}
 	}
-
+
 	public double getPercentageUsageThreshold()
 	{
-	    long maxMemory = tenuredGenPool.getUsage().getMax();
-	    long warningThreshold = tenuredGenPool.getUsageThreshold(); 
-	    return (double)warningThreshold/(double)maxMemory;
+		return usageThreshold;
+	}
+
+	/**
+	 * <p>Set the percentage of the maximum memory that a cleanup episode tries to make
+	 * available. Cleanup stops when used memory falls below <code>1 - percentage</code>
+	 * of the maximum or below the usage threshold, whichever is lower. The default is 0.4.</p>
+	 */
+	public void setTargetFreePercentage(double percentage)
+	{
+		if (percentage < 0.0 || percentage >= 1.0)
+			throw new IllegalArgumentException("Percentage not in range");
+		targetFreePercentage = percentage;
+	}
+
+	public double getTargetFreePercentage()
+	{
+		return targetFreePercentage;
+	}
+
+	/**
+	 * <p>Set the maximum number of incremental cleanup rounds per episode. The default
+	 * is 20.</p>
+	 */
+	public void setMaxRounds(int maxRounds)
+	{
+		if (maxRounds <= 0)
+			throw new IllegalArgumentException("maxRounds <= 0");
+		this.maxRounds = maxRounds;
+	}
+
+	public int getMaxRounds()
+	{
+		return maxRounds;
+	}
+
+	/**
+	 * <p>Set how often, in milliseconds, heap usage is sampled when the JVM doesn't
+	 * support a usage threshold for the heap. The default is 1000.</p>
+	 */
+	public void setSamplingInterval(long samplingInterval)
+	{
+		if (samplingInterval <= 0)
+			throw new IllegalArgumentException("samplingInterval <= 0");
+		this.samplingInterval = samplingInterval;
+	}
+
+	public long getSamplingInterval()
+	{
+		return samplingInterval;
+	}
+
+	/**
+	 * <p>Return <code>true</code> if low memory is detected through a JVM usage threshold
+	 * and <code>false</code> if it is detected by periodic sampling.</p>
+	 */
+	public boolean isUsageThresholdSupported()
+	{
+		return thresholdSupported;
+	}
+
+	/**
+	 * <p>Return <code>true</code> while a cleanup episode is in progress.</p>
+	 */
+	public boolean isReclaiming()
+	{
+		return reclaiming;
+	}
+
+	/**
+	 * <p>Return the number of cleanup episodes so far.</p>
+	 */
+	public long getEpisodeCount()
+	{
+		synchronized (reclaimLock) { return episodeCount; }
+	}
+
+	/**
+	 * <p>Return the total number of incremental cleanup rounds so far.</p>
+	 */
+	public long getRoundCount()
+	{
+		synchronized (reclaimLock) { return roundCount; }
+	}
+
+	/**
+	 * <p>Start a cleanup episode as if the usage threshold was just exceeded. Does nothing
+	 * if an episode is already in progress.</p>
+	 */
+	public void reclaim()
+	{
+		startReclaim(tenuredGenPool.getUsage().getUsed(), getMaxMemory());
+	}
+
+	private long getMaxMemory()
+	{
+		long max = tenuredGenPool.getUsage().getMax();
+		return max > 0 ? max : Runtime.getRuntime().maxMemory();
+	}
+
+	private long getTargetMemory(long maxMemory)
+	{
+		return (long)(maxMemory * Math.min(1.0 - targetFreePercentage, usageThreshold));
+	}
+
+	private long gcCount()
+	{
+		long count = 0;
+		for (GarbageCollectorMXBean gc : collectors)
+			count += Math.max(0, gc.getCollectionCount());
+		return count;
+	}
+
+	private void startReclaim(long usedMemory, long maxMemory)
+	{
+		synchronized (reclaimLock)
+		{
+			if (reclaiming)
+				return;
+			reclaiming = true;
+			rounds = 0;
+			episodeCount++;
+			for (Listener listener : listeners)
+			{
+				if (listener instanceof IncrementalListener)
+					continue;
+				try
+				{
+					listener.memoryUsageLow(usedMemory, maxMemory);
+				}
+				catch (Throwable t)
+				{
+					logger.exception(t);
+				}
+			}
+			if (!round(usedMemory, maxMemory))
+				endReclaim();
+		}
+	}
+
+	private void endReclaim()
+	{
+		reclaiming = false;
+		exhausted.clear();
+	}
+
+	// Ask the incremental listeners with the lowest priority value that still have
+	// something to release to release some more. Return false if there are no such
+	// listeners left.
+	private boolean round(long usedMemory, long maxMemory)
+	{
+		int priority = Integer.MAX_VALUE;
+		for (Listener listener : listeners)
+			if (listener instanceof IncrementalListener && !exhausted.contains(listener))
+				priority = Math.min(priority, ((IncrementalListener)listener).getPriority());
+		if (priority == Integer.MAX_VALUE)
+			return false;
+		rounds++;
+		roundCount++;
+		for (Listener listener : listeners)
+		{
+			if (!(listener instanceof IncrementalListener) || exhausted.contains(listener) ||
+				((IncrementalListener)listener).getPriority() != priority)
+				continue;
+			try
+			{
+				if (!((IncrementalListener)listener).releaseMemory(usedMemory, maxMemory))
+					exhausted.add(listener);
+			}
+			catch (Throwable t)
+			{
+				logger.exception(t);
+				exhausted.add(listener);
+			}
+		}
+		gcCountAtLastRound = gcCount();
+		return true;
+	}
+
+	private void sample()
+	{
+		synchronized (reclaimLock)
+		{
+			long gcCount = gcCount();
+			if (reclaiming)
+			{
+				// the effect of the last round is not visible before the next collection
+				if (gcCount == gcCountAtLastRound)
+					return;
+				long used = tenuredGenPool.getUsage().getUsed();
+				long max = getMaxMemory();
+				if (used <= getTargetMemory(max) || rounds >= maxRounds || !round(used, max))
+					endReclaim();
+			}
+			else if (!thresholdSupported && gcCount != gcCountAtLastSample)
+			{
+				// Usage is only meaningful right after a collection, otherwise it includes
+				// garbage.
+				gcCountAtLastSample = gcCount;
+				long used = tenuredGenPool.getUsage().getUsed();
+				long max = getMaxMemory();
+				if (used >= max * usageThreshold)
+					startReclaim(used, max);
+			}
+		}
 	}
-	
+
 	/**
      * Tenured Space Pool can be determined by it being of type
-     * HEAP and by it being possible to set the usage threshold.
+     * HEAP and by it being possible to set the usage threshold. If no heap
+     * pool supports a usage threshold (e.g. with ZGC or Shenandoah), the
+     * largest heap pool is used and its usage is sampled periodically.
      */
 	private MemoryPoolMXBean findTenuredGenPool() 
 	{
-	    MemoryPoolMXBean last = null;
+	    MemoryPoolMXBean last = null, largest = null;
 		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) 
 		{
+			if (pool.getType() != MemoryType.HEAP)
+				continue;
 			// I don't know whether this approach is better, or whether
 			// we should rather check for the pool name "Tenured Gen"?
-			if (pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported())
-			{
+			if (pool.isUsageThresholdSupported())
 				last = pool;
-//				System.out.println("pool " + pool);
-			}
+			if (largest == null || pool.getUsage().getMax() > largest.getUsage().getMax())
+				largest = pool;
 		}
 		if (last != null)
 		    return last;
+		else if (largest != null)
+			return largest;
 		else
 		    throw new AssertionError("Could not find tenured space");
 	}
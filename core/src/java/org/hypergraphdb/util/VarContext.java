@@ -1,8 +1,10 @@
 package org.hypergraphdb.util;
 
 import java.util.HashMap;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Stack;
+import java.util.WeakHashMap;
 
 /**
  * <p>
@@ -25,6 +27,45 @@ public class VarContext
         }
 	};
 
+	// The values set by each thread, per context.
+	static ThreadLocal<Map<VarContext, HashMap<String, Object>>> threadValues = new ThreadLocal<Map<VarContext, HashMap<String, Object>>>() {
+        @Override protected Map<VarContext, HashMap<String, Object>> initialValue() {
+            return new WeakHashMap<VarContext, HashMap<String, Object>>();
+        }
+	};
+
+	/**
+	 * <p>
+	 * Return a copy of the variable values set by the current thread, in all contexts. They
+	 * can be made visible to another thread with {@link #attachThreadValues(Map)}, for
+	 * example when part of a query is executed by another thread.
+	 * </p>
+	 */
+	public static Map<VarContext, HashMap<String, Object>> getThreadValues()
+	{
+		Map<VarContext, HashMap<String, Object>> copy = new WeakHashMap<VarContext, HashMap<String, Object>>();
+		for (Map.Entry<VarContext, HashMap<String, Object>> e : threadValues.get().entrySet())
+			copy.put(e.getKey(), new HashMap<String, Object>(e.getValue()));
+		return copy;
+	}
+
+	/**
+	 * <p>
+	 * Replace the variable values of the current thread with a copy of values obtained
+	 * from {@link #getThreadValues()}, and return the values that were replaced so
+	 * they can be restored later.
+	 * </p>
+	 */
+	public static Map<VarContext, HashMap<String, Object>> attachThreadValues(Map<VarContext, HashMap<String, Object>> values)
+	{
+		Map<VarContext, HashMap<String, Object>> previous = threadValues.get();
+		Map<VarContext, HashMap<String, Object>> copy = new WeakHashMap<VarContext, HashMap<String, Object>>();
+		for (Map.Entry<VarContext, HashMap<String, Object>> e : values.entrySet())
+			copy.put(e.getKey(), new HashMap<String, Object>(e.getValue()));
+		threadValues.set(copy);
+		return previous;
+	}
+
 	// Context manipulation
 	public static VarContext pushFrame()
 	{
@@ -53,10 +94,16 @@ public class VarContext
 	}
 	
 	private HashMap<String, Object> vars = new HashMap<String, Object>();
-	private ThreadLocal<HashMap<String, Object>> locals = new ThreadLocal<HashMap<String, Object>>() {		
-        @Override protected HashMap<String, Object> initialValue() {
-            return new HashMap<String, Object>();
-    }};
+
+	private HashMap<String, Object> locals(boolean create)
+	{
+		Map<VarContext, HashMap<String, Object>> m = threadValues.get();
+		HashMap<String, Object> locals = m.get(this);
+		if (locals == null && create)
+			m.put(this, locals = new HashMap<String, Object>());
+		return locals;
+	}
+
 	private class VarImpl<T> implements Var<T>
 	{
 		String name;
@@ -64,12 +111,13 @@ public class VarContext
 		@SuppressWarnings("unchecked")
 		public T get() 
 		{ 
-			T result = (T)locals.get().get(name);
+			HashMap<String, Object> locals = locals(false);
+			T result = locals == null ? null : (T)locals.get(name);
 			return result == null ? (T)vars.get(name) : result;
 		}
 		public void set(T value) 
 		{ 
-			locals.get().put(name, value); 
+			locals(true).put(name, value); 
 		}
         @Override
         public int hashCode()
@@ -0,0 +1,175 @@
+package org.hypergraphdb.storage.bje;
+
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import org.hypergraphdb.HGException;
+import org.hypergraphdb.HGPersistentHandle;
+import org.hypergraphdb.storage.ByteArrayConverter;
+
+import com.sleepycat.je.Cursor;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
+
+/**
+ * <p>
+ * Iterates over an annotated incidence set: the duplicates of a key whose values are link
+ * handles followed by their annotation. Only the entries accepted by a filter are returned,
+ * which lets a lookup by annotation read nothing but the incidence set. Since duplicates
+ * are sorted by link handle first, <code>goTo</code> works with plain link handles.
+ * </p>
+ *
+ * <p>
+ * The cursor must be positioned on the first accepted duplicate when the result set is
+ * constructed, see {@link #seekFirst(Cursor, DatabaseEntry, DatabaseEntry, Predicate)}.
+ * </p>
+ */
+public class AnnotatedIncidenceResultSet extends IndexResultSet<HGPersistentHandle>
+{
+	private final Predicate<byte[]> filter;
+
+	private static Supplier<HGPersistentHandle> dupSupplier(final Cursor cursor,
+															final DatabaseEntry key,
+															final ByteArrayConverter<HGPersistentHandle> converter,
+															final Predicate<byte[]> filter,
+															final boolean forward)
+	{
+		DatabaseEntry data = new DatabaseEntry();
+		return () -> {
+			while (true)
+			{
+				OperationStatus status = forward ? cursor.getNextDup(key, data, LockMode.DEFAULT)
+												 : cursor.getPrevDup(key, data, LockMode.DEFAULT);
+				if (status != OperationStatus.SUCCESS)
+					return null;
+				else if (filter.test(data.getData()))
+					return converter.fromByteArray(data.getData(), data.getOffset(), data.getSize());
+			}
+		};
+	}
+
+	/**
+	 * <p>
+	 * Position <code>cursor</code> on the first duplicate of <code>key</code> accepted by
+	 * <code>filter</code> and return <code>true</code>, or return <code>false</code> if there
+	 * is none.
+	 * </p>
+	 */
+	public static boolean seekFirst(Cursor cursor, DatabaseEntry key, DatabaseEntry data, Predicate<byte[]> filter)
+	{
+		OperationStatus status = cursor.getSearchKey(key, data, LockMode.DEFAULT);
+		while (status == OperationStatus.SUCCESS && !filter.test(data.getData()))
+			status = cursor.getNextDup(key, data, LockMode.DEFAULT);
+		return status == OperationStatus.SUCCESS;
+	}
+
+	public AnnotatedIncidenceResultSet(BJETxCursor cursor,
+									   DatabaseEntry key,
+									   ByteArrayConverter<HGPersistentHandle> converter,
+									   Predicate<byte[]> filter)
+	{
+		super(cursor,
+			  key,
+			  converter,
+			  dupSupplier(cursor.cursor(), key, converter, filter, true),
+			  dupSupplier(cursor.cursor(), key, converter, filter, false),
+			  true);
+		this.filter = filter;
+	}
+
+	public void goBeforeFirst()
+	{
+		try
+		{
+			if (seekFirst(cursor.cursor(), key, data, filter))
+			{
+				current = UNKNOWN;
+				prev = null;
+				next = converter.fromByteArray(data.getData(), data.getOffset(), data.getSize());
+				lookahead = 1;
+			}
+			else
+			{
+				prev = next = null;
+				current = UNKNOWN;
+				lookahead = 0;
+			}
+		}
+		catch (Throwable t)
+		{
+			closeNoException();
+			throw new HGException(t);
+		}
+	}
+
+	public void goAfterLast()
+	{
+		try
+		{
+			Cursor c = cursor.cursor();
+			OperationStatus status = c.getSearchKey(key, data, LockMode.DEFAULT);
+			if (status == OperationStatus.SUCCESS)
+			{
+				// the last duplicate is right before the next key, if any
+				if (c.getNextNoDup(new DatabaseEntry(), data, LockMode.DEFAULT) == OperationStatus.SUCCESS)
+					status = c.getPrev(key, data, LockMode.DEFAULT);
+				else
+					status = c.getLast(key, data, LockMode.DEFAULT);
+				while (status == OperationStatus.SUCCESS && !filter.test(data.getData()))
+					status = c.getPrevDup(key, data, LockMode.DEFAULT);
+			}
+			if (status == OperationStatus.SUCCESS)
+			{
+				current = UNKNOWN;
+				next = null;
+				prev = converter.fromByteArray(data.getData(), data.getOffset(), data.getSize());
+				lookahead = -1;
+			}
+			else
+			{
+				prev = next = null;
+				current = UNKNOWN;
+				lookahead = 0;
+			}
+		}
+		catch (Throwable t)
+		{
+			closeNoException();
+			throw new HGException(t);
+		}
+	}
+
+	public GotoResult goTo(HGPersistentHandle value, boolean exactMatch)
+	{
+		byte[] B = value.toByteArray();
+		Cursor search = null;
+		try
+		{
+			// Search with a copy, so that the position doesn't change when nothing is found.
+			search = cursor.cursor().dup(false);
+			DatabaseEntry found = new DatabaseEntry(B);
+			OperationStatus status = search.getSearchBothRange(key, found, LockMode.DEFAULT);
+			while (status == OperationStatus.SUCCESS && !filter.test(found.getData()))
+				status = search.getNextDup(key, found, LockMode.DEFAULT);
+			if (status != OperationStatus.SUCCESS)
+				return GotoResult.nothing;
+			boolean exact = bje.startsWith(found.getData(), B);
+			if (exactMatch && !exact)
+				return GotoResult.nothing;
+			cursor.cursor().getSearchBoth(key, found, LockMode.DEFAULT);
+			positionToCurrent(found.getData(), found.getOffset(), found.getSize());
+			return exact ? GotoResult.found : GotoResult.close;
+		}
+		catch (Throwable t)
+		{
+			closeNoException();
+			throw new HGException(t);
+		}
+		finally
+		{
+			if (search != null)
+				try { search.close(); } catch (Throwable t) { }
+		}
+	}
+}
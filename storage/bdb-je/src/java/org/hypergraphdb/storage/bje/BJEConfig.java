@@ -12,9 +12,18 @@ public class BJEConfig
 																		// for
 																		// tests
 	public static final int DEFAULT_NUMBER_OF_STORAGE_CACHES = 1;
+	public static final long DEFAULT_CHECKPOINT_BYTES = 20 * 1024 * 1024;
+	public static final int DEFAULT_CHECKPOINT_LOG_FILES = 1;
+	public static final long DEFAULT_CHECKPOINT_INTERVAL = 60000;
+	public static final long DEFAULT_CHECKPOINT_POLL_INTERVAL = 1000;
 
 	private EnvironmentConfig envConfig;
 	private DatabaseConfig dbConfig;
+	private boolean compressedPostingLists = false;
+	private long checkpointBytes = DEFAULT_CHECKPOINT_BYTES;
+	private int checkpointLogFiles = DEFAULT_CHECKPOINT_LOG_FILES;
+	private long checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+	private long checkpointPollInterval = DEFAULT_CHECKPOINT_POLL_INTERVAL;
 
 	private void resetDefaults(boolean readOnly)
 	{
@@ -34,6 +43,7 @@ public class BJEConfig
 				Long.toString(1024 * 1024));
 		envConfig.setConfigParam(EnvironmentConfig.CLEANER_READ_SIZE,
 				Long.toString(1024 * 1024));
+		envConfig.setConfigParam(EnvironmentConfig.CLEANER_THREADS, "5");
 	}
 
 	public BJEConfig()
@@ -53,6 +63,124 @@ public class BJEConfig
 		return dbConfig;
 	}
 
+	/**
+	 * <p>
+	 * Return <code>true</code> if newly created databases store incidence sets and the
+	 * by-type index as compressed blocks of handles instead of one record per handle.
+	 * </p>
+	 */
+	public boolean isCompressedPostingLists()
+	{
+		return compressedPostingLists;
+	}
+
+	/**
+	 * <p>
+	 * Specify whether incidence sets and the by-type index of a newly created database
+	 * should be stored as compressed blocks of handles (see {@link BlockPostings}). This
+	 * reduces the size of large sets several times, depending on the handle factory, at
+	 * the expense of rewriting a block on every update. The setting has no effect on
+	 * existing databases which keep the format they were created with.
+	 * </p>
+	 */
+	public void setCompressedPostingLists(boolean compressedPostingLists)
+	{
+		this.compressedPostingLists = compressedPostingLists;
+	}
+
+	/**
+	 * <p>
+	 * Return the number of bytes written to the log since the last checkpoint that
+	 * trigger a new one.
+	 * </p>
+	 */
+	public long getCheckpointBytes()
+	{
+		return checkpointBytes;
+	}
+
+	/**
+	 * <p>
+	 * Specify the number of bytes written to the log since the last checkpoint that trigger
+	 * a new one. The more is written between checkpoints, the longer recovery takes after
+	 * a crash, but the less often the in-memory B-tree nodes are written out. The default is
+	 * {@link #DEFAULT_CHECKPOINT_BYTES}.
+	 * </p>
+	 */
+	public void setCheckpointBytes(long checkpointBytes)
+	{
+		this.checkpointBytes = checkpointBytes;
+	}
+
+	/**
+	 * <p>
+	 * Return the number of log files created since the last checkpoint that trigger a new one.
+	 * </p>
+	 */
+	public int getCheckpointLogFiles()
+	{
+		return checkpointLogFiles;
+	}
+
+	/**
+	 * <p>
+	 * Specify the number of log files created since the last checkpoint that trigger a new one.
+	 * Log files can only be deleted by the cleaner once a checkpoint has been taken after
+	 * they were cleaned, so this bounds the growth of the log on disk when the bytes threshold
+	 * is large compared to the size of a log file (<code>EnvironmentConfig.LOG_FILE_MAX</code>).
+	 * Use <code>0</code> to only check the number of bytes written. The default is
+	 * {@link #DEFAULT_CHECKPOINT_LOG_FILES}.
+	 * </p>
+	 */
+	public void setCheckpointLogFiles(int checkpointLogFiles)
+	{
+		this.checkpointLogFiles = checkpointLogFiles;
+	}
+
+	/**
+	 * <p>
+	 * Return the maximum time in milliseconds between two checkpoints.
+	 * </p>
+	 */
+	public long getCheckpointInterval()
+	{
+		return checkpointInterval;
+	}
+
+	/**
+	 * <p>
+	 * Specify the maximum time in milliseconds between two checkpoints: once it's elapsed, a
+	 * checkpoint is taken if anything at all was written since the last one, regardless of the
+	 * other thresholds. Use <code>0</code> to disable. The default is
+	 * {@link #DEFAULT_CHECKPOINT_INTERVAL}.
+	 * </p>
+	 */
+	public void setCheckpointInterval(long checkpointInterval)
+	{
+		this.checkpointInterval = checkpointInterval;
+	}
+
+	/**
+	 * <p>
+	 * Return how often, in milliseconds, the checkpoint thread checks the thresholds.
+	 * </p>
+	 */
+	public long getCheckpointPollInterval()
+	{
+		return checkpointPollInterval;
+	}
+
+	/**
+	 * <p>
+	 * Specify how often, in milliseconds, the checkpoint thread checks the thresholds. The
+	 * default is {@link #DEFAULT_CHECKPOINT_POLL_INTERVAL}.
+	 * </p>
+	 */
+	public void setCheckpointPollInterval(long checkpointPollInterval)
+	{
+		this.checkpointPollInterval = checkpointPollInterval;
+	}
+
 	public void configureTransactional()
 	{
 		envConfig.setTransactional(true);
@@ -66,5 +194,8 @@ public class BJEConfig
 				Durability.ReplicaAckPolicy.NONE); // unused by non-HA
 													// applications.
 		envConfig.setDurability(defaultDurability);
+		// Checkpoints are scheduled by the storage implementation, according to
+		// the thresholds configured here.
+		envConfig.setConfigParam(EnvironmentConfig.ENV_RUN_CHECKPOINTER, "false");
 	}
 }
\ No newline at end of file
@@ -1,11 +1,9 @@
 package org.hypergraphdb.storage.bje;
 
 import org.hypergraphdb.HGException;
-import org.hypergraphdb.HGRandomAccessResult;
 import org.hypergraphdb.storage.HGIndexStats;
 import org.hypergraphdb.util.Ref;
 
-import com.sleepycat.je.BtreeStats;
 import com.sleepycat.je.Cursor;
 import com.sleepycat.je.DatabaseEntry;
 import com.sleepycat.je.DatabaseException;
@@ -22,50 +20,24 @@ public class BJEIndexStats<Key, Value> implements HGIndexStats<Key, Value>
 		this.index = index;
 	}
 
+	// The total counts are maintained by the index, so they are exact and available at no cost.
+	
 	public Count entries(long cost, boolean isEstimateOk)
 	{
 		index.checkOpen();
-		return new Count(() -> ((BtreeStats) index.db.getStats(null)).getLeafNodeCount(), false);
+		return new Count(() -> index.countEntries(), false);
 	}
 	
 	public Count keys(long cost, boolean isEstimateOk)
 	{
 		index.checkOpen();
-		if (cost < Long.MAX_VALUE && !isEstimateOk)
-			return null;
-		else if (cost == Long.MAX_VALUE)
-			return new Count( () -> {
-				final long [] value = new long[1];
-				try (HGRandomAccessResult<Key> keys = index.scanKeys())
-				{
-					keys.forEachRemaining(k -> value[0]++);
-				}
-				return value[0];
-			}, false);
-		else // isEstimateOk
-		{
-			return new Count(() -> ((BtreeStats) index.db.getStats(null)).getLeafNodeCount(), true);
-		}
+		return new Count(() -> index.countKeys(), false);
 	}
 
 	public Count values(long cost, boolean isEstimateOk)
 	{
 		index.checkOpen();
-		if (cost < Long.MAX_VALUE && !isEstimateOk)
-			return null;
-		else if (cost == Long.MAX_VALUE)
-			return new Count( () -> {
-				final long [] cnt = new long[1];
-				try (HGRandomAccessResult<Value> values = index.scanValues())
-				{
-					values.forEachRemaining(k -> cnt[0]++);
-				}
-				return cnt[0];
-			}, false);
-		else // isEstimateOk
-		{
-			return new Count(() -> ((BtreeStats) index.db.getStats(null)).getLeafNodeCount(), true);
-		}		
+		return new Count(() -> index.countEntries(), false);
 	}
 
 	public Count valuesOfKey(Key key, long cost, boolean isEstimateOk)
@@ -2,30 +2,48 @@ package org.hypergraphdb.storage.bje;
 
 import java.io.File;
 
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
 
 import org.hypergraphdb.HGConfiguration;
 import org.hypergraphdb.HGException;
+import org.hypergraphdb.HGHandle;
 import org.hypergraphdb.HGHandleFactory;
 import org.hypergraphdb.HGIndex;
 import org.hypergraphdb.HGPersistentHandle;
 import org.hypergraphdb.HGRandomAccessResult;
 import org.hypergraphdb.HGSearchResult;
 import org.hypergraphdb.HGStore;
+import org.hypergraphdb.HyperGraph;
+import org.hypergraphdb.query.And;
+import org.hypergraphdb.query.HGQueryConfiguration;
+import org.hypergraphdb.query.QueryCompile;
+import org.hypergraphdb.storage.BAUtils;
 import org.hypergraphdb.storage.BAtoHandle;
 import org.hypergraphdb.storage.ByteArrayConverter;
 import org.hypergraphdb.storage.HGStoreImplementation;
+import org.hypergraphdb.storage.incidence.AnnotatedIncidenceStorage;
+import org.hypergraphdb.storage.incidence.HGIncidentAnnotator;
+import org.hypergraphdb.storage.incidence.QueryByTypedIncident;
+import org.hypergraphdb.storage.incidence.TypeAndPositionIncidenceAnnotator;
+import org.hypergraphdb.storage.incidence.TypedIncidentCondition;
+import org.hypergraphdb.storage.incidence.TypedIncidentToQuery;
+import org.hypergraphdb.transaction.HGDurability;
 import org.hypergraphdb.transaction.HGStorageTransaction;
 import org.hypergraphdb.transaction.HGTransaction;
 import org.hypergraphdb.transaction.HGTransactionConfig;
 import org.hypergraphdb.transaction.HGTransactionContext;
+import org.hypergraphdb.transaction.HGTransactionException;
 import org.hypergraphdb.transaction.HGTransactionFactory;
 import org.hypergraphdb.transaction.TransactionConflictException;
 import org.hypergraphdb.transaction.VanillaTransaction;
 import org.hypergraphdb.util.HGClassLoaderDelegate;
+import com.sleepycat.je.CheckpointConfig;
 import com.sleepycat.je.Cursor;
 import com.sleepycat.je.CursorConfig;
 import com.sleepycat.je.Database;
@@ -35,17 +53,24 @@ import com.sleepycat.je.DatabaseException;
 import com.sleepycat.je.Durability;
 import com.sleepycat.je.Environment;
 import com.sleepycat.je.EnvironmentConfig;
+import com.sleepycat.je.EnvironmentStats;
 import com.sleepycat.je.LockConflictException;
 import com.sleepycat.je.LockMode;
 import com.sleepycat.je.OperationStatus;
+import com.sleepycat.je.StatsConfig;
 import com.sleepycat.je.Transaction;
 import com.sleepycat.je.TransactionConfig;
+import com.sleepycat.je.utilint.DbLsn;
 
-public class BJEStorageImplementation implements HGStoreImplementation
+public class BJEStorageImplementation implements HGStoreImplementation, AnnotatedIncidenceStorage
 {
 	private static final String DATA_DB_NAME = "datadb";
 	private static final String PRIMITIVE_DB_NAME = "primitivedb";
 	private static final String INCIDENCE_DB_NAME = "incidencedb";
+	private static final String INCIDENCE_BLOCKS_DB_NAME = "incidencedb_blocks";
+	private static final String INCIDENCE_MIGRATION_DB_NAME = "incidencedb_migration";
+	private static final int INCIDENCE_MIGRATION_BATCH = 10000;
+	private static final String INDEX_COUNTS_DB_NAME = "hgstore_idx_counts";
 
 	private BJEConfig configuration;
 	private HGStore store;
@@ -55,9 +80,18 @@ public class BJEStorageImplementation implements HGStoreImplementation
 	private Database data_db = null;
 	private Database primitive_db = null;
 	private Database incidence_db = null;
+	// the key and entry counts of the indices, saved when they are closed
+	private Database index_counts_db = null;
+	private HashMap<String, long[]> savedIndexCounts = new HashMap<String, long[]>();
+	// non-null when incidence sets are stored as compressed blocks
+	private BlockPostings incidenceBlocks = null;
+	// non-null when incidence set entries carry an annotation after the link handle
+	private HGIncidentAnnotator incidentAnnotator = null;
+	private int handleSize;
 	private HashMap<String, HGIndex<?, ?>> openIndices = new HashMap<String, HGIndex<?, ?>>();
 	private ReentrantReadWriteLock indicesLock = new ReentrantReadWriteLock();
 	private LinkBinding linkBinding = null;
+	private EntryPool entries = null;
 
 	private TransactionBJEImpl txn()
 	{
@@ -84,13 +118,32 @@ public class BJEStorageImplementation implements HGStoreImplementation
 		return env;
 	}
 
+	public HGIncidentAnnotator getIncidentAnnotator()
+	{
+		return incidentAnnotator;
+	}
+
+	/**
+	 * <p>
+	 * Annotate the entries of incidence sets with the given annotator, or store plain link
+	 * handles when it is <code>null</code> (the default). This must be set before the store
+	 * is started. An existing incidence database in the other format is migrated at startup.
+	 * With a {@link TypeAndPositionIncidenceAnnotator}, conjunctions of a type and an incident
+	 * condition are then answered by a single scan of the incidence set.
+	 * </p>
+	 */
+	public void setIncidentAnnotator(HGIncidentAnnotator incidentAnnotator)
+	{
+		this.incidentAnnotator = incidentAnnotator;
+	}
+
 	public void startup(HGStore store, HGConfiguration config)
 	{
 		this.store = store;
 		this.handleFactory = config.getHandleFactory();
 		this.linkBinding = new LinkBinding(handleFactory);
+		this.entries = new EntryPool(linkBinding);
 		EnvironmentConfig envConfig = configuration.getEnvironmentConfig();
-		envConfig.setConfigParam(EnvironmentConfig.CLEANER_THREADS, "5");
 		envConfig.setClassLoader(new HGClassLoaderDelegate(config));
 		if (config.isTransactional())
 		{
@@ -103,12 +156,30 @@ public class BJEStorageImplementation implements HGStoreImplementation
 		try
 		{
 			env = new Environment(envDir, envConfig);
+			defaultDurability = env.getConfig().getDurability();
+			if (defaultDurability == null)
+				defaultDurability = Durability.COMMIT_SYNC;
+			logFileMax = Long.parseLong(env.getConfig().getConfigParam(EnvironmentConfig.LOG_FILE_MAX));
 			data_db = env.openDatabase(null, DATA_DB_NAME, configuration.getDatabaseConfig().clone());
 			primitive_db = env.openDatabase(null, PRIMITIVE_DB_NAME, configuration.getDatabaseConfig().clone());
 
 			DatabaseConfig incConfig = configuration.getDatabaseConfig().clone();
 			incConfig.setSortedDuplicates(true);
-			incidence_db = env.openDatabase(null, INCIDENCE_DB_NAME, incConfig);
+			// An existing database keeps the format it was created with.
+			List<String> databases = env.getDatabaseNames();
+			boolean compressed = databases.contains(INCIDENCE_BLOCKS_DB_NAME) ||
+				!databases.contains(INCIDENCE_DB_NAME) && configuration.isCompressedPostingLists();
+			handleSize = linkBinding.getHandleSize();
+			if (compressed && incidentAnnotator != null)
+				throw new HGException("Annotated incidence sets can't be stored as compressed posting lists.");
+			if (!compressed)
+				migrateIncidence(incConfig);
+			incidence_db = env.openDatabase(null, compressed ? INCIDENCE_BLOCKS_DB_NAME : INCIDENCE_DB_NAME, incConfig);
+			incidenceBlocks = compressed ? new BlockPostings(incidence_db, cursorConfig) : null;
+			index_counts_db = env.openDatabase(null, INDEX_COUNTS_DB_NAME, configuration.getDatabaseConfig().clone());
+			loadIndexCounts();
+			if (incidentAnnotator instanceof TypeAndPositionIncidenceAnnotator)
+				registerTypedIncidentQueries(config.getQueryConfiguration());
 
 			openIndices = new HashMap<String, HGIndex<?, ?>>(); // force reset
 																// since startup
@@ -119,12 +190,7 @@ public class BJEStorageImplementation implements HGStoreImplementation
 
 			if (config.isTransactional())
 			{
-				//CheckpointConfig ckptConfig = new CheckpointConfig();
-				// System.out.println("checkpoint kbytes:" +
-				// ckptConfig.getKBytes());
-				// System.out.println("checkpoint minutes:" +
-				// ckptConfig.getMinutes());
-				env.checkpoint(null);
+				checkpoint();
 				checkPointThread = new CheckPointThread();
 				checkPointThread.start();
 			}
@@ -159,7 +225,7 @@ public class BJEStorageImplementation implements HGStoreImplementation
 			try
 			{
 				if (env.getConfig().getTransactional())
-					env.checkpoint(null);
+					checkpoint();
 			}
 			catch (Throwable t)
 			{
@@ -208,6 +274,15 @@ public class BJEStorageImplementation implements HGStoreImplementation
 				t.printStackTrace();
 			}
 
+			try
+			{
+				index_counts_db.close();
+			}
+			catch (Throwable t)
+			{
+				t.printStackTrace();
+			}
+
 			try
 			{
 				env.close();
@@ -228,8 +303,7 @@ public class BJEStorageImplementation implements HGStoreImplementation
 
 		try
 		{
-			DatabaseEntry key = new DatabaseEntry(handle.toByteArray());
-			data_db.delete(txn().getBJETransaction(), key);
+			data_db.delete(txn().getBJETransaction(), entries.key(handle));
 		}
 		catch (Exception ex)
 		{
@@ -243,7 +317,7 @@ public class BJEStorageImplementation implements HGStoreImplementation
 			throw new NullPointerException("Can't store null data.");
 		try
 		{
-			OperationStatus result = primitive_db.put(txn().getBJETransaction(), new DatabaseEntry(handle.toByteArray()),
+			OperationStatus result = primitive_db.put(txn().getBJETransaction(), entries.key(handle),
 					new DatabaseEntry(data));
 			if (result != OperationStatus.SUCCESS)
 				throw new Exception("OperationStatus: " + result);
@@ -280,15 +354,17 @@ public class BJEStorageImplementation implements HGStoreImplementation
 
 	public HGPersistentHandle store(HGPersistentHandle handle, HGPersistentHandle[] link)
 	{
-		DatabaseEntry key = new DatabaseEntry(handle.toByteArray());
-		DatabaseEntry value = new DatabaseEntry();
-		linkBinding.objectToEntry(link, value);
+		// outside the try, a null handle or link is reported as a NullPointerException
+		DatabaseEntry key = entries.key(handle);
+		DatabaseEntry value = entries.value(link);
 
 		try
 		{
 			OperationStatus result = data_db.put(txn().getBJETransaction(), key, value);
 			if (result != OperationStatus.SUCCESS)
 				throw new Exception("OperationStatus: " + result);
+			if (incidentAnnotator != null)
+				reannotate(handle, link);
 		}
 		catch (Exception ex)
 		{
@@ -299,12 +375,31 @@ public class BJEStorageImplementation implements HGStoreImplementation
 
 	public void addIncidenceLink(HGPersistentHandle handle, HGPersistentHandle newLink)
 	{
+		if (incidenceBlocks != null)
+		{
+			try
+			{
+				incidenceBlocks.add(txn().getBJETransaction(), handle.toByteArray(), newLink.toByteArray());
+				return;
+			}
+			catch (Exception ex)
+			{
+				throw new HGException("Failed to update incidence set for handle " + handle + ": " + ex.toString(), ex);
+			}
+		}
 		Cursor cursor = null;
 		try
 		{
-			DatabaseEntry key = new DatabaseEntry(handle.toByteArray());
-			DatabaseEntry value = new DatabaseEntry(newLink.toByteArray());
-			OperationStatus result = incidence_db.putNoDupData(txn().getBJETransaction(), key, value);
+			if (incidentAnnotator != null)
+			{
+				byte[] value = incidenceValue(handle, newLink, getLink(newLink));
+				cursor = incidence_db.openCursor(txn().getBJETransaction(), cursorConfig);
+				putAnnotated(cursor, new DatabaseEntry(handle.toByteArray()), value);
+				return;
+			}
+			OperationStatus result = incidence_db.putNoDupData(txn().getBJETransaction(),
+															   entries.key(handle),
+															   entries.value(newLink));
 
 			if (result != OperationStatus.SUCCESS && result != OperationStatus.KEYEXIST)
 			{
@@ -346,12 +441,9 @@ public class BJEStorageImplementation implements HGStoreImplementation
 
 	public boolean containsLink(HGPersistentHandle handle)
 	{
-		DatabaseEntry key = new DatabaseEntry(handle.toByteArray());
-		DatabaseEntry value = new DatabaseEntry();
-		value.setPartial(0, 0, true);
 		try
 		{
-			if (data_db.get(txn().getBJETransaction(), key, value, LockMode.DEFAULT) == OperationStatus.SUCCESS)
+			if (data_db.get(txn().getBJETransaction(), entries.key(handle), entries.probe(), LockMode.DEFAULT) == OperationStatus.SUCCESS)
 			{
 				// System.out.println(value.toString());
 				return true;
@@ -367,12 +459,9 @@ public class BJEStorageImplementation implements HGStoreImplementation
 
 	public boolean containsData(HGPersistentHandle handle)
 	{
-		DatabaseEntry key = new DatabaseEntry(handle.toByteArray());
-		DatabaseEntry value = new DatabaseEntry();
-		value.setPartial(0, 0, true);
 		try
 		{
-			if (primitive_db.get(txn().getBJETransaction(), key, value, LockMode.DEFAULT) == OperationStatus.SUCCESS)
+			if (primitive_db.get(txn().getBJETransaction(), entries.key(handle), entries.probe(), LockMode.DEFAULT) == OperationStatus.SUCCESS)
 			{
 				return true;
 			}
@@ -388,9 +477,8 @@ public class BJEStorageImplementation implements HGStoreImplementation
 	{
 		try
 		{
-			DatabaseEntry key = new DatabaseEntry(handle.toByteArray());
 			DatabaseEntry value = new DatabaseEntry();
-			if (primitive_db.get(txn().getBJETransaction(), key, value, LockMode.DEFAULT) == OperationStatus.SUCCESS)
+			if (primitive_db.get(txn().getBJETransaction(), entries.key(handle), value, LockMode.DEFAULT) == OperationStatus.SUCCESS)
 				return value.getData();
 			else
 				return null;
@@ -407,9 +495,23 @@ public class BJEStorageImplementation implements HGStoreImplementation
 		if (handle == null)
 			throw new NullPointerException("HGStore.getIncidenceSet called with a null handle.");
 
+		if (incidenceBlocks != null)
+		{
+			try
+			{
+				return incidenceBlocks.find(txn(), handle.toByteArray(), BAtoHandle.getInstance(handleFactory));
+			}
+			catch (Exception ex)
+			{
+				throw new HGException("Failed to retrieve incidence set for handle " + handle + ": " + ex.toString(), ex);
+			}
+		}
+		if (incidentAnnotator != null)
+			return annotatedIncidenceResultSet(handle, value -> true);
 		Cursor cursor = null;
 		try
 		{
+			// not a pooled entry - the result set holds on to its key
 			DatabaseEntry key = new DatabaseEntry(handle.toByteArray());
 			DatabaseEntry value = new DatabaseEntry();
 			TransactionBJEImpl tx = txn();
@@ -438,18 +540,64 @@ public class BJEStorageImplementation implements HGStoreImplementation
 		}
 	}
 
+	public HGRandomAccessResult<HGPersistentHandle> getAnnotatedIncidenceResultSet(HGHandle target, final Object... annotations)
+	{
+		if (incidentAnnotator == null)
+			throw new HGException("Attempt to query by annotated incident link when no incident annotator was configured.");
+		else if (target == null)
+			throw new NullPointerException("HGStore.getIncidenceSet called with a null target handle.");
+		return annotatedIncidenceResultSet(target.getPersistent(),
+										   value -> incidentAnnotator.matches(value, handleSize, annotations));
+	}
+
+	@SuppressWarnings("unchecked")
+	private HGRandomAccessResult<HGPersistentHandle> annotatedIncidenceResultSet(HGPersistentHandle handle,
+																				Predicate<byte[]> filter)
+	{
+		Cursor cursor = null;
+		try
+		{
+			DatabaseEntry key = new DatabaseEntry(handle.toByteArray());
+			DatabaseEntry value = new DatabaseEntry();
+			TransactionBJEImpl tx = txn();
+			cursor = incidence_db.openCursor(tx.getBJETransaction(), cursorConfig);
+			if (!AnnotatedIncidenceResultSet.seekFirst(cursor, key, value, filter))
+			{
+				cursor.close();
+				return (HGRandomAccessResult<HGPersistentHandle>) HGSearchResult.EMPTY;
+			}
+			else
+				return new AnnotatedIncidenceResultSet(tx.attachCursor(cursor), key,
+						BAtoHandle.getInstance(handleFactory), filter);
+		}
+		catch (Throwable ex)
+		{
+			closeCursor(cursor);
+			throw new HGException("Failed to retrieve incidence set for handle " + handle + ": " + ex.toString(), ex);
+		}
+	}
+
 	public long getIncidenceSetCardinality(HGPersistentHandle handle)
 	{
 		if (handle == null)
 			throw new NullPointerException("HGStore.getIncidenceSetCardinality called with a null handle.");
 
+		if (incidenceBlocks != null)
+		{
+			try
+			{
+				return incidenceBlocks.count(txn().getBJETransaction(), handle.toByteArray());
+			}
+			catch (Exception ex)
+			{
+				throw new HGException("Failed to retrieve incidence set for handle " + handle + ": " + ex.toString(), ex);
+			}
+		}
 		Cursor cursor = null;
 		try
 		{
-			DatabaseEntry key = new DatabaseEntry(handle.toByteArray());
-			DatabaseEntry value = new DatabaseEntry();
 			cursor = incidence_db.openCursor(txn().getBJETransaction(), cursorConfig);
-			OperationStatus status = cursor.getSearchKey(key, value, LockMode.DEFAULT);
+			OperationStatus status = cursor.getSearchKey(entries.key(handle), entries.probe(), LockMode.DEFAULT);
 			if (status == OperationStatus.NOTFOUND)
 				return 0;
 			else
@@ -475,9 +623,8 @@ public class BJEStorageImplementation implements HGStoreImplementation
 	{
 		try
 		{
-			DatabaseEntry key = new DatabaseEntry(handle.toByteArray());
 			DatabaseEntry value = new DatabaseEntry();
-			if (data_db.get(txn().getBJETransaction(), key, value, LockMode.DEFAULT) == OperationStatus.SUCCESS)
+			if (data_db.get(txn().getBJETransaction(), entries.key(handle), value, LockMode.DEFAULT) == OperationStatus.SUCCESS)
 				return (HGPersistentHandle[]) linkBinding.entryToObject(value);
 			else
 				return null;
@@ -488,6 +635,215 @@ public class BJEStorageImplementation implements HGStoreImplementation
 		}
 	}
 
+	// Return the positions of the given keys in ascending key order, as BerkeleyDB sorts
+	// them by default, so that batch operations traverse the B-tree in a single sweep.
+	private static Integer[] sortedOrder(final byte[][] keys)
+	{
+		Integer[] order = new Integer[keys.length];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		java.util.Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer i, Integer j)
+			{
+				byte[] left = keys[i], right = keys[j];
+				for (int k = 0; k < left.length && k < right.length; k++)
+				{
+					int c = (left[k] & 0xff) - (right[k] & 0xff);
+					if (c != 0)
+						return c;
+				}
+				return left.length - right.length;
+			}
+		});
+		return order;
+	}
+
+	private static byte[][] toKeys(HGPersistentHandle[] handles)
+	{
+		byte[][] keys = new byte[handles.length][];
+		for (int i = 0; i < handles.length; i++)
+			keys[i] = handles[i].toByteArray();
+		return keys;
+	}
+
+	private void closeCursor(Cursor cursor)
+	{
+		if (cursor != null)
+			try
+			{
+				cursor.close();
+			}
+			catch (Exception ex)
+			{
+			}
+	}
+
+	public HGPersistentHandle[][] getLinks(HGPersistentHandle[] handles)
+	{
+		HGPersistentHandle[][] result = new HGPersistentHandle[handles.length][];
+		byte[][] keys = toKeys(handles);
+		Cursor cursor = null;
+		try
+		{
+			cursor = data_db.openCursor(txn().getBJETransaction(), cursorConfig);
+			DatabaseEntry key = new DatabaseEntry();
+			DatabaseEntry value = new DatabaseEntry();
+			for (int i : sortedOrder(keys))
+			{
+				key.setData(keys[i]);
+				if (cursor.getSearchKey(key, value, LockMode.DEFAULT) == OperationStatus.SUCCESS)
+					result[i] = linkBinding.entryToObject(value);
+			}
+			return result;
+		}
+		catch (Exception ex)
+		{
+			throw new HGException("Failed to retrieve links: " + ex.toString(), ex);
+		}
+		finally
+		{
+			closeCursor(cursor);
+		}
+	}
+
+	public byte[][] getDataBatch(HGPersistentHandle[] handles)
+	{
+		byte[][] result = new byte[handles.length][];
+		byte[][] keys = toKeys(handles);
+		Cursor cursor = null;
+		try
+		{
+			cursor = primitive_db.openCursor(txn().getBJETransaction(), cursorConfig);
+			DatabaseEntry key = new DatabaseEntry();
+			DatabaseEntry value = new DatabaseEntry();
+			for (int i : sortedOrder(keys))
+			{
+				key.setData(keys[i]);
+				if (cursor.getSearchKey(key, value, LockMode.DEFAULT) == OperationStatus.SUCCESS)
+					result[i] = value.getData();
+			}
+			return result;
+		}
+		catch (Exception ex)
+		{
+			throw new HGException("Failed to retrieve data: " + ex.toString(), ex);
+		}
+		finally
+		{
+			closeCursor(cursor);
+		}
+	}
+
+	public void storeAll(HGPersistentHandle[] handles, HGPersistentHandle[][] links)
+	{
+		byte[][] keys = toKeys(handles);
+		Cursor cursor = null;
+		try
+		{
+			cursor = data_db.openCursor(txn().getBJETransaction(), cursorConfig);
+			DatabaseEntry key = new DatabaseEntry();
+			for (int i : sortedOrder(keys))
+			{
+				key.setData(keys[i]);
+				OperationStatus result = cursor.put(key, entries.value(links[i]));
+				if (result != OperationStatus.SUCCESS)
+					throw new Exception("OperationStatus: " + result);
+			}
+			if (incidentAnnotator != null)
+				for (int i = 0; i < handles.length; i++)
+					reannotate(handles[i], links[i]);
+		}
+		catch (Exception ex)
+		{
+			throw new HGException("Failed to store hypergraph links: " + ex.toString(), ex);
+		}
+		finally
+		{
+			closeCursor(cursor);
+		}
+	}
+
+	public void storeAll(HGPersistentHandle[] handles, byte[][] data)
+	{
+		byte[][] keys = toKeys(handles);
+		Cursor cursor = null;
+		try
+		{
+			cursor = primitive_db.openCursor(txn().getBJETransaction(), cursorConfig);
+			DatabaseEntry key = new DatabaseEntry();
+			DatabaseEntry value = new DatabaseEntry();
+			for (int i : sortedOrder(keys))
+			{
+				if (data[i] == null)
+					throw new NullPointerException("Can't store null data.");
+				key.setData(keys[i]);
+				value.setData(data[i]);
+				OperationStatus result = cursor.put(key, value);
+				if (result != OperationStatus.SUCCESS)
+					throw new Exception("OperationStatus: " + result);
+			}
+		}
+		catch (RuntimeException ex)
+		{
+			throw ex;
+		}
+		catch (Exception ex)
+		{
+			throw new HGException("Failed to store hypergraph raw byte []: " + ex.toString(), ex);
+		}
+		finally
+		{
+			closeCursor(cursor);
+		}
+	}
+
+	public void addIncidenceLinks(HGPersistentHandle handle, HGPersistentHandle[] newLinks)
+	{
+		byte[][] values = toKeys(newLinks);
+		if (incidentAnnotator != null)
+			for (int i = 0; i < values.length; i++)
+				values[i] = incidenceValue(handle, newLinks[i], getLink(newLinks[i]));
+		if (incidenceBlocks != null)
+		{
+			try
+			{
+				incidenceBlocks.addAll(txn().getBJETransaction(), handle.toByteArray(), values);
+				return;
+			}
+			catch (Exception ex)
+			{
+				throw new HGException("Failed to update incidence set for handle " + handle + ": " + ex.toString(), ex);
+			}
+		}
+		Cursor cursor = null;
+		try
+		{
+			cursor = incidence_db.openCursor(txn().getBJETransaction(), cursorConfig);
+			DatabaseEntry key = entries.key(handle);
+			DatabaseEntry value = new DatabaseEntry();
+			for (int i : sortedOrder(values))
+			{
+				if (incidentAnnotator != null)
+				{
+					putAnnotated(cursor, key, values[i]);
+					continue;
+				}
+				value.setData(values[i]);
+				OperationStatus result = cursor.putNoDupData(key, value);
+				if (result != OperationStatus.SUCCESS && result != OperationStatus.KEYEXIST)
+					throw new Exception("OperationStatus: " + result);
+			}
+		}
+		catch (Exception ex)
+		{
+			throw new HGException("Failed to update incidence set for handle " + handle + ": " + ex.toString(), ex);
+		}
+		finally
+		{
+			closeCursor(cursor);
+		}
+	}
+
 	public HGTransactionFactory getTransactionFactory()
 	{
 		return new HGTransactionFactory()
@@ -498,15 +854,13 @@ public class BJEStorageImplementation implements HGStoreImplementation
 				try
 				{
 					TransactionConfig tconfig = new TransactionConfig();
-
-					Durability tDurability = new Durability(Durability.SyncPolicy.WRITE_NO_SYNC, Durability.SyncPolicy.NO_SYNC, // unused
-																																// by
-																																// non-HA
-																																// applications.
-							Durability.ReplicaAckPolicy.NONE); // unused by
-																// non-HA
-																// applications.
+					Durability tDurability = durability(config.getDurability());
 					tconfig.setDurability(tDurability);
+					// Snapshot reads are validated against the in-memory versions only,
+					// so release read locks right away instead of blocking writers. JE has
+					// no snapshot isolation, so storage reads see the latest committed data.
+					if (config.isSnapshot())
+						tconfig.setReadCommitted(true);
 
 					Transaction tx = null;
 
@@ -524,7 +878,7 @@ public class BJEStorageImplementation implements HGStoreImplementation
 					{
 						tx = env.beginTransaction(null, tconfig);
 					}
-					return new TransactionBJEImpl(tx, env);
+					return new TransactionBJEImpl(tx, env, tDurability.getLocalSync());
 				}
 				catch (DatabaseException ex)
 				{
@@ -540,6 +894,39 @@ public class BJEStorageImplementation implements HGStoreImplementation
 				return ex instanceof TransactionConflictException || ex instanceof LockConflictException; // DeadlockException;
 
 			}
+
+			public void commitBatch(List<HGStorageTransaction> batch) throws HGTransactionException
+			{
+				// Commit all transactions in the group without touching the log and then
+				// write it out once, with an fsync if any of them asked for one. This
+				// gives each transaction the durability it was configured with.
+				boolean flush = false, sync = false;
+				for (HGStorageTransaction tx : batch)
+				{
+					if (tx instanceof TransactionBJEImpl)
+					{
+						TransactionBJEImpl bjeTx = (TransactionBJEImpl) tx;
+						bjeTx.commitNoSync();
+						if (bjeTx.getSyncPolicy() == Durability.SyncPolicy.SYNC)
+							sync = true;
+						else if (bjeTx.getSyncPolicy() == Durability.SyncPolicy.WRITE_NO_SYNC)
+							flush = true;
+					}
+					else
+						tx.commit();
+				}
+				if (flush || sync)
+				{
+					try
+					{
+						env.flushLog(sync);
+					}
+					catch (DatabaseException ex)
+					{
+						throw new HGTransactionException("Failed to flush log after group commit.", ex);
+					}
+				}
+			}
 		};
 	}
 
@@ -549,8 +936,7 @@ public class BJEStorageImplementation implements HGStoreImplementation
 			throw new NullPointerException("HGStore.remove called with a null handle.");
 		try
 		{
-			DatabaseEntry key = new DatabaseEntry(handle.toByteArray());
-			primitive_db.delete(txn().getBJETransaction(), key);
+			primitive_db.delete(txn().getBJETransaction(), entries.key(handle));
 		}
 		catch (Exception ex)
 		{
@@ -560,13 +946,33 @@ public class BJEStorageImplementation implements HGStoreImplementation
 
 	public void removeIncidenceLink(HGPersistentHandle handle, HGPersistentHandle oldLink)
 	{
+		if (incidenceBlocks != null)
+		{
+			try
+			{
+				incidenceBlocks.remove(txn().getBJETransaction(), handle.toByteArray(), oldLink.toByteArray());
+				return;
+			}
+			catch (Exception ex)
+			{
+				throw new HGException("Failed to update incidence set for handle " + handle + ": " + ex.toString(), ex);
+			}
+		}
 		Cursor cursor = null;
 		try
 		{
-			DatabaseEntry key = new DatabaseEntry(handle.toByteArray());
-			DatabaseEntry value = new DatabaseEntry(oldLink.toByteArray());
 			cursor = incidence_db.openCursor(txn().getBJETransaction(), cursorConfig);
-			OperationStatus status = cursor.getSearchBoth(key, value, LockMode.DEFAULT);
+			if (incidentAnnotator != null)
+			{
+				// the annotation isn't known anymore, the entry is found by its link handle
+				byte[] link = oldLink.toByteArray();
+				DatabaseEntry value = new DatabaseEntry(link);
+				if (cursor.getSearchBothRange(entries.key(handle), value, LockMode.DEFAULT) == OperationStatus.SUCCESS
+						&& bje.startsWith(value.getData(), link))
+					cursor.delete();
+				return;
+			}
+			OperationStatus status = cursor.getSearchBoth(entries.key(handle), entries.value(oldLink), LockMode.DEFAULT);
 			if (status == OperationStatus.SUCCESS)
 			{
 				cursor.delete();
@@ -595,8 +1001,7 @@ public class BJEStorageImplementation implements HGStoreImplementation
 	{
 		try
 		{
-			DatabaseEntry key = new DatabaseEntry(handle.toByteArray());
-			incidence_db.delete(txn().getBJETransaction(), key);
+			incidence_db.delete(txn().getBJETransaction(), entries.key(handle));
 		}
 		catch (Exception ex)
 		{
@@ -605,44 +1010,192 @@ public class BJEStorageImplementation implements HGStoreImplementation
 	}
 
 	// ------------------------------------------------------------------------
-	// INDEXING
+	// ANNOTATED INCIDENCE
 	// ------------------------------------------------------------------------
 
-	boolean checkIndexExisting(String name)
+	// The incidence set entry of a link: its handle, followed by its annotation if any.
+	private byte[] incidenceValue(HGPersistentHandle target, HGPersistentHandle link, HGPersistentHandle[] layout)
 	{
-		if (openIndices.get(name) != null)
+		byte[] handle = link.toByteArray();
+		if (incidentAnnotator == null)
+			return handle;
+		byte[] value = Arrays.copyOf(handle, handle.length + incidentAnnotator.spaceNeeded(handleFactory));
+		incidentAnnotator.annotate(link, layout, target, value, handle.length);
+		return value;
+	}
+
+	// Add an annotated entry to an incidence set, replacing the entry of the same link if
+	// its annotation is different.
+	private void putAnnotated(Cursor cursor, DatabaseEntry key, byte[] value) throws Exception
+	{
+		byte[] link = Arrays.copyOf(value, handleSize);
+		DatabaseEntry existing = new DatabaseEntry(link);
+		if (cursor.getSearchBothRange(key, existing, LockMode.DEFAULT) == OperationStatus.SUCCESS
+				&& bje.startsWith(existing.getData(), link))
 		{
-			return true;
+			if (Arrays.equals(existing.getData(), value))
+				return;
+			cursor.delete();
 		}
-		else
-		{
-			DatabaseConfig cfg = new DatabaseConfig();
-			cfg.setAllowCreate(false);
-			Database db = null;
+		OperationStatus result = cursor.putNoDupData(key, new DatabaseEntry(value));
+		if (result != OperationStatus.SUCCESS && result != OperationStatus.KEYEXIST)
+			throw new Exception("OperationStatus: " + result);
+	}
 
-			try
-			{
-				db = env.openDatabase(null, DefaultIndexImpl.DB_NAME_PREFIX + name, cfg);
-			}
-			catch (Exception ex)
+	// Bring the annotations of a link in the incidence sets of its targets up to date with
+	// its layout: a link can be added to an incidence set before it is stored and it can be
+	// replaced by a link of another type.
+	private void reannotate(HGPersistentHandle link, HGPersistentHandle[] layout) throws Exception
+	{
+		Cursor cursor = null;
+		try
+		{
+			byte[] handle = link.toByteArray();
+			for (int i = 2; i < layout.length; i++)
 			{
+				DatabaseEntry key = new DatabaseEntry(layout[i].toByteArray());
+				DatabaseEntry value = new DatabaseEntry(handle);
+				if (cursor == null)
+					cursor = incidence_db.openCursor(txn().getBJETransaction(), cursorConfig);
+				if (cursor.getSearchBothRange(key, value, LockMode.DEFAULT) == OperationStatus.SUCCESS
+						&& bje.startsWith(value.getData(), handle))
+					putAnnotated(cursor, key, incidenceValue(layout[i], link, layout));
 			}
+		}
+		finally
+		{
+			closeCursor(cursor);
+		}
+	}
 
-			if (db != null)
+	// Rewrite an existing incidence database whose entries are not in the format of the
+	// configured annotator, e.g. one created before annotations were enabled. Entries are
+	// copied in batches to a new database that replaces the old one at the end, so an
+	// interrupted migration simply starts over.
+	private void migrateIncidence(DatabaseConfig incConfig) throws Exception
+	{
+		List<String> databases = env.getDatabaseNames();
+		if (databases.contains(INCIDENCE_MIGRATION_DB_NAME))
+			env.removeDatabase(null, INCIDENCE_MIGRATION_DB_NAME);
+		if (!databases.contains(INCIDENCE_DB_NAME))
+			return;
+		int valueSize = handleSize + (incidentAnnotator == null ? 0 : incidentAnnotator.spaceNeeded(handleFactory));
+		boolean transactional = env.getConfig().getTransactional();
+		Database source = env.openDatabase(null, INCIDENCE_DB_NAME, incConfig);
+		Database target = null;
+		Cursor cursor = null;
+		try
+		{
+			DatabaseEntry key = new DatabaseEntry();
+			DatabaseEntry value = new DatabaseEntry();
+			DatabaseEntry layout = new DatabaseEntry();
+			cursor = source.openCursor(null, cursorConfig);
+			OperationStatus status = cursor.getNext(key, value, LockMode.READ_UNCOMMITTED);
+			if (status != OperationStatus.SUCCESS || value.getSize() == valueSize)
+				return;
+			target = env.openDatabase(null, INCIDENCE_MIGRATION_DB_NAME, incConfig);
+			while (status == OperationStatus.SUCCESS)
 			{
+				Transaction tx = transactional ? env.beginTransaction(null, null) : null;
 				try
 				{
-					db.close();
+					for (int count = 0; count < INCIDENCE_MIGRATION_BATCH && status == OperationStatus.SUCCESS; count++)
+					{
+						HGPersistentHandle link = handleFactory.makeHandle(value.getData(), value.getOffset());
+						HGPersistentHandle[] linkLayout = null;
+						if (incidentAnnotator != null &&
+							data_db.get(null, new DatabaseEntry(link.toByteArray()), layout, LockMode.READ_UNCOMMITTED) == OperationStatus.SUCCESS)
+							linkLayout = linkBinding.entryToObject(layout);
+						byte[] entry = incidenceValue(handleFactory.makeHandle(key.getData(), key.getOffset()), link, linkLayout);
+						target.putNoDupData(tx, key, new DatabaseEntry(entry));
+						status = cursor.getNext(key, value, LockMode.READ_UNCOMMITTED);
+					}
+					if (tx != null)
+						tx.commit();
 				}
-				catch (Throwable t)
+				catch (Exception ex)
 				{
-					t.printStackTrace();
+					if (tx != null)
+						tx.abort();
+					throw ex;
 				}
-				return true;
 			}
-			else
+			closeCursor(cursor);
+			cursor = null;
+			source.close();
+			source = null;
+			target.close();
+			target = null;
+			Transaction tx = transactional ? env.beginTransaction(null, null) : null;
+			env.removeDatabase(tx, INCIDENCE_DB_NAME);
+			env.renameDatabase(tx, INCIDENCE_MIGRATION_DB_NAME, INCIDENCE_DB_NAME);
+			if (tx != null)
+				tx.commit();
+		}
+		finally
+		{
+			closeCursor(cursor);
+			if (source != null)
+				source.close();
+			if (target != null)
+				target.close();
+		}
+	}
+
+	// Let conjunctions of a link type and an incident condition be answered from the
+	// annotated incidence sets.
+	private void registerTypedIncidentQueries(HGQueryConfiguration queryConfig)
+	{
+		for (QueryCompile.Contract contract : queryConfig.getContractTransforms(And.class))
+			if (contract instanceof QueryByTypedIncident)
+				return;
+		queryConfig.addContractTransform(And.class, new QueryByTypedIncident());
+		queryConfig.addCompiler(TypedIncidentCondition.class, new TypedIncidentToQuery());
+	}
+
+	// ------------------------------------------------------------------------
+	// INDEXING
+	// ------------------------------------------------------------------------
+
+	/**
+	 * <p>
+	 * Return <code>true</code> if incidence sets and the by-type index are stored as compressed
+	 * blocks of handles.
+	 * </p>
+	 */
+	public boolean isCompressedPostingLists()
+	{
+		return incidenceBlocks != null;
+	}
+
+	private boolean isBlockIndex(String name)
+	{
+		return incidenceBlocks != null && HyperGraph.TYPES_INDEX_NAME.equals(name);
+	}
+
+	private String indexDatabaseName(String name)
+	{
+		return (isBlockIndex(name) ? BlockIndexImpl.DB_NAME_PREFIX : DefaultIndexImpl.DB_NAME_PREFIX) + name;
+	}
+
+	boolean checkIndexExisting(String name)
+	{
+		if (openIndices.get(name) != null)
+		{
+			return true;
+		}
+		else
+		{
+			// Opening the database to find out if it exists fails whenever the configuration
+			// used doesn't match the one it was created with (e.g. sorted duplicates), so
+			// look up its name instead.
+			try
+			{
+				return env.getDatabaseNames().contains(indexDatabaseName(name));
+			}
+			catch (Exception ex)
 			{
-				return false;
+				throw new HGException(ex);
 			}
 		}
 	}
@@ -708,6 +1261,14 @@ public class BJEStorageImplementation implements HGStoreImplementation
 																	keyComparator,
 																	valueComparator);
 			}
+			else if (isBlockIndex(name) && keyComparator == null && valueComparator == null)
+			{
+				result = new BlockIndexImpl<KeyType, ValueType>(name,
+																this,
+																store.getTransactionManager(),
+																keyConverter,
+																valueConverter);
+			}
 			else
 			{
 				result = new DefaultIndexImpl<KeyType, ValueType>(name, 
@@ -745,7 +1306,9 @@ public class BJEStorageImplementation implements HGStoreImplementation
 
 			try
 			{
-				env.removeDatabase(null, DefaultIndexImpl.DB_NAME_PREFIX + name);
+				env.removeDatabase(null, indexDatabaseName(name));
+				index_counts_db.delete(null, new DatabaseEntry(indexDatabaseName(name).getBytes("UTF-8")));
+				takeIndexCounts(indexDatabaseName(name));
 			}
 			catch (Exception e)
 			{
@@ -758,8 +1321,229 @@ public class BJEStorageImplementation implements HGStoreImplementation
 		}
 	}
 
+	/**
+	 * Read the counts saved by the indices at the last shutdown and remove them from the
+	 * database - they are saved again when the indices are closed. Until then the database
+	 * holds no counts, so after a crash the indices have to count their entries again.
+	 */
+	private void loadIndexCounts() throws Exception
+	{
+		savedIndexCounts = new HashMap<String, long[]>();
+		Cursor cursor = index_counts_db.openCursor(null, cursorConfig);
+		try
+		{
+			DatabaseEntry key = new DatabaseEntry();
+			DatabaseEntry data = new DatabaseEntry();
+			while (cursor.getNext(key, data, LockMode.DEFAULT) == OperationStatus.SUCCESS)
+				savedIndexCounts.put(new String(key.getData(), key.getOffset(), key.getSize(), "UTF-8"),
+									 new long[] { BAUtils.readLong(data.getData(), data.getOffset()),
+												  BAUtils.readLong(data.getData(), data.getOffset() + 8) });
+		}
+		finally
+		{
+			cursor.close();
+		}
+		if (savedIndexCounts.isEmpty())
+			return;
+		for (String name : savedIndexCounts.keySet())
+			index_counts_db.delete(null, new DatabaseEntry(name.getBytes("UTF-8")));
+		env.flushLog(true);
+	}
+
+	/**
+	 * Return the key and entry counts saved by an index when it was last closed or
+	 * <code>null</code> if they are not known.
+	 */
+	long[] takeIndexCounts(String databaseName)
+	{
+		synchronized (savedIndexCounts)
+		{
+			return savedIndexCounts.remove(databaseName);
+		}
+	}
+
+	void saveIndexCounts(String databaseName, long keys, long entries)
+	{
+		byte[] data = new byte[16];
+		BAUtils.writeLong(keys, data, 0);
+		BAUtils.writeLong(entries, data, 8);
+		try
+		{
+			index_counts_db.put(null, new DatabaseEntry(databaseName.getBytes("UTF-8")), new DatabaseEntry(data));
+		}
+		catch (Exception ex)
+		{
+			throw new HGException("Failed to save the counts of index '" + databaseName + "': " + ex.toString(), ex);
+		}
+	}
+
+	// ------------------------------------------------------------------------
+	// DURABILITY AND CHECKPOINTS
+	// ------------------------------------------------------------------------
+
+	private Durability defaultDurability = Durability.COMMIT_WRITE_NO_SYNC;
+	private long logFileMax;
+	private final Object checkpointLock = new Object();
+	private long checkpointCount = 0;
+	private long lastCheckpointTime = 0;
+	private long lastCheckpointDuration = 0;
+	private long maxCheckpointDuration = 0;
+	private long totalCheckpointDuration = 0;
 	CheckPointThread checkPointThread = null;
 
+	private Durability durability(HGDurability durability)
+	{
+		if (durability == null)
+			return defaultDurability;
+		switch (durability)
+		{
+			case SYNC:
+				return Durability.COMMIT_SYNC;
+			case NO_SYNC:
+				return Durability.COMMIT_NO_SYNC;
+			default:
+				return Durability.COMMIT_WRITE_NO_SYNC;
+		}
+	}
+
+	// The end of the log is not among the statistics JE considers fast.
+	private EnvironmentStats logStats()
+	{
+		return env.getStats(StatsConfig.DEFAULT);
+	}
+
+	/**
+	 * <p>
+	 * Take a checkpoint right away and record how long it took.
+	 * </p>
+	 */
+	public void checkpoint()
+	{
+		synchronized (checkpointLock)
+		{
+			long start = System.currentTimeMillis();
+			CheckpointConfig config = new CheckpointConfig();
+			config.setForce(true);
+			env.checkpoint(config);
+			lastCheckpointTime = System.currentTimeMillis();
+			lastCheckpointDuration = lastCheckpointTime - start;
+			maxCheckpointDuration = Math.max(maxCheckpointDuration, lastCheckpointDuration);
+			totalCheckpointDuration += lastCheckpointDuration;
+			checkpointCount++;
+		}
+	}
+
+	/**
+	 * <p>
+	 * Take a checkpoint if one of the thresholds configured in {@link BJEConfig} was
+	 * reached since the last one. Return <code>true</code> if a checkpoint was taken.
+	 * </p>
+	 */
+	boolean maybeCheckpoint()
+	{
+		EnvironmentStats stats = logStats();
+		long end = stats.getEndOfLog(), last = stats.getLastCheckpointEnd();
+		boolean due;
+		if (last == DbLsn.NULL_LSN)
+			due = true;
+		else
+		{
+			long written = DbLsn.getNoCleaningDistance(end, last, logFileMax);
+			long files = DbLsn.getFileNumber(end) - DbLsn.getFileNumber(last);
+			long elapsed;
+			synchronized (checkpointLock)
+			{
+				elapsed = System.currentTimeMillis() - lastCheckpointTime;
+			}
+			// a checkpoint writes a few records of its own, so a log that only grew by
+			// less than a kilobyte means nothing was written since
+			due = written >= configuration.getCheckpointBytes() ||
+				configuration.getCheckpointLogFiles() > 0 && files >= configuration.getCheckpointLogFiles() ||
+				configuration.getCheckpointInterval() > 0 &&
+				elapsed >= configuration.getCheckpointInterval() && written > 1024;
+		}
+		if (due)
+			checkpoint();
+		return due;
+	}
+
+	/**
+	 * <p>Return the number of checkpoints taken since the storage was started.</p>
+	 */
+	public long getCheckpointCount()
+	{
+		synchronized (checkpointLock)
+		{
+			return checkpointCount;
+		}
+	}
+
+	/**
+	 * <p>Return how long the most recent checkpoint took, in milliseconds.</p>
+	 */
+	public long getLastCheckpointDuration()
+	{
+		synchronized (checkpointLock)
+		{
+			return lastCheckpointDuration;
+		}
+	}
+
+	/**
+	 * <p>Return how long the longest checkpoint took, in milliseconds.</p>
+	 */
+	public long getMaxCheckpointDuration()
+	{
+		synchronized (checkpointLock)
+		{
+			return maxCheckpointDuration;
+		}
+	}
+
+	/**
+	 * <p>Return the total time spent in checkpoints, in milliseconds.</p>
+	 */
+	public long getTotalCheckpointDuration()
+	{
+		synchronized (checkpointLock)
+		{
+			return totalCheckpointDuration;
+		}
+	}
+
+	/**
+	 * <p>Return the number of bytes written to the log since the last checkpoint.</p>
+	 */
+	public long getBytesSinceCheckpoint()
+	{
+		EnvironmentStats stats = logStats();
+		if (stats.getLastCheckpointEnd() == DbLsn.NULL_LSN)
+			return DbLsn.getNoCleaningDistance(stats.getEndOfLog(), DbLsn.makeLsn(0, 0), logFileMax);
+		return DbLsn.getNoCleaningDistance(stats.getEndOfLog(), stats.getLastCheckpointEnd(), logFileMax);
+	}
+
+	/**
+	 * <p>
+	 * Return the number of log files waiting to be cleaned. A growing backlog means that
+	 * the cleaner threads can't keep up with the write load.
+	 * </p>
+	 */
+	public int getCleanerBacklog()
+	{
+		return logStats().getCleanerBacklog();
+	}
+
+	/**
+	 * <p>
+	 * Return the number of cleaned log files waiting for a checkpoint before they
+	 * can be deleted.
+	 * </p>
+	 */
+	public int getFileDeletionBacklog()
+	{
+		return logStats().getFileDeletionBacklog();
+	}
+
 	class CheckPointThread extends Thread
 	{
 		volatile boolean stop = false;
@@ -779,13 +1563,13 @@ public class BJEStorageImplementation implements HGStoreImplementation
 
 				while (!stop)
 				{
-					Thread.sleep(60000);
+					Thread.sleep(configuration.getCheckpointPollInterval());
 
 					if (!stop)
 					{
 						try
 						{
-							env.checkpoint(null);
+							maybeCheckpoint();
 						}
 						catch (DatabaseException ex)
 						{
@@ -796,17 +1580,7 @@ public class BJEStorageImplementation implements HGStoreImplementation
 			}
 			catch (InterruptedException ex)
 			{
-				if (stop)
-				{
-					try
-					{
-						env.checkpoint(null);
-					}
-					catch (DatabaseException dx)
-					{
-						throw new Error(dx);
-					}
-				}
+				// the final checkpoint is taken by shutdown
 			}
 			catch (Throwable t)
 			{
@@ -0,0 +1,282 @@
+/*
+ * This file is part of the HyperGraphDB source distribution. This is copyrighted software. For permitted
+ * uses, licensing options and redistribution, please see the LicensingInformation file at the root level of
+ * the distribution.
+ *
+ * Copyright (c) 2005-2010 Kobrix Software, Inc. All rights reserved.
+ */
+package org.hypergraphdb.storage.bje;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.hypergraphdb.HGException;
+import org.hypergraphdb.HGRandomAccessResult;
+import org.hypergraphdb.HGSearchResult;
+import org.hypergraphdb.query.impl.BatchedIndexQuery;
+import org.hypergraphdb.storage.ByteArrayConverter;
+import org.hypergraphdb.storage.HGIndexStats;
+import org.hypergraphdb.transaction.HGTransactionManager;
+
+import com.sleepycat.je.Cursor;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
+import com.sleepycat.je.Transaction;
+
+/**
+ * <p>
+ * An index whose values for a given key are stored as compressed blocks with {@link BlockPostings}
+ * rather than one duplicate per value. It is meant for indices with few keys and very many, fixed width,
+ * values per key, such as the index of atoms by type. Ordered lookups by key (<code>findLT</code>,
+ * <code>findGT</code> etc.) collect the matching keys first, which is cheap since there are few of
+ * them, and then return the values of each key in turn.
+ * </p>
+ *
+ * @author Borislav Iordanov
+ */
+public class BlockIndexImpl<KeyType, ValueType> extends DefaultIndexImpl<KeyType, ValueType>
+{
+	/**
+	 * Prefix of the DB filenames of block-compressed indices.
+	 */
+	public static final String DB_NAME_PREFIX = "hgstore_blkidx_";
+
+	private BlockPostings postings;
+
+	public BlockIndexImpl(String indexName,
+						  BJEStorageImplementation storage,
+						  HGTransactionManager transactionManager,
+						  ByteArrayConverter<KeyType> keyConverter,
+						  ByteArrayConverter<ValueType> valueConverter)
+	{
+		super(indexName, storage, transactionManager, keyConverter, valueConverter, null, null);
+	}
+
+	public String getDatabaseName()
+	{
+		return DB_NAME_PREFIX + name;
+	}
+
+	public void open()
+	{
+		super.open();
+		postings = new BlockPostings(db, cursorConfig);
+	}
+
+	public void addEntry(KeyType key, ValueType value)
+	{
+		checkOpen();
+		TransactionBJEImpl tx = txn();
+		Transaction writeTx = null;
+		byte[] keyBytes = keyConverter.toByteArray(key);
+		try
+		{
+			writeTx = beginWrite(tx);
+			boolean newKey = postings.first(writeTx, keyBytes) == null;
+			boolean added = postings.add(writeTx, keyBytes, valueConverter.toByteArray(value));
+			endWrite(tx, writeTx);
+			writeTx = null;
+			if (added)
+				countChanged(tx, newKey ? 1 : 0, 1);
+		}
+		catch (Exception ex)
+		{
+			throw new HGException("Failed to add entry to index '" + name + "': " + ex.toString(), ex);
+		}
+		finally
+		{
+			abortWrite(tx, writeTx);
+		}
+	}
+
+	public void addEntries(KeyType key, Collection<ValueType> values)
+	{
+		checkOpen();
+		byte[][] B = new byte[values.size()][];
+		int i = 0;
+		for (ValueType value : values)
+			B[i++] = valueConverter.toByteArray(value);
+		TransactionBJEImpl tx = txn();
+		Transaction writeTx = null;
+		byte[] keyBytes = keyConverter.toByteArray(key);
+		try
+		{
+			writeTx = beginWrite(tx);
+			boolean newKey = postings.first(writeTx, keyBytes) == null;
+			long added = postings.addAll(writeTx, keyBytes, B);
+			endWrite(tx, writeTx);
+			writeTx = null;
+			countChanged(tx, newKey && added > 0 ? 1 : 0, added);
+		}
+		catch (Exception ex)
+		{
+			throw new HGException("Failed to add entries to index '" + name + "': " + ex.toString(), ex);
+		}
+		finally
+		{
+			abortWrite(tx, writeTx);
+		}
+	}
+
+	public void removeEntry(KeyType key, ValueType value)
+	{
+		checkOpen();
+		TransactionBJEImpl tx = txn();
+		Transaction writeTx = null;
+		byte[] keyBytes = keyConverter.toByteArray(key);
+		try
+		{
+			writeTx = beginWrite(tx);
+			boolean removed = postings.remove(writeTx, keyBytes, valueConverter.toByteArray(value));
+			boolean lastValue = removed && postings.first(writeTx, keyBytes) == null;
+			endWrite(tx, writeTx);
+			writeTx = null;
+			if (removed)
+				countChanged(tx, lastValue ? -1 : 0, -1);
+		}
+		catch (Exception ex)
+		{
+			throw new HGException("Failed to remove entry from index '" + name + "': " + ex.toString(), ex);
+		}
+		finally
+		{
+			abortWrite(tx, writeTx);
+		}
+	}
+
+	protected long countValues(Cursor cursor, DatabaseEntry key)
+	{
+		return BlockPostings.count(cursor, BlockPostings.bytes(key));
+	}
+
+	public ValueType getData(KeyType key)
+	{
+		return findFirst(key);
+	}
+
+	public ValueType findFirst(KeyType key)
+	{
+		checkOpen();
+		byte[] value = postings.first(txn().getBJETransaction(), keyConverter.toByteArray(key));
+		return value == null ? null : valueConverter.fromByteArray(value, 0, value.length);
+	}
+
+	public ValueType findLast(KeyType key)
+	{
+		checkOpen();
+		byte[] value = postings.last(txn().getBJETransaction(), keyConverter.toByteArray(key));
+		return value == null ? null : valueConverter.fromByteArray(value, 0, value.length);
+	}
+
+	public HGRandomAccessResult<ValueType> find(KeyType key)
+	{
+		checkOpen();
+		return postings.find(txn(), keyConverter.toByteArray(key), valueConverter);
+	}
+
+	/**
+	 * Each key's values are read from its own blocks rather than from the duplicates of
+	 * the key that {@link DefaultIndexImpl#findBatch(List)} visits, so the keys are looked
+	 * up in turn as by default.
+	 */
+	public HGSearchResult<ValueType> findBatch(List<KeyType> keys)
+	{
+		return BatchedIndexQuery.findEach(this, keys);
+	}
+
+	public HGRandomAccessResult<ValueType> scanValues()
+	{
+		checkOpen();
+		return postings.scan(txn(), valueConverter);
+	}
+
+	// The keys matching an ordered lookup, in the order in which DefaultIndexImpl visits them:
+	// ascending from the key for a lower bound, descending from it for an upper bound.
+	private List<KeyType> findKeys(KeyType key, boolean lower_range, boolean compare_equals)
+	{
+		checkOpen();
+		byte[] keyAsBytes = keyConverter.toByteArray(key);
+		DatabaseEntry keyEntry = new DatabaseEntry(keyAsBytes);
+		DatabaseEntry data = new DatabaseEntry();
+		List<KeyType> keys = new ArrayList<KeyType>();
+		Cursor cursor = null;
+		try
+		{
+			cursor = db.openCursor(txn().getBJETransaction(), cursorConfig);
+			OperationStatus status = cursor.getSearchKeyRange(keyEntry, data, LockMode.DEFAULT);
+			if (!lower_range)
+			{
+				if (status == OperationStatus.SUCCESS && !compare_equals
+						&& getKeyComparator().compare(keyAsBytes, BlockPostings.bytes(keyEntry)) == 0)
+					status = cursor.getNextNoDup(keyEntry, data, LockMode.DEFAULT);
+				for (; status == OperationStatus.SUCCESS; status = cursor.getNextNoDup(keyEntry, data, LockMode.DEFAULT))
+					keys.add(keyConverter.fromByteArray(keyEntry.getData(), keyEntry.getOffset(), keyEntry.getSize()));
+			}
+			else
+			{
+				if (status != OperationStatus.SUCCESS)
+					status = cursor.getLast(keyEntry, data, LockMode.DEFAULT);
+				else if (!compare_equals || getKeyComparator().compare(keyAsBytes, BlockPostings.bytes(keyEntry)) != 0)
+					status = cursor.getPrevNoDup(keyEntry, data, LockMode.DEFAULT);
+				for (; status == OperationStatus.SUCCESS; status = cursor.getPrevNoDup(keyEntry, data, LockMode.DEFAULT))
+					keys.add(keyConverter.fromByteArray(keyEntry.getData(), keyEntry.getOffset(), keyEntry.getSize()));
+			}
+			return keys;
+		}
+		catch (Exception ex)
+		{
+			throw new HGException("Failed to lookup index '" + name + "': " + ex.toString(), ex);
+		}
+		finally
+		{
+			if (cursor != null)
+				try { cursor.close(); } catch (Throwable t) { }
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private HGSearchResult<ValueType> findOrdered(KeyType key, boolean lower_range, boolean compare_equals)
+	{
+		List<KeyType> keys = findKeys(key, lower_range, compare_equals);
+		if (keys.isEmpty())
+			return (HGSearchResult<ValueType>) HGSearchResult.EMPTY;
+		return BatchedIndexQuery.findEach(this, keys);
+	}
+
+	public HGSearchResult<ValueType> findGT(KeyType key)
+	{
+		return findOrdered(key, false, false);
+	}
+
+	public HGSearchResult<ValueType> findGTE(KeyType key)
+	{
+		return findOrdered(key, false, true);
+	}
+
+	public HGSearchResult<ValueType> findLT(KeyType key)
+	{
+		return findOrdered(key, true, false);
+	}
+
+	public HGSearchResult<ValueType> findLTE(KeyType key)
+	{
+		return findOrdered(key, true, true);
+	}
+
+	public HGIndexStats<KeyType, ValueType> stats()
+	{
+		return new BJEIndexStats<KeyType, ValueType>(this)
+		{
+			public Count valuesOfKey(KeyType key, long cost, boolean isEstimateOk)
+			{
+				checkOpen();
+				if (cost == 0)
+					return null;
+				final byte[] keyBytes = keyConverter.toByteArray(key);
+				return new Count(() -> postings.count(txn().getBJETransaction(), keyBytes), false);
+			}
+		};
+	}
+}
@@ -0,0 +1,437 @@
+/*
+ * This file is part of the HyperGraphDB source distribution. This is copyrighted software. For permitted
+ * uses, licensing options and redistribution, please see the LicensingInformation file at the root level of
+ * the distribution.
+ *
+ * Copyright (c) 2005-2010 Kobrix Software, Inc. All rights reserved.
+ */
+package org.hypergraphdb.storage.bje;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.hypergraphdb.HGException;
+import org.hypergraphdb.HGRandomAccessResult;
+import org.hypergraphdb.HGSearchResult;
+import org.hypergraphdb.storage.ByteArrayConverter;
+import org.hypergraphdb.storage.PostingBlock;
+
+import com.sleepycat.je.Cursor;
+import com.sleepycat.je.CursorConfig;
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
+import com.sleepycat.je.Transaction;
+
+/**
+ * <p>
+ * Maintains sets of fixed width values under the keys of a BerkeleyDB database with sorted
+ * duplicates, where each duplicate is a {@link PostingBlock} of up to
+ * {@link PostingBlock#MAX_VALUES} values instead of a single value. Because a block starts
+ * with its first value, the duplicates of a key are ordered by value and the block that
+ * may contain a value is found with a single <code>getSearchBothRange</code>. The database
+ * must use the default, lexicographic, key and duplicate ordering.
+ * </p>
+ *
+ * <p>
+ * Adding or removing a value rewrites the block containing it. Modifications are done through
+ * a cursor so, in a transactional environment, they must happen within a transaction.
+ * </p>
+ *
+ * @author Borislav Iordanov
+ */
+public class BlockPostings
+{
+	private static final Comparator<byte[]> unsignedOrder = new Comparator<byte[]>()
+	{
+		public int compare(byte[] left, byte[] right)
+		{
+			return PostingBlock.compare(left, right);
+		}
+	};
+
+	private final Database db;
+	private final CursorConfig cursorConfig;
+
+	public BlockPostings(Database db, CursorConfig cursorConfig)
+	{
+		this.db = db;
+		this.cursorConfig = cursorConfig;
+	}
+
+	public Database getDatabase()
+	{
+		return db;
+	}
+
+	static byte[] bytes(DatabaseEntry entry)
+	{
+		if (entry.getOffset() == 0 && entry.getSize() == entry.getData().length)
+			return entry.getData();
+		else
+			return Arrays.copyOfRange(entry.getData(), entry.getOffset(), entry.getOffset() + entry.getSize());
+	}
+
+	/**
+	 * <p>
+	 * Position the cursor on the block of the given key that should contain the given value: the
+	 * last block whose first value is not greater than the value or the first block if there is
+	 * no such block.
+	 * </p>
+	 *
+	 * @return <code>false</code> if there is no block for that key.
+	 */
+	static boolean locate(Cursor cursor, byte[] key, byte[] value, DatabaseEntry data)
+	{
+		DatabaseEntry keyEntry = new DatabaseEntry(key);
+		data.setData(value);
+		if (cursor.getSearchBothRange(keyEntry, data, LockMode.DEFAULT) == OperationStatus.SUCCESS)
+		{
+			if (PostingBlock.compare(data.getData(), data.getOffset(), value.length, value, 0, value.length) == 0)
+				return true;
+			if (cursor.getPrevDup(keyEntry, data, LockMode.DEFAULT) == OperationStatus.SUCCESS)
+				return true;
+			return cursor.getSearchKey(keyEntry, data, LockMode.DEFAULT) == OperationStatus.SUCCESS;
+		}
+		else
+			return locateLast(cursor, key, data); // all blocks start before the value
+	}
+
+	/**
+	 * <p>Position the cursor on the last block of the given key.</p>
+	 */
+	static boolean locateLast(Cursor cursor, byte[] key, DatabaseEntry data)
+	{
+		// The smallest key greater than 'key' in lexicographic order.
+		DatabaseEntry probe = new DatabaseEntry(Arrays.copyOf(key, key.length + 1));
+		OperationStatus status = cursor.getSearchKeyRange(probe, data, LockMode.DEFAULT);
+		if (status == OperationStatus.SUCCESS)
+			status = cursor.getPrev(probe, data, LockMode.DEFAULT);
+		else
+			status = cursor.getLast(probe, data, LockMode.DEFAULT);
+		return status == OperationStatus.SUCCESS && Arrays.equals(key, bytes(probe));
+	}
+
+	private void put(Cursor cursor, byte[] key, byte[][] values, int size) throws Exception
+	{
+		DatabaseEntry keyEntry = new DatabaseEntry(key);
+		for (int from = 0; from < size;)
+		{
+			// split evenly in blocks of at most MAX_VALUES values
+			int blocks = (size - from + PostingBlock.MAX_VALUES - 1) / PostingBlock.MAX_VALUES;
+			int to = from + (size - from + blocks - 1) / blocks;
+			OperationStatus result = cursor.put(keyEntry, new DatabaseEntry(PostingBlock.encode(values, from, to)));
+			if (result != OperationStatus.SUCCESS)
+				throw new Exception("OperationStatus: " + result);
+			from = to;
+		}
+	}
+
+	private static void close(Cursor cursor)
+	{
+		if (cursor != null)
+			try
+			{
+				cursor.close();
+			}
+			catch (Throwable t)
+			{
+			}
+	}
+
+	/**
+	 * <p>Add a value to the set of a key.</p>
+	 *
+	 * @return <code>false</code> if the value was already there.
+	 */
+	public boolean add(Transaction tx, byte[] key, byte[] value)
+	{
+		Cursor cursor = null;
+		try
+		{
+			cursor = db.openCursor(tx, cursorConfig);
+			DatabaseEntry data = new DatabaseEntry();
+			if (!locate(cursor, key, value, data))
+			{
+				put(cursor, key, new byte[][] { value }, 1);
+				return true;
+			}
+			byte[][] values = PostingBlock.decode(data.getData(), data.getOffset(), data.getSize());
+			int pos = PostingBlock.search(values, values.length, value);
+			if (pos >= 0)
+				return false;
+			pos = -pos - 1;
+			byte[][] updated = new byte[values.length + 1][];
+			System.arraycopy(values, 0, updated, 0, pos);
+			updated[pos] = value;
+			System.arraycopy(values, pos, updated, pos + 1, values.length - pos);
+			cursor.delete();
+			put(cursor, key, updated, updated.length);
+			return true;
+		}
+		catch (RuntimeException ex)
+		{
+			throw ex;
+		}
+		catch (Exception ex)
+		{
+			throw new HGException(ex);
+		}
+		finally
+		{
+			close(cursor);
+		}
+	}
+
+	/**
+	 * <p>Add several values to the set of a key. Each affected block is rewritten only once.</p>
+	 *
+	 * @return The number of values that were not already there.
+	 */
+	public long addAll(Transaction tx, byte[] key, byte[][] values)
+	{
+		byte[][] sorted = values.clone();
+		Arrays.sort(sorted, unsignedOrder);
+		int size = 0;
+		for (int i = 0; i < sorted.length; i++)
+			if (size == 0 || PostingBlock.compare(sorted[size - 1], sorted[i]) != 0)
+				sorted[size++] = sorted[i];
+		Cursor cursor = null;
+		try
+		{
+			cursor = db.openCursor(tx, cursorConfig);
+			DatabaseEntry keyEntry = new DatabaseEntry(key);
+			DatabaseEntry data = new DatabaseEntry();
+			if (cursor.getSearchKey(keyEntry, data, LockMode.DEFAULT) != OperationStatus.SUCCESS)
+			{
+				// a new set, write it block by block
+				put(cursor, key, sorted, size);
+				return size;
+			}
+			long added = 0;
+			for (int i = 0; i < size;)
+			{
+				locate(cursor, key, sorted[i], data);
+				byte[][] block = PostingBlock.decode(data.getData(), data.getOffset(), data.getSize());
+				byte[] nextFirst = null;
+				if (cursor.getNextDup(keyEntry, data, LockMode.DEFAULT) == OperationStatus.SUCCESS)
+				{
+					nextFirst = PostingBlock.first(data.getData(), data.getOffset(), data.getSize());
+					cursor.getPrevDup(keyEntry, data, LockMode.DEFAULT);
+				}
+				// merge all new values that fall before the next block
+				byte[][] merged = new byte[block.length + size - i][];
+				int m = 0, b = 0;
+				while (i < size && (nextFirst == null || PostingBlock.compare(sorted[i], nextFirst) < 0))
+				{
+					while (b < block.length && PostingBlock.compare(block[b], sorted[i]) < 0)
+						merged[m++] = block[b++];
+					if (b == block.length || PostingBlock.compare(block[b], sorted[i]) != 0)
+						merged[m++] = sorted[i];
+					i++;
+				}
+				while (b < block.length)
+					merged[m++] = block[b++];
+				if (m > block.length)
+				{
+					cursor.delete();
+					put(cursor, key, merged, m);
+					added += m - block.length;
+				}
+			}
+			return added;
+		}
+		catch (RuntimeException ex)
+		{
+			throw ex;
+		}
+		catch (Exception ex)
+		{
+			throw new HGException(ex);
+		}
+		finally
+		{
+			close(cursor);
+		}
+	}
+
+	/**
+	 * <p>Remove a value from the set of a key.</p>
+	 *
+	 * @return <code>false</code> if the value wasn't there.
+	 */
+	public boolean remove(Transaction tx, byte[] key, byte[] value)
+	{
+		Cursor cursor = null;
+		try
+		{
+			cursor = db.openCursor(tx, cursorConfig);
+			DatabaseEntry data = new DatabaseEntry();
+			if (!locate(cursor, key, value, data))
+				return false;
+			byte[][] values = PostingBlock.decode(data.getData(), data.getOffset(), data.getSize());
+			int pos = PostingBlock.search(values, values.length, value);
+			if (pos < 0)
+				return false;
+			cursor.delete();
+			if (values.length > 1)
+			{
+				System.arraycopy(values, pos + 1, values, pos, values.length - pos - 1);
+				put(cursor, key, values, values.length - 1);
+			}
+			return true;
+		}
+		catch (RuntimeException ex)
+		{
+			throw ex;
+		}
+		catch (Exception ex)
+		{
+			throw new HGException(ex);
+		}
+		finally
+		{
+			close(cursor);
+		}
+	}
+
+	/**
+	 * <p>Return the number of values of a key, reading only the block headers.</p>
+	 */
+	public long count(Transaction tx, byte[] key)
+	{
+		Cursor cursor = null;
+		try
+		{
+			cursor = db.openCursor(tx, cursorConfig);
+			return count(cursor, key);
+		}
+		finally
+		{
+			close(cursor);
+		}
+	}
+
+	static long count(Cursor cursor, byte[] key)
+	{
+		DatabaseEntry keyEntry = new DatabaseEntry(key);
+		DatabaseEntry data = new DatabaseEntry();
+		long result = 0;
+		OperationStatus status = cursor.getSearchKey(keyEntry, data, LockMode.DEFAULT);
+		while (status == OperationStatus.SUCCESS)
+		{
+			result += PostingBlock.count(data.getData(), data.getOffset(), data.getSize());
+			status = cursor.getNextDup(keyEntry, data, LockMode.DEFAULT);
+		}
+		return result;
+	}
+
+	/**
+	 * <p>Return the number of values of all keys, reading only the block headers.</p>
+	 */
+	static long countAll(Cursor cursor)
+	{
+		DatabaseEntry keyEntry = new DatabaseEntry();
+		DatabaseEntry data = new DatabaseEntry();
+		long result = 0;
+		OperationStatus status = cursor.getFirst(keyEntry, data, LockMode.DEFAULT);
+		while (status == OperationStatus.SUCCESS)
+		{
+			result += PostingBlock.count(data.getData(), data.getOffset(), data.getSize());
+			status = cursor.getNext(keyEntry, data, LockMode.DEFAULT);
+		}
+		return result;
+	}
+
+	/**
+	 * <p>Return the smallest value of a key or <code>null</code> if it has none.</p>
+	 */
+	public byte[] first(Transaction tx, byte[] key)
+	{
+		Cursor cursor = null;
+		try
+		{
+			cursor = db.openCursor(tx, cursorConfig);
+			DatabaseEntry data = new DatabaseEntry();
+			if (cursor.getSearchKey(new DatabaseEntry(key), data, LockMode.DEFAULT) != OperationStatus.SUCCESS)
+				return null;
+			return PostingBlock.first(data.getData(), data.getOffset(), data.getSize());
+		}
+		finally
+		{
+			close(cursor);
+		}
+	}
+
+	/**
+	 * <p>Return the greatest value of a key or <code>null</code> if it has none.</p>
+	 */
+	public byte[] last(Transaction tx, byte[] key)
+	{
+		Cursor cursor = null;
+		try
+		{
+			cursor = db.openCursor(tx, cursorConfig);
+			DatabaseEntry data = new DatabaseEntry();
+			if (!locateLast(cursor, key, data))
+				return null;
+			byte[][] values = PostingBlock.decode(data.getData(), data.getOffset(), data.getSize());
+			return values[values.length - 1];
+		}
+		finally
+		{
+			close(cursor);
+		}
+	}
+
+	/**
+	 * <p>Return the values of a key in order.</p>
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> HGRandomAccessResult<T> find(TransactionBJEImpl tx, byte[] key, ByteArrayConverter<T> converter)
+	{
+		Cursor cursor = null;
+		try
+		{
+			cursor = db.openCursor(tx.getBJETransaction(), cursorConfig);
+			DatabaseEntry data = new DatabaseEntry();
+			if (cursor.getSearchKey(new DatabaseEntry(key), data, LockMode.DEFAULT) != OperationStatus.SUCCESS)
+			{
+				close(cursor);
+				return (HGRandomAccessResult<T>) HGSearchResult.EMPTY;
+			}
+			return new BlockResultSet<T>(tx.attachCursor(cursor), key, data, converter);
+		}
+		catch (Throwable t)
+		{
+			close(cursor);
+			throw new HGException(t);
+		}
+	}
+
+	/**
+	 * <p>Return the values of all keys, ordered by key and then by value.</p>
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> HGRandomAccessResult<T> scan(TransactionBJEImpl tx, ByteArrayConverter<T> converter)
+	{
+		Cursor cursor = null;
+		try
+		{
+			cursor = db.openCursor(tx.getBJETransaction(), cursorConfig);
+			DatabaseEntry data = new DatabaseEntry();
+			if (cursor.getFirst(new DatabaseEntry(), data, LockMode.DEFAULT) != OperationStatus.SUCCESS)
+			{
+				close(cursor);
+				return (HGRandomAccessResult<T>) HGSearchResult.EMPTY;
+			}
+			return new BlockResultSet<T>(tx.attachCursor(cursor), null, data, converter);
+		}
+		catch (Throwable t)
+		{
+			close(cursor);
+			throw new HGException(t);
+		}
+	}
+}
@@ -0,0 +1,333 @@
+/*
+ * This file is part of the HyperGraphDB source distribution. This is copyrighted software. For permitted
+ * uses, licensing options and redistribution, please see the LicensingInformation file at the root level of
+ * the distribution.
+ *
+ * Copyright (c) 2005-2010 Kobrix Software, Inc. All rights reserved.
+ */
+package org.hypergraphdb.storage.bje;
+
+import java.util.NoSuchElementException;
+
+import org.hypergraphdb.HGException;
+import org.hypergraphdb.HGRandomAccessResult;
+import org.hypergraphdb.storage.ByteArrayConverter;
+import org.hypergraphdb.storage.PostingBlock;
+import org.hypergraphdb.util.CountMe;
+
+import com.sleepycat.je.Cursor;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
+
+/**
+ * <p>
+ * A result set over the values stored by {@link BlockPostings}. The cursor moves from
+ * block to block, values within a block are served from the decoded block. A
+ * <code>goTo</code> positions the cursor directly on the block that may contain the
+ * value, skipping all blocks before it.
+ * </p>
+ *
+ * <p>
+ * When constructed without a key, the result set iterates over the values of all keys,
+ * ordered by key and then by value. As a whole it is not ordered, so <code>goTo</code>
+ * only finds exact matches, by looking up the value among the blocks of each key in turn.
+ * </p>
+ *
+ * @author Borislav Iordanov
+ */
+public class BlockResultSet<T> implements HGRandomAccessResult<T>, CountMe
+{
+	private BJETxCursor cursor;
+	private final byte[] key;
+	private final ByteArrayConverter<T> converter;
+	private DatabaseEntry keyEntry = new DatabaseEntry();
+	private DatabaseEntry data = new DatabaseEntry();
+	private byte[] blockBytes;
+	private byte[][] block;
+	private int pos;
+
+	/**
+	 * @param cursor The cursor, positioned on the first block.
+	 * @param key The key whose values are iterated or <code>null</code> to iterate all values.
+	 * @param data The first block.
+	 * @param converter Converts values to the type of the result set.
+	 */
+	public BlockResultSet(BJETxCursor cursor, byte[] key, DatabaseEntry data, ByteArrayConverter<T> converter)
+	{
+		this.cursor = cursor;
+		this.key = key;
+		this.converter = converter;
+		if (key != null)
+			keyEntry.setData(key);
+		load(data);
+		pos = -1;
+	}
+
+	private Cursor cursor()
+	{
+		if (cursor == null || !cursor.isOpen())
+			throw new HGException("BlockResultSet: attempt to perform an operation on a closed or invalid cursor.");
+		return cursor.cursor();
+	}
+
+	private void load(DatabaseEntry entry)
+	{
+		blockBytes = BlockPostings.bytes(entry);
+		block = PostingBlock.decode(blockBytes, 0, blockBytes.length);
+	}
+
+	private boolean forward()
+	{
+		if (key != null)
+			return cursor().getNextDup(keyEntry, data, LockMode.DEFAULT) == OperationStatus.SUCCESS;
+		else
+			return cursor().getNext(keyEntry, data, LockMode.DEFAULT) == OperationStatus.SUCCESS;
+	}
+
+	private boolean backward()
+	{
+		if (key != null)
+			return cursor().getPrevDup(keyEntry, data, LockMode.DEFAULT) == OperationStatus.SUCCESS;
+		else
+			return cursor().getPrev(keyEntry, data, LockMode.DEFAULT) == OperationStatus.SUCCESS;
+	}
+
+	// The key of the current block.
+	private byte[] currentKey()
+	{
+		if (key != null)
+			return key;
+		DatabaseEntry k = new DatabaseEntry();
+		if (cursor().getCurrent(k, new DatabaseEntry(), LockMode.DEFAULT) != OperationStatus.SUCCESS)
+			throw new HGException("BlockResultSet: the current block was modified.");
+		return BlockPostings.bytes(k).clone();
+	}
+
+	// Go back to the current block after a failed goTo.
+	private void restore(byte[] savedKey, byte[] savedBlock, int savedPos)
+	{
+		DatabaseEntry savedKeyEntry = new DatabaseEntry(savedKey);
+		DatabaseEntry savedData = new DatabaseEntry(savedBlock);
+		if (cursor().getSearchBoth(savedKeyEntry, savedData, LockMode.DEFAULT) != OperationStatus.SUCCESS)
+			throw new HGException("BlockResultSet: the current block was modified.");
+		blockBytes = savedBlock;
+		pos = savedPos;
+	}
+
+	// Find a value among the blocks of each key, starting with the first key.
+	private boolean scanTo(byte[] value)
+	{
+		Cursor cursor = cursor();
+		DatabaseEntry k = new DatabaseEntry();
+		OperationStatus status = cursor.getFirst(k, data, LockMode.DEFAULT);
+		while (status == OperationStatus.SUCCESS)
+		{
+			byte[] candidate = BlockPostings.bytes(k).clone();
+			if (BlockPostings.locate(cursor, candidate, value, data))
+			{
+				load(data);
+				int i = PostingBlock.search(block, block.length, value);
+				if (i >= 0)
+				{
+					pos = i;
+					return true;
+				}
+			}
+			status = cursor.getNextNoDup(k, data, LockMode.DEFAULT);
+		}
+		return false;
+	}
+
+	public boolean hasNext()
+	{
+		if (pos + 1 < block.length)
+			return true;
+		try
+		{
+			if (!forward())
+				return false;
+			backward();
+			return true;
+		}
+		catch (RuntimeException ex)
+		{
+			throw new HGException(ex);
+		}
+	}
+
+	public T next()
+	{
+		if (pos + 1 < block.length)
+			pos++;
+		else if (forward())
+		{
+			load(data);
+			pos = 0;
+		}
+		else
+			throw new NoSuchElementException();
+		return current();
+	}
+
+	public boolean hasPrev()
+	{
+		if (pos > 0)
+			return true;
+		try
+		{
+			if (!backward())
+				return false;
+			forward();
+			return true;
+		}
+		catch (RuntimeException ex)
+		{
+			throw new HGException(ex);
+		}
+	}
+
+	public T prev()
+	{
+		if (pos > 0)
+			pos--;
+		else if (backward())
+		{
+			load(data);
+			pos = block.length - 1;
+		}
+		else
+			throw new NoSuchElementException();
+		return current();
+	}
+
+	public T current()
+	{
+		if (pos < 0 || pos >= block.length)
+			throw new NoSuchElementException();
+		byte[] value = block[pos];
+		return converter.fromByteArray(value, 0, value.length);
+	}
+
+	public GotoResult goTo(T value, boolean exactMatch)
+	{
+		byte[] B = converter.toByteArray(value);
+		byte[] savedKey = currentKey();
+		byte[] savedBlock = blockBytes;
+		int savedPos = pos;
+		byte[][] savedValues = block;
+		try
+		{
+			if (key == null)
+			{
+				if (scanTo(B))
+					return GotoResult.found;
+				block = savedValues;
+				restore(savedKey, savedBlock, savedPos);
+				return GotoResult.nothing;
+			}
+			if (!BlockPostings.locate(cursor(), key, B, data))
+			{
+				block = savedValues;
+				restore(savedKey, savedBlock, savedPos);
+				return GotoResult.nothing;
+			}
+			load(data);
+			int i = PostingBlock.search(block, block.length, B);
+			if (i >= 0)
+			{
+				pos = i;
+				return GotoResult.found;
+			}
+			else if (!exactMatch)
+			{
+				i = -i - 1;
+				if (i < block.length)
+				{
+					pos = i;
+					return GotoResult.close;
+				}
+				else if (forward())
+				{
+					load(data);
+					pos = 0;
+					return GotoResult.close;
+				}
+			}
+			block = savedValues;
+			restore(savedKey, savedBlock, savedPos);
+			return GotoResult.nothing;
+		}
+		catch (HGException ex)
+		{
+			throw ex;
+		}
+		catch (RuntimeException ex)
+		{
+			throw new HGException(ex);
+		}
+	}
+
+	public void goBeforeFirst()
+	{
+		OperationStatus status = key != null
+			? cursor().getSearchKey(keyEntry, data, LockMode.DEFAULT)
+			: cursor().getFirst(keyEntry, data, LockMode.DEFAULT);
+		if (status != OperationStatus.SUCCESS)
+			throw new HGException("BlockResultSet: the result set became empty.");
+		load(data);
+		pos = -1;
+	}
+
+	public void goAfterLast()
+	{
+		boolean found = key != null
+			? BlockPostings.locateLast(cursor(), key, data)
+			: cursor().getLast(keyEntry, data, LockMode.DEFAULT) == OperationStatus.SUCCESS;
+		if (!found)
+			throw new HGException("BlockResultSet: the result set became empty.");
+		load(data);
+		pos = block.length;
+	}
+
+	public int count()
+	{
+		Cursor counter = cursor().dup(false);
+		try
+		{
+			return (int)(key != null ? BlockPostings.count(counter, key) : BlockPostings.countAll(counter));
+		}
+		finally
+		{
+			counter.close();
+		}
+	}
+
+	public boolean isOrdered()
+	{
+		return key != null;
+	}
+
+	public void remove()
+	{
+		throw new UnsupportedOperationException("HG - BlockResultSet does not implement remove.");
+	}
+
+	public void close()
+	{
+		if (cursor == null)
+			return;
+		try
+		{
+			cursor.close();
+		}
+		catch (Throwable t)
+		{
+			throw new HGException("Exception while closing a BlockResultSet cursor: " + t.toString(), t);
+		}
+		finally
+		{
+			cursor = null;
+		}
+	}
+}
@@ -23,6 +23,7 @@ import com.sleepycat.je.OperationStatus;
 import com.sleepycat.je.SecondaryConfig;
 import com.sleepycat.je.SecondaryCursor;
 import com.sleepycat.je.SecondaryDatabase;
+import com.sleepycat.je.Transaction;
 
 @SuppressWarnings("unchecked")
 public class DefaultBiIndexImpl<KeyType, ValueType> extends DefaultIndexImpl<KeyType, ValueType> implements
@@ -100,15 +101,30 @@ public class DefaultBiIndexImpl<KeyType, ValueType> extends DefaultIndexImpl<Key
 		checkOpen();
 		DatabaseEntry dbkey = new DatabaseEntry(keyConverter.toByteArray(key));
 		DatabaseEntry dbvalue = new DatabaseEntry(valueConverter.toByteArray(value));
+		DatabaseEntry existing = new DatabaseEntry();
+		existing.setPartial(0, 0, true);
+		TransactionBJEImpl tx = txn();
+		Transaction writeTx = null;
 		
 		try {
-			OperationStatus result = db.put(txn().getBJETransaction(), dbkey, dbvalue);
+			writeTx = beginWrite(tx);
+			// keys are unique, a put on an existing key replaces its value; RMW needs a transaction
+			LockMode lockMode = writeTx == null ? LockMode.DEFAULT : LockMode.RMW;
+			boolean newKey = db.get(writeTx, dbkey, existing, lockMode) != OperationStatus.SUCCESS;
+			OperationStatus result = db.put(writeTx, dbkey, dbvalue);
 			if (result != OperationStatus.SUCCESS && result != OperationStatus.KEYEXIST)
 				throw new Exception("OperationStatus: " + result);
+			endWrite(tx, writeTx);
+			writeTx = null;
+			if (newKey && result == OperationStatus.SUCCESS)
+				countChanged(tx, 1, 1);
 		}
 		catch (Exception ex) {
 			throw new HGException("Failed to add entry to index '" + name + "': " + ex.toString(), ex);
 		}
+		finally {
+			abortWrite(tx, writeTx);
+		}
 	}
 
 	public HGRandomAccessResult<KeyType> findByValue(ValueType value) {
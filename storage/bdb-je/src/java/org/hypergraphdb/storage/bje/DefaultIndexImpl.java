@@ -7,7 +7,11 @@
  */
 package org.hypergraphdb.storage.bje;
 
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Supplier;
 
 import org.hypergraphdb.HGException;
@@ -40,6 +44,17 @@ import com.sleepycat.je.Transaction;
  * instances.
  * </p>
  * 
+ * <p>
+ * The index keeps an exact count of its keys and entries, so that {@link #count()} and
+ * the total counts of its {@link #stats()} don't need to scan the B-tree. The write
+ * methods compute the change in the counts as they modify the database. Within a
+ * transaction, the changes are kept aside and only applied to the index-wide counts once
+ * the BerkeleyDB transaction commits; until then they are only visible to the transaction
+ * itself. The counts are saved when the index is closed and read back when it is opened.
+ * If they are missing, for example after a crash, the index counts its entries when it is
+ * opened.
+ * </p>
+ * 
  * @author Borislav Iordanov
  */
 @SuppressWarnings("unchecked")
@@ -61,6 +76,10 @@ public class DefaultIndexImpl<KeyType, ValueType> implements HGSortIndex<KeyType
 	protected boolean sort_duplicates = true;
 	protected ByteArrayConverter<KeyType> keyConverter;
 	protected ByteArrayConverter<ValueType> valueConverter;
+	// The committed counts and the changes made by the transactions in progress.
+	private long keyCount = 0, entryCount = 0;
+	private final Object countLock = new Object();
+	private final Map<TransactionBJEImpl, long[]> pendingCounts = new ConcurrentHashMap<TransactionBJEImpl, long[]>();
 
 	protected void checkOpen()
 	{
@@ -199,7 +218,15 @@ public class DefaultIndexImpl<KeyType, ValueType> implements HGSortIndex<KeyType
 				dbConfig.setDuplicateComparator((Comparator<byte[]>) keyComparator);
 			}
 			
-			db = storage.getBerkleyEnvironment().openDatabase(null, DB_NAME_PREFIX + name, dbConfig);
+			db = storage.getBerkleyEnvironment().openDatabase(null, getDatabaseName(), dbConfig);
+			long[] counts = storage.takeIndexCounts(getDatabaseName());
+			if (counts == null)
+				counts = countAll();
+			synchronized (countLock)
+			{
+				keyCount = counts[0];
+				entryCount = counts[1];
+			}
 		}
 		catch (Throwable t)
 		{
@@ -212,6 +239,17 @@ public class DefaultIndexImpl<KeyType, ValueType> implements HGSortIndex<KeyType
 		if (db == null || !owndb)
 			return;
 		try
+		{
+			synchronized (countLock)
+			{
+				storage.saveIndexCounts(getDatabaseName(), keyCount, entryCount);
+			}
+		}
+		catch (Throwable t)
+		{
+			t.printStackTrace();
+		}
+		try
 		{
 			db.close();
 		}
@@ -326,16 +364,44 @@ public class DefaultIndexImpl<KeyType, ValueType> implements HGSortIndex<KeyType
 		DatabaseEntry dbkey = new DatabaseEntry(keyConverter.toByteArray(key));
 		DatabaseEntry dbvalue = new DatabaseEntry(valueConverter.toByteArray(value));
 
+		TransactionBJEImpl tx = txn();
+		Transaction writeTx = null;
+		Cursor cursor = null;
+
 		try
 		{
-			OperationStatus result = db.putNoDupData(txn().getBJETransaction(), dbkey, dbvalue);
+			writeTx = beginWrite(tx);
+			cursor = db.openCursor(writeTx, cursorConfig);
+			OperationStatus result = cursor.putNoDupData(dbkey, dbvalue);
 			if (result != OperationStatus.SUCCESS && result != OperationStatus.KEYEXIST)
 				throw new Exception("OperationStatus: " + result);
+			boolean added = result == OperationStatus.SUCCESS;
+			boolean newKey = added && isSingleDuplicate(cursor);
+			cursor.close();
+			cursor = null;
+			endWrite(tx, writeTx);
+			writeTx = null;
+			if (added)
+				countChanged(tx, newKey ? 1 : 0, 1);
 		}
 		catch (Exception ex)
 		{
 			throw new HGException("Failed to add entry to index '" + name + "': " + ex.toString(), ex);
 		}
+		finally
+		{
+			if (cursor != null)
+			{
+				try
+				{
+					cursor.close();
+				}
+				catch (Throwable t)
+				{
+				}
+			}
+			abortWrite(tx, writeTx);
+		}
 	}
 
 	public void removeEntry(KeyType key, ValueType value)
@@ -343,13 +409,26 @@ public class DefaultIndexImpl<KeyType, ValueType> implements HGSortIndex<KeyType
 		checkOpen();
 		DatabaseEntry keyEntry = new DatabaseEntry(keyConverter.toByteArray(key));
 		DatabaseEntry valueEntry = new DatabaseEntry(valueConverter.toByteArray(value));
+		TransactionBJEImpl tx = txn();
+		Transaction writeTx = null;
 		Cursor cursor = null;
 
 		try
 		{
-			cursor = db.openCursor(txn().getBJETransaction(), cursorConfig);
+			writeTx = beginWrite(tx);
+			cursor = db.openCursor(writeTx, cursorConfig);
+			boolean removed = false, lastValue = false;
 			if (cursor.getSearchBoth(keyEntry, valueEntry, LockMode.DEFAULT) == OperationStatus.SUCCESS)
-				cursor.delete();
+			{
+				lastValue = isSingleDuplicate(cursor);
+				removed = cursor.delete() == OperationStatus.SUCCESS;
+			}
+			cursor.close();
+			cursor = null;
+			endWrite(tx, writeTx);
+			writeTx = null;
+			if (removed)
+				countChanged(tx, lastValue ? -1 : 0, -1);
 		}
 		catch (Exception ex)
 		{
@@ -367,6 +446,7 @@ public class DefaultIndexImpl<KeyType, ValueType> implements HGSortIndex<KeyType
 				{
 				}
 			}
+			abortWrite(tx, writeTx);
 		}
 	}
 
@@ -374,15 +454,234 @@ public class DefaultIndexImpl<KeyType, ValueType> implements HGSortIndex<KeyType
 	{
 		checkOpen();
 		DatabaseEntry dbkey = new DatabaseEntry(keyConverter.toByteArray(key));
+		DatabaseEntry data = new DatabaseEntry();
+		data.setPartial(0, 0, true);
+		TransactionBJEImpl tx = txn();
+		Transaction writeTx = null;
+		Cursor cursor = null;
 
 		try
 		{
-			db.delete(txn().getBJETransaction(), dbkey);
+			writeTx = beginWrite(tx);
+			cursor = db.openCursor(writeTx, cursorConfig);
+			long entries = 0;
+			if (cursor.getSearchKey(dbkey, data, LockMode.DEFAULT) == OperationStatus.SUCCESS)
+				entries = countValues(cursor, dbkey);
+			cursor.close();
+			cursor = null;
+			if (entries > 0)
+				db.delete(writeTx, dbkey);
+			endWrite(tx, writeTx);
+			writeTx = null;
+			if (entries > 0)
+				countChanged(tx, -1, -entries);
 		}
 		catch (Exception ex)
 		{
 			throw new HGException("Failed to delete entry from index '" + name + "': " + ex.toString(), ex);
 		}
+		finally
+		{
+			if (cursor != null)
+			{
+				try
+				{
+					cursor.close();
+				}
+				catch (Throwable t)
+				{
+				}
+			}
+			abortWrite(tx, writeTx);
+		}
+	}
+
+	/**
+	 * <p>
+	 * Return the BerkeleyDB transaction to write with. This is the transaction of <code>tx</code>,
+	 * unless the index is used outside of a HyperGraphDB transaction. A transactional database can't
+	 * be written through a cursor without a transaction, so a short one is started for the write.
+	 * It must be completed with <code>endWrite</code>, or <code>abortWrite</code> on failure.
+	 * </p>
+	 */
+	protected Transaction beginWrite(TransactionBJEImpl tx)
+	{
+		if (tx.getBJETransaction() != null || !db.getConfig().getTransactional())
+			return tx.getBJETransaction();
+		return storage.getBerkleyEnvironment().beginTransaction(null, null);
+	}
+
+	/**
+	 * <p>
+	 * Commit a transaction returned by <code>beginWrite</code> if it was started for the write.
+	 * </p>
+	 */
+	protected void endWrite(TransactionBJEImpl tx, Transaction writeTx)
+	{
+		if (writeTx != null && writeTx != tx.getBJETransaction())
+			writeTx.commit();
+	}
+
+	/**
+	 * <p>
+	 * Abort a transaction returned by <code>beginWrite</code> if it was started for the write.
+	 * </p>
+	 */
+	protected void abortWrite(TransactionBJEImpl tx, Transaction writeTx)
+	{
+		if (writeTx != null && writeTx != tx.getBJETransaction())
+		{
+			try
+			{
+				writeTx.abort();
+			}
+			catch (Throwable t)
+			{
+			}
+		}
+	}
+
+	/**
+	 * <p>
+	 * Return whether the record at the cursor position is the only one with its key.
+	 * </p>
+	 */
+	protected boolean isSingleDuplicate(Cursor cursor)
+	{
+		DatabaseEntry key = new DatabaseEntry();
+		DatabaseEntry data = new DatabaseEntry();
+		key.setPartial(0, 0, true);
+		data.setPartial(0, 0, true);
+		Cursor probe = cursor.dup(true);
+		try
+		{
+			if (probe.getNextDup(key, data, LockMode.DEFAULT) == OperationStatus.SUCCESS)
+				return false;
+		}
+		finally
+		{
+			probe.close();
+		}
+		probe = cursor.dup(true);
+		try
+		{
+			return probe.getPrevDup(key, data, LockMode.DEFAULT) != OperationStatus.SUCCESS;
+		}
+		finally
+		{
+			probe.close();
+		}
+	}
+
+	/**
+	 * <p>
+	 * Return the number of values of the key at the cursor position. The cursor may be moved.
+	 * </p>
+	 */
+	protected long countValues(Cursor cursor, DatabaseEntry key)
+	{
+		return cursor.count();
+	}
+
+	/**
+	 * <p>
+	 * Count the keys and the entries of the index by scanning it.
+	 * </p>
+	 */
+	protected long[] countAll()
+	{
+		DatabaseEntry key = new DatabaseEntry();
+		DatabaseEntry data = new DatabaseEntry();
+		data.setPartial(0, 0, true);
+		long[] counts = new long[2];
+		Cursor cursor = db.openCursor(null, cursorConfig);
+		try
+		{
+			while (cursor.getNextNoDup(key, data, LockMode.READ_UNCOMMITTED) == OperationStatus.SUCCESS)
+			{
+				counts[0]++;
+				Cursor counter = cursor.dup(true);
+				try
+				{
+					counts[1] += countValues(counter, key);
+				}
+				finally
+				{
+					counter.close();
+				}
+			}
+		}
+		finally
+		{
+			cursor.close();
+		}
+		return counts;
+	}
+
+	/**
+	 * <p>
+	 * Record a change in the number of keys and entries made by the current transaction.
+	 * </p>
+	 */
+	protected void countChanged(final TransactionBJEImpl tx, long keys, long entries)
+	{
+		if (keys == 0 && entries == 0)
+			return;
+		if (tx.getBJETransaction() == null)
+		{
+			synchronized (countLock)
+			{
+				keyCount += keys;
+				entryCount += entries;
+			}
+			return;
+		}
+		long[] delta = pendingCounts.get(tx);
+		if (delta == null)
+		{
+			final long[] txDelta = delta = new long[2];
+			pendingCounts.put(tx, txDelta);
+			tx.onCommit(() -> {
+				pendingCounts.remove(tx);
+				synchronized (countLock)
+				{
+					keyCount += txDelta[0];
+					entryCount += txDelta[1];
+				}
+			});
+			tx.onAbort(() -> pendingCounts.remove(tx));
+		}
+		delta[0] += keys;
+		delta[1] += entries;
+	}
+
+	/**
+	 * <p>
+	 * Return the exact number of keys in the index, as seen by the current transaction.
+	 * </p>
+	 */
+	public long countKeys()
+	{
+		long[] delta = pendingCounts.get(txn());
+		synchronized (countLock)
+		{
+			return keyCount + (delta == null ? 0 : delta[0]);
+		}
+	}
+
+	/**
+	 * <p>
+	 * Return the exact number of entries (key/value pairs) in the index, as seen by the
+	 * current transaction.
+	 * </p>
+	 */
+	public long countEntries()
+	{
+		long[] delta = pendingCounts.get(txn());
+		synchronized (countLock)
+		{
+			return entryCount + (delta == null ? 0 : delta[1]);
+		}
 	}
 
 	void ping(Transaction tx)
@@ -547,6 +846,54 @@ public class DefaultIndexImpl<KeyType, ValueType> implements HGSortIndex<KeyType
 		return result;
 	}
 
+	/**
+	 * <p>
+	 * Sort the keys in the order of the index and visit them with a single cursor, moving it
+	 * from one key to the next instead of opening a cursor for each key.
+	 * </p>
+	 */
+	public HGSearchResult<ValueType> findBatch(List<KeyType> keys)
+	{
+		checkOpen();
+		if (keys.isEmpty())
+			return (HGSearchResult<ValueType>) HGSearchResult.EMPTY;
+		byte[][] sorted = new byte[keys.size()][];
+		for (int i = 0; i < sorted.length; i++)
+			sorted[i] = keyConverter.toByteArray(keys.get(i));
+		Arrays.sort(sorted, getKeyComparator());
+		DatabaseEntry keyEntry = new DatabaseEntry();
+		DatabaseEntry value = new DatabaseEntry();
+		Cursor cursor = null;
+		try
+		{
+			TransactionBJEImpl tx = txn();
+			cursor = db.openCursor(tx.getBJETransaction(), cursorConfig);
+			for (int i = 0; i < sorted.length; i++)
+			{
+				keyEntry.setData(sorted[i]);
+				if (cursor.getSearchKey(keyEntry, value, LockMode.DEFAULT) == OperationStatus.SUCCESS)
+					return new SearchResultWrapper<ValueType>(
+							new MultiKeyResultSet<ValueType>(tx.attachCursor(cursor), sorted, i, valueConverter));
+			}
+			try { cursor.close(); } catch (Throwable t) { }
+			return (HGSearchResult<ValueType>) HGSearchResult.EMPTY;
+		}
+		catch (Throwable ex)
+		{
+			if (cursor != null)
+			{
+				try
+				{
+					cursor.close();
+				}
+				catch (Throwable t)
+				{
+				}
+			}
+			throw new HGException("Failed to lookup index '" + name + "': " + ex.toString(), ex);
+		}
+	}
+
 	/**
 	 * This is implementing the LT, LTE, GT, GTE methods.
 	 * 
@@ -669,8 +1016,7 @@ public class DefaultIndexImpl<KeyType, ValueType> implements HGSortIndex<KeyType
 
 	public long count()
 	{
-		//return stats().keys(Long.MAX_VALUE, false).value();
-		return stats().keys(Long.MAX_VALUE, false).value();
+		return countKeys();
 	}
 
 	public long count(KeyType key)
@@ -0,0 +1,112 @@
+/*
+ * This file is part of the HyperGraphDB source distribution. This is copyrighted software. For permitted
+ * uses, licensing options and redistribution, please see the LicensingInformation file at the root level of
+ * the distribution.
+ *
+ * Copyright (c) 2005-2010 Kobrix Software, Inc. All rights reserved.
+ */
+package org.hypergraphdb.storage.bje;
+
+import org.hypergraphdb.HGPersistentHandle;
+
+import com.sleepycat.je.DatabaseEntry;
+
+/**
+ * <p>
+ * Per-thread, reusable <code>DatabaseEntry</code> instances and buffers for the handle keys and
+ * values passed to a single BerkeleyDB call. BerkeleyDB copies the content of input entries, so
+ * an entry obtained from the pool can be reused as soon as the call it was passed to returns. It
+ * must never be handed to a result set or to any other object that outlives the call.
+ * </p>
+ *
+ * <p>
+ * Each thread has one key entry, one value entry and one probe entry - obtaining an entry of the
+ * same kind again invalidates the previous one.
+ * </p>
+ *
+ * @author Borislav Iordanov
+ */
+final class EntryPool
+{
+	private static final class Entries
+	{
+		final DatabaseEntry key = new DatabaseEntry();
+		final DatabaseEntry value = new DatabaseEntry();
+		final DatabaseEntry probe = new DatabaseEntry();
+		final byte[] keyBuffer;
+		final byte[] handleValueBuffer;
+		byte[] valueBuffer;
+
+		Entries(int handleSize)
+		{
+			keyBuffer = new byte[handleSize];
+			handleValueBuffer = new byte[handleSize];
+			valueBuffer = new byte[8 * handleSize];
+		}
+	}
+
+	private final LinkBinding linkBinding;
+	private final ThreadLocal<Entries> entries;
+
+	EntryPool(final LinkBinding linkBinding)
+	{
+		this.linkBinding = linkBinding;
+		this.entries = new ThreadLocal<Entries>()
+		{
+			protected Entries initialValue()
+			{
+				return new Entries(linkBinding.getHandleSize());
+			}
+		};
+	}
+
+	/**
+	 * <p>Return the key entry of the current thread, holding <code>handle</code>.</p>
+	 */
+	DatabaseEntry key(HGPersistentHandle handle)
+	{
+		Entries e = entries.get();
+		handle.writeTo(e.keyBuffer, 0);
+		e.key.setData(e.keyBuffer);
+		return e.key;
+	}
+
+	/**
+	 * <p>Return the value entry of the current thread, holding <code>handle</code>.</p>
+	 */
+	DatabaseEntry value(HGPersistentHandle handle)
+	{
+		Entries e = entries.get();
+		handle.writeTo(e.handleValueBuffer, 0);
+		e.value.setData(e.handleValueBuffer);
+		return e.value;
+	}
+
+	/**
+	 * <p>Return the value entry of the current thread, holding the layout of <code>link</code>.</p>
+	 */
+	DatabaseEntry value(HGPersistentHandle[] link)
+	{
+		Entries e = entries.get();
+		int size = link.length * linkBinding.getHandleSize();
+		if (e.valueBuffer.length < size)
+			e.valueBuffer = new byte[Math.max(size, 2 * e.valueBuffer.length)];
+		linkBinding.writeHandles(link, e.valueBuffer, 0);
+		e.value.setData(e.valueBuffer, 0, size);
+		return e.value;
+	}
+
+	/**
+	 * <p>
+	 * Return the probe entry of the current thread - a zero-length partial entry for
+	 * checking the existence of a record without reading it.
+	 * </p>
+	 */
+	DatabaseEntry probe()
+	{
+		DatabaseEntry probe = entries.get().probe;
+		probe.setData(null);
+		probe.setPartial(0, 0, true);
+		return probe;
+	}
+}
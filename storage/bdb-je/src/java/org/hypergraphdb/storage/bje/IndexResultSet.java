@@ -13,7 +13,6 @@ import java.util.function.Supplier;
 import org.hypergraphdb.HGException;
 import org.hypergraphdb.HGRandomAccessResult;
 import org.hypergraphdb.storage.ByteArrayConverter;
-import org.hypergraphdb.util.CountMe;
 import org.hypergraphdb.util.HGUtils;
 
 import com.sleepycat.je.DatabaseEntry;
@@ -31,10 +30,9 @@ import com.sleepycat.je.OperationStatus;
  * @author Borislav Iordanov
  */
 @SuppressWarnings("unchecked")
-public class IndexResultSet<T> implements HGRandomAccessResult<T>,
-		CountMe
+public class IndexResultSet<T> implements HGRandomAccessResult<T>
 {
-	private static final Object UNKNOWN = new Object();
+	protected static final Object UNKNOWN = new Object();
 
 	protected BJETxCursor cursor;
 	protected Object current = UNKNOWN, prev = UNKNOWN, next = UNKNOWN;
@@ -375,6 +373,11 @@ public class IndexResultSet<T> implements HGRandomAccessResult<T>,
 		closeNoException();
 	}
 
+	/**
+	 * Return the number of duplicates of the key the cursor is positioned on. That's the
+	 * size of the result set only for result sets over the duplicates of a single key, which
+	 * implement <code>CountMe</code>.
+	 */
 	public int count()
 	{
 		try
@@ -34,6 +34,24 @@ public class LinkBinding extends TupleBinding<HGPersistentHandle[]> {
 		handleSize = handleFactory.nullHandle().toByteArray().length;
 	}
 
+	public int getHandleSize() {
+		return handleSize;
+	}
+
+	/**
+	 * <p>
+	 * Write the handles of <code>link</code> one after the other into <code>buffer</code>, without
+	 * any intermediate copies, and return the position following the last one.
+	 * </p>
+	 */
+	public int writeHandles(HGPersistentHandle[] link, byte[] buffer, int offset) {
+		for (int i = 0; i < link.length; i++) {
+			link[i].writeTo(buffer, offset);
+			offset += handleSize;
+		}
+		return offset;
+	}
+
 	public HGPersistentHandle[] readHandles(byte[] buffer, int offset, int length) {
 		if (length == 0) {
 			return HyperGraph.EMPTY_PERSISTENT_HANDLE_SET;
@@ -61,12 +79,9 @@ public class LinkBinding extends TupleBinding<HGPersistentHandle[]> {
 	}
 
 	public void objectToEntry(HGPersistentHandle[] link, TupleOutput output) {
-		//HGPersistentHandle[] link = (HGPersistentHandle[])x;
-		byte[] buffer = new byte[link.length * handleSize];
-		for (int i = 0; i < link.length; i++) {
-			HGPersistentHandle handle = (HGPersistentHandle)link[i];
-			System.arraycopy(handle.toByteArray(), 0, buffer, i * handleSize, handleSize);
-		}
-		output.writeFast(buffer);
+		int size = link.length * handleSize;
+		output.makeSpace(size);
+		writeHandles(link, output.getBufferBytes(), output.getBufferLength());
+		output.addSize(size);
 	}
 }
\ No newline at end of file
@@ -0,0 +1,103 @@
+/*
+ * This file is part of the HyperGraphDB source distribution. This is copyrighted software. For permitted
+ * uses, licensing options and redistribution, please see the LicensingInformation file at the root level of
+ * the distribution.
+ *
+ * Copyright (c) 2005-2010 Kobrix Software, Inc. All rights reserved.
+ */
+package org.hypergraphdb.storage.bje;
+
+import org.hypergraphdb.HGException;
+import org.hypergraphdb.storage.ByteArrayConverter;
+
+import com.sleepycat.je.Cursor;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
+
+/**
+ * <p>
+ * A result set over all duplicates of several keys, visited in the order of an array of keys
+ * sorted by the index key order. A single cursor moves from one key to the next, so looking up
+ * many keys doesn't require opening a cursor for each of them. Keys not in the index are skipped.
+ * </p>
+ *
+ * @author Borislav Iordanov
+ */
+class MultiKeyResultSet<T> extends IndexResultSet<T>
+{
+	private byte[][] keys;
+	// The index in keys of the key the cursor is positioned on.
+	private int position;
+
+	protected T advance()
+	{
+		try
+		{
+			Cursor c = cursor.cursor();
+			OperationStatus status = c.getNextDup(key, data, LockMode.DEFAULT);
+			for (int i = position + 1; status != OperationStatus.SUCCESS && i < keys.length; i++)
+			{
+				bje.assignData(key, keys[i]);
+				status = c.getSearchKey(key, data, LockMode.DEFAULT);
+				if (status == OperationStatus.SUCCESS)
+					position = i;
+			}
+			if (status == OperationStatus.SUCCESS)
+				return converter.fromByteArray(data.getData(), data.getOffset(), data.getSize());
+			else
+				return null;
+		}
+		catch (Throwable t)
+		{
+			closeNoException();
+			throw new HGException(t);
+		}
+	}
+
+	protected T back()
+	{
+		try
+		{
+			Cursor c = cursor.cursor();
+			OperationStatus status = c.getPrevDup(key, data, LockMode.DEFAULT);
+			for (int i = position - 1; status != OperationStatus.SUCCESS && i >= 0; i--)
+			{
+				bje.assignData(key, keys[i]);
+				if (c.getSearchKey(key, data, LockMode.DEFAULT) != OperationStatus.SUCCESS)
+					continue;
+				// Move to the last duplicate of the key: the one before the next key, if any.
+				if (c.getNextNoDup(key, data, LockMode.DEFAULT) == OperationStatus.SUCCESS)
+					status = c.getPrev(key, data, LockMode.DEFAULT);
+				else
+					status = c.getLast(key, data, LockMode.DEFAULT);
+				position = i;
+			}
+			if (status == OperationStatus.SUCCESS)
+				return converter.fromByteArray(data.getData(), data.getOffset(), data.getSize());
+			else
+				return null;
+		}
+		catch (Throwable t)
+		{
+			closeNoException();
+			throw new HGException(t);
+		}
+	}
+
+	/**
+	 * @param cursor The cursor, positioned on the first duplicate of <code>keys[position]</code>.
+	 * @param keys The keys to look up, sorted in the order of the index.
+	 * @param position The first key found in the index.
+	 * @param converter Converts index values.
+	 */
+	public MultiKeyResultSet(BJETxCursor cursor,
+							 byte[][] keys,
+							 int position,
+							 ByteArrayConverter<T> converter)
+	{
+		super(cursor, new DatabaseEntry(keys[position]), converter, null, null, false);
+		this.keys = keys;
+		this.position = position;
+	}
+}
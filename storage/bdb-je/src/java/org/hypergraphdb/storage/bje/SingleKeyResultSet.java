@@ -8,6 +8,7 @@
 package org.hypergraphdb.storage.bje;
 
 import org.hypergraphdb.storage.ByteArrayConverter;
+import org.hypergraphdb.util.CountMe;
 import com.sleepycat.je.DatabaseEntry;
 
 /**
@@ -18,7 +19,7 @@ import com.sleepycat.je.DatabaseEntry;
  * 
  * @author Borislav Iordanov
  */
-public class SingleKeyResultSet<T> extends IndexResultSet<T> 
+public class SingleKeyResultSet<T> extends IndexResultSet<T> implements CountMe
 {
 //	private boolean ordered = false;
 
@@ -9,6 +9,7 @@ package org.hypergraphdb.storage.bje;
 
 import org.hypergraphdb.HGException;
 import org.hypergraphdb.storage.ByteArrayConverter;
+import org.hypergraphdb.util.CountMe;
 import org.hypergraphdb.util.HGUtils;
 
 import com.sleepycat.je.DatabaseEntry;
@@ -26,7 +27,7 @@ import com.sleepycat.je.SecondaryCursor;
  * 
  * @author Borislav Iordanov
  */
-public class SingleValueResultSet<T> extends IndexResultSet<T> {
+public class SingleValueResultSet<T> extends IndexResultSet<T> implements CountMe {
 	private DatabaseEntry pkey = new DatabaseEntry();
 
 	public SingleValueResultSet(BJETxCursor cursor, DatabaseEntry keyIn, ByteArrayConverter<T> converter) {
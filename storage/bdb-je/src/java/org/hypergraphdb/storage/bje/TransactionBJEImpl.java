@@ -7,7 +7,10 @@
  */
 package org.hypergraphdb.storage.bje;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import org.hypergraphdb.transaction.HGStorageTransaction;
@@ -15,22 +18,39 @@ import org.hypergraphdb.transaction.HGTransactionException;
 
 import com.sleepycat.je.Cursor;
 import com.sleepycat.je.DatabaseException;
+import com.sleepycat.je.Durability;
 import com.sleepycat.je.Environment;
 import com.sleepycat.je.Transaction;
 
 public class TransactionBJEImpl implements HGStorageTransaction {
 	private Environment env;
 	private Transaction t;
-	private Set<BJETxCursor> bdbCursors = new HashSet<BJETxCursor>();
+	private Durability.SyncPolicy syncPolicy;
+	// Cursors may be opened concurrently by the threads of a parallel query.
+	private Set<BJETxCursor> bdbCursors = Collections.synchronizedSet(new HashSet<BJETxCursor>());
 	private boolean aborting = false;
+	private List<Runnable> commitActions = null;
+	private List<Runnable> abortActions = null;
 
 	public static final TransactionBJEImpl nullTransaction() {
 		return new TransactionBJEImpl(null, null);
 	}
 
 	public TransactionBJEImpl(Transaction t, Environment env) {
+		this(t, env, Durability.SyncPolicy.WRITE_NO_SYNC);
+	}
+
+	public TransactionBJEImpl(Transaction t, Environment env, Durability.SyncPolicy syncPolicy) {
 		this.t = t;
 		this.env = env;
+		this.syncPolicy = syncPolicy;
+	}
+
+	/**
+	 * Return how the log is written when the transaction commits.
+	 */
+	public Durability.SyncPolicy getSyncPolicy() {
+		return syncPolicy;
 	}
 
 	public Environment getBJEEnvironment() {
@@ -43,7 +63,7 @@ public class TransactionBJEImpl implements HGStorageTransaction {
 
 	public void commit() throws HGTransactionException {
 		try {
-			Set<BJETxCursor> S = new HashSet<BJETxCursor>(bdbCursors);
+			Set<BJETxCursor> S = copyCursors();
 			for (BJETxCursor c : S)
 				c.close();
 			if (t != null)
@@ -52,12 +72,32 @@ public class TransactionBJEImpl implements HGStorageTransaction {
 		catch (DatabaseException ex) {
 			throw new HGTransactionException("Failed to commit transaction", ex);
 		}
+		runActions(commitActions);
+	}
+
+	/**
+	 * Commit without writing or flushing the log - the caller is responsible for
+	 * calling <code>Environment.flushLog</code> afterwards. This is used when committing
+	 * a group of transactions so that the whole group is written with a single flush.
+	 */
+	void commitNoSync() throws HGTransactionException {
+		try {
+			Set<BJETxCursor> S = copyCursors();
+			for (BJETxCursor c : S)
+				c.close();
+			if (t != null)
+				t.commit(Durability.COMMIT_NO_SYNC);
+		}
+		catch (DatabaseException ex) {
+			throw new HGTransactionException("Failed to commit transaction", ex);
+		}
+		runActions(commitActions);
 	}
 
 	public void abort() throws HGTransactionException {
 		try {
 			aborting = true;
-			Set<BJETxCursor> S = new HashSet<BJETxCursor>(bdbCursors);
+			Set<BJETxCursor> S = copyCursors();
 			for (BJETxCursor c : S)
 			{
 				try {
@@ -74,6 +114,37 @@ public class TransactionBJEImpl implements HGStorageTransaction {
 		catch (DatabaseException ex) {
 			throw new HGTransactionException("Failed to abort transaction", ex);
 		}
+		finally {
+			runActions(abortActions);
+		}
+	}
+
+	/**
+	 * Register an action to run once the BerkeleyDB transaction has been committed. Actions
+	 * can't be registered with the <code>nullTransaction</code> since every operation outside
+	 * of a transaction is committed immediately.
+	 */
+	void onCommit(Runnable action) {
+		if (commitActions == null)
+			commitActions = new ArrayList<Runnable>();
+		commitActions.add(action);
+	}
+
+	/**
+	 * Register an action to run once the BerkeleyDB transaction has been aborted.
+	 */
+	void onAbort(Runnable action) {
+		if (abortActions == null)
+			abortActions = new ArrayList<Runnable>();
+		abortActions.add(action);
+	}
+
+	private void runActions(List<Runnable> actions) {
+		if (actions == null)
+			return;
+		for (Runnable action : actions)
+			action.run();
+		commitActions = abortActions = null;
 	}
 
 	public BJETxCursor attachCursor(Cursor cursor) {
@@ -85,6 +156,12 @@ public class TransactionBJEImpl implements HGStorageTransaction {
 		return c;
 	}
 
+	private Set<BJETxCursor> copyCursors() {
+		synchronized (bdbCursors) {
+			return new HashSet<BJETxCursor>(bdbCursors);
+		}
+	}
+
 	void removeCursor(BJETxCursor c) {
 		if (!aborting) {
 			bdbCursors.remove(c);
@@ -42,6 +42,19 @@ public class bje
 		System.arraycopy(data, 0, dest, 0, data.length);
 	}
 	
+	/**
+	 * Return <code>true</code> if <code>data</code> begins with the bytes of <code>prefix</code>.
+	 */
+	public static boolean startsWith(byte[] data, byte[] prefix)
+	{
+		if (data.length < prefix.length)
+			return false;
+		for (int i = 0; i < prefix.length; i++)
+			if (data[i] != prefix[i])
+				return false;
+		return true;
+	}
+
 	/**
 	 * Supplies next key/data pair in a cursor - stay one the same key as long as there are duplicates, then go to 
 	 * next key etc.
@@ -10,7 +10,6 @@ import java.util.Iterator;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.hypergraphdb.HGConfiguration;
-import org.hypergraphdb.HGEnvironment;
 import org.hypergraphdb.HGException;
 import org.hypergraphdb.HGHandle;
 import org.hypergraphdb.HGHandleFactory;
@@ -19,13 +18,14 @@ import org.hypergraphdb.HGPersistentHandle;
 import org.hypergraphdb.HGRandomAccessResult;
 import org.hypergraphdb.HGSearchResult;
 import org.hypergraphdb.HGStore;
-import org.hypergraphdb.HyperGraph;
 import org.hypergraphdb.storage.BAtoBA;
 import org.hypergraphdb.storage.BAtoHandle;
 import org.hypergraphdb.storage.ByteArrayConverter;
 import org.hypergraphdb.storage.HGStoreImplementation;
 import org.hypergraphdb.storage.incidence.AIBAConv;
+import org.hypergraphdb.storage.incidence.AnnotatedIncidenceStorage;
 import org.hypergraphdb.storage.incidence.HGIncidentAnnotator;
+import org.hypergraphdb.storage.incidence.TypedIncidentResultSet;
 import org.hypergraphdb.transaction.HGStorageTransaction;
 import org.hypergraphdb.transaction.HGTransaction;
 import org.hypergraphdb.transaction.HGTransactionConfig;
@@ -48,7 +48,7 @@ import com.sleepycat.db.OperationStatus;
 import com.sleepycat.db.Transaction;
 import com.sleepycat.db.TransactionConfig;
 
-public class BDBStorageImplementation implements HGStoreImplementation
+public class BDBStorageImplementation implements HGStoreImplementation, AnnotatedIncidenceStorage
 {
     private static final String DATA_DB_NAME = "datadb";
     private static final String PRIMITIVE_DB_NAME = "primitivedb";
@@ -80,16 +80,10 @@ public class BDBStorageImplementation implements HGStoreImplementation
     private HashMap<String, HGIndex<?,?>> openIndices = new HashMap<String, HGIndex<?,?>>();
     private ReentrantReadWriteLock indicesLock = new ReentrantReadWriteLock();
     private LinkBinding linkBinding = null;
+    private EntryPool entries = null;
 
     // experimental
     private HGIncidentAnnotator incidentAnnotator = null;//new TypeAndPositionIncidenceAnnotator();
-    private HyperGraph graph;
-    private HyperGraph getGraph()
-    {
-        if (graph == null)
-           graph = HGEnvironment.get(store.getDatabaseLocation());
-        return graph;
-    }
     private byte [] incidentValue(HGPersistentHandle target, HGPersistentHandle link)
     {
         if (this.incidentAnnotator == null)
@@ -97,9 +91,9 @@ public class BDBStorageImplementation implements HGStoreImplementation
         else
         {
             byte [] lbuf = link.toByteArray();
-            byte [] value = new byte[lbuf.length + incidentAnnotator.spaceNeeded(getGraph())];
+            byte [] value = new byte[lbuf.length + incidentAnnotator.spaceNeeded(handleFactory)];
             System.arraycopy(lbuf, 0, value, 0, lbuf.length);
-            incidentAnnotator.annotate(graph, link, target, value, lbuf.length);
+            incidentAnnotator.annotate(link, getLink(link), target, value, lbuf.length);
             return value;
         }
     }
@@ -143,6 +137,7 @@ public class BDBStorageImplementation implements HGStoreImplementation
         this.store = store;
         this.handleFactory = config.getHandleFactory();
         this.linkBinding = new LinkBinding(handleFactory);
+        this.entries = new EntryPool(linkBinding);
         EnvironmentConfig envConfig = configuration.getEnvironmentConfig();
         if (config.isTransactional())
             configuration.configureTransactional();
@@ -229,8 +224,7 @@ public class BDBStorageImplementation implements HGStoreImplementation
             throw new NullPointerException("HGStore.remove called with a null handle.");
         try
         {
-            DatabaseEntry key = new DatabaseEntry(handle.toByteArray());
-            data_db.delete(txn().getBDBTransaction(), key);
+            data_db.delete(txn().getBDBTransaction(), entries.key(handle));
         }
         catch (Exception ex)
         {
@@ -244,7 +238,7 @@ public class BDBStorageImplementation implements HGStoreImplementation
         try
         {
             OperationStatus result = primitive_db.put(txn().getBDBTransaction(),
-                                                 new DatabaseEntry(handle.toByteArray()),
+                                                 entries.key(handle),
                                                  new DatabaseEntry(data));
             if (result != OperationStatus.SUCCESS)
                 throw new Exception("OperationStatus: " + result);
@@ -258,9 +252,10 @@ public class BDBStorageImplementation implements HGStoreImplementation
 
     public HGPersistentHandle store(HGPersistentHandle handle, HGPersistentHandle[] link)
     {
-        DatabaseEntry key = new DatabaseEntry(handle.toByteArray());
-        DatabaseEntry value = new DatabaseEntry();
-        linkBinding.objectToEntry(link, value);
+        // outside the try, a null handle or link is reported as a NullPointerException
+        DatabaseEntry key = entries.key(handle);
+        DatabaseEntry value = entries.value(link);
+
         try
         {
             OperationStatus result = data_db.put(txn().getBDBTransaction(), key, value);
@@ -279,9 +274,8 @@ public class BDBStorageImplementation implements HGStoreImplementation
         Cursor cursor = null;
         try
         {
-            DatabaseEntry key = new DatabaseEntry(handle.toByteArray());
             DatabaseEntry value = new DatabaseEntry(incidentValue(handle, newLink));
-            OperationStatus result = incidence_db.putNoDupData(txn().getBDBTransaction(), key, value);
+            OperationStatus result = incidence_db.putNoDupData(txn().getBDBTransaction(), entries.key(handle), value);
             if (result != OperationStatus.SUCCESS && result != OperationStatus.KEYEXIST)
                 throw new Exception("OperationStatus: " + result);
         }
@@ -299,12 +293,9 @@ public class BDBStorageImplementation implements HGStoreImplementation
 
     public boolean containsLink(HGPersistentHandle handle)
     {
-        DatabaseEntry key = new DatabaseEntry(handle.toByteArray());
-        DatabaseEntry value = new DatabaseEntry();
-        value.setPartial(0, 0, true);
         try
         {
-            if (data_db.get(txn().getBDBTransaction(), key, value, LockMode.DEFAULT) == OperationStatus.SUCCESS)
+            if (data_db.get(txn().getBDBTransaction(), entries.key(handle), entries.probe(), LockMode.DEFAULT) == OperationStatus.SUCCESS)
             {
 //                System.out.println(value.toString());
                 return true;
@@ -320,12 +311,9 @@ public class BDBStorageImplementation implements HGStoreImplementation
 
     public boolean containsData(HGPersistentHandle handle)
     {
-        DatabaseEntry key = new DatabaseEntry(handle.toByteArray());
-        DatabaseEntry value = new DatabaseEntry();
-        value.setPartial(0, 0, true);
         try
         {
-            if (primitive_db.get(txn().getBDBTransaction(), key, value, LockMode.DEFAULT) == OperationStatus.SUCCESS)
+            if (primitive_db.get(txn().getBDBTransaction(), entries.key(handle), entries.probe(), LockMode.DEFAULT) == OperationStatus.SUCCESS)
             {
 //                System.out.println(value.toString());
                 return true;
@@ -343,9 +331,8 @@ public class BDBStorageImplementation implements HGStoreImplementation
     {
         try
         {
-            DatabaseEntry key = new DatabaseEntry(handle.toByteArray());
             DatabaseEntry value = new DatabaseEntry();
-            if (primitive_db.get(txn().getBDBTransaction(), key, value, LockMode.DEFAULT) == OperationStatus.SUCCESS) {
+            if (primitive_db.get(txn().getBDBTransaction(), entries.key(handle), value, LockMode.DEFAULT) == OperationStatus.SUCCESS) {
                 final byte[] data = value.getData();
                 return data == null ? new byte[]{} : data;
             }
@@ -395,9 +382,12 @@ public class BDBStorageImplementation implements HGStoreImplementation
             throw new HGException("Attempt to query by annotated incident link when no incident annotator was configured.");
         else if (target == null)
             throw new NullPointerException("HGStore.getIncidenceSet called with a null target handle.");
-        return (HGRandomAccessResult)incidentAnnotator.lookup(graph,
-                    getIncidenceResultSetByKey(target.getPersistent().toByteArray(),
-                            BAtoBA.getInstance()), annotations);
+        return (HGRandomAccessResult)new TypedIncidentResultSet(
+                    getIncidenceResultSetByKey(target.getPersistent().toByteArray(), BAtoBA.getInstance()),
+                    BAtoHandle.getInstance(handleFactory),
+                    handleFactory.anyHandle().toByteArray().length,
+                    incidentAnnotator,
+                    annotations);
     }
 
     public HGRandomAccessResult<HGPersistentHandle> getIncidenceResultSet(HGPersistentHandle handle)
@@ -418,10 +408,8 @@ public class BDBStorageImplementation implements HGStoreImplementation
         Cursor cursor = null;
         try
         {
-            DatabaseEntry key = new DatabaseEntry(handle.toByteArray());
-            DatabaseEntry value = new DatabaseEntry();
             cursor = incidence_db.openCursor(txn().getBDBTransaction(), cursorConfig);
-            OperationStatus status = cursor.getSearchKey(key, value, LockMode.DEFAULT);
+            OperationStatus status = cursor.getSearchKey(entries.key(handle), entries.probe(), LockMode.DEFAULT);
             if (status == OperationStatus.NOTFOUND)
                 return 0;
             else
@@ -442,9 +430,8 @@ public class BDBStorageImplementation implements HGStoreImplementation
     {
         try
         {
-            DatabaseEntry key = new DatabaseEntry(handle.toByteArray());
             DatabaseEntry value = new DatabaseEntry();
-            if (data_db.get(txn().getBDBTransaction(), key, value, LockMode.DEFAULT) == OperationStatus.SUCCESS)
+            if (data_db.get(txn().getBDBTransaction(), entries.key(handle), value, LockMode.DEFAULT) == OperationStatus.SUCCESS)
                 return (HGPersistentHandle [])linkBinding.entryToObject(value);
             else
                 return null;
@@ -455,6 +442,191 @@ public class BDBStorageImplementation implements HGStoreImplementation
         }
     }
 
+    // Return the positions of the given keys in ascending key order, as BerkeleyDB sorts
+    // them by default, so that batch operations traverse the B-tree in a single sweep.
+    private static Integer[] sortedOrder(final byte[][] keys)
+    {
+        Integer[] order = new Integer[keys.length];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer i, Integer j)
+            {
+                byte[] left = keys[i], right = keys[j];
+                for (int k = 0; k < left.length && k < right.length; k++)
+                {
+                    int c = (left[k] & 0xff) - (right[k] & 0xff);
+                    if (c != 0)
+                        return c;
+                }
+                return left.length - right.length;
+            }
+        });
+        return order;
+    }
+
+    private static byte[][] toKeys(HGPersistentHandle[] handles)
+    {
+        byte[][] keys = new byte[handles.length][];
+        for (int i = 0; i < handles.length; i++)
+            keys[i] = handles[i].toByteArray();
+        return keys;
+    }
+
+    public HGPersistentHandle[][] getLinks(HGPersistentHandle[] handles)
+    {
+        HGPersistentHandle[][] result = new HGPersistentHandle[handles.length][];
+        byte[][] keys = toKeys(handles);
+        Cursor cursor = null;
+        try
+        {
+            cursor = data_db.openCursor(txn().getBDBTransaction(), cursorConfig);
+            DatabaseEntry key = new DatabaseEntry();
+            DatabaseEntry value = new DatabaseEntry();
+            for (int i : sortedOrder(keys))
+            {
+                key.setData(keys[i]);
+                if (cursor.getSearchKey(key, value, LockMode.DEFAULT) == OperationStatus.SUCCESS)
+                    result[i] = (HGPersistentHandle [])linkBinding.entryToObject(value);
+            }
+            return result;
+        }
+        catch (Exception ex)
+        {
+            throw new HGException("Failed to retrieve links: " + ex.toString(), ex);
+        }
+        finally
+        {
+            if (cursor != null)
+                try { cursor.close(); } catch (Exception ex) { }
+        }
+    }
+
+    public byte[][] getDataBatch(HGPersistentHandle[] handles)
+    {
+        byte[][] result = new byte[handles.length][];
+        byte[][] keys = toKeys(handles);
+        Cursor cursor = null;
+        try
+        {
+            cursor = primitive_db.openCursor(txn().getBDBTransaction(), cursorConfig);
+            DatabaseEntry key = new DatabaseEntry();
+            DatabaseEntry value = new DatabaseEntry();
+            for (int i : sortedOrder(keys))
+            {
+                key.setData(keys[i]);
+                if (cursor.getSearchKey(key, value, LockMode.DEFAULT) == OperationStatus.SUCCESS)
+                {
+                    final byte[] data = value.getData();
+                    result[i] = data == null ? new byte[]{} : data;
+                }
+            }
+            return result;
+        }
+        catch (Exception ex)
+        {
+            throw new HGException("Failed to retrieve data: " + ex.toString(), ex);
+        }
+        finally
+        {
+            if (cursor != null)
+                try { cursor.close(); } catch (Exception ex) { }
+        }
+    }
+
+    public void storeAll(HGPersistentHandle[] handles, HGPersistentHandle[][] links)
+    {
+        byte[][] keys = toKeys(handles);
+        Cursor cursor = null;
+        try
+        {
+            cursor = data_db.openCursor(txn().getBDBTransaction(), cursorConfig);
+            DatabaseEntry key = new DatabaseEntry();
+            for (int i : sortedOrder(keys))
+            {
+                key.setData(keys[i]);
+                OperationStatus result = cursor.put(key, entries.value(links[i]));
+                if (result != OperationStatus.SUCCESS)
+                    throw new Exception("OperationStatus: " + result);
+            }
+        }
+        catch (Exception ex)
+        {
+            throw new HGException("Failed to store hypergraph links: " + ex.toString(), ex);
+        }
+        finally
+        {
+            if (cursor != null)
+                try { cursor.close(); } catch (Exception ex) { }
+        }
+    }
+
+    public void storeAll(HGPersistentHandle[] handles, byte[][] data)
+    {
+        byte[][] keys = toKeys(handles);
+        Cursor cursor = null;
+        try
+        {
+            cursor = primitive_db.openCursor(txn().getBDBTransaction(), cursorConfig);
+            DatabaseEntry key = new DatabaseEntry();
+            DatabaseEntry value = new DatabaseEntry();
+            for (int i : sortedOrder(keys))
+            {
+                if (data[i] == null)
+                    throw new NullPointerException("Can't store null data.");
+                key.setData(keys[i]);
+                value.setData(data[i]);
+                OperationStatus result = cursor.put(key, value);
+                if (result != OperationStatus.SUCCESS)
+                    throw new Exception("OperationStatus: " + result);
+            }
+        }
+        catch (RuntimeException ex)
+        {
+            throw ex;
+        }
+        catch (Exception ex)
+        {
+            throw new HGException("Failed to store hypergraph raw byte []: " + ex.toString(), ex);
+        }
+        finally
+        {
+            if (cursor != null)
+                try { cursor.close(); } catch (Exception ex) { }
+        }
+    }
+
+    public void addIncidenceLinks(HGPersistentHandle handle, HGPersistentHandle[] newLinks)
+    {
+        byte[][] values = new byte[newLinks.length][];
+        for (int i = 0; i < newLinks.length; i++)
+            values[i] = incidentValue(handle, newLinks[i]);
+        Cursor cursor = null;
+        try
+        {
+            cursor = incidence_db.openCursor(txn().getBDBTransaction(), cursorConfig);
+            DatabaseEntry key = entries.key(handle);
+            DatabaseEntry value = new DatabaseEntry();
+            for (int i : sortedOrder(values))
+            {
+                value.setData(values[i]);
+                OperationStatus result = cursor.putNoDupData(key, value);
+                if (result != OperationStatus.SUCCESS && result != OperationStatus.KEYEXIST)
+                    throw new Exception("OperationStatus: " + result);
+            }
+        }
+        catch (Exception ex)
+        {
+            throw new HGException("Failed to update incidence set for handle " + handle +
+                                  ": " + ex.toString(), ex);
+        }
+        finally
+        {
+            if (cursor != null)
+                try { cursor.close(); } catch (Exception ex) { }
+        }
+    }
+
     public HGTransactionFactory getTransactionFactory()
     {
         return new HGTransactionFactory()
@@ -466,6 +638,8 @@ public class BDBStorageImplementation implements HGStoreImplementation
                     TransactionConfig tconfig = new TransactionConfig();
                     if (env.getConfig().getMultiversion() && config.isReadonly())
                         tconfig.setSnapshot(true);
+                    else if (config.isSnapshot())
+                        tconfig.setReadCommitted(true);
                     tconfig.setWriteNoSync(true);
 //                  tconfig.setNoSync(true);
                     Transaction tx = null;
@@ -498,8 +672,7 @@ public class BDBStorageImplementation implements HGStoreImplementation
             throw new NullPointerException("HGStore.remove called with a null handle.");
         try
         {
-            DatabaseEntry key = new DatabaseEntry(handle.toByteArray());
-            primitive_db.delete(txn().getBDBTransaction(), key);
+            primitive_db.delete(txn().getBDBTransaction(), entries.key(handle));
         }
         catch (Exception ex)
         {
@@ -513,10 +686,9 @@ public class BDBStorageImplementation implements HGStoreImplementation
         Cursor cursor = null;
         try
         {
-            DatabaseEntry key = new DatabaseEntry(handle.toByteArray());
             DatabaseEntry value = new DatabaseEntry(incidentValue(handle, oldLink));
             cursor = incidence_db.openCursor(txn().getBDBTransaction(), cursorConfig);
-            OperationStatus status = cursor.getSearchBoth(key, value, LockMode.DEFAULT);
+            OperationStatus status = cursor.getSearchBoth(entries.key(handle), value, LockMode.DEFAULT);
             if (status == OperationStatus.SUCCESS)
             {
                 cursor.delete();
@@ -538,8 +710,7 @@ public class BDBStorageImplementation implements HGStoreImplementation
     {
         try
         {
-            DatabaseEntry key = new DatabaseEntry(handle.toByteArray());
-            incidence_db.delete(txn().getBDBTransaction(), key);
+            incidence_db.delete(txn().getBDBTransaction(), entries.key(handle));
         }
         catch (Exception ex)
         {
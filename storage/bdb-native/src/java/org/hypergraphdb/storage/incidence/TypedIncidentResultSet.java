@@ -24,32 +24,33 @@ public final class TypedIncidentResultSet implements HGRandomAccessResult<HGHand
     {
         public Boolean eval(byte[] h)
         {
-            for (int i = 0; i < typeRep.length; i++)
-                if (h[i + typeRep.length] != typeRep[i])
-                    return false;
-            return true;
+            return annotator.matches(h, handleLength, annotations);
         }
     };
  
     FilteredRAResultSet<byte[]> rs; 
-    byte [] typeRep;
-    HGHandle type;
+    HGIncidentAnnotator annotator;
+    Object [] annotations;
+    int handleLength;
     ByteArrayConverter<HGPersistentHandle> handleConverter;
 
     private HGHandle toh(byte [] B)
     {
-        return handleConverter.fromByteArray(B, 0, typeRep.length);        
+        return handleConverter.fromByteArray(B, 0, handleLength);        
     }
     
     public TypedIncidentResultSet(HGRandomAccessResult<byte[]> irs, 
                                   ByteArrayConverter<HGPersistentHandle> handleConverter,
-                                  HGHandle type)
+                                  int handleLength,
+                                  HGIncidentAnnotator annotator,
+                                  Object...annotations)
     {
         super();
-        this.rs = new FilteredRAResultSet<byte[]>(irs, typePredicate, 0);
-        this.type = type;
-        typeRep = type.getPersistent().toByteArray();
+        this.annotator = annotator;
+        this.annotations = annotations;
+        this.handleLength = handleLength;
         this.handleConverter = handleConverter;
+        this.rs = new FilteredRAResultSet<byte[]>(irs, typePredicate, 0);
     }
 
     public HGHandle current()
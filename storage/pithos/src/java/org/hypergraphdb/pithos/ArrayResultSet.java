@@ -0,0 +1,128 @@
+package org.hypergraphdb.pithos;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.NoSuchElementException;
+
+import org.hypergraphdb.HGRandomAccessResult;
+import org.hypergraphdb.storage.ByteArrayConverter;
+import org.hypergraphdb.util.CountMe;
+
+/**
+ * <p>
+ * A result set over an array of serialized values taken from the snapshot of a
+ * transaction. Values are converted as the cursor reaches them. When the array is sorted,
+ * <code>goTo</code> is a binary search with the given comparator, otherwise it's a scan
+ * for an exact match.
+ * </p>
+ */
+final class ArrayResultSet<T> implements HGRandomAccessResult<T>, CountMe
+{
+	private final byte[][] items;
+	private final ByteArrayConverter<T> converter;
+	private final Comparator<byte[]> comparator;
+	private int pos = -1;
+	private T current = null;
+
+	ArrayResultSet(byte[][] items, ByteArrayConverter<T> converter, Comparator<byte[]> comparator)
+	{
+		this.items = items;
+		this.converter = converter;
+		this.comparator = comparator;
+	}
+
+	private T moveTo(int pos)
+	{
+		this.pos = pos;
+		byte[] data = items[pos];
+		return current = converter.fromByteArray(data, 0, data.length);
+	}
+
+	public GotoResult goTo(T value, boolean exactMatch)
+	{
+		byte[] data = converter.toByteArray(value);
+		if (comparator == null)
+		{
+			for (int i = 0; i < items.length; i++)
+				if (Arrays.equals(items[i], data))
+				{
+					moveTo(i);
+					return GotoResult.found;
+				}
+			return GotoResult.nothing;
+		}
+		int i = Arrays.binarySearch(items, data, comparator);
+		if (i >= 0)
+		{
+			moveTo(i);
+			return GotoResult.found;
+		}
+		i = -i - 1;
+		if (exactMatch || i == items.length)
+			return GotoResult.nothing;
+		moveTo(i);
+		return GotoResult.close;
+	}
+
+	public void goAfterLast()
+	{
+		pos = items.length;
+		current = null;
+	}
+
+	public void goBeforeFirst()
+	{
+		pos = -1;
+		current = null;
+	}
+
+	public T current()
+	{
+		if (pos < 0 || pos >= items.length)
+			throw new NoSuchElementException();
+		return current;
+	}
+
+	public void close()
+	{
+	}
+
+	public boolean isOrdered()
+	{
+		return comparator != null;
+	}
+
+	public boolean hasPrev()
+	{
+		return pos > 0;
+	}
+
+	public T prev()
+	{
+		if (!hasPrev())
+			throw new NoSuchElementException();
+		return moveTo(pos - 1);
+	}
+
+	public boolean hasNext()
+	{
+		return pos + 1 < items.length;
+	}
+
+	public T next()
+	{
+		if (!hasNext())
+			throw new NoSuchElementException();
+		return moveTo(pos + 1);
+	}
+
+	public void remove()
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	public int count()
+	{
+		return items.length;
+	}
+}
@@ -0,0 +1,43 @@
+package org.hypergraphdb.pithos;
+
+import java.util.Comparator;
+
+/**
+ * <p>
+ * Comparison of byte arrays in the order BerkeleyDB uses by default - byte by byte, treating
+ * bytes as unsigned, with a shorter array ordered before any longer array it is a prefix of.
+ * Handles are kept in this order in incidence sets, and so are index keys and values when
+ * the index has no comparator of its own.
+ * </p>
+ */
+final class Bytes
+{
+	static final Comparator<byte[]> COMPARATOR = new Comparator<byte[]>()
+	{
+		public int compare(byte[] left, byte[] right)
+		{
+			return Bytes.compare(left, 0, left.length, right, 0, right.length);
+		}
+	};
+
+	static int compare(byte[] left, int leftOffset, int leftLength, byte[] right, int rightOffset, int rightLength)
+	{
+		int n = Math.min(leftLength, rightLength);
+		for (int i = 0; i < n; i++)
+		{
+			int c = (left[leftOffset + i] & 0xff) - (right[rightOffset + i] & 0xff);
+			if (c != 0)
+				return c;
+		}
+		return leftLength - rightLength;
+	}
+
+	static Comparator<byte[]> orDefault(Comparator<byte[]> comparator)
+	{
+		return comparator == null ? COMPARATOR : comparator;
+	}
+
+	private Bytes()
+	{
+	}
+}
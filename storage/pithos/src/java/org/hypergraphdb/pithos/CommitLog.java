@@ -0,0 +1,139 @@
+package org.hypergraphdb.pithos;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import org.hypergraphdb.HGException;
+import org.hypergraphdb.transaction.HGDurability;
+
+/**
+ * <p>
+ * The redo log of committed transactions since the last checkpoint. A record is its length,
+ * the CRC32 of its content and the content - the operations of one transaction. Records
+ * are buffered in memory and written out according to the durability of the commit. At
+ * startup the log is replayed up to the first incomplete or corrupt record, which is where
+ * a crash interrupted writing it.
+ * </p>
+ */
+public class CommitLog extends FileStore
+{
+	// buffered records are written out once they reach this size, whatever the durability
+	private static final int MAX_BUFFERED = 1024 * 1024;
+
+	private byte[] buffer = new byte[64 * 1024];
+	private int buffered = 0;
+	private long end = 0;
+	private final CRC32 crc = new CRC32();
+
+	public CommitLog(File file, PithosConfig config)
+	{
+		super(file, config);
+	}
+
+	public void append(byte[] record, int length)
+	{
+		if (buffered + length + 8 > buffer.length)
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, buffered + length + 8));
+		crc.reset();
+		crc.update(record, 0, length);
+		ByteBuffer.wrap(buffer, buffered, 8).putInt(length).putInt((int)crc.getValue());
+		System.arraycopy(record, 0, buffer, buffered + 8, length);
+		buffered += length + 8;
+	}
+
+	/**
+	 * <p>Write out the buffered records, as required by the durability of a commit.</p>
+	 */
+	public void flush(HGDurability durability)
+	{
+		if (durability == HGDurability.NO_SYNC && buffered < MAX_BUFFERED)
+			return;
+		try
+		{
+			if (buffered > 0)
+			{
+				write(end, ByteBuffer.wrap(buffer, 0, buffered));
+				end += buffered;
+				buffered = 0;
+			}
+			if (durability == HGDurability.SYNC)
+				fch.force(false);
+		}
+		catch (IOException ex)
+		{
+			throw new HGException("Failed to write to commit log " + getFile() + ": " + ex.toString(), ex);
+		}
+	}
+
+	/**
+	 * <p>The size of the log, including buffered records.</p>
+	 */
+	public long size()
+	{
+		return end + buffered;
+	}
+
+	/**
+	 * <p>
+	 * Pass the content of each intact record to <code>replay</code>, in order, and cut the
+	 * log after the last one. Return the number of records replayed.
+	 * </p>
+	 */
+	public int replay(Consumer<ByteBuffer> replay)
+	{
+		try
+		{
+			long size = fch.size();
+			long position = 0;
+			int count = 0;
+			ByteBuffer header = ByteBuffer.allocate(8);
+			while (position + 8 <= size)
+			{
+				header.clear();
+				read(position, header);
+				int length = header.getInt(0);
+				if (length < 0 || position + 8 + length > size)
+					break;
+				byte[] record = new byte[length];
+				read(position + 8, ByteBuffer.wrap(record));
+				crc.reset();
+				crc.update(record, 0, length);
+				if ((int)crc.getValue() != header.getInt(4))
+					break;
+				replay.accept(ByteBuffer.wrap(record));
+				position += 8 + length;
+				count++;
+			}
+			if (position < size)
+				fch.truncate(position);
+			end = position;
+			return count;
+		}
+		catch (IOException ex)
+		{
+			throw new HGException("Failed to read commit log " + getFile() + ": " + ex.toString(), ex);
+		}
+	}
+
+	/**
+	 * <p>Empty the log, once a checkpoint has made its records redundant.</p>
+	 */
+	public void truncate()
+	{
+		try
+		{
+			buffered = 0;
+			end = 0;
+			fch.truncate(0);
+			fch.force(false);
+		}
+		catch (IOException ex)
+		{
+			throw new HGException("Failed to truncate commit log " + getFile() + ": " + ex.toString(), ex);
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package org.hypergraphdb.pithos;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import org.hypergraphdb.HGException;
+
+/**
+ * <p>
+ * The file holding the records that don't fit in a slot of a {@link LinkStore} and the pages
+ * of incidence sets. Regions are allocated through {@link FreeSpace} and never written in
+ * place: a changed record or page goes to a new region and the old one is released. Released
+ * regions may still be referenced by the records as of the last checkpoint, so they only
+ * become reusable once the next checkpoint is complete.
+ * </p>
+ */
+public class DataStore extends FileStore
+{
+	private FreeSpace freeSpace = new FreeSpace();
+	private ArrayList<long[]> released = new ArrayList<long[]>();
+
+	public DataStore(File file, PithosConfig config)
+	{
+		super(file, config);
+	}
+
+	public FreeSpace getFreeSpace()
+	{
+		return freeSpace;
+	}
+
+	/**
+	 * <p>Write <code>length</code> bytes to a newly allocated region and return its position.</p>
+	 */
+	public long write(byte[] data, int offset, int length)
+	{
+		long position = freeSpace.allocate(length);
+		try
+		{
+			write(position, ByteBuffer.wrap(data, offset, length));
+		}
+		catch (IOException ex)
+		{
+			throw new HGException("Failed to write to " + getFile() + ": " + ex.toString(), ex);
+		}
+		return position;
+	}
+
+	public byte[] read(long position, int length)
+	{
+		byte[] data = new byte[length];
+		try
+		{
+			read(position, ByteBuffer.wrap(data));
+		}
+		catch (IOException ex)
+		{
+			throw new HGException("Failed to read from " + getFile() + ": " + ex.toString(), ex);
+		}
+		return data;
+	}
+
+	/**
+	 * <p>Release a region - it will be reused after the next checkpoint.</p>
+	 */
+	public void release(long position, int length)
+	{
+		released.add(new long[] { position, length });
+	}
+
+	/**
+	 * <p>Make the regions released before the checkpoint that was just completed reusable.</p>
+	 */
+	public void checkpointDone()
+	{
+		for (long[] region : released)
+			freeSpace.free(region[0], region[1]);
+		released.clear();
+	}
+
+	/**
+	 * <p>Cut off the unused space at the end of the file.</p>
+	 */
+	public void trim()
+	{
+		try
+		{
+			if (fch.size() > freeSpace.getEnd())
+				fch.truncate(freeSpace.getEnd());
+		}
+		catch (IOException ex)
+		{
+			throw new HGException("Failed to trim " + getFile() + ": " + ex.toString(), ex);
+		}
+	}
+}
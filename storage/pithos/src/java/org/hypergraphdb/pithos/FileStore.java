@@ -14,29 +14,65 @@ public class FileStore
 	protected PithosConfig config;
 	private File file = null;
 	private RandomAccessFile raf = null;
-	private FileChannel fch = null;
-	
+	protected FileChannel fch = null;
+
 	protected FileStore(File file, PithosConfig config)
 	{
 		this.file = file;
 		this.config = config;
 	}
-	
-	protected ByteBuffer read(long offset, int size) throws IOException
+
+	protected ByteBuffer map(long offset, int size) throws IOException
 	{
-		return fch.map(MapMode.READ_ONLY, offset, size);	
+		return fch.map(MapMode.READ_WRITE, offset, size);
 	}
-	
-	protected ByteBuffer write(long offset, int size) throws IOException
+
+	protected void read(long offset, ByteBuffer buf) throws IOException
 	{
-		return fch.map(MapMode.READ_WRITE, offset, size);
+		while (buf.hasRemaining())
+		{
+			int n = fch.read(buf, offset);
+			if (n < 0)
+				throw new IOException("Unexpected end of file " + file + " at " + offset);
+			offset += n;
+		}
+	}
+
+	protected void write(long offset, ByteBuffer buf) throws IOException
+	{
+		while (buf.hasRemaining())
+			offset += fch.write(buf, offset);
 	}
-	
+
 	public File getFile()
 	{
 		return file;
 	}
-	
+
+	public long size()
+	{
+		try
+		{
+			return fch.size();
+		}
+		catch (IOException ex)
+		{
+			throw new HGException(ex);
+		}
+	}
+
+	public void force()
+	{
+		try
+		{
+			fch.force(false);
+		}
+		catch (IOException ex)
+		{
+			throw new HGException("Failed to flush " + file + " to disk.", ex);
+		}
+	}
+
 	public void startup()
 	{
 		try
@@ -52,15 +88,15 @@ public class FileStore
 
 	public void shutdown()
 	{
-		try 
-		{ 
+		try
+		{
 			fch.close();
-			raf.close(); 
+			raf.close();
 		}
 		catch (Throwable t)
 		{
 			t.printStackTrace();
 		}
 	}
-	
+
 }
\ No newline at end of file
@@ -1,263 +1,146 @@
 package org.hypergraphdb.pithos;
 
-import java.io.File;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
-import java.nio.ByteBuffer;
-import org.hypergraphdb.HGException;
-
-public class FreeSpace extends FileStore
+/**
+ * <p>
+ * Keeps track of the unused regions of the data file. Space is handed out in multiples of
+ * {@link #ALIGNMENT} bytes: an allocation takes the smallest free region that is large
+ * enough, or grows the file when there's none, and freed regions are merged with their
+ * free neighbours.
+ * </p>
+ *
+ * <p>
+ * The free space map is not stored anywhere - at startup it is rebuilt from the regions
+ * referenced by the records, so it can never get out of sync with them, even after a crash.
+ * </p>
+ */
+public class FreeSpace
 {
-	private int newSpaceOffset = 0;
-	private int newBucketOffset = 8;
-	private int smallEntriesOffset = 16;
-	private int smallEntriesCount = 1024;		
-	private int hashTableSize = 1024;
-	private int hashTableOffset = smallEntriesOffset + 8*smallEntriesCount;
-	private ByteBuffer sizeMap = null;
-			
-	// We want each bucket to fit a page_size
-	private int bucketSize = config.getPageSize();
-			
-	private class SizeBucket
-	{
-		long position;
-		ByteBuffer buf;
-		SizeBucket(long position)  
-		{ 
-			try
-			{
-				this.position = position;
-				buf = write(position, bucketSize);
-			}
-			catch (Throwable t) { throw new HGException(t); }
-		}
-		int count() { return buf.getInt(0); }
-		void count(int n) { buf.putInt(0, n); }
-		int size() { return buf.getInt(4); }
-		void size(int n) { buf.putInt(4, n); }
-		int max() { return bucketSize / 8 - 3; }
-		void prev(long offset)
-		{
-			buf.putLong(8, offset);
-		}
-		SizeBucket prev()
-		{
-			long prevOffset = buf.getLong(8);
-			return prevOffset == 0 ? null : new SizeBucket(prevOffset);
-		}
-		long prevOffset()
-		{
-			return buf.getLong(8);
-		}
-		void next(long offset)
-		{
-			buf.putLong(16, offset);
-		}
-		SizeBucket next() 
-		{
-			long nextOffset = buf.getLong(16);
-			return nextOffset == 0 ? null : new SizeBucket(nextOffset);
-		}
-		long nextOffset()
-		{
-			return buf.getLong(16);
-		}
-		long get()
-		{
-			if (count() == 0)
-				throw new IllegalStateException("Bucket empty.");
-			buf.putInt(0, count() - 1);
-			long result = buf.getLong(24 + 8*count());
-			if (count() == 0)
-				freeBucket(this);
-			return result;
-		}
-		void put(long offset)
-		{
-			if (count() == max())
-				throw new IllegalStateException("Bucket full.");
-			buf.putLong(24 + 8*count(), offset);
-			buf.putInt(0, count() + 1);
-		}
-	}
-	
-	private void initializeFile()
+	public static final int ALIGNMENT = 16;
+
+	private long end = 0;
+	private long freeBytes = 0;
+	private TreeMap<Long, Long> byOffset = new TreeMap<Long, Long>();
+	private TreeMap<Long, TreeSet<Long>> bySize = new TreeMap<Long, TreeSet<Long>>();
+	private BitSet used = null;
+
+	public static long align(long size)
 	{
-		try
-		{
-			int totalmapsize = 1 + smallEntriesCount + hashTableSize;
-			sizeMap = write(0, 8*totalmapsize);
-			// I have no idea if a new mapped file is 0-initialized, a test
-			// show that it is, but the API docs are silent about this.
-			// So, to be on the safe side, a quick put to 0...
-			for (int i = 0; i < totalmapsize; i++ )
-				sizeMap.putLong(0);
-			sizeMap.putLong(newBucketOffset, 8*totalmapsize);
-		}
-		catch (Throwable t)
-		{
-			throw new HGException(t);
-		}
+		return (size + ALIGNMENT - 1) & ~(long)(ALIGNMENT - 1);
 	}
-	
-	private int sizeIndex(int size)
+
+	private void addFree(long offset, long size)
 	{
-		return size <= smallEntriesCount ? smallEntriesOffset + size 
-										 : hashTableOffset + size % hashTableSize;
-				
+		byOffset.put(offset, size);
+		TreeSet<Long> offsets = bySize.get(size);
+		if (offsets == null)
+			bySize.put(size, offsets = new TreeSet<Long>());
+		offsets.add(offset);
+		freeBytes += size;
 	}
-	private SizeBucket findSizeBucket(int desiredSize)
+
+	private void removeFree(long offset, long size)
 	{
-		long position = sizeMap.getLong(sizeIndex(desiredSize));
-		return position == 0 ? null : new SizeBucket(position);
+		byOffset.remove(offset);
+		TreeSet<Long> offsets = bySize.get(size);
+		offsets.remove(offset);
+		if (offsets.isEmpty())
+			bySize.remove(size);
+		freeBytes -= size;
 	}
-	
-	private long reserveNew(int size)
+
+	/**
+	 * <p>Start rebuilding the free space map - all space is considered free until marked used.</p>
+	 */
+	public void beginRebuild()
 	{
-		// if no available block, we allocate at the end of the file
-		// as indicated by the offset at sizeMap[0];
-		long result = sizeMap.getLong(newSpaceOffset);
-		sizeMap.putLong(newSpaceOffset, result + size);
-		return result;		
+		used = new BitSet();
 	}
-	
-	private SizeBucket newBucket(int size)
+
+	/**
+	 * <p>Mark a region referenced by a record as used, while rebuilding.</p>
+	 */
+	public void markUsed(long offset, long size)
 	{
-		long offset = sizeMap.getLong(newBucketOffset);
-		SizeBucket bucket = new SizeBucket(offset);
-		bucket.count(0);
-		bucket.size(size);
-		bucket.prev(0);
-		bucket.next(0);
-		sizeMap.putLong(newBucketOffset, offset + bucketSize);
-		return bucket;
+		if (size > 0)
+			used.set((int)(offset / ALIGNMENT), (int)((offset + align(size)) / ALIGNMENT));
 	}
-	
-	private void freeBucket(SizeBucket bucket)
+
+	/**
+	 * <p>Turn all regions not marked as used into free space.</p>
+	 */
+	public void endRebuild()
 	{
-		// First, we need to unlink from the list.
-		if (bucket.prevOffset() != 0)
-			bucket.prev().next(bucket.nextOffset());
-		else
-			sizeMap.putLong(sizeIndex(bucket.size()), bucket.nextOffset());
-		if (bucket.nextOffset() != 0)
-			bucket.next().prev(bucket.prevOffset());
-		// Next, if this is not the last bucket block in the file, we want to swap
-		// the last into it so as to reclaim that space
-		long lastBucketPosition = sizeMap.getLong(newBucketOffset) - bucketSize;
-		if (lastBucketPosition != bucket.position)
+		byOffset.clear();
+		bySize.clear();
+		freeBytes = 0;
+		end = (long)used.length() * ALIGNMENT;
+		for (int i = used.nextClearBit(0); i < used.length(); )
 		{
-			byte [] data = new byte[bucketSize];
-			try
-			{
-				read(lastBucketPosition, bucketSize).get(data);
-				write(bucket.position, bucketSize).put(data);
-			}
-			catch (Throwable t)
-			{
-				throw new HGException(t);
-			}
+			int j = used.nextSetBit(i);
+			addFree((long)i * ALIGNMENT, (long)(j - i) * ALIGNMENT);
+			i = used.nextClearBit(j);
 		}
-		sizeMap.putLong(newBucketOffset, lastBucketPosition); 
-	}
-	
-	public FreeSpace(File file, PithosConfig config)
-	{
-		super(file, config);
+		used = null;
 	}
-	
-	public void startup()
+
+	public long allocate(long size)
 	{
-		boolean isnew = !getFile().exists();
-		super.startup();
-		if (isnew)
-			initializeFile();
-		else
+		size = align(size);
+		Map.Entry<Long, TreeSet<Long>> e = bySize.ceilingEntry(size);
+		if (e == null)
 		{
-			int totalmapsize = 1 + smallEntriesCount + hashTableSize;
-			try
-			{
-				sizeMap = write(0, 8*totalmapsize);
-			}
-			catch (Throwable t)
-			{
-				throw new HGException(t);
-			}
+			long offset = end;
+			end += size;
+			return offset;
 		}
+		long available = e.getKey();
+		long offset = e.getValue().first();
+		removeFree(offset, available);
+		if (available > size)
+			addFree(offset + size, available - size);
+		return offset;
 	}
-	
-	public void shutdown()
-	{
-		super.shutdown();
-	}
-	
-	public long findAvailable(int size)
-	{
-		for (SizeBucket bucket = findSizeBucket(size); bucket != null; bucket = bucket.next())
-			if (bucket.size() == size && bucket.count() > 0)
-				return bucket.get();
-		return -1;
-	}
-	
-	public long reserve(int size)
-	{
-		long result = findAvailable(size);
-		if (result > -1)
-			return result;
-		else
-			return reserveNew(size);
-	}
-	
-	public void free(long position, int size)
+
+	public void free(long offset, long size)
 	{
-		SizeBucket bucket = findSizeBucket(size);
-		if (bucket == null)
+		size = align(size);
+		Map.Entry<Long, Long> before = byOffset.lowerEntry(offset);
+		if (before != null && before.getKey() + before.getValue() == offset)
 		{
-			// create a new bucket with that size and put it as the first element of 
-			// bucket list for that size
-			bucket = newBucket(size);
-			sizeMap.putLong(sizeIndex(size), bucket.position);
+			removeFree(before.getKey(), before.getValue());
+			offset = before.getKey();
+			size += before.getValue();
 		}
-		else if (bucket.count() == bucket.max())
+		Long after = byOffset.get(offset + size);
+		if (after != null)
 		{
-			SizeBucket newb = newBucket(size);
-			newb.prev(bucket.position);
-			newb.next(bucket.nextOffset());
-			bucket.next(newb.position);
-			bucket = newb;
+			removeFree(offset + size, after);
+			size += after;
 		}
-		bucket.put(position);
+		if (offset + size == end)
+			end = offset;
+		else
+			addFree(offset, size);
 	}
 
-	void test1() throws Exception
+	/**
+	 * <p>Return the offset at which the used part of the file ends.</p>
+	 */
+	public long getEnd()
 	{
-		write(0, 100).putDouble(3.14);
+		return end;
 	}
-	
-	void test2() throws Exception
-	{
-		System.out.println(read(0, 100).getDouble());
-	}
-	
-	public static void main(String [] argv)
+
+	/**
+	 * <p>Return the total number of free bytes below {@link #getEnd()}.</p>
+	 */
+	public long getFreeBytes()
 	{
-		FreeSpace fs = new FreeSpace(new File("/home/borislav/tmp/freespacetest"), new PithosConfig());
-		fs.startup();
-		try
-		{
-			long p = fs.reserve(50);
-			long p2 = fs.reserve(1000);
-			long p3 = fs.reserve(1000);
-			System.out.println("" + p +"," + p2 + "," + p3);
-			fs.free(p, 50);
-		}
-		catch (Throwable t)
-		{
-			t.printStackTrace();
-		}
-		finally
-		{
-			fs.shutdown();
-		}
+		return freeBytes;
 	}
 }
\ No newline at end of file
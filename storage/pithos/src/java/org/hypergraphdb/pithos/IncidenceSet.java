@@ -0,0 +1,286 @@
+package org.hypergraphdb.pithos;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * The incidence set of an atom, split into pages of at most
+ * <code>pageSize / handleSize</code> sorted handles. Pages are stored in the {@link DataStore}
+ * and the record of the set in the incidence {@link LinkStore} is only its page directory -
+ * the position, size and first handle of each page - so a change rewrites a single page.
+ * A full page is split in two and an empty page is dropped.
+ * </p>
+ *
+ * <p>
+ * Pages are loaded when first modified. Modifications happen under the store's write lock
+ * and {@link #flush()} during a checkpoint, and since neither touches the content of a
+ * loaded page, readers can go through a set without locking.
+ * </p>
+ */
+final class IncidenceSet
+{
+	private static final class Page
+	{
+		long offset = -1;
+		int diskCount;
+		int count;
+		byte[] first;
+		byte[] data;
+		boolean dirty;
+	}
+
+	private final DataStore store;
+	private final int handleSize, maxCount;
+	private final ArrayList<Page> pages = new ArrayList<Page>();
+
+	IncidenceSet(DataStore store, int handleSize, int pageSize)
+	{
+		this.store = store;
+		this.handleSize = handleSize;
+		this.maxCount = Math.max(2, pageSize / handleSize);
+	}
+
+	static IncidenceSet decode(byte[] directory, DataStore store, int handleSize, int pageSize)
+	{
+		IncidenceSet set = new IncidenceSet(store, handleSize, pageSize);
+		ByteBuffer buf = ByteBuffer.wrap(directory);
+		int n = buf.getInt();
+		for (int i = 0; i < n; i++)
+		{
+			Page p = new Page();
+			p.offset = buf.getLong();
+			p.count = p.diskCount = buf.getInt();
+			p.first = new byte[handleSize];
+			buf.get(p.first);
+			set.pages.add(p);
+		}
+		return set;
+	}
+
+	/**
+	 * <p>Mark the pages of a stored set as used, while rebuilding the free space map.</p>
+	 */
+	static void markUsed(byte[] directory, FreeSpace freeSpace, int handleSize)
+	{
+		ByteBuffer buf = ByteBuffer.wrap(directory);
+		int n = buf.getInt();
+		for (int i = 0; i < n; i++)
+		{
+			long offset = buf.getLong();
+			int count = buf.getInt();
+			buf.position(buf.position() + handleSize);
+			freeSpace.markUsed(offset, (long)count * handleSize);
+		}
+	}
+
+	static long count(byte[] directory, int handleSize)
+	{
+		ByteBuffer buf = ByteBuffer.wrap(directory);
+		int n = buf.getInt();
+		long count = 0;
+		for (int i = 0; i < n; i++)
+		{
+			buf.getLong();
+			count += buf.getInt();
+			buf.position(buf.position() + handleSize);
+		}
+		return count;
+	}
+
+	/**
+	 * <p>Return the page directory - only valid after a {@link #flush()}.</p>
+	 */
+	byte[] directory()
+	{
+		ByteBuffer buf = ByteBuffer.allocate(4 + pages.size() * (12 + handleSize));
+		buf.putInt(pages.size());
+		for (Page p : pages)
+			buf.putLong(p.offset).putInt(p.count).put(p.first);
+		return buf.array();
+	}
+
+	boolean isEmpty()
+	{
+		return pages.isEmpty();
+	}
+
+	long count()
+	{
+		long count = 0;
+		for (Page p : pages)
+			count += p.count;
+		return count;
+	}
+
+	private byte[] content(Page p)
+	{
+		byte[] data = p.data;
+		return data != null ? data : store.read(p.offset, p.count * handleSize);
+	}
+
+	private void load(Page p)
+	{
+		if (p.data == null)
+			p.data = store.read(p.offset, p.count * handleSize);
+	}
+
+	// the page that would contain the handle: the last one starting at or before it
+	private int pageOf(byte[] h)
+	{
+		int lo = 1, hi = pages.size() - 1, result = 0;
+		while (lo <= hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if (Bytes.compare(pages.get(mid).first, 0, handleSize, h, 0, handleSize) <= 0)
+			{
+				result = mid;
+				lo = mid + 1;
+			}
+			else
+				hi = mid - 1;
+		}
+		return result;
+	}
+
+	private int search(byte[] data, int count, byte[] h)
+	{
+		int lo = 0, hi = count - 1;
+		while (lo <= hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			int c = Bytes.compare(data, mid * handleSize, handleSize, h, 0, handleSize);
+			if (c < 0)
+				lo = mid + 1;
+			else if (c > 0)
+				hi = mid - 1;
+			else
+				return mid;
+		}
+		return -(lo + 1);
+	}
+
+	boolean contains(byte[] h)
+	{
+		if (pages.isEmpty())
+			return false;
+		Page p = pages.get(pageOf(h));
+		return search(content(p), p.count, h) >= 0;
+	}
+
+	boolean add(byte[] h)
+	{
+		if (pages.isEmpty())
+		{
+			Page p = new Page();
+			p.data = Arrays.copyOf(h, handleSize * 4);
+			p.count = 1;
+			p.first = h.clone();
+			p.dirty = true;
+			pages.add(p);
+			return true;
+		}
+		int i = pageOf(h);
+		Page p = pages.get(i);
+		load(p);
+		int pos = search(p.data, p.count, h);
+		if (pos >= 0)
+			return false;
+		pos = -pos - 1;
+		if ((p.count + 1) * handleSize > p.data.length)
+			p.data = Arrays.copyOf(p.data, Math.max(p.count + 1, Math.min(p.count * 2, maxCount + 1)) * handleSize);
+		System.arraycopy(p.data, pos * handleSize, p.data, (pos + 1) * handleSize, (p.count - pos) * handleSize);
+		System.arraycopy(h, 0, p.data, pos * handleSize, handleSize);
+		p.count++;
+		p.dirty = true;
+		if (pos == 0)
+			p.first = h.clone();
+		if (p.count > maxCount)
+			split(i);
+		return true;
+	}
+
+	private void split(int i)
+	{
+		Page p = pages.get(i);
+		int half = p.count / 2;
+		Page q = new Page();
+		q.count = p.count - half;
+		q.data = Arrays.copyOfRange(p.data, half * handleSize, (half + q.count) * handleSize);
+		q.first = Arrays.copyOf(q.data, handleSize);
+		q.dirty = true;
+		p.data = Arrays.copyOf(p.data, half * handleSize);
+		p.count = half;
+		pages.add(i + 1, q);
+	}
+
+	boolean remove(byte[] h)
+	{
+		if (pages.isEmpty())
+			return false;
+		int i = pageOf(h);
+		Page p = pages.get(i);
+		load(p);
+		int pos = search(p.data, p.count, h);
+		if (pos < 0)
+			return false;
+		System.arraycopy(p.data, (pos + 1) * handleSize, p.data, pos * handleSize, (p.count - pos - 1) * handleSize);
+		p.count--;
+		p.dirty = true;
+		if (p.count == 0)
+		{
+			release(p);
+			pages.remove(i);
+		}
+		else if (pos == 0)
+			p.first = Arrays.copyOf(p.data, handleSize);
+		return true;
+	}
+
+	void clear()
+	{
+		for (Page p : pages)
+			release(p);
+		pages.clear();
+	}
+
+	private void release(Page p)
+	{
+		if (p.offset >= 0)
+			store.release(p.offset, p.diskCount * handleSize);
+		p.offset = -1;
+	}
+
+	/**
+	 * <p>Return the handles in the set, in order.</p>
+	 */
+	byte[][] toArray()
+	{
+		byte[][] result = new byte[(int)count()][];
+		int n = 0;
+		for (Page p : pages)
+		{
+			byte[] data = content(p);
+			for (int i = 0; i < p.count; i++)
+				result[n++] = Arrays.copyOfRange(data, i * handleSize, (i + 1) * handleSize);
+		}
+		return result;
+	}
+
+	/**
+	 * <p>Write the modified pages to new regions of the data file.</p>
+	 */
+	void flush()
+	{
+		for (Page p : pages)
+			if (p.dirty)
+			{
+				long offset = store.write(p.data, 0, p.count * handleSize);
+				release(p);
+				p.offset = offset;
+				p.diskCount = p.count;
+				p.dirty = false;
+			}
+	}
+}
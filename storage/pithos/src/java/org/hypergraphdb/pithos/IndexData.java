@@ -0,0 +1,169 @@
+package org.hypergraphdb.pithos;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.hypergraphdb.HGException;
+
+/**
+ * <p>
+ * The committed content of an index, kept in memory and written to a file of its own at a
+ * checkpoint when it has changed. Entries are ordered with the comparators the index was
+ * opened with, or in the default byte order before it's opened. A bidirectional index also
+ * maps values to keys.
+ * </p>
+ */
+final class IndexData
+{
+	final String name;
+	Comparator<byte[]> keyComparator = Bytes.COMPARATOR;
+	Comparator<byte[]> valueComparator = Bytes.COMPARATOR;
+	TreeMap<byte[], TreeSet<byte[]>> entries = new TreeMap<byte[], TreeSet<byte[]>>(Bytes.COMPARATOR);
+	TreeMap<byte[], TreeSet<byte[]>> byValue = null;
+	long entryCount = 0;
+	// undo records of the entries of a key, see Versions
+	TreeMap<byte[], Versions.Undo> undo = new TreeMap<byte[], Versions.Undo>(Bytes.COMPARATOR);
+	// changed since the last checkpoint
+	boolean dirty = true;
+	// the file id of the last written content, -1 if none
+	long file = -1;
+
+	IndexData(String name)
+	{
+		this.name = name;
+	}
+
+	/**
+	 * <p>Re-order the entries if the index is opened with different comparators.</p>
+	 */
+	void configure(Comparator<byte[]> keyComparator, Comparator<byte[]> valueComparator, boolean bidirectional)
+	{
+		keyComparator = Bytes.orDefault(keyComparator);
+		valueComparator = Bytes.orDefault(valueComparator);
+		if (keyComparator != this.keyComparator || valueComparator != this.valueComparator)
+		{
+			TreeMap<byte[], TreeSet<byte[]>> old = entries;
+			this.keyComparator = keyComparator;
+			this.valueComparator = valueComparator;
+			entries = new TreeMap<byte[], TreeSet<byte[]>>(keyComparator);
+			entryCount = 0;
+			for (Map.Entry<byte[], TreeSet<byte[]>> e : old.entrySet())
+				for (byte[] value : e.getValue())
+					add(e.getKey(), value);
+			TreeMap<byte[], Versions.Undo> oldUndo = undo;
+			undo = new TreeMap<byte[], Versions.Undo>(keyComparator);
+			undo.putAll(oldUndo);
+			byValue = null;
+		}
+		if (bidirectional && byValue == null)
+		{
+			byValue = new TreeMap<byte[], TreeSet<byte[]>>(valueComparator);
+			for (Map.Entry<byte[], TreeSet<byte[]>> e : entries.entrySet())
+				for (byte[] value : e.getValue())
+					link(byValue, value, e.getKey(), keyComparator);
+		}
+	}
+
+	private static void link(TreeMap<byte[], TreeSet<byte[]>> map, byte[] from, byte[] to, Comparator<byte[]> comparator)
+	{
+		TreeSet<byte[]> set = map.get(from);
+		if (set == null)
+			map.put(from, set = new TreeSet<byte[]>(comparator));
+		set.add(to);
+	}
+
+	private static void unlink(TreeMap<byte[], TreeSet<byte[]>> map, byte[] from, byte[] to)
+	{
+		TreeSet<byte[]> set = map.get(from);
+		if (set != null && set.remove(to) && set.isEmpty())
+			map.remove(from);
+	}
+
+	boolean contains(byte[] key, byte[] value)
+	{
+		TreeSet<byte[]> values = entries.get(key);
+		return values != null && values.contains(value);
+	}
+
+	boolean add(byte[] key, byte[] value)
+	{
+		TreeSet<byte[]> values = entries.get(key);
+		if (values == null)
+			entries.put(key, values = new TreeSet<byte[]>(valueComparator));
+		if (!values.add(value))
+			return false;
+		entryCount++;
+		if (byValue != null)
+			link(byValue, value, key, keyComparator);
+		dirty = true;
+		return true;
+	}
+
+	boolean remove(byte[] key, byte[] value)
+	{
+		TreeSet<byte[]> values = entries.get(key);
+		if (values == null || !values.remove(value))
+			return false;
+		if (values.isEmpty())
+			entries.remove(key);
+		entryCount--;
+		if (byValue != null)
+			unlink(byValue, value, key);
+		dirty = true;
+		return true;
+	}
+
+	void write(File file) throws IOException
+	{
+		try (FileOutputStream fout = new FileOutputStream(file);
+			 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fout, 64 * 1024)))
+		{
+			out.writeInt(entries.size());
+			for (Map.Entry<byte[], TreeSet<byte[]>> e : entries.entrySet())
+			{
+				out.writeInt(e.getKey().length);
+				out.write(e.getKey());
+				out.writeInt(e.getValue().size());
+				for (byte[] value : e.getValue())
+				{
+					out.writeInt(value.length);
+					out.write(value);
+				}
+			}
+			out.flush();
+			fout.getFD().sync();
+		}
+	}
+
+	void read(File file)
+	{
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024)))
+		{
+			for (int keys = in.readInt(); keys > 0; keys--)
+			{
+				byte[] key = new byte[in.readInt()];
+				in.readFully(key);
+				for (int values = in.readInt(); values > 0; values--)
+				{
+					byte[] value = new byte[in.readInt()];
+					in.readFully(value);
+					add(key, value);
+				}
+			}
+		}
+		catch (IOException ex)
+		{
+			throw new HGException("Failed to load index " + name + " from " + file + ": " + ex.toString(), ex);
+		}
+	}
+}
@@ -1,118 +1,263 @@
 package org.hypergraphdb.pithos;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.hypergraphdb.HGException;
+import org.hypergraphdb.HGHandleFactory;
+import org.hypergraphdb.HGPersistentHandle;
 
+/**
+ * <p>
+ * A table of fixed size record slots, memory mapped in segments of
+ * {@link PithosConfig#getSegmentSlots()} slots. A slot holds a state word, the handle of
+ * the record, the length of its payload and either the payload itself, when it's small
+ * enough, or the position of the payload in the {@link DataStore}. Slot 0 is a header
+ * recording the layout of the table.
+ * </p>
+ *
+ * <p>
+ * Records are found through an in-memory directory from handle to slot that is rebuilt by
+ * scanning the table at startup, so any handle factory can be used. Slots are only written
+ * during a checkpoint, by a single thread, while any number of threads read.
+ * </p>
+ */
 public class LinkStore extends FileStore
 {
-	private FreeSpace freeSpace = null;
-	
-	public LinkStore(File file, PithosConfig config)
+	private static final int MAGIC = 0x50544853;
+	private static final int FREE = 0;
+	private static final int USED = 1;
+
+	private final HGHandleFactory handleFactory;
+	private final DataStore data;
+	private final int handleSize, slotSize, segmentSlots;
+	private final int lengthOffset, payloadOffset, inlineSize;
+	private volatile ByteBuffer[] segments = new ByteBuffer[0];
+	private final ConcurrentHashMap<HGPersistentHandle, Integer> directory = new ConcurrentHashMap<HGPersistentHandle, Integer>();
+	private int[] freeSlots = new int[16];
+	private int freeCount = 0;
+
+	public LinkStore(File file, PithosConfig config, HGHandleFactory handleFactory, DataStore data)
 	{
 		super(file, config);
+		this.handleFactory = handleFactory;
+		this.data = data;
+		this.handleSize = handleFactory.nullHandle().toByteArray().length;
+		this.slotSize = config.getSlotSize();
+		this.segmentSlots = config.getSegmentSlots();
+		this.lengthOffset = 4 + handleSize;
+		this.payloadOffset = lengthOffset + 4;
+		this.inlineSize = slotSize - payloadOffset;
+		if (inlineSize < 8)
+			throw new HGException("Pithos slot size " + slotSize + " is too small for handles of " + handleSize + " bytes.");
+	}
+
+	private ByteBuffer segment(int slot)
+	{
+		return segments[slot / segmentSlots];
+	}
+
+	private int base(int slot)
+	{
+		return (slot % segmentSlots) * slotSize;
 	}
-	
+
+	private void grow() throws IOException
+	{
+		ByteBuffer[] current = segments;
+		ByteBuffer[] grown = Arrays.copyOf(current, current.length + 1);
+		grown[current.length] = map((long)current.length * segmentSlots * slotSize, segmentSlots * slotSize);
+		segments = grown;
+	}
+
 	public void startup()
 	{
 		super.startup();
-		freeSpace = new FreeSpace(new File(getFile().getAbsolutePath() + ".free"), config);
-	}
-		
-	public void writeLink(UPHandle handle, UPHandle [] link)
-	{		
 		try
 		{
-			ByteBuffer buf = null;
-			long position = -1;
-			if (link.length > 2)
-			{
-				int minBlockSize = (link.length  - 2) * config.getHandleSize();
-				position = freeSpace.reserve(minBlockSize);				
-				buf = write(position, minBlockSize);
-				for (int i = 2; i < link.length; i++)
-				{
-					buf.putLong(link[i].getGlobal());
-					buf.putLong(link[i].getLocal());					
-				}
-			}
-			buf = write(handle.getLocal(),					   	  
-					   	  4 + config.getHandleSize()*2 + config.getPointerSize());
-			buf.putInt(link.length);
-			if (link.length > 0)
+			long segmentBytes = (long)segmentSlots * slotSize;
+			long size = fch.size();
+			if (size == 0)
 			{
-				buf.putLong(link[0].getGlobal()).putLong(link[0].getLocal());
-				if (link.length > 1)
-					buf.putLong(link[1].getGlobal()).putLong(link[1].getLocal());
-			}
-			if (link.length > 0)
-			{
-				buf.putLong(position);
+				grow();
+				ByteBuffer header = segments[0];
+				header.putInt(0, MAGIC);
+				header.putInt(4, slotSize);
+				header.putInt(8, handleSize);
+				header.putInt(12, segmentSlots);
+				return;
 			}
+			ByteBuffer header = map(0, 16);
+			if (header.getInt(0) != MAGIC)
+				throw new HGException("File " + getFile() + " is not a Pithos record file.");
+			if (header.getInt(4) != slotSize || header.getInt(8) != handleSize || header.getInt(12) != segmentSlots)
+				throw new HGException("File " + getFile() + " was created with slots of " + header.getInt(4) +
+						" bytes, handles of " + header.getInt(8) + " bytes and segments of " + header.getInt(12) +
+						" slots, which doesn't match the current configuration.");
+			while ((long)segments.length * segmentBytes < size)
+				grow();
 		}
-		catch (Exception ex)
+		catch (IOException ex)
 		{
-			throw new HGException(ex);
+			throw new HGException("Failed to open " + getFile() + ": " + ex.toString(), ex);
 		}
 	}
-	
-	public void removeLink(UPHandle handle)
-	{
-		// TODO...
-	}
-	
-	public UPHandle [] readLink(UPHandle handle)
+
+	/**
+	 * <p>
+	 * Rebuild the directory from the table and mark the regions of the data file the records
+	 * refer to as used.
+	 * </p>
+	 */
+	public void scan(FreeSpace freeSpace)
 	{
-		try
+		directory.clear();
+		freeCount = 0;
+		byte[] handle = new byte[handleSize];
+		int total = segments.length * segmentSlots;
+		for (int slot = total - 1; slot > 0; slot--)
 		{
-			ByteBuffer buf = null;
-			buf = read(4 + handle.getLocal(), config.getHandleSize()*2 + config.getPointerSize());
-			int size = buf.getInt();
-			UPHandle [] result = new UPHandle[size];
-			if (size > 0)
-			{
-				result[0] = new UPHandle(buf.getLong(), buf.getLong());
-				if (size > 1)
-					result[1] = new UPHandle(buf.getLong(), buf.getLong()); 
-			}
-			if (size > 2)
+			ByteBuffer seg = segment(slot);
+			int base = base(slot);
+			if (seg.getInt(base) != USED)
 			{
-				long position = buf.getLong();
-				buf = read(position, (size - 2) * config.getHandleSize());
-				for (int i = 2; i < size; i++)
-					result[i] = new UPHandle(buf.getLong(), buf.getLong());
+				pushFree(slot);
+				continue;
 			}
-			return result;
+			for (int i = 0; i < handleSize; i++)
+				handle[i] = seg.get(base + 4 + i);
+			HGPersistentHandle h = handleFactory.makeHandle(handle);
+			if (directory.putIfAbsent(h, slot) != null)
+				throw new HGException("Duplicate record for " + h + " in " + getFile());
+			int length = seg.getInt(base + lengthOffset);
+			if (length > inlineSize)
+				freeSpace.markUsed(seg.getLong(base + payloadOffset), length);
 		}
-		catch (Exception ex)
+	}
+
+	private void pushFree(int slot)
+	{
+		if (freeCount == freeSlots.length)
+			freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+		freeSlots[freeCount++] = slot;
+	}
+
+	private int allocateSlot() throws IOException
+	{
+		if (freeCount == 0)
 		{
-			throw new HGException(ex);
+			int first = segments.length * segmentSlots;
+			grow();
+			for (int slot = first + segmentSlots - 1; slot >= first; slot--)
+				pushFree(slot);
 		}
+		return freeSlots[--freeCount];
 	}
-	
-	public void shutdown()
+
+	private void releasePayload(ByteBuffer seg, int base)
 	{
-		freeSpace.shutdown();		
-		super.shutdown();
+		int length = seg.getInt(base + lengthOffset);
+		if (length > inlineSize)
+			data.release(seg.getLong(base + payloadOffset), length);
+	}
+
+	public int getHandleSize()
+	{
+		return handleSize;
+	}
+
+	public boolean contains(HGPersistentHandle handle)
+	{
+		return directory.containsKey(handle);
 	}
-	
-	public static void main(String [] argv)
+
+	public int count()
+	{
+		return directory.size();
+	}
+
+	public Set<HGPersistentHandle> handles()
+	{
+		return directory.keySet();
+	}
+
+	/**
+	 * <p>Return the payload of a record or <code>null</code> if there's no such record.</p>
+	 */
+	public byte[] read(HGPersistentHandle handle)
+	{
+		Integer slot = directory.get(handle);
+		if (slot == null)
+			return null;
+		ByteBuffer seg = segment(slot);
+		int base = base(slot);
+		int length = seg.getInt(base + lengthOffset);
+		if (length > inlineSize)
+			return data.read(seg.getLong(base + payloadOffset), length);
+		byte[] payload = new byte[length];
+		ByteBuffer view = seg.duplicate();
+		view.position(base + payloadOffset);
+		view.get(payload);
+		return payload;
+	}
+
+	public void write(HGPersistentHandle handle, byte[] payload)
 	{
-		PithosHandleFactory hfactory = new PithosHandleFactory();
-		LinkStore store = new LinkStore(new File("/tmp/linkstore"), new PithosConfig());
-		store.startup();
 		try
 		{
-			UPHandle [] A = new UPHandle[2];
-			A[0] = hfactory.makeHandle();
-			A[1] = hfactory.makeHandle();
-			store.writeLink(hfactory.makeHandle(), A);
+			Integer existing = directory.get(handle);
+			int slot = existing == null ? allocateSlot() : existing;
+			ByteBuffer seg = segment(slot);
+			int base = base(slot);
+			if (existing != null)
+				releasePayload(seg, base);
+			if (payload.length > inlineSize)
+				seg.putLong(base + payloadOffset, data.write(payload, 0, payload.length));
+			else
+				for (int i = 0; i < payload.length; i++)
+					seg.put(base + payloadOffset + i, payload[i]);
+			seg.putInt(base + lengthOffset, payload.length);
+			byte[] h = handle.toByteArray();
+			for (int i = 0; i < handleSize; i++)
+				seg.put(base + 4 + i, h[i]);
+			seg.putInt(base, USED);
+			if (existing == null)
+				directory.put(handle, slot);
 		}
-		catch (Throwable t)
+		catch (IOException ex)
 		{
-			t.printStackTrace();
-			store.shutdown();
+			throw new HGException("Failed to write record " + handle + " to " + getFile() + ": " + ex.toString(), ex);
 		}
 	}
-}
\ No newline at end of file
+
+	public void remove(HGPersistentHandle handle)
+	{
+		Integer slot = directory.remove(handle);
+		if (slot == null)
+			return;
+		ByteBuffer seg = segment(slot);
+		int base = base(slot);
+		releasePayload(seg, base);
+		seg.putInt(base, FREE);
+		pushFree(slot);
+	}
+
+	public void force()
+	{
+		for (ByteBuffer seg : segments)
+			((MappedByteBuffer)seg).force();
+	}
+
+	public void shutdown()
+	{
+		force();
+		segments = new ByteBuffer[0];
+		directory.clear();
+		super.shutdown();
+	}
+}
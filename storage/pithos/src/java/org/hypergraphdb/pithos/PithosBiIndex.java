@@ -0,0 +1,47 @@
+package org.hypergraphdb.pithos;
+
+import org.hypergraphdb.HGBidirectionalIndex;
+import org.hypergraphdb.HGRandomAccessResult;
+import org.hypergraphdb.HGSearchResult;
+import org.hypergraphdb.storage.ByteArrayConverter;
+
+/**
+ * <p>
+ * A {@link PithosIndex} that can also be searched by value.
+ * </p>
+ */
+public class PithosBiIndex<KeyType, ValueType> extends PithosIndex<KeyType, ValueType>
+											   implements HGBidirectionalIndex<KeyType, ValueType>
+{
+	PithosBiIndex(String name,
+				  PithosStore store,
+				  IndexData data,
+				  ByteArrayConverter<KeyType> keyConverter,
+				  ByteArrayConverter<ValueType> valueConverter)
+	{
+		super(name, store, data, keyConverter, valueConverter);
+	}
+
+	@SuppressWarnings("unchecked")
+	public HGRandomAccessResult<KeyType> findByValue(ValueType value)
+	{
+		checkOpen();
+		byte[][] keys = store.indexKeysOf(data, valueConverter.toByteArray(value));
+		if (keys.length == 0)
+			return (HGRandomAccessResult<KeyType>)HGSearchResult.EMPTY;
+		return new ArrayResultSet<KeyType>(keys, keyConverter, data.keyComparator);
+	}
+
+	public KeyType findFirstByValue(ValueType value)
+	{
+		checkOpen();
+		byte[][] keys = store.indexKeysOf(data, valueConverter.toByteArray(value));
+		return keys.length == 0 ? null : keyConverter.fromByteArray(keys[0], 0, keys[0].length);
+	}
+
+	public long countKeys(ValueType value)
+	{
+		checkOpen();
+		return store.indexKeysOf(data, valueConverter.toByteArray(value)).length;
+	}
+}
@@ -2,25 +2,91 @@ package org.hypergraphdb.pithos;
 
 public class PithosConfig
 {
+	public static final int DEFAULT_PAGE_SIZE = 4096;
+	public static final int DEFAULT_SLOT_SIZE = 64;
+	public static final int DEFAULT_SEGMENT_SLOTS = 64 * 1024;
+	public static final long DEFAULT_CHECKPOINT_BYTES = 32 * 1024 * 1024;
+
 	// Whether memory buffers should be written to disk as soon
 	// new data is written to them
 	private boolean forceWrite;
+	private int pageSize = DEFAULT_PAGE_SIZE;
+	private int slotSize = DEFAULT_SLOT_SIZE;
+	private int segmentSlots = DEFAULT_SEGMENT_SLOTS;
+	private long checkpointBytes = DEFAULT_CHECKPOINT_BYTES;
 
-	public int getHandleSize()
+	/**
+	 * <p>
+	 * The maximum size in bytes of a page of an incidence set. A page holds
+	 * <code>pageSize / handleSize</code> handles.
+	 * </p>
+	 */
+	public int getPageSize()
 	{
-		return 16;
+		return pageSize;
 	}
-	
-	public int getPageSize()
+
+	public void setPageSize(int pageSize)
+	{
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * <p>
+	 * The size in bytes of a record slot. Records that fit in a slot, along with their
+	 * handle and a small header, are stored inline, larger ones are stored in the data
+	 * file and the slot points to them. The size of a slot can't be changed once a
+	 * database is created.
+	 * </p>
+	 */
+	public int getSlotSize()
+	{
+		return slotSize;
+	}
+
+	public void setSlotSize(int slotSize)
+	{
+		this.slotSize = slotSize;
+	}
+
+	/**
+	 * <p>
+	 * The number of slots the record files grow by - each such segment is memory mapped
+	 * separately.
+	 * </p>
+	 */
+	public int getSegmentSlots()
+	{
+		return segmentSlots;
+	}
+
+	public void setSegmentSlots(int segmentSlots)
 	{
-		return 4096;
+		this.segmentSlots = segmentSlots;
 	}
-	
-	public int getPointerSize()
+
+	/**
+	 * <p>
+	 * The size the commit log can grow to before the changes it holds are written to the
+	 * record files and the log is truncated.
+	 * </p>
+	 */
+	public long getCheckpointBytes()
 	{
-		return 8;
+		return checkpointBytes;
 	}
-	
+
+	public void setCheckpointBytes(long checkpointBytes)
+	{
+		this.checkpointBytes = checkpointBytes;
+	}
+
+	/**
+	 * <p>
+	 * Whether commits that don't specify a durability are flushed to disk (when
+	 * <code>true</code>) or only written to the file system (the default).
+	 * </p>
+	 */
 	public boolean isForceWrite()
 	{
 		return forceWrite;
@@ -29,5 +95,5 @@ public class PithosConfig
 	public void setForceWrite(boolean forceWrite)
 	{
 		this.forceWrite = forceWrite;
-	}	
+	}
 }
\ No newline at end of file
@@ -3,16 +3,46 @@ package org.hypergraphdb.pithos;
 import java.util.UUID;
 
 import org.hypergraphdb.HGHandleFactory;
-import org.hypergraphdb.HGPersistentHandle;
-
 
+/**
+ * <p>
+ * Creates {@link UPHandle}s. The global part of new handles identifies the database and the
+ * local part is a sequence number. When used with a {@link PithosStore}, the store assigns
+ * the global part at startup and the sequence is reserved in blocks recorded by the store,
+ * so that no local number is ever issued twice, even after a crash.
+ * </p>
+ */
 public class PithosHandleFactory implements HGHandleFactory
 {
 	private long global = 1;
 	private long local = 0;
-	
-	public UPHandle makeHandle()
+	// the sequence can go up to this limit before a new block is reserved with the store
+	private long limit = Long.MAX_VALUE;
+	private PithosStore store = null;
+
+	synchronized void attach(PithosStore store, long global, long next, long limit)
+	{
+		this.store = store;
+		this.global = global;
+		this.local = Math.max(local, next);
+		this.limit = limit;
+	}
+
+	synchronized void detach()
+	{
+		this.store = null;
+		this.limit = Long.MAX_VALUE;
+	}
+
+	synchronized long next()
+	{
+		return local;
+	}
+
+	public synchronized UPHandle makeHandle()
 	{
+		if (local >= limit)
+			limit = store.reserveHandles(local);
 		return new UPHandle(global, local++);
 	}
 
@@ -24,8 +54,7 @@ public class PithosHandleFactory implements HGHandleFactory
 
 	public UPHandle makeHandle(byte[] buffer)
 	{
-		UUID uuid = UUID.nameUUIDFromBytes(buffer);
-		return new UPHandle(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+		return makeHandle(buffer, 0);
 	}
 
 	public UPHandle makeHandle(byte[] data, int offset)
@@ -33,9 +62,9 @@ public class PithosHandleFactory implements HGHandleFactory
         long msb = 0;
         long lsb = 0;
         for (int i=offset; i<8+offset; i++)
-            msb = (msb << 8) | (data[i+offset] & 0xff);
+            msb = (msb << 8) | (data[i] & 0xff);
         for (int i=8+offset; i<16+offset; i++)
-            lsb = (lsb << 8) | (data[i+offset] & 0xff);
+            lsb = (lsb << 8) | (data[i] & 0xff);
         return new UPHandle(msb, lsb);
 	}
 
@@ -51,21 +80,21 @@ public class PithosHandleFactory implements HGHandleFactory
 
 	public UPHandle topTypeHandle()
 	{
-		return new UPHandle(0,2);		
+		return new UPHandle(0,2);
 	}
 
 	public UPHandle nullTypeHandle()
 	{
-		return new UPHandle(0,3);		
+		return new UPHandle(0,3);
 	}
 
 	public UPHandle linkTypeHandle()
 	{
-		return new UPHandle(0,4);		
+		return new UPHandle(0,4);
 	}
 
 	public UPHandle subsumesTypeHandle()
 	{
-		return new UPHandle(0,5);		
+		return new UPHandle(0,5);
 	}
 }
\ No newline at end of file
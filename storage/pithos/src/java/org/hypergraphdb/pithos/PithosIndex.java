@@ -0,0 +1,164 @@
+package org.hypergraphdb.pithos;
+
+import org.hypergraphdb.HGException;
+import org.hypergraphdb.HGRandomAccessResult;
+import org.hypergraphdb.HGSearchResult;
+import org.hypergraphdb.HGSortIndex;
+import org.hypergraphdb.storage.ByteArrayConverter;
+import org.hypergraphdb.storage.HGIndexStats;
+
+/**
+ * <p>
+ * An index of a {@link PithosStore}. The entries are held by the store in memory and every
+ * lookup returns the entries as of the snapshot of the current transaction, including its
+ * own changes.
+ * </p>
+ */
+public class PithosIndex<KeyType, ValueType> implements HGSortIndex<KeyType, ValueType>
+{
+	protected final String name;
+	protected final PithosStore store;
+	protected final IndexData data;
+	protected final ByteArrayConverter<KeyType> keyConverter;
+	protected final ByteArrayConverter<ValueType> valueConverter;
+	private volatile boolean open = false;
+
+	PithosIndex(String name,
+				PithosStore store,
+				IndexData data,
+				ByteArrayConverter<KeyType> keyConverter,
+				ByteArrayConverter<ValueType> valueConverter)
+	{
+		this.name = name;
+		this.store = store;
+		this.data = data;
+		this.keyConverter = keyConverter;
+		this.valueConverter = valueConverter;
+	}
+
+	protected void checkOpen()
+	{
+		if (!open)
+			throw new HGException("Attempting to operate on index '" + name + "' while the index is being closed.");
+	}
+
+	@SuppressWarnings("unchecked")
+	protected <T> HGRandomAccessResult<T> result(byte[][] items, ByteArrayConverter<T> converter, boolean ordered)
+	{
+		if (items.length == 0)
+			return (HGRandomAccessResult<T>)HGSearchResult.EMPTY;
+		else
+			return new ArrayResultSet<T>(items, converter, ordered ? data.valueComparator : null);
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public void open()
+	{
+		open = true;
+	}
+
+	public void close()
+	{
+		open = false;
+	}
+
+	public boolean isOpen()
+	{
+		return open;
+	}
+
+	public void addEntry(KeyType key, ValueType value)
+	{
+		checkOpen();
+		store.indexChange(data, keyConverter.toByteArray(key), valueConverter.toByteArray(value), true);
+	}
+
+	public void removeEntry(KeyType key, ValueType value)
+	{
+		checkOpen();
+		store.indexChange(data, keyConverter.toByteArray(key), valueConverter.toByteArray(value), false);
+	}
+
+	public void removeAllEntries(KeyType key)
+	{
+		checkOpen();
+		store.indexClear(data, keyConverter.toByteArray(key));
+	}
+
+	public ValueType findFirst(KeyType key)
+	{
+		checkOpen();
+		byte[] value = store.indexFirstValue(data, keyConverter.toByteArray(key));
+		return value == null ? null : valueConverter.fromByteArray(value, 0, value.length);
+	}
+
+	public HGRandomAccessResult<ValueType> find(KeyType key)
+	{
+		checkOpen();
+		return result(store.indexValues(data, keyConverter.toByteArray(key)), valueConverter, true);
+	}
+
+	@SuppressWarnings("unchecked")
+	public HGRandomAccessResult<KeyType> scanKeys()
+	{
+		checkOpen();
+		byte[][] keys = store.indexKeys(data);
+		if (keys.length == 0)
+			return (HGRandomAccessResult<KeyType>)HGSearchResult.EMPTY;
+		return new ArrayResultSet<KeyType>(keys, keyConverter, data.keyComparator);
+	}
+
+	public HGRandomAccessResult<ValueType> scanValues()
+	{
+		checkOpen();
+		return result(store.indexRange(data, null, false, true), valueConverter, false);
+	}
+
+	public HGSearchResult<ValueType> findLT(KeyType key)
+	{
+		checkOpen();
+		return result(store.indexRange(data, keyConverter.toByteArray(key), true, false), valueConverter, false);
+	}
+
+	public HGSearchResult<ValueType> findGT(KeyType key)
+	{
+		checkOpen();
+		return result(store.indexRange(data, keyConverter.toByteArray(key), false, false), valueConverter, false);
+	}
+
+	public HGSearchResult<ValueType> findLTE(KeyType key)
+	{
+		checkOpen();
+		return result(store.indexRange(data, keyConverter.toByteArray(key), true, true), valueConverter, false);
+	}
+
+	public HGSearchResult<ValueType> findGTE(KeyType key)
+	{
+		checkOpen();
+		return result(store.indexRange(data, keyConverter.toByteArray(key), false, true), valueConverter, false);
+	}
+
+	long countKeys()
+	{
+		return store.indexCount(data, false);
+	}
+
+	long countEntries()
+	{
+		return store.indexCount(data, true);
+	}
+
+	long countValues(KeyType key)
+	{
+		return store.indexValues(data, keyConverter.toByteArray(key)).length;
+	}
+
+	public HGIndexStats<KeyType, ValueType> stats()
+	{
+		return new PithosIndexStats<KeyType, ValueType>(this);
+	}
+}
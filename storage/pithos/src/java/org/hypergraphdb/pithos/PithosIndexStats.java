@@ -0,0 +1,52 @@
+package org.hypergraphdb.pithos;
+
+import org.hypergraphdb.storage.HGIndexStats;
+
+/**
+ * <p>
+ * The statistics of a {@link PithosIndex}. The entries are in memory, so all counts are
+ * exact and cheap.
+ * </p>
+ */
+public class PithosIndexStats<Key, Value> implements HGIndexStats<Key, Value>
+{
+	PithosIndex<Key, Value> index;
+
+	public PithosIndexStats(PithosIndex<Key, Value> index)
+	{
+		this.index = index;
+	}
+
+	public Count entries(long cost, boolean isEstimateOk)
+	{
+		index.checkOpen();
+		return new Count(() -> index.countEntries(), false);
+	}
+
+	public Count keys(long cost, boolean isEstimateOk)
+	{
+		index.checkOpen();
+		return new Count(() -> index.countKeys(), false);
+	}
+
+	public Count values(long cost, boolean isEstimateOk)
+	{
+		index.checkOpen();
+		return new Count(() -> index.countEntries(), false);
+	}
+
+	public Count valuesOfKey(Key key, long cost, boolean isEstimateOk)
+	{
+		index.checkOpen();
+		return new Count(() -> index.countValues(key), false);
+	}
+
+	public Count keysWithValue(Value value, long cost, boolean isEstimateOk)
+	{
+		index.checkOpen();
+		if (!(index instanceof PithosBiIndex))
+			return null;
+		PithosBiIndex<Key, Value> bindex = (PithosBiIndex<Key, Value>)index;
+		return new Count(() -> bindex.countKeys(value), false);
+	}
+}
@@ -1,118 +1,1390 @@
 package org.hypergraphdb.pithos;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.hypergraphdb.HGConfiguration;
+import org.hypergraphdb.HGException;
+import org.hypergraphdb.HGHandleFactory;
 import org.hypergraphdb.HGIndex;
 import org.hypergraphdb.HGPersistentHandle;
 import org.hypergraphdb.HGRandomAccessResult;
+import org.hypergraphdb.HGSearchResult;
 import org.hypergraphdb.HGStore;
+import org.hypergraphdb.pithos.PithosTransaction.SetDelta;
+import org.hypergraphdb.storage.BAtoHandle;
 import org.hypergraphdb.storage.ByteArrayConverter;
 import org.hypergraphdb.storage.HGStoreImplementation;
+import org.hypergraphdb.transaction.HGDurability;
+import org.hypergraphdb.transaction.HGStorageTransaction;
+import org.hypergraphdb.transaction.HGTransaction;
+import org.hypergraphdb.transaction.HGTransactionConfig;
+import org.hypergraphdb.transaction.HGTransactionContext;
+import org.hypergraphdb.transaction.HGTransactionException;
 import org.hypergraphdb.transaction.HGTransactionFactory;
+import org.hypergraphdb.transaction.TransactionConflictException;
 
+/**
+ * <p>
+ * A native storage engine. Links, data and incidence set directories are kept in three
+ * tables of memory mapped record slots ({@link LinkStore}), with anything that doesn't fit
+ * in a slot, as well as the pages of incidence sets, in a shared data file
+ * ({@link DataStore}). Indices are held in memory and written to a file each at a checkpoint.
+ * </p>
+ *
+ * <p>
+ * Committed transactions are appended to a redo log ({@link CommitLog}) and applied to an
+ * in-memory table of the records changed since the last checkpoint. When the log grows past
+ * {@link PithosConfig#getCheckpointBytes()}, and at shutdown, the changed records are written
+ * to new locations in the files, the files are flushed and the log is truncated. Regions of
+ * the data file are never overwritten while the last checkpoint refers to them, so a crash at
+ * any point is recovered by replaying the log on top of the last checkpoint.
+ * </p>
+ *
+ * <p>
+ * Transactions read a snapshot of the store as of their start (see {@link Versions}). Updates
+ * of the same link or data record by concurrent transactions conflict - the first one to
+ * write wins and the other fails with a {@link TransactionConflictException} and is retried.
+ * Additions to and removals from incidence sets and indices don't conflict, since they
+ * commute.
+ * </p>
+ */
 public class PithosStore implements HGStoreImplementation
 {
+	private static final int PUT_LINK = 1;
+	private static final int REMOVE_LINK = 2;
+	private static final int PUT_DATA = 3;
+	private static final int REMOVE_DATA = 4;
+	private static final int ADD_INCIDENT = 5;
+	private static final int REMOVE_INCIDENT = 6;
+	private static final int CLEAR_INCIDENCE = 7;
+	private static final int INDEX_ADD = 8;
+	private static final int INDEX_REMOVE = 9;
+	private static final int INDEX_CLEAR = 10;
+	private static final int INDEX_CREATE = 11;
+	private static final int INDEX_DROP = 12;
+
+	// local handle numbers are reserved in blocks of this size
+	private static final long HANDLE_BLOCK = 64 * 1024;
+	private static final byte[][] NONE = new byte[0][];
+	private static final Object REMOVED = PithosTransaction.REMOVED;
+
 	private PithosConfig config = new PithosConfig();
-	
-	public Object getConfiguration()
+	private HGStore store;
+	private HGHandleFactory handleFactory;
+	private int handleSize;
+	private File location;
+	private Properties meta;
+
+	private DataStore blobs;
+	private LinkStore links, data, incidence;
+	private CommitLog log;
+
+	// records changed since the last checkpoint
+	private HashMap<HGPersistentHandle, Object> dirtyLinks = new HashMap<HGPersistentHandle, Object>();
+	private HashMap<HGPersistentHandle, Object> dirtyData = new HashMap<HGPersistentHandle, Object>();
+	private HashMap<HGPersistentHandle, IncidenceSet> dirtyIncidence = new HashMap<HGPersistentHandle, IncidenceSet>();
+	private HashMap<String, IndexData> indices = new HashMap<String, IndexData>();
+	private ArrayList<Long> droppedIndexFiles = new ArrayList<Long>();
+	private ConcurrentHashMap<String, PithosIndex<?, ?>> openIndices = new ConcurrentHashMap<String, PithosIndex<?, ?>>();
+
+	private Versions versions = new Versions();
+	private HashMap<HGPersistentHandle, Versions.Undo> linkUndo = new HashMap<HGPersistentHandle, Versions.Undo>();
+	private HashMap<HGPersistentHandle, Versions.Undo> dataUndo = new HashMap<HGPersistentHandle, Versions.Undo>();
+	private HashMap<HGPersistentHandle, Versions.Undo> incidenceUndo = new HashMap<HGPersistentHandle, Versions.Undo>();
+	private ConcurrentHashMap<HGPersistentHandle, PithosTransaction> linkLocks = new ConcurrentHashMap<HGPersistentHandle, PithosTransaction>();
+	private ConcurrentHashMap<HGPersistentHandle, PithosTransaction> dataLocks = new ConcurrentHashMap<HGPersistentHandle, PithosTransaction>();
+
+	// reads hold the read lock, a commit applies its changes with the write lock
+	private ReentrantReadWriteLock storeLock = new ReentrantReadWriteLock();
+	// serializes commits, checkpoints and the creation and removal of indices
+	private ReentrantLock commitLock = new ReentrantLock();
+
+	private PithosTransaction txn()
+	{
+		HGTransaction tx = store.getTransactionManager().getContext().getCurrent();
+		if (tx == null || !(tx.getStorageTransaction() instanceof PithosTransaction))
+			return null;
+		else
+			return (PithosTransaction)tx.getStorageTransaction();
+	}
+
+	private static long snapshot(PithosTransaction tx)
+	{
+		return tx == null ? Long.MAX_VALUE : tx.top().snapshot;
+	}
+
+	// the transaction and its ancestors, outermost first
+	private static List<PithosTransaction> chain(PithosTransaction tx)
+	{
+		ArrayList<PithosTransaction> result = new ArrayList<PithosTransaction>();
+		for (PithosTransaction t = tx; t != null; t = t.parent)
+			result.add(t);
+		Collections.reverse(result);
+		return result;
+	}
+
+	private PithosTransaction begin(HGDurability durability)
+	{
+		storeLock.readLock().lock();
+		try
+		{
+			return new PithosTransaction(this, null, versions.begin(), durability);
+		}
+		finally
+		{
+			storeLock.readLock().unlock();
+		}
+	}
+
+	// a transaction for a single change made outside of any transaction
+	private PithosTransaction autocommit()
+	{
+		return new PithosTransaction(this, null, -1, null);
+	}
+
+	private HGDurability durability(HGDurability durability)
 	{
-	    return config;
+		if (durability != null)
+			return durability;
+		return config.isForceWrite() ? HGDurability.SYNC : HGDurability.WRITE_NO_SYNC;
+	}
+
+	public PithosConfig getConfiguration()
+	{
+		return config;
 	}
 
 	public void startup(HGStore store, HGConfiguration configuration)
 	{
+		this.store = store;
+		this.handleFactory = configuration.getHandleFactory();
+		this.handleSize = handleFactory.nullHandle().toByteArray().length;
+		this.location = new File(store.getDatabaseLocation());
+		if (!location.exists() && !location.mkdirs())
+			throw new HGException("Could not create database directory " + location);
+		loadMeta();
+		blobs = new DataStore(new File(location, "blobs.db"), config);
+		blobs.startup();
+		links = new LinkStore(new File(location, "links.slots"), config, handleFactory, blobs);
+		links.startup();
+		data = new LinkStore(new File(location, "data.slots"), config, handleFactory, blobs);
+		data.startup();
+		incidence = new LinkStore(new File(location, "incidence.slots"), config, handleFactory, blobs);
+		incidence.startup();
+		FreeSpace freeSpace = blobs.getFreeSpace();
+		freeSpace.beginRebuild();
+		links.scan(freeSpace);
+		data.scan(freeSpace);
+		incidence.scan(freeSpace);
+		for (HGPersistentHandle atom : incidence.handles())
+			IncidenceSet.markUsed(incidence.read(atom), freeSpace, handleSize);
+		freeSpace.endRebuild();
+		int count = Integer.parseInt(meta.getProperty("indices", "0"));
+		for (int i = 0; i < count; i++)
+		{
+			IndexData index = new IndexData(meta.getProperty("index." + i + ".name"));
+			index.file = Long.parseLong(meta.getProperty("index." + i + ".file"));
+			index.read(indexFile(index.file));
+			index.dirty = false;
+			indices.put(index.name, index);
+		}
+		log = new CommitLog(new File(location, "pithos.log"), config);
+		log.startup();
+		commitLock.lock();
+		try
+		{
+			log.replay(record -> replay(record));
+			checkpoint();
+		}
+		finally
+		{
+			commitLock.unlock();
+		}
+		if (handleFactory instanceof PithosHandleFactory)
+		{
+			long global = Long.parseLong(meta.getProperty("global"));
+			long next = Long.parseLong(meta.getProperty("handleLimit", "0"));
+			((PithosHandleFactory)handleFactory).attach(this, global, next, reserveHandles(next));
+		}
 	}
 
 	public void shutdown()
 	{
+		commitLock.lock();
+		try
+		{
+			if (log == null)
+				return;
+			if (handleFactory instanceof PithosHandleFactory)
+				((PithosHandleFactory)handleFactory).detach();
+			for (PithosIndex<?, ?> index : openIndices.values())
+				index.close();
+			openIndices.clear();
+			checkpoint();
+			blobs.trim();
+			log.shutdown();
+			incidence.shutdown();
+			data.shutdown();
+			links.shutdown();
+			blobs.shutdown();
+			log = null;
+		}
+		finally
+		{
+			commitLock.unlock();
+		}
+	}
+
+	private File indexFile(long id)
+	{
+		return new File(location, "index-" + id + ".db");
+	}
+
+	private void loadMeta()
+	{
+		meta = new Properties();
+		File file = new File(location, "pithos.meta");
+		if (file.exists())
+		{
+			try (FileInputStream in = new FileInputStream(file))
+			{
+				meta.load(in);
+			}
+			catch (IOException ex)
+			{
+				throw new HGException("Failed to read " + file + ": " + ex.toString(), ex);
+			}
+		}
+		else
+		{
+			long global = 0;
+			for (SecureRandom random = new SecureRandom(); global == 0; )
+				global = random.nextLong();
+			meta.setProperty("global", Long.toString(global));
+			saveMeta();
+		}
+	}
+
+	private void saveMeta()
+	{
+		synchronized (meta)
+		{
+			File tmp = new File(location, "pithos.meta.tmp");
+			try
+			{
+				try (FileOutputStream out = new FileOutputStream(tmp))
+				{
+					meta.store(out, "Pithos storage");
+					out.getFD().sync();
+				}
+				Files.move(tmp.toPath(), new File(location, "pithos.meta").toPath(),
+						   StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (IOException ex)
+			{
+				throw new HGException("Failed to write " + tmp + ": " + ex.toString(), ex);
+			}
+		}
+	}
+
+	/**
+	 * <p>
+	 * Record that local handle numbers up to <code>next</code> may have been used and return
+	 * the new limit up to which the {@link PithosHandleFactory} can go.
+	 * </p>
+	 */
+	long reserveHandles(long next)
+	{
+		synchronized (meta)
+		{
+			long limit = next + HANDLE_BLOCK;
+			meta.setProperty("handleLimit", Long.toString(limit));
+			saveMeta();
+			return limit;
+		}
 	}
 
 	public HGTransactionFactory getTransactionFactory()
 	{
-		return null;
+		return new HGTransactionFactory()
+		{
+			public HGStorageTransaction createTransaction(HGTransactionContext context, HGTransactionConfig config, HGTransaction parent)
+			{
+				if (parent != null && parent.getStorageTransaction() instanceof PithosTransaction)
+				{
+					PithosTransaction p = (PithosTransaction)parent.getStorageTransaction();
+					return new PithosTransaction(PithosStore.this, p, p.snapshot, config.getDurability());
+				}
+				return begin(config.getDurability());
+			}
+
+			public boolean canRetryAfter(Throwable t)
+			{
+				return t instanceof TransactionConflictException;
+			}
+
+			public void commitBatch(List<HGStorageTransaction> batch) throws HGTransactionException
+			{
+				// Apply all transactions in the group and write out the log once, with the
+				// strongest durability any of them asked for.
+				HGDurability strongest = HGDurability.NO_SYNC;
+				for (HGStorageTransaction tx : batch)
+				{
+					if (tx instanceof PithosTransaction)
+					{
+						HGDurability d = durability(((PithosTransaction)tx).durability);
+						if (d.ordinal() < strongest.ordinal())
+							strongest = d;
+						((PithosTransaction)tx).commit(true);
+					}
+					else
+						tx.commit();
+				}
+				commitLock.lock();
+				try
+				{
+					log.flush(strongest);
+					if (log.size() >= config.getCheckpointBytes())
+						checkpoint();
+				}
+				finally
+				{
+					commitLock.unlock();
+				}
+			}
+		};
+	}
+
+	// -------------------------------------------------------------------------
+	// Commit, replay and checkpoint
+	// -------------------------------------------------------------------------
+
+	void commit(PithosTransaction tx, boolean deferFlush)
+	{
+		if (tx.isEmpty())
+		{
+			end(tx);
+			return;
+		}
+		commitLock.lock();
+		try
+		{
+			byte[] record = encode(tx);
+			log.append(record, record.length);
+			storeLock.writeLock().lock();
+			try
+			{
+				if (tx.snapshot >= 0)
+					versions.end(tx.snapshot);
+				long version = versions.committed() + 1;
+				apply(tx, version, versions.hasActive());
+				versions.setCommitted(version);
+				versions.purge();
+			}
+			finally
+			{
+				storeLock.writeLock().unlock();
+			}
+			release(tx);
+			if (!deferFlush)
+			{
+				log.flush(durability(tx.durability));
+				if (log.size() >= config.getCheckpointBytes())
+					checkpoint();
+			}
+		}
+		finally
+		{
+			commitLock.unlock();
+		}
+	}
+
+	void abort(PithosTransaction tx)
+	{
+		end(tx);
+	}
+
+	private void end(PithosTransaction tx)
+	{
+		if (tx.snapshot >= 0)
+			versions.end(tx.snapshot);
+		release(tx);
+	}
+
+	private void release(PithosTransaction tx)
+	{
+		for (HGPersistentHandle h : tx.lockedLinks)
+			linkLocks.remove(h, tx);
+		for (HGPersistentHandle h : tx.lockedData)
+			dataLocks.remove(h, tx);
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException
+	{
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException
+	{
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	private HGPersistentHandle readHandle(DataInputStream in) throws IOException
+	{
+		byte[] bytes = new byte[handleSize];
+		in.readFully(bytes);
+		return handleFactory.makeHandle(bytes);
+	}
+
+	private byte[] encode(PithosTransaction tx)
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try
+		{
+			for (Map.Entry<HGPersistentHandle, Object> e : tx.links.entrySet())
+			{
+				out.writeByte(e.getValue() == REMOVED ? REMOVE_LINK : PUT_LINK);
+				out.write(e.getKey().toByteArray());
+				if (e.getValue() != REMOVED)
+					writeBytes(out, encodeLink((HGPersistentHandle[])e.getValue()));
+			}
+			for (Map.Entry<HGPersistentHandle, Object> e : tx.data.entrySet())
+			{
+				out.writeByte(e.getValue() == REMOVED ? REMOVE_DATA : PUT_DATA);
+				out.write(e.getKey().toByteArray());
+				if (e.getValue() != REMOVED)
+					writeBytes(out, (byte[])e.getValue());
+			}
+			for (Map.Entry<HGPersistentHandle, SetDelta> e : tx.incidence.entrySet())
+			{
+				byte[] atom = e.getKey().toByteArray();
+				if (e.getValue().cleared)
+				{
+					out.writeByte(CLEAR_INCIDENCE);
+					out.write(atom);
+				}
+				for (Map.Entry<byte[], Boolean> change : e.getValue().changes.entrySet())
+				{
+					out.writeByte(change.getValue() ? ADD_INCIDENT : REMOVE_INCIDENT);
+					out.write(atom);
+					out.write(change.getKey());
+				}
+			}
+			for (Map.Entry<IndexData, TreeMap<byte[], SetDelta>> e : tx.indices.entrySet())
+				for (Map.Entry<byte[], SetDelta> key : e.getValue().entrySet())
+				{
+					if (key.getValue().cleared)
+					{
+						out.writeByte(INDEX_CLEAR);
+						out.writeUTF(e.getKey().name);
+						writeBytes(out, key.getKey());
+					}
+					for (Map.Entry<byte[], Boolean> change : key.getValue().changes.entrySet())
+					{
+						out.writeByte(change.getValue() ? INDEX_ADD : INDEX_REMOVE);
+						out.writeUTF(e.getKey().name);
+						writeBytes(out, key.getKey());
+						writeBytes(out, change.getKey());
+					}
+				}
+		}
+		catch (IOException ex)
+		{
+			throw new HGException(ex);
+		}
+		return bytes.toByteArray();
+	}
+
+	private void logIndexChange(int op, String name)
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try
+		{
+			out.writeByte(op);
+			out.writeUTF(name);
+		}
+		catch (IOException ex)
+		{
+			throw new HGException(ex);
+		}
+		log.append(bytes.toByteArray(), bytes.size());
+		log.flush(durability(null));
+	}
+
+	private void apply(PithosTransaction tx, long version, boolean undo)
+	{
+		for (Map.Entry<HGPersistentHandle, Object> e : tx.links.entrySet())
+			applyLink(e.getKey(), e.getValue(), version, undo);
+		for (Map.Entry<HGPersistentHandle, Object> e : tx.data.entrySet())
+			applyData(e.getKey(), e.getValue(), version, undo);
+		for (Map.Entry<HGPersistentHandle, SetDelta> e : tx.incidence.entrySet())
+		{
+			if (e.getValue().cleared)
+				applyIncidenceClear(e.getKey(), version, undo);
+			for (Map.Entry<byte[], Boolean> change : e.getValue().changes.entrySet())
+				applyIncident(e.getKey(), change.getKey(), change.getValue(), version, undo);
+		}
+		for (Map.Entry<IndexData, TreeMap<byte[], SetDelta>> e : tx.indices.entrySet())
+		{
+			IndexData index = e.getKey();
+			if (indices.get(index.name) != index)
+				continue;
+			for (Map.Entry<byte[], SetDelta> key : e.getValue().entrySet())
+			{
+				if (key.getValue().cleared)
+					applyIndexClear(index, key.getKey(), version, undo);
+				for (Map.Entry<byte[], Boolean> change : key.getValue().changes.entrySet())
+					applyIndexEntry(index, key.getKey(), change.getKey(), change.getValue(), version, undo);
+			}
+		}
+	}
+
+	private void replay(ByteBuffer record)
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(record.array()));
+		try
+		{
+			while (in.available() > 0)
+			{
+				int op = in.readByte();
+				switch (op)
+				{
+					case PUT_LINK:
+					{
+						HGPersistentHandle h = readHandle(in);
+						applyLink(h, decodeLink(readBytes(in)), 0, false);
+						break;
+					}
+					case REMOVE_LINK:
+						applyLink(readHandle(in), REMOVED, 0, false);
+						break;
+					case PUT_DATA:
+					{
+						HGPersistentHandle h = readHandle(in);
+						applyData(h, readBytes(in), 0, false);
+						break;
+					}
+					case REMOVE_DATA:
+						applyData(readHandle(in), REMOVED, 0, false);
+						break;
+					case ADD_INCIDENT:
+					case REMOVE_INCIDENT:
+					{
+						HGPersistentHandle atom = readHandle(in);
+						byte[] link = new byte[handleSize];
+						in.readFully(link);
+						applyIncident(atom, link, op == ADD_INCIDENT, 0, false);
+						break;
+					}
+					case CLEAR_INCIDENCE:
+						applyIncidenceClear(readHandle(in), 0, false);
+						break;
+					case INDEX_ADD:
+					case INDEX_REMOVE:
+					{
+						IndexData index = indices.get(in.readUTF());
+						byte[] key = readBytes(in);
+						byte[] value = readBytes(in);
+						if (index != null)
+							applyIndexEntry(index, key, value, op == INDEX_ADD, 0, false);
+						break;
+					}
+					case INDEX_CLEAR:
+					{
+						IndexData index = indices.get(in.readUTF());
+						byte[] key = readBytes(in);
+						if (index != null)
+							applyIndexClear(index, key, 0, false);
+						break;
+					}
+					case INDEX_CREATE:
+					{
+						String name = in.readUTF();
+						if (!indices.containsKey(name))
+							indices.put(name, new IndexData(name));
+						break;
+					}
+					case INDEX_DROP:
+					{
+						IndexData index = indices.remove(in.readUTF());
+						if (index != null && index.file >= 0)
+							droppedIndexFiles.add(index.file);
+						break;
+					}
+					default:
+						throw new HGException("Corrupt Pithos commit log " + log.getFile() + ": unknown operation " + op);
+				}
+			}
+		}
+		catch (IOException ex)
+		{
+			throw new HGException("Corrupt Pithos commit log " + log.getFile() + ": " + ex.toString(), ex);
+		}
+	}
+
+	/**
+	 * <p>
+	 * Write the records changed since the last checkpoint to the files, flush them and truncate
+	 * the log. Called with the commit lock held - readers go on meanwhile, reading changed
+	 * records from memory until the very end.
+	 * </p>
+	 */
+	private void checkpoint()
+	{
+		if (log.size() == 0)
+			return;
+		for (Map.Entry<HGPersistentHandle, Object> e : dirtyLinks.entrySet())
+			if (e.getValue() == REMOVED)
+				links.remove(e.getKey());
+			else
+				links.write(e.getKey(), encodeLink((HGPersistentHandle[])e.getValue()));
+		for (Map.Entry<HGPersistentHandle, Object> e : dirtyData.entrySet())
+			if (e.getValue() == REMOVED)
+				data.remove(e.getKey());
+			else
+				data.write(e.getKey(), (byte[])e.getValue());
+		for (Map.Entry<HGPersistentHandle, IncidenceSet> e : dirtyIncidence.entrySet())
+		{
+			IncidenceSet set = e.getValue();
+			set.flush();
+			if (set.isEmpty())
+				incidence.remove(e.getKey());
+			else
+				incidence.write(e.getKey(), set.directory());
+		}
+		blobs.force();
+		links.force();
+		data.force();
+		incidence.force();
+
+		ArrayList<File> obsolete = new ArrayList<File>();
+		long nextFile = Long.parseLong(meta.getProperty("nextIndexFile", "0"));
+		for (IndexData index : indices.values())
+			if (index.dirty)
+			{
+				try
+				{
+					index.write(indexFile(nextFile));
+				}
+				catch (IOException ex)
+				{
+					throw new HGException("Failed to write index " + index.name + ": " + ex.toString(), ex);
+				}
+				if (index.file >= 0)
+					obsolete.add(indexFile(index.file));
+				index.file = nextFile++;
+				index.dirty = false;
+			}
+		for (long file : droppedIndexFiles)
+			obsolete.add(indexFile(file));
+		droppedIndexFiles.clear();
+		synchronized (meta)
+		{
+			for (String key : meta.stringPropertyNames())
+				if (key.startsWith("index."))
+					meta.remove(key);
+			int i = 0;
+			for (IndexData index : indices.values())
+			{
+				meta.setProperty("index." + i + ".name", index.name);
+				meta.setProperty("index." + i + ".file", Long.toString(index.file));
+				i++;
+			}
+			meta.setProperty("indices", Integer.toString(i));
+			meta.setProperty("nextIndexFile", Long.toString(nextFile));
+			saveMeta();
+		}
+		for (File file : obsolete)
+			file.delete();
+
+		log.truncate();
+		storeLock.writeLock().lock();
+		try
+		{
+			dirtyLinks.clear();
+			dirtyData.clear();
+			dirtyIncidence.clear();
+		}
+		finally
+		{
+			storeLock.writeLock().unlock();
+		}
+		blobs.checkpointDone();
+	}
+
+	// -------------------------------------------------------------------------
+	// Committed state - read with the read lock, changed with the write lock
+	// -------------------------------------------------------------------------
+
+	private byte[] encodeLink(HGPersistentHandle[] link)
+	{
+		byte[] bytes = new byte[link.length * handleSize];
+		for (int i = 0; i < link.length; i++)
+			System.arraycopy(link[i].toByteArray(), 0, bytes, i * handleSize, handleSize);
+		return bytes;
+	}
+
+	private HGPersistentHandle[] decodeLink(byte[] bytes)
+	{
+		HGPersistentHandle[] link = new HGPersistentHandle[bytes.length / handleSize];
+		for (int i = 0; i < link.length; i++)
+			link[i] = handleFactory.makeHandle(bytes, i * handleSize);
+		return link;
+	}
+
+	private HGPersistentHandle[] committedLink(HGPersistentHandle handle)
+	{
+		Object value = dirtyLinks.get(handle);
+		if (value != null)
+			return value == REMOVED ? null : (HGPersistentHandle[])value;
+		byte[] bytes = links.read(handle);
+		return bytes == null ? null : decodeLink(bytes);
+	}
+
+	private byte[] committedData(HGPersistentHandle handle)
+	{
+		Object value = dirtyData.get(handle);
+		if (value != null)
+			return value == REMOVED ? null : (byte[])value;
+		return data.read(handle);
+	}
+
+	private byte[][] committedIncidence(HGPersistentHandle atom)
+	{
+		IncidenceSet set = dirtyIncidence.get(atom);
+		if (set == null)
+		{
+			byte[] directory = incidence.read(atom);
+			if (directory == null)
+				return NONE;
+			set = IncidenceSet.decode(directory, blobs, handleSize, config.getPageSize());
+		}
+		return set.toArray();
+	}
+
+	private IncidenceSet dirtyIncidenceSet(HGPersistentHandle atom)
+	{
+		IncidenceSet set = dirtyIncidence.get(atom);
+		if (set == null)
+		{
+			byte[] directory = incidence.read(atom);
+			set = directory == null ? new IncidenceSet(blobs, handleSize, config.getPageSize())
+									: IncidenceSet.decode(directory, blobs, handleSize, config.getPageSize());
+			dirtyIncidence.put(atom, set);
+		}
+		return set;
+	}
+
+	private void applyLink(HGPersistentHandle handle, Object link, long version, boolean undo)
+	{
+		if (undo)
+			versions.record(linkUndo, handle, version, committedLink(handle), false);
+		dirtyLinks.put(handle, link);
+	}
+
+	private void applyData(HGPersistentHandle handle, Object bytes, long version, boolean undo)
+	{
+		if (undo)
+			versions.record(dataUndo, handle, version, committedData(handle), false);
+		dirtyData.put(handle, bytes);
+	}
+
+	private void applyIncident(HGPersistentHandle atom, byte[] link, boolean add, long version, boolean undo)
+	{
+		IncidenceSet set = dirtyIncidenceSet(atom);
+		if ((add ? set.add(link) : set.remove(link)) && undo)
+			versions.record(incidenceUndo, atom, version, link, !add);
+	}
+
+	private void applyIncidenceClear(HGPersistentHandle atom, long version, boolean undo)
+	{
+		IncidenceSet set = dirtyIncidenceSet(atom);
+		if (undo)
+			for (byte[] link : set.toArray())
+				versions.record(incidenceUndo, atom, version, link, true);
+		set.clear();
+	}
+
+	private void applyIndexEntry(IndexData index, byte[] key, byte[] value, boolean add, long version, boolean undo)
+	{
+		if ((add ? index.add(key, value) : index.remove(key, value)) && undo)
+			versions.record(index.undo, key, version, value, !add);
+	}
+
+	private void applyIndexClear(IndexData index, byte[] key, long version, boolean undo)
+	{
+		TreeSet<byte[]> values = index.entries.get(key);
+		if (values != null)
+			for (byte[] value : new ArrayList<byte[]>(values))
+				applyIndexEntry(index, key, value, false, version, undo);
+	}
+
+	// -------------------------------------------------------------------------
+	// Links and data
+	// -------------------------------------------------------------------------
+
+	private void lock(boolean isLink, PithosTransaction top, HGPersistentHandle handle)
+	{
+		ConcurrentHashMap<HGPersistentHandle, PithosTransaction> locks = isLink ? linkLocks : dataLocks;
+		PithosTransaction owner = locks.putIfAbsent(handle, top);
+		if (owner == top)
+			return;
+		else if (owner != null)
+			throw new TransactionConflictException();
+		(isLink ? top.lockedLinks : top.lockedData).add(handle);
+		storeLock.readLock().lock();
+		try
+		{
+			Versions.Undo last = (isLink ? linkUndo : dataUndo).get(handle);
+			if (last != null && last.version > top.snapshot)
+				throw new TransactionConflictException();
+		}
+		finally
+		{
+			storeLock.readLock().unlock();
+		}
+	}
+
+	private void write(boolean isLink, HGPersistentHandle handle, Object value)
+	{
+		PithosTransaction tx = txn();
+		if (tx == null)
+		{
+			tx = autocommit();
+			(isLink ? tx.links : tx.data).put(handle, value);
+			commit(tx, false);
+		}
+		else
+		{
+			lock(isLink, tx.top(), handle);
+			(isLink ? tx.links : tx.data).put(handle, value);
+		}
+	}
+
+	private Object read(boolean isLink, HGPersistentHandle handle)
+	{
+		PithosTransaction tx = txn();
+		for (PithosTransaction t = tx; t != null; t = t.parent)
+		{
+			Object value = (isLink ? t.links : t.data).get(handle);
+			if (value != null)
+				return value == REMOVED ? null : value;
+		}
+		storeLock.readLock().lock();
+		try
+		{
+			Object value = isLink ? committedLink(handle) : committedData(handle);
+			if (tx != null)
+				value = Versions.valueAt((isLink ? linkUndo : dataUndo).get(handle), tx.top().snapshot, value);
+			return value;
+		}
+		finally
+		{
+			storeLock.readLock().unlock();
+		}
 	}
 
 	public HGPersistentHandle store(HGPersistentHandle handle, HGPersistentHandle[] link)
 	{
-		return null;
+		if (handle == null || link == null)
+			throw new NullPointerException("Attempt to store a null handle or link.");
+		write(true, handle, link.clone());
+		return handle;
 	}
 
 	public HGPersistentHandle[] getLink(HGPersistentHandle handle)
 	{
-		return null;
+		HGPersistentHandle[] link = (HGPersistentHandle[])read(true, handle);
+		return link == null ? null : link.clone();
 	}
 
 	public void removeLink(HGPersistentHandle handle)
 	{
+		write(true, handle, REMOVED);
 	}
 
 	public boolean containsLink(HGPersistentHandle handle)
 	{
-		return false;
+		return read(true, handle) != null;
 	}
 
-	public boolean containsData(HGPersistentHandle handle)
+	public HGPersistentHandle store(HGPersistentHandle handle, byte[] bytes)
 	{
-		return false;
+		if (handle == null || bytes == null)
+			throw new NullPointerException("Attempt to store a null handle or data.");
+		write(false, handle, bytes.clone());
+		return handle;
 	}
-	
-	public HGPersistentHandle store(HGPersistentHandle handle, byte[] data)
+
+	public byte[] getData(HGPersistentHandle handle)
 	{
-		return null;
+		byte[] bytes = (byte[])read(false, handle);
+		return bytes == null ? null : bytes.clone();
 	}
 
 	public void removeData(HGPersistentHandle handle)
 	{
+		write(false, handle, REMOVED);
 	}
 
-	public byte[] getData(HGPersistentHandle handle)
+	public boolean containsData(HGPersistentHandle handle)
 	{
-		return null;
+		return read(false, handle) != null;
 	}
 
-	public HGRandomAccessResult<HGPersistentHandle> getIncidenceResultSet(
-			HGPersistentHandle handle)
+	// -------------------------------------------------------------------------
+	// Incidence sets
+	// -------------------------------------------------------------------------
+
+	private byte[][] incidenceSet(HGPersistentHandle atom, PithosTransaction tx)
 	{
-		return null;
+		byte[][] result;
+		storeLock.readLock().lock();
+		try
+		{
+			result = committedIncidence(atom);
+			TreeMap<byte[], Boolean> changes = Versions.changesSince(incidenceUndo.get(atom), snapshot(tx), Bytes.COMPARATOR);
+			if (changes != null)
+				result = new SetDelta(changes).apply(result);
+		}
+		finally
+		{
+			storeLock.readLock().unlock();
+		}
+		for (PithosTransaction t : chain(tx))
+		{
+			SetDelta delta = t.incidence.get(atom);
+			if (delta != null)
+				result = delta.apply(result);
+		}
+		return result;
 	}
 
-	public void removeIncidenceSet(HGPersistentHandle handle)
+	private void incidenceChange(HGPersistentHandle atom, byte[] link, int op)
 	{
+		PithosTransaction tx = txn();
+		boolean autocommit = tx == null;
+		if (autocommit)
+			tx = autocommit();
+		SetDelta delta = tx.incidenceDelta(atom);
+		if (op == ADD_INCIDENT)
+			delta.add(link);
+		else if (op == REMOVE_INCIDENT)
+			delta.remove(link);
+		else
+			delta.clear();
+		if (autocommit)
+			commit(tx, false);
+	}
+
+	@SuppressWarnings("unchecked")
+	public HGRandomAccessResult<HGPersistentHandle> getIncidenceResultSet(HGPersistentHandle handle)
+	{
+		byte[][] set = incidenceSet(handle, txn());
+		if (set.length == 0)
+			return (HGRandomAccessResult<HGPersistentHandle>)HGSearchResult.EMPTY;
+		return new ArrayResultSet<HGPersistentHandle>(set, BAtoHandle.getInstance(handleFactory), Bytes.COMPARATOR);
 	}
 
 	public long getIncidenceSetCardinality(HGPersistentHandle handle)
 	{
-		return 0;
+		PithosTransaction tx = txn();
+		if (tx == null)
+		{
+			storeLock.readLock().lock();
+			try
+			{
+				IncidenceSet set = dirtyIncidence.get(handle);
+				if (set != null)
+					return set.count();
+				byte[] directory = incidence.read(handle);
+				return directory == null ? 0 : IncidenceSet.count(directory, handleSize);
+			}
+			finally
+			{
+				storeLock.readLock().unlock();
+			}
+		}
+		return incidenceSet(handle, tx).length;
 	}
 
-	public void addIncidenceLink(HGPersistentHandle handle,
-			HGPersistentHandle newLink)
+	public void addIncidenceLink(HGPersistentHandle handle, HGPersistentHandle newLink)
 	{
-		// TODO Auto-generated method stub
+		if (handle == null || newLink == null)
+			throw new NullPointerException("Attempt to add a null handle to an incidence set.");
+		incidenceChange(handle, newLink.toByteArray(), ADD_INCIDENT);
+	}
 
+	public void removeIncidenceLink(HGPersistentHandle handle, HGPersistentHandle oldLink)
+	{
+		incidenceChange(handle, oldLink.toByteArray(), REMOVE_INCIDENT);
 	}
 
-	public void removeIncidenceLink(HGPersistentHandle handle,
-			HGPersistentHandle oldLink)
+	public void removeIncidenceSet(HGPersistentHandle handle)
 	{
-		// TODO Auto-generated method stub
+		incidenceChange(handle, null, CLEAR_INCIDENCE);
+	}
 
+	// -------------------------------------------------------------------------
+	// Indices
+	// -------------------------------------------------------------------------
+
+	@SuppressWarnings("unchecked")
+	public <KeyType, ValueType> HGIndex<KeyType, ValueType> getIndex(String name)
+	{
+		return (HGIndex<KeyType, ValueType>)openIndices.get(name);
 	}
 
-	public <KeyType, ValueType> HGIndex<KeyType, ValueType> getIndex(
-			String name, ByteArrayConverter<KeyType> keyConverter,
-			ByteArrayConverter<ValueType> valueConverter,
-			Comparator<?> comparator, boolean isBidirectional,
-			boolean createIfNecessary)
+	@SuppressWarnings("unchecked")
+	public <KeyType, ValueType> HGIndex<KeyType, ValueType> getIndex(String name,
+																	 ByteArrayConverter<KeyType> keyConverter,
+																	 ByteArrayConverter<ValueType> valueConverter,
+																	 Comparator<byte[]> keyComparator,
+																	 Comparator<byte[]> valueComparator,
+																	 boolean isBidirectional,
+																	 boolean createIfNecessary)
 	{
-		// TODO Auto-generated method stub
-		return null;
+		PithosIndex<KeyType, ValueType> result = (PithosIndex<KeyType, ValueType>)openIndices.get(name);
+		if (result != null)
+			return result;
+		commitLock.lock();
+		try
+		{
+			result = (PithosIndex<KeyType, ValueType>)openIndices.get(name);
+			if (result != null)
+				return result;
+			IndexData index = indices.get(name);
+			if (index == null && !createIfNecessary)
+				return null;
+			if (index == null)
+				logIndexChange(INDEX_CREATE, name);
+			storeLock.writeLock().lock();
+			try
+			{
+				if (index == null)
+					indices.put(name, index = new IndexData(name));
+				index.configure(keyComparator, valueComparator, isBidirectional);
+			}
+			finally
+			{
+				storeLock.writeLock().unlock();
+			}
+			if (isBidirectional)
+				result = new PithosBiIndex<KeyType, ValueType>(name, this, index, keyConverter, valueConverter);
+			else
+				result = new PithosIndex<KeyType, ValueType>(name, this, index, keyConverter, valueConverter);
+			result.open();
+			openIndices.put(name, result);
+			return result;
+		}
+		finally
+		{
+			commitLock.unlock();
+		}
 	}
 
 	public void removeIndex(String name)
 	{
-		// TODO Auto-generated method stub
+		commitLock.lock();
+		try
+		{
+			PithosIndex<?, ?> open = openIndices.remove(name);
+			if (open != null)
+				open.close();
+			if (!indices.containsKey(name))
+				return;
+			logIndexChange(INDEX_DROP, name);
+			storeLock.writeLock().lock();
+			try
+			{
+				IndexData index = indices.remove(name);
+				if (index.file >= 0)
+					droppedIndexFiles.add(index.file);
+			}
+			finally
+			{
+				storeLock.writeLock().unlock();
+			}
+		}
+		finally
+		{
+			commitLock.unlock();
+		}
+	}
+
+	void indexChange(IndexData index, byte[] key, byte[] value, boolean add)
+	{
+		PithosTransaction tx = txn();
+		boolean autocommit = tx == null;
+		if (autocommit)
+			tx = autocommit();
+		SetDelta delta = tx.indexDelta(index, key);
+		if (add)
+			delta.add(value);
+		else
+			delta.remove(value);
+		if (autocommit)
+			commit(tx, false);
+	}
+
+	void indexClear(IndexData index, byte[] key)
+	{
+		PithosTransaction tx = txn();
+		boolean autocommit = tx == null;
+		if (autocommit)
+			tx = autocommit();
+		tx.indexDelta(index, key).clear();
+		if (autocommit)
+			commit(tx, false);
+	}
+
+	// the keys whose entries in the view of the transaction may differ from the committed ones
+	private TreeSet<byte[]> touchedKeys(IndexData index, PithosTransaction tx, List<PithosTransaction> chain)
+	{
+		TreeSet<byte[]> keys = new TreeSet<byte[]>(index.keyComparator);
+		if (tx == null)
+			return keys;
+		long snapshot = snapshot(tx);
+		for (Map.Entry<byte[], Versions.Undo> e : index.undo.entrySet())
+			if (e.getValue().version > snapshot)
+				keys.add(e.getKey());
+		for (PithosTransaction t : chain)
+		{
+			TreeMap<byte[], SetDelta> changed = t.indices.get(index);
+			if (changed != null)
+				keys.addAll(changed.keySet());
+		}
+		return keys;
+	}
+
+	private byte[][] values(IndexData index, byte[] key, PithosTransaction tx, List<PithosTransaction> chain)
+	{
+		TreeSet<byte[]> committed = index.entries.get(key);
+		byte[][] result = committed == null ? NONE : committed.toArray(new byte[committed.size()][]);
+		if (tx == null)
+			return result;
+		TreeMap<byte[], Boolean> changes = Versions.changesSince(index.undo.get(key), snapshot(tx), index.valueComparator);
+		if (changes != null)
+			result = new SetDelta(changes).apply(result);
+		for (PithosTransaction t : chain)
+		{
+			TreeMap<byte[], SetDelta> changed = t.indices.get(index);
+			SetDelta delta = changed == null ? null : changed.get(key);
+			if (delta != null)
+				result = delta.apply(result);
+		}
+		return result;
+	}
+
+	byte[][] indexValues(IndexData index, byte[] key)
+	{
+		PithosTransaction tx = txn();
+		storeLock.readLock().lock();
+		try
+		{
+			return values(index, key, tx, chain(tx));
+		}
+		finally
+		{
+			storeLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * <p>
+	 * Return the smallest value of a key or <code>null</code>. Unless the key has changes
+	 * not visible to, or made by the current transaction, this avoids copying its values.
+	 * </p>
+	 */
+	byte[] indexFirstValue(IndexData index, byte[] key)
+	{
+		PithosTransaction tx = txn();
+		List<PithosTransaction> chain = chain(tx);
+		storeLock.readLock().lock();
+		try
+		{
+			boolean changed = tx != null && Versions.changesSince(index.undo.get(key), snapshot(tx), index.valueComparator) != null;
+			for (PithosTransaction t : chain)
+			{
+				TreeMap<byte[], SetDelta> deltas = t.indices.get(index);
+				changed |= deltas != null && deltas.containsKey(key);
+			}
+			if (!changed)
+			{
+				TreeSet<byte[]> committed = index.entries.get(key);
+				return committed == null || committed.isEmpty() ? null : committed.first();
+			}
+			byte[][] values = values(index, key, tx, chain);
+			return values.length == 0 ? null : values[0];
+		}
+		finally
+		{
+			storeLock.readLock().unlock();
+		}
+	}
 
+	byte[][] indexKeys(IndexData index)
+	{
+		PithosTransaction tx = txn();
+		List<PithosTransaction> chain = chain(tx);
+		storeLock.readLock().lock();
+		try
+		{
+			TreeSet<byte[]> touched = touchedKeys(index, tx, chain);
+			if (touched.isEmpty())
+				return index.entries.keySet().toArray(NONE);
+			TreeSet<byte[]> candidates = new TreeSet<byte[]>(index.keyComparator);
+			candidates.addAll(index.entries.keySet());
+			candidates.addAll(touched);
+			ArrayList<byte[]> result = new ArrayList<byte[]>(candidates.size());
+			for (byte[] key : candidates)
+				if (!touched.contains(key) || values(index, key, tx, chain).length > 0)
+					result.add(key);
+			return result.toArray(NONE);
+		}
+		finally
+		{
+			storeLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * <p>
+	 * Return the values of the keys less than (when <code>lower</code> is set) or greater than
+	 * <code>key</code>, or equal to it when <code>inclusive</code> is set - the ones closest to
+	 * <code>key</code> first. A <code>null</code> key returns all values.
+	 * </p>
+	 */
+	byte[][] indexRange(IndexData index, byte[] key, boolean lower, boolean inclusive)
+	{
+		PithosTransaction tx = txn();
+		List<PithosTransaction> chain = chain(tx);
+		storeLock.readLock().lock();
+		try
+		{
+			NavigableMap<byte[], TreeSet<byte[]>> range = key == null ? index.entries
+					: lower ? index.entries.headMap(key, inclusive).descendingMap()
+					: index.entries.tailMap(key, inclusive);
+			TreeSet<byte[]> touched = touchedKeys(index, tx, chain);
+			NavigableSet<byte[]> candidates = new TreeSet<byte[]>(index.keyComparator);
+			candidates.addAll(range.keySet());
+			if (key == null)
+				candidates.addAll(touched);
+			else if (lower)
+				candidates.addAll(touched.headSet(key, inclusive));
+			else
+				candidates.addAll(touched.tailSet(key, inclusive));
+			if (lower)
+				candidates = candidates.descendingSet();
+			ArrayList<byte[]> result = new ArrayList<byte[]>();
+			for (byte[] k : candidates)
+			{
+				byte[][] values = touched.contains(k) ? values(index, k, tx, chain)
+													  : index.entries.get(k).toArray(NONE);
+				if (lower)
+					for (int i = values.length - 1; i >= 0; i--)
+						result.add(values[i]);
+				else
+					result.addAll(Arrays.asList(values));
+			}
+			return result.toArray(NONE);
+		}
+		finally
+		{
+			storeLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * <p>
+	 * Return the keys of a bidirectional index that have <code>value</code> among their values.
+	 * </p>
+	 */
+	byte[][] indexKeysOf(IndexData index, byte[] value)
+	{
+		PithosTransaction tx = txn();
+		List<PithosTransaction> chain = chain(tx);
+		storeLock.readLock().lock();
+		try
+		{
+			TreeSet<byte[]> committed = index.byValue.get(value);
+			TreeSet<byte[]> touched = touchedKeys(index, tx, chain);
+			if (touched.isEmpty())
+				return committed == null ? NONE : committed.toArray(NONE);
+			TreeSet<byte[]> candidates = new TreeSet<byte[]>(index.keyComparator);
+			if (committed != null)
+				candidates.addAll(committed);
+			candidates.addAll(touched);
+			ArrayList<byte[]> result = new ArrayList<byte[]>();
+			for (byte[] key : candidates)
+				if (!touched.contains(key) ||
+					Arrays.binarySearch(values(index, key, tx, chain), value, index.valueComparator) >= 0)
+					result.add(key);
+			return result.toArray(NONE);
+		}
+		finally
+		{
+			storeLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * <p>Return the number of entries or of keys of an index.</p>
+	 */
+	long indexCount(IndexData index, boolean entries)
+	{
+		PithosTransaction tx = txn();
+		List<PithosTransaction> chain = chain(tx);
+		storeLock.readLock().lock();
+		try
+		{
+			long count = entries ? index.entryCount : index.entries.size();
+			for (byte[] key : touchedKeys(index, tx, chain))
+			{
+				int now = values(index, key, tx, chain).length;
+				TreeSet<byte[]> committed = index.entries.get(key);
+				int before = committed == null ? 0 : committed.size();
+				if (entries)
+					count += now - before;
+				else
+					count += (now > 0 ? 1 : 0) - (before > 0 ? 1 : 0);
+			}
+			return count;
+		}
+		finally
+		{
+			storeLock.readLock().unlock();
+		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,202 @@
+package org.hypergraphdb.pithos;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.hypergraphdb.HGPersistentHandle;
+import org.hypergraphdb.transaction.HGDurability;
+import org.hypergraphdb.transaction.HGStorageTransaction;
+import org.hypergraphdb.transaction.HGTransactionException;
+
+/**
+ * <p>
+ * A transaction of a {@link PithosStore}. Changes are buffered in the transaction until it
+ * commits - a nested transaction merges them into its parent, a top-level one hands them to
+ * the store, which logs and applies them atomically. Reads see the buffered changes of the
+ * transaction and its ancestors on top of the snapshot the top-level transaction started
+ * with.
+ * </p>
+ */
+public class PithosTransaction implements HGStorageTransaction
+{
+	static final Object REMOVED = new Object();
+
+	/**
+	 * <p>Changes to a set: whether it was cleared, then what was added or removed.</p>
+	 */
+	static final class SetDelta
+	{
+		boolean cleared = false;
+		final TreeMap<byte[], Boolean> changes;
+
+		SetDelta(Comparator<byte[]> comparator)
+		{
+			changes = new TreeMap<byte[], Boolean>(comparator);
+		}
+
+		SetDelta(TreeMap<byte[], Boolean> changes)
+		{
+			this.changes = changes;
+		}
+
+		void add(byte[] element)
+		{
+			changes.put(element, Boolean.TRUE);
+		}
+
+		void remove(byte[] element)
+		{
+			changes.put(element, Boolean.FALSE);
+		}
+
+		void clear()
+		{
+			cleared = true;
+			changes.clear();
+		}
+
+		void mergeInto(SetDelta target)
+		{
+			if (cleared)
+				target.clear();
+			target.changes.putAll(changes);
+		}
+
+		/**
+		 * <p>Return the membership of an element set by this delta, <code>null</code> if unchanged.</p>
+		 */
+		Boolean membership(byte[] element)
+		{
+			Boolean m = changes.get(element);
+			return m != null ? m : cleared ? Boolean.FALSE : null;
+		}
+
+		/**
+		 * <p>Apply the changes to a sorted array.</p>
+		 */
+		byte[][] apply(byte[][] base)
+		{
+			if (!cleared && changes.isEmpty())
+				return base;
+			Comparator<? super byte[]> comparator = changes.comparator();
+			ArrayList<byte[]> result = new ArrayList<byte[]>(base.length + changes.size());
+			Iterator<Map.Entry<byte[], Boolean>> it = changes.entrySet().iterator();
+			Map.Entry<byte[], Boolean> change = it.hasNext() ? it.next() : null;
+			int i = cleared ? base.length : 0;
+			while (i < base.length || change != null)
+			{
+				int c = i == base.length ? 1 : change == null ? -1 : comparator.compare(base[i], change.getKey());
+				if (c < 0)
+					result.add(base[i++]);
+				else
+				{
+					if (change.getValue())
+						result.add(change.getKey());
+					if (c == 0)
+						i++;
+					change = it.hasNext() ? it.next() : null;
+				}
+			}
+			return result.toArray(new byte[result.size()][]);
+		}
+	}
+
+	final PithosStore store;
+	final PithosTransaction parent;
+	final long snapshot;
+	final HGDurability durability;
+	final HashMap<HGPersistentHandle, Object> links = new HashMap<HGPersistentHandle, Object>();
+	final HashMap<HGPersistentHandle, Object> data = new HashMap<HGPersistentHandle, Object>();
+	final HashMap<HGPersistentHandle, SetDelta> incidence = new HashMap<HGPersistentHandle, SetDelta>();
+	final HashMap<IndexData, TreeMap<byte[], SetDelta>> indices = new HashMap<IndexData, TreeMap<byte[], SetDelta>>();
+	// the records this (top-level) transaction has locked for writing
+	final ArrayList<HGPersistentHandle> lockedLinks = new ArrayList<HGPersistentHandle>();
+	final ArrayList<HGPersistentHandle> lockedData = new ArrayList<HGPersistentHandle>();
+	private boolean done = false;
+
+	PithosTransaction(PithosStore store, PithosTransaction parent, long snapshot, HGDurability durability)
+	{
+		this.store = store;
+		this.parent = parent;
+		this.snapshot = snapshot;
+		this.durability = durability;
+	}
+
+	PithosTransaction top()
+	{
+		PithosTransaction t = this;
+		while (t.parent != null)
+			t = t.parent;
+		return t;
+	}
+
+	boolean isEmpty()
+	{
+		return links.isEmpty() && data.isEmpty() && incidence.isEmpty() && indices.isEmpty();
+	}
+
+	SetDelta incidenceDelta(HGPersistentHandle atom)
+	{
+		SetDelta delta = incidence.get(atom);
+		if (delta == null)
+			incidence.put(atom, delta = new SetDelta(Bytes.COMPARATOR));
+		return delta;
+	}
+
+	SetDelta indexDelta(IndexData index, byte[] key)
+	{
+		TreeMap<byte[], SetDelta> keys = indices.get(index);
+		if (keys == null)
+			indices.put(index, keys = new TreeMap<byte[], SetDelta>(index.keyComparator));
+		SetDelta delta = keys.get(key);
+		if (delta == null)
+			keys.put(key, delta = new SetDelta(index.valueComparator));
+		return delta;
+	}
+
+	private void mergeInto(PithosTransaction target)
+	{
+		target.links.putAll(links);
+		target.data.putAll(data);
+		for (Map.Entry<HGPersistentHandle, SetDelta> e : incidence.entrySet())
+			e.getValue().mergeInto(target.incidenceDelta(e.getKey()));
+		for (Map.Entry<IndexData, TreeMap<byte[], SetDelta>> e : indices.entrySet())
+			for (Map.Entry<byte[], SetDelta> k : e.getValue().entrySet())
+				k.getValue().mergeInto(target.indexDelta(e.getKey(), k.getKey()));
+	}
+
+	public void commit() throws HGTransactionException
+	{
+		commit(false);
+	}
+
+	/**
+	 * <p>
+	 * Commit, leaving the log write to the caller when <code>deferFlush</code> is set - used
+	 * to commit a batch of transactions with a single log write.
+	 * </p>
+	 */
+	void commit(boolean deferFlush)
+	{
+		if (done)
+			return;
+		done = true;
+		if (parent != null)
+			mergeInto(parent);
+		else
+			store.commit(this, deferFlush);
+	}
+
+	public void abort() throws HGTransactionException
+	{
+		if (done)
+			return;
+		done = true;
+		if (parent == null)
+			store.abort(this);
+	}
+}
@@ -1,11 +1,23 @@
 package org.hypergraphdb.pithos;
 
 import org.hypergraphdb.HGPersistentHandle;
+import org.hypergraphdb.handle.HGLiveHandle;
+import org.hypergraphdb.storage.BAUtils;
 
+/**
+ * <p>
+ * A persistent handle made of a global part, identifying the database that created it,
+ * and a local part - a sequence number within that database. The byte representation
+ * is the global part followed by the local part, both big-endian, so the order of
+ * handles matches the (unsigned) order of their byte representations.
+ * </p>
+ */
 public class UPHandle implements HGPersistentHandle
 {
 	private static final long serialVersionUID = 1L;
-	
+
+	public static final int SIZE = 16;
+
 	private long global, local;
 
 	public UPHandle(long global, long local)
@@ -13,10 +25,10 @@ public class UPHandle implements HGPersistentHandle
 		this.global = global;
 		this.local = local;
 	}
-	
+
 	public long getGlobal() { return global; }
 	public long getLocal() { return local; }
-	
+
 	public HGPersistentHandle getPersistent()
 	{
 		return this;
@@ -26,21 +38,49 @@ public class UPHandle implements HGPersistentHandle
 	{
 		UPHandle x = (UPHandle)o;
 		if (global == x.global)
-			return local > x.local ? 1 : local < x.local ? -1 : 0;
-		else if (global > x.global)
-			return 1;
+			return Long.compareUnsigned(local, x.local);
 		else
-			return -1;
+			return Long.compareUnsigned(global, x.global);
 	}
 
 	public byte[] toByteArray()
 	{
-		byte [] A = new byte[16];
+		byte [] A = new byte[SIZE];
+		writeTo(A, 0);
 		return A;
 	}
 
+	public void writeTo(byte [] buffer, int offset)
+	{
+		BAUtils.writeUnsignedLong(global, buffer, offset);
+		BAUtils.writeUnsignedLong(local, buffer, offset + 8);
+	}
+
+	public int hashCode()
+	{
+		long h = global * 31 + local;
+		return (int)(h ^ (h >>> 32));
+	}
+
+	public boolean equals(Object obj)
+	{
+		if (this == obj)
+			return true;
+		if (obj instanceof HGLiveHandle)
+			obj = ((HGLiveHandle)obj).getPersistent();
+		if (!(obj instanceof UPHandle))
+			return false;
+		UPHandle x = (UPHandle)obj;
+		return global == x.global && local == x.local;
+	}
+
 	public String toStringValue()
 	{
-		return "" + global + ":" + local;
+		return new java.util.UUID(global, local).toString();
+	}
+
+	public String toString()
+	{
+		return toStringValue();
 	}
-}
\ No newline at end of file
+}
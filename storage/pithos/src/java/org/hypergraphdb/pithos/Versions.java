@@ -0,0 +1,161 @@
+package org.hypergraphdb.pithos;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <p>
+ * The version history that gives transactions a consistent snapshot of the store. Every
+ * commit gets the next version number and the store keeps undo records of what the commit
+ * changed - the previous value of a link or data record, or the previous membership of an
+ * element of an incidence set or index entry - for as long as there are transactions that
+ * started before it. A transaction reads the current state and rolls it back using the
+ * undo records with a version greater than its snapshot.
+ * </p>
+ *
+ * <p>
+ * Undo chains are kept newest first in maps owned by their callers. The version counters
+ * are guarded by this object, the chains by the store's write lock.
+ * </p>
+ */
+final class Versions
+{
+	static final class Undo
+	{
+		final long version;
+		// the previous value of a record, or the element whose membership changed
+		final Object before;
+		// whether the element was a member before the change
+		final boolean present;
+		Undo next;
+
+		Undo(long version, Object before, boolean present, Undo next)
+		{
+			this.version = version;
+			this.before = before;
+			this.present = present;
+			this.next = next;
+		}
+	}
+
+	private static final class Purge
+	{
+		final long version;
+		final Map<Object, Undo> chains;
+		final Object key;
+
+		Purge(long version, Map<Object, Undo> chains, Object key)
+		{
+			this.version = version;
+			this.chains = chains;
+			this.key = key;
+		}
+	}
+
+	private long committed = 0;
+	// snapshot -> number of transactions reading it
+	private final TreeMap<Long, Integer> active = new TreeMap<Long, Integer>();
+	private final ArrayDeque<Purge> purges = new ArrayDeque<Purge>();
+
+	synchronized long committed()
+	{
+		return committed;
+	}
+
+	synchronized void setCommitted(long version)
+	{
+		committed = version;
+	}
+
+	synchronized long begin()
+	{
+		Integer n = active.get(committed);
+		active.put(committed, n == null ? 1 : n + 1);
+		return committed;
+	}
+
+	synchronized void end(long snapshot)
+	{
+		Integer n = active.get(snapshot);
+		if (n == null)
+			return;
+		else if (n == 1)
+			active.remove(snapshot);
+		else
+			active.put(snapshot, n - 1);
+	}
+
+	/**
+	 * <p>Whether some transaction may need the undo records of the next commit.</p>
+	 */
+	synchronized boolean hasActive()
+	{
+		return !active.isEmpty();
+	}
+
+	@SuppressWarnings("unchecked")
+	<K> void record(Map<K, Undo> chains, K key, long version, Object before, boolean present)
+	{
+		chains.put(key, new Undo(version, before, present, chains.get(key)));
+		purges.add(new Purge(version, (Map<Object, Undo>)chains, key));
+	}
+
+	/**
+	 * <p>Drop the undo records no active transaction can see.</p>
+	 */
+	void purge()
+	{
+		long oldest;
+		synchronized (this)
+		{
+			oldest = active.isEmpty() ? Long.MAX_VALUE : active.firstKey();
+		}
+		while (!purges.isEmpty() && purges.peek().version <= oldest)
+		{
+			Purge p = purges.poll();
+			Undo head = p.chains.get(p.key);
+			if (head == null)
+				continue;
+			else if (head.version <= oldest)
+				p.chains.remove(p.key);
+			else
+			{
+				Undo u = head;
+				while (u.next != null && u.next.version > oldest)
+					u = u.next;
+				u.next = null;
+			}
+		}
+	}
+
+	/**
+	 * <p>
+	 * Return the value a record had as of <code>snapshot</code>, given its current value
+	 * and its undo chain.
+	 * </p>
+	 */
+	static Object valueAt(Undo chain, long snapshot, Object current)
+	{
+		for (Undo u = chain; u != null && u.version > snapshot; u = u.next)
+			current = u.before;
+		return current;
+	}
+
+	/**
+	 * <p>
+	 * Return the membership changes that take a set from its current state back to its state
+	 * as of <code>snapshot</code>, or <code>null</code> if there are none.
+	 * </p>
+	 */
+	static TreeMap<byte[], Boolean> changesSince(Undo chain, long snapshot, Comparator<byte[]> comparator)
+	{
+		if (chain == null || chain.version <= snapshot)
+			return null;
+		TreeMap<byte[], Boolean> changes = new TreeMap<byte[], Boolean>(comparator);
+		for (Undo u = chain; u != null && u.version > snapshot; u = u.next)
+			changes.put((byte[])u.before, u.present);
+		return changes;
+	}
+}
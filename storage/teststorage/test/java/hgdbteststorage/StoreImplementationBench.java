@@ -0,0 +1,147 @@
+package hgdbteststorage;
+
+import hgtest.T;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.hypergraphdb.HGConfiguration;
+import org.hypergraphdb.HGEnvironment;
+import org.hypergraphdb.HGHandleFactory;
+import org.hypergraphdb.HGIndex;
+import org.hypergraphdb.HGPersistentHandle;
+import org.hypergraphdb.HGRandomAccessResult;
+import org.hypergraphdb.HyperGraph;
+import org.hypergraphdb.storage.BAtoHandle;
+import org.hypergraphdb.storage.ByteArrayConverter;
+import org.hypergraphdb.storage.HGStoreImplementation;
+import org.hypergraphdb.transaction.HGTransactionManager;
+import org.hypergraphdb.util.HGUtils;
+
+/**
+ * <p>
+ * Runs the same workload against several storage implementations and prints the time
+ * each phase takes: storing links and data, building incidence sets and an index, all in
+ * transactions of <code>batch</code> operations, then random reads of each, and finally
+ * reopening the store. Implementations are given by class name on the command line and
+ * default to BerkeleyDB JE and Pithos.
+ * </p>
+ *
+ * <pre>
+ * java hgdbteststorage.StoreImplementationBench [count] [impl class...]
+ * </pre>
+ */
+public class StoreImplementationBench
+{
+	static final int batch = 1000;
+
+	interface Step
+	{
+		void run(int i);
+	}
+
+	HyperGraph graph;
+	HGStoreImplementation impl;
+	HGConfiguration config;
+	String location;
+
+	void open(String implementation)
+	{
+		config = new HGConfiguration();
+		config.setStoreImplementation(newInstance(implementation));
+		graph = HGEnvironment.get(location, config);
+		impl = config.getStoreImplementation();
+	}
+
+	static HGStoreImplementation newInstance(String implementation)
+	{
+		try
+		{
+			return (HGStoreImplementation)Class.forName(implementation).newInstance();
+		}
+		catch (Exception ex)
+		{
+			throw new RuntimeException(ex);
+		}
+	}
+
+	void close()
+	{
+		graph.close();
+	}
+
+	void timed(String phase, int count, boolean transactional, Step step)
+	{
+		HGTransactionManager txman = graph.getTransactionManager();
+		long start = System.nanoTime();
+		for (int from = 0; from < count; from += batch)
+		{
+			final int first = from, last = Math.min(count, from + batch);
+			if (transactional)
+				txman.transact(() -> {
+					for (int i = first; i < last; i++)
+						step.run(i);
+					return null;
+				});
+			else
+				for (int i = first; i < last; i++)
+					step.run(i);
+		}
+		double secs = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("  %-22s %10.3fs %12.0f ops/s", phase, secs, count / secs));
+	}
+
+	void run(String implementation, int count)
+	{
+		location = T.getTmpDirectory() + File.separator + "hgstoragebench";
+		HGUtils.dropHyperGraphInstance(location);
+		System.out.println(implementation);
+		long start = System.nanoTime();
+		open(implementation);
+		System.out.println(String.format("  %-22s %10.3fs", "open", (System.nanoTime() - start) / 1e9));
+		HGHandleFactory factory = config.getHandleFactory();
+		HGPersistentHandle[] handles = new HGPersistentHandle[count];
+		for (int i = 0; i < count; i++)
+			handles[i] = factory.makeHandle();
+		Random random = new Random(42);
+		byte[] value = new byte[100];
+		random.nextBytes(value);
+		ByteArrayConverter<HGPersistentHandle> conv = BAtoHandle.getInstance(factory);
+		HGIndex<HGPersistentHandle, HGPersistentHandle> index = impl.getIndex("bench", conv, conv, null, null, false, true);
+		int targets = Math.max(1, count / 100);
+
+		timed("store links", count, true, i -> impl.store(handles[i],
+				new HGPersistentHandle[] { handles[(i + 1) % count], handles[(i + 7) % count] }));
+		timed("store data", count, true, i -> impl.store(handles[i], value));
+		timed("incidence adds", count, true, i -> impl.addIncidenceLink(handles[i % targets], handles[i]));
+		timed("index adds", count, true, i -> index.addEntry(handles[i % targets], handles[i]));
+		timed("random getLink", count, false, i -> impl.getLink(handles[random.nextInt(count)]));
+		timed("random getData", count, false, i -> impl.getData(handles[random.nextInt(count)]));
+		timed("incidence scans", targets, false, i -> {
+			try (HGRandomAccessResult<HGPersistentHandle> rs = impl.getIncidenceResultSet(handles[i]))
+			{
+				while (rs.hasNext())
+					rs.next();
+			}
+		});
+		timed("index lookups", count, false, i -> index.findFirst(handles[random.nextInt(targets)]));
+		start = System.nanoTime();
+		close();
+		open(implementation);
+		System.out.println(String.format("  %-22s %10.3fs", "close and reopen", (System.nanoTime() - start) / 1e9));
+		if (impl.getIncidenceSetCardinality(handles[0]) != count / targets)
+			System.out.println("  unexpected incidence set size " + impl.getIncidenceSetCardinality(handles[0]));
+		close();
+		HGUtils.dropHyperGraphInstance(location);
+	}
+
+	public static void main(String[] argv)
+	{
+		int count = argv.length > 0 ? Integer.parseInt(argv[0]) : 200000;
+		String[] implementations = argv.length > 1 ? Arrays.copyOfRange(argv, 1, argv.length)
+				: new String[] { "org.hypergraphdb.storage.bje.BJEStorageImplementation", "org.hypergraphdb.pithos.PithosStore" };
+		for (String implementation : implementations)
+			new StoreImplementationBench().run(implementation, count);
+	}
+}
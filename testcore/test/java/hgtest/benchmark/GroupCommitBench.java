@@ -0,0 +1,94 @@
+package hgtest.benchmark;
+
+import static org.junit.Assert.*;
+import hgtest.HGTestBase;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.hypergraphdb.HGQuery.hg;
+import org.hypergraphdb.transaction.HGTransactionManager;
+import org.hypergraphdb.util.HGUtils;
+import org.junit.Test;
+
+/**
+ * Compare the throughput of many small concurrent write transactions with and
+ * without group commit.
+ */
+public class GroupCommitBench extends HGTestBase
+{
+    private int count = 20000;
+    private int poolSize = 16;
+
+    long run(final String prefix, boolean groupCommit)
+    {
+        final HGTransactionManager txman = graph.getTransactionManager();
+        txman.setGroupCommit(groupCommit);
+        ExecutorService pool = Executors.newFixedThreadPool(poolSize);
+        assertEquals(count % poolSize, 0);
+        final int batchSize = count / poolSize;
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < poolSize; i++)
+        {
+            final int j = i;
+            pool.execute(new Runnable() {
+                public void run()
+                {
+                    for (int k = j*batchSize; k < j*batchSize + batchSize; k++)
+                        graph.add(prefix + k);
+                }
+            });
+        }
+        try
+        {
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        catch (InterruptedException ex)
+        {
+        }
+        long time = System.currentTimeMillis() - start;
+        txman.setGroupCommit(false);
+        System.out.println((groupCommit ? "Group" : "Single") + " commit: " + count + " transactions in " +
+                           time + "ms, " + (count*1000l/Math.max(time, 1)) + " tx/s");
+        return time;
+    }
+
+    @Test
+    public void singleCommit()
+    {
+        long before = hg.count(graph, hg.type(String.class));
+        run("single", false);
+        assertEquals(before + count, hg.count(graph, hg.type(String.class)));
+    }
+
+    @Test
+    public void groupCommit()
+    {
+        long before = hg.count(graph, hg.type(String.class));
+        int groupsBefore = graph.getTransactionManager().getGroupsCommitted();
+        int groupedBefore = graph.getTransactionManager().getGroupedTransactions();
+        run("group", true);
+        assertEquals(before + count, hg.count(graph, hg.type(String.class)));
+        int groups = graph.getTransactionManager().getGroupsCommitted() - groupsBefore;
+        int grouped = graph.getTransactionManager().getGroupedTransactions() - groupedBefore;
+        System.out.println("Average group size: " + ((double)grouped / Math.max(groups, 1)));
+    }
+
+    public static void main(String [] argv)
+    {
+        GroupCommitBench test = new GroupCommitBench();
+        HGUtils.dropHyperGraphInstance(getGraphLocation());
+        setUp();
+        try
+        {
+            test.singleCommit();
+            test.groupCommit();
+        }
+        finally
+        {
+            tearDown();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package hgtest.benchmark;
+
+import java.lang.management.ManagementFactory;
+
+import org.hypergraphdb.HGEnvironment;
+import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.HGPersistentHandle;
+import org.hypergraphdb.HGPlainLink;
+import org.hypergraphdb.HGStore;
+import org.hypergraphdb.HyperGraph;
+import org.hypergraphdb.util.HGUtils;
+
+import hgtest.HGTestBase;
+
+/**
+ * Measure the heap allocated per call by the handle keyed storage operations - link
+ * and data lookups, existence checks and link writes. Allocation is measured per thread
+ * through <code>com.sun.management.ThreadMXBean</code>, so run it on a HotSpot based JVM.
+ */
+public class KeyEncodingBench
+{
+    static final int atoms = 10000;
+    static final int rounds = 20;
+
+    static long allocated()
+    {
+        return ((com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    static void report(String operation, long bytes, long time, long calls)
+    {
+        System.out.println(operation + ": " + (bytes / calls) + " bytes/op, " +
+                           (calls * 1000l / Math.max(time, 1)) + " ops/s");
+    }
+
+    public static void main(String [] argv)
+    {
+        String location = HGTestBase.getGraphLocation() + "_keybench";
+        HGUtils.dropHyperGraphInstance(location);
+        HyperGraph graph = HGEnvironment.get(location);
+        try
+        {
+            HGStore store = graph.getStore();
+            HGPersistentHandle [] links = new HGPersistentHandle[atoms];
+            HGPersistentHandle [] values = new HGPersistentHandle[atoms];
+            HGHandle hub = graph.add("hub");
+            for (int i = 0; i < atoms; i++)
+            {
+                HGHandle node = graph.add(i);
+                links[i] = graph.getPersistentHandle(graph.add(new HGPlainLink(hub, node)));
+                values[i] = store.getLink(graph.getPersistentHandle(node))[1];
+            }
+            // warm up
+            for (int i = 0; i < atoms; i++)
+            {
+                store.getLink(links[i]);
+                store.containsLink(links[i]);
+                store.getData(values[i]);
+            }
+            long calls = (long)atoms * rounds;
+
+            long bytes = allocated(), time = System.currentTimeMillis();
+            for (int r = 0; r < rounds; r++)
+                for (int i = 0; i < atoms; i++)
+                    store.getLink(links[i]);
+            report("getLink", allocated() - bytes, System.currentTimeMillis() - time, calls);
+
+            bytes = allocated(); time = System.currentTimeMillis();
+            for (int r = 0; r < rounds; r++)
+                for (int i = 0; i < atoms; i++)
+                    store.containsLink(links[i]);
+            report("containsLink", allocated() - bytes, System.currentTimeMillis() - time, calls);
+
+            bytes = allocated(); time = System.currentTimeMillis();
+            for (int r = 0; r < rounds; r++)
+                for (int i = 0; i < atoms; i++)
+                    store.getData(values[i]);
+            report("getData", allocated() - bytes, System.currentTimeMillis() - time, calls);
+
+            bytes = allocated(); time = System.currentTimeMillis();
+            for (int r = 0; r < rounds; r++)
+                for (int i = 0; i < atoms; i++)
+                    store.getIncidenceSetCardinality(links[i]);
+            report("getIncidenceSetCardinality", allocated() - bytes, System.currentTimeMillis() - time, calls);
+
+            HGPersistentHandle [] layout = store.getLink(links[0]);
+            bytes = allocated(); time = System.currentTimeMillis();
+            for (int i = 0; i < atoms; i++)
+                store.store(links[i], layout);
+            report("store(link)", allocated() - bytes, System.currentTimeMillis() - time, atoms);
+        }
+        finally
+        {
+            graph.close();
+            HGUtils.dropHyperGraphInstance(location);
+        }
+    }
+}
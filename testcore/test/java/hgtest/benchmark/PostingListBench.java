@@ -0,0 +1,109 @@
+package hgtest.benchmark;
+
+import java.io.File;
+
+import org.hypergraphdb.HGBulkLoader;
+import org.hypergraphdb.HGConfiguration;
+import org.hypergraphdb.HGEnvironment;
+import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.HGPersistentHandle;
+import org.hypergraphdb.HGPlainLink;
+import org.hypergraphdb.HGRandomAccessResult;
+import org.hypergraphdb.HGQuery.hg;
+import org.hypergraphdb.HyperGraph;
+import org.hypergraphdb.storage.bje.BJEConfig;
+import org.hypergraphdb.storage.bje.BJEStorageImplementation;
+import org.hypergraphdb.util.HGUtils;
+
+import com.sleepycat.je.CheckpointConfig;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.EnvironmentConfig;
+
+import hgtest.HGTestBase;
+
+/**
+ * Compare the on-disk size and the scan speed of a large incidence set and of the
+ * by-type index with and without compressed posting lists.
+ */
+public class PostingListBench
+{
+    static long size(File dir)
+    {
+        long total = 0;
+        File [] files = dir.listFiles();
+        if (files != null)
+            for (File f : files)
+                total += f.isDirectory() ? size(f) : f.length();
+        return total;
+    }
+
+    static void run(int count, boolean compressed)
+    {
+        String location = HGTestBase.getGraphLocation() + "_postingbench";
+        HGUtils.dropHyperGraphInstance(location);
+        HGConfiguration config = new HGConfiguration();
+        BJEConfig bjeConfig = ((BJEStorageImplementation)config.getStoreImplementation()).getConfiguration();
+        bjeConfig.setCompressedPostingLists(compressed);
+        // let the cleaner reclaim obsolete records so that the size reflects live data
+        bjeConfig.getEnvironmentConfig().setConfigParam(EnvironmentConfig.CLEANER_MIN_UTILIZATION, "90");
+        bjeConfig.getEnvironmentConfig().setConfigParam(EnvironmentConfig.LOG_FILE_MAX, "1000000");
+        HyperGraph graph = HGEnvironment.get(location, config);
+        long sizeBefore = size(new File(location));
+        HGHandle hub = graph.add("hub");
+        HGBulkLoader loader = new HGBulkLoader(graph, "bench");
+        for (int i = 0; i < count; i++)
+            loader.add(new HGPlainLink(hub));
+        loader.close();
+        Environment env = ((BJEStorageImplementation)config.getStoreImplementation()).getBerkleyEnvironment();
+        while (env.cleanLog() > 0);
+        CheckpointConfig force = new CheckpointConfig();
+        force.setForce(true);
+        env.checkpoint(force);
+        graph.close();
+        long sizeAfter = size(new File(location));
+        graph = HGEnvironment.get(location);
+        try
+        {
+            long start = System.currentTimeMillis();
+            long scanned = 0;
+            for (int round = 0; round < 5; round++)
+            {
+                HGRandomAccessResult<HGPersistentHandle> rs = graph.getStore().getIncidenceResultSet(hub.getPersistent());
+                try
+                {
+                    while (rs.hasNext())
+                    {
+                        rs.next();
+                        scanned++;
+                    }
+                }
+                finally
+                {
+                    rs.close();
+                }
+            }
+            long scanTime = System.currentTimeMillis() - start;
+            start = System.currentTimeMillis();
+            long typed = hg.count(graph, hg.type(HGPlainLink.class));
+            long countTime = System.currentTimeMillis() - start;
+            System.out.println((compressed ? "compressed" : "plain     ") + ": " + count + " links, " +
+                               (sizeAfter - sizeBefore)/1024 + "KB on disk, 5 incidence scans (" + scanned +
+                               ") in " + scanTime + "ms, type count (" + typed + ") in " + countTime + "ms");
+        }
+        finally
+        {
+            graph.close();
+            HGUtils.dropHyperGraphInstance(location);
+        }
+    }
+
+    public static void main(String [] argv)
+    {
+        int count = argv.length > 0 ? Integer.parseInt(argv[0]) : 200000;
+        for (int i = 0; i < 2; i++)
+        {
+            run(count, false);
+            run(count, true);
+        }
+    }
+}
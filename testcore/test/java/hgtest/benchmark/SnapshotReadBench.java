@@ -0,0 +1,128 @@
+package hgtest.benchmark;
+
+import static org.junit.Assert.*;
+import hgtest.HGTestBase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.HGQuery.hg;
+import org.hypergraphdb.transaction.HGTransactionConfig;
+import org.hypergraphdb.transaction.HGTransactionManager;
+import org.hypergraphdb.util.HGUtils;
+import org.junit.Test;
+
+/**
+ * Measure the per-read cost of short read transactions, running as regular, read-only
+ * and snapshot transactions. Each transaction reads a few atoms by handle and does one
+ * index lookup. The first round of each mode is a warm up and is not reported.
+ */
+public class SnapshotReadBench extends HGTestBase
+{
+    private int atomCount = 2000;
+    private int readsPerTx = 20;
+    private int txPerThread = 2000;
+    private int poolSize = 8;
+    private int rounds = 3;
+    private List<HGHandle> handles = new ArrayList<HGHandle>();
+
+    void populate()
+    {
+        if (!handles.isEmpty())
+            return;
+        for (int i = 0; i < atomCount; i++)
+            handles.add(graph.add("snapshotBench" + i));
+    }
+
+    /**
+     * Return the average time in nanoseconds per atom read.
+     */
+    double run(final HGTransactionConfig config)
+    {
+        final HGTransactionManager txman = graph.getTransactionManager();
+        ExecutorService pool = Executors.newFixedThreadPool(poolSize);
+        long start = System.nanoTime();
+        for (int i = 0; i < poolSize; i++)
+        {
+            final int seed = i;
+            pool.execute(new Runnable() {
+                public void run()
+                {
+                    for (int t = 0; t < txPerThread; t++)
+                    {
+                        final int base = (seed * 7919 + t * readsPerTx) % atomCount;
+                        txman.transact(new Callable<Object>() {
+                            public Object call()
+                            {
+                                for (int k = 0; k < readsPerTx; k++)
+                                    assertNotNull(graph.get(handles.get((base + k) % atomCount)));
+                                assertNotNull(hg.findOne(graph, hg.eq("snapshotBench" + base)));
+                                return null;
+                            }
+                        }, config);
+                    }
+                }
+            });
+        }
+        try
+        {
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        catch (InterruptedException ex)
+        {
+        }
+        long reads = (long)poolSize * txPerThread * (readsPerTx + 1);
+        return (double)(System.nanoTime() - start) / reads;
+    }
+
+    void measure(String name, HGTransactionConfig config)
+    {
+        populate();
+        run(config);
+        double total = 0;
+        for (int i = 0; i < rounds; i++)
+            total += run(config);
+        System.out.println(name + " transactions: " + (long)(total / rounds) + " ns/read");
+    }
+
+    @Test
+    public void defaultReads()
+    {
+        measure("Default", HGTransactionConfig.DEFAULT);
+    }
+
+    @Test
+    public void readonlyReads()
+    {
+        measure("Read-only", HGTransactionConfig.READONLY);
+    }
+
+    @Test
+    public void snapshotReads()
+    {
+        measure("Snapshot", HGTransactionConfig.SNAPSHOT);
+    }
+
+    public static void main(String [] argv)
+    {
+        SnapshotReadBench test = new SnapshotReadBench();
+        HGUtils.dropHyperGraphInstance(getGraphLocation());
+        setUp();
+        try
+        {
+            test.defaultReads();
+            test.readonlyReads();
+            test.snapshotReads();
+        }
+        finally
+        {
+            tearDown();
+        }
+    }
+}
@@ -1,9 +1,21 @@
 package hgtest.indexing;
 
-import org.hypergraphdb.HGIndex;
+import java.util.ArrayList;
+import java.util.List;
 
+import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.HGIndex;
+import org.hypergraphdb.HGQuery;
+import org.hypergraphdb.HGQuery.hg;
+import org.hypergraphdb.HyperGraph;
+import org.hypergraphdb.event.HGEvent;
+import org.hypergraphdb.event.HGIndexingProgressEvent;
+import org.hypergraphdb.event.HGListener;
 import org.hypergraphdb.indexing.ByPartIndexer;
 import org.hypergraphdb.indexing.HGIndexer;
+import org.hypergraphdb.maintenance.ApplyNewIndexer;
+import org.hypergraphdb.query.cond2qry.ExpressionBasedQuery;
+import org.hypergraphdb.query.impl.IndexBasedQuery;
 import org.hypergraphdb.type.TypeUtils;
 import org.junit.Assert;
 import org.junit.Test;
@@ -71,4 +83,62 @@ public class IndexManagerTests extends HGTestBase
         // The index should contain exactly one element here:
         Assert.assertEquals(theIndex.count(), 1);	
     }
+    
+    @SuppressWarnings("rawtypes")
+    @Test
+    public void testParallelBackfill()
+    {
+        cleanup();
+        int total = 1000;
+        for (int i = 0; i < total; i++)
+        {
+            SimpleBean x = new SimpleBean();
+            x.setStrProp("bean" + i);
+            graph.add(x);
+        }
+        // Drop indexing left pending by other tests, so that the only operation is ours.
+        List<HGHandle> pending = hg.findAll(graph, hg.type(ApplyNewIndexer.class));
+        for (HGHandle h : pending)
+            graph.remove(h);
+        HGIndexer indexer = new ByPartIndexer(graph.getTypeSystem().getTypeHandle(SimpleBean.class), "strProp");
+        HGIndex<?, ?> theIndex = graph.getIndexManager().register(indexer);
+        Assert.assertFalse(graph.getIndexManager().isComplete(indexer));
+        
+        // Queries don't use the index until it has been populated
+        ExpressionBasedQuery query = (ExpressionBasedQuery)HGQuery.make(graph, 
+                hg.and(hg.type(SimpleBean.class), hg.eq("strProp", "bean500")));
+        Assert.assertFalse(query.getCompiledQuery() instanceof IndexBasedQuery);
+        Assert.assertEquals(hg.count(query), 1);
+        
+        ApplyNewIndexer op = hg.getOne(graph, hg.type(ApplyNewIndexer.class));
+        op.setBatchSize(50);
+        op.setPartitions(4);
+        final List<HGIndexingProgressEvent> events = new ArrayList<HGIndexingProgressEvent>();
+        HGListener listener = new HGListener() {
+            public Result handle(HyperGraph graph, HGEvent event)
+            {
+                events.add((HGIndexingProgressEvent)event);
+                return Result.ok;
+            }
+        };
+        graph.getEventManager().addListener(HGIndexingProgressEvent.class, listener);
+        try
+        {
+            graph.runMaintenance();
+        }
+        finally
+        {
+            graph.getEventManager().removeListener(HGIndexingProgressEvent.class, listener);
+        }
+        Assert.assertTrue(graph.getIndexManager().isComplete(indexer));
+        Assert.assertEquals(theIndex.count(), total);
+        Assert.assertEquals(events.size(), total / 50);
+        Assert.assertEquals(events.get(events.size() - 1).getProcessed(), total);
+        Assert.assertEquals(hg.count(graph, hg.type(ApplyNewIndexer.class)), 0);
+        
+        query = (ExpressionBasedQuery)HGQuery.make(graph, 
+                hg.and(hg.type(SimpleBean.class), hg.eq("strProp", "bean500")));
+        Assert.assertTrue(query.getCompiledQuery() instanceof IndexBasedQuery);
+        Assert.assertEquals(hg.count(query), 1);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,232 @@
+package hgtest.query;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import hgtest.HGTestBase;
+import hgtest.beans.SimpleBean;
+
+import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.HGPlainLink;
+import org.hypergraphdb.HGQuery;
+import org.hypergraphdb.HGQuery.hg;
+import org.hypergraphdb.HGSearchResult;
+import org.hypergraphdb.query.HGQueryCondition;
+import org.hypergraphdb.query.HGQueryConfiguration;
+import org.hypergraphdb.query.impl.ParallelExecution;
+import org.hypergraphdb.transaction.HGTransaction;
+import org.hypergraphdb.transaction.HGTransactionConfig;
+import org.hypergraphdb.transaction.HGTransactionContext;
+import org.hypergraphdb.type.TypeUtils;
+import org.hypergraphdb.util.Mapping;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ParallelQueryTests extends HGTestBase
+{
+    private void populate(int count)
+    {
+        TypeUtils.deleteType(graph, graph.getTypeSystem().getTypeHandle(SimpleBean.class));
+        for (int i = 0; i < count; i++)
+        {
+            SimpleBean x = new SimpleBean();
+            x.setStrProp("bean" + (i % 10));
+            x.setIntProp(i);
+            graph.add(x);
+        }
+    }
+
+    private void parallel(boolean enabled)
+    {
+        HGQueryConfiguration config = graph.getConfig().getQueryConfiguration();
+        config.setParallelExecution(enabled);
+        config.setParallelism(4);
+        config.setParallelChunkSize(100);
+        graph.getQueryPlanCache().invalidate();
+    }
+
+    // Compare the parallel and sequential results of a query.
+    private List<HGHandle> compare(HGQueryCondition condition)
+    {
+        parallel(false);
+        List<HGHandle> expected = hg.findAll(graph, condition);
+        parallel(true);
+        List<HGHandle> actual = hg.findAll(graph, condition);
+        Assert.assertEquals(expected, actual);
+        return actual;
+    }
+
+    @After
+    public void sequential()
+    {
+        parallel(false);
+    }
+
+    @Test
+    public void testFilteredTypeScan()
+    {
+        populate(1000);
+        Assert.assertEquals(100, compare(hg.and(hg.type(SimpleBean.class), hg.eq("strProp", "bean3"))).size());
+        Assert.assertEquals(1, compare(hg.and(hg.type(SimpleBean.class), hg.eq("intProp", 999))).size());
+        Assert.assertEquals(0, compare(hg.and(hg.type(SimpleBean.class), hg.eq("strProp", "nobean"))).size());
+        Assert.assertEquals(500, compare(hg.and(hg.type(SimpleBean.class), hg.gte("intProp", 500))).size());
+    }
+
+    @Test
+    public void testIntersection()
+    {
+        HGHandle h1 = graph.add("parallel-target1");
+        HGHandle h2 = graph.add("parallel-target2");
+        HGHandle h3 = graph.add("parallel-target3");
+        List<HGHandle> links = new ArrayList<HGHandle>();
+        for (int i = 0; i < 50; i++)
+        {
+            links.add(graph.add(new HGPlainLink(h1, h2)));
+            links.add(graph.add(new HGPlainLink(h1, h2, h3)));
+            links.add(graph.add(new HGPlainLink(h2, h3)));
+        }
+        Assert.assertEquals(100, compare(hg.and(hg.incident(h1), hg.incident(h2))).size());
+        Assert.assertEquals(50, compare(hg.and(hg.incident(h1), hg.incident(h2), hg.incident(h3))).size());
+        Assert.assertEquals(100, compare(hg.and(hg.type(HGPlainLink.class), hg.incident(h2), hg.incident(h3))).size());
+        for (HGHandle l : links)
+            graph.remove(l);
+        graph.remove(h1);
+        graph.remove(h2);
+        graph.remove(h3);
+    }
+
+    @Test
+    public void testBackwardTraversal()
+    {
+        populate(500);
+        parallel(true);
+        graph.getTransactionManager().transact(new Callable<Object>() {
+            public Object call()
+            {
+                HGSearchResult<HGHandle> rs = graph.find(hg.and(hg.type(SimpleBean.class), hg.eq("strProp", "bean7")));
+                try
+                {
+                    List<HGHandle> forward = new ArrayList<HGHandle>();
+                    while (rs.hasNext())
+                        forward.add(rs.next());
+                    Assert.assertEquals(50, forward.size());
+                    Assert.assertEquals(50, new HashSet<HGHandle>(forward).size());
+                    for (int i = forward.size() - 2; i >= 0; i--)
+                    {
+                        Assert.assertTrue(rs.hasPrev());
+                        Assert.assertEquals(forward.get(i), rs.prev());
+                    }
+                    Assert.assertFalse(rs.hasPrev());
+                }
+                finally
+                {
+                    rs.close();
+                }
+                return null;
+            }
+        }, HGTransactionConfig.READONLY);
+    }
+
+    @Test
+    public void testWriteTransactionIsSequential()
+    {
+        populate(300);
+        parallel(true);
+        graph.getTransactionManager().transact(new Callable<Object>() {
+            public Object call()
+            {
+                Set<Integer> S = new HashSet<Integer>();
+                for (HGHandle h : hg.<HGHandle>findAll(graph, hg.and(hg.type(SimpleBean.class), hg.lt("intProp", 30))))
+                    S.add(((SimpleBean)graph.get(h)).getIntProp());
+                Assert.assertEquals(30, S.size());
+                return null;
+            }
+        });
+    }
+
+    @Test
+    public void testTasksRunConcurrently()
+    {
+        final HGHandle h = graph.add("parallel-task-target");
+        graph.getTransactionManager().transact(new Callable<Object>() {
+            public Object call() throws Exception
+            {
+                final HGTransaction tx = graph.getTransactionManager().getContext().getCurrent();
+                final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+                final Set<HGTransactionContext> contexts = ConcurrentHashMap.newKeySet();
+                // Every task waits for all the others, so they must run at the same time.
+                final CyclicBarrier barrier = new CyclicBarrier(4);
+                List<Callable<String>> tasks = new ArrayList<Callable<String>>();
+                for (int i = 0; i < 4; i++)
+                    tasks.add(new Callable<String>() {
+                        public String call() throws Exception
+                        {
+                            threads.add(Thread.currentThread());
+                            contexts.add(graph.getTransactionManager().getContext());
+                            barrier.await(10, TimeUnit.SECONDS);
+                            Assert.assertSame(tx, graph.getTransactionManager().getContext().getCurrent());
+                            // Transactions begun by a task don't touch the context of the caller.
+                            String nested = graph.getTransactionManager().transact(new Callable<String>() {
+                                public String call()
+                                {
+                                    return graph.get(h);
+                                }
+                            }, HGTransactionConfig.READONLY);
+                            Assert.assertSame(tx, graph.getTransactionManager().getContext().getCurrent());
+                            return nested;
+                        }
+                    });
+                for (String x : ParallelExecution.invokeAll(graph, tasks, null))
+                    Assert.assertEquals("parallel-task-target", x);
+                Assert.assertEquals(4, threads.size());
+                Assert.assertEquals(4, contexts.size());
+                Assert.assertSame(tx, graph.getTransactionManager().getContext().getCurrent());
+                return null;
+            }
+        }, HGTransactionConfig.READONLY);
+        graph.remove(h);
+    }
+
+    @Test
+    public void testFilterRunsConcurrently()
+    {
+        populate(1000);
+        parallel(true);
+        final HGQuery<HGHandle> query = HGQuery.make(HGHandle.class, graph).compile(hg.type(SimpleBean.class));
+        final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        final Mapping<HGHandle, Boolean> predicate = new Mapping<HGHandle, Boolean>() {
+            public Boolean eval(HGHandle h)
+            {
+                threads.add(Thread.currentThread());
+                return ((SimpleBean)graph.get(h)).getIntProp() % 3 == 0;
+            }
+        };
+        List<HGHandle> matches = graph.getTransactionManager().transact(new Callable<List<HGHandle>>() {
+            public List<HGHandle> call()
+            {
+                List<HGHandle> L = new ArrayList<HGHandle>();
+                HGSearchResult<HGHandle> rs = ParallelExecution.filter(graph, query, predicate);
+                try
+                {
+                    while (rs.hasNext())
+                        L.add(rs.next());
+                }
+                finally
+                {
+                    rs.close();
+                }
+                return L;
+            }
+        }, HGTransactionConfig.READONLY);
+        Assert.assertEquals(334, matches.size());
+        Assert.assertEquals(334, new HashSet<HGHandle>(matches).size());
+        Assert.assertTrue(threads.size() > 1);
+    }
+}
@@ -17,6 +17,9 @@ import org.hypergraphdb.HGQuery;
 import org.hypergraphdb.HGQuery.hg;
 import org.hypergraphdb.HyperGraph;
 import org.hypergraphdb.atom.HGSubgraph;
+import org.hypergraphdb.query.HGQueryCondition;
+import org.hypergraphdb.query.cond2qry.ExpressionBasedQuery;
+import org.hypergraphdb.query.impl.LeapfrogIntersectionQuery;
 import org.hypergraphdb.util.Ref;
 import org.junit.Assert;
 import org.junit.Test;
@@ -133,6 +136,34 @@ public class QueryCompilation extends HGTestBase
         incomingIncidentNodesQuery.execute().close();
     }
     
+    @Test
+    public void testLeapfrogIntersection()
+    {
+        HyperGraph graph = getGraph();
+        HGHandle a = graph.add("leapfrog-a");
+        HGHandle b = graph.add("leapfrog-b");
+        HGHandle c = graph.add("leapfrog-c");
+        HGHandle l1 = graph.add(new HGPlainLink(a, b, c));
+        HGHandle l2 = graph.add(new HGPlainLink(a, b));
+        HGHandle l3 = graph.add(new HGPlainLink(c, b, a, l2));
+        HGHandle l4 = graph.add(new HGPlainLink(b, c));
+        HGQueryCondition cond = hg.and(hg.type(HGPlainLink.class), hg.incident(a), hg.incident(b), hg.incident(c));
+        ExpressionBasedQuery<HGHandle> q = (ExpressionBasedQuery<HGHandle>)HGQuery.<HGHandle>make(graph, cond);
+        Assert.assertTrue(q.getCompiledQuery() instanceof LeapfrogIntersectionQuery);
+        Set<HGHandle> S = q.findInSet();
+        Assert.assertEquals(2, S.size());
+        Assert.assertTrue(S.contains(l1));
+        Assert.assertTrue(S.contains(l3));
+        Assert.assertEquals(1, hg.findAll(graph, hg.and(hg.incident(a), hg.incident(b), hg.incident(l2))).size());
+        graph.remove(l3);
+        graph.remove(l1);
+        graph.remove(l2);
+        graph.remove(l4);
+        graph.remove(a);
+        graph.remove(b);
+        graph.remove(c);
+    }
+    
     @SuppressWarnings("unchecked")
     @Test
     public void testOLC()
@@ -0,0 +1,128 @@
+package hgtest.query;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import hgtest.HGTestBase;
+import hgtest.beans.SimpleBean;
+
+import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.HGPlainLink;
+import org.hypergraphdb.HGQuery;
+import org.hypergraphdb.HGQuery.hg;
+import org.hypergraphdb.HGSearchResult;
+import org.hypergraphdb.indexing.ByPartIndexer;
+import org.hypergraphdb.indexing.HGIndexer;
+import org.hypergraphdb.query.HGQueryCondition;
+import org.hypergraphdb.query.cond2qry.ExpressionBasedQuery;
+import org.hypergraphdb.query.cond2qry.QueryPlanCache;
+import org.hypergraphdb.query.impl.IndexBasedQuery;
+import org.hypergraphdb.type.TypeUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class QueryPlanCacheTests extends HGTestBase
+{
+    private HGQueryCondition byStr(String value)
+    {
+        return hg.and(hg.type(SimpleBean.class), hg.eq("strProp", value));
+    }
+
+    private void populate(int count)
+    {
+        TypeUtils.deleteType(graph, graph.getTypeSystem().getTypeHandle(SimpleBean.class));
+        for (int i = 0; i < count; i++)
+        {
+            SimpleBean x = new SimpleBean();
+            x.setStrProp("bean" + i);
+            x.setIntProp(i);
+            graph.add(x);
+        }
+    }
+
+    @Test
+    public void testPlanReuse()
+    {
+        populate(20);
+        QueryPlanCache cache = graph.getQueryPlanCache();
+        cache.invalidate();
+        for (int i = 0; i < 20; i++)
+        {
+            List<SimpleBean> L = hg.getAll(graph, byStr("bean" + i));
+            Assert.assertEquals(1, L.size());
+            Assert.assertEquals(i, L.get(0).getIntProp());
+        }
+        HGQuery<?> plan = cache.getPlan(byStr("bean0"));
+        Assert.assertNotNull(plan);
+        Assert.assertSame(plan, cache.getPlan(byStr("something else")));
+        Assert.assertTrue(hg.findAll(graph, byStr("nobean")).isEmpty());
+        // A different operator is a different shape.
+        Assert.assertNull(cache.getPlan(hg.and(hg.type(SimpleBean.class), hg.lt("strProp", "bean0"))));
+        Assert.assertEquals(19, hg.findAll(graph, hg.and(hg.type(SimpleBean.class), hg.gt("intProp", 0))).size());
+        Assert.assertEquals(9, hg.findAll(graph, hg.and(hg.type(SimpleBean.class), hg.gt("intProp", 10))).size());
+    }
+
+    @Test
+    public void testIncidentParameter()
+    {
+        HGHandle h1 = graph.add("plan-target1");
+        HGHandle h2 = graph.add("plan-target2");
+        HGHandle l1 = graph.add(new HGPlainLink(h1));
+        HGHandle l2 = graph.add(new HGPlainLink(h2));
+        HGHandle l3 = graph.add(new HGPlainLink(h1, h2));
+        Set<HGHandle> S = new HashSet<HGHandle>(hg.findAll(graph, hg.incident(h1)));
+        Assert.assertEquals(2, S.size());
+        Assert.assertTrue(S.contains(l1) && S.contains(l3));
+        S = new HashSet<HGHandle>(hg.findAll(graph, hg.incident(h2)));
+        Assert.assertEquals(2, S.size());
+        Assert.assertTrue(S.contains(l2) && S.contains(l3));
+        graph.remove(l1);
+        graph.remove(l2);
+        graph.remove(l3);
+        graph.remove(h1);
+        graph.remove(h2);
+    }
+
+    @Test
+    public void testInterleavedResults()
+    {
+        populate(10);
+        HGSearchResult<HGHandle> rs1 = graph.find(byStr("bean1"));
+        HGSearchResult<HGHandle> rs2 = graph.find(byStr("bean2"));
+        try
+        {
+            Assert.assertTrue(rs2.hasNext());
+            Assert.assertEquals(2, ((SimpleBean)graph.get(rs2.next())).getIntProp());
+            Assert.assertTrue(rs1.hasNext());
+            Assert.assertEquals(1, ((SimpleBean)graph.get(rs1.next())).getIntProp());
+            Assert.assertFalse(rs2.hasNext());
+            Assert.assertFalse(rs1.hasNext());
+        }
+        finally
+        {
+            rs1.close();
+            rs2.close();
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Test
+    public void testInvalidationOnNewIndex()
+    {
+        populate(10);
+        Assert.assertEquals(1, hg.findAll(graph, byStr("bean3")).size());
+        ExpressionBasedQuery<?> plan = (ExpressionBasedQuery<?>)graph.getQueryPlanCache().getPlan(byStr("bean3"));
+        Assert.assertFalse(plan.getCompiledQuery() instanceof IndexBasedQuery);
+        HGIndexer indexer = new ByPartIndexer(graph.getTypeSystem().getTypeHandle(SimpleBean.class), "strProp");
+        graph.getIndexManager().register(indexer);
+        Assert.assertNull(graph.getQueryPlanCache().getPlan(byStr("bean3")));
+        graph.runMaintenance();
+        Assert.assertEquals(1, hg.findAll(graph, byStr("bean3")).size());
+        Assert.assertEquals(1, hg.findAll(graph, byStr("bean7")).size());
+        plan = (ExpressionBasedQuery<?>)graph.getQueryPlanCache().getPlan(byStr("bean3"));
+        Assert.assertTrue(plan.getCompiledQuery() instanceof IndexBasedQuery);
+        graph.getIndexManager().unregister(indexer);
+        Assert.assertNull(graph.getQueryPlanCache().getPlan(byStr("bean3")));
+    }
+}
@@ -0,0 +1,225 @@
+package hgtest.query;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import hgtest.HGTestBase;
+import hgtest.beans.SimpleBean;
+
+import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.HGQuery;
+import org.hypergraphdb.HGQuery.hg;
+import org.hypergraphdb.HGSearchResult;
+import org.hypergraphdb.query.HGQueryCondition;
+import org.hypergraphdb.transaction.HGTransaction;
+import org.hypergraphdb.transaction.HGTransactionConfig;
+import org.hypergraphdb.type.TypeUtils;
+import org.hypergraphdb.util.ArrayBasedSet;
+import org.hypergraphdb.util.Flow;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StreamTests extends HGTestBase
+{
+    private HGQueryCondition beans = hg.type(SimpleBean.class);
+
+    private void populate(int count)
+    {
+        TypeUtils.deleteType(graph, graph.getTypeSystem().getTypeHandle(SimpleBean.class));
+        for (int i = 0; i < count; i++)
+        {
+            SimpleBean x = new SimpleBean();
+            x.setStrProp("bean" + i);
+            x.setIntProp(i);
+            graph.add(x);
+        }
+    }
+
+    // A result set of integers that records how many times it was closed.
+    private static class Numbers implements HGSearchResult<Integer>
+    {
+        HGSearchResult<Integer> rs;
+        int closed = 0;
+        Numbers(int count)
+        {
+            Integer [] A = new Integer[count];
+            for (int i = 0; i < count; i++)
+                A[i] = i;
+            rs = new ArrayBasedSet<Integer>(A).getSearchResult();
+        }
+        public boolean hasPrev() { return rs.hasPrev(); }
+        public Integer prev() { return rs.prev(); }
+        public boolean hasNext() { return rs.hasNext(); }
+        public Integer next() { return rs.next(); }
+        public void remove() { throw new UnsupportedOperationException(); }
+        public Integer current() { return rs.current(); }
+        public void close() { closed++; rs.close(); }
+        public boolean isOrdered() { return true; }
+    }
+
+    @Test
+    public void testStream()
+    {
+        populate(100);
+        List<HGHandle> all = hg.findAll(graph, beans);
+        Assert.assertEquals(all, hg.<HGHandle>stream(graph, beans).collect(Collectors.toList()));
+        List<Integer> ints = hg.<SimpleBean>streamAtoms(graph, beans)
+                               .filter(x -> x.getIntProp() % 2 == 0)
+                               .map(x -> x.getIntProp())
+                               .sorted()
+                               .limit(5)
+                               .collect(Collectors.toList());
+        Assert.assertEquals(5, ints.size());
+        for (int i = 0; i < 5; i++)
+            Assert.assertEquals(2 * i, ints.get(i).intValue());
+        Assert.assertEquals(100, HGQuery.make(HGHandle.class, graph).compile(beans).stream().count());
+        Assert.assertEquals(0, hg.stream(graph, hg.and(beans, hg.eq("intProp", -1))).count());
+    }
+
+    @Test
+    public void testStreamClosesResult()
+    {
+        Numbers rs = new Numbers(10);
+        Stream<Integer> s = hg.stream(rs);
+        Assert.assertEquals(10, s.count());
+        Assert.assertEquals(1, rs.closed);
+        s.close();
+        Assert.assertEquals(1, rs.closed);
+        // Abandoning a stream early requires closing it.
+        rs = new Numbers(10);
+        try (Stream<Integer> s2 = hg.stream(rs))
+        {
+            Assert.assertEquals(Integer.valueOf(0), s2.findFirst().get());
+            Assert.assertEquals(0, rs.closed);
+        }
+        Assert.assertEquals(1, rs.closed);
+        // The result set is read lazily.
+        rs = new Numbers(10);
+        Assert.assertEquals(3, hg.stream(rs).filter(x -> x > 4).limit(3).count());
+        Assert.assertEquals(Integer.valueOf(7), rs.current());
+        Assert.assertEquals(0, rs.closed);
+        rs.close();
+    }
+
+    // Consume a spliterator on another thread, checking that it runs in the given transaction.
+    private void consumeOnOtherThread(final Spliterator<HGHandle> s, final HGTransaction tx, final List<HGHandle> L) throws Exception
+    {
+        final List<HGTransaction> seen = new ArrayList<HGTransaction>();
+        Thread t = new Thread(() -> s.forEachRemaining(h -> {
+            seen.add(graph.getTransactionManager().getContext().getCurrent());
+            Assert.assertNotNull(graph.get(h));
+            L.add(h);
+        }));
+        t.start();
+        t.join();
+        Assert.assertFalse(seen.isEmpty());
+        for (HGTransaction x : seen)
+            Assert.assertSame(tx, x);
+    }
+
+    @Test
+    public void testParallelStream()
+    {
+        populate(3000);
+        List<HGHandle> all = hg.findAll(graph, beans);
+        graph.getTransactionManager().transact(() -> {
+            HGTransaction tx = graph.getTransactionManager().getContext().getCurrent();
+            // A type scan reads all values of one index key, which can be counted.
+            try (Stream<HGHandle> stream = hg.<HGHandle>stream(graph, beans))
+            {
+                Spliterator<HGHandle> s = stream.spliterator();
+                Assert.assertEquals(3000, s.estimateSize());
+                Spliterator<HGHandle> prefix = s.trySplit();
+                Assert.assertNotNull(prefix);
+                // Both parts are read in the transaction of the stream from other threads.
+                List<HGHandle> L = new ArrayList<HGHandle>();
+                consumeOnOtherThread(prefix, tx, L);
+                consumeOnOtherThread(s, tx, L);
+                Assert.assertEquals(all, L);
+            }
+            Assert.assertEquals(all, hg.<HGHandle>stream(graph, beans).parallel().collect(Collectors.toList()));
+            long sum = hg.<SimpleBean>streamAtoms(graph, beans).parallel().mapToLong(x -> x.getIntProp()).sum();
+            Assert.assertEquals(3000L * 2999 / 2, sum);
+            return null;
+        }, HGTransactionConfig.READONLY);
+        // Within a write transaction, or without a graph, streams are not split.
+        graph.getTransactionManager().transact(() -> {
+            try (Stream<HGHandle> stream = hg.<HGHandle>stream(graph, beans))
+            {
+                Assert.assertNull(stream.spliterator().trySplit());
+            }
+            return null;
+        });
+        Numbers rs = new Numbers(10000);
+        Assert.assertNull(hg.stream(rs).spliterator().trySplit());
+        Assert.assertEquals(10000L * 9999 / 2, hg.stream(rs).parallel().mapToLong(x -> x).sum());
+        Assert.assertEquals(1, rs.closed);
+    }
+
+    private static class Collecting implements Flow.Subscriber<HGHandle>
+    {
+        Flow.Subscription subscription;
+        List<HGHandle> received = new ArrayList<HGHandle>();
+        int batch;
+        boolean complete = false;
+        Throwable error = null;
+
+        Collecting(int batch) { this.batch = batch; }
+        public void onSubscribe(Flow.Subscription subscription)
+        {
+            this.subscription = subscription;
+        }
+        public void onNext(HGHandle item)
+        {
+            received.add(item);
+            if (batch > 0 && received.size() % batch == 0)
+                subscription.request(batch);
+        }
+        public void onError(Throwable throwable) { error = throwable; }
+        public void onComplete() { complete = true; }
+    }
+
+    @Test
+    public void testPublisher()
+    {
+        populate(50);
+        List<HGHandle> all = hg.findAll(graph, beans);
+        HGQuery<HGHandle> query = HGQuery.make(HGHandle.class, graph).compile(beans);
+
+        Collecting c = new Collecting(7);
+        query.publisher().subscribe(c);
+        Assert.assertTrue(c.received.isEmpty());
+        c.subscription.request(7);
+        Assert.assertEquals(all, c.received);
+        Assert.assertTrue(c.complete);
+        Assert.assertNull(c.error);
+
+        c = new Collecting(0);
+        query.publisher().subscribe(c);
+        c.subscription.request(3);
+        Assert.assertEquals(all.subList(0, 3), c.received);
+        c.subscription.request(2);
+        Assert.assertEquals(all.subList(0, 5), c.received);
+        c.subscription.cancel();
+        c.subscription.request(10);
+        Assert.assertEquals(5, c.received.size());
+        Assert.assertFalse(c.complete);
+        Assert.assertNull(c.error);
+
+        c = new Collecting(0);
+        query.publisher().subscribe(c);
+        c.subscription.request(Long.MAX_VALUE);
+        c.subscription.request(Long.MAX_VALUE);
+        Assert.assertEquals(all, c.received);
+        Assert.assertTrue(c.complete);
+
+        c = new Collecting(0);
+        query.publisher().subscribe(c);
+        c.subscription.request(0);
+        Assert.assertTrue(c.error instanceof IllegalArgumentException);
+        Assert.assertTrue(c.received.isEmpty());
+    }
+}
@@ -0,0 +1,89 @@
+package hgtest.query;
+
+import static org.junit.Assert.*;
+
+import org.hypergraphdb.HGEnvironment;
+import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.HGPlainLink;
+import org.hypergraphdb.HGStatistics;
+import org.hypergraphdb.HyperGraph;
+import org.hypergraphdb.query.ComparisonOperator;
+import org.hypergraphdb.query.QueryCompile;
+import org.hypergraphdb.query.TypedValueCondition;
+import org.hypergraphdb.query.cond2qry.QueryMetaData;
+import org.hypergraphdb.util.HGUtils;
+import org.junit.Test;
+
+import hgtest.HGTestBase;
+
+public class TestStatistics
+{
+    private static void assertAbout(long expected, long actual, long tolerance)
+    {
+        assertTrue("expected about " + expected + " but got " + actual,
+                   Math.abs(expected - actual) <= tolerance);
+    }
+
+    @Test
+    public void testCatalog()
+    {
+        String location = HGTestBase.getGraphLocation() + "_statistics";
+        HGUtils.dropHyperGraphInstance(location);
+        HyperGraph graph = HGEnvironment.get(location);
+        try
+        {
+            HGHandle [] nodes = new HGHandle[1000];
+            for (int i = 0; i < nodes.length; i++)
+                nodes[i] = graph.add(i);
+            // every node of the first hundred is the target of 5 links
+            for (int i = 0; i < 500; i++)
+                graph.add(new HGPlainLink(nodes[i % 100]));
+            HGHandle intType = graph.getTypeSystem().getTypeHandle(Integer.class);
+            HGHandle linkType = graph.getTypeSystem().getTypeHandle(HGPlainLink.class);
+            HGStatistics stats = graph.getStatistics();
+            assertNull(stats.getHistogram(intType));
+            assertEquals(-1, stats.estimateValueCount(intType, ComparisonOperator.LT, 500));
+
+            stats.analyze();
+            assertNotNull(stats.getHistogram(intType));
+            assertAbout(500, stats.estimateValueCount(intType, ComparisonOperator.LT, 500), 20);
+            assertAbout(100, stats.estimateValueCount(intType, ComparisonOperator.GTE, 900), 20);
+            assertAbout(1, stats.estimateValueCount(intType, ComparisonOperator.EQ, 42), 1);
+            assertEquals(0, stats.estimateValueCount(intType, ComparisonOperator.GT, 5000));
+            assertEquals(5.0, stats.getAverageIncidence(linkType), 0.001);
+            // the global average also covers the links of the type system
+            assertTrue(stats.getAverageIncidence() > 0);
+            assertEquals(-1.0, stats.getAverageIncidence(intType), 0.001);
+            assertEquals(1000, stats.getInstanceCount(intType));
+
+            QueryCompile.start();
+            try
+            {
+                QueryMetaData qmd = QueryCompile.toMetaData(graph,
+                        new TypedValueCondition(intType, 100, ComparisonOperator.LT));
+                assertAbout(100, qmd.sizeExpected, 20);
+                assertTrue(qmd.getSizeEstimate() < QueryCompile.toMetaData(graph,
+                        new TypedValueCondition(intType, 900, ComparisonOperator.LT)).getSizeEstimate());
+            }
+            finally
+            {
+                QueryCompile.finish();
+            }
+
+            graph.close();
+            graph = HGEnvironment.get(location);
+            stats = graph.getStatistics();
+            assertNotNull(stats.getHistogram(intType));
+            assertAbout(500, stats.estimateValueCount(intType, ComparisonOperator.LTE, 500), 20);
+            assertEquals(5.0, stats.getAverageIncidence(linkType), 0.001);
+            stats.clear();
+            assertNull(stats.getHistogram(intType));
+            assertEquals(-1.0, stats.getAverageIncidence(), 0.001);
+        }
+        finally
+        {
+            graph.close();
+            HGUtils.dropHyperGraphInstance(location);
+        }
+    }
+}
@@ -4,7 +4,11 @@ import hgtest.HGTestBase;
 import hgtest.utils.RSUtils;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
 
 import org.hypergraphdb.HGBidirectionalIndex;
 import org.hypergraphdb.HGHandle;
@@ -22,16 +26,25 @@ import org.hypergraphdb.algorithms.DefaultALGenerator;
 import org.hypergraphdb.indexing.ByPartIndexer;
 import org.hypergraphdb.indexing.HGIndexer;
 import org.hypergraphdb.query.BFSCondition;
+import org.hypergraphdb.query.ComparisonOperator;
 import org.hypergraphdb.query.HGQueryCondition;
+import org.hypergraphdb.query.impl.ChunkedResult;
 import org.hypergraphdb.query.impl.HandleArrayResultSet;
 import org.hypergraphdb.query.impl.InMemoryIntersectionResult;
+import org.hypergraphdb.query.impl.FilteredResultSet;
+import org.hypergraphdb.query.impl.LeapfrogIntersectionQuery;
+import org.hypergraphdb.query.impl.LeapfrogIntersectionResult;
 import org.hypergraphdb.query.impl.LinkTargetsResultSet;
+import org.hypergraphdb.query.impl.PipeQuery;
 import org.hypergraphdb.query.impl.RSCombiner;
+import org.hypergraphdb.query.impl.SearchableBasedQuery;
 import org.hypergraphdb.query.impl.SortedIntersectionResult;
 import org.hypergraphdb.query.impl.TraversalBasedQuery;
 import org.hypergraphdb.query.impl.ZigZagIntersectionResult;
 import org.hypergraphdb.storage.BAtoHandle;
 import org.hypergraphdb.storage.BAtoString;
+import org.hypergraphdb.util.ArrayBasedSet;
+import org.hypergraphdb.util.Mapping;
 import org.hypergraphdb.util.Pair;
 import org.junit.AfterClass;
 import org.junit.Assert;
@@ -65,6 +78,11 @@ public class ResultSets extends HGTestBase
             testZigZagAndInMemoryIntersectionResult();
         }
         testSortedIntersectionResult();
+        testLeapfrogIntersectionResult();
+        testLeapfrogIntersectionQuery();
+        testChunkedResult();
+        testBatchIndexLookup();
+        testBatchedPipeQuery();
         testAlGenerator();
         testUnionResult();
         testFilteredResultSet();
@@ -142,6 +160,124 @@ public class ResultSets extends HGTestBase
         zigzag_or_in_memory_test(false);
     }
 
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testLeapfrogIntersectionResult()
+    {
+        Random random = new Random(31);
+        for (int round = 0; round < 50; round++)
+        {
+            int n = 2 + random.nextInt(4);
+            HGRandomAccessResult<Integer> [] inputs = new HGRandomAccessResult[n];
+            TreeSet<Integer> expected = null;
+            for (int j = 0; j < n; j++)
+            {
+                ArrayBasedSet<Integer> set = new ArrayBasedSet<Integer>(new Integer[0]);
+                int size = random.nextInt(200);
+                for (int k = 0; k < size; k++)
+                    set.add(random.nextInt(j == 0 ? 100 : 300));
+                inputs[j] = set.getSearchResult();
+                TreeSet<Integer> S = new TreeSet<Integer>(set);
+                if (expected == null)
+                    expected = S;
+                else
+                    expected.retainAll(S);
+            }
+            LeapfrogIntersectionResult<Integer> rs = new LeapfrogIntersectionResult<Integer>(inputs);
+            try
+            {
+                List<Integer> forward = new ArrayList<Integer>();
+                while (rs.hasNext())
+                    forward.add(rs.next());
+                Assert.assertEquals(new ArrayList<Integer>(expected), forward);
+                List<Integer> backward = new ArrayList<Integer>();
+                if (!forward.isEmpty())
+                    backward.add(rs.current());
+                while (rs.hasPrev())
+                    backward.add(0, rs.prev());
+                Assert.assertEquals(forward, backward);
+                for (int k = 0; k < 20; k++)
+                {
+                    int value = random.nextInt(120);
+                    Integer ceiling = expected.ceiling(value);
+                    GotoResult r = rs.goTo(value, false);
+                    if (ceiling == null)
+                        Assert.assertEquals(GotoResult.nothing, r);
+                    else
+                    {
+                        Assert.assertEquals(ceiling.intValue() == value ? GotoResult.found : GotoResult.close, r);
+                        Assert.assertEquals(ceiling, rs.current());
+                        Assert.assertEquals(expected.higher(ceiling) != null, rs.hasNext());
+                        Assert.assertEquals(expected.lower(ceiling) != null, rs.hasPrev());
+                    }
+                }
+                rs.goAfterLast();
+                Assert.assertFalse(rs.hasNext());
+                Assert.assertEquals(!expected.isEmpty(), rs.hasPrev());
+                if (!expected.isEmpty())
+                    Assert.assertEquals(expected.last(), rs.prev());
+            }
+            finally
+            {
+                rs.close();
+            }
+        }
+    }
+
+    // A query over a set of integers, whose result is random access unless filtered.
+    private static HGQuery<Integer> setQuery(final Integer [] values, final boolean filtered, final List<HGSearchResult<Integer>> opened)
+    {
+        return new HGQuery<Integer>()
+        {
+            public HGSearchResult<Integer> execute()
+            {
+                HGSearchResult<Integer> rs = new ArrayBasedSet<Integer>(values).getSearchResult();
+                if (filtered)
+                    rs = new FilteredResultSet<Integer>(rs, new Mapping<Integer, Boolean>() {
+                        public Boolean eval(Integer x) { return true; }
+                    }, 0);
+                opened.add(rs);
+                return rs;
+            }
+        };
+    }
+
+    @Test
+    public void testLeapfrogIntersectionQuery()
+    {
+        Integer [] A = new Integer[] { 1, 2, 3, 5, 8, 13, 21 };
+        Integer [] B = new Integer[] { 2, 3, 4, 5, 13, 21, 34 };
+        Integer [] C = new Integer[] { 0, 3, 5, 13, 40 };
+        List<HGSearchResult<Integer>> opened = new ArrayList<HGSearchResult<Integer>>();
+        for (int filtered = 0; filtered < 3; filtered++)
+        {
+            List<HGQuery<Integer>> queries = new ArrayList<HGQuery<Integer>>();
+            queries.add(setQuery(A, filtered > 1, opened));
+            queries.add(setQuery(B, filtered > 0, opened));
+            queries.add(setQuery(C, false, opened));
+            HGSearchResult<Integer> rs = new LeapfrogIntersectionQuery<Integer>(queries).execute();
+            try
+            {
+                List<Integer> L = new ArrayList<Integer>();
+                while (rs.hasNext())
+                    L.add(rs.next());
+                Assert.assertEquals(Arrays.asList(3, 5, 13), L);
+            }
+            finally
+            {
+                rs.close();
+            }
+        }
+        List<HGQuery<Integer>> queries = new ArrayList<HGQuery<Integer>>();
+        queries.add(setQuery(A, false, opened));
+        queries.add(setQuery(new Integer[0], true, opened));
+        queries.add(setQuery(C, false, opened));
+        opened.clear();
+        HGSearchResult<Integer> rs = new LeapfrogIntersectionQuery<Integer>(queries).execute();
+        Assert.assertFalse(rs.hasNext());
+        Assert.assertEquals(2, opened.size());
+    }
+
     private void zigzag_or_in_memory_test(boolean zigzag_or_in_memory)
     {
         if(!fix_random_acces_result_sets) return;
@@ -177,6 +313,98 @@ public class ResultSets extends HGTestBase
         }
     }
 
+    @Test
+    public void testChunkedResult()
+    {
+        Integer [] A = new Integer[10];
+        for (int i = 0; i < A.length; i++)
+            A[i] = i;
+        ChunkedResult<Integer> res = new ChunkedResult<Integer>(new ArrayBasedSet<Integer>(A).getSearchResult(), 3);
+        try
+        {
+            Assert.assertFalse(res.hasPrev());
+            Assert.assertEquals(Arrays.asList(0, 1, 2), res.next());
+            Assert.assertFalse(res.hasPrev());
+            Assert.assertEquals(Arrays.asList(3, 4, 5), res.next());
+            Assert.assertEquals(Arrays.asList(6, 7, 8), res.next());
+            Assert.assertEquals(Arrays.asList(9), res.next());
+            Assert.assertFalse(res.hasNext());
+            Assert.assertEquals(Arrays.asList(6, 7, 8), res.prev());
+            Assert.assertEquals(Arrays.asList(3, 4, 5), res.prev());
+            Assert.assertEquals(Arrays.asList(0, 1, 2), res.prev());
+            Assert.assertFalse(res.hasPrev());
+            Assert.assertEquals(Arrays.asList(3, 4, 5), res.next());
+            Assert.assertEquals(Arrays.asList(6, 7, 8), res.next());
+            Assert.assertEquals(Arrays.asList(9), res.next());
+            Assert.assertFalse(res.hasNext());
+        }
+        finally
+        {
+            res.close();
+        }
+    }
+
+    @Test
+    public void testBatchIndexLookup()
+    {
+        HGSearchResult<HGHandle> res = index.findBatch(Arrays.asList(7, 100, 2, -1, 5, 2));
+        try
+        {
+            List<Integer> list = result__list(graph, res);
+            List<Integer> back_list = back_result__list(graph, res);
+            Assert.assertTrue(reverseLists(list, back_list));
+            Collections.sort(list);
+            Assert.assertEquals(Arrays.asList(2, 2, 5, 7), list);
+        }
+        finally
+        {
+            res.close();
+        }
+        res = index.findBatch(Arrays.asList(100, -1));
+        try
+        {
+            Assert.assertFalse(res.hasNext());
+        }
+        finally
+        {
+            res.close();
+        }
+    }
+
+    @Test
+    public void testBatchedPipeQuery()
+    {
+        HGQuery<Integer> keys = new HGQuery<Integer>() {
+            public HGSearchResult<Integer> execute()
+            {
+                return index.scanKeys();
+            }
+        };
+        List<Integer> expected = null;
+        for (int batchSize : new int[] { 0, 3, 4, 100 })
+        {
+            PipeQuery<Integer, HGHandle> q = new PipeQuery<Integer, HGHandle>(keys,
+                new SearchableBasedQuery<Integer, HGHandle>(index, (Integer)null, ComparisonOperator.EQ),
+                batchSize);
+            HGSearchResult<HGHandle> res = q.execute();
+            try
+            {
+                List<Integer> list = result__list(graph, res);
+                Assert.assertEquals(COUNT, list.size());
+                List<Integer> back_list = back_result__list(graph, res);
+                Assert.assertTrue(reverseLists(list, back_list));
+                if (expected == null)
+                    expected = list;
+                else
+                    Assert.assertEquals(expected, list);
+            }
+            finally
+            {
+                res.close();
+            }
+        }
+    }
+
     @Test
     public void testAlGenerator()
     {
@@ -0,0 +1,130 @@
+package hgtest.storage;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.hypergraphdb.HGConfiguration;
+import org.hypergraphdb.HGEnvironment;
+import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.HGPersistentHandle;
+import org.hypergraphdb.HGPlainLink;
+import org.hypergraphdb.HGQuery.hg;
+import org.hypergraphdb.HGRandomAccessResult;
+import org.hypergraphdb.HGValueLink;
+import org.hypergraphdb.HyperGraph;
+import org.hypergraphdb.storage.bje.BJEStorageImplementation;
+import org.hypergraphdb.storage.incidence.TypeAndPositionIncidenceAnnotator;
+import org.hypergraphdb.util.HGUtils;
+import org.junit.Test;
+
+import hgtest.HGTestBase;
+
+public class TestAnnotatedIncidence
+{
+    String location = HGTestBase.getGraphLocation() + "_annotated";
+
+    HyperGraph open(boolean annotated)
+    {
+        HGConfiguration config = new HGConfiguration();
+        if (annotated)
+            ((BJEStorageImplementation)config.getStoreImplementation()).setIncidentAnnotator(
+                    new TypeAndPositionIncidenceAnnotator());
+        return HGEnvironment.get(location, config);
+    }
+
+    @Test
+    public void testTypedIncidentQueries()
+    {
+        HGUtils.dropHyperGraphInstance(location);
+        HyperGraph graph = open(true);
+        try
+        {
+            HGHandle a = graph.add("a");
+            HGHandle b = graph.add("b");
+            HGHandle plain = graph.add(new HGPlainLink(a, b));
+            HGHandle valued = graph.add(new HGValueLink("v", b, a));
+            assertEquals(2, hg.count(graph, hg.incident(a)));
+            List<HGHandle> L = hg.findAll(graph, hg.and(hg.type(HGPlainLink.class), hg.incident(a)));
+            assertEquals(1, L.size());
+            assertEquals(plain, L.get(0));
+            L = hg.findAll(graph, hg.and(hg.type(String.class), hg.incident(a), hg.incident(b)));
+            assertEquals(1, L.size());
+            assertEquals(valued, L.get(0));
+
+            // by type and position
+            BJEStorageImplementation storage = (BJEStorageImplementation)graph.getConfig().getStoreImplementation();
+            HGHandle stringType = graph.getTypeSystem().getTypeHandle(String.class);
+            HGRandomAccessResult<HGPersistentHandle> rs = storage.getAnnotatedIncidenceResultSet(a, stringType, 1);
+            try
+            {
+                assertTrue(rs.hasNext());
+                assertEquals(valued, rs.next());
+                assertFalse(rs.hasNext());
+            }
+            finally
+            {
+                rs.close();
+            }
+            assertEquals(0, hg.count(graph, hg.and(hg.type(String.class), hg.incident(a),
+                    hg.incident(graph.add("c")))));
+
+            // annotations follow a change of the link type
+            graph.replace(plain, new HGValueLink("w", a, b));
+            assertEquals(0, hg.count(graph, hg.and(hg.type(HGPlainLink.class), hg.incident(a))));
+            assertEquals(2, hg.count(graph, hg.and(hg.type(String.class), hg.incident(a))));
+            graph.remove(valued);
+            L = hg.findAll(graph, hg.and(hg.type(String.class), hg.incident(b)));
+            assertEquals(1, L.size());
+            assertEquals(plain, L.get(0));
+        }
+        finally
+        {
+            graph.close();
+            HGUtils.dropHyperGraphInstance(location);
+        }
+    }
+
+    @Test
+    public void testMigration()
+    {
+        HGUtils.dropHyperGraphInstance(location);
+        HyperGraph graph = open(false);
+        HGHandle a, plain, valued;
+        try
+        {
+            a = graph.add("a");
+            plain = graph.add(new HGPlainLink(a));
+            valued = graph.add(new HGValueLink("v", a));
+        }
+        finally
+        {
+            graph.close();
+        }
+        graph = open(true);
+        try
+        {
+            assertEquals(2, hg.count(graph, hg.incident(a)));
+            List<HGHandle> L = hg.findAll(graph, hg.and(hg.type(String.class), hg.incident(a)));
+            assertEquals(1, L.size());
+            assertEquals(valued, L.get(0));
+        }
+        finally
+        {
+            graph.close();
+        }
+        graph = open(false);
+        try
+        {
+            List<HGHandle> L = hg.findAll(graph, hg.incident(a));
+            assertEquals(2, L.size());
+            assertTrue(L.contains(plain));
+            assertTrue(L.contains(valued));
+        }
+        finally
+        {
+            graph.close();
+            HGUtils.dropHyperGraphInstance(location);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package hgtest.storage;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hypergraphdb.HGEnvironment;
+import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.HGHandleFactory;
+import org.hypergraphdb.HGPersistentHandle;
+import org.hypergraphdb.HGRandomAccessResult;
+import org.hypergraphdb.HGStore;
+import org.hypergraphdb.HyperGraph;
+import org.hypergraphdb.util.HGUtils;
+import org.junit.Test;
+
+import hgtest.HGTestBase;
+
+public class TestBatchStorage
+{
+    @Test
+    public void testBatchOperations()
+    {
+        String location = HGTestBase.getGraphLocation() + "_batch";
+        HGUtils.dropHyperGraphInstance(location);
+        HyperGraph graph = HGEnvironment.get(location);
+        try
+        {
+            HGStore store = graph.getStore();
+            HGHandleFactory factory = graph.getHandleFactory();
+            int n = 100;
+            HGPersistentHandle [] handles = new HGPersistentHandle[n];
+            HGPersistentHandle [][] links = new HGPersistentHandle[n][];
+            byte [][] data = new byte[n][];
+            HGPersistentHandle [] dataHandles = new HGPersistentHandle[n];
+            for (int i = 0; i < n; i++)
+            {
+                handles[i] = factory.makeHandle();
+                dataHandles[i] = factory.makeHandle();
+                links[i] = new HGPersistentHandle[] { factory.makeHandle(), dataHandles[i] };
+                data[i] = new byte[] { (byte)i, (byte)(i >> 8), 42 };
+            }
+            store.storeAll(handles, links);
+            store.storeAll(dataHandles, data);
+            HGPersistentHandle [] query = new HGPersistentHandle[n + 1];
+            System.arraycopy(handles, 0, query, 0, n);
+            query[n] = factory.makeHandle();
+            HGPersistentHandle [][] readLinks = store.getLinks(query);
+            for (int i = 0; i < n; i++)
+                assertArrayEquals(links[i], readLinks[i]);
+            assertNull(readLinks[n]);
+            byte [][] readData = store.getDataBatch(dataHandles);
+            for (int i = 0; i < n; i++)
+                assertArrayEquals(data[i], readData[i]);
+
+            HGPersistentHandle target = factory.makeHandle();
+            store.addIncidenceLinks(target, handles);
+            assertEquals(n, store.getIncidenceSetCardinality(target));
+            HGRandomAccessResult<HGPersistentHandle> rs = store.getIncidenceResultSet(target);
+            try
+            {
+                for (HGPersistentHandle h : handles)
+                    assertEquals(HGRandomAccessResult.GotoResult.found, rs.goTo(h, true));
+            }
+            finally
+            {
+                rs.close();
+            }
+        }
+        finally
+        {
+            graph.close();
+            HGUtils.dropHyperGraphInstance(location);
+        }
+    }
+
+    @Test
+    public void testGetAll()
+    {
+        String location = HGTestBase.getGraphLocation() + "_getall";
+        HGUtils.dropHyperGraphInstance(location);
+        HyperGraph graph = HGEnvironment.get(location);
+        try
+        {
+            List<HGHandle> handles = new ArrayList<HGHandle>();
+            for (int i = 0; i < 50; i++)
+                handles.add(graph.add("value " + i));
+            graph.close();
+            graph = HGEnvironment.get(location);
+            List<HGHandle> reopened = new ArrayList<HGHandle>();
+            for (HGHandle h : handles)
+                reopened.add(h.getPersistent());
+            reopened.add(reopened.get(3));
+            List<String> values = graph.getAll(reopened);
+            assertEquals(51, values.size());
+            for (int i = 0; i < 50; i++)
+                assertEquals("value " + i, values.get(i));
+            assertEquals("value 3", values.get(50));
+        }
+        finally
+        {
+            graph.close();
+            HGUtils.dropHyperGraphInstance(location);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package hgtest.storage;
+
+import static org.junit.Assert.*;
+
+import org.hypergraphdb.HGBulkLoader;
+import org.hypergraphdb.HGEnvironment;
+import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.HGHandleFactory;
+import org.hypergraphdb.HGPersistentHandle;
+import org.hypergraphdb.HGPlainLink;
+import org.hypergraphdb.HGQuery.hg;
+import org.hypergraphdb.HyperGraph;
+import org.hypergraphdb.util.HGUtils;
+import org.junit.Test;
+
+import hgtest.HGTestBase;
+
+public class TestBulkLoader
+{
+    private void load(HyperGraph graph, HGPersistentHandle [] handles, int count, boolean close)
+    {
+        HGBulkLoader loader = new HGBulkLoader(graph, "test", 30);
+        for (int i = 0; i < count; i++)
+        {
+            if (i % 2 == 0)
+                loader.add("node " + i, handles[i]);
+            else
+                loader.add(new HGPlainLink(handles[i - 1]), handles[i]);
+        }
+        if (close)
+            loader.close();
+    }
+
+    @Test
+    public void testLoadAndResume()
+    {
+        String location = HGTestBase.getGraphLocation() + "_bulkload";
+        HGUtils.dropHyperGraphInstance(location);
+        HyperGraph graph = HGEnvironment.get(location);
+        try
+        {
+            HGHandleFactory factory = graph.getHandleFactory();
+            HGPersistentHandle [] handles = new HGPersistentHandle[200];
+            for (int i = 0; i < handles.length; i++)
+                handles[i] = factory.makeHandle();
+            long strings = hg.count(graph, hg.type(String.class));
+            // an interrupted load: only the complete batches are written
+            load(graph, handles, 100, false);
+            assertEquals(strings + 45, hg.count(graph, hg.type(String.class)));
+            graph.close();
+            graph = HGEnvironment.get(location);
+            HGBulkLoader loader = new HGBulkLoader(graph, "test");
+            assertEquals(90, loader.getResumePosition());
+            loader.close();
+            graph.close();
+            graph = HGEnvironment.get(location);
+            // the whole input is submitted again, the loaded atoms are skipped
+            load(graph, handles, 90, false);
+            assertEquals(strings + 45, hg.count(graph, hg.type(String.class)));
+            graph.close();
+            graph = HGEnvironment.get(location);
+            load(graph, handles, 100, false);
+            load(graph, handles, handles.length, true);
+            assertEquals(strings + 100, hg.count(graph, hg.type(String.class)));
+            assertEquals(0, new HGBulkLoader(graph, "test").getResumePosition());
+            for (int i = 0; i < handles.length; i += 2)
+            {
+                assertEquals("node " + i, graph.get(handles[i]));
+                assertEquals(1, graph.getIncidenceSet(handles[i]).size());
+                HGPlainLink link = graph.get(handles[i + 1]);
+                assertEquals(handles[i], link.getTargetAt(0).getPersistent());
+                assertEquals(handles[i + 1], graph.getIncidenceSet(handles[i]).first().getPersistent());
+                assertEquals(handles[i], ((HGHandle)hg.findOne(graph, hg.eq("node " + i))).getPersistent());
+            }
+        }
+        finally
+        {
+            graph.close();
+            HGUtils.dropHyperGraphInstance(location);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package hgtest.storage;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.Callable;
+
+import org.hypergraphdb.HGConfiguration;
+import org.hypergraphdb.HGEnvironment;
+import org.hypergraphdb.HGIndex;
+import org.hypergraphdb.HGPersistentHandle;
+import org.hypergraphdb.HGRandomAccessResult;
+import org.hypergraphdb.HyperGraph;
+import org.hypergraphdb.storage.BAtoString;
+import org.hypergraphdb.storage.bje.BJEStorageImplementation;
+import org.hypergraphdb.util.HGUtils;
+import org.junit.Test;
+
+import hgtest.HGTestBase;
+
+public class TestIndexCounts
+{
+    private static final String INDEX_NAME = "test_index_counts";
+
+    private HGIndex<String, String> getIndex(HyperGraph graph)
+    {
+        return graph.getStore().getIndex(INDEX_NAME,
+                                         BAtoString.getInstance(),
+                                         BAtoString.getInstance(),
+                                         null,
+                                         null,
+                                         true);
+    }
+
+    private static <T> long scanCount(HGRandomAccessResult<T> rs)
+    {
+        long n = 0;
+        try
+        {
+            while (rs.hasNext())
+            {
+                rs.next();
+                n++;
+            }
+        }
+        finally
+        {
+            rs.close();
+        }
+        return n;
+    }
+
+    private static void assertCounts(HGIndex<?, ?> index, long keys, long entries)
+    {
+        assertEquals(keys, index.count());
+        assertEquals(keys, index.stats().keys(0, false).value());
+        assertEquals(entries, index.stats().entries(0, false).value());
+    }
+
+    @Test
+    public void testTransactionalCounts()
+    {
+        String location = HGTestBase.getGraphLocation() + "_counts";
+        HGUtils.dropHyperGraphInstance(location);
+        HyperGraph graph = HGEnvironment.get(location);
+        try
+        {
+            final HGIndex<String, String> index = getIndex(graph);
+            assertCounts(index, 0, 0);
+            graph.getTransactionManager().ensureTransaction(new Callable<Object>() {
+                public Object call()
+                {
+                    index.addEntry("a", "1");
+                    index.addEntry("a", "2");
+                    index.addEntry("a", "2");
+                    index.addEntry("b", "1");
+                    // the transaction sees its own changes
+                    assertCounts(index, 2, 3);
+                    return null;
+                }
+            });
+            assertCounts(index, 2, 3);
+
+            graph.getTransactionManager().beginTransaction();
+            index.addEntry("c", "1");
+            index.removeAllEntries("a");
+            assertCounts(index, 2, 2);
+            graph.getTransactionManager().abort();
+            assertCounts(index, 2, 3);
+
+            graph.getTransactionManager().ensureTransaction(new Callable<Object>() {
+                public Object call()
+                {
+                    index.removeEntry("a", "1");
+                    index.removeEntry("a", "3");
+                    index.removeEntry("b", "1");
+                    return null;
+                }
+            });
+            assertCounts(index, 1, 1);
+            assertEquals(1, scanCount(index.scanKeys()));
+        }
+        finally
+        {
+            graph.close();
+            HGUtils.dropHyperGraphInstance(location);
+        }
+    }
+
+    @Test
+    public void testCountsAcrossRestart()
+    {
+        checkCountsAcrossRestart(false);
+    }
+
+    @Test
+    public void testBlockIndexCounts()
+    {
+        checkCountsAcrossRestart(true);
+    }
+
+    private void checkCountsAcrossRestart(boolean compressed)
+    {
+        String location = HGTestBase.getGraphLocation() + "_counts_restart";
+        HGUtils.dropHyperGraphInstance(location);
+        HGConfiguration config = new HGConfiguration();
+        ((BJEStorageImplementation)config.getStoreImplementation()).getConfiguration().setCompressedPostingLists(compressed);
+        HyperGraph graph = HGEnvironment.get(location, config);
+        try
+        {
+            final HGIndex<String, String> index = getIndex(graph);
+            graph.getTransactionManager().ensureTransaction(new Callable<Object>() {
+                public Object call()
+                {
+                    for (int i = 0; i < 50; i++)
+                        for (int j = 0; j <= i % 5; j++)
+                            index.addEntry("key" + i, "value" + j);
+                    return null;
+                }
+            });
+            for (int i = 0; i < 10; i++)
+                graph.add("atom" + i);
+            HGIndex<HGPersistentHandle, HGPersistentHandle> byType = graph.getStore().getIndex(HyperGraph.TYPES_INDEX_NAME);
+            long types = byType.count();
+            long atoms = byType.stats().entries(0, false).value();
+            assertEquals(scanCount(byType.scanKeys()), types);
+            assertEquals(scanCount(byType.scanValues()), atoms);
+            graph.close();
+
+            graph = HGEnvironment.get(location);
+            assertCounts(getIndex(graph), 50, 150);
+            byType = graph.getStore().getIndex(HyperGraph.TYPES_INDEX_NAME);
+            assertEquals(types, byType.count());
+            assertEquals(atoms, byType.stats().entries(0, false).value());
+            HGPersistentHandle h = graph.getPersistentHandle(graph.add("one more"));
+            assertEquals(atoms + 1, byType.stats().entries(0, false).value());
+            graph.remove(h);
+            assertEquals(atoms, byType.stats().entries(0, false).value());
+        }
+        finally
+        {
+            graph.close();
+            HGUtils.dropHyperGraphInstance(location);
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package hgtest.storage;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.Callable;
+
+import org.hypergraphdb.HGConfiguration;
+import org.hypergraphdb.HGEnvironment;
+import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.HGHandleFactory;
+import org.hypergraphdb.HGPersistentHandle;
+import org.hypergraphdb.HGStore;
+import org.hypergraphdb.HyperGraph;
+import org.hypergraphdb.handle.UUIDHandleFactory;
+import org.hypergraphdb.storage.OffHeapRecordCache;
+import org.hypergraphdb.storage.ram.RAMStorageImplementation;
+import org.hypergraphdb.transaction.HGTransactionManager;
+import org.hypergraphdb.util.HGUtils;
+import org.junit.Test;
+
+import hgtest.HGTestBase;
+
+public class TestOffHeapRecordCache
+{
+    HGHandleFactory handleFactory = new UUIDHandleFactory();
+
+    @Test
+    public void testPutGetInvalidate()
+    {
+        OffHeapRecordCache cache = new OffHeapRecordCache(handleFactory, 1024*1024);
+        HGPersistentHandle h = handleFactory.makeHandle();
+        HGPersistentHandle [] link = new HGPersistentHandle[] { handleFactory.makeHandle(), handleFactory.makeHandle() };
+        assertNull(cache.getData(h));
+        cache.putData(h, new byte[] {1, 2, 3}, cache.version(h));
+        cache.putLink(h, link, cache.version(h));
+        assertArrayEquals(new byte[] {1, 2, 3}, cache.getData(h));
+        assertArrayEquals(link, cache.getLink(h));
+        cache.invalidate(h);
+        assertNull(cache.getData(h));
+        assertNull(cache.getLink(h));
+        // a value read before an invalidation must not be cached
+        long version = cache.version(h);
+        cache.invalidate(h);
+        cache.putData(h, new byte[] {4}, version);
+        assertNull(cache.getData(h));
+    }
+
+    @Test
+    public void testBeginEndWrite()
+    {
+        OffHeapRecordCache cache = new OffHeapRecordCache(handleFactory, 1024*1024);
+        HGPersistentHandle h = handleFactory.makeHandle();
+        cache.putData(h, new byte[] {1}, cache.version(h));
+        cache.beginWrite(h);
+        assertNull(cache.getData(h));
+        // nothing is cached while the record is being written
+        long version = cache.version(h);
+        cache.putData(h, new byte[] {1}, version);
+        assertNull(cache.getData(h));
+        cache.endWrite(h);
+        cache.putData(h, new byte[] {1}, version);
+        assertNull(cache.getData(h));
+        cache.putData(h, new byte[] {2}, cache.version(h));
+        assertArrayEquals(new byte[] {2}, cache.getData(h));
+    }
+
+    @Test
+    public void testEviction()
+    {
+        OffHeapRecordCache cache = new OffHeapRecordCache(handleFactory, 1024*1024);
+        HGPersistentHandle [] handles = new HGPersistentHandle[10000];
+        for (int i = 0; i < handles.length; i++)
+        {
+            handles[i] = handleFactory.makeHandle();
+            byte [] value = new byte[500];
+            value[0] = (byte)i;
+            cache.putData(handles[i], value, cache.version(handles[i]));
+        }
+        assertTrue(cache.getEvictions() > 0);
+        assertTrue(cache.size() < handles.length);
+        int found = 0;
+        for (int i = 0; i < handles.length; i++)
+        {
+            byte [] value = cache.getData(handles[i]);
+            if (value != null)
+            {
+                assertEquals((byte)i, value[0]);
+                found++;
+            }
+        }
+        assertTrue(found > 0);
+        // the most recent ones are still there
+        assertNotNull(cache.getData(handles[handles.length - 1]));
+        assertNull(cache.getData(handles[0]));
+    }
+
+    @Test
+    public void testGraphWithRecordCache()
+    {
+        String location = HGTestBase.getGraphLocation() + "_recordcache";
+        HGUtils.dropHyperGraphInstance(location);
+        HGConfiguration config = new HGConfiguration();
+        config.setStoreCacheSize(4*1024*1024);
+        final HyperGraph graph = HGEnvironment.get(location, config);
+        try
+        {
+            OffHeapRecordCache cache = graph.getStore().getRecordCache();
+            assertNotNull(cache);
+            final HGHandle h = graph.add("first value");
+            HGPersistentHandle valueHandle = graph.getStore().getLink(h.getPersistent())[1];
+            graph.getStore().getData(valueHandle);
+            long hits = cache.getHits();
+            assertNotNull(graph.getStore().getData(valueHandle));
+            assertTrue(cache.getHits() > hits);
+
+            // uncommitted writes are neither visible to other transactions nor cached
+            try
+            {
+                graph.getTransactionManager().transact(new Callable<Object>() {
+                    public Object call()
+                    {
+                        graph.replace(h, "second value");
+                        assertEquals("second value", graph.get(h));
+                        throw new RuntimeException("abort");
+                    }
+                });
+                fail();
+            }
+            catch (RuntimeException ex)
+            {
+                assertEquals("abort", ex.getMessage());
+            }
+            HGPersistentHandle [] layout = graph.getStore().getLink(h.getPersistent());
+            assertEquals(valueHandle, layout[1]);
+            assertArrayEquals(layout, graph.getStore().getLink(h.getPersistent()));
+
+            graph.replace(h, "third value");
+            HGPersistentHandle [] newLayout = graph.getStore().getLink(h.getPersistent());
+            assertFalse(valueHandle.equals(newLayout[1]));
+            assertNull(graph.getStore().getData(valueHandle));
+        }
+        finally
+        {
+            graph.close();
+            HGUtils.dropHyperGraphInstance(location);
+        }
+    }
+
+    HyperGraph openRAM(String location)
+    {
+        HGUtils.dropHyperGraphInstance(location);
+        HGConfiguration config = new HGConfiguration();
+        config.setStoreImplementation(new RAMStorageImplementation());
+        config.setStoreCacheSize(1<<20);
+        return HGEnvironment.get(location, config);
+    }
+
+    // Read a record from another thread and transaction, caching its committed value.
+    void readConcurrently(final HGStore store, final HGPersistentHandle h, byte [] expected) throws Exception
+    {
+        final byte [][] result = new byte[1][];
+        Thread reader = new Thread(new Runnable() {
+            public void run()
+            {
+                result[0] = store.getTransactionManager().transact(new Callable<byte[]>() {
+                    public byte [] call() { return store.getData(h); }
+                });
+            }
+        });
+        reader.start();
+        reader.join();
+        assertArrayEquals(expected, result[0]);
+    }
+
+    @Test
+    public void testReadYourWrites() throws Exception
+    {
+        String location = HGTestBase.getGraphLocation() + "_recordcache_ram";
+        HyperGraph graph = openRAM(location);
+        try
+        {
+            final HGStore store = graph.getStore();
+            HGTransactionManager txman = graph.getTransactionManager();
+            final HGPersistentHandle h = txman.transact(new Callable<HGPersistentHandle>() {
+                public HGPersistentHandle call() { return store.store(new byte[] { 1 }); }
+            });
+            txman.beginTransaction();
+            store.store(h, new byte[] { 2 });
+            readConcurrently(store, h, new byte[] { 1 });
+            assertArrayEquals(new byte[] { 2 }, store.getData(h));
+            txman.endTransaction(false);
+            assertArrayEquals(new byte[] { 1 }, store.getData(h));
+        }
+        finally
+        {
+            graph.close();
+            HGUtils.dropHyperGraphInstance(location);
+        }
+    }
+
+    @Test
+    public void testReadAfterCommit() throws Exception
+    {
+        String location = HGTestBase.getGraphLocation() + "_recordcache_ram";
+        HyperGraph graph = openRAM(location);
+        try
+        {
+            final HGStore store = graph.getStore();
+            HGTransactionManager txman = graph.getTransactionManager();
+            final HGPersistentHandle h = txman.transact(new Callable<HGPersistentHandle>() {
+                public HGPersistentHandle call() { return store.store(new byte[] { 1 }); }
+            });
+            txman.beginTransaction();
+            store.store(h, new byte[] { 2 });
+            readConcurrently(store, h, new byte[] { 1 });
+            txman.endTransaction(true);
+            readConcurrently(store, h, new byte[] { 2 });
+            assertArrayEquals(new byte[] { 2 }, store.getData(h));
+        }
+        finally
+        {
+            graph.close();
+            HGUtils.dropHyperGraphInstance(location);
+        }
+    }
+
+    // Read a link from another thread and transaction, caching its committed value.
+    void readLinkConcurrently(final HGStore store, final HGPersistentHandle h, HGPersistentHandle [] expected) throws Exception
+    {
+        final HGPersistentHandle [][] result = new HGPersistentHandle[1][];
+        Thread reader = new Thread(new Runnable() {
+            public void run()
+            {
+                result[0] = store.getTransactionManager().transact(new Callable<HGPersistentHandle[]>() {
+                    public HGPersistentHandle [] call() { return store.getLink(h); }
+                });
+            }
+        });
+        reader.start();
+        reader.join();
+        assertArrayEquals(expected, result[0]);
+    }
+
+    @Test
+    public void testBatchReadYourWrites() throws Exception
+    {
+        String location = HGTestBase.getGraphLocation() + "_recordcache_ram";
+        HyperGraph graph = openRAM(location);
+        try
+        {
+            final HGStore store = graph.getStore();
+            HGTransactionManager txman = graph.getTransactionManager();
+            final HGPersistentHandle [] before = new HGPersistentHandle[] { handleFactory.makeHandle() };
+            final HGPersistentHandle [] after = new HGPersistentHandle[] { handleFactory.makeHandle(), handleFactory.makeHandle() };
+            final HGPersistentHandle l = txman.transact(new Callable<HGPersistentHandle>() {
+                public HGPersistentHandle call() { return store.store(before); }
+            });
+            final HGPersistentHandle d = txman.transact(new Callable<HGPersistentHandle>() {
+                public HGPersistentHandle call() { return store.store(new byte[] { 1 }); }
+            });
+            txman.beginTransaction();
+            store.store(l, after);
+            store.store(d, new byte[] { 2 });
+            readLinkConcurrently(store, l, before);
+            readConcurrently(store, d, new byte[] { 1 });
+            assertArrayEquals(after, store.getLinks(new HGPersistentHandle[] { l })[0]);
+            assertArrayEquals(new byte[] { 2 }, store.getDataBatch(new HGPersistentHandle[] { d })[0]);
+            txman.endTransaction(false);
+            assertArrayEquals(before, store.getLinks(new HGPersistentHandle[] { l })[0]);
+            assertArrayEquals(new byte[] { 1 }, store.getDataBatch(new HGPersistentHandle[] { d })[0]);
+        }
+        finally
+        {
+            graph.close();
+            HGUtils.dropHyperGraphInstance(location);
+        }
+    }
+
+    @Test
+    public void testReadDuringCommit() throws Exception
+    {
+        String location = HGTestBase.getGraphLocation() + "_recordcache_ram";
+        HyperGraph graph = openRAM(location);
+        try
+        {
+            final HGStore store = graph.getStore();
+            HGTransactionManager txman = graph.getTransactionManager();
+            final HGPersistentHandle h = txman.transact(new Callable<HGPersistentHandle>() {
+                public HGPersistentHandle call() { return store.store(new byte[] { 1 }); }
+            });
+            final Exception [] failure = new Exception[1];
+            txman.beginTransaction();
+            store.store(h, new byte[] { 2 });
+            // Read the record concurrently right before and right after the commit is published.
+            txman.getContext().getCurrent().addPublishActions(new Runnable() {
+                public void run()
+                {
+                    try { readConcurrently(store, h, new byte[] { 1 }); }
+                    catch (Exception ex) { failure[0] = ex; }
+                }
+            }, new Runnable() {
+                public void run()
+                {
+                    try { readConcurrently(store, h, new byte[] { 2 }); }
+                    catch (Exception ex) { failure[0] = ex; }
+                }
+            });
+            txman.endTransaction(true);
+            if (failure[0] != null)
+                throw failure[0];
+            assertArrayEquals(new byte[] { 2 }, store.getData(h));
+        }
+        finally
+        {
+            graph.close();
+            HGUtils.dropHyperGraphInstance(location);
+        }
+    }
+}
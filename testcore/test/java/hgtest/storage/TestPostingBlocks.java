@@ -0,0 +1,236 @@
+package hgtest.storage;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.hypergraphdb.HGConfiguration;
+import org.hypergraphdb.HGEnvironment;
+import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.HGHandleFactory;
+import org.hypergraphdb.HGPersistentHandle;
+import org.hypergraphdb.HGPlainLink;
+import org.hypergraphdb.HGRandomAccessResult;
+import org.hypergraphdb.HGRandomAccessResult.GotoResult;
+import org.hypergraphdb.HGSearchResult;
+import org.hypergraphdb.HGSortIndex;
+import org.hypergraphdb.HGQuery.hg;
+import org.hypergraphdb.HyperGraph;
+import org.hypergraphdb.handle.SequentialUUIDHandleFactory;
+import org.hypergraphdb.handle.UUIDHandleFactory;
+import org.hypergraphdb.storage.PostingBlock;
+import org.hypergraphdb.storage.bje.BJEStorageImplementation;
+import org.hypergraphdb.util.CountMe;
+import org.hypergraphdb.util.HGUtils;
+import org.junit.Test;
+
+import hgtest.HGTestBase;
+
+public class TestPostingBlocks
+{
+    private byte [][] sortedHandles(HGHandleFactory factory, int count)
+    {
+        byte [][] values = new byte[count][];
+        for (int i = 0; i < count; i++)
+            values[i] = factory.makeHandle().toByteArray();
+        Arrays.sort(values, (x, y) -> PostingBlock.compare(x, y));
+        return values;
+    }
+
+    @Test
+    public void testEncodeDecode()
+    {
+        for (HGHandleFactory factory : new HGHandleFactory[] { new UUIDHandleFactory(),
+                                                               new SequentialUUIDHandleFactory(0, 0) })
+        {
+            byte [][] values = sortedHandles(factory, PostingBlock.MAX_VALUES);
+            byte [] block = PostingBlock.encode(values);
+            if (factory instanceof SequentialUUIDHandleFactory)
+                assertTrue(block.length < values.length*values[0].length/4);
+            assertEquals(values.length, PostingBlock.count(block, 0, block.length));
+            assertArrayEquals(values[0], PostingBlock.first(block, 0, block.length));
+            byte [][] decoded = PostingBlock.decode(block);
+            assertEquals(values.length, decoded.length);
+            for (int i = 0; i < values.length; i++)
+            {
+                assertArrayEquals(values[i], decoded[i]);
+                assertEquals(i, PostingBlock.search(decoded, decoded.length, values[i]));
+            }
+        }
+        // carries across bytes
+        byte [][] values = new byte[][] { {0, (byte)0xff, (byte)0xff}, {1, 0, 0}, {1, 0, 1}, {(byte)0xff, 0, 0} };
+        byte [][] decoded = PostingBlock.decode(PostingBlock.encode(values));
+        for (int i = 0; i < values.length; i++)
+            assertArrayEquals(values[i], decoded[i]);
+        try
+        {
+            PostingBlock.encode(new byte[][] { values[1], values[0] });
+            fail();
+        }
+        catch (IllegalArgumentException ex) { }
+    }
+
+    @Test
+    public void testCompressedGraph()
+    {
+        String location = HGTestBase.getGraphLocation() + "_postings";
+        HGUtils.dropHyperGraphInstance(location);
+        HGConfiguration config = new HGConfiguration();
+        ((BJEStorageImplementation)config.getStoreImplementation()).getConfiguration().setCompressedPostingLists(true);
+        HyperGraph graph = HGEnvironment.get(location, config);
+        try
+        {
+            assertTrue(((BJEStorageImplementation)graph.getConfig().getStoreImplementation()).isCompressedPostingLists());
+            HGHandle hub = graph.add("hub");
+            List<HGPersistentHandle> links = new ArrayList<HGPersistentHandle>();
+            for (int i = 0; i < 1000; i++)
+                links.add(graph.add(new HGPlainLink(hub)).getPersistent());
+            Collections.sort(links);
+            assertEquals(1000, graph.getStore().getIncidenceSetCardinality(hub.getPersistent()));
+            assertEquals(1000, hg.count(graph, hg.type(HGPlainLink.class)));
+            graph.close();
+            graph = HGEnvironment.get(location);
+            assertTrue(((BJEStorageImplementation)graph.getConfig().getStoreImplementation()).isCompressedPostingLists());
+            assertEquals(1000, graph.getIncidenceSet(hub).size());
+
+            HGRandomAccessResult<HGPersistentHandle> rs = graph.getStore().getIncidenceResultSet(hub.getPersistent());
+            try
+            {
+                List<HGPersistentHandle> all = new ArrayList<HGPersistentHandle>();
+                while (rs.hasNext())
+                    all.add(rs.next());
+                assertEquals(links.size(), all.size());
+                assertEquals(new java.util.HashSet<HGPersistentHandle>(links), new java.util.HashSet<HGPersistentHandle>(all));
+                for (int i = 1; i < all.size(); i++)
+                    assertTrue(PostingBlock.compare(all.get(i - 1).toByteArray(), all.get(i).toByteArray()) < 0);
+                for (int i = all.size() - 1; i > 0; i--)
+                    assertEquals(all.get(i - 1), rs.prev());
+                assertFalse(rs.hasPrev());
+                Random random = new Random(7);
+                for (int i = 0; i < 100; i++)
+                {
+                    int j = random.nextInt(all.size());
+                    assertEquals(GotoResult.found, rs.goTo(all.get(j), true));
+                    assertEquals(all.get(j), rs.current());
+                    if (j + 1 < all.size())
+                        assertEquals(all.get(j + 1), rs.next());
+                }
+                assertEquals(GotoResult.nothing, rs.goTo(graph.getHandleFactory().makeHandle(), true));
+                rs.goAfterLast();
+                assertEquals(all.get(all.size() - 1), rs.prev());
+                rs.goBeforeFirst();
+                assertEquals(all.get(0), rs.next());
+            }
+            finally
+            {
+                rs.close();
+            }
+
+            Random random = new Random(11);
+            for (int i = 0; i < 500; i++)
+                graph.remove(links.remove(random.nextInt(links.size())));
+            assertEquals(500, graph.getIncidenceSet(hub).size());
+            assertEquals(500, hg.count(graph, hg.type(HGPlainLink.class)));
+            assertEquals(500, graph.getStore().getIncidenceSetCardinality(hub.getPersistent()));
+        }
+        finally
+        {
+            graph.close();
+            HGUtils.dropHyperGraphInstance(location);
+        }
+    }
+
+    private static <T> List<T> toList(HGSearchResult<T> rs)
+    {
+        try
+        {
+            List<T> L = new ArrayList<T>();
+            while (rs.hasNext())
+                L.add(rs.next());
+            return L;
+        }
+        finally
+        {
+            rs.close();
+        }
+    }
+
+    @Test
+    public void testBlockIndexLookups()
+    {
+        String location = HGTestBase.getGraphLocation() + "_postings_index";
+        HGUtils.dropHyperGraphInstance(location);
+        HGConfiguration config = new HGConfiguration();
+        ((BJEStorageImplementation)config.getStoreImplementation()).getConfiguration().setCompressedPostingLists(true);
+        HyperGraph graph = HGEnvironment.get(location, config);
+        try
+        {
+            for (int i = 0; i < 300; i++)
+                graph.add("string " + i);
+            for (int i = 0; i < 200; i++)
+                graph.add(i);
+            for (int i = 0; i < 100; i++)
+                graph.add((double)i);
+            HGSortIndex<HGPersistentHandle, HGPersistentHandle> index =
+                (HGSortIndex<HGPersistentHandle, HGPersistentHandle>)graph.getStore().
+                    <HGPersistentHandle, HGPersistentHandle>getIndex(HyperGraph.TYPES_INDEX_NAME);
+            List<HGPersistentHandle> keys = toList(index.scanKeys());
+            assertTrue(keys.size() > 3);
+            List<HGPersistentHandle> values = new ArrayList<HGPersistentHandle>();
+            for (HGPersistentHandle key : keys)
+                values.addAll(toList(index.find(key)));
+
+            // ordered lookups visit keys upwards from a lower bound and downwards from an upper bound
+            int middle = keys.size() / 2;
+            for (int bound = 0; bound < 4; bound++)
+            {
+                List<HGPersistentHandle> expected = new ArrayList<HGPersistentHandle>();
+                if (bound < 2)
+                    for (int i = middle + (bound == 0 ? 1 : 0); i < keys.size(); i++)
+                        expected.addAll(toList(index.find(keys.get(i))));
+                else
+                    for (int i = middle - (bound == 2 ? 1 : 0); i >= 0; i--)
+                        expected.addAll(toList(index.find(keys.get(i))));
+                HGSearchResult<HGPersistentHandle> rs = bound == 0 ? index.findGT(keys.get(middle))
+                                                      : bound == 1 ? index.findGTE(keys.get(middle))
+                                                      : bound == 2 ? index.findLT(keys.get(middle))
+                                                      : index.findLTE(keys.get(middle));
+                assertEquals(expected, toList(rs));
+            }
+            assertFalse(index.findGT(keys.get(keys.size() - 1)).hasNext());
+            assertFalse(index.findLT(keys.get(0)).hasNext());
+
+            // a scan of all values counts them and finds any of them
+            HGRandomAccessResult<HGPersistentHandle> scan = index.scanValues();
+            try
+            {
+                assertEquals(values.size(), ((CountMe)scan).count());
+                Random random = new Random(13);
+                for (int i = 0; i < 50; i++)
+                {
+                    int j = random.nextInt(values.size());
+                    assertEquals(GotoResult.found, scan.goTo(values.get(j), true));
+                    assertEquals(values.get(j), scan.current());
+                    if (j + 1 < values.size())
+                        assertEquals(values.get(j + 1), scan.next());
+                    HGPersistentHandle current = scan.current();
+                    assertEquals(GotoResult.nothing, scan.goTo(graph.getHandleFactory().makeHandle(), false));
+                    assertEquals(current, scan.current());
+                }
+            }
+            finally
+            {
+                scan.close();
+            }
+        }
+        finally
+        {
+            graph.close();
+            HGUtils.dropHyperGraphInstance(location);
+        }
+    }
+}
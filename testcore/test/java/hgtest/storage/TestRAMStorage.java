@@ -0,0 +1,161 @@
+package hgtest.storage;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.hypergraphdb.HGConfiguration;
+import org.hypergraphdb.HGEnvironment;
+import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.HGPersistentHandle;
+import org.hypergraphdb.HGPlainLink;
+import org.hypergraphdb.HGQuery.hg;
+import org.hypergraphdb.HGStore;
+import org.hypergraphdb.HyperGraph;
+import org.hypergraphdb.storage.ram.RAMConfig;
+import org.hypergraphdb.storage.ram.RAMStorageImplementation;
+import org.hypergraphdb.transaction.HGTransactionManager;
+import org.hypergraphdb.transaction.TransactionConflictException;
+import org.hypergraphdb.util.HGUtils;
+import org.junit.Test;
+
+import hgtest.HGTestBase;
+
+public class TestRAMStorage
+{
+    String location = HGTestBase.getGraphLocation() + "_ram";
+
+    HyperGraph open(boolean persistent)
+    {
+        HGConfiguration config = new HGConfiguration();
+        RAMStorageImplementation impl = new RAMStorageImplementation();
+        impl.getConfiguration().setPersistent(persistent);
+        config.setStoreImplementation(impl);
+        return HGEnvironment.get(location, config);
+    }
+
+    @Test
+    public void testAtomsAndQueries()
+    {
+        HGUtils.dropHyperGraphInstance(location);
+        HyperGraph graph = open(false);
+        try
+        {
+            HGHandle a = graph.add("a");
+            HGHandle b = graph.add("b");
+            HGHandle link = graph.add(new HGPlainLink(a, b));
+            assertEquals("a", graph.get(a));
+            assertEquals(2, hg.count(graph, hg.type(String.class)));
+            assertEquals(link, hg.findOne(graph, hg.incident(a)));
+            graph.remove(link);
+            assertEquals(0, hg.count(graph, hg.incident(b)));
+        }
+        finally
+        {
+            graph.close();
+        }
+        graph = open(false);
+        try
+        {
+            assertEquals(0, hg.count(graph, hg.type(String.class)));
+        }
+        finally
+        {
+            graph.close();
+            HGUtils.dropHyperGraphInstance(location);
+        }
+    }
+
+    @Test
+    public void testTransactions() throws Exception
+    {
+        HGUtils.dropHyperGraphInstance(location);
+        HyperGraph graph = open(false);
+        try
+        {
+            final HGStore store = graph.getStore();
+            final HGTransactionManager txman = graph.getTransactionManager();
+            final HGPersistentHandle h = txman.transact(() -> store.store(new byte[] { 1 }));
+
+            // a transaction keeps reading its snapshot and can't commit after a concurrent change
+            txman.beginTransaction();
+            assertArrayEquals(new byte[] { 1 }, store.getData(h));
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            Thread writer = new Thread(() -> {
+                try
+                {
+                    txman.transact(() -> store.store(h, new byte[] { 2 }));
+                }
+                catch (Throwable t)
+                {
+                    failure.set(t);
+                }
+            });
+            writer.start();
+            writer.join();
+            assertNull(failure.get());
+            assertArrayEquals(new byte[] { 1 }, store.getData(h));
+            store.store(h, new byte[] { 3 });
+            try
+            {
+                txman.endTransaction(true);
+                fail("Expected a conflict.");
+            }
+            catch (TransactionConflictException ex)
+            {
+            }
+            assertArrayEquals(new byte[] { 2 }, txman.transact(() -> store.getData(h)));
+
+            // changes of an aborted nested transaction are discarded
+            final HGPersistentHandle target = graph.getHandleFactory().makeHandle();
+            final HGPersistentHandle x = graph.getHandleFactory().makeHandle();
+            final HGPersistentHandle y = graph.getHandleFactory().makeHandle();
+            txman.beginTransaction();
+            store.addIncidenceLink(target, x);
+            txman.beginTransaction();
+            store.addIncidenceLink(target, y);
+            assertEquals(2, store.getIncidenceSetCardinality(target));
+            txman.endTransaction(false);
+            assertEquals(1, store.getIncidenceSetCardinality(target));
+            txman.endTransaction(true);
+            assertEquals(Long.valueOf(1), txman.transact(() -> store.getIncidenceSetCardinality(target)));
+        }
+        finally
+        {
+            graph.close();
+            HGUtils.dropHyperGraphInstance(location);
+        }
+    }
+
+    @Test
+    public void testSnapshotRestore()
+    {
+        HGUtils.dropHyperGraphInstance(location);
+        HyperGraph graph = open(true);
+        HGHandle a, link;
+        try
+        {
+            a = graph.add("a");
+            HGHandle b = graph.add("b");
+            link = graph.add(new HGPlainLink(a, b));
+        }
+        finally
+        {
+            graph.close();
+        }
+        assertTrue(new File(location, RAMConfig.DEFAULT_SNAPSHOT_NAME).exists());
+        graph = open(true);
+        try
+        {
+            assertEquals("a", graph.get(a));
+            assertEquals(2, hg.count(graph, hg.type(String.class)));
+            assertEquals(link, hg.findOne(graph, hg.incident(a)));
+        }
+        finally
+        {
+            graph.close();
+            HGUtils.dropHyperGraphInstance(location);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package hgtest.tx;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.Callable;
+
+import org.hypergraphdb.HGConfiguration;
+import org.hypergraphdb.HGEnvironment;
+import org.hypergraphdb.HyperGraph;
+import org.hypergraphdb.storage.bje.BJEConfig;
+import org.hypergraphdb.storage.bje.BJEStorageImplementation;
+import org.hypergraphdb.transaction.HGDurability;
+import org.hypergraphdb.transaction.HGTransactionConfig;
+import org.hypergraphdb.util.HGUtils;
+import org.junit.Test;
+
+import com.sleepycat.je.EnvironmentStats;
+import com.sleepycat.je.StatsConfig;
+
+import hgtest.HGTestBase;
+
+public class DurabilityTests
+{
+    private static long fsyncs(BJEStorageImplementation storage)
+    {
+        StatsConfig config = new StatsConfig();
+        config.setFast(true);
+        EnvironmentStats stats = storage.getBerkleyEnvironment().getStats(config);
+        return stats.getNLogFSyncs();
+    }
+
+    private static void add(final HyperGraph graph, final String value, HGDurability durability)
+    {
+        HGTransactionConfig config = new HGTransactionConfig();
+        config.setDurability(durability);
+        graph.getTransactionManager().transact(new Callable<Object>() {
+            public Object call()
+            {
+                return graph.add(value);
+            }
+        }, config);
+    }
+
+    private void checkDurability(boolean groupCommit)
+    {
+        String location = HGTestBase.getGraphLocation() + "_durability";
+        HGUtils.dropHyperGraphInstance(location);
+        HGConfiguration config = new HGConfiguration();
+        BJEStorageImplementation storage = (BJEStorageImplementation)config.getStoreImplementation();
+        HyperGraph graph = HGEnvironment.get(location, config);
+        try
+        {
+            graph.getTransactionManager().setGroupCommit(groupCommit);
+            long before = fsyncs(storage);
+            for (int i = 0; i < 10; i++)
+                add(graph, "nosync" + i, HGDurability.NO_SYNC);
+            for (int i = 0; i < 10; i++)
+                add(graph, "nowrite" + i, HGDurability.WRITE_NO_SYNC);
+            for (int i = 0; i < 10; i++)
+                add(graph, "default" + i, null);
+            assertEquals(before, fsyncs(storage));
+            for (int i = 0; i < 10; i++)
+                add(graph, "sync" + i, HGDurability.SYNC);
+            assertTrue(fsyncs(storage) >= before + 10);
+        }
+        finally
+        {
+            graph.close();
+        }
+        graph = HGEnvironment.get(location);
+        try
+        {
+            for (String prefix : new String[] { "nosync", "nowrite", "default", "sync" })
+                for (int i = 0; i < 10; i++)
+                    assertNotNull(prefix + i, graph.findOne(org.hypergraphdb.HGQuery.hg.eq(prefix + i)));
+        }
+        finally
+        {
+            graph.close();
+            HGUtils.dropHyperGraphInstance(location);
+        }
+    }
+
+    @Test
+    public void testDurability()
+    {
+        checkDurability(false);
+    }
+
+    @Test
+    public void testGroupCommitDurability()
+    {
+        checkDurability(true);
+    }
+
+    @Test
+    public void testCheckpointPolicy() throws Exception
+    {
+        String location = HGTestBase.getGraphLocation() + "_checkpoints";
+        HGUtils.dropHyperGraphInstance(location);
+        HGConfiguration config = new HGConfiguration();
+        BJEStorageImplementation storage = (BJEStorageImplementation)config.getStoreImplementation();
+        BJEConfig bjeConfig = storage.getConfiguration();
+        bjeConfig.setCheckpointBytes(256 * 1024);
+        bjeConfig.setCheckpointInterval(0);
+        bjeConfig.setCheckpointPollInterval(20);
+        HyperGraph graph = HGEnvironment.get(location, config);
+        try
+        {
+            // the storage checkpoints once at startup
+            assertEquals(1, storage.getCheckpointCount());
+            Thread.sleep(200);
+            assertEquals(1, storage.getCheckpointCount());
+            assertTrue(storage.getBytesSinceCheckpoint() < 256 * 1024);
+
+            StringBuilder payload = new StringBuilder();
+            for (int i = 0; i < 1000; i++)
+                payload.append('x');
+            for (int i = 0; i < 1000 && storage.getCheckpointCount() == 1; i++)
+                graph.add(payload.toString() + i);
+            long deadline = System.currentTimeMillis() + 10000;
+            while (storage.getCheckpointCount() == 1 && System.currentTimeMillis() < deadline)
+                Thread.sleep(20);
+            assertTrue(storage.getCheckpointCount() > 1);
+            assertTrue(storage.getBytesSinceCheckpoint() < 2 * 256 * 1024);
+            assertTrue(storage.getLastCheckpointDuration() >= 0);
+            assertTrue(storage.getMaxCheckpointDuration() >= storage.getLastCheckpointDuration());
+            assertTrue(storage.getTotalCheckpointDuration() >= storage.getMaxCheckpointDuration());
+            assertTrue(storage.getCleanerBacklog() >= 0);
+            assertTrue(storage.getFileDeletionBacklog() >= 0);
+        }
+        finally
+        {
+            graph.close();
+            HGUtils.dropHyperGraphInstance(location);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package hgtest.tx;
+
+import static org.junit.Assert.*;
+import hgtest.HGTestBase;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hypergraphdb.transaction.BackoffRetryPolicy;
+import org.hypergraphdb.transaction.HGTransactionConfig;
+import org.hypergraphdb.transaction.TransactionConflictException;
+import org.hypergraphdb.transaction.TransactionIsReadonlyException;
+import org.junit.Test;
+
+/**
+ * Test the retry policies applied by <code>HGTransactionManager.transact</code>.
+ */
+public class RetryPolicyTests extends HGTestBase
+{
+    @Test
+    public void giveUpAfterMaxAttempts()
+    {
+        BackoffRetryPolicy policy = new BackoffRetryPolicy(1, 5);
+        policy.setMaxAttempts(3);
+        HGTransactionConfig config = new HGTransactionConfig();
+        config.setRetryPolicy(policy);
+        final AtomicInteger attempts = new AtomicInteger(0);
+        try
+        {
+            graph.getTransactionManager().transact(new Callable<Object>() {
+                public Object call()
+                {
+                    attempts.incrementAndGet();
+                    throw new TransactionConflictException();
+                }
+            }, config);
+            fail("Expected the retry policy to give up.");
+        }
+        catch (TransactionConflictException ex)
+        {
+        }
+        assertEquals(3, attempts.get());
+        assertEquals(2, policy.getRetries());
+        assertEquals(1, policy.getGivenUp());
+    }
+
+    @Test
+    public void giveUpAfterDeadline()
+    {
+        BackoffRetryPolicy policy = new BackoffRetryPolicy(10, 50);
+        policy.setDeadline(200);
+        HGTransactionConfig config = new HGTransactionConfig();
+        config.setRetryPolicy(policy);
+        long start = System.currentTimeMillis();
+        try
+        {
+            graph.getTransactionManager().transact(new Callable<Object>() {
+                public Object call()
+                {
+                    throw new TransactionConflictException();
+                }
+            }, config);
+            fail("Expected the retry policy to give up.");
+        }
+        catch (TransactionConflictException ex)
+        {
+        }
+        assertTrue(System.currentTimeMillis() - start >= 200);
+        assertEquals(1, policy.getGivenUp());
+        assertTrue(policy.getRetries() > 0);
+    }
+
+    @Test
+    public void retryUntilSuccess()
+    {
+        BackoffRetryPolicy policy = new BackoffRetryPolicy(1, 5);
+        policy.setWaitForCommitter(true);
+        HGTransactionConfig config = new HGTransactionConfig();
+        config.setRetryPolicy(policy);
+        final AtomicInteger attempts = new AtomicInteger(0);
+        String result = graph.getTransactionManager().transact(new Callable<String>() {
+            public String call()
+            {
+                if (attempts.incrementAndGet() < 4)
+                    throw new TransactionConflictException();
+                return "done";
+            }
+        }, config);
+        assertEquals("done", result);
+        assertEquals(3, policy.getRetries());
+        assertEquals(3, policy.getCommitterWaits());
+        assertEquals(0, policy.getGivenUp());
+    }
+
+    @Test
+    public void keepPolicyAfterWriteUpgrade()
+    {
+        BackoffRetryPolicy policy = new BackoffRetryPolicy(1, 5);
+        policy.setMaxAttempts(3);
+        HGTransactionConfig config = new HGTransactionConfig();
+        config.setWriteUpgradable(true);
+        config.setRetryPolicy(policy);
+        final AtomicInteger attempts = new AtomicInteger(0);
+        try
+        {
+            graph.getTransactionManager().transact(new Callable<Object>() {
+                public Object call()
+                {
+                    if (attempts.incrementAndGet() == 1)
+                        throw new TransactionIsReadonlyException();
+                    assertFalse(graph.getTransactionManager().getContext().getCurrent().isReadOnly());
+                    throw new TransactionConflictException();
+                }
+            }, config);
+            fail("Expected the retry policy to give up.");
+        }
+        catch (TransactionConflictException ex)
+        {
+        }
+        // the first attempt is upgraded, the conflicts of the write attempts go to the policy
+        assertEquals(3, attempts.get());
+        assertEquals(1, policy.getRetries());
+        assertEquals(1, policy.getGivenUp());
+    }
+}
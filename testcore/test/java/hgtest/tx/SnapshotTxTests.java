@@ -0,0 +1,91 @@
+package hgtest.tx;
+
+import static org.junit.Assert.*;
+import hgtest.HGTestBase;
+
+import java.util.concurrent.Callable;
+
+import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.transaction.HGTransactionConfig;
+import org.hypergraphdb.transaction.HGTransactionManager;
+import org.hypergraphdb.transaction.TransactionIsReadonlyException;
+import org.hypergraphdb.transaction.VBox;
+import org.junit.Test;
+
+/**
+ * Test snapshot read transactions.
+ */
+public class SnapshotTxTests extends HGTestBase
+{
+    @Test
+    public void readSnapshot() throws Exception
+    {
+        final HGTransactionManager txman = graph.getTransactionManager();
+        final VBox<String> box = new VBox<String>(txman);
+        txman.transact(new Callable<Object>() {
+            public Object call() { box.put("before"); return null; }
+        });
+        HGHandle h = graph.add("snapshotAtom");
+        txman.beginTransaction(HGTransactionConfig.SNAPSHOT);
+        try
+        {
+            assertTrue(txman.getContext().getCurrent().isSnapshot());
+            assertTrue(txman.getContext().getCurrent().isReadOnly());
+            assertEquals("before", box.get());
+            assertEquals("snapshotAtom", graph.get(h));
+            Thread writer = new Thread(new Runnable() {
+                public void run()
+                {
+                    txman.transact(new Callable<Object>() {
+                        public Object call() { box.put("after"); return null; }
+                    });
+                }
+            });
+            writer.start();
+            writer.join();
+            assertEquals("before", box.get());
+            try
+            {
+                box.put("inside");
+                fail("Expected a snapshot transaction to be read-only.");
+            }
+            catch (TransactionIsReadonlyException ex)
+            {
+            }
+        }
+        finally
+        {
+            txman.endTransaction(true);
+        }
+        assertEquals("after", box.get());
+    }
+
+    @Test
+    public void nestedSnapshot() throws Exception
+    {
+        HGTransactionManager txman = graph.getTransactionManager();
+        VBox<String> box = new VBox<String>(txman);
+        txman.beginTransaction(HGTransactionConfig.SNAPSHOT);
+        try
+        {
+            txman.beginTransaction(HGTransactionConfig.NO_STORAGE);
+            try
+            {
+                assertTrue(txman.getContext().getCurrent().isSnapshot());
+                box.put("nested");
+                fail("Expected a transaction nested in a snapshot to be read-only.");
+            }
+            catch (TransactionIsReadonlyException ex)
+            {
+            }
+            finally
+            {
+                txman.endTransaction(true);
+            }
+        }
+        finally
+        {
+            txman.endTransaction(true);
+        }
+    }
+}
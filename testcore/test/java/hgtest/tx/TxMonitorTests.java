@@ -0,0 +1,86 @@
+package hgtest.tx;
+
+import static org.junit.Assert.*;
+import hgtest.HGTestBase;
+
+import java.util.concurrent.Callable;
+
+import org.hypergraphdb.transaction.HGTransactionManager;
+import org.hypergraphdb.transaction.TransactionConflictException;
+import org.hypergraphdb.transaction.TxMonitor;
+import org.hypergraphdb.transaction.VBox;
+import org.junit.Test;
+
+/**
+ * Test the metrics collected by the transaction manager's {@link TxMonitor}.
+ */
+public class TxMonitorTests extends HGTestBase
+{
+    @Test
+    public void commitMetrics()
+    {
+        TxMonitor monitor = graph.getTransactionManager().getTxMonitor();
+        assertNotNull(monitor);
+        monitor.reset();
+        for (int i = 0; i < 10; i++)
+            graph.add("txMonitorTest" + i);
+        assertTrue(monitor.getCommits() >= 10);
+        assertEquals(monitor.getCommits(), monitor.getCommitLatency().getCount());
+        assertTrue(monitor.getCommitLockWait().getCount() >= 10);
+        assertTrue(monitor.getValidationTime().getCount() >= 10);
+        assertTrue(monitor.getStorageCommitTime().getCount() >= 10);
+        assertTrue(monitor.getWriteSetSizeMean() > 0);
+    }
+
+    @Test
+    public void conflictByType() throws Exception
+    {
+        final HGTransactionManager txman = graph.getTransactionManager();
+        TxMonitor monitor = txman.getTxMonitor();
+        monitor.reset();
+        final VBox<Integer> box = new VBox<Integer>(txman, 0);
+        txman.beginTransaction();
+        box.put(box.get() + 1);
+        Thread other = new Thread(new Runnable() {
+            public void run()
+            {
+                txman.transact(new Callable<Object>() {
+                    public Object call()
+                    {
+                        box.put(box.get() + 10);
+                        return null;
+                    }
+                });
+            }
+        });
+        other.start();
+        other.join();
+        try
+        {
+            txman.commit();
+            fail("Expected a conflict.");
+        }
+        catch (TransactionConflictException ex)
+        {
+        }
+        assertEquals(1, monitor.getConflicts());
+        assertEquals(Long.valueOf(1), monitor.getConflictsByTypeMap().get(VBox.class.getName()));
+        assertEquals(Integer.valueOf(10), box.get());
+    }
+
+    @Test
+    public void registerMBean()
+    {
+        TxMonitor monitor = graph.getTransactionManager().getTxMonitor();
+        monitor.registerMBean(graph.getLocation());
+        try
+        {
+            assertTrue(java.lang.management.ManagementFactory.getPlatformMBeanServer().queryNames(
+                null, null).toString().contains("type=TxMonitor"));
+        }
+        finally
+        {
+            monitor.unregisterMBean();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package hgtest.utils;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.hypergraphdb.cache.CacheMaintenanceExecutor;
+import org.junit.Test;
+
+public class TestCacheMaintenanceExecutor
+{
+    @Test
+    public void testOrderPerOwner() throws Exception
+    {
+        final CacheMaintenanceExecutor executor = new CacheMaintenanceExecutor("test", 4, 1000, 16);
+        try
+        {
+            final int owners = 10, actions = 5000;
+            final List<List<Integer>> results = new ArrayList<List<Integer>>();
+            Thread [] producers = new Thread[owners];
+            for (int i = 0; i < owners; i++)
+            {
+                final List<Integer> L = Collections.synchronizedList(new ArrayList<Integer>());
+                results.add(L);
+                producers[i] = new Thread(new Runnable() {
+                    public void run()
+                    {
+                        for (int j = 0; j < actions; j++)
+                        {
+                            final int x = j;
+                            executor.addAction(L, new Runnable() {
+                                public void run() { L.add(x); }
+                            });
+                        }
+                    }
+                });
+                producers[i].start();
+            }
+            for (Thread t : producers)
+                t.join();
+            executor.completeAll();
+            for (List<Integer> L : results)
+            {
+                assertEquals(actions, L.size());
+                for (int j = 0; j < actions; j++)
+                    assertEquals(j, (int)L.get(j));
+            }
+            assertEquals(0, executor.getQueueDepth());
+            assertEquals(owners * actions, executor.getCompletedCount());
+            assertEquals(owners * actions, executor.getActionLatency().getCount());
+            assertTrue(executor.getMaxQueueDepth() > 0);
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testBoundedQueue() throws Exception
+    {
+        final Object owner = new Object();
+        final CacheMaintenanceExecutor executor = new CacheMaintenanceExecutor("test", 1, 10, 4);
+        try
+        {
+            executor.pauseActions(owner);
+            Thread producer = new Thread(new Runnable() {
+                public void run()
+                {
+                    for (int i = 0; i < 20; i++)
+                        executor.addAction(owner, new Runnable() { public void run() { } });
+                }
+            });
+            producer.start();
+            producer.join(2000);
+            // the worker took one batch and is blocked, the rest must fill the queue
+            assertTrue(producer.isAlive());
+            assertTrue(executor.getQueueDepth() <= 10);
+            assertTrue(executor.getBlockedSubmissions() > 0);
+            executor.resumeActions(owner);
+            producer.join();
+            executor.completeAll(owner);
+            assertEquals(20, executor.getCompletedCount());
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    private static boolean threadExists(String name)
+    {
+        for (Thread t : Thread.getAllStackTraces().keySet())
+            if (t.getName().equals(name))
+                return true;
+        return false;
+    }
+
+    @Test
+    public void testLazyStart() throws Exception
+    {
+        final Object owner = new Object();
+        final CacheMaintenanceExecutor executor = new CacheMaintenanceExecutor("lazy-test", 1, 100000, 16);
+        try
+        {
+            assertFalse(threadExists("lazy-test"));
+            executor.completeAll();
+            final List<Integer> L = Collections.synchronizedList(new ArrayList<Integer>());
+            for (int i = 0; i < 1000; i++)
+            {
+                final int x = i;
+                executor.addAction(owner, new Runnable() { public void run() { L.add(x); } });
+            }
+            assertTrue(threadExists("lazy-test"));
+            executor.completeAll(owner);
+            assertEquals(1000, L.size());
+            for (int i = 0; i < 1000; i++)
+                assertEquals(i, (int)L.get(i));
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testCompleteFromWorker() throws Exception
+    {
+        final Object owner = new Object();
+        final CacheMaintenanceExecutor executor = new CacheMaintenanceExecutor("test", 1, 100, 2);
+        try
+        {
+            final List<String> L = Collections.synchronizedList(new ArrayList<String>());
+            executor.pauseActions(owner);
+            executor.addAction(owner, new Runnable() {
+                public void run()
+                {
+                    executor.completeAll(owner);
+                    L.add("a");
+                }
+            });
+            for (final String x : new String[] { "b", "c", "d" })
+                executor.addAction(owner, new Runnable() { public void run() { L.add(x); } });
+            executor.resumeActions(owner);
+            Thread waiter = new Thread(new Runnable() {
+                public void run() { executor.completeAll(owner); }
+            });
+            waiter.start();
+            waiter.join(5000);
+            assertFalse(waiter.isAlive());
+            assertEquals(Arrays.asList("b", "c", "d", "a"), L);
+            assertEquals(4, executor.getCompletedCount());
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package hgtest.utils;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hypergraphdb.HGEnvironment;
+import org.hypergraphdb.util.MemoryWarningSystem;
+import org.junit.Test;
+
+public class TestMemoryWarningSystem
+{
+    static class CountingListener implements MemoryWarningSystem.IncrementalListener
+    {
+        final int priority, available;
+        final AtomicInteger calls = new AtomicInteger();
+        volatile int otherCallsAtFirstCall = -1;
+        CountingListener other;
+
+        CountingListener(int priority, int available)
+        {
+            this.priority = priority;
+            this.available = available;
+        }
+
+        public int getPriority()
+        {
+            return priority;
+        }
+
+        public boolean releaseMemory(long usedMemory, long maxMemory)
+        {
+            if (calls.incrementAndGet() == 1 && other != null)
+                otherCallsAtFirstCall = other.calls.get();
+            return calls.get() < available;
+        }
+    }
+
+    @Test
+    public void testIncrementalRounds() throws Exception
+    {
+        MemoryWarningSystem mws = HGEnvironment.getMemoryWarningSystem();
+        double threshold = mws.getPercentageUsageThreshold();
+        CountingListener cheap = new CountingListener(MemoryWarningSystem.PRIORITY_FIRST, 3);
+        CountingListener expensive = new CountingListener(MemoryWarningSystem.PRIORITY_LAST, 1000);
+        expensive.other = cheap;
+        final AtomicInteger plainCalls = new AtomicInteger();
+        MemoryWarningSystem.Listener plain = new MemoryWarningSystem.Listener() {
+            public void memoryUsageLow(long usedMemory, long maxMemory) { plainCalls.incrementAndGet(); }
+        };
+        mws.addListener(expensive);
+        mws.addListener(cheap);
+        mws.addListener(plain);
+        long episodes = mws.getEpisodeCount();
+        try
+        {
+            // make sure the target can't be reached so that all rounds are performed
+            mws.setPercentageUsageThreshold(0.0001);
+            mws.reclaim();
+            assertTrue(mws.getEpisodeCount() > episodes);
+            assertTrue(cheap.calls.get() >= 1);
+            long deadline = System.currentTimeMillis() + 30000;
+            while (mws.isReclaiming() && System.currentTimeMillis() < deadline)
+            {
+                System.gc();
+                Thread.sleep(100);
+            }
+            assertFalse(mws.isReclaiming());
+            // the cheap listener is exhausted before the expensive one is asked at all
+            assertEquals(3, cheap.calls.get());
+            assertEquals(3, expensive.otherCallsAtFirstCall);
+            assertEquals(mws.getMaxRounds() - 3, expensive.calls.get());
+            assertEquals(1, plainCalls.get());
+        }
+        finally
+        {
+            mws.removeListener(cheap);
+            mws.removeListener(expensive);
+            mws.removeListener(plain);
+            mws.setPercentageUsageThreshold(threshold);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package hgtest.utils;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hypergraphdb.cache.TinyLFUCache;
+import org.hypergraphdb.util.RefResolver;
+import org.junit.Test;
+
+public class TestTinyLFUCache
+{
+    static TinyLFUCache<Integer, String> makeCache(int maxSize, final AtomicInteger loads)
+    {
+        TinyLFUCache<Integer, String> cache = new TinyLFUCache<Integer, String>(maxSize, 0.3f);
+        cache.setResolver(new RefResolver<Integer, String>() {
+            public String resolve(Integer key)
+            {
+                loads.incrementAndGet();
+                return "value" + key;
+            }
+        });
+        return cache;
+    }
+
+    @Test
+    public void testBounded()
+    {
+        AtomicInteger loads = new AtomicInteger();
+        TinyLFUCache<Integer, String> cache = makeCache(100, loads);
+        try
+        {
+            for (int i = 0; i < 1000; i++)
+                assertEquals("value" + i, cache.get(i));
+            assertTrue(cache.size() <= 100);
+            assertEquals(1000, loads.get());
+            assertEquals(1000, cache.getMisses());
+            assertEquals(1000 - cache.size(), cache.getEvictions());
+        }
+        finally
+        {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testFrequentElementsSurviveScan()
+    {
+        AtomicInteger loads = new AtomicInteger();
+        TinyLFUCache<Integer, String> cache = makeCache(100, loads);
+        try
+        {
+            for (int round = 0; round < 50; round++)
+                for (int i = 0; i < 10; i++)
+                    cache.get(i);
+            for (int i = 1000; i < 5000; i++)
+                cache.get(i);
+            int survivors = 0;
+            for (int i = 0; i < 10; i++)
+                if (cache.isLoaded(i))
+                    survivors++;
+            assertTrue(survivors >= 8);
+        }
+        finally
+        {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testRemoveAndClear()
+    {
+        AtomicInteger loads = new AtomicInteger();
+        TinyLFUCache<Integer, String> cache = makeCache(0, loads);
+        try
+        {
+            for (int i = 0; i < 100; i++)
+                cache.get(i);
+            assertEquals(100, cache.size());
+            assertEquals("value5", cache.getIfLoaded(5));
+            cache.remove(5);
+            assertFalse(cache.isLoaded(5));
+            assertNull(cache.getIfLoaded(5));
+            assertEquals(99, cache.size());
+            assertEquals("value5", cache.get(5));
+            assertEquals(101, loads.get());
+            cache.clear();
+            assertEquals(0, cache.size());
+            assertEquals("value7", cache.get(7));
+        }
+        finally
+        {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testConcurrentAccess() throws Exception
+    {
+        final AtomicInteger loads = new AtomicInteger();
+        final TinyLFUCache<Integer, String> cache = makeCache(200, loads);
+        final AtomicInteger errors = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try
+        {
+            for (int t = 0; t < 8; t++)
+            {
+                final int seed = t;
+                pool.execute(new Runnable() {
+                    public void run()
+                    {
+                        Random random = new Random(seed);
+                        for (int i = 0; i < 100000; i++)
+                        {
+                            // skewed key distribution, so that there's something to keep
+                            int key = (int)Math.abs(random.nextGaussian() * 100);
+                            if (i % 1000 == 0)
+                                cache.remove(key);
+                            else if (!("value" + key).equals(cache.get(key)))
+                                errors.incrementAndGet();
+                        }
+                    }
+                });
+            }
+            pool.shutdown();
+            assertTrue(pool.awaitTermination(5, TimeUnit.MINUTES));
+            assertEquals(0, errors.get());
+            assertTrue(cache.size() <= 200);
+            assertTrue(cache.getHits() > cache.getMisses());
+        }
+        finally
+        {
+            cache.close();
+        }
+    }
+}
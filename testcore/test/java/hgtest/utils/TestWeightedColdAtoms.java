@@ -0,0 +1,124 @@
+package hgtest.utils;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.Callable;
+
+import org.hypergraphdb.HGConfiguration;
+import org.hypergraphdb.HGEnvironment;
+import org.hypergraphdb.HGStore;
+import org.hypergraphdb.HyperGraph;
+import org.hypergraphdb.cache.WeakRefAtomCache;
+import org.hypergraphdb.cache.WeightedColdAtoms;
+import org.hypergraphdb.util.HGUtils;
+import org.junit.Test;
+
+import hgtest.HGTestBase;
+
+public class TestWeightedColdAtoms
+{
+    @Test
+    public void testBudget()
+    {
+        WeightedColdAtoms cold = new WeightedColdAtoms(10000);
+        try
+        {
+            for (int i = 0; i < 5000; i++)
+            {
+                cold.add("atom" + i, i % 100);
+                assertTrue(cold.getWeight() <= 10000);
+            }
+            assertTrue(cold.getEvictions() > 0);
+            assertEquals(5000, cold.size() + cold.getEvictions());
+            // unknown weights get the default estimate
+            cold.clear();
+            cold.add("unknown", -1);
+            assertEquals(WeightedColdAtoms.DEFAULT_WEIGHT + WeightedColdAtoms.ENTRY_OVERHEAD, cold.getWeight());
+        }
+        finally
+        {
+            cold.close();
+        }
+    }
+
+    @Test
+    public void testOversizeAtom()
+    {
+        WeightedColdAtoms cold = new WeightedColdAtoms(10000);
+        try
+        {
+            for (int i = 0; i < 50; i++)
+                cold.add("atom" + i, 100);
+            int size = cold.size();
+            long weight = cold.getWeight();
+            long evictions = cold.getEvictions();
+            // an atom bigger than the budget is not retained and doesn't release the others
+            cold.add("huge", 20000);
+            assertEquals(size, cold.size());
+            assertEquals(weight, cold.getWeight());
+            assertEquals(evictions, cold.getEvictions());
+        }
+        finally
+        {
+            cold.close();
+        }
+    }
+
+    @Test
+    public void testBytesChargedOnce()
+    {
+        String location = HGTestBase.getGraphLocation() + "_charge";
+        HGUtils.dropHyperGraphInstance(location);
+        HGConfiguration config = new HGConfiguration();
+        config.setAtomCacheBudget(50000);
+        final HyperGraph graph = HGEnvironment.get(location, config);
+        try
+        {
+            final HGStore store = graph.getStore();
+            graph.getTransactionManager().transact(new Callable<Object>() {
+                public Object call()
+                {
+                    long outer = store.getBytesAccessed();
+                    store.store(graph.getHandleFactory().makeHandle(), new byte[100]);
+                    long inner = store.getBytesAccessed();
+                    store.store(graph.getHandleFactory().makeHandle(), new byte[40]);
+                    // the nested bytes are charged to the inner measurement only
+                    assertEquals(40, store.chargeBytesAccessed(inner));
+                    assertEquals(100, store.chargeBytesAccessed(outer));
+                    assertEquals(outer, store.getBytesAccessed());
+                    return null;
+                }
+            });
+        }
+        finally
+        {
+            graph.close();
+            HGUtils.dropHyperGraphInstance(location);
+        }
+    }
+
+    @Test
+    public void testAtomCacheBudget()
+    {
+        String location = HGTestBase.getGraphLocation() + "_budget";
+        HGUtils.dropHyperGraphInstance(location);
+        HGConfiguration config = new HGConfiguration();
+        config.setAtomCacheBudget(50000);
+        HyperGraph graph = HGEnvironment.get(location, config);
+        try
+        {
+            WeightedColdAtoms cold = ((WeakRefAtomCache)graph.getCache()).getWeightedColdAtoms();
+            assertNotNull(cold);
+            assertTrue(cold.getWeight() > 0);
+            for (int i = 0; i < 2000; i++)
+                graph.add("some string value number " + i);
+            assertTrue(cold.getWeight() <= 50000);
+            assertTrue(cold.getEvictions() > 0);
+        }
+        finally
+        {
+            graph.close();
+            HGUtils.dropHyperGraphInstance(location);
+        }
+    }
+}